@@ -0,0 +1,319 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.DatabaseSecret;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.mms.PartAuthority;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the part_file reference counts follow the attachment table, and that files are only
+ * reused or deleted when the counts say so.
+ *
+ * Needs SQLCipher's native library, so it runs on a device rather than in the JVM.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class AttachmentDatabaseFileRefCountTest {
+
+  /** Matches the version the migration was added in. */
+  private static final int PART_FILE_REF_COUNTS = 93;
+
+  private static final int NO_ROW = -1;
+
+  private Context            context;
+  private SQLiteDatabase     db;
+  private AttachmentDatabase attachmentDatabase;
+  private File               directory;
+
+  private long nextUniqueId = 1;
+
+  @Before
+  public void setUp() throws IOException {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    SQLiteDatabase.loadLibs(context);
+
+    db = SQLiteDatabase.create(null, "");
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_FILE_TABLE);
+    for (String trigger : AttachmentDatabase.CREATE_FILE_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+
+    attachmentDatabase = new AttachmentDatabase(context, new InMemoryOpenHelper(context, db), new AttachmentSecret(new byte[32], new byte[32], new byte[32]));
+
+    directory = new File(context.getCacheDir(), "part_file_test");
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Couldn't create " + directory);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  public void insert_countsEachAttachmentButNotQuotes() {
+    insertPart("a", false);
+    insertPart("a", false);
+    insertPart("a", true);
+    insertPart("b", true);
+    insertPart(null, false);
+
+    assertEquals(2, getRefCount("a"));
+    assertEquals(NO_ROW, getRefCount("b"));
+    assertEquals(1, countRows("SELECT COUNT(*) FROM " + AttachmentDatabase.FILE_TABLE_NAME));
+  }
+
+  @Test
+  public void delete_decrementsCount_andIgnoresQuotes() {
+    long first  = insertPart("a", false);
+    long second = insertPart("a", false);
+    long quote  = insertPart("a", true);
+
+    deletePart(quote);
+    assertEquals(2, getRefCount("a"));
+
+    deletePart(first);
+    assertEquals(1, getRefCount("a"));
+
+    deletePart(second);
+    assertEquals(0, getRefCount("a"));
+  }
+
+  @Test
+  public void updateData_movesCountToNewFile() {
+    long id = insertPart("a", false);
+    insertPart("a", false);
+
+    updatePart(id, "b", false);
+    assertEquals(1, getRefCount("a"));
+    assertEquals(1, getRefCount("b"));
+
+    updatePart(id, null, false);
+    assertEquals(1, getRefCount("a"));
+    assertEquals(0, getRefCount("b"));
+  }
+
+  @Test
+  public void updateQuote_addsOrRemovesCount() {
+    long id = insertPart("a", false);
+    insertPart("a", false);
+
+    updatePart(id, "a", true);
+    assertEquals(1, getRefCount("a"));
+
+    updatePart(id, "a", false);
+    assertEquals(2, getRefCount("a"));
+  }
+
+  @Test
+  public void migration_fillsCountsFromExistingAttachments() {
+    SQLiteDatabase oldDb = SQLiteDatabase.create(null, "");
+
+    try {
+      oldDb.execSQL(AttachmentDatabase.CREATE_TABLE);
+
+      insertPart(oldDb, "a", false);
+      insertPart(oldDb, "a", false);
+      insertPart(oldDb, "a", true);
+      insertPart(oldDb, "b", false);
+      insertPart(oldDb, "c", true);
+      insertPart(oldDb, null, false);
+
+      new SQLCipherOpenHelper(context, new DatabaseSecret(new byte[32])).onUpgrade(oldDb, PART_FILE_REF_COUNTS - 1, PART_FILE_REF_COUNTS);
+
+      assertEquals(2, getRefCount(oldDb, "a"));
+      assertEquals(1, getRefCount(oldDb, "b"));
+      assertEquals(NO_ROW, getRefCount(oldDb, "c"));
+
+      insertPart(oldDb, "b", false);
+      assertEquals(2, getRefCount(oldDb, "b"));
+    } finally {
+      oldDb.close();
+    }
+  }
+
+  @Test
+  public void findStoredDataFileInfo_forwardedAttachment_reusesItsFile() throws IOException {
+    File file     = createFile("forwarded");
+    long sourceId = insertPart(file.getAbsolutePath(), false, "hash");
+
+    AttachmentId                source   = getAttachmentId(sourceId);
+    AttachmentDatabase.DataInfo dataInfo = attachmentDatabase.findStoredDataFileInfo(PartAuthority.getAttachmentDataUri(source), new AttachmentId(-1, -1));
+
+    assertNotNull(dataInfo);
+    assertEquals(file, dataInfo.file);
+    assertEquals("hash", dataInfo.hash);
+  }
+
+  @Test
+  public void findStoredDataFileInfo_fileMissing_returnsNull() {
+    long sourceId = insertPart(new File(directory, "missing").getAbsolutePath(), false, "hash");
+
+    AttachmentId source = getAttachmentId(sourceId);
+
+    assertNull(attachmentDatabase.findStoredDataFileInfo(PartAuthority.getAttachmentDataUri(source), new AttachmentId(-1, -1)));
+  }
+
+  @Test
+  public void deleteUnreferencedFiles_onlyDeletesFilesNothingUses() throws IOException {
+    File shared       = createFile("shared");
+    File quoted       = createFile("quoted");
+    File unreferenced = createFile("unreferenced");
+
+    insertPart(shared.getAbsolutePath(), false);
+    deletePart(insertPart(shared.getAbsolutePath(), false));
+
+    deletePart(insertPart(quoted.getAbsolutePath(), false));
+    insertPart(quoted.getAbsolutePath(), true);
+
+    deletePart(insertPart(unreferenced.getAbsolutePath(), false));
+
+    assertEquals(1, attachmentDatabase.deleteUnreferencedFiles());
+
+    assertTrue(shared.exists());
+    assertTrue(quoted.exists());
+    assertFalse(unreferenced.exists());
+
+    assertEquals(1, getRefCount(shared.getAbsolutePath()));
+    assertEquals(0, getRefCount(quoted.getAbsolutePath()));
+    assertEquals(NO_ROW, getRefCount(unreferenced.getAbsolutePath()));
+  }
+
+  @Test
+  public void deleteUnreferencedFiles_wrongCount_recountsInsteadOfDeleting() throws IOException {
+    File file = createFile("miscounted");
+
+    insertPart(file.getAbsolutePath(), false);
+    db.execSQL("UPDATE " + AttachmentDatabase.FILE_TABLE_NAME + " SET ref_count = 0");
+
+    assertEquals(0, attachmentDatabase.deleteUnreferencedFiles());
+
+    assertTrue(file.exists());
+    assertEquals(1, getRefCount(file.getAbsolutePath()));
+  }
+
+  private long insertPart(@Nullable String data, boolean quote) {
+    return insertPart(db, data, quote);
+  }
+
+  private long insertPart(@Nullable String data, boolean quote, @Nullable String hash) {
+    return insertPart(db, data, quote, hash);
+  }
+
+  private long insertPart(@NonNull SQLiteDatabase db, @Nullable String data, boolean quote) {
+    return insertPart(db, data, quote, null);
+  }
+
+  private long insertPart(@NonNull SQLiteDatabase db, @Nullable String data, boolean quote, @Nullable String hash) {
+    ContentValues values = new ContentValues();
+    values.put(AttachmentDatabase.MMS_ID, 1);
+    values.put(AttachmentDatabase.UNIQUE_ID, nextUniqueId++);
+    values.put(AttachmentDatabase.DATA, data);
+    values.put(AttachmentDatabase.DATA_RANDOM, new byte[32]);
+    values.put(AttachmentDatabase.DATA_HASH, hash);
+    values.put(AttachmentDatabase.SIZE, 10);
+    values.put(AttachmentDatabase.QUOTE, quote ? 1 : 0);
+
+    return db.insert(AttachmentDatabase.TABLE_NAME, null, values);
+  }
+
+  private void updatePart(long rowId, @Nullable String data, boolean quote) {
+    ContentValues values = new ContentValues();
+    values.put(AttachmentDatabase.DATA, data);
+    values.put(AttachmentDatabase.QUOTE, quote ? 1 : 0);
+
+    db.update(AttachmentDatabase.TABLE_NAME, values, AttachmentDatabase.ROW_ID + " = ?", new String[] { String.valueOf(rowId) });
+  }
+
+  private void deletePart(long rowId) {
+    db.delete(AttachmentDatabase.TABLE_NAME, AttachmentDatabase.ROW_ID + " = ?", new String[] { String.valueOf(rowId) });
+  }
+
+  private @NonNull AttachmentId getAttachmentId(long rowId) {
+    try (Cursor cursor = db.rawQuery("SELECT " + AttachmentDatabase.UNIQUE_ID + " FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " + AttachmentDatabase.ROW_ID + " = ?", new String[] { String.valueOf(rowId) })) {
+      assertTrue(cursor.moveToFirst());
+      return new AttachmentId(rowId, cursor.getLong(0));
+    }
+  }
+
+  private int getRefCount(@NonNull String data) {
+    return getRefCount(db, data);
+  }
+
+  private static int getRefCount(@NonNull SQLiteDatabase db, @NonNull String data) {
+    try (Cursor cursor = db.rawQuery("SELECT ref_count FROM " + AttachmentDatabase.FILE_TABLE_NAME + " WHERE " + AttachmentDatabase.DATA + " = ?", new String[] { data })) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : NO_ROW;
+    }
+  }
+
+  private int countRows(@NonNull String query) {
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      assertTrue(cursor.moveToFirst());
+      return cursor.getInt(0);
+    }
+  }
+
+  private @NonNull File createFile(@NonNull String name) throws IOException {
+    File file = new File(directory, name);
+    if (!file.createNewFile() && !file.exists()) {
+      throw new IOException("Couldn't create " + file);
+    }
+    return file;
+  }
+
+  /**
+   * Hands the attachment table an in-memory database instead of the app's.
+   */
+  private static final class InMemoryOpenHelper extends SQLCipherOpenHelper {
+    private final org.thoughtcrime.securesms.database.SQLiteDatabase database;
+
+    private InMemoryOpenHelper(@NonNull Context context, @NonNull SQLiteDatabase database) {
+      super(context, new DatabaseSecret(new byte[32]));
+      this.database = new org.thoughtcrime.securesms.database.SQLiteDatabase(database);
+    }
+
+    @Override
+    public org.thoughtcrime.securesms.database.SQLiteDatabase getReadableDatabase() {
+      return database;
+    }
+
+    @Override
+    public org.thoughtcrime.securesms.database.SQLiteDatabase getWritableDatabase() {
+      return database;
+    }
+  }
+}
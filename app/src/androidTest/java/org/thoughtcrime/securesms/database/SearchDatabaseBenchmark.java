@@ -0,0 +1,201 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares query latency of the date-ordered search against the first page and the first few pages
+ * of the ranked search, on synthetic corpora with and without the FTS prefix indexes.
+ *
+ * Needs SQLCipher's native library, so it runs on a device rather than in the JVM. Ignored by
+ * default, remove the annotation to run it.
+ */
+@Ignore("Benchmark")
+@RunWith(AndroidJUnit4.class)
+public final class SearchDatabaseBenchmark {
+
+  private static final String TAG = Log.tag(SearchDatabaseBenchmark.class);
+
+  private static final int[]    CORPUS_SIZES = { 10_000, 100_000 };
+  private static final String[] QUERIES      = { "a", "th", "sta", "messa", "the sta" };
+  private static final int      THREADS      = 100;
+  private static final int      VOCABULARY   = 5_000;
+  private static final int      PAGE_SIZE    = 100;
+  private static final int      RUNS         = 7;
+
+  @Test
+  public void queryLatency() {
+    SQLiteDatabase.loadLibs(InstrumentationRegistry.getInstrumentation().getTargetContext());
+
+    for (int size : CORPUS_SIZES) {
+      for (boolean prefixIndexes : new boolean[] { false, true }) {
+        SQLiteDatabase db = SQLiteDatabase.create(null, "");
+
+        try {
+          long startTime = System.currentTimeMillis();
+          createCorpus(db, size, prefixIndexes);
+          Log.i(TAG, String.format(Locale.US, "%,d messages, prefix indexes %s: built in %d ms", size, prefixIndexes ? "on" : "off", System.currentTimeMillis() - startTime));
+
+          for (String query : QUERIES) {
+            String ftsQuery = SearchDatabase.createFullTextSearchQuery(query);
+
+            long byDate    = median(() -> queryByDate(db, ftsQuery));
+            long firstPage = median(() -> queryRanked(db, ftsQuery, 1));
+            long fivePages = median(() -> queryRanked(db, ftsQuery, 5));
+
+            Log.i(TAG, String.format(Locale.US, "  %-8s by date: %4d ms   ranked, first page: %4d ms   ranked, five pages: %4d ms", "\"" + query + "\"", byDate, firstPage, fivePages));
+          }
+        } finally {
+          db.close();
+        }
+      }
+    }
+  }
+
+  private static int queryByDate(@NonNull SQLiteDatabase db, @NonNull String ftsQuery) {
+    try (Cursor cursor = db.rawQuery(SearchDatabase.MESSAGES_QUERY, new String[] { ftsQuery, ftsQuery })) {
+      return drain(cursor);
+    }
+  }
+
+  private static int queryRanked(@NonNull SQLiteDatabase db, @NonNull String ftsQuery, int pages) {
+    SearchDatabase.PageKey after = null;
+    int                    total = 0;
+
+    for (int i = 0; i < pages; i++) {
+      List<Object> args = new ArrayList<>();
+      String       sql  = SearchDatabase.buildRankedMessagesQuery(ftsQuery, -1, after, PAGE_SIZE, args);
+      int          read = 0;
+
+      try (Cursor cursor = db.rawQuery(sql, args.toArray())) {
+        while (cursor.moveToNext()) {
+          cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
+          after = SearchDatabase.PageKey.fromCursor(cursor);
+          read++;
+        }
+      }
+
+      total += read;
+
+      if (read < PAGE_SIZE) {
+        break;
+      }
+    }
+
+    return total;
+  }
+
+  private static int drain(@Nullable Cursor cursor) {
+    int count = 0;
+
+    while (cursor != null && cursor.moveToNext()) {
+      cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
+      count++;
+    }
+
+    return count;
+  }
+
+  private static long median(@NonNull Query query) {
+    long[] times = new long[RUNS];
+
+    assertTrue(query.run() >= 0);
+
+    for (int i = 0; i < RUNS; i++) {
+      long startTime = System.nanoTime();
+      query.run();
+      times[i] = (System.nanoTime() - startTime) / 1_000_000;
+    }
+
+    Arrays.sort(times);
+    return times[RUNS / 2];
+  }
+
+  /**
+   * Creates just enough of the message and thread tables for the search queries, and fills them
+   * with messages made of words drawn from a skewed vocabulary, so a few words are very common.
+   */
+  private static void createCorpus(@NonNull SQLiteDatabase db, int size, boolean prefixIndexes) {
+    db.execSQL("CREATE TABLE " + ThreadDatabase.TABLE_NAME + " (" + ThreadDatabase.ID + " INTEGER PRIMARY KEY, " + ThreadDatabase.RECIPIENT_ID + " INTEGER)");
+    db.execSQL("CREATE TABLE " + SmsDatabase.TABLE_NAME + " (" + MmsSmsColumns.ID + " INTEGER PRIMARY KEY, " + MmsSmsColumns.THREAD_ID + " INTEGER, " + MmsSmsColumns.RECIPIENT_ID + " INTEGER, " + SmsDatabase.DATE_RECEIVED + " INTEGER, " + MmsSmsColumns.BODY + " TEXT)");
+    db.execSQL("CREATE TABLE " + MmsDatabase.TABLE_NAME + " (" + MmsSmsColumns.ID + " INTEGER PRIMARY KEY, " + MmsSmsColumns.THREAD_ID + " INTEGER, " + MmsSmsColumns.RECIPIENT_ID + " INTEGER, " + MmsDatabase.DATE_RECEIVED + " INTEGER, " + MmsSmsColumns.BODY + " TEXT)");
+
+    for (String statement : SearchDatabase.CREATE_TABLE) {
+      db.execSQL(prefixIndexes ? statement : statement.replace(", " + SearchDatabase.FTS_OPTIONS, ""));
+    }
+
+    Random   random     = new Random(size);
+    String[] vocabulary = createVocabulary(random);
+
+    db.beginTransaction();
+    try {
+      for (int i = 1; i <= THREADS; i++) {
+        db.execSQL("INSERT INTO " + ThreadDatabase.TABLE_NAME + " VALUES (?, ?)", new Object[] { i, i });
+      }
+
+      for (int i = 1; i <= size; i++) {
+        String table = i % 5 == 0 ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+        long   from  = 1 + random.nextInt(THREADS);
+
+        db.execSQL("INSERT INTO " + table + " VALUES (?, ?, ?, ?, ?)", new Object[] { i, from, from, 1_600_000_000_000L + i * 1000L, createBody(random, vocabulary) });
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static @NonNull String[] createVocabulary(@NonNull Random random) {
+    String[] vocabulary = new String[VOCABULARY];
+    String[] common     = { "the", "a", "and", "to", "you", "start", "station", "message", "messages", "thanks", "that", "this" };
+
+    System.arraycopy(common, 0, vocabulary, 0, common.length);
+
+    for (int i = common.length; i < VOCABULARY; i++) {
+      char[] word = new char[3 + random.nextInt(7)];
+
+      for (int j = 0; j < word.length; j++) {
+        word[j] = (char) ('a' + random.nextInt(26));
+      }
+
+      vocabulary[i] = new String(word);
+    }
+
+    return vocabulary;
+  }
+
+  private static @NonNull String createBody(@NonNull Random random, @NonNull String[] vocabulary) {
+    StringBuilder body  = new StringBuilder();
+    int           words = 3 + random.nextInt(25);
+
+    for (int i = 0; i < words; i++) {
+      double skewed = Math.pow(random.nextDouble(), 3);
+      body.append(vocabulary[(int) (skewed * vocabulary.length)]).append(' ');
+    }
+
+    return body.toString();
+  }
+
+  private interface Query {
+    int run();
+  }
+}
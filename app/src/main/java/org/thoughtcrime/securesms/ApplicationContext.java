@@ -79,7 +79,9 @@ import org.thoughtcrime.securesms.util.dynamiclanguage.DynamicLanguageContextWra
 import org.webrtc.voiceengine.WebRtcAudioManager;
 import org.webrtc.voiceengine.WebRtcAudioUtils;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
+import org.whispersystems.signalservice.internal.push.ConnectionManager;
 
+import java.io.File;
 import java.security.Security;
 import java.util.concurrent.TimeUnit;
 
@@ -95,6 +97,9 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
 
   private static final String TAG = Log.tag(ApplicationContext.class);
 
+  private static final String TRACE_DIRECTORY = "trace";
+  private static final long   TRACE_MAX_BYTES = 32 * 1024 * 1024;
+
   private PersistentLogger persistentLogger;
 
   public static ApplicationContext getInstance(Context context) {
@@ -178,6 +183,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
       KeyCachingService.onAppForegrounded(this);
       ApplicationDependencies.getShakeToReport().enable();
       checkBuildExpiration();
+      prewarmConnections();
     });
 
     Log.d(TAG, "onStart() took " + (System.currentTimeMillis() - startTime) + " ms");
@@ -228,9 +234,15 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
   }
 
   private void initializeLogging() {
-    persistentLogger = new PersistentLogger(this, LogSecretProvider.getOrCreateAttachmentSecret(this), BuildConfig.VERSION_NAME);
+    byte[] logSecret = LogSecretProvider.getOrCreateAttachmentSecret(this);
+
+    persistentLogger = new PersistentLogger(this, logSecret, BuildConfig.VERSION_NAME, PersistentLogger.Mode.RING_BUFFER);
     org.signal.core.util.logging.Log.initialize(FeatureFlags::internalUser, new AndroidLogger(), persistentLogger);
 
+    if (FeatureFlags.internalUser()) {
+      Tracer.getInstance().enableStreaming(new File(getCacheDir(), TRACE_DIRECTORY), logSecret, TRACE_MAX_BYTES);
+    }
+
     SignalProtocolLoggerProvider.setProvider(new CustomSignalProtocolLogger());
   }
 
@@ -243,6 +255,12 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     ApplicationMigrations.onApplicationCreate(this, ApplicationDependencies.getJobManager());
   }
 
+  private void prewarmConnections() {
+    if (TextSecurePreferences.isPushRegistered(this)) {
+      ConnectionManager.forConfiguration(ApplicationDependencies.getSignalServiceNetworkAccess().getConfiguration(this)).prewarm();
+    }
+  }
+
   public void initializeMessageRetrieval() {
     ApplicationDependencies.getIncomingMessageObserver();
   }
@@ -359,6 +377,9 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
   private void initializeCleanup() {
     int deleted = DatabaseFactory.getAttachmentDatabase(this).deleteAbandonedPreuploadedAttachments();
     Log.i(TAG, "Deleted " + deleted + " abandoned attachments.");
+
+    int deletedFiles = DatabaseFactory.getAttachmentDatabase(this).deleteUnreferencedFiles();
+    Log.i(TAG, "Deleted " + deletedFiles + " unreferenced attachment files.");
   }
 
   private void initializeGlideCodecs() {
@@ -0,0 +1,193 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the contents of a stream from one thread to another, in chunks of up to
+ * {@link BackupFrameOutputStream#BUFFER_SIZE} bytes. At most {@link #CAPACITY} chunks can be waiting
+ * at once, and chunk buffers are recycled through a pool shared by every pipe.
+ */
+final class BackupChunkPipe extends InputStream {
+
+  private static final String TAG = Log.tag(BackupChunkPipe.class);
+
+  static final int CAPACITY = 8;
+
+  private static final long  POLL_INTERVAL_MS = 100;
+  private static final Chunk END              = new Chunk(null, -1, null);
+
+  private final BlockingQueue<Chunk>  chunks;
+  private final BlockingQueue<byte[]> pool;
+
+  private volatile boolean closed;
+
+  private Chunk       current;
+  private int         position;
+  private IOException readFailure;
+
+  BackupChunkPipe(@NonNull BlockingQueue<byte[]> pool) {
+    this.chunks = new ArrayBlockingQueue<>(CAPACITY);
+    this.pool   = pool;
+  }
+
+  /**
+   * Reads the whole stream into the pipe. Stops early if the pipe is closed or the thread is
+   * interrupted. Read errors are passed along to the other side.
+   */
+  void fill(@NonNull InputStream in) {
+    try {
+      while (true) {
+        byte[] buffer = pool.poll();
+
+        if (buffer == null) {
+          buffer = new byte[BackupFrameOutputStream.BUFFER_SIZE];
+        }
+
+        int length = readChunk(in, buffer);
+
+        if (length == 0) {
+          pool.offer(buffer);
+        }
+
+        if (length > 0 && !put(new Chunk(buffer, length, null))) {
+          return;
+        }
+
+        if (length < buffer.length) {
+          put(END);
+          return;
+        }
+      }
+    } catch (IOException e) {
+      try {
+        put(new Chunk(null, -1, e));
+      } catch (InterruptedException ie) {
+        Log.w(TAG, "Interrupted while passing along a read failure.");
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while reading a stream.");
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (current == END) {
+      return -1;
+    }
+
+    if (current == null || position == current.length) {
+      recycle(current);
+      current  = take();
+      position = 0;
+
+      if (current.error != null) {
+        readFailure = current.error;
+        current     = END;
+        throw readFailure;
+      }
+
+      if (current == END) {
+        return -1;
+      }
+    }
+
+    int read = Math.min(length, current.length - position);
+
+    System.arraycopy(current.buffer, position, buffer, offset, read);
+    position += read;
+
+    return read;
+  }
+
+  /**
+   * @return The error the filling side ran into reading its stream, if it's been passed along yet.
+   */
+  @Nullable IOException getReadFailure() {
+    return readFailure;
+  }
+
+  /**
+   * Discards anything that hasn't been read yet, and tells the filling side to stop.
+   */
+  @Override
+  public void close() {
+    closed = true;
+
+    recycle(current);
+    current = END;
+
+    Chunk chunk;
+    while ((chunk = chunks.poll()) != null) {
+      recycle(chunk);
+    }
+  }
+
+  private boolean put(@NonNull Chunk chunk) throws InterruptedException {
+    while (!closed) {
+      if (chunks.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    }
+
+    recycle(chunk);
+    return false;
+  }
+
+  private @NonNull Chunk take() throws IOException {
+    try {
+      return chunks.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void recycle(@Nullable Chunk chunk) {
+    if (chunk != null && chunk.buffer != null) {
+      pool.offer(chunk.buffer);
+    }
+  }
+
+  private static int readChunk(@NonNull InputStream in, @NonNull byte[] buffer) throws IOException {
+    int total = 0;
+
+    while (total < buffer.length) {
+      int read = in.read(buffer, total, buffer.length - total);
+
+      if (read == -1) {
+        break;
+      }
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  private static final class Chunk {
+    private final byte[]      buffer;
+    private final int         length;
+    private final IOException error;
+
+    private Chunk(@Nullable byte[] buffer, int length, @Nullable IOException error) {
+      this.buffer = buffer;
+      this.length = length;
+      this.error  = error;
+    }
+  }
+}
@@ -73,6 +73,7 @@ public class BackupDialog {
           }
 
           BackupPassphrase.set(context, Util.join(password, " "));
+          IncrementalBackupState.clear(context);
           TextSecurePreferences.setNextBackupTime(context, 0);
           TextSecurePreferences.setBackupEnabled(context, true);
           LocalBackupListener.schedule(context);
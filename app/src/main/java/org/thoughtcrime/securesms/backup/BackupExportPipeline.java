@@ -0,0 +1,380 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes backup frames from a dedicated writer thread, so that the thread walking the database can
+ * keep going while earlier frames are being encrypted and written. Attachments, stickers and avatars
+ * are read (which usually means decrypted from local storage) on a couple of reader threads, a few
+ * streams ahead of the writer.
+ *
+ * Frames are always written in the order they were submitted, so the result is exactly what writing
+ * them one at a time to a {@link BackupFrameOutputStream} would produce.
+ *
+ * Errors on the writer thread are rethrown from the next call on the submitting thread.
+ */
+class BackupExportPipeline {
+
+  private static final String TAG = Log.tag(BackupExportPipeline.class);
+
+  private static final int  MAX_PENDING_FRAMES  = 256;
+  private static final int  MAX_PENDING_STREAMS = 4;
+  private static final int  READER_THREADS      = 2;
+  private static final long POLL_INTERVAL_MS    = 100;
+
+  private static final Item FINISH = new Item(null, null, 0, false, null);
+
+  private final BackupFrameOutputStream output;
+  private final BlockingQueue<Item>     pendingFrames;
+  private final BlockingQueue<byte[]>   chunkPool;
+  private final Semaphore               streamPermits;
+  private final ExecutorService         writerExecutor;
+  private final ExecutorService         readerExecutor;
+  private final CountDownLatch          writerFinished;
+
+  private volatile IOException writerFailure;
+  private volatile boolean     stopped;
+
+  BackupExportPipeline(@NonNull BackupFrameOutputStream output) {
+    this.output         = output;
+    this.pendingFrames  = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+    this.chunkPool      = new ArrayBlockingQueue<>(MAX_PENDING_STREAMS * BackupChunkPipe.CAPACITY);
+    this.streamPermits  = new Semaphore(MAX_PENDING_STREAMS);
+    this.writerExecutor = SignalExecutors.newCachedSingleThreadExecutor("signal-BackupWriter");
+    this.readerExecutor = Executors.newFixedThreadPool(READER_THREADS, r -> new Thread(r, "signal-BackupReader"));
+    this.writerFinished = new CountDownLatch(1);
+
+    writerExecutor.execute(this::runWriter);
+  }
+
+  public void write(BackupProtos.SharedPreference preference) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+  }
+
+  public void write(BackupProtos.KeyValue keyValue) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+  }
+
+  public void write(BackupProtos.SqlStatement statement) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+  }
+
+  public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                 .setRecipientId(avatarName)
+                                                                 .setLength(Util.toIntExact(size))
+                                                                 .build())
+                                   .build(),
+           in,
+           size,
+           false,
+           null);
+  }
+
+  /**
+   * Problems reading an attachment are logged rather than failing the whole backup.
+   *
+   * @param onWritten Run on the writer thread once the attachment has been written in full. Not run
+   *                  if it couldn't be read.
+   */
+  public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size, @Nullable Runnable onWritten) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                         .setRowId(attachmentId.getRowId())
+                                                                         .setAttachmentId(attachmentId.getUniqueId())
+                                                                         .setLength(Util.toIntExact(size))
+                                                                         .build())
+                                   .build(),
+           in,
+           size,
+           true,
+           onWritten);
+  }
+
+  /**
+   * Writes an attachment's frame without its data, which is being sent some other way.
+   *
+   * @param onWritten Run on the writer thread once the frame has been written.
+   */
+  public void writeExternalAttachment(@NonNull AttachmentId attachmentId, long size, @Nullable Runnable onWritten) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                         .setRowId(attachmentId.getRowId())
+                                                                         .setAttachmentId(attachmentId.getUniqueId())
+                                                                         .setLength(Util.toIntExact(size))
+                                                                         .setExternal(true)
+                                                                         .build())
+                                   .build(),
+           onWritten);
+  }
+
+  /**
+   * Problems reading a sticker are logged rather than failing the whole backup.
+   *
+   * @param onWritten Run on the writer thread once the sticker has been written in full. Not run if
+   *                  it couldn't be read.
+   */
+  public void writeSticker(long rowId, @NonNull InputStream in, long size, @Nullable Runnable onWritten) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                   .setRowId(rowId)
+                                                                   .setLength(Util.toIntExact(size))
+                                                                   .build())
+                                   .build(),
+           in,
+           size,
+           true,
+           onWritten);
+  }
+
+  void writeChain(@NonNull byte[] chainId, int sequence) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setChain(BackupProtos.BackupChain.newBuilder()
+                                                                     .setId(ByteString.copyFrom(chainId))
+                                                                     .setSequence(sequence))
+                                   .build());
+  }
+
+  void writeDatabaseVersion(int version) throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder()
+                                   .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                   .build());
+  }
+
+  void writeEnd() throws IOException {
+    submit(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+  }
+
+  /**
+   * @return How many bytes of the backup have been written so far. Safe to call from any thread.
+   */
+  long getBytesWritten() {
+    return output.getBytesWritten();
+  }
+
+  /**
+   * Blocks until everything that's been submitted has been written and flushed.
+   */
+  void finish() throws IOException {
+    enqueue(FINISH);
+    awaitWriter();
+    throwIfWriterFailed();
+  }
+
+  /**
+   * Stops the pipeline, dropping anything that hasn't been written yet, and closes the underlying
+   * output if requested. Safe to call after {@link #finish()}.
+   */
+  void shutdown(boolean closeOutput) throws IOException {
+    stopped = true;
+
+    if (!writerExecutor.shutdownNow().isEmpty()) {
+      writerFinished.countDown();
+    }
+
+    for (Runnable task : readerExecutor.shutdownNow()) {
+      if (task instanceof ReadTask) {
+        ((ReadTask) task).abandon();
+      }
+    }
+
+    try {
+      awaitWriter();
+    } finally {
+      Item item;
+      while ((item = pendingFrames.poll()) != null) {
+        if (item.pipe != null) {
+          item.pipe.close();
+        }
+      }
+
+      if (closeOutput) {
+        output.close();
+      }
+    }
+  }
+
+  private void submit(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+    submit(frame, null);
+  }
+
+  private void submit(@NonNull BackupProtos.BackupFrame frame, @Nullable Runnable onWritten) throws IOException {
+    enqueue(new Item(frame, null, 0, false, onWritten));
+  }
+
+  private void submit(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream in, long size, boolean tolerateReadFailure, @Nullable Runnable onWritten) throws IOException {
+    try {
+      while (!streamPermits.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        throwIfWriterFailed();
+      }
+    } catch (InterruptedException e) {
+      StreamUtil.close(in);
+      throw new InterruptedIOException();
+    }
+
+    BackupChunkPipe pipe = new BackupChunkPipe(chunkPool);
+    readerExecutor.execute(new ReadTask(in, pipe));
+    enqueue(new Item(frame, pipe, size, tolerateReadFailure, onWritten));
+  }
+
+  private void enqueue(@NonNull Item item) throws IOException {
+    try {
+      throwIfWriterFailed();
+
+      while (!pendingFrames.offer(item, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        throwIfWriterFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (IOException e) {
+      if (item.pipe != null) {
+        item.pipe.close();
+      }
+      throw e;
+    }
+  }
+
+  private void throwIfWriterFailed() throws IOException {
+    if (writerFailure != null) {
+      throw new IOException("Failed to write the backup.", writerFailure);
+    }
+
+    if (stopped) {
+      throw new IOException("The backup pipeline has been shut down.");
+    }
+  }
+
+  private void awaitWriter() throws InterruptedIOException {
+    try {
+      writerFinished.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void runWriter() {
+    try {
+      while (!stopped) {
+        Item item = pendingFrames.take();
+
+        if (item == FINISH) {
+          output.flush();
+          return;
+        }
+
+        boolean written;
+
+        if (item.pipe == null) {
+          output.write(item.frame);
+          written = true;
+        } else {
+          written = writeStream(item);
+        }
+
+        if (written && item.onWritten != null) {
+          item.onWritten.run();
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write the backup.", e);
+      writerFailure = e;
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while writing the backup.");
+      writerFailure = new InterruptedIOException();
+    } finally {
+      writerFinished.countDown();
+    }
+  }
+
+  /**
+   * Only problems with the stream itself can be tolerated. Anything that goes wrong writing the
+   * output is always rethrown.
+   *
+   * @return False if the stream couldn't be read in full and that was tolerated.
+   */
+  private boolean writeStream(@NonNull Item item) throws IOException {
+    try {
+      output.write(item.frame, item.pipe, item.size);
+      return true;
+    } catch (IOException e) {
+      boolean readFailure = e == item.pipe.getReadFailure() || e instanceof BackupFrameOutputStream.SizeMismatchException;
+
+      if (item.tolerateReadFailure && readFailure && !stopped) {
+        Log.w(TAG, "Failed to read a stream. Skipping it.", e);
+        return false;
+      } else {
+        throw e;
+      }
+    } finally {
+      item.pipe.close();
+      streamPermits.release();
+    }
+  }
+
+  private static final class Item {
+    private final BackupProtos.BackupFrame frame;
+    private final BackupChunkPipe          pipe;
+    private final long                     size;
+    private final boolean                  tolerateReadFailure;
+    private final Runnable                 onWritten;
+
+    private Item(@Nullable BackupProtos.BackupFrame frame, @Nullable BackupChunkPipe pipe, long size, boolean tolerateReadFailure, @Nullable Runnable onWritten) {
+      this.frame               = frame;
+      this.pipe                = pipe;
+      this.size                = size;
+      this.tolerateReadFailure = tolerateReadFailure;
+      this.onWritten           = onWritten;
+    }
+  }
+
+  /**
+   * Reads a stream into a {@link BackupChunkPipe} on one of the reader threads.
+   */
+  private static final class ReadTask implements Runnable {
+    private final InputStream     in;
+    private final BackupChunkPipe pipe;
+
+    private ReadTask(@NonNull InputStream in, @NonNull BackupChunkPipe pipe) {
+      this.in   = in;
+      this.pipe = pipe;
+    }
+
+    @Override
+    public void run() {
+      try {
+        pipe.fill(in);
+      } finally {
+        StreamUtil.close(in);
+      }
+    }
+
+    /**
+     * Called if the task is never going to run.
+     */
+    void abandon() {
+      StreamUtil.close(in);
+      pipe.close();
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import org.signal.core.util.Conversions;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and writes backup frames.
+ *
+ * Frames are serialized, encrypted and MAC'd in buffers that are reused from one frame to the next,
+ * and everything is written through a large buffer, so writing a small frame doesn't cost us any
+ * allocations beyond the frame itself, or a write to the underlying stream.
+ *
+ * Not thread-safe. See {@link BackupExportPipeline} for a way to use this from several threads.
+ */
+class BackupFrameOutputStream extends FullBackupBase.BackupStream {
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MAC_LENGTH = 10;
+
+  private final OutputStream  rawOutputStream;
+  private final OutputStream  outputStream;
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final SecretKeySpec cipherKey;
+  private final byte[]        lengthBuffer;
+  private final byte[]        streamBuffer;
+  private final byte[]        streamCipherBuffer;
+
+  private byte[] iv;
+  private int    counter;
+  private byte[] framePlaintextBuffer;
+  private byte[] frameCipherBuffer;
+
+  private volatile long bytesWritten;
+
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    this(output, passphrase, Util.getSecretBytes(32));
+  }
+
+  private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, @NonNull byte[] salt) throws IOException {
+    this(output, getBackupKey(passphrase, salt), salt, Util.getSecretBytes(16));
+  }
+
+  @VisibleForTesting
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull byte[] backupKey, @NonNull byte[] salt, @NonNull byte[] iv) throws IOException {
+    try {
+      byte[]   derived = new HKDFv3().deriveSecrets(backupKey, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+      this.cipherKey            = new SecretKeySpec(split[0], "AES");
+      this.cipher               = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac                  = Mac.getInstance("HmacSHA256");
+      this.rawOutputStream      = output;
+      this.outputStream         = new BufferedOutputStream(output, BUFFER_SIZE);
+      this.iv                   = Arrays.copyOf(iv, iv.length);
+      this.counter              = Conversions.byteArrayToInt(iv);
+      this.lengthBuffer         = new byte[4];
+      this.streamBuffer         = new byte[BUFFER_SIZE];
+      this.streamCipherBuffer   = new byte[BUFFER_SIZE + 16];
+      this.framePlaintextBuffer = new byte[1024];
+      this.frameCipherBuffer    = new byte[1024];
+
+      mac.init(new SecretKeySpec(split[1], "HmacSHA256"));
+
+      byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                         .setIv(ByteString.copyFrom(iv))
+                                                                                         .setSalt(ByteString.copyFrom(salt)))
+                                              .build().toByteArray();
+
+      outputStream.write(Conversions.intToByteArray(header.length));
+      outputStream.write(header);
+
+      bytesWritten += 4 + header.length;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+    try {
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+
+      int frameLength = frame.getSerializedSize();
+
+      if (framePlaintextBuffer.length < frameLength) {
+        framePlaintextBuffer = new byte[Math.max(frameLength, framePlaintextBuffer.length * 2)];
+        frameCipherBuffer    = new byte[framePlaintextBuffer.length];
+      }
+
+      CodedOutputStream codedOutput = CodedOutputStream.newInstance(framePlaintextBuffer, 0, frameLength);
+      frame.writeTo(codedOutput);
+      codedOutput.checkNoSpaceLeft();
+
+      int ciphertextLength = cipher.doFinal(framePlaintextBuffer, 0, frameLength, frameCipherBuffer, 0);
+
+      mac.update(frameCipherBuffer, 0, ciphertextLength);
+      byte[] frameMac = mac.doFinal();
+
+      Conversions.intToByteArray(lengthBuffer, 0, ciphertextLength + MAC_LENGTH);
+
+      outputStream.write(lengthBuffer);
+      outputStream.write(frameCipherBuffer, 0, ciphertextLength);
+      outputStream.write(frameMac, 0, MAC_LENGTH);
+
+      bytesWritten += lengthBuffer.length + ciphertextLength + MAC_LENGTH;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Writes a frame describing a stream, followed by the stream itself.
+   */
+  void write(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream in, long size) throws IOException {
+    write(frame);
+
+    if (writeStream(in) != size) {
+      throw new SizeMismatchException();
+    }
+  }
+
+  /**
+   * @return The number of bytes that have been written so far, including any that are still
+   *         buffered. Safe to call from any thread.
+   */
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  void flush() throws IOException {
+    outputStream.flush();
+  }
+
+  /**
+   * Closes the underlying stream without flushing, since a backup that wasn't finished isn't worth
+   * writing out. Call {@link #flush()} first if it was.
+   */
+  void close() throws IOException {
+    rawOutputStream.close();
+  }
+
+  /**
+   * @return The amount of data written from the provided InputStream.
+   */
+  private long writeStream(@NonNull InputStream inputStream) throws IOException {
+    try {
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      mac.update(iv);
+
+      long total = 0;
+      int  read;
+
+      while ((read = inputStream.read(streamBuffer)) != -1) {
+        int ciphertextLength = cipher.update(streamBuffer, 0, read, streamCipherBuffer, 0);
+
+        outputStream.write(streamCipherBuffer, 0, ciphertextLength);
+        mac.update(streamCipherBuffer, 0, ciphertextLength);
+
+        total        += read;
+        bytesWritten += ciphertextLength;
+      }
+
+      int remainderLength = cipher.doFinal(streamCipherBuffer, 0);
+      outputStream.write(streamCipherBuffer, 0, remainderLength);
+      mac.update(streamCipherBuffer, 0, remainderLength);
+
+      byte[] attachmentDigest = mac.doFinal();
+      outputStream.write(attachmentDigest, 0, MAC_LENGTH);
+
+      bytesWritten += remainderLength + MAC_LENGTH;
+
+      return total;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Thrown when a stream turns out to be a different length than its frame says it is.
+   */
+  static final class SizeMismatchException extends IOException {
+    SizeMismatchException() {
+      super("Size mismatch!");
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decrypts the attachment, sticker and avatar streams of a backup on a couple of worker threads, so
+ * that the importing thread can go back to applying SQL as soon as it has read a stream's ciphertext.
+ *
+ * Completion callbacks are run on the importing thread, from {@link #runCompleted()} or
+ * {@link #drain()}, since that's the thread holding the database transaction.
+ */
+class BackupImportPipeline {
+
+  private static final String TAG = Log.tag(BackupImportPipeline.class);
+
+  private static final int  MAX_PENDING_STREAMS = 4;
+  private static final int  DECRYPT_THREADS     = 2;
+  private static final long POLL_INTERVAL_MS    = 100;
+
+  private final ExecutorService           executor;
+  private final BlockingQueue<byte[]>     chunkPool;
+  private final Semaphore                 streamPermits;
+  private final BlockingQueue<Completion> completions;
+
+  private int outstanding;
+
+  BackupImportPipeline() {
+    this.executor      = Executors.newFixedThreadPool(DECRYPT_THREADS, r -> new Thread(r, "signal-BackupDecrypt"));
+    this.chunkPool     = new ArrayBlockingQueue<>(MAX_PENDING_STREAMS * BackupChunkPipe.CAPACITY);
+    this.streamPermits = new Semaphore(MAX_PENDING_STREAMS);
+    this.completions   = new LinkedBlockingQueue<>();
+  }
+
+  /**
+   * Reads the ciphertext of the stream that follows the current frame, and decrypts it into the
+   * output on a worker thread. Returns once the ciphertext has been read, so the next frame can be.
+   *
+   * @param callback Run on this thread once the stream has been decrypted and the output closed.
+   */
+  void read(@NonNull BackupRecordInputStream input, int length, @NonNull OutputStream out, @NonNull Callback callback) throws IOException {
+    try {
+      while (!streamPermits.tryAcquire(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        runCompleted();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    BackupRecordInputStream.AttachmentDecryptor decryptor = input.startAttachment(length);
+    BackupChunkPipe                             pipe      = new BackupChunkPipe(chunkPool);
+
+    outstanding++;
+    executor.execute(() -> decrypt(decryptor, pipe, out, callback));
+
+    pipe.fill(decryptor.getCiphertext());
+
+    runCompleted();
+  }
+
+  /**
+   * Runs the callbacks of any streams that have finished, without waiting for the rest.
+   */
+  void runCompleted() throws IOException {
+    Completion completion;
+
+    while ((completion = completions.poll()) != null) {
+      complete(completion);
+    }
+  }
+
+  /**
+   * Waits for every stream to finish, and runs their callbacks.
+   */
+  void drain() throws IOException {
+    try {
+      while (outstanding > 0) {
+        complete(completions.take());
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void complete(@NonNull Completion completion) throws IOException {
+    outstanding--;
+
+    if (completion.error != null) {
+      throw new IOException("Failed to restore a stream.", completion.error);
+    }
+
+    completion.callback.onComplete(completion.validMac);
+  }
+
+  private void decrypt(@NonNull BackupRecordInputStream.AttachmentDecryptor decryptor, @NonNull BackupChunkPipe pipe, @NonNull OutputStream out, @NonNull Callback callback) {
+    Completion completion = new Completion(callback, false, new IOException("Decryption did not complete."));
+
+    try {
+      completion = new Completion(callback, decryptor.decrypt(pipe, out), null);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      completion = new Completion(callback, false, e);
+    } finally {
+      skipRemaining(pipe);
+      pipe.close();
+      streamPermits.release();
+      completions.add(completion);
+    }
+  }
+
+  /**
+   * Keeps the importing thread from getting stuck with unread ciphertext if we stopped early.
+   */
+  private static void skipRemaining(@NonNull BackupChunkPipe pipe) {
+    try {
+      byte[] buffer = new byte[BackupFrameOutputStream.BUFFER_SIZE];
+      while (pipe.read(buffer, 0, buffer.length) != -1) {
+        // Skip
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to skip the rest of a stream.", e);
+    }
+  }
+
+  interface Callback {
+    void onComplete(boolean validMac) throws IOException;
+  }
+
+  private static final class Completion {
+    private final Callback    callback;
+    private final boolean     validMac;
+    private final IOException error;
+
+    private Completion(@NonNull Callback callback, boolean validMac, @Nullable IOException error) {
+      this.callback = callback;
+      this.validMac = validMac;
+      this.error    = error;
+    }
+  }
+}
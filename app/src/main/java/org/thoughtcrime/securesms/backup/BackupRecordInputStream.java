@@ -0,0 +1,247 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.protobuf.CodedInputStream;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.StreamUtil;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
+import org.thoughtcrime.securesms.util.LimitedInputStream;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads and decrypts the frames of a backup, the counterpart to {@link BackupFrameOutputStream}.
+ *
+ * Frames are read through a large buffer and decrypted into buffers that are reused from one frame
+ * to the next. Streams that follow a frame are handed out as an {@link AttachmentDecryptor}, which
+ * can do the actual decryption on another thread.
+ *
+ * Not thread-safe.
+ */
+class BackupRecordInputStream extends FullBackupBase.BackupStream {
+
+  private static final int MAC_LENGTH = 10;
+
+  private final InputStream   in;
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final SecretKeySpec cipherKey;
+  private final SecretKeySpec macKey;
+  private final byte[]        lengthBuffer;
+
+  private byte[] iv;
+  private int    counter;
+  private byte[] frameBuffer;
+  private byte[] plaintextBuffer;
+  private long   bytesRead;
+
+  BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
+    this(in, passphrase, null);
+  }
+
+  @VisibleForTesting
+  BackupRecordInputStream(@NonNull InputStream in, @NonNull byte[] backupKey) throws IOException {
+    this(in, null, backupKey);
+  }
+
+  private BackupRecordInputStream(@NonNull InputStream in, @Nullable String passphrase, @Nullable byte[] backupKey) throws IOException {
+    try {
+      this.in           = new BufferedInputStream(in, BackupFrameOutputStream.BUFFER_SIZE);
+      this.lengthBuffer = new byte[4];
+
+      StreamUtil.readFully(this.in, lengthBuffer);
+
+      int    headerLength = Conversions.byteArrayToInt(lengthBuffer);
+      byte[] headerFrame  = new byte[headerLength];
+      StreamUtil.readFully(this.in, headerFrame);
+
+      BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+
+      if (!frame.hasHeader()) {
+        throw new IOException("Backup stream does not start with header!");
+      }
+
+      BackupProtos.Header header = frame.getHeader();
+
+      this.iv = header.getIv().toByteArray();
+
+      if (iv.length != 16) {
+        throw new IOException("Invalid IV length!");
+      }
+
+      byte[]   key     = backupKey != null ? backupKey : getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
+      byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+      this.cipherKey = new SecretKeySpec(split[0], "AES");
+      this.macKey    = new SecretKeySpec(split[1], "HmacSHA256");
+
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac    = Mac.getInstance("HmacSHA256");
+      this.mac.init(macKey);
+
+      this.counter         = Conversions.byteArrayToInt(iv);
+      this.frameBuffer     = new byte[1024];
+      this.plaintextBuffer = new byte[1024];
+      this.bytesRead       = 4 + headerLength;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  BackupFrame readFrame() throws IOException {
+    try {
+      StreamUtil.readFully(in, lengthBuffer);
+
+      int length = Conversions.byteArrayToInt(lengthBuffer);
+
+      if (length < MAC_LENGTH) {
+        throw new IOException("Invalid frame length: " + length);
+      }
+
+      if (frameBuffer.length < length) {
+        frameBuffer     = new byte[Math.max(length, frameBuffer.length * 2)];
+        plaintextBuffer = new byte[frameBuffer.length];
+      }
+
+      StreamUtil.readFully(in, frameBuffer, length);
+      bytesRead += 4 + length;
+
+      mac.update(frameBuffer, 0, length - MAC_LENGTH);
+
+      if (!isMacValid(mac.doFinal(), frameBuffer, length - MAC_LENGTH)) {
+        throw new IOException("Bad MAC");
+      }
+
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+
+      int plaintextLength = cipher.doFinal(frameBuffer, 0, length - MAC_LENGTH, plaintextBuffer, 0);
+
+      return BackupFrame.parseFrom(CodedInputStream.newInstance(plaintextBuffer, 0, plaintextLength));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Starts reading the stream that follows an attachment, sticker or avatar frame. The ciphertext
+   * must be read in full from {@link AttachmentDecryptor#getCiphertext()} before the next frame.
+   */
+  @NonNull AttachmentDecryptor startAttachment(int length) {
+    Conversions.intToByteArray(iv, 0, counter++);
+    bytesRead += length + MAC_LENGTH;
+
+    return new AttachmentDecryptor(new LimitedInputStream(in, length + MAC_LENGTH), cipherKey, macKey, Arrays.copyOf(iv, iv.length), length);
+  }
+
+  /**
+   * @return How many bytes of the backup have been read so far.
+   */
+  long getBytesRead() {
+    return bytesRead;
+  }
+
+  private static boolean isMacValid(@NonNull byte[] ourMac, @NonNull byte[] buffer, int offset) {
+    byte[] theirMac = new byte[MAC_LENGTH];
+    System.arraycopy(buffer, offset, theirMac, 0, MAC_LENGTH);
+
+    return MessageDigest.isEqual(ByteUtil.trim(ourMac, MAC_LENGTH), theirMac);
+  }
+
+  /**
+   * Decrypts and verifies a single stream. Safe to use from a different thread than the one reading
+   * frames, as long as it's fed the ciphertext in order.
+   */
+  static final class AttachmentDecryptor {
+
+    private final InputStream   ciphertext;
+    private final SecretKeySpec cipherKey;
+    private final SecretKeySpec macKey;
+    private final byte[]        iv;
+    private final int           length;
+
+    private AttachmentDecryptor(@NonNull InputStream ciphertext, @NonNull SecretKeySpec cipherKey, @NonNull SecretKeySpec macKey, @NonNull byte[] iv, int length) {
+      this.ciphertext = ciphertext;
+      this.cipherKey  = cipherKey;
+      this.macKey     = macKey;
+      this.iv         = iv;
+      this.length     = length;
+    }
+
+    /**
+     * @return The stream's ciphertext followed by its MAC, read straight from the backup.
+     */
+    @NonNull InputStream getCiphertext() {
+      return ciphertext;
+    }
+
+    /**
+     * Decrypts the ciphertext and MAC provided by the input into the output, and closes the output.
+     *
+     * @return False if the MAC didn't match, in which case the output shouldn't be trusted.
+     */
+    boolean decrypt(@NonNull InputStream input, @NonNull OutputStream out) throws IOException {
+      try {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        Mac    mac    = Mac.getInstance("HmacSHA256");
+
+        cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+        mac.init(macKey);
+        mac.update(iv);
+
+        byte[] buffer    = new byte[BackupFrameOutputStream.BUFFER_SIZE];
+        byte[] plaintext = new byte[buffer.length + 16];
+        int    remaining = length;
+
+        try {
+          while (remaining > 0) {
+            int read = input.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) throw new IOException("File ended early!");
+
+            mac.update(buffer, 0, read);
+            out.write(plaintext, 0, cipher.update(buffer, 0, read, plaintext, 0));
+
+            remaining -= read;
+          }
+
+          out.write(plaintext, 0, cipher.doFinal(plaintext, 0));
+        } finally {
+          out.close();
+        }
+
+        byte[] theirMac = new byte[MAC_LENGTH];
+        StreamUtil.readFully(input, theirMac);
+
+        return MessageDigest.isEqual(ByteUtil.trim(mac.doFinal(), MAC_LENGTH), theirMac);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException |
+               IllegalBlockSizeException | BadPaddingException | ShortBufferException e)
+      {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
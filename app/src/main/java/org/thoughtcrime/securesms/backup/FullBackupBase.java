@@ -47,11 +47,17 @@ public abstract class FullBackupBase {
     }
 
     private final Type type;
-    private final int count;
+    private final int  count;
+    private final long bytesWritten;
 
     BackupEvent(Type type, int count) {
-      this.type  = type;
-      this.count = count;
+      this(type, count, 0);
+    }
+
+    BackupEvent(Type type, int count, long bytesWritten) {
+      this.type         = type;
+      this.count        = count;
+      this.bytesWritten = bytesWritten;
     }
 
     public Type getType() {
@@ -61,6 +67,13 @@ public abstract class FullBackupBase {
     public int getCount() {
       return count;
     }
+
+    /**
+     * @return How many bytes of the backup have been written so far, if known, otherwise 0.
+     */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
   }
 
 }
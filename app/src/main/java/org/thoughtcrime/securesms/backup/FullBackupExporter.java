@@ -41,31 +41,22 @@ import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.libsignal.kdf.HKDFv3;
-import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 public class FullBackupExporter extends FullBackupBase {
 
   private static final String TAG = Log.tag(FullBackupExporter.class);
@@ -75,7 +66,8 @@ public class FullBackupExporter extends FullBackupBase {
     OneTimePreKeyDatabase.TABLE_NAME,
     SessionDatabase.TABLE_NAME,
     SearchDatabase.SMS_FTS_TABLE_NAME,
-    SearchDatabase.MMS_FTS_TABLE_NAME
+    SearchDatabase.MMS_FTS_TABLE_NAME,
+    AttachmentDatabase.FILE_TABLE_NAME
   );
 
   public static void export(@NonNull Context context,
@@ -85,9 +77,27 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull String passphrase,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
+  {
+    export(context, attachmentSecret, input, output, passphrase, null, cancellationSignal);
+  }
+
+  /**
+   * @param incrementalState If present, the backup is written as part of that backup chain: a full
+   *                         backup if it's the base, otherwise a delta containing only what has
+   *                         changed since the previous backup in the chain. The state is updated to
+   *                         reflect what was written, and should be saved if the backup succeeds.
+   */
+  public static void export(@NonNull Context context,
+                            @NonNull AttachmentSecret attachmentSecret,
+                            @NonNull SQLiteDatabase input,
+                            @NonNull File output,
+                            @NonNull String passphrase,
+                            @Nullable IncrementalBackupState incrementalState,
+                            @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, incrementalState, null, cancellationSignal);
     }
   }
 
@@ -99,9 +109,22 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull String passphrase,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
+  {
+    export(context, attachmentSecret, input, output, passphrase, null, cancellationSignal);
+  }
+
+  @RequiresApi(29)
+  public static void export(@NonNull Context context,
+                            @NonNull AttachmentSecret attachmentSecret,
+                            @NonNull SQLiteDatabase input,
+                            @NonNull DocumentFile output,
+                            @NonNull String passphrase,
+                            @Nullable IncrementalBackupState incrementalState,
+                            @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, incrementalState, null, cancellationSignal);
     }
   }
 
@@ -112,7 +135,22 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
       throws IOException
   {
-    internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false);
+    transfer(context, attachmentSecret, input, outputStream, passphrase, null);
+  }
+
+  /**
+   * @param externalAttachments If present, offered each attachment before it's written, and any it
+   *                            takes are written to the stream as a frame without their data.
+   */
+  public static void transfer(@NonNull Context context,
+                              @NonNull AttachmentSecret attachmentSecret,
+                              @NonNull SQLiteDatabase input,
+                              @NonNull OutputStream outputStream,
+                              @NonNull String passphrase,
+                              @Nullable ExternalAttachments externalAttachments)
+      throws IOException
+  {
+    internalExport(context, attachmentSecret, input, outputStream, passphrase, false, null, externalAttachments, () -> false);
   }
 
   private static void internalExport(@NonNull Context context,
@@ -121,17 +159,26 @@ public class FullBackupExporter extends FullBackupBase {
                                      @NonNull OutputStream fileOutputStream,
                                      @NonNull String passphrase,
                                      boolean closeOutputStream,
+                                     @Nullable IncrementalBackupState incrementalState,
+                                     @Nullable ExternalAttachments externalAttachments,
                                      @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(fileOutputStream, passphrase);
-    int                     count        = 0;
+    BackupExportPipeline outputStream = new BackupExportPipeline(new BackupFrameOutputStream(fileOutputStream, passphrase));
+    int                  count        = 0;
+    long                 startTime    = System.currentTimeMillis();
 
     try {
+      if (incrementalState != null) {
+        outputStream.writeChain(incrementalState.getChainId(), incrementalState.getSequence());
+        count++;
+      }
+
       outputStream.writeDatabaseVersion(input.getVersion());
       count++;
 
-      List<String> tables = exportSchema(input, outputStream);
+      boolean      isDelta = incrementalState != null && !incrementalState.isBase();
+      List<String> tables  = isDelta ? getTables(input) : exportSchema(input, outputStream);
       count += tables.size() * 3;
 
       Stopwatch stopwatch = new Stopwatch("Backup");
@@ -139,30 +186,30 @@ public class FullBackupExporter extends FullBackupBase {
       for (String table : tables) {
         throwIfCanceled(cancellationSignal);
         if (table.equals(MmsDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, cancellationSignal);
+          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, incrementalState, cancellationSignal);
         } else if (table.equals(SmsDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringSmsMessage, null, count, cancellationSignal);
+          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringSmsMessage, null, count, incrementalState, cancellationSignal);
         } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, incrementalState, cancellationSignal);
         } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, incrementalState, externalAttachments, innerCount), count, incrementalState, cancellationSignal);
         } else if (table.equals(StickerDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, incrementalState, innerCount), count, incrementalState, cancellationSignal);
         } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
-          count = exportTable(table, input, outputStream, null, null, count, cancellationSignal);
+          count = exportTable(table, input, outputStream, null, null, count, incrementalState, cancellationSignal);
         }
         stopwatch.split("table::" + table);
       }
 
       for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
         outputStream.write(preference);
       }
       
       for (BackupProtos.SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
         outputStream.write(preference);
       }
 
@@ -175,30 +222,38 @@ public class FullBackupExporter extends FullBackupBase {
       for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
           outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
         }
       }
 
       stopwatch.split("avatars");
-      stopwatch.stop(TAG);
 
       outputStream.writeEnd();
+      outputStream.finish();
+
+      stopwatch.split("flush");
+      stopwatch.stop(TAG);
+
+      logThroughput(outputStream.getBytesWritten(), System.currentTimeMillis() - startTime);
     } finally {
-      if (closeOutputStream) {
-        outputStream.close();
-      }
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+      outputStream.shutdown(closeOutputStream);
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count, outputStream.getBytesWritten()));
     }
   }
 
+  private static void logThroughput(long bytes, long elapsedMs) {
+    double megabytes = bytes / (1024d * 1024d);
+    Log.i(TAG, String.format(Locale.US, "Wrote %.1f MB in %d ms (%.2f MB/s)", megabytes, elapsedMs, megabytes / Math.max(elapsedMs / 1000d, 0.001)));
+  }
+
   private static void throwIfCanceled(@NonNull BackupCancellationSignal cancellationSignal) throws BackupCanceledException {
     if (cancellationSignal.isCanceled()) {
       throw new BackupCanceledException();
     }
   }
 
-  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
+  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupExportPipeline outputStream)
       throws IOException
   {
     List<String> tables = new LinkedList<>();
@@ -211,10 +266,7 @@ public class FullBackupExporter extends FullBackupBase {
 
         if (sql != null) {
 
-          boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
-          boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
-
-          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable) {
+          if (!isFtsSecretTable(name)) {
             if ("table".equals(type)) {
               tables.add(name);
             }
@@ -228,53 +280,124 @@ public class FullBackupExporter extends FullBackupBase {
     return tables;
   }
 
+  /**
+   * The same tables {@link #exportSchema(SQLiteDatabase, BackupExportPipeline)} would return, without
+   * writing the schema. Deltas are only ever applied on top of a backup with the same schema.
+   */
+  private static List<String> getTables(@NonNull SQLiteDatabase input) {
+    List<String> tables = new LinkedList<>();
+
+    try (Cursor cursor = input.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND sql NOT NULL", null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        String name = cursor.getString(0);
+
+        if (!isFtsSecretTable(name)) {
+          tables.add(name);
+        }
+      }
+    }
+
+    return tables;
+  }
+
+  private static boolean isFtsSecretTable(@Nullable String name) {
+    boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
+    boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+
+    return isSmsFtsSecretTable || isMmsFtsSecretTable;
+  }
+
   private static int exportTable(@NonNull String table,
                                  @NonNull SQLiteDatabase input,
-                                 @NonNull BackupFrameOutputStream outputStream,
+                                 @NonNull BackupExportPipeline outputStream,
+                                 @Nullable Predicate<Cursor> predicate,
+                                 @Nullable PostProcessor postProcess,
+                                 int count,
+                                 @Nullable IncrementalBackupState incrementalState,
+                                 @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
+  {
+    if (incrementalState == null) {
+      return exportRows(table, input, outputStream, predicate, postProcess, null, null, null, count, cancellationSignal);
+    }
+
+    RangeDigester digester = new RangeDigester(getRowIdColumn(input, table));
+
+    if (incrementalState.isBase()) {
+      count = exportRows(table, input, outputStream, predicate, postProcess, null, null, digester, count, cancellationSignal);
+    } else {
+      digestRows(table, input, predicate, digester, cancellationSignal);
+
+      for (long range : IncrementalBackupState.getChangedRanges(incrementalState.getRangeDigests(table), digester.getDigests())) {
+        count = exportRange(table, input, outputStream, predicate, postProcess, digester.getRowIdColumn(), range, count, cancellationSignal);
+      }
+    }
+
+    incrementalState.setRangeDigests(table, digester.getDigests());
+
+    return count;
+  }
+
+  /**
+   * Replaces a range of rows, or the whole table if it has no row id column we can rely on.
+   */
+  private static int exportRange(@NonNull String table,
+                                 @NonNull SQLiteDatabase input,
+                                 @NonNull BackupExportPipeline outputStream,
                                  @Nullable Predicate<Cursor> predicate,
                                  @Nullable PostProcessor postProcess,
+                                 @Nullable String rowIdColumn,
+                                 long range,
                                  int count,
                                  @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
+  {
+    if (rowIdColumn == null) {
+      outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement("DELETE FROM " + table).build());
+      return exportRows(table, input, outputStream, predicate, postProcess, null, null, null, count, cancellationSignal);
+    }
+
+    long   start = range * IncrementalBackupState.ROWS_PER_RANGE;
+    long   end   = start + IncrementalBackupState.ROWS_PER_RANGE;
+    String where = rowIdColumn + " >= ? AND " + rowIdColumn + " < ?";
+
+    outputStream.write(BackupProtos.SqlStatement.newBuilder()
+                                                .setStatement("DELETE FROM " + table + " WHERE " + where)
+                                                .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(start))
+                                                .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(end))
+                                                .build());
+
+    return exportRows(table, input, outputStream, predicate, postProcess, where, new String[] { String.valueOf(start), String.valueOf(end) }, null, count, cancellationSignal);
+  }
+
+  private static int exportRows(@NonNull String table,
+                                @NonNull SQLiteDatabase input,
+                                @NonNull BackupExportPipeline outputStream,
+                                @Nullable Predicate<Cursor> predicate,
+                                @Nullable PostProcessor postProcess,
+                                @Nullable String where,
+                                @Nullable String[] args,
+                                @Nullable RangeDigester digester,
+                                int count,
+                                @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
   {
     String template = "INSERT INTO " + table + " VALUES ";
+    String query    = "SELECT * FROM " + table + (where != null ? " WHERE " + where : "");
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+    try (Cursor cursor = input.rawQuery(query, args)) {
       while (cursor != null && cursor.moveToNext()) {
         throwIfCanceled(cancellationSignal);
 
         if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
-            } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
-            }
+          BackupProtos.SqlStatement statement = buildStatement(template, cursor);
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
+          if (digester != null) {
+            digester.update(cursor, statement);
           }
 
-          statement.append(')');
-
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
+          outputStream.write(statement);
 
           if (postProcess != null) {
             count = postProcess.postProcess(cursor, count);
@@ -286,12 +409,94 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count) {
+  private static void digestRows(@NonNull String table,
+                                 @NonNull SQLiteDatabase input,
+                                 @Nullable Predicate<Cursor> predicate,
+                                 @NonNull RangeDigester digester,
+                                 @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
+  {
+    String template = "INSERT INTO " + table + " VALUES ";
+
+    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        throwIfCanceled(cancellationSignal);
+
+        if (predicate == null || predicate.test(cursor)) {
+          digester.update(cursor, buildStatement(template, cursor));
+        }
+      }
+    }
+  }
+
+  private static @NonNull BackupProtos.SqlStatement buildStatement(@NonNull String template, @NonNull Cursor cursor) {
+    StringBuilder                     statement        = new StringBuilder(template);
+    BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
+
+    statement.append('(');
+
+    for (int i=0;i<cursor.getColumnCount();i++) {
+      statement.append('?');
+
+      if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
+      } else {
+        throw new AssertionError("unknown type?"  + cursor.getType(i));
+      }
+
+      if (i < cursor.getColumnCount()-1) {
+        statement.append(',');
+      }
+    }
+
+    statement.append(')');
+
+    return statementBuilder.setStatement(statement.toString()).build();
+  }
+
+  /**
+   * @return The column that aliases the table's rowid, if there is one. Only those survive a restore
+   *         unchanged, so they're the only thing we can use to address rows in a delta.
+   */
+  private static @Nullable String getRowIdColumn(@NonNull SQLiteDatabase input, @NonNull String table) {
+    String rowIdColumn = null;
+    int    keyColumns  = 0;
+
+    try (Cursor cursor = input.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (cursor.getInt(cursor.getColumnIndexOrThrow("pk")) > 0) {
+          keyColumns++;
+
+          if ("INTEGER".equalsIgnoreCase(cursor.getString(cursor.getColumnIndexOrThrow("type")))) {
+            rowIdColumn = cursor.getString(cursor.getColumnIndexOrThrow("name"));
+          }
+        }
+      }
+    }
+
+    return keyColumns == 1 ? rowIdColumn : null;
+  }
+
+  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupExportPipeline outputStream, @Nullable IncrementalBackupState incrementalState, @Nullable ExternalAttachments externalAttachments, int count) {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
       long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
 
+      AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
+
+      if (incrementalState != null && incrementalState.hasAttachment(attachmentId)) {
+        return count;
+      }
+
       String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
 
@@ -301,18 +506,22 @@ public class FullBackupExporter extends FullBackupBase {
 
         if (size <= 0 || fileLength != dbLength) {
           size = calculateVeryOldStreamLength(attachmentSecret, random, data);
-          Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + new AttachmentId(rowId, uniqueId));
+          Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + attachmentId);
         }
       }
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream;
+        AttachmentOpener opener = () -> openAttachment(attachmentSecret, random, data);
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
 
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+        Runnable onWritten = incrementalState != null ? () -> incrementalState.addAttachment(attachmentId) : null;
+
+        if (externalAttachments != null && externalAttachments.offer(attachmentId, size, opener)) {
+          outputStream.writeExternalAttachment(attachmentId, size, onWritten);
+        } else {
+          outputStream.write(attachmentId, opener.open(), size, onWritten);
+        }
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -321,18 +530,22 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportSticker(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count) {
+  private static int exportSticker(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupExportPipeline outputStream, @Nullable IncrementalBackupState incrementalState, int count) {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase._ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_LENGTH));
 
+      if (incrementalState != null && incrementalState.hasSticker(rowId)) {
+        return count;
+      }
+
       String data   = cursor.getString(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_PATH));
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_RANDOM));
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
         InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        outputStream.writeSticker(rowId, inputStream, size);
+        outputStream.writeSticker(rowId, inputStream, size, incrementalState != null ? () -> incrementalState.addSticker(rowId) : null);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -341,12 +554,14 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
-    long result = 0;
-    InputStream inputStream;
+  private static @NonNull InputStream openAttachment(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
+    if (random != null && random.length == 32) return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else                                       return ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+  }
 
-    if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-    else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+  private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
+    long        result      = 0;
+    InputStream inputStream = openAttachment(attachmentSecret, random, data);
 
     int read;
     byte[] buffer = new byte[8192];
@@ -358,7 +573,7 @@ public class FullBackupExporter extends FullBackupBase {
     return result;
   }
 
-  private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
+  private static int exportKeyValues(@NonNull BackupExportPipeline outputStream,
                                      @NonNull List<String> keysToIncludeInBackup,
                                      int count,
                                      BackupCancellationSignal cancellationSignal) throws IOException
@@ -391,7 +606,7 @@ public class FullBackupExporter extends FullBackupBase {
         throw new AssertionError("Unknown type: " + type);
       }
 
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, outputStream.getBytesWritten()));
       outputStream.write(builder.build());
     }
 
@@ -423,168 +638,49 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
 
-  private static class BackupFrameOutputStream extends BackupStream {
-
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
-
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+  /**
+   * Keeps an order-independent digest of the rows in each range of a table.
+   */
+  private static final class RangeDigester {
+    private final String          rowIdColumn;
+    private final Map<Long, Long> digests;
+    private final MessageDigest   messageDigest;
 
-    private byte[] iv;
-    private int    counter;
+    private int rowIdIndex = -1;
 
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    private RangeDigester(@Nullable String rowIdColumn) {
       try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
-
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+        this.rowIdColumn   = rowIdColumn;
+        this.digests       = new HashMap<>();
+        this.messageDigest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
         throw new AssertionError(e);
       }
     }
 
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
-    }
+    void update(@NonNull Cursor cursor, @NonNull BackupProtos.SqlStatement statement) {
+      long range = 0;
 
-    public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
-    }
-
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
-    }
-
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setRecipientId(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                  .setRowId(rowId)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
-    }
-
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
-    }
-
-    /**
-     * @return The amount of data written from the provided InputStream.
-     */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-
-          total += read;
+      if (rowIdColumn != null) {
+        if (rowIdIndex == -1) {
+          rowIdIndex = cursor.getColumnIndexOrThrow(rowIdColumn);
         }
 
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
-
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+        range = cursor.getLong(rowIdIndex) / IncrementalBackupState.ROWS_PER_RANGE;
       }
-    }
-
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
+      long rowDigest = Conversions.byteArrayToLong(messageDigest.digest(statement.toByteArray()));
+      Long current   = digests.get(range);
 
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+      digests.put(range, current != null ? current + rowDigest : rowDigest);
     }
 
+    @Nullable String getRowIdColumn() {
+      return rowIdColumn;
+    }
 
-    public void close() throws IOException {
-      outputStream.close();
+    @NonNull Map<Long, Long> getDigests() {
+      return digests;
     }
   }
 
@@ -597,4 +693,22 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
   public static final class BackupCanceledException extends IOException { }
+
+  /**
+   * Takes attachments out of the backup stream so their data can be sent some other way.
+   */
+  public interface ExternalAttachments {
+    /**
+     * @return True if the attachment's data will be sent separately, and only its frame should be
+     *         written to the backup.
+     */
+    boolean offer(@NonNull AttachmentId attachmentId, long size, @NonNull AttachmentOpener opener) throws IOException;
+  }
+
+  public interface AttachmentOpener {
+    /**
+     * @return The attachment's decrypted data. May be called on any thread.
+     */
+    @NonNull InputStream open() throws IOException;
+  }
 }
@@ -10,14 +10,16 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
-import org.signal.core.util.Conversions;
-import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupChain;
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
 import org.thoughtcrime.securesms.backup.BackupProtos.DatabaseVersion;
 import org.thoughtcrime.securesms.backup.BackupProtos.SharedPreference;
@@ -35,8 +37,6 @@ import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.SqlUtil;
-import org.whispersystems.libsignal.kdf.HKDFv3;
-import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -44,41 +44,73 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 public class FullBackupImporter extends FullBackupBase {
 
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(FullBackupImporter.class);
 
+  /**
+   * Restores the backup at the given uri, followed by any deltas that were written on top of it.
+   *
+   * @throws MissingDeltasException If the backup is the start of a chain, but there's nowhere we
+   *                                can look for the deltas that might follow it.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
       throws IOException
   {
+    List<Uri> deltas = BackupUtil.getDeltasFor(context, uri);
+
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importChain(context, attachmentSecret, db, is, deltas, passphrase, null);
+    }
+  }
+
+  /**
+   * Restores only the backup at the given uri, leaving out any deltas that were written on top of
+   * it. For when the user has chosen to go ahead without them.
+   */
+  public static void importFileWithoutDeltas(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                             @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
+      throws IOException
+  {
+    try (InputStream is = getInputStream(context, uri)) {
+      importChain(context, attachmentSecret, db, is, Collections.emptyList(), passphrase, null);
     }
   }
 
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, passphrase, null);
+  }
+
+  /**
+   * @param externalAttachments Told about each attachment whose data isn't in the stream, which is
+   *                            restored without its data.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                @Nullable ExternalAttachmentListener externalAttachments)
+      throws IOException
+  {
+    importChain(context, attachmentSecret, db, is, Collections.emptyList(), passphrase, externalAttachments);
+  }
+
+  private static void importChain(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                  @NonNull SQLiteDatabase db, @NonNull InputStream is, @Nullable List<Uri> deltas, @NonNull String passphrase,
+                                  @Nullable ExternalAttachmentListener externalAttachments)
+      throws IOException
   {
     int count = 0;
 
@@ -91,20 +123,19 @@ public class FullBackupImporter extends FullBackupBase {
 
       dropAllTables(db);
 
-      BackupFrame frame;
+      BackupFrame first = inputStream.readFrame();
+      BackupChain chain = first.hasChain() ? first.getChain() : null;
 
-      while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
-        count++;
+      if (chain != null && deltas == null) {
+        throw new MissingDeltasException();
+      }
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
-        else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
-        else                            count--;
+      count = importFrames(context, attachmentSecret, db, inputStream, chain == null ? first : null, null, externalAttachments, count);
+
+      if (chain != null) {
+        count = importDeltas(context, attachmentSecret, db, chain, deltas, passphrase, count);
+      } else if (deltas != null && !deltas.isEmpty()) {
+        Log.w(TAG, "Backup isn't part of a chain. Ignoring " + deltas.size() + " deltas.");
       }
 
       db.setTransactionSuccessful();
@@ -114,9 +145,104 @@ public class FullBackupImporter extends FullBackupBase {
       keyValueDatabase.endTransaction();
     }
 
+    IncrementalBackupState.clear(context);
+
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
   }
 
+  /**
+   * Applies deltas in order. Every delta found next to the base has to continue the chain, since a
+   * delta that doesn't means one of the files in between has gone missing, and restoring only part
+   * of the chain would quietly lose whatever was in the rest of it.
+   *
+   * @throws BrokenChainException If a delta doesn't continue the chain.
+   */
+  private static int importDeltas(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db,
+                                  @NonNull BackupChain base, @NonNull List<Uri> deltas, @NonNull String passphrase, int count)
+      throws IOException
+  {
+    int sequence = base.getSequence();
+
+    for (Uri delta : deltas) {
+      try (InputStream is = getInputStream(context, delta)) {
+        BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+        BackupFrame             first       = inputStream.readFrame();
+
+        if (!first.hasChain() || !first.getChain().getId().equals(base.getId())) {
+          throw new BrokenChainException("Delta " + delta + " isn't part of this chain.");
+        }
+
+        if (first.getChain().getSequence() != sequence + 1) {
+          throw new BrokenChainException("Delta " + delta + " has sequence " + first.getChain().getSequence() + ", but the chain is at " + sequence + ".");
+        }
+
+        sequence++;
+
+        RestoredFiles restoredFiles = RestoredFiles.snapshot(db);
+
+        count = importFrames(context, attachmentSecret, db, inputStream, null, restoredFiles, null, count);
+
+        restoredFiles.reapply(context, db);
+      }
+    }
+
+    Log.i(TAG, "Restored " + sequence + " deltas on top of the base backup.");
+
+    return count;
+  }
+
+  /**
+   * SQL is applied on this thread while attachment streams are decrypted on others. Statements are
+   * compiled once and reused, since a backup is mostly the same few INSERTs over and over.
+   *
+   * @param first         A frame that has already been read from the stream and still needs processing.
+   * @param restoredFiles Present when importing a delta, which must be on top of an existing database.
+   */
+  private static int importFrames(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db,
+                                  @NonNull BackupRecordInputStream inputStream, @Nullable BackupFrame first, @Nullable RestoredFiles restoredFiles,
+                                  @Nullable ExternalAttachmentListener externalAttachments, int count)
+      throws IOException
+  {
+    BackupImportPipeline pipeline   = new BackupImportPipeline();
+    StatementCache       statements = new StatementCache(db);
+    long                 startTime  = System.currentTimeMillis();
+    int                  rows       = 0;
+
+    try {
+      BackupFrame frame = first != null ? first : inputStream.readFrame();
+
+      while (!frame.getEnd()) {
+        if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+        count++;
+
+        if      (frame.hasVersion())    processVersion(db, frame.getVersion(), restoredFiles != null);
+        else if (frame.hasStatement())  rows += processStatement(statements, frame.getStatement());
+        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
+        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, pipeline, restoredFiles, externalAttachments);
+        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream, pipeline, restoredFiles);
+        else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream, pipeline);
+        else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
+        else                            count--;
+
+        pipeline.runCompleted();
+        frame = inputStream.readFrame();
+      }
+
+      pipeline.drain();
+    } finally {
+      statements.close();
+      pipeline.shutdown();
+    }
+
+    long   elapsed   = Math.max(System.currentTimeMillis() - startTime, 1);
+    double megabytes = inputStream.getBytesRead() / (1024.0 * 1024.0);
+
+    Log.i(TAG, String.format(Locale.US, "Restored %d statements and %d frames (%.1f MB) in %d ms. %.0f rows/s, %.1f MB/s",
+                             rows, count, megabytes, elapsed, rows * 1000.0 / elapsed, megabytes * 1000.0 / elapsed));
+
+    return count;
+  }
+
   private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
@@ -125,7 +251,11 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
-  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
+  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version, boolean isDelta) throws IOException {
+    if (isDelta && version.getVersion() != db.getVersion()) {
+      throw new IOException("Delta has version " + version.getVersion() + ", but the restored database has version " + db.getVersion());
+    }
+
     if (version.getVersion() > db.getVersion()) {
       throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
     }
@@ -133,57 +263,82 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  /**
+   * @return The number of statements executed, either 0 or 1.
+   */
+  private static int processStatement(@NonNull StatementCache statements, SqlStatement statement) {
     boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
     boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
     boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
 
     if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
-      return;
+      return 0;
     }
 
-    List<Object> parameters = new LinkedList<>();
-
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
-    }
-
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+    statements.execute(statement);
+    return 1;
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment,
+                                        @NonNull BackupRecordInputStream inputStream, @NonNull BackupImportPipeline pipeline, @Nullable RestoredFiles restoredFiles,
+                                        @Nullable ExternalAttachmentListener externalAttachments)
       throws IOException
   {
+    if (attachment.getExternal()) {
+      processExternalAttachment(db, attachment, externalAttachments);
+      return;
+    }
+
     File                       partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File                       dataFile       = File.createTempFile("part", ".mms", partsDirectory);
     Pair<byte[], OutputStream> output         = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    ContentValues contentValues = new ContentValues();
+    pipeline.read(inputStream, attachment.getLength(), output.second, validMac -> {
+      ContentValues contentValues = new ContentValues();
 
-    try {
-      inputStream.readAttachmentTo(output.second, attachment.getLength());
-
-      contentValues.put(AttachmentDatabase.DATA, dataFile.getAbsolutePath());
-      contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first);
-    } catch (BadMacException e) {
-      Log.w(TAG, "Bad MAC for attachment " + attachment.getAttachmentId() + "! Can't restore it.", e);
-      dataFile.delete();
-      contentValues.put(AttachmentDatabase.DATA, (String) null);
-      contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+      if (validMac) {
+        contentValues.put(AttachmentDatabase.DATA, dataFile.getAbsolutePath());
+        contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first);
+      } else {
+        Log.w(TAG, "Bad MAC for attachment " + attachment.getAttachmentId() + "! Can't restore it.");
+        dataFile.delete();
+        contentValues.put(AttachmentDatabase.DATA, (String) null);
+        contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+      }
+
+      db.update(AttachmentDatabase.TABLE_NAME, contentValues,
+                AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
+                new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+
+      if (restoredFiles != null) {
+        restoredFiles.onAttachmentRestored(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId()));
+      }
+    });
+  }
+
+  private static void processExternalAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @Nullable ExternalAttachmentListener externalAttachments)
+      throws IOException
+  {
+    AttachmentId attachmentId = new AttachmentId(attachment.getRowId(), attachment.getAttachmentId());
+
+    if (externalAttachments == null) {
+      throw new IOException("Attachment " + attachmentId + " was sent separately, but nothing is receiving it");
     }
 
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(AttachmentDatabase.DATA, (String) null);
+    contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+
+    externalAttachments.onExternalAttachment(attachmentId, attachment.getLength());
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker,
+                                     @NonNull BackupRecordInputStream inputStream, @NonNull BackupImportPipeline pipeline, @Nullable RestoredFiles restoredFiles)
       throws IOException
   {
     File stickerDirectory = context.getDir(StickerDatabase.DIRECTORY, Context.MODE_PRIVATE);
@@ -191,22 +346,39 @@ public class FullBackupImporter extends FullBackupBase {
 
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    inputStream.readAttachmentTo(output.second, sticker.getLength());
+    pipeline.read(inputStream, sticker.getLength(), output.second, validMac -> {
+      if (!validMac) {
+        throw new BadMacException();
+      }
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(StickerDatabase.FILE_PATH, dataFile.getAbsolutePath());
-    contentValues.put(StickerDatabase.FILE_LENGTH, sticker.getLength());
-    contentValues.put(StickerDatabase.FILE_RANDOM, output.first);
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(StickerDatabase.FILE_PATH, dataFile.getAbsolutePath());
+      contentValues.put(StickerDatabase.FILE_LENGTH, sticker.getLength());
+      contentValues.put(StickerDatabase.FILE_RANDOM, output.first);
+
+      db.update(StickerDatabase.TABLE_NAME, contentValues,
+                StickerDatabase._ID + " = ?",
+                new String[] {String.valueOf(sticker.getRowId())});
 
-    db.update(StickerDatabase.TABLE_NAME, contentValues,
-              StickerDatabase._ID + " = ?",
-              new String[] {String.valueOf(sticker.getRowId())});
+      if (restoredFiles != null) {
+        restoredFiles.onStickerRestored(sticker.getRowId());
+      }
+    });
   }
 
-  private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull BackupProtos.Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
+  private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull BackupProtos.Avatar avatar,
+                                    @NonNull BackupRecordInputStream inputStream, @NonNull BackupImportPipeline pipeline)
+      throws IOException
+  {
+    BackupImportPipeline.Callback requireValidMac = validMac -> {
+      if (!validMac) {
+        throw new BadMacException();
+      }
+    };
+
     if (avatar.hasRecipientId()) {
       RecipientId recipientId = RecipientId.from(avatar.getRecipientId());
-      inputStream.readAttachmentTo(AvatarHelper.getOutputStream(context, recipientId), avatar.getLength());
+      pipeline.read(inputStream, avatar.getLength(), AvatarHelper.getOutputStream(context, recipientId), requireValidMac);
     } else {
       if (avatar.hasName() && SqlUtil.tableExists(db, "recipient_preferences")) {
         Log.w(TAG, "Avatar is missing a recipientId. Clearing signal_profile_avatar (legacy) so it can be fetched later.");
@@ -218,7 +390,7 @@ public class FullBackupImporter extends FullBackupBase {
         Log.w(TAG, "Avatar is missing a recipientId. Skipping avatar restore.");
       }
 
-      inputStream.readAttachmentTo(new ByteArrayOutputStream(), avatar.getLength());
+      pipeline.read(inputStream, avatar.getLength(), new ByteArrayOutputStream(), requireValidMac);
     }
   }
 
@@ -271,144 +443,186 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
-  private static class BackupRecordInputStream extends BackupStream {
-
-    private final InputStream in;
-    private final Cipher      cipher;
-    private final Mac         mac;
-
-    private final byte[] cipherKey;
-    private final byte[] macKey;
-
-    private byte[] iv;
-    private int    counter;
-
-    private BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
-      try {
-        this.in = in;
+  /**
+   * A delta rewrites attachment and sticker rows with the values they had on the device that made
+   * the backup, but only includes the files themselves if they weren't already in the chain. This
+   * remembers where the files we've already restored went, so we can point the rows back at them.
+   */
+  private static final class RestoredFiles {
+    private final Map<AttachmentId, ContentValues> attachments;
+    private final Map<Long, ContentValues>         stickers;
+
+    private RestoredFiles(@NonNull Map<AttachmentId, ContentValues> attachments, @NonNull Map<Long, ContentValues> stickers) {
+      this.attachments = attachments;
+      this.stickers    = stickers;
+    }
 
-        byte[] headerLengthBytes = new byte[4];
-        StreamUtil.readFully(in, headerLengthBytes);
+    static @NonNull RestoredFiles snapshot(@NonNull SQLiteDatabase db) {
+      Map<AttachmentId, ContentValues> attachments = new HashMap<>();
+      Map<Long, ContentValues>         stickers    = new HashMap<>();
 
-        int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-        byte[] headerFrame = new byte[headerLength];
-        StreamUtil.readFully(in, headerFrame);
+      String[] attachmentColumns = new String[] { AttachmentDatabase.ROW_ID, AttachmentDatabase.UNIQUE_ID, AttachmentDatabase.DATA, AttachmentDatabase.DATA_RANDOM };
 
-        BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+      try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, attachmentColumns, AttachmentDatabase.DATA + " NOT NULL", null, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          ContentValues values = new ContentValues(2);
+          values.put(AttachmentDatabase.DATA, cursor.getString(2));
+          values.put(AttachmentDatabase.DATA_RANDOM, cursor.getBlob(3));
 
-        if (!frame.hasHeader()) {
-          throw new IOException("Backup stream does not start with header!");
+          attachments.put(new AttachmentId(cursor.getLong(0), cursor.getLong(1)), values);
         }
+      }
 
-        BackupProtos.Header header = frame.getHeader();
+      String[] stickerColumns = new String[] { StickerDatabase._ID, StickerDatabase.FILE_PATH, StickerDatabase.FILE_LENGTH, StickerDatabase.FILE_RANDOM };
 
-        this.iv = header.getIv().toByteArray();
+      try (Cursor cursor = db.query(StickerDatabase.TABLE_NAME, stickerColumns, StickerDatabase.FILE_PATH + " NOT NULL", null, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          ContentValues values = new ContentValues(3);
+          values.put(StickerDatabase.FILE_PATH, cursor.getString(1));
+          values.put(StickerDatabase.FILE_LENGTH, cursor.getLong(2));
+          values.put(StickerDatabase.FILE_RANDOM, cursor.getBlob(3));
 
-        if (iv.length != 16) {
-          throw new IOException("Invalid IV length!");
+          stickers.put(cursor.getLong(0), values);
         }
-
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
-
-        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac    = Mac.getInstance("HmacSHA256");
-        this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        this.counter = Conversions.byteArrayToInt(iv);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
       }
-    }
 
-    BackupFrame readFrame() throws IOException {
-      return readFrame(in);
+      return new RestoredFiles(attachments, stickers);
     }
 
-    void readAttachmentTo(OutputStream out, int length) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-
-        while (length > 0) {
-          int read = in.read(buffer, 0, Math.min(buffer.length, length));
-          if (read == -1) throw new IOException("File ended early!");
+    void onAttachmentRestored(@NonNull AttachmentId attachmentId) {
+      attachments.remove(attachmentId);
+    }
 
-          mac.update(buffer, 0, read);
+    void onStickerRestored(long rowId) {
+      stickers.remove(rowId);
+    }
 
-          byte[] plaintext = cipher.update(buffer, 0, read);
+    /**
+     * Points rows back at the files they had before the delta, and deletes restored files whose
+     * rows the delta removed.
+     */
+    void reapply(@NonNull Context context, @NonNull SQLiteDatabase db) {
+      File partsDirectory   = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
+      File stickerDirectory = context.getDir(StickerDatabase.DIRECTORY, Context.MODE_PRIVATE);
 
-          if (plaintext != null) {
-            out.write(plaintext, 0, plaintext.length);
-          }
+      for (Map.Entry<AttachmentId, ContentValues> entry : attachments.entrySet()) {
+        String[] args    = new String[] { String.valueOf(entry.getKey().getRowId()), String.valueOf(entry.getKey().getUniqueId()) };
+        int      updated = db.update(AttachmentDatabase.TABLE_NAME, entry.getValue(), AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?", args);
 
-          length -= read;
+        if (updated == 0) {
+          deleteIfIn(partsDirectory, entry.getValue().getAsString(AttachmentDatabase.DATA));
         }
+      }
 
-        byte[] plaintext = cipher.doFinal();
+      for (Map.Entry<Long, ContentValues> entry : stickers.entrySet()) {
+        int updated = db.update(StickerDatabase.TABLE_NAME, entry.getValue(), StickerDatabase._ID + " = ?", new String[] { String.valueOf(entry.getKey()) });
 
-        if (plaintext != null) {
-          out.write(plaintext, 0, plaintext.length);
+        if (updated == 0) {
+          deleteIfIn(stickerDirectory, entry.getValue().getAsString(StickerDatabase.FILE_PATH));
         }
+      }
+    }
 
-        out.close();
+    private static void deleteIfIn(@NonNull File directory, @Nullable String path) {
+      if (path == null) {
+        return;
+      }
 
-        byte[] ourMac   = ByteUtil.trim(mac.doFinal(), 10);
-        byte[] theirMac = new byte[10];
+      File file = new File(path);
 
-        try {
-          StreamUtil.readFully(in, theirMac);
-        } catch (IOException e) {
-          throw new IOException(e);
-        }
+      if (directory.equals(file.getParentFile()) && file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete a file that is no longer referenced.");
+      }
+    }
+  }
 
-        if (!MessageDigest.isEqual(ourMac, theirMac)) {
-          throw new BadMacException();
+  /**
+   * Compiles each distinct statement once and reuses it, closing the least recently used ones when
+   * there are too many. Statements without parameters (like the schema) aren't worth caching.
+   */
+  private static final class StatementCache {
+
+    private static final int MAX_SIZE = 32;
+
+    private final SQLiteDatabase                         db;
+    private final LinkedHashMap<String, SQLiteStatement> statements;
+
+    private StatementCache(@NonNull SQLiteDatabase db) {
+      this.db         = db;
+      this.statements = new LinkedHashMap<String, SQLiteStatement>(MAX_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+          if (size() > MAX_SIZE) {
+            eldest.getValue().close();
+            return true;
+          }
+          return false;
         }
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+      };
     }
 
-    private BackupFrame readFrame(InputStream in) throws IOException {
-      try {
-        byte[] length = new byte[4];
-        StreamUtil.readFully(in, length);
+    void execute(@NonNull SqlStatement statement) {
+      if (statement.getParametersCount() == 0) {
+        db.execSQL(statement.getStatement());
+        return;
+      }
 
-        byte[] frame = new byte[Conversions.byteArrayToInt(length)];
-        StreamUtil.readFully(in, frame);
+      SQLiteStatement compiled = statements.get(statement.getStatement());
 
-        byte[] theirMac = new byte[10];
-        System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
+      if (compiled == null) {
+        compiled = db.compileStatement(statement.getStatement());
+        statements.put(statement.getStatement(), compiled);
+      }
 
-        mac.update(frame, 0, frame.length - 10);
-        byte[] ourMac = ByteUtil.trim(mac.doFinal(), 10);
+      compiled.clearBindings();
 
-        if (!MessageDigest.isEqual(ourMac, theirMac)) {
-          throw new IOException("Bad MAC");
-        }
+      int index = 1;
 
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+      for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
+        if      (parameter.hasStringParamter())   compiled.bindString(index++, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  compiled.bindDouble(index++, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) compiled.bindLong(index++, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    compiled.bindBlob(index++, parameter.getBlobParameter().toByteArray());
+        else if (parameter.hasNullparameter())    compiled.bindNull(index++);
+      }
 
-        byte[] plaintext = cipher.doFinal(frame, 0, frame.length - 10);
+      compiled.execute();
+    }
 
-        return BackupFrame.parseFrom(plaintext);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+    void close() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
       }
+
+      statements.clear();
     }
   }
 
   private static class BadMacException extends IOException {}
 
+  /**
+   * Told about each attachment whose data was sent outside of the backup stream. Its row is restored
+   * without any data, for the data to be attached once it arrives.
+   */
+  public interface ExternalAttachmentListener {
+    void onExternalAttachment(@NonNull AttachmentId attachmentId, long length);
+  }
+
+  public static class MissingDeltasException extends IOException {
+    MissingDeltasException() {
+      super("The backup is the start of a chain, but we can't look for the deltas that follow it.");
+    }
+  }
+
+  /**
+   * One of the deltas that follow the backup is missing, so it can only be restored without them.
+   */
+  public static class BrokenChainException extends IOException {
+    BrokenChainException(@NonNull String message) {
+      super(message);
+    }
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
@@ -0,0 +1,373 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tracks what has already been written to the current chain of local backups, so that the next
+ * backup can be a delta on top of it rather than a whole new backup.
+ *
+ * A chain starts with a full backup (the base) and is followed by up to {@link #MAX_DELTAS} delta
+ * files. Every table is split into ranges of {@link #ROWS_PER_RANGE} row ids, and we remember a
+ * digest of each range; a delta rewrites only the ranges whose digest has changed. Attachment and
+ * sticker files are immutable, so we just remember which ones have been written.
+ *
+ * The state is only saved once a backup has been successfully written, and lives on this device
+ * only. If it's lost, or any file in the chain has gone missing, the next backup simply starts a new
+ * chain.
+ */
+public final class IncrementalBackupState {
+
+  private static final String TAG = Log.tag(IncrementalBackupState.class);
+
+  static final long ROWS_PER_RANGE = 500;
+
+  private static final int    MAX_DELTAS     = 6;
+  private static final int    CHAIN_ID_SIZE  = 16;
+  private static final int    FORMAT_VERSION = 2;
+  private static final String FILE_NAME      = "backup_chain_state";
+
+  private final byte[]                       chainId;
+  private final String                       baseFileName;
+  private final int                          databaseVersion;
+  private final List<String>                 deltaFileNames;
+  private final Map<String, Map<Long, Long>> rangeDigests;
+  private final Set<AttachmentId>            attachments;
+  private final Set<Long>                    stickers;
+
+  private int    sequence;
+  private String fileName;
+
+  private IncrementalBackupState(@NonNull byte[] chainId,
+                                 @NonNull String baseFileName,
+                                 int databaseVersion,
+                                 int sequence,
+                                 @NonNull String fileName,
+                                 @NonNull List<String> deltaFileNames,
+                                 @NonNull Map<String, Map<Long, Long>> rangeDigests,
+                                 @NonNull Set<AttachmentId> attachments,
+                                 @NonNull Set<Long> stickers)
+  {
+    this.chainId         = chainId;
+    this.baseFileName    = baseFileName;
+    this.databaseVersion = databaseVersion;
+    this.sequence        = sequence;
+    this.fileName        = fileName;
+    this.deltaFileNames  = deltaFileNames;
+    this.rangeDigests    = rangeDigests;
+    this.attachments     = attachments;
+    this.stickers        = stickers;
+  }
+
+  /**
+   * Decides whether the next backup should be a delta on the existing chain or the base of a new one.
+   *
+   * @param timestamp       The formatted timestamp used to name the new backup file.
+   * @param databaseVersion The current database version. Deltas can't span a schema change.
+   * @param fileChecker     Tells us whether a previously written backup file still exists.
+   */
+  public static @NonNull IncrementalBackupState getNext(@NonNull Context context,
+                                                        @NonNull String timestamp,
+                                                        int databaseVersion,
+                                                        @NonNull BackupFileChecker fileChecker)
+  {
+    IncrementalBackupState previous = load(context);
+    String                 reason   = getReasonForNewChain(previous, databaseVersion, fileChecker);
+
+    if (reason == null) {
+      previous.addDelta(String.format("signal-%s.delta", timestamp));
+
+      Log.i(TAG, "Writing delta " + previous.sequence + " on top of " + previous.baseFileName);
+      return previous;
+    } else {
+      Log.i(TAG, "Starting a new backup chain: " + reason);
+      return newBase(String.format("signal-%s.backup", timestamp), databaseVersion);
+    }
+  }
+
+  @VisibleForTesting
+  static @NonNull IncrementalBackupState newBase(@NonNull String baseFileName, int databaseVersion) {
+    return new IncrementalBackupState(Util.getSecretBytes(CHAIN_ID_SIZE),
+                                      baseFileName,
+                                      databaseVersion,
+                                      0,
+                                      baseFileName,
+                                      new ArrayList<>(),
+                                      new HashMap<>(),
+                                      new HashSet<>(),
+                                      new HashSet<>());
+  }
+
+  @VisibleForTesting
+  void addDelta(@NonNull String deltaFileName) {
+    sequence++;
+    fileName = deltaFileName;
+    deltaFileNames.add(deltaFileName);
+  }
+
+  /**
+   * A restore needs every file in the chain, so if any one of them has gone missing there's no point
+   * in adding to it.
+   *
+   * @return Why the next backup can't be a delta on top of the previous chain, or null if it can.
+   */
+  @VisibleForTesting
+  static @Nullable String getReasonForNewChain(@Nullable IncrementalBackupState previous, int databaseVersion, @NonNull BackupFileChecker fileChecker) {
+    if (previous == null) {
+      return "No previous chain.";
+    } else if (previous.databaseVersion != databaseVersion) {
+      return "Database version changed from " + previous.databaseVersion + " to " + databaseVersion + ".";
+    } else if (previous.sequence >= MAX_DELTAS) {
+      return "Chain is full.";
+    } else if (previous.deltaFileNames.size() != previous.sequence) {
+      return "Expected " + previous.sequence + " deltas, but only know of " + previous.deltaFileNames.size() + ".";
+    } else if (!fileChecker.exists(previous.baseFileName)) {
+      return "Base backup is missing.";
+    }
+
+    for (int i = 0; i < previous.deltaFileNames.size(); i++) {
+      if (!fileChecker.exists(previous.deltaFileNames.get(i))) {
+        return "Delta " + (i + 1) + " is missing.";
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return The ranges present in current whose digest differs from the previous one, plus any
+   *         ranges that have gone away entirely. If there's nothing to compare to, every range.
+   */
+  static @NonNull Set<Long> getChangedRanges(@Nullable Map<Long, Long> previous, @NonNull Map<Long, Long> current) {
+    Set<Long> changed = new TreeSet<>();
+
+    for (Map.Entry<Long, Long> entry : current.entrySet()) {
+      if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+      }
+    }
+
+    if (previous != null) {
+      for (Long range : previous.keySet()) {
+        if (!current.containsKey(range)) {
+          changed.add(range);
+        }
+      }
+    }
+
+    return changed;
+  }
+
+  public boolean isBase() {
+    return sequence == 0;
+  }
+
+  public @NonNull String getFileName() {
+    return fileName;
+  }
+
+  @NonNull byte[] getChainId() {
+    return chainId;
+  }
+
+  int getSequence() {
+    return sequence;
+  }
+
+  @Nullable Map<Long, Long> getRangeDigests(@NonNull String table) {
+    return rangeDigests.get(table);
+  }
+
+  void setRangeDigests(@NonNull String table, @NonNull Map<Long, Long> digests) {
+    rangeDigests.put(table, digests);
+  }
+
+  synchronized boolean hasAttachment(@NonNull AttachmentId attachmentId) {
+    return attachments.contains(attachmentId);
+  }
+
+  synchronized void addAttachment(@NonNull AttachmentId attachmentId) {
+    attachments.add(attachmentId);
+  }
+
+  synchronized boolean hasSticker(long rowId) {
+    return stickers.contains(rowId);
+  }
+
+  synchronized void addSticker(long rowId) {
+    stickers.add(rowId);
+  }
+
+  /**
+   * Should be called once the backup described by this state has been successfully written.
+   */
+  public void save(@NonNull Context context) throws IOException {
+    File file = getFile(context);
+    File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+    try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temp))) {
+      serialize(outputStream);
+    }
+
+    if (!temp.renameTo(file)) {
+      throw new IOException("Failed to save backup chain state!");
+    }
+  }
+
+  /**
+   * Forgets the current chain, so the next backup will be a full one. Needed whenever existing
+   * backups can no longer be built upon, like when the passphrase changes.
+   */
+  public static void clear(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete backup chain state.");
+    }
+  }
+
+  private static @Nullable IncrementalBackupState load(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+      return deserialize(inputStream);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read backup chain state.", e);
+      return null;
+    }
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  @VisibleForTesting
+  synchronized void serialize(@NonNull OutputStream outputStream) throws IOException {
+    DataOutputStream out = new DataOutputStream(outputStream);
+
+    out.writeInt(FORMAT_VERSION);
+    out.write(chainId);
+    out.writeUTF(baseFileName);
+    out.writeUTF(fileName);
+    out.writeInt(databaseVersion);
+    out.writeInt(sequence);
+
+    out.writeInt(deltaFileNames.size());
+    for (String deltaFileName : deltaFileNames) {
+      out.writeUTF(deltaFileName);
+    }
+
+    out.writeInt(rangeDigests.size());
+    for (Map.Entry<String, Map<Long, Long>> table : rangeDigests.entrySet()) {
+      out.writeUTF(table.getKey());
+      out.writeInt(table.getValue().size());
+
+      for (Map.Entry<Long, Long> range : table.getValue().entrySet()) {
+        out.writeLong(range.getKey());
+        out.writeLong(range.getValue());
+      }
+    }
+
+    out.writeInt(attachments.size());
+    for (AttachmentId attachmentId : attachments) {
+      out.writeLong(attachmentId.getRowId());
+      out.writeLong(attachmentId.getUniqueId());
+    }
+
+    out.writeInt(stickers.size());
+    for (long sticker : stickers) {
+      out.writeLong(sticker);
+    }
+
+    out.flush();
+  }
+
+  @VisibleForTesting
+  static @NonNull IncrementalBackupState deserialize(@NonNull InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(inputStream);
+
+    int formatVersion = in.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unknown format version: " + formatVersion);
+    }
+
+    byte[] chainId = new byte[CHAIN_ID_SIZE];
+    in.readFully(chainId);
+
+    String baseFileName    = in.readUTF();
+    String fileName        = in.readUTF();
+    int    databaseVersion = in.readInt();
+    int    sequence        = in.readInt();
+
+    int          deltaCount     = in.readInt();
+    List<String> deltaFileNames = new ArrayList<>(deltaCount);
+
+    for (int i = 0; i < deltaCount; i++) {
+      deltaFileNames.add(in.readUTF());
+    }
+
+    int                          tableCount   = in.readInt();
+    Map<String, Map<Long, Long>> rangeDigests = new HashMap<>(tableCount);
+
+    for (int i = 0; i < tableCount; i++) {
+      String          table      = in.readUTF();
+      int             rangeCount = in.readInt();
+      Map<Long, Long> digests    = new HashMap<>(rangeCount);
+
+      for (int j = 0; j < rangeCount; j++) {
+        digests.put(in.readLong(), in.readLong());
+      }
+
+      rangeDigests.put(table, digests);
+    }
+
+    int               attachmentCount = in.readInt();
+    Set<AttachmentId> attachments     = new HashSet<>(attachmentCount);
+
+    for (int i = 0; i < attachmentCount; i++) {
+      attachments.add(new AttachmentId(in.readLong(), in.readLong()));
+    }
+
+    int       stickerCount = in.readInt();
+    Set<Long> stickers     = new HashSet<>(stickerCount);
+
+    for (int i = 0; i < stickerCount; i++) {
+      stickers.add(in.readLong());
+    }
+
+    return new IncrementalBackupState(chainId, baseFileName, databaseVersion, sequence, fileName, deltaFileNames, rangeDigests, attachments, stickers);
+  }
+
+  public interface BackupFileChecker {
+    boolean exists(@NonNull String fileName);
+  }
+}
@@ -14,6 +14,7 @@ import org.signal.core.util.logging.Log;
 import org.signal.paging.PagedData;
 import org.signal.paging.PagingConfig;
 import org.signal.paging.PagingController;
+import org.signal.paging.PagingStats;
 import org.signal.paging.ProxyPagingController;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -50,6 +51,7 @@ class ConversationViewModel extends ViewModel {
 
   private ConversationIntents.Args args;
   private int                      jumpToPosition;
+  private PagingStats              pagingStats;
 
   private ConversationViewModel() {
     this.context                = ApplicationDependencies.getApplication();
@@ -98,6 +100,8 @@ class ConversationViewModel extends ViewModel {
     });
 
     this.messages = Transformations.switchMap(pagedDataForThreadId, pair -> {
+      logPagingStats();
+      pagingStats = pair.second().getStats();
       pagingController.set(pair.second().getController());
       return pair.second().getData();
     });
@@ -187,6 +191,13 @@ class ConversationViewModel extends ViewModel {
   protected void onCleared() {
     super.onCleared();
     ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageObserver);
+    logPagingStats();
+  }
+
+  private void logPagingStats() {
+    if (pagingStats != null) {
+      Log.i(TAG, "Paging stats: " + pagingStats);
+    }
   }
 
   static class Factory extends ViewModelProvider.NewInstanceFactory {
@@ -1,11 +1,23 @@
 package org.thoughtcrime.securesms.crypto;
 
-import org.whispersystems.signalservice.api.SignalSessionLock;
+import androidx.annotation.NonNull;
 
-import java.util.concurrent.locks.ReentrantLock;
+import org.thoughtcrime.securesms.BuildConfig;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.signalservice.api.SignalSessionLock;
 
 /**
- * An implementation of {@link SignalSessionLock} that effectively re-uses our database lock.
+ * An implementation of {@link SignalSessionLock} backed by a {@link ReentrantSessionLock}, so that
+ * work with one recipient's sessions doesn't have to wait on work with another's. Addresses are
+ * locked by recipient, so a UUID and an E164 for the same person share a lock.
+ *
+ * Sessions stored while the lock is held are written to disk as the thread's outermost hold is
+ * released. Only the sessions that thread stored are written, since other threads may still be
+ * working with theirs.
  */
 public enum DatabaseSessionLock implements SignalSessionLock {
 
@@ -13,31 +25,48 @@ public enum DatabaseSessionLock implements SignalSessionLock {
 
   public static final long NO_OWNER = -1;
 
-  private static final ReentrantLock LEGACY_LOCK = new ReentrantLock();
+  private static final String PRE_KEYS = "pre-keys";
 
-  private volatile long ownerThreadId = NO_OWNER;
+  private static final ReentrantSessionLock LOCK = new ReentrantSessionLock(BuildConfig.DEBUG);
 
+  /**
+   * Locks every session. Needed for anything that touches more than one recipient, or that can't
+   * know which recipient it's working with ahead of time.
+   */
   @Override
-  public Lock acquire() {
-    LEGACY_LOCK.lock();
-    return LEGACY_LOCK::unlock;
+  public @NonNull Lock acquire() {
+    return flushOnRelease(LOCK.acquire());
+  }
+
+  @Override
+  public @NonNull Lock acquire(@NonNull SignalProtocolAddress address) {
+    return acquire(Recipient.external(ApplicationDependencies.getApplication(), address.getName()).getId());
+  }
+
+  /**
+   * Locks only the sessions of the given recipient.
+   */
+  public @NonNull Lock acquire(@NonNull RecipientId recipientId) {
+    return flushOnRelease(LOCK.acquire(recipientId));
+  }
 
-    // TODO [greyson][db] Revisit after improving database locking
-//    SQLiteDatabase db = DatabaseFactory.getInstance(ApplicationDependencies.getApplication()).getRawDatabase();
-//
-//    if (db.isDbLockedByCurrentThread()) {
-//      return () -> {};
-//    }
-//
-//    db.beginTransaction();
-//
-//    ownerThreadId = Thread.currentThread().getId();
-//
-//    return () -> {
-//      ownerThreadId = -1;
-//      db.setTransactionSuccessful();
-//      db.endTransaction();
-//    };
+  /**
+   * Locks our prekeys, which are shared by every session that's being set up.
+   */
+  public @NonNull Lock acquirePreKeys() {
+    return flushOnRelease(LOCK.acquire(PRE_KEYS));
+  }
+
+  private static @NonNull Lock flushOnRelease(@NonNull Lock lock) {
+    return () -> {
+      try {
+        if (LOCK.getHoldCount() == 1) {
+          DatabaseFactory.getSessionDatabase(ApplicationDependencies.getApplication()).flushStoredOnThisThread();
+        }
+      } finally {
+        lock.close();
+      }
+    };
   }
 
   /**
@@ -47,8 +76,8 @@ public enum DatabaseSessionLock implements SignalSessionLock {
    * @return True if it's likely that some other thread owns this lock, and it's not you.
    */
   public boolean isLikelyHeldByOtherThread() {
-    long ownerThreadId = this.ownerThreadId;
-    return ownerThreadId != -1 && ownerThreadId == Thread.currentThread().getId();
+    long ownerThreadId = getLikeyOwnerThreadId();
+    return ownerThreadId != NO_OWNER && ownerThreadId == Thread.currentThread().getId();
   }
 
   /**
@@ -56,9 +85,14 @@ public enum DatabaseSessionLock implements SignalSessionLock {
    * tiny window where a thread may still own the lock, but the state we track around it has been
    * cleared.
    *
-   * @return The ID of the thread that likely owns this lock, or {@link #NO_OWNER} if no one owns it.
+   * @return The ID of the thread that likely owns the global lock, or {@link #NO_OWNER} if no one
+   *         owns it.
    */
   public long getLikeyOwnerThreadId() {
-    return ownerThreadId;
+    return LOCK.getGlobalOwnerThreadId();
+  }
+
+  public @NonNull String getDebugInfo() {
+    return LOCK.getDebugInfo();
   }
 }
@@ -0,0 +1,322 @@
+package org.thoughtcrime.securesms.crypto;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.Conversions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads a file written by {@link ModernEncryptingPartOutputStream}, starting from any position.
+ * <p>
+ * Attachments are encrypted with AES in CTR mode, so the cipher can be set up for any block from
+ * its index alone. Seeking re-initializes the cipher at the block containing the new position,
+ * and reads that carry on from where the last one stopped keep using the cipher as it is. The file
+ * stays open across reads, and is read through a {@link FileChannel} into a pooled direct buffer.
+ * <p>
+ * Has the same position and size methods as a {@link java.nio.channels.SeekableByteChannel}, which
+ * is only available from API 24.
+ */
+public final class ModernDecryptingPartChannel implements ReadableByteChannel {
+
+  private static final int RANDOM_LENGTH = 32;
+  private static final int BUFFER_SIZE   = 64 * 1024;
+  private static final int MAX_POOLED    = 4;
+
+  private static final ArrayDeque<ByteBuffer> BUFFER_POOL = new ArrayDeque<>();
+
+  private final FileChannel   fileChannel;
+  private final long          dataOffset;
+  private final SecretKeySpec key;
+  private final Cipher        cipher;
+  private final byte[]        discard = new byte[16];
+
+  private ByteBuffer buffer;
+  private long       position;
+  private long       cipherPosition = -1;
+
+  /**
+   * For files whose random is stored in the database.
+   */
+  public static @NonNull ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    return new ModernDecryptingPartChannel(attachmentSecret, random, new RandomAccessFile(file, "r").getChannel(), 0);
+  }
+
+  /**
+   * For files that start with their random, like blobs.
+   */
+  public static @NonNull ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+    ByteBuffer  random      = ByteBuffer.allocate(RANDOM_LENGTH);
+
+    try {
+      while (random.hasRemaining()) {
+        if (fileChannel.read(random, random.position()) == -1) {
+          throw new IOException("Prematurely reached end of file!");
+        }
+      }
+    } catch (IOException e) {
+      fileChannel.close();
+      throw e;
+    }
+
+    return new ModernDecryptingPartChannel(attachmentSecret, random.array(), fileChannel, RANDOM_LENGTH);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull FileChannel fileChannel, long dataOffset) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.fileChannel = fileChannel;
+      this.dataOffset  = dataOffset;
+      this.key         = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher      = Cipher.getInstance("AES/CTR/NoPadding");
+      this.buffer      = acquireBuffer();
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Reads from the current position, and moves it forward by the number of bytes read.
+   */
+  @Override
+  public synchronized int read(@NonNull ByteBuffer dst) throws IOException {
+    int read = read(dst, position);
+
+    if (read > 0) {
+      position += read;
+    }
+
+    return read;
+  }
+
+  /**
+   * Reads from the given position, without changing the current one.
+   *
+   * @return The number of bytes read, which is only less than were asked for at the end of the
+   *         file, or -1 if the position is at or past the end.
+   */
+  public synchronized int read(@NonNull ByteBuffer dst, long position) throws IOException {
+    ensureOpen();
+
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+
+    int total = 0;
+
+    while (dst.hasRemaining()) {
+      if (position != cipherPosition) {
+        seekCipher(position);
+      }
+
+      buffer.clear();
+      buffer.limit(Math.min(buffer.capacity(), dst.remaining()));
+
+      int read = readFile(buffer, dataOffset + position);
+
+      if (read <= 0) {
+        break;
+      }
+
+      buffer.flip();
+
+      try {
+        if (cipher.update(buffer, dst) != read) {
+          throw new IOException("Cipher did not decrypt the whole block!");
+        }
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+
+      position       += read;
+      cipherPosition  = position;
+      total          += read;
+    }
+
+    return total == 0 && dst.hasRemaining() ? -1 : total;
+  }
+
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  /**
+   * Moves the current position. Nothing is read until the next read, so this is cheap regardless
+   * of how far away the new position is.
+   */
+  public synchronized @NonNull ModernDecryptingPartChannel position(long newPosition) throws IOException {
+    ensureOpen();
+
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position: " + newPosition);
+    }
+
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * @return The length of the plaintext.
+   */
+  public synchronized long size() throws IOException {
+    ensureOpen();
+    return Math.max(0, fileChannel.size() - dataOffset);
+  }
+
+  /**
+   * @return A stream reading from the current position, whose skips seek rather than decrypt.
+   *         Closing it closes this channel.
+   */
+  public @NonNull InputStream asInputStream() {
+    return new ChannelInputStream(this);
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return buffer != null;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+
+    releaseBuffer(buffer);
+    buffer = null;
+
+    fileChannel.close();
+  }
+
+  /**
+   * Sets the cipher up for the block containing the position, then decrypts and drops the part of
+   * that block before it.
+   */
+  private void seekCipher(long position) throws IOException {
+    byte[] iv        = new byte[16];
+    int    remainder = (int) (position % 16);
+
+    Conversions.longTo4ByteArray(iv, 12, position / 16);
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+
+      if (remainder > 0) {
+        ByteBuffer ciphertext = ByteBuffer.allocate(remainder);
+        readFile(ciphertext, dataOffset + position - remainder);
+        cipher.update(ciphertext.array(), 0, ciphertext.position(), discard);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    cipherPosition = position;
+  }
+
+  /**
+   * Fills the buffer from the file, stopping early only at the end of the file.
+   */
+  private int readFile(@NonNull ByteBuffer dst, long filePosition) throws IOException {
+    int total = 0;
+
+    while (dst.hasRemaining()) {
+      int read = fileChannel.read(dst, filePosition + total);
+
+      if (read == -1) break;
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private static @NonNull ByteBuffer acquireBuffer() {
+    synchronized (BUFFER_POOL) {
+      ByteBuffer buffer = BUFFER_POOL.poll();
+
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+
+    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  private static void releaseBuffer(@NonNull ByteBuffer buffer) {
+    synchronized (BUFFER_POOL) {
+      if (BUFFER_POOL.size() < MAX_POOLED) {
+        BUFFER_POOL.add(buffer);
+      }
+    }
+  }
+
+  private static final class ChannelInputStream extends InputStream {
+
+    private final ModernDecryptingPartChannel channel;
+
+    private ChannelInputStream(@NonNull ModernDecryptingPartChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int    read   = read(single, 0, 1);
+
+      return read == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      return channel.read(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      synchronized (channel) {
+        long position = channel.position();
+        long skipped  = Math.max(0, Math.min(n, channel.size() - position));
+
+        channel.position(position + skipped);
+        return skipped;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
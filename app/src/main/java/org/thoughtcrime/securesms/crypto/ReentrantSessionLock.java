@@ -0,0 +1,381 @@
+package org.thoughtcrime.securesms.crypto;
+
+import androidx.annotation.NonNull;
+
+import org.whispersystems.signalservice.api.SignalSessionLock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reentrant lock that can be held in one of two ways. Locking a key only keeps out other threads
+ * that want the same key, so threads working with different recipients can run side by side.
+ * Locking globally keeps out every other thread, and waits for any keys held elsewhere to be
+ * released first.
+ * <p>
+ * A thread may lock a key while it holds the global lock, and may lock globally while it holds a
+ * key. Only one thread at a time can do the latter, since two of them would each wait for the
+ * other's keys forever, so a second thread that tries throws an {@link IllegalStateException}
+ * instead. Once the global lock is wanted, threads that don't hold anything yet wait for it rather
+ * than taking new keys.
+ * <p>
+ * When deadlock detection is on, or while a thread holding keys waits for the global lock, a thread
+ * that's about to wait checks whether it's waiting on itself through other waiting threads, and
+ * throws an {@link IllegalStateException} describing the cycle instead of hanging.
+ */
+public final class ReentrantSessionLock {
+
+  private static final Object GLOBAL = new Object() {
+    @Override
+    public @NonNull String toString() {
+      return "global";
+    }
+  };
+
+  private final boolean                  detectDeadlocks;
+  private final Map<Object, KeyState>    keys        = new HashMap<>();
+  private final Map<Thread, ThreadState> threads     = new HashMap<>();
+  private final Stats                    globalStats = new Stats();
+  private final Stats                    keyStats    = new Stats();
+
+  private Thread globalOwner;
+  private Thread upgradingThread;
+  private int    globalHolds;
+  private int    globalWaiters;
+  private int    keyHoldingThreads;
+
+  public ReentrantSessionLock(boolean detectDeadlocks) {
+    this.detectDeadlocks = detectDeadlocks;
+  }
+
+  /**
+   * Locks everything.
+   */
+  public @NonNull SignalSessionLock.Lock acquire() {
+    return acquireInternal(GLOBAL);
+  }
+
+  /**
+   * Locks a single key, which must have a meaningful equals and hashCode.
+   */
+  public @NonNull SignalSessionLock.Lock acquire(@NonNull Object key) {
+    return acquireInternal(key);
+  }
+
+  /**
+   * @return How many holds, global or keyed, the current thread has on this lock.
+   */
+  public synchronized int getHoldCount() {
+    ThreadState state = threads.get(Thread.currentThread());
+    return state != null ? state.holds : 0;
+  }
+
+  /**
+   * @return The ID of the thread holding the global lock, or -1 if no one does.
+   */
+  public synchronized long getGlobalOwnerThreadId() {
+    return globalOwner != null ? globalOwner.getId() : -1;
+  }
+
+  public synchronized @NonNull String getDebugInfo() {
+    return "Global: " + globalStats + "\n" +
+           "Keyed : " + keyStats    + "\n" +
+           "Held  : " + keys.size() + " keys by " + keyHoldingThreads + " threads" + (globalOwner != null ? ", global by " + globalOwner.getName() : "") + "\n";
+  }
+
+  private @NonNull SignalSessionLock.Lock acquireInternal(@NonNull Object request) {
+    Thread  thread      = Thread.currentThread();
+    long    start       = System.nanoTime();
+    boolean waited      = false;
+    boolean interrupted = false;
+    boolean outermost;
+
+    synchronized (this) {
+      ThreadState state = threads.get(thread);
+
+      if (state == null) {
+        state = new ThreadState();
+        threads.put(thread, state);
+      }
+
+      boolean upgrading = request == GLOBAL && state.keys > 0 && globalOwner != thread;
+
+      if (upgrading && upgradingThread != null) {
+        throw new IllegalStateException(thread.getName() + " wants the global lock while holding keys, but " +
+                                        upgradingThread.getName() + " is already waiting to do the same.");
+      }
+
+      boolean granted = false;
+
+      try {
+        while (isBlocked(thread, state, request)) {
+          if (!waited) {
+            waited           = true;
+            state.waitingFor = request;
+            if (request == GLOBAL) globalWaiters++;
+            if (upgrading) upgradingThread = thread;
+          }
+
+          if (detectDeadlocks || upgradingThread != null) {
+            checkForDeadlock(thread);
+          }
+
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+
+        granted = true;
+      } finally {
+        if (waited) {
+          state.waitingFor = null;
+          if (request == GLOBAL) globalWaiters--;
+          if (upgrading) upgradingThread = null;
+        }
+
+        if (!granted) {
+          if (state.holds == 0) threads.remove(thread);
+          notifyAll();
+        }
+      }
+
+      if (request == GLOBAL) {
+        globalOwner = thread;
+        globalHolds++;
+        outermost = globalHolds == 1;
+      } else {
+        KeyState keyState = keys.get(request);
+
+        if (keyState == null) {
+          keyState = new KeyState(thread);
+          keys.put(request, keyState);
+
+          state.keys++;
+          if (state.keys == 1) keyHoldingThreads++;
+        }
+
+        keyState.holds++;
+        outermost = keyState.holds == 1;
+      }
+
+      state.holds++;
+
+      if (outermost) {
+        statsFor(request).onAcquired(waited, System.nanoTime() - start);
+      }
+    }
+
+    if (interrupted) {
+      thread.interrupt();
+    }
+
+    return new Hold(thread, request, outermost, System.nanoTime());
+  }
+
+  private void release(@NonNull Hold hold) {
+    synchronized (this) {
+      ThreadState state = threads.get(hold.thread);
+
+      if (hold.request == GLOBAL) {
+        globalHolds--;
+        if (globalHolds == 0) globalOwner = null;
+      } else {
+        KeyState keyState = keys.get(hold.request);
+
+        keyState.holds--;
+        if (keyState.holds == 0) {
+          keys.remove(hold.request);
+
+          state.keys--;
+          if (state.keys == 0) keyHoldingThreads--;
+        }
+      }
+
+      state.holds--;
+      if (state.holds == 0) {
+        threads.remove(hold.thread);
+      }
+
+      if (hold.outermost) {
+        statsFor(hold.request).onReleased(System.nanoTime() - hold.acquiredAt);
+      }
+
+      notifyAll();
+    }
+  }
+
+  private boolean isBlocked(@NonNull Thread thread, @NonNull ThreadState state, @NonNull Object request) {
+    if (globalOwner != null && globalOwner != thread) {
+      return true;
+    }
+
+    if (request == GLOBAL) {
+      return keyHoldingThreads - (state.keys > 0 ? 1 : 0) > 0;
+    }
+
+    KeyState keyState = keys.get(request);
+    if (keyState != null && keyState.owner != thread) {
+      return true;
+    }
+
+    return globalWaiters > 0 && state.holds == 0 && keyState == null;
+  }
+
+  /**
+   * @return The threads that have to release something before the given thread can get what it
+   *         wants.
+   */
+  private @NonNull Set<Thread> getBlockers(@NonNull Thread thread, @NonNull Object request) {
+    Set<Thread> blockers = new HashSet<>();
+
+    if (globalOwner != null && globalOwner != thread) {
+      blockers.add(globalOwner);
+    }
+
+    if (request == GLOBAL) {
+      for (KeyState keyState : keys.values()) {
+        if (keyState.owner != thread) {
+          blockers.add(keyState.owner);
+        }
+      }
+    } else {
+      KeyState keyState = keys.get(request);
+      if (keyState != null && keyState.owner != thread) {
+        blockers.add(keyState.owner);
+      }
+    }
+
+    return blockers;
+  }
+
+  private void checkForDeadlock(@NonNull Thread thread) {
+    List<Thread> cycle = findCycle(thread, thread, new ArrayList<>(), new HashSet<>());
+
+    if (cycle != null) {
+      StringBuilder description = new StringBuilder("Deadlock detected:");
+
+      for (Thread member : cycle) {
+        ThreadState state = threads.get(member);
+        description.append("\n  ").append(member.getName()).append(" waiting for ").append(state.waitingFor);
+      }
+
+      throw new IllegalStateException(description.toString());
+    }
+  }
+
+  private List<Thread> findCycle(@NonNull Thread origin, @NonNull Thread current, @NonNull List<Thread> path, @NonNull Set<Thread> visited) {
+    ThreadState state = threads.get(current);
+
+    if (state == null || state.waitingFor == null || !visited.add(current)) {
+      return null;
+    }
+
+    path.add(current);
+
+    for (Thread blocker : getBlockers(current, state.waitingFor)) {
+      if (blocker == origin) {
+        return path;
+      }
+
+      List<Thread> cycle = findCycle(origin, blocker, path, visited);
+      if (cycle != null) {
+        return cycle;
+      }
+    }
+
+    path.remove(path.size() - 1);
+    return null;
+  }
+
+  private @NonNull Stats statsFor(@NonNull Object request) {
+    return request == GLOBAL ? globalStats : keyStats;
+  }
+
+  private final class Hold implements SignalSessionLock.Lock {
+    private final Thread  thread;
+    private final Object  request;
+    private final boolean outermost;
+    private final long    acquiredAt;
+
+    private boolean released;
+
+    private Hold(@NonNull Thread thread, @NonNull Object request, boolean outermost, long acquiredAt) {
+      this.thread     = thread;
+      this.request    = request;
+      this.outermost  = outermost;
+      this.acquiredAt = acquiredAt;
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        throw new IllegalStateException("Already released!");
+      }
+
+      released = true;
+      release(this);
+    }
+  }
+
+  private static final class KeyState {
+    private final Thread owner;
+
+    private int holds;
+
+    private KeyState(@NonNull Thread owner) {
+      this.owner = owner;
+    }
+  }
+
+  private static final class ThreadState {
+    private int    holds;
+    private int    keys;
+    private Object waitingFor;
+  }
+
+  /**
+   * Wait and hold times, counted once per outermost hold.
+   */
+  private static final class Stats {
+    private long acquisitions;
+    private long contended;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long totalHoldNanos;
+    private long maxHoldNanos;
+    private long releases;
+
+    void onAcquired(boolean waited, long waitNanos) {
+      acquisitions++;
+      if (waited) contended++;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos    = Math.max(maxWaitNanos, waitNanos);
+    }
+
+    void onReleased(long holdNanos) {
+      releases++;
+      totalHoldNanos += holdNanos;
+      maxHoldNanos    = Math.max(maxHoldNanos, holdNanos);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US,
+                           "%d acquired (%d contended), wait %.2f ms avg / %d ms max, hold %.2f ms avg / %d ms max",
+                           acquisitions,
+                           contended,
+                           acquisitions > 0 ? totalWaitNanos / 1_000_000d / acquisitions : 0d,
+                           TimeUnit.NANOSECONDS.toMillis(maxWaitNanos),
+                           releases > 0 ? totalHoldNanos / 1_000_000d / releases : 0d,
+                           TimeUnit.NANOSECONDS.toMillis(maxHoldNanos));
+    }
+  }
+}
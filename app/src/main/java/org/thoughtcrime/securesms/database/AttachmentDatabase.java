@@ -52,11 +52,13 @@ import org.thoughtcrime.securesms.database.model.databaseprotos.AudioWaveFormDat
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.stickers.StickerLocator;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.CursorUtil;
 import org.thoughtcrime.securesms.util.FileUtils;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
@@ -188,8 +190,48 @@ public class AttachmentDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");"
   };
 
+  public  static final String FILE_TABLE_NAME = "part_file";
+  private static final String FILE_REF_COUNT  = "ref_count";
+
+  /**
+   * One row per attachment file, with how many attachments use it. Quotes only borrow the file of
+   * the attachment they quote, so they aren't counted.
+   */
+  public static final String CREATE_FILE_TABLE = "CREATE TABLE " + FILE_TABLE_NAME + " (" + DATA           + " TEXT PRIMARY KEY, " +
+                                                                                            FILE_REF_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+  /**
+   * Keep {@link #FILE_TABLE_NAME} up to date with every change to the attachment table, wherever it
+   * comes from. A file whose count has dropped to zero is deleted by whoever dropped it, or failing
+   * that, by {@link #deleteUnreferencedFiles()}.
+   */
+  public static final String[] CREATE_FILE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS part_file_insert AFTER INSERT ON " + TABLE_NAME + " WHEN new." + DATA + " NOT NULL AND new." + QUOTE + " IS NOT 1 " +
+    "BEGIN " +
+      "INSERT OR IGNORE INTO " + FILE_TABLE_NAME + " (" + DATA + ") VALUES (new." + DATA + "); " +
+      "UPDATE " + FILE_TABLE_NAME + " SET " + FILE_REF_COUNT + " = " + FILE_REF_COUNT + " + 1 WHERE " + DATA + " = new." + DATA + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS part_file_delete AFTER DELETE ON " + TABLE_NAME + " WHEN old." + DATA + " NOT NULL AND old." + QUOTE + " IS NOT 1 " +
+    "BEGIN " +
+      "UPDATE " + FILE_TABLE_NAME + " SET " + FILE_REF_COUNT + " = " + FILE_REF_COUNT + " - 1 WHERE " + DATA + " = old." + DATA + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS part_file_update AFTER UPDATE OF " + DATA + ", " + QUOTE + " ON " + TABLE_NAME + " WHEN old." + DATA + " IS NOT new." + DATA + " OR old." + QUOTE + " IS NOT new." + QUOTE + " " +
+    "BEGIN " +
+      "UPDATE " + FILE_TABLE_NAME + " SET " + FILE_REF_COUNT + " = " + FILE_REF_COUNT + " - 1 WHERE " + DATA + " = old." + DATA + " AND old." + QUOTE + " IS NOT 1; " +
+      "INSERT OR IGNORE INTO " + FILE_TABLE_NAME + " (" + DATA + ") SELECT new." + DATA + " WHERE new." + DATA + " NOT NULL AND new." + QUOTE + " IS NOT 1; " +
+      "UPDATE " + FILE_TABLE_NAME + " SET " + FILE_REF_COUNT + " = " + FILE_REF_COUNT + " + 1 WHERE " + DATA + " = new." + DATA + " AND new." + QUOTE + " IS NOT 1; " +
+    "END;"
+  };
+
+  private static final int MAX_REMEMBERED_BLOBS = 50;
+
   private final AttachmentSecret attachmentSecret;
 
+  /** Blob URIs that have already been stored, by the hash of their content. Blobs never change. */
+  private final Map<String, String> blobHashes = new LRUCache<>(MAX_REMEMBERED_BLOBS);
+
   public AttachmentDatabase(Context context, SQLCipherOpenHelper databaseHelper, AttachmentSecret attachmentSecret) {
     super(context, databaseHelper);
     this.attachmentSecret = attachmentSecret;
@@ -314,25 +356,15 @@ public class AttachmentDatabase extends Database {
   public void deleteAttachmentsForMessage(long mmsId) {
     Log.d(TAG, "[deleteAttachmentsForMessage] mmsId: " + mmsId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    SQLiteDatabase       database = databaseHelper.getWritableDatabase();
+    List<AttachmentFile> files    = getAttachmentFilesForMessage(database, mmsId);
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID}, MMS_ID + " = ?",
-                              new String[] {mmsId+""}, null, null, null);
+    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
 
-      while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
-                               CursorUtil.requireString(cursor, CONTENT_TYPE),
-                               new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                CursorUtil.requireLong(cursor, UNIQUE_ID)));
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    for (AttachmentFile file : files) {
+      deleteAttachmentOnDisk(file.data, file.contentType, file.attachmentId);
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
     notifyAttachmentListeners();
   }
 
@@ -366,23 +398,8 @@ public class AttachmentDatabase extends Database {
   public void deleteAttachmentFilesForViewOnceMessage(long mmsId) {
     Log.d(TAG, "[deleteAttachmentFilesForViewOnceMessage] mmsId: " + mmsId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID}, MMS_ID + " = ?",
-          new String[] {mmsId+""}, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
-                               CursorUtil.requireString(cursor, CONTENT_TYPE),
-                               new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                CursorUtil.requireLong(cursor, UNIQUE_ID)));
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    SQLiteDatabase       database = databaseHelper.getWritableDatabase();
+    List<AttachmentFile> files    = getAttachmentFilesForMessage(database, mmsId);
 
     ContentValues values = new ContentValues();
     values.put(DATA, (String) null);
@@ -398,6 +415,11 @@ public class AttachmentDatabase extends Database {
     values.put(CONTENT_TYPE, MediaUtil.VIEW_ONCE);
 
     database.update(TABLE_NAME, values, MMS_ID + " = ?", new String[] {mmsId + ""});
+
+    for (AttachmentFile file : files) {
+      deleteAttachmentOnDisk(file.data, file.contentType, file.attachmentId);
+    }
+
     notifyAttachmentListeners();
 
     long threadId = DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId);
@@ -470,20 +492,31 @@ public class AttachmentDatabase extends Database {
   void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    database.delete(FILE_TABLE_NAME, null, null);
 
     FileUtils.deleteDirectoryContents(context.getDir(DIRECTORY, Context.MODE_PRIVATE));
 
     notifyAttachmentListeners();
   }
 
+  /**
+   * Deletes the attachment's file if nothing else uses it. Must be called after the attachment has
+   * stopped using the file itself, so that it's no longer counted.
+   */
   private void deleteAttachmentOnDisk(@Nullable String data,
                                       @Nullable String contentType,
                                       @NonNull AttachmentId attachmentId)
   {
+    if (data != null && getFileReferenceCount(data) > 0) {
+      Log.i(TAG, "[deleteAttachmentOnDisk] Attachment in use. Skipping deletion. " + data + " " + attachmentId);
+      return;
+    }
+
     DataUsageResult dataUsage = getAttachmentFileUsages(data, attachmentId);
 
     if (dataUsage.hasStrongReference()) {
-      Log.i(TAG, "[deleteAttachmentOnDisk] Attachment in use. Skipping deletion. " + data + " " + attachmentId);
+      Log.w(TAG, "[deleteAttachmentOnDisk] Reference count was zero, but the attachment is still in use. Recounting. " + data + " " + attachmentId);
+      recountFileReferences(data);
       return;
     }
 
@@ -523,6 +556,8 @@ public class AttachmentDatabase extends Database {
       } else {
         Log.w(TAG, "[deleteAttachmentOnDisk] Failed to delete attachment. " + data + " " + attachmentId);
       }
+
+      databaseHelper.getWritableDatabase().delete(FILE_TABLE_NAME, DATA + " = ? AND " + FILE_REF_COUNT + " <= 0", new String[] { data });
     }
 
     if (MediaUtil.isImageType(contentType) || MediaUtil.isVideoType(contentType)) {
@@ -552,6 +587,90 @@ public class AttachmentDatabase extends Database {
     return new DataUsageResult(quoteRows);
   }
 
+  private int getFileReferenceCount(@NonNull String data) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = database.query(FILE_TABLE_NAME, new String[] { FILE_REF_COUNT }, DATA + " = ?", new String[] { data }, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+    }
+
+    return 0;
+  }
+
+  private void recountFileReferences(@NonNull String data) {
+    databaseHelper.getWritableDatabase().execSQL("UPDATE " + FILE_TABLE_NAME + " SET " + FILE_REF_COUNT + " = " +
+                                                 "(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + DATA + " = ? AND " + QUOTE + " IS NOT 1) " +
+                                                 "WHERE " + DATA + " = ?",
+                                                 new String[] { data, data });
+  }
+
+  /**
+   * Deletes files that no attachment uses anymore, but that weren't deleted at the time. That
+   * happens when attachments are removed in bulk, or the app dies before it gets to the file.
+   * Files that a quote still shows are left for when the quote itself is deleted.
+   *
+   * @return How many files were deleted.
+   */
+  @WorkerThread
+  public int deleteUnreferencedFiles() {
+    SQLiteDatabase database   = databaseHelper.getReadableDatabase();
+    List<String>   candidates = new LinkedList<>();
+
+    try (Cursor cursor = database.query(FILE_TABLE_NAME, new String[] { DATA }, FILE_REF_COUNT + " <= 0", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        candidates.add(cursor.getString(0));
+      }
+    }
+
+    int deleted = 0;
+
+    for (String data : candidates) {
+      if (!new File(data).exists()) {
+        databaseHelper.getWritableDatabase().delete(FILE_TABLE_NAME, DATA + " = ? AND " + FILE_REF_COUNT + " <= 0", new String[] { data });
+        continue;
+      }
+
+      DataUsageResult dataUsage = getAttachmentFileUsages(data, new AttachmentId(-1, -1));
+
+      if (dataUsage.hasStrongReference()) {
+        Log.w(TAG, "[deleteUnreferencedFiles] Reference count was zero, but the file is still in use. Recounting. " + data);
+        recountFileReferences(data);
+        continue;
+      }
+
+      if (dataUsage.getRemovableWeakReferences().size() > 0) {
+        Log.i(TAG, "[deleteUnreferencedFiles] File is still used by a quote. Leaving it until the quote is deleted. " + data);
+        continue;
+      }
+
+      if (new File(data).delete()) {
+        databaseHelper.getWritableDatabase().delete(FILE_TABLE_NAME, DATA + " = ? AND " + FILE_REF_COUNT + " <= 0", new String[] { data });
+        deleted++;
+      } else {
+        Log.w(TAG, "[deleteUnreferencedFiles] Failed to delete file. " + data);
+      }
+    }
+
+    return deleted;
+  }
+
+  private static @NonNull List<AttachmentFile> getAttachmentFilesForMessage(@NonNull SQLiteDatabase database, long mmsId) {
+    List<AttachmentFile> files = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID}, MMS_ID + " = ?", new String[] {mmsId+""}, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        files.add(new AttachmentFile(CursorUtil.requireString(cursor, DATA),
+                                     CursorUtil.requireString(cursor, CONTENT_TYPE),
+                                     new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
+                                                      CursorUtil.requireLong(cursor, UNIQUE_ID))));
+      }
+    }
+
+    return files;
+  }
+
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
   {
@@ -795,13 +914,7 @@ public class AttachmentDatabase extends Database {
    * Returns false if the file is referenced by zero or one attachments.
    */
   private boolean fileReferencedByMoreThanOneAttachment(@NonNull File file) {
-    SQLiteDatabase database  = databaseHelper.getReadableDatabase();
-    String         selection = DATA + " = ?";
-    String[]       args      = new String[]{file.getAbsolutePath()};
-
-    try (Cursor cursor = database.query(TABLE_NAME, null, selection, args, null, null, null, "2")) {
-      return cursor != null && cursor.moveToFirst() && cursor.moveToNext();
-    }
+    return getFileReferenceCount(file.getAbsolutePath()) > 1;
   }
 
   public void markAttachmentAsTransformed(@NonNull AttachmentId attachmentId) {
@@ -1010,14 +1123,61 @@ public class AttachmentDatabase extends Database {
                                               @Nullable AttachmentId attachmentId)
       throws MmsException
   {
+    DataInfo storedDataInfo = findStoredDataFileInfo(uri, attachmentId);
+
+    if (storedDataInfo != null) {
+      Log.i(TAG, "[setAttachmentData] Content is already stored. Reusing " + storedDataInfo.file.getAbsolutePath());
+      return storedDataInfo;
+    }
+
     try {
       InputStream inputStream = PartAuthority.getAttachmentStream(context, uri);
-      return setAttachmentData(inputStream, attachmentId);
+      DataInfo    dataInfo    = setAttachmentData(inputStream, attachmentId);
+
+      if (BlobProvider.isAuthority(uri) && dataInfo.hash != null) {
+        synchronized (blobHashes) {
+          blobHashes.put(uri.toString(), dataInfo.hash);
+        }
+      }
+
+      return dataInfo;
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
+  /**
+   * Finds a file that already holds the content at the URI, without reading it. That's the case when
+   * forwarding an attachment, or sending the same media to several chats.
+   */
+  @VisibleForTesting
+  @Nullable DataInfo findStoredDataFileInfo(@NonNull Uri uri, @Nullable AttachmentId excludedAttachmentId) {
+    String hash;
+
+    if (PartAuthority.isAttachmentUri(uri)) {
+      DataInfo source = getAttachmentDataFileInfo(PartAuthority.requireAttachmentId(uri), DATA);
+      hash = source != null ? source.hash : null;
+    } else if (BlobProvider.isAuthority(uri)) {
+      synchronized (blobHashes) {
+        hash = blobHashes.get(uri.toString());
+      }
+    } else {
+      return null;
+    }
+
+    if (hash == null) {
+      return null;
+    }
+
+    Optional<DataInfo> stored = findDuplicateDataFileInfo(databaseHelper.getReadableDatabase(), hash, excludedAttachmentId);
+
+    if (stored.isPresent() && stored.get().file.exists()) {
+      return stored.get();
+    } else {
+      return null;
+    }
+  }
+
   private @NonNull DataInfo setAttachmentData(@NonNull InputStream in,
                                               @Nullable AttachmentId attachmentId)
       throws MmsException
@@ -1339,11 +1499,12 @@ public class AttachmentDatabase extends Database {
     return EncryptedMediaDataSource.createFor(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
   }
 
-  private static class DataInfo {
-    private final File   file;
-    private final long   length;
-    private final byte[] random;
-    private final String hash;
+  @VisibleForTesting
+  static class DataInfo {
+    final File   file;
+    final long   length;
+    final byte[] random;
+    final String hash;
 
     private DataInfo(File file, long length, byte[] random, String hash) {
       this.file   = file;
@@ -1353,6 +1514,18 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  private static final class AttachmentFile {
+    private final String       data;
+    private final String       contentType;
+    private final AttachmentId attachmentId;
+
+    private AttachmentFile(@Nullable String data, @Nullable String contentType, @NonNull AttachmentId attachmentId) {
+      this.data         = data;
+      this.contentType  = contentType;
+      this.attachmentId = attachmentId;
+    }
+  }
+
   private static final class DataUsageResult {
     private final boolean            hasStrongReference;
     private final List<AttachmentId> removableWeakReferences;
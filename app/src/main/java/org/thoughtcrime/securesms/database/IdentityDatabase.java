@@ -31,6 +31,7 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.IdentityUtil;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -38,6 +39,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
 public class IdentityDatabase extends Database {
 
@@ -80,6 +82,14 @@ public class IdentityDatabase extends Database {
     }
   }
 
+  private static final int MAX_CACHED_IDENTITIES = 500;
+
+  private final LRUCache<RecipientId, Optional<IdentityRecord>> cache = new LRUCache<>(MAX_CACHED_IDENTITIES);
+
+  private long cacheGeneration;
+  private long cacheHits;
+  private long cacheMisses;
+
   IdentityDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -95,6 +105,57 @@ public class IdentityDatabase extends Database {
   }
 
   public Optional<IdentityRecord> getIdentity(@NonNull RecipientId recipientId) {
+    long generation;
+
+    synchronized (cache) {
+      Optional<IdentityRecord> cached = cache.get(recipientId);
+
+      if (cached != null) {
+        cacheHits++;
+        return cached;
+      }
+
+      cacheMisses++;
+      generation = cacheGeneration;
+    }
+
+    Optional<IdentityRecord> record = getIdentityFromDisk(recipientId);
+
+    synchronized (cache) {
+      if (generation == cacheGeneration) {
+        cache.put(recipientId, record);
+      }
+    }
+
+    return record;
+  }
+
+  /**
+   * Forgets the cached identity for the recipient, for when their row has been changed directly.
+   */
+  public void invalidate(@NonNull RecipientId recipientId) {
+    synchronized (cache) {
+      cache.remove(recipientId);
+      cacheGeneration++;
+    }
+  }
+
+  public @NonNull String getCacheDebugInfo() {
+    synchronized (cache) {
+      long total = cacheHits + cacheMisses;
+
+      return String.format(Locale.US,
+                           "Size: %d\n" +
+                           "Hits: %d (%.1f%%)\n" +
+                           "Misses: %d\n",
+                           cache.size(),
+                           cacheHits,
+                           total > 0 ? cacheHits * 100f / total : 0f,
+                           cacheMisses);
+    }
+  }
+
+  private Optional<IdentityRecord> getIdentityFromDisk(@NonNull RecipientId recipientId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
@@ -153,6 +214,7 @@ public class IdentityDatabase extends Database {
     contentValues.put(NONBLOCKING_APPROVAL, nonBlockingApproval);
 
     database.update(TABLE_NAME, contentValues, RECIPIENT_ID + " = ?", new String[] {recipientId.serialize()});
+    invalidate(recipientId);
 
     DatabaseFactory.getRecipientDatabase(context).markDirty(recipientId, RecipientDatabase.DirtyState.UPDATE);
   }
@@ -167,6 +229,8 @@ public class IdentityDatabase extends Database {
                                   new String[] {recipientId.serialize(), Base64.encodeBytes(identityKey.serialize())});
 
     if (updated > 0) {
+      invalidate(recipientId);
+
       Optional<IdentityRecord> record = getIdentity(recipientId);
       if (record.isPresent()) EventBus.getDefault().post(record.get());
       DatabaseFactory.getRecipientDatabase(context).markDirty(recipientId, RecipientDatabase.DirtyState.UPDATE);
@@ -236,6 +300,7 @@ public class IdentityDatabase extends Database {
     contentValues.put(FIRST_USE, firstUse ? 1 : 0);
 
     database.replace(TABLE_NAME, null, contentValues);
+    invalidate(recipientId);
 
     EventBus.getDefault().post(new IdentityRecord(recipientId, identityKey, verifiedStatus,
         firstUse, timestamp, nonBlockingApproval));
@@ -389,10 +389,56 @@ public class MmsSmsDatabase extends Database {
    * @return All of the messages that didn't result in updates.
    */
   private @NonNull Collection<SyncMessageId> incrementReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, @NonNull MessageDatabase.ReceiptType receiptType) {
-    SQLiteDatabase            db             = databaseHelper.getWritableDatabase();
-    ThreadDatabase            threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Set<ThreadUpdate>         threadUpdates  = new HashSet<>();
-    Collection<SyncMessageId> unhandled      = new HashSet<>();
+    Set<ThreadUpdate>         threadUpdates = new HashSet<>();
+    Collection<SyncMessageId> unhandled     = new HashSet<>();
+
+    try {
+      incrementReceiptCountsInTransaction(syncMessageIds, timestamp, receiptType, threadUpdates, unhandled);
+    } finally {
+      for (ThreadUpdate threadUpdate : threadUpdates) {
+        if (threadUpdate.isVerbose()) {
+          notifyVerboseConversationListeners(threadUpdate.getThreadId());
+        } else {
+          notifyConversationListeners(threadUpdate.getThreadId());
+        }
+      }
+    }
+
+    return unhandled;
+  }
+
+  /**
+   * Like {@link #incrementDeliveryReceiptCounts(List, long)}, but leaves telling listeners about
+   * the updates to the caller, so that it can be done once for several batches with
+   * {@link #notifyReceiptUpdates(Set)}.
+   *
+   * @return The IDs of the threads that were updated.
+   */
+  public @NonNull Set<Long> incrementDeliveryReceiptCountsWithoutNotifying(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    Set<ThreadUpdate> threadUpdates = new HashSet<>();
+    Set<Long>         threadIds     = new HashSet<>();
+
+    incrementReceiptCountsInTransaction(syncMessageIds, timestamp, MessageDatabase.ReceiptType.DELIVERY, threadUpdates, new HashSet<>());
+
+    for (ThreadUpdate threadUpdate : threadUpdates) {
+      threadIds.add(threadUpdate.getThreadId());
+    }
+
+    return threadIds;
+  }
+
+  public void notifyReceiptUpdates(@NonNull Set<Long> threadIds) {
+    notifyConversationListeners(threadIds);
+  }
+
+  private void incrementReceiptCountsInTransaction(@NonNull List<SyncMessageId> syncMessageIds,
+                                                   long timestamp,
+                                                   @NonNull MessageDatabase.ReceiptType receiptType,
+                                                   @NonNull Set<ThreadUpdate> threadUpdates,
+                                                   @NonNull Collection<SyncMessageId> unhandled)
+  {
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
 
     db.beginTransaction();
     try {
@@ -413,17 +459,7 @@ public class MmsSmsDatabase extends Database {
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
-
-      for (ThreadUpdate threadUpdate : threadUpdates) {
-        if (threadUpdate.isVerbose()) {
-          notifyVerboseConversationListeners(threadUpdate.getThreadId());
-        } else {
-          notifyConversationListeners(threadUpdate.getThreadId());
-        }
-      }
     }
-
-    return unhandled;
   }
 
 
@@ -157,6 +157,9 @@ public class RecipientDatabase extends Database {
     static final int GROUPS_V1_MIGRATION = 1;
   }
 
+  /** SQLite limits the number of bound arguments in a single query to 999. */
+  private static final int MAX_BATCH_QUERY_ARGS = 900;
+
   private static final String[] RECIPIENT_PROJECTION = new String[] {
       ID, UUID, USERNAME, PHONE, EMAIL, GROUP_ID, GROUP_TYPE,
       BLOCKED, MESSAGE_RINGTONE, CALL_RINGTONE, MESSAGE_VIBRATE, CALL_VIBRATE, MUTE_UNTIL, COLOR, SEEN_INVITE_REMINDER, DEFAULT_SUBSCRIPTION_ID, MESSAGE_EXPIRATION_TIME, REGISTERED,
@@ -713,6 +716,29 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Reads the settings for many recipients with as few queries as possible. Unlike
+   * {@link #getRecipientSettings(RecipientId)}, recipients that can't be found are simply left out
+   * of the result.
+   */
+  public @NonNull Map<RecipientId, RecipientSettings> getRecipientSettings(@NonNull Collection<RecipientId> ids) {
+    SQLiteDatabase                      database = databaseHelper.getReadableDatabase();
+    Map<RecipientId, RecipientSettings> results  = new HashMap<>(ids.size());
+
+    for (List<RecipientId> chunk : Util.chunk(new ArrayList<>(ids), MAX_BATCH_QUERY_ARGS)) {
+      SqlUtil.Query query = SqlUtil.buildCollectionQuery(ID, chunk);
+
+      try (Cursor cursor = database.query(TABLE_NAME, RECIPIENT_PROJECTION, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          RecipientSettings settings = getRecipientSettings(context, cursor);
+          results.put(settings.getId(), settings);
+        }
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull DirtyState getDirtyState(@NonNull RecipientId recipientId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
@@ -2949,6 +2975,7 @@ public class RecipientDatabase extends Database {
 
     // Identities
     db.delete(IdentityDatabase.TABLE_NAME, IdentityDatabase.RECIPIENT_ID + " = ?", SqlUtil.buildArgs(byE164));
+    DatabaseFactory.getIdentityDatabase(context).invalidate(byE164);
 
     // Group Receipts
     ContentValues groupReceiptValues = new ContentValues();
@@ -3003,6 +3030,9 @@ public class RecipientDatabase extends Database {
       Log.w(TAG, "Had no sessions. No action necessary.");
     }
 
+    DatabaseFactory.getSessionDatabase(context).invalidate(byE164);
+    DatabaseFactory.getSessionDatabase(context).invalidate(byUuid);
+
     // Mentions
     ContentValues mentionRecipientValues = new ContentValues();
     mentionRecipientValues.put(MentionDatabase.RECIPIENT_ID, byUuid.serialize());
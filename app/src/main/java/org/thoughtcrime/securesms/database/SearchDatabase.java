@@ -4,18 +4,30 @@ import android.content.Context;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 
 import net.sqlcipher.Cursor;
 
+import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.util.CursorUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Contains all databases necessary for full-text search (FTS).
  */
 public class SearchDatabase extends Database {
 
+  private static final String TAG = Log.tag(SearchDatabase.class);
+
   public static final String SMS_FTS_TABLE_NAME = "sms_fts";
   public static final String MMS_FTS_TABLE_NAME = "mms_fts";
 
@@ -27,11 +39,27 @@ public class SearchDatabase extends Database {
   public static final String MESSAGE_RECIPIENT      = "message_recipient";
   public static final String IS_MMS                 = "is_mms";
   public static final String MESSAGE_ID             = "message_id";
+  public static final String RANK                   = "search_rank";
 
   public static final String SNIPPET_WRAP = "...";
 
+  /**
+   * The prefix lengths FTS keeps separate indexes for. Queries are always prefix queries, and
+   * without these a short prefix has to be expanded against every term in the index. Changing this
+   * only affects new installs until {@link #maintainIndexes()} rebuilds the tables.
+   */
+  private static final String PREFIX_INDEXES = "2 3";
+
+  @VisibleForTesting
+  static final String FTS_OPTIONS = "prefix='" + PREFIX_INDEXES + "'";
+
+  private static final String[] TRIGGERS = { "sms_ai", "sms_ad", "sms_au", "mms_ai", "mms_ad", "mms_au" };
+
+  private static final String REBUILD_TRIGGER_SUFFIX = "_rebuild";
+  private static final int    REBUILD_CHUNK_SIZE     = 1000;
+
   public static final String[] CREATE_TABLE = {
-      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
+      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ", " + FTS_OPTIONS + ");",
 
       "CREATE TRIGGER sms_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
           "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
@@ -45,7 +73,7 @@ public class SearchDatabase extends Database {
           "END;",
 
 
-      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ");",
+      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ", " + FTS_OPTIONS + ");",
 
       "CREATE TRIGGER mms_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
           "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
@@ -59,7 +87,8 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
+  @VisibleForTesting
+  static final String MESSAGES_QUERY =
       "SELECT " +
         ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
         MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
@@ -150,7 +179,272 @@ public class SearchDatabase extends Database {
                                                                  String.valueOf(threadId) });
   }
 
-  private static String createFullTextSearchQuery(@NonNull String query) {
+  /**
+   * Returns a page of messages matching the query, best match first, as ranked by FTS5's bm25.
+   * Pages are keyed on the last row of the previous one rather than an offset, so fetching a later
+   * page doesn't mean re-reading everything before it.
+   *
+   * @param threadId Limits results to a single thread, or -1 for all of them.
+   * @param after    The {@link PageKey} of the last row of the previous page, or null for the first.
+   */
+  public @Nullable Cursor queryMessagesRanked(@NonNull String query, long threadId, @Nullable PageKey after, int limit) {
+    SQLiteDatabase db                  = databaseHelper.getReadableDatabase();
+    String         fullTextSearchQuery = createFullTextSearchQuery(query);
+
+    if (TextUtils.isEmpty(fullTextSearchQuery)) {
+      return null;
+    }
+
+    List<Object> args = new ArrayList<>();
+    String       sql  = buildRankedMessagesQuery(fullTextSearchQuery, threadId, after, limit, args);
+
+    return db.rawQuery(sql, args.toArray());
+  }
+
+  /**
+   * Rebuilds the FTS tables if they were created with different {@link #PREFIX_INDEXES}, and
+   * otherwise merges their index segments, which accumulate as messages come and go. Both can take
+   * a while on a large database, so this should only be called from a background job.
+   *
+   * The rebuild indexes messages a chunk at a time, each in its own transaction, so that new
+   * messages aren't held up behind it. Searches only see the messages indexed so far until it's
+   * done. If it's interrupted, the next call picks up where it left off.
+   */
+  public void maintainIndexes() {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    long           startTime = System.currentTimeMillis();
+    Set<String>    triggers  = getTriggerNames(db);
+    boolean        current   = hasCurrentOptions(db);
+
+    if (current && triggers.containsAll(Arrays.asList(TRIGGERS))) {
+      db.execSQL("INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ") VALUES('optimize')");
+      db.execSQL("INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + MMS_FTS_TABLE_NAME + ") VALUES('optimize')");
+
+      Log.i(TAG, "Optimized search indexes in " + (System.currentTimeMillis() - startTime) + " ms");
+      return;
+    }
+
+    if (current && triggers.contains(TRIGGERS[0] + REBUILD_TRIGGER_SUFFIX)) {
+      Log.i(TAG, "Resuming search index rebuild");
+    } else {
+      startRebuild(db);
+    }
+
+    int     chunks = 0;
+    boolean done   = false;
+
+    while (!done) {
+      db.beginTransaction();
+      try {
+        indexNextChunk(db, SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME);
+        indexNextChunk(db, MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME);
+
+        done = !hasUnindexedMessages(db, SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME) &&
+               !hasUnindexedMessages(db, MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME);
+
+        if (done) {
+          for (String trigger : TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger + REBUILD_TRIGGER_SUFFIX);
+          }
+
+          for (String statement : CREATE_TABLE) {
+            if (isTrigger(statement)) {
+              db.execSQL(statement);
+            }
+          }
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
+      chunks++;
+    }
+
+    Log.i(TAG, "Rebuilt search indexes with prefix='" + PREFIX_INDEXES + "' in " + chunks + " chunks, " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  /**
+   * Replaces the FTS tables with empty ones, and their triggers with ones that only apply to
+   * messages that have already been indexed again. Everything after that is left to the rebuild.
+   */
+  private static void startRebuild(@NonNull SQLiteDatabase db) {
+    db.beginTransaction();
+    try {
+      for (String trigger : TRIGGERS) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        db.execSQL("DROP TRIGGER IF EXISTS " + trigger + REBUILD_TRIGGER_SUFFIX);
+      }
+
+      db.execSQL("DROP TABLE IF EXISTS " + SMS_FTS_TABLE_NAME);
+      db.execSQL("DROP TABLE IF EXISTS " + MMS_FTS_TABLE_NAME);
+
+      for (String statement : CREATE_TABLE) {
+        db.execSQL(isTrigger(statement) ? toRebuildTrigger(statement) : statement);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static void indexNextChunk(@NonNull SQLiteDatabase db, @NonNull String ftsTable, @NonNull String messageTable) {
+    db.execSQL("INSERT INTO " + ftsTable + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") " +
+               "SELECT " + MmsSmsColumns.ID + ", " + MmsSmsColumns.BODY + ", " + MmsSmsColumns.THREAD_ID + " FROM " + messageTable + " " +
+               "WHERE " + MmsSmsColumns.ID + " > " + getIndexedUpTo(ftsTable) + " " +
+               "ORDER BY " + MmsSmsColumns.ID + " LIMIT " + REBUILD_CHUNK_SIZE);
+  }
+
+  private static boolean hasUnindexedMessages(@NonNull SQLiteDatabase db, @NonNull String ftsTable, @NonNull String messageTable) {
+    String query = "SELECT EXISTS (SELECT 1 FROM " + messageTable + " WHERE " + MmsSmsColumns.ID + " > " + getIndexedUpTo(ftsTable) + ")";
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      return cursor.moveToFirst() && cursor.getInt(0) == 1;
+    }
+  }
+
+  /**
+   * The highest message id in the index. Messages are indexed in id order and new ones always get a
+   * higher id, so everything at or below it has been indexed, and nothing above it has.
+   */
+  private static @NonNull String getIndexedUpTo(@NonNull String ftsTable) {
+    return "(SELECT IFNULL(MAX(id), 0) FROM " + ftsTable + "_docsize)";
+  }
+
+  private static boolean isTrigger(@NonNull String statement) {
+    return statement.startsWith("CREATE TRIGGER ");
+  }
+
+  /**
+   * Renames one of the triggers from {@link #CREATE_TABLE}, and limits it to messages the rebuild
+   * has already indexed. Updating or deleting a message the index doesn't have yet would corrupt it.
+   */
+  private static @NonNull String toRebuildTrigger(@NonNull String statement) {
+    for (String trigger : TRIGGERS) {
+      if (statement.startsWith("CREATE TRIGGER " + trigger + " ")) {
+        String ftsTable = trigger.startsWith("sms") ? SMS_FTS_TABLE_NAME : MMS_FTS_TABLE_NAME;
+        String row      = trigger.endsWith("_ai") ? "new" : "old";
+
+        return statement.replace("CREATE TRIGGER " + trigger + " ", "CREATE TRIGGER " + trigger + REBUILD_TRIGGER_SUFFIX + " ")
+                        .replace(" BEGIN\n", " WHEN " + row + "." + MmsSmsColumns.ID + " <= " + getIndexedUpTo(ftsTable) + " BEGIN\n");
+      }
+    }
+
+    throw new IllegalArgumentException("Not a search trigger: " + statement);
+  }
+
+  private static @NonNull Set<String> getTriggerNames(@NonNull SQLiteDatabase db) {
+    Set<String> names = new HashSet<>();
+
+    try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger'", null)) {
+      while (cursor.moveToNext()) {
+        names.add(cursor.getString(0));
+      }
+    }
+
+    return names;
+  }
+
+  private static boolean hasCurrentOptions(@NonNull SQLiteDatabase db) {
+    String[] args = new String[] { SMS_FTS_TABLE_NAME, MMS_FTS_TABLE_NAME };
+
+    try (Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE name IN (?, ?)", args)) {
+      int count = 0;
+
+      while (cursor.moveToNext()) {
+        String sql = cursor.getString(0);
+
+        if (sql == null || !sql.contains(FTS_OPTIONS)) {
+          return false;
+        }
+
+        count++;
+      }
+
+      return count == args.length;
+    }
+  }
+
+  @VisibleForTesting
+  static @NonNull String buildRankedMessagesQuery(@NonNull String fullTextSearchQuery, long threadId, @Nullable PageKey after, int limit, @NonNull List<Object> args) {
+    String sms = buildRankedQuery(SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, false, fullTextSearchQuery, threadId, after, limit, args);
+    String mms = buildRankedQuery(MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, true, fullTextSearchQuery, threadId, after, limit, args);
+
+    args.add(limit);
+
+    return "SELECT * FROM (" + sms + ") " +
+           "UNION ALL " +
+           "SELECT * FROM (" + mms + ") " +
+           "ORDER BY " + RANK + ", " + IS_MMS + ", " + MESSAGE_ID + " " +
+           "LIMIT ?";
+  }
+
+  /**
+   * Builds the query for one of the message tables, adding its arguments to the list. The key is
+   * (rank, is_mms, message_id), and since is_mms is fixed within a table, the comparison against the
+   * previous page's key simplifies to a different condition for each table.
+   */
+  private static @NonNull String buildRankedQuery(@NonNull String ftsTable,
+                                                  @NonNull String messageTable,
+                                                  @NonNull String dateReceived,
+                                                  boolean isMms,
+                                                  @NonNull String fullTextSearchQuery,
+                                                  long threadId,
+                                                  @Nullable PageKey after,
+                                                  int limit,
+                                                  @NonNull List<Object> args)
+  {
+    StringBuilder query = new StringBuilder();
+
+    query.append("SELECT ")
+         .append(ThreadDatabase.TABLE_NAME).append(".").append(ThreadDatabase.RECIPIENT_ID).append(" AS ").append(CONVERSATION_RECIPIENT).append(", ")
+         .append(MmsSmsColumns.RECIPIENT_ID).append(" AS ").append(MESSAGE_RECIPIENT).append(", ")
+         .append("snippet(").append(ftsTable).append(", -1, '', '', '").append(SNIPPET_WRAP).append("', 7) AS ").append(SNIPPET).append(", ")
+         .append(messageTable).append(".").append(dateReceived).append(" AS ").append(MmsSmsColumns.NORMALIZED_DATE_RECEIVED).append(", ")
+         .append(ftsTable).append(".").append(THREAD_ID).append(", ")
+         .append(ftsTable).append(".").append(BODY).append(", ")
+         .append(ftsTable).append(".").append(ID).append(" AS ").append(MESSAGE_ID).append(", ")
+         .append(isMms ? 1 : 0).append(" AS ").append(IS_MMS).append(", ")
+         .append(ftsTable).append(".rank AS ").append(RANK).append(" ")
+         .append("FROM ").append(messageTable).append(" ")
+         .append("INNER JOIN ").append(ftsTable).append(" ON ").append(ftsTable).append(".").append(ID).append(" = ").append(messageTable).append(".").append(MmsSmsColumns.ID).append(" ")
+         .append("INNER JOIN ").append(ThreadDatabase.TABLE_NAME).append(" ON ").append(ftsTable).append(".").append(THREAD_ID).append(" = ").append(ThreadDatabase.TABLE_NAME).append(".").append(ThreadDatabase.ID).append(" ")
+         .append("WHERE ").append(ftsTable).append(" MATCH ?");
+
+    args.add(fullTextSearchQuery);
+
+    if (threadId != -1) {
+      query.append(" AND ").append(messageTable).append(".").append(MmsSmsColumns.THREAD_ID).append(" = ?");
+      args.add(threadId);
+    }
+
+    if (after != null) {
+      double rank = after.rank;
+
+      if (isMms == after.isMms) {
+        query.append(" AND (").append(ftsTable).append(".rank > ? OR (").append(ftsTable).append(".rank = ? AND ").append(ftsTable).append(".").append(ID).append(" > ?))");
+        args.add(rank);
+        args.add(rank);
+        args.add(after.messageId);
+      } else if (isMms) {
+        query.append(" AND ").append(ftsTable).append(".rank >= ?");
+        args.add(rank);
+      } else {
+        query.append(" AND ").append(ftsTable).append(".rank > ?");
+        args.add(rank);
+      }
+    }
+
+    query.append(" ORDER BY ").append(RANK).append(", ").append(MESSAGE_ID).append(" LIMIT ?");
+    args.add(limit);
+
+    return query.toString();
+  }
+
+  @VisibleForTesting
+  static String createFullTextSearchQuery(@NonNull String query) {
     return Stream.of(query.split(" "))
                  .map(String::trim)
                  .filter(s -> s.length() > 0)
@@ -162,5 +456,25 @@ public class SearchDatabase extends Database {
   private static String fullTextSearchEscape(String s) {
     return "\"" + s.replace("\"", "\"\"") + "\"";
   }
-}
 
+  /**
+   * Identifies the last row of a page of {@link #queryMessagesRanked} results.
+   */
+  public static final class PageKey {
+    private final double  rank;
+    private final boolean isMms;
+    private final long    messageId;
+
+    private PageKey(double rank, boolean isMms, long messageId) {
+      this.rank      = rank;
+      this.isMms     = isMms;
+      this.messageId = messageId;
+    }
+
+    public static @NonNull PageKey fromCursor(@NonNull android.database.Cursor cursor) {
+      return new PageKey(cursor.getDouble(cursor.getColumnIndexOrThrow(RANK)),
+                         CursorUtil.requireInt(cursor, IS_MMS) == 1,
+                         CursorUtil.requireLong(cursor, MESSAGE_ID));
+    }
+  }
+}
@@ -0,0 +1,454 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps recently used {@link SessionRecord}s in memory, so that decrypting a run of messages from
+ * the same sender doesn't read the same row for every one of them.
+ * <p>
+ * Records are kept serialized, and every load parses a new instance. libsignal changes the record
+ * it's given as it works, even when the operation goes on to fail, so a shared instance could
+ * carry those changes over to the next caller, who might then store them.
+ * <p>
+ * Stores are written back rather than through. A record is serialized as it's stored, and the bytes
+ * are held until the storing thread calls {@link #flushStoredOnThisThread()}, which
+ * {@link org.thoughtcrime.securesms.crypto.DatabaseSessionLock} does as it's released, or until it
+ * has stored enough to be worth writing as one batch. Each thread only writes what it stored itself,
+ * while it still holds the lock for those sessions. A record that's evicted while it's waiting to be
+ * written is read back from its pending bytes.
+ * <p>
+ * A thread can also defer its writes, and hand what it stored off to be written later, once
+ * something else has been saved first. Until then those sessions are held, and other threads that
+ * store them leave the writing to whoever releases the last hold.
+ * <p>
+ * Every change to the sessions table has to go through here, or be followed by
+ * {@link #invalidate(RecipientId)}.
+ */
+final class SessionCache {
+
+  private final Backing                           backing;
+  private final int                               maxPendingWrites;
+  private final Map<Key, Optional<byte[]>>        entries;
+  private final Map<Key, PendingWrite>            pending        = new LinkedHashMap<>();
+  private final Object                            writeLock      = new Object();
+  private final Map<Key, Integer>                 holds          = new LinkedHashMap<>();
+  private final ThreadLocal<Set<Key>>             storedOnThread = new ThreadLocal<Set<Key>>() {
+    @Override
+    protected Set<Key> initialValue() {
+      return new LinkedHashSet<>();
+    }
+  };
+  private final ThreadLocal<Set<Key>>             deferred       = new ThreadLocal<>();
+
+  private long generation;
+  private long version;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long writes;
+  private long flushes;
+
+  SessionCache(@NonNull Backing backing, int maxSize, int maxPendingWrites) {
+    this.backing          = backing;
+    this.maxPendingWrites = maxPendingWrites;
+    this.entries          = new LinkedHashMap<Key, Optional<byte[]>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Optional<byte[]>> eldest) {
+        if (size() > maxSize) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return A new instance of the session, which may not have been written yet, or null if there
+   *         isn't one. Changing it has no effect unless it's stored.
+   */
+  @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId) {
+    Key  key = new Key(recipientId, deviceId);
+    long loadGeneration;
+
+    synchronized (this) {
+      Optional<byte[]> cached = entries.get(key);
+      if (cached != null) {
+        hits++;
+        return cached.isPresent() ? toRecord(cached.get()) : null;
+      }
+
+      PendingWrite pendingWrite = pending.get(key);
+      if (pendingWrite != null) {
+        hits++;
+        entries.put(key, Optional.of(pendingWrite.serialized));
+        return toRecord(pendingWrite.serialized);
+      }
+
+      misses++;
+      loadGeneration = generation;
+    }
+
+    SessionRecord record = backing.load(recipientId, deviceId);
+    byte[]        loaded = record != null ? record.serialize() : null;
+
+    synchronized (this) {
+      if (generation == loadGeneration) {
+        entries.put(key, Optional.fromNullable(loaded));
+      }
+    }
+
+    return record;
+  }
+
+  /**
+   * Keeps the record as it is right now. Later changes to the same instance aren't seen by loads or
+   * written unless it's stored again.
+   */
+  void store(@NonNull RecipientId recipientId, int deviceId, @NonNull SessionRecord record) {
+    Key    key        = new Key(recipientId, deviceId);
+    byte[] serialized = record.serialize();
+
+    synchronized (this) {
+      entries.put(key, Optional.of(serialized));
+      pending.put(key, new PendingWrite(serialized, ++version));
+      generation++;
+      writes++;
+    }
+
+    Set<Key> stored = storedOnThread.get();
+    stored.add(key);
+
+    if (stored.size() >= maxPendingWrites) {
+      flushStoredOnThisThread();
+    }
+  }
+
+  /**
+   * Writes out the sessions this thread has stored since it last flushed, as one batch. Sessions
+   * stored by other threads are left for them.
+   */
+  void flushStoredOnThisThread() {
+    Set<Key> stored = storedOnThread.get();
+
+    if (stored.isEmpty()) {
+      return;
+    }
+
+    Collection<Key> keys = new ArrayList<>(stored);
+    stored.clear();
+
+    Set<Key> deferredKeys = deferred.get();
+
+    if (deferredKeys != null) {
+      deferredKeys.addAll(keys);
+    } else {
+      write(keys);
+    }
+  }
+
+  /**
+   * Until {@link #endDeferringWrites()}, sessions stored on this thread aren't written when it
+   * flushes.
+   */
+  void beginDeferringWrites() {
+    if (deferred.get() != null) {
+      throw new IllegalStateException("Already deferring writes!");
+    }
+    deferred.set(new LinkedHashSet<>());
+  }
+
+  /**
+   * @return The sessions stored on this thread since {@link #beginDeferringWrites()}. They're held
+   *         until passed to {@link #releaseHeld(Collection)} or {@link #discardHeld(Collection)}.
+   */
+  @NonNull Collection<Key> endDeferringWrites() {
+    Set<Key> keys = deferred.get();
+
+    if (keys == null) {
+      throw new IllegalStateException("Not deferring writes!");
+    }
+
+    deferred.remove();
+
+    Set<Key> stored = storedOnThread.get();
+    keys.addAll(stored);
+    stored.clear();
+
+    synchronized (this) {
+      for (Key key : keys) {
+        Integer count = holds.get(key);
+        holds.put(key, count != null ? count + 1 : 1);
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Lets go of held sessions, writing any that nothing else is holding.
+   */
+  void releaseHeld(@NonNull Collection<Key> keys) {
+    write(unhold(keys));
+  }
+
+  /**
+   * Lets go of held sessions without writing them, and forgets what's been stored for them since
+   * they were last written, even if something else still holds them, so that they're read back from
+   * disk as they were before. For when whatever had to be saved first wasn't.
+   */
+  void discardHeld(@NonNull Collection<Key> keys) {
+    synchronized (writeLock) {
+      synchronized (this) {
+        unhold(keys);
+
+        for (Key key : keys) {
+          pending.remove(key);
+          entries.remove(key);
+        }
+        generation++;
+      }
+    }
+  }
+
+  /**
+   * @return The keys that are no longer held by anything.
+   */
+  private synchronized @NonNull Collection<Key> unhold(@NonNull Collection<Key> keys) {
+    List<Key> released = new ArrayList<>(keys.size());
+
+    for (Key key : keys) {
+      Integer count = holds.get(key);
+
+      if (count == null || count <= 1) {
+        holds.remove(key);
+        released.add(key);
+      } else {
+        holds.put(key, count - 1);
+      }
+    }
+
+    return released;
+  }
+
+  /**
+   * Writes out every session that's been stored by any thread since it was last written, as one
+   * batch, including held ones. For reads that go straight to disk and need to see everything.
+   */
+  void flush() {
+    storedOnThread.get().clear();
+    write(null);
+  }
+
+  /**
+   * @param keys The sessions to write, or null for all of them. Held sessions are skipped unless
+   *             all of them are being written.
+   */
+  private void write(@Nullable Collection<Key> keys) {
+    synchronized (writeLock) {
+      Map<Key, PendingWrite> batch = new LinkedHashMap<>();
+
+      synchronized (this) {
+        if (keys == null) {
+          batch.putAll(pending);
+        } else {
+          for (Key key : keys) {
+            PendingWrite pendingWrite = pending.get(key);
+            if (pendingWrite != null && !holds.containsKey(key)) {
+              batch.put(key, pendingWrite);
+            }
+          }
+        }
+      }
+
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      Map<Key, byte[]> serialized = new LinkedHashMap<>(batch.size());
+      for (Map.Entry<Key, PendingWrite> entry : batch.entrySet()) {
+        serialized.put(entry.getKey(), entry.getValue().serialized);
+      }
+
+      backing.write(serialized);
+
+      synchronized (this) {
+        for (Map.Entry<Key, PendingWrite> written : batch.entrySet()) {
+          PendingWrite current = pending.get(written.getKey());
+
+          if (current != null && current.version == written.getValue().version) {
+            pending.remove(written.getKey());
+          }
+        }
+        flushes++;
+      }
+    }
+  }
+
+  synchronized boolean hasPendingWrites() {
+    return !pending.isEmpty();
+  }
+
+  void delete(@NonNull RecipientId recipientId, int deviceId) {
+    synchronized (writeLock) {
+      synchronized (this) {
+        Key key = new Key(recipientId, deviceId);
+        pending.remove(key);
+        entries.put(key, Optional.absent());
+        generation++;
+      }
+
+      backing.delete(recipientId, deviceId);
+    }
+  }
+
+  void deleteAll(@NonNull RecipientId recipientId) {
+    synchronized (writeLock) {
+      synchronized (this) {
+        removeAllFor(recipientId);
+      }
+
+      backing.deleteAll(recipientId);
+    }
+  }
+
+  /**
+   * Writes out anything pending and then forgets everything cached for the recipient. For when
+   * their rows have been changed without going through this cache.
+   */
+  void invalidate(@NonNull RecipientId recipientId) {
+    flush();
+
+    synchronized (this) {
+      removeAllFor(recipientId);
+    }
+  }
+
+  synchronized @NonNull String getDebugInfo() {
+    long total = hits + misses;
+
+    return String.format(Locale.US,
+                         "Size: %d\n" +
+                         "Hits: %d (%.1f%%)\n" +
+                         "Misses: %d\n" +
+                         "Evictions: %d\n" +
+                         "Writes: %d in %d flushes\n" +
+                         "Pending: %d\n",
+                         entries.size(),
+                         hits,
+                         total > 0 ? hits * 100f / total : 0f,
+                         misses,
+                         evictions,
+                         writes,
+                         flushes,
+                         pending.size());
+  }
+
+  synchronized long getHitCount() {
+    return hits;
+  }
+
+  synchronized long getMissCount() {
+    return misses;
+  }
+
+  private void removeAllFor(@NonNull RecipientId recipientId) {
+    removeAllFor(entries, recipientId);
+    removeAllFor(pending, recipientId);
+    generation++;
+  }
+
+  private static void removeAllFor(@NonNull Map<Key, ?> map, @NonNull RecipientId recipientId) {
+    Iterator<Key> keys = map.keySet().iterator();
+
+    while (keys.hasNext()) {
+      if (keys.next().recipientId.equals(recipientId)) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * The bytes only ever come from {@link SessionRecord#serialize()}, so they can always be parsed.
+   */
+  private static @NonNull SessionRecord toRecord(@NonNull byte[] serialized) {
+    try {
+      return new SessionRecord(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Where sessions are actually kept.
+   */
+  interface Backing {
+    @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId);
+
+    /**
+     * Writes every serialized record in the batch, ideally in a single transaction.
+     */
+    void write(@NonNull Map<Key, byte[]> batch);
+
+    void delete(@NonNull RecipientId recipientId, int deviceId);
+
+    void deleteAll(@NonNull RecipientId recipientId);
+  }
+
+  private static final class PendingWrite {
+    private final byte[] serialized;
+    private final long   version;
+
+    private PendingWrite(@NonNull byte[] serialized, long version) {
+      this.serialized = serialized;
+      this.version    = version;
+    }
+  }
+
+  static final class Key {
+    private final RecipientId recipientId;
+    private final int         deviceId;
+
+    Key(@NonNull RecipientId recipientId, int deviceId) {
+      this.recipientId = recipientId;
+      this.deviceId    = deviceId;
+    }
+
+    @NonNull RecipientId getRecipientId() {
+      return recipientId;
+    }
+
+    int getDeviceId() {
+      return deviceId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key other = (Key) o;
+      return deviceId == other.deviceId && recipientId.equals(other.recipientId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * recipientId.hashCode() + deviceId;
+    }
+  }
+}
@@ -18,8 +18,10 @@ import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class SessionDatabase extends Database {
 
@@ -37,22 +39,89 @@ public class SessionDatabase extends Database {
       DEVICE + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
       "UNIQUE(" + RECIPIENT_ID + "," + DEVICE + ") ON CONFLICT REPLACE);";
 
+  private static final int MAX_CACHED_SESSIONS = 200;
+  private static final int MAX_PENDING_WRITES  = 50;
+
+  private final SessionCache cache;
+
   SessionDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
+    this.cache = new SessionCache(new DiskBacking(), MAX_CACHED_SESSIONS, MAX_PENDING_WRITES);
   }
 
+  /**
+   * Stores the session in memory as it is right now. It's written to disk by
+   * {@link #flushStoredOnThisThread()}, which happens when the
+   * {@link org.thoughtcrime.securesms.crypto.DatabaseSessionLock} is released, so callers must be
+   * holding it.
+   */
   public void store(@NonNull RecipientId recipientId, int deviceId, @NonNull SessionRecord record) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    cache.store(recipientId, deviceId, record);
+  }
 
-    ContentValues values = new ContentValues();
-    values.put(RECIPIENT_ID, recipientId.serialize());
-    values.put(DEVICE, deviceId);
-    values.put(RECORD, record.serialize());
+  public @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId) {
+    return cache.load(recipientId, deviceId);
+  }
 
-    database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  /**
+   * Writes the sessions the current thread has stored but not yet written to disk.
+   */
+  public void flushStoredOnThisThread() {
+    cache.flushStoredOnThisThread();
   }
 
-  public @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId) {
+  /**
+   * Until {@link #endDeferringWrites()}, sessions stored on the current thread aren't written when
+   * the {@link org.thoughtcrime.securesms.crypto.DatabaseSessionLock} is released. For when they
+   * must not reach disk before something that depends on them has been saved.
+   */
+  public void beginDeferringWrites() {
+    cache.beginDeferringWrites();
+  }
+
+  /**
+   * @return The sessions stored since {@link #beginDeferringWrites()}. They must be passed to
+   *         either {@link #writeHeld(HeldSessions)} or {@link #discardHeld(HeldSessions)}.
+   */
+  public @NonNull HeldSessions endDeferringWrites() {
+    return new HeldSessions(cache.endDeferringWrites());
+  }
+
+  /**
+   * Writes held sessions, once nothing else holds them.
+   */
+  public void writeHeld(@NonNull HeldSessions held) {
+    cache.releaseHeld(held.keys);
+  }
+
+  /**
+   * Drops held sessions without writing them, so they're read back from disk as they were before.
+   */
+  public void discardHeld(@NonNull HeldSessions held) {
+    cache.discardHeld(held.keys);
+  }
+
+  /**
+   * Writes any sessions that have been stored but not yet written to disk, by any thread.
+   */
+  public void flush() {
+    if (cache.hasPendingWrites()) {
+      cache.flush();
+    }
+  }
+
+  /**
+   * Forgets any cached sessions for the recipient, for when their rows have been changed directly.
+   */
+  public void invalidate(@NonNull RecipientId recipientId) {
+    cache.invalidate(recipientId);
+  }
+
+  public @NonNull String getCacheDebugInfo() {
+    return cache.getDebugInfo();
+  }
+
+  private @Nullable SessionRecord loadFromDisk(@NonNull RecipientId recipientId, int deviceId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
     try (Cursor cursor = database.query(TABLE_NAME, new String[]{RECORD},
@@ -73,6 +142,8 @@ public class SessionDatabase extends Database {
   }
 
   public @NonNull List<SessionRow> getAllFor(@NonNull RecipientId recipientId) {
+    flush();
+
     SQLiteDatabase   database = databaseHelper.getReadableDatabase();
     List<SessionRow> results  = new LinkedList<>();
 
@@ -96,6 +167,8 @@ public class SessionDatabase extends Database {
   }
 
   public @NonNull List<SessionRow> getAll() {
+    flush();
+
     SQLiteDatabase   database = databaseHelper.getReadableDatabase();
     List<SessionRow> results  = new LinkedList<>();
 
@@ -115,6 +188,8 @@ public class SessionDatabase extends Database {
   }
 
   public @NonNull List<Integer> getSubDevices(@NonNull RecipientId recipientId) {
+    flush();
+
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     List<Integer>  results  = new LinkedList<>();
 
@@ -136,18 +211,16 @@ public class SessionDatabase extends Database {
   }
 
   public void delete(@NonNull RecipientId recipientId, int deviceId) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-
-    database.delete(TABLE_NAME, RECIPIENT_ID + " = ? AND " + DEVICE + " = ?",
-                    new String[] {recipientId.serialize(), String.valueOf(deviceId)});
+    cache.delete(recipientId, deviceId);
   }
 
   public void deleteAllFor(@NonNull RecipientId recipientId) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, RECIPIENT_ID + " = ?", new String[] {recipientId.serialize()});
+    cache.deleteAll(recipientId);
   }
 
   public boolean hasSessionFor(@NonNull RecipientId recipientId) {
+    flush();
+
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     String         query    = RECIPIENT_ID + " = ?";
     String[]       args     = SqlUtil.buildArgs(recipientId);
@@ -157,6 +230,59 @@ public class SessionDatabase extends Database {
     }
   }
 
+  private final class DiskBacking implements SessionCache.Backing {
+
+    @Override
+    public @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId) {
+      return loadFromDisk(recipientId, deviceId);
+    }
+
+    @Override
+    public void write(@NonNull Map<SessionCache.Key, byte[]> batch) {
+      SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+      database.beginTransaction();
+      try {
+        for (Map.Entry<SessionCache.Key, byte[]> entry : batch.entrySet()) {
+          ContentValues values = new ContentValues();
+          values.put(RECIPIENT_ID, entry.getKey().getRecipientId().serialize());
+          values.put(DEVICE, entry.getKey().getDeviceId());
+          values.put(RECORD, entry.getValue());
+
+          database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+    }
+
+    @Override
+    public void delete(@NonNull RecipientId recipientId, int deviceId) {
+      SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+      database.delete(TABLE_NAME, RECIPIENT_ID + " = ? AND " + DEVICE + " = ?",
+                      new String[] {recipientId.serialize(), String.valueOf(deviceId)});
+    }
+
+    @Override
+    public void deleteAll(@NonNull RecipientId recipientId) {
+      SQLiteDatabase database = databaseHelper.getWritableDatabase();
+      database.delete(TABLE_NAME, RECIPIENT_ID + " = ?", new String[] {recipientId.serialize()});
+    }
+  }
+
+  /**
+   * Sessions whose writes were deferred, and are waiting to be written or discarded.
+   */
+  public static final class HeldSessions {
+    private final Collection<SessionCache.Key> keys;
+
+    private HeldSessions(@NonNull Collection<SessionCache.Key> keys) {
+      this.keys = keys;
+    }
+  }
+
   public static final class SessionRow {
     private final RecipientId   recipientId;
     private final int           deviceId;
@@ -265,12 +265,12 @@ public class ThreadDatabase extends Database {
       attachmentDatabase.trimAllAbandonedAttachments();
       groupReceiptDatabase.deleteAbandonedRows();
       mentionDatabase.deleteAbandonedMentions();
-      attachmentDatabase.deleteAbandonedAttachmentFiles();
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
 
+    attachmentDatabase.deleteAbandonedAttachmentFiles();
 
     notifyAttachmentListeners();
     notifyStickerListeners();
@@ -296,12 +296,12 @@ public class ThreadDatabase extends Database {
       attachmentDatabase.trimAllAbandonedAttachments();
       groupReceiptDatabase.deleteAbandonedRows();
       mentionDatabase.deleteAbandonedMentions();
-      attachmentDatabase.deleteAbandonedAttachmentFiles();
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
 
+    attachmentDatabase.deleteAbandonedAttachmentFiles();
 
     notifyAttachmentListeners();
     notifyStickerListeners();
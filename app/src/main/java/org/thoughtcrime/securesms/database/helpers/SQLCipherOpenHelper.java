@@ -171,8 +171,9 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
   private static final int SPLIT_SYSTEM_NAMES               = 90;
   private static final int PAYMENTS                         = 91;
   private static final int CLEAN_STORAGE_IDS                = 92;
+  private static final int PART_FILE_REF_COUNTS             = 93;
 
-  private static final int    DATABASE_VERSION = 92;
+  private static final int    DATABASE_VERSION = 93;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -190,6 +191,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     db.execSQL(SmsDatabase.CREATE_TABLE);
     db.execSQL(MmsDatabase.CREATE_TABLE);
     db.execSQL(AttachmentDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_FILE_TABLE);
     db.execSQL(ThreadDatabase.CREATE_TABLE);
     db.execSQL(IdentityDatabase.CREATE_TABLE);
     db.execSQL(DraftDatabase.CREATE_TABLE);
@@ -220,6 +222,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     executeStatements(db, MentionDatabase.CREATE_INDEXES);
     executeStatements(db, PaymentDatabase.CREATE_INDEXES);
 
+    executeStatements(db, AttachmentDatabase.CREATE_FILE_TRIGGERS);
+
     if (context.getDatabasePath(ClassicOpenHelper.NAME).exists()) {
       ClassicOpenHelper                      legacyHelper = new ClassicOpenHelper(context);
       android.database.sqlite.SQLiteDatabase legacyDb     = legacyHelper.getWritableDatabase();
@@ -1299,6 +1303,30 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
         Log.i(TAG, "There were " + count + " bad rows that had their storageID removed.");
       }
 
+      if (oldVersion < PART_FILE_REF_COUNTS) {
+        db.execSQL("CREATE TABLE part_file (_data TEXT PRIMARY KEY, ref_count INTEGER NOT NULL DEFAULT 0)");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS part_file_insert AFTER INSERT ON part WHEN new._data NOT NULL AND new.quote IS NOT 1 " +
+                   "BEGIN " +
+                     "INSERT OR IGNORE INTO part_file (_data) VALUES (new._data); " +
+                     "UPDATE part_file SET ref_count = ref_count + 1 WHERE _data = new._data; " +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS part_file_delete AFTER DELETE ON part WHEN old._data NOT NULL AND old.quote IS NOT 1 " +
+                   "BEGIN " +
+                     "UPDATE part_file SET ref_count = ref_count - 1 WHERE _data = old._data; " +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS part_file_update AFTER UPDATE OF _data, quote ON part WHEN old._data IS NOT new._data OR old.quote IS NOT new.quote " +
+                   "BEGIN " +
+                     "UPDATE part_file SET ref_count = ref_count - 1 WHERE _data = old._data AND old.quote IS NOT 1; " +
+                     "INSERT OR IGNORE INTO part_file (_data) SELECT new._data WHERE new._data NOT NULL AND new.quote IS NOT 1; " +
+                     "UPDATE part_file SET ref_count = ref_count + 1 WHERE _data = new._data AND new.quote IS NOT 1; " +
+                   "END;");
+
+        db.execSQL("INSERT INTO part_file (_data, ref_count) SELECT _data, COUNT(*) FROM part WHERE _data NOT NULL AND quote IS NOT 1 GROUP BY _data");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
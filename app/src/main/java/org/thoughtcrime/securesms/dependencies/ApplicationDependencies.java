@@ -59,6 +59,7 @@ public class ApplicationDependencies {
   private static MessageNotifier       messageNotifier;
   private static AppForegroundObserver appForegroundObserver;
 
+  private static volatile SignalServiceNetworkAccess   signalServiceNetworkAccess;
   private static volatile SignalServiceAccountManager  accountManager;
   private static volatile SignalServiceMessageSender   messageSender;
   private static volatile SignalServiceMessageReceiver messageReceiver;
@@ -212,10 +213,11 @@ public class ApplicationDependencies {
         messageSender.cancelInFlightRequests();
       }
 
-      incomingMessageObserver = null;
-      messageReceiver         = null;
-      accountManager          = null;
-      messageSender           = null;
+      incomingMessageObserver    = null;
+      messageReceiver            = null;
+      accountManager             = null;
+      messageSender              = null;
+      signalServiceNetworkAccess = null;
     }
   }
 
@@ -226,8 +228,20 @@ public class ApplicationDependencies {
     }
   }
 
+  /**
+   * Shared so that everything built from its configurations also shares their HTTP connections.
+   * Rebuilt after {@link #closeConnections()}, since the configurations include the proxy.
+   */
   public static @NonNull SignalServiceNetworkAccess getSignalServiceNetworkAccess() {
-    return provider.provideSignalServiceNetworkAccess();
+    if (signalServiceNetworkAccess == null) {
+      synchronized (LOCK) {
+        if (signalServiceNetworkAccess == null) {
+          signalServiceNetworkAccess = provider.provideSignalServiceNetworkAccess();
+        }
+      }
+    }
+
+    return signalServiceNetworkAccess;
   }
 
   public static @NonNull IncomingMessageProcessor getIncomingMessageProcessor() {
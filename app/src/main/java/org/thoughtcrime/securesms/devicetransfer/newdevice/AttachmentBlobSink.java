@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.devicetransfer.newdevice;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.signal.core.util.logging.Log;
+import org.signal.devicetransfer.BlobSink;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes attachments that arrive over the data streams of a transfer straight into the attachment
+ * directory, encrypted like any other attachment, and holds on to them until the restored database
+ * is ready for them. Blobs are identified by the attachment's row id.
+ * <p>
+ * Lasts as long as the transfer, so attachments received before a reconnect aren't sent again.
+ */
+final class AttachmentBlobSink implements BlobSink {
+
+  private static final String TAG = Log.tag(AttachmentBlobSink.class);
+
+  private final File                    partsDirectory;
+  private final AttachmentSecret        attachmentSecret;
+  private final Map<Long, ReceivedFile> open;
+  private final Map<Long, ReceivedFile> completed;
+
+  AttachmentBlobSink(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret) {
+    this.partsDirectory   = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
+    this.attachmentSecret = attachmentSecret;
+    this.open             = new ConcurrentHashMap<>();
+    this.completed        = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public @NonNull OutputStream open(long id, long length) throws IOException {
+    File                       dataFile = File.createTempFile("part", ".mms", partsDirectory);
+    Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+
+    open.put(id, new ReceivedFile(dataFile, output.first));
+
+    return output.second;
+  }
+
+  @Override
+  public void onComplete(long id) throws IOException {
+    ReceivedFile file = open.remove(id);
+
+    if (file == null) {
+      throw new IOException("Attachment " + id + " was never opened");
+    }
+
+    completed.put(id, file);
+  }
+
+  @Override
+  public void onAbandoned(long id) {
+    ReceivedFile file = open.remove(id);
+
+    if (file != null && !file.dataFile.delete()) {
+      Log.w(TAG, "Unable to delete abandoned attachment " + id);
+    }
+  }
+
+  @Override
+  public @NonNull Set<Long> getCompleted() {
+    return new HashSet<>(completed.keySet());
+  }
+
+  /**
+   * Points each of the restored attachments at its data, and deletes anything received that isn't
+   * needed. Attachments that never arrived are left without data.
+   */
+  void attachTo(@NonNull SQLiteDatabase db, @NonNull List<AttachmentId> attachmentIds) {
+    Map<Long, ReceivedFile> unclaimed = new HashMap<>(completed);
+    int                     missing   = 0;
+
+    db.beginTransaction();
+    try {
+      for (AttachmentId attachmentId : attachmentIds) {
+        ReceivedFile file = unclaimed.remove(attachmentId.getRowId());
+
+        if (file == null) {
+          missing++;
+          continue;
+        }
+
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(AttachmentDatabase.DATA, file.dataFile.getAbsolutePath());
+        contentValues.put(AttachmentDatabase.DATA_RANDOM, file.random);
+
+        db.update(AttachmentDatabase.TABLE_NAME, contentValues,
+                  AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
+                  new String[] { String.valueOf(attachmentId.getRowId()), String.valueOf(attachmentId.getUniqueId()) });
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (ReceivedFile file : unclaimed.values()) {
+      if (!file.dataFile.delete()) {
+        Log.w(TAG, "Unable to delete unclaimed attachment");
+      }
+    }
+
+    Log.i(TAG, "Attached " + (attachmentIds.size() - missing) + " attachments, " + missing + " never arrived, " + unclaimed.size() + " unclaimed");
+
+    completed.clear();
+  }
+
+  private static final class ReceivedFile {
+    private final File   dataFile;
+    private final byte[] random;
+
+    private ReceivedFile(@NonNull File dataFile, @NonNull byte[] random) {
+      this.dataFile = dataFile;
+      this.random   = random;
+    }
+  }
+}
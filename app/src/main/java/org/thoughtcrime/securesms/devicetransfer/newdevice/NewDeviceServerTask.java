@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.devicetransfer.newdevice;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
@@ -10,8 +11,10 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
-import org.signal.devicetransfer.ServerTask;
+import org.signal.devicetransfer.BlobReceiver;
+import org.signal.devicetransfer.ParallelServerTask;
 import org.thoughtcrime.securesms.AppInitialization;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.backup.FullBackupImporter;
@@ -21,24 +24,53 @@ import org.thoughtcrime.securesms.notifications.NotificationChannels;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Performs the restore with the backup data coming in over the input stream. Used in
  * conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * If the old device supports it, larger attachments arrive over separate data streams while the
+ * rest of the backup is restored, and are attached once the restore is done.
  */
-final class NewDeviceServerTask implements ServerTask {
+final class NewDeviceServerTask implements ParallelServerTask {
 
   private static final String TAG = Log.tag(NewDeviceServerTask.class);
 
+  private transient AttachmentBlobSink blobSink;
+  private transient volatile boolean   awaitingBlobs;
+  private transient volatile long      restoredCount;
+
+  @Override
+  public synchronized @NonNull AttachmentBlobSink getBlobSink(@NonNull Context context) {
+    if (blobSink == null) {
+      blobSink = new AttachmentBlobSink(context, AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret());
+    }
+    return blobSink;
+  }
+
   @Override
   public void run(@NonNull Context context, @NonNull InputStream inputStream) {
+    restore(context, inputStream, null);
+  }
+
+  @Override
+  public void run(@NonNull Context context, @NonNull InputStream inputStream, @NonNull BlobReceiver blobReceiver) {
+    restore(context, inputStream, blobReceiver);
+  }
+
+  private void restore(@NonNull Context context, @NonNull InputStream inputStream, @Nullable BlobReceiver blobReceiver) {
     long start = System.currentTimeMillis();
 
     Log.i(TAG, "Starting backup restore.");
 
+    awaitingBlobs = blobReceiver != null;
+
     EventBus.getDefault().register(this);
     try {
-      SQLiteDatabase database = DatabaseFactory.getBackupDatabase(context);
+      SQLiteDatabase     database            = DatabaseFactory.getBackupDatabase(context);
+      List<AttachmentId> externalAttachments = new ArrayList<>();
 
       String passphrase = "deadbeef";
 
@@ -47,7 +79,14 @@ final class NewDeviceServerTask implements ServerTask {
                                     AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                     database,
                                     inputStream,
-                                    passphrase);
+                                    passphrase,
+                                    blobReceiver != null ? (attachmentId, length) -> externalAttachments.add(attachmentId) : null);
+
+      if (blobReceiver != null) {
+        Log.i(TAG, "Waiting for " + externalAttachments.size() + " attachments sent separately.");
+        blobReceiver.awaitCompletion();
+        getBlobSink(context).attachTo(database, externalAttachments);
+      }
 
       DatabaseFactory.upgradeRestored(context, database);
       NotificationChannels.restoreContactNotificationChannels(context);
@@ -55,6 +94,10 @@ final class NewDeviceServerTask implements ServerTask {
       AppInitialization.onPostBackupRestore(context);
 
       Log.i(TAG, "Backup restore complete.");
+
+      if (awaitingBlobs) {
+        EventBus.getDefault().post(new Status(restoredCount, Status.State.SUCCESS));
+      }
     } catch (FullBackupImporter.DatabaseDowngradeException e) {
       Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
       EventBus.getDefault().post(new Status(0, Status.State.FAILURE_VERSION_DOWNGRADE));
@@ -74,7 +117,12 @@ final class NewDeviceServerTask implements ServerTask {
     if (event.getType() == FullBackupBase.BackupEvent.Type.PROGRESS) {
       EventBus.getDefault().post(new Status(event.getCount(), Status.State.IN_PROGRESS));
     } else if (event.getType() == FullBackupBase.BackupEvent.Type.FINISHED) {
-      EventBus.getDefault().post(new Status(event.getCount(), Status.State.SUCCESS));
+      if (awaitingBlobs) {
+        restoredCount = event.getCount();
+        EventBus.getDefault().post(new Status(event.getCount(), Status.State.IN_PROGRESS));
+      } else {
+        EventBus.getDefault().post(new Status(event.getCount(), Status.State.SUCCESS));
+      }
     }
   }
 
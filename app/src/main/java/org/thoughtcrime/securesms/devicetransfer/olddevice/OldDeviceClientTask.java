@@ -3,12 +3,15 @@ package org.thoughtcrime.securesms.devicetransfer.olddevice;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
-import org.signal.devicetransfer.ClientTask;
+import org.signal.devicetransfer.BlobSender;
+import org.signal.devicetransfer.ParallelClientTask;
+import org.signal.devicetransfer.TransferBlob;
 import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -17,22 +20,51 @@ import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.net.DeviceTransferBlockingInterceptor;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
  * Create the backup stream of the old device and sends it over the wire via the output stream.
  * Used in conjunction with {@link org.signal.devicetransfer.DeviceToDeviceTransferService}.
+ * <p>
+ * If the new device supports it, larger attachments are sent over separate data streams, while the
+ * rest of the backup goes over the output stream.
  */
-final class OldDeviceClientTask implements ClientTask {
+final class OldDeviceClientTask implements ParallelClientTask {
 
   private static final String TAG = Log.tag(OldDeviceClientTask.class);
 
-  private static final long PROGRESS_UPDATE_THROTTLE = 250;
+  private static final long PROGRESS_UPDATE_THROTTLE     = 250;
+  private static final int  DATA_STREAMS                 = 4;
+  private static final long MIN_EXTERNAL_ATTACHMENT_SIZE = 64 * 1024;
 
   private long lastProgressUpdate = 0;
 
+  @Override
+  public int getDataStreamCount() {
+    return DATA_STREAMS;
+  }
+
   @Override
   public void run(@NonNull Context context, @NonNull OutputStream outputStream) throws IOException {
+    transfer(context, outputStream, null);
+  }
+
+  @Override
+  public void run(@NonNull Context context, @NonNull OutputStream outputStream, @NonNull BlobSender blobSender) throws IOException {
+    transfer(context, outputStream, (attachmentId, size, opener) -> {
+      if (size < MIN_EXTERNAL_ATTACHMENT_SIZE) {
+        return false;
+      }
+
+      blobSender.send(new AttachmentBlob(attachmentId.getRowId(), size, opener));
+      return true;
+    });
+  }
+
+  private void transfer(@NonNull Context context, @NonNull OutputStream outputStream, @Nullable FullBackupExporter.ExternalAttachments externalAttachments)
+      throws IOException
+  {
     DeviceTransferBlockingInterceptor.getInstance().blockNetwork();
 
     long start = System.currentTimeMillis();
@@ -43,7 +75,8 @@ final class OldDeviceClientTask implements ClientTask {
                                   AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                   DatabaseFactory.getBackupDatabase(context),
                                   outputStream,
-                                  "deadbeef");
+                                  "deadbeef",
+                                  externalAttachments);
     } catch (Exception e) {
       DeviceTransferBlockingInterceptor.getInstance().unblockNetwork();
       throw e;
@@ -71,6 +104,36 @@ final class OldDeviceClientTask implements ClientTask {
     EventBus.getDefault().post(new Status(0, true));
   }
 
+  /**
+   * An attachment's decrypted data, identified by its row id. Opened on the data stream's thread.
+   */
+  private static final class AttachmentBlob implements TransferBlob {
+    private final long                                id;
+    private final long                                length;
+    private final FullBackupExporter.AttachmentOpener opener;
+
+    private AttachmentBlob(long id, long length, @NonNull FullBackupExporter.AttachmentOpener opener) {
+      this.id     = id;
+      this.length = length;
+      this.opener = opener;
+    }
+
+    @Override
+    public long getId() {
+      return id;
+    }
+
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public @NonNull InputStream open() throws IOException {
+      return opener.open();
+    }
+  }
+
   public static final class Status {
     private final long    messages;
     private final boolean done;
@@ -247,6 +247,12 @@ public abstract class Job {
     public static final int    IMMORTAL            = -1;
     public static final int    UNLIMITED           = -1;
 
+    /** For bulk or background work that should yield to everything else. */
+    public static final int PRIORITY_LOW     = -1;
+    public static final int PRIORITY_DEFAULT = 0;
+    /** For work the user is actively waiting on, like sending a message. */
+    public static final int PRIORITY_HIGH    = 1;
+
     private final String       id;
     private final long         createTime;
     private final long         lifespan;
@@ -257,6 +263,7 @@ public abstract class Job {
     private final List<String> constraintKeys;
     private final Data         inputData;
     private final boolean      memoryOnly;
+    private final int          priority;
 
     private Parameters(@NonNull String id,
                        long createTime,
@@ -267,7 +274,8 @@ public abstract class Job {
                        @Nullable String queue,
                        @NonNull List<String> constraintKeys,
                        @Nullable Data inputData,
-                       boolean memoryOnly)
+                       boolean memoryOnly,
+                       int priority)
     {
       this.id                     = id;
       this.createTime             = createTime;
@@ -279,6 +287,7 @@ public abstract class Job {
       this.constraintKeys         = constraintKeys;
       this.inputData              = inputData;
       this.memoryOnly             = memoryOnly;
+      this.priority               = priority;
     }
 
     @NonNull String getId() {
@@ -321,8 +330,12 @@ public abstract class Job {
       return memoryOnly;
     }
 
+    int getPriority() {
+      return priority;
+    }
+
     public Builder toBuilder() {
-      return new Builder(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly);
+      return new Builder(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly, priority);
     }
 
 
@@ -337,13 +350,14 @@ public abstract class Job {
       private List<String> constraintKeys;
       private Data         inputData;
       private boolean      memoryOnly;
+      private int          priority;
 
       public Builder() {
         this(UUID.randomUUID().toString());
       }
 
       Builder(@NonNull String id) {
-        this(id, System.currentTimeMillis(), IMMORTAL, 1, UNLIMITED, UNLIMITED, null, new LinkedList<>(), null, false);
+        this(id, System.currentTimeMillis(), IMMORTAL, 1, UNLIMITED, UNLIMITED, null, new LinkedList<>(), null, false, PRIORITY_DEFAULT);
       }
 
       private Builder(@NonNull String id,
@@ -355,7 +369,8 @@ public abstract class Job {
                       @Nullable String queue,
                       @NonNull List<String> constraintKeys,
                       @Nullable Data inputData,
-                      boolean memoryOnly)
+                      boolean memoryOnly,
+                      int priority)
       {
         this.id                     = id;
         this.createTime             = createTime;
@@ -367,6 +382,7 @@ public abstract class Job {
         this.constraintKeys         = constraintKeys;
         this.inputData              = inputData;
         this.memoryOnly             = memoryOnly;
+        this.priority               = priority;
       }
 
       /** Should only be invoked by {@link JobController} */
@@ -460,6 +476,19 @@ public abstract class Job {
         return this;
       }
 
+      /**
+       * Specify which priority lane this job is scheduled in. When jobs in several lanes are ready
+       * to run, each lane gets a weighted share of the runners, with {@link #PRIORITY_HIGH} getting
+       * the largest share, so a backlog of low priority work can't hold up high priority jobs for
+       * long. Jobs within the same queue still run in order, regardless of priority.
+       *
+       * Defaults to {@link #PRIORITY_DEFAULT}.
+       */
+      public @NonNull Builder setPriority(int priority) {
+        this.priority = priority;
+        return this;
+      }
+
       /**
        * Sets the input data that will be made availabe to the job when it is run.
        * Should only be set by {@link JobController}.
@@ -470,7 +499,7 @@ public abstract class Job {
       }
 
       public @NonNull Parameters build() {
-        return new Parameters(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly);
+        return new Parameters(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly, priority);
       }
     }
   }
@@ -19,20 +19,28 @@ import org.thoughtcrime.securesms.util.Debouncer;
 import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.SetUtil;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * All state changes happen while holding {@link #lock}. Rather than having every idle
+ * {@link JobRunner} wake up and race for the lock whenever anything changes, idle runners park on
+ * their own {@link Condition}. After each state change we find a job for each idle runner that can
+ * run one, hand it over directly, and signal only that runner.
  */
 class JobController {
 
@@ -48,6 +56,9 @@ class JobController {
   private final Debouncer              debouncer;
   private final Callback               callback;
   private final Map<String, Job>       runningJobs;
+  private final ReentrantLock          lock;
+  private final List<IdleRunner>       idleRunners;
+  private final PriorityLaneScheduler  laneScheduler;
 
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
@@ -68,21 +79,44 @@ class JobController {
     this.scheduler              = scheduler;
     this.debouncer              = debouncer;
     this.callback               = callback;
-    this.runningJobs            = new HashMap<>();
+    this.runningJobs            = new ConcurrentHashMap<>();
+    this.lock                   = new ReentrantLock();
+    this.idleRunners            = new LinkedList<>();
+    this.laneScheduler          = new PriorityLaneScheduler();
   }
 
   @WorkerThread
-  synchronized void init() {
-    jobStorage.updateAllJobsToBePending();
-    notifyAll();
+  void init() {
+    lock.lock();
+    try {
+      jobStorage.updateAllJobsToBePending();
+      dispatchToIdleRunners();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized void wakeUp() {
-    notifyAll();
+  void wakeUp() {
+    lock.lock();
+    try {
+      dispatchToIdleRunners();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void submitNewJobChain(@NonNull List<List<Job>> chain) {
+  void submitNewJobChain(@NonNull List<List<Job>> chain) {
+    lock.lock();
+    try {
+      submitNewJobChainInternal(chain);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private void submitNewJobChainInternal(@NonNull List<List<Job>> chain) {
     chain = Stream.of(chain).filterNot(List::isEmpty).toList();
 
     if (chain.isEmpty()) {
@@ -100,11 +134,21 @@ class JobController {
     insertJobChain(chain);
     scheduleJobs(chain.get(0));
     triggerOnSubmit(chain);
-    notifyAll();
+    dispatchToIdleRunners();
   }
 
   @WorkerThread
-  synchronized void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
+  void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
+    lock.lock();
+    try {
+      submitJobWithExistingDependenciesInternal(job, dependsOn, dependsOnQueue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private void submitJobWithExistingDependenciesInternal(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
     List<List<Job>> chain = Collections.singletonList(Collections.singletonList(job));
 
     if (chainExceedsMaximumInstances(chain)) {
@@ -129,7 +173,7 @@ class JobController {
 
     if (jobTracker.haveAnyFailed(allDependsOn)) {
       Log.w(TAG, "This job depends on a job that failed! Failing this job immediately.");
-      List<Job> dependents = onFailure(job);
+      List<Job> dependents = onFailureInternal(job);
       job.setContext(application);
       job.onFailure();
       Stream.of(dependents).forEach(Job::onFailure);
@@ -141,11 +185,21 @@ class JobController {
 
     scheduleJobs(Collections.singletonList(job));
     triggerOnSubmit(chain);
-    notifyAll();
+    dispatchToIdleRunners();
+  }
+
+  @WorkerThread
+  void cancelJob(@NonNull String id) {
+    lock.lock();
+    try {
+      cancelJobInternal(id);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void cancelJob(@NonNull String id) {
+  private void cancelJobInternal(@NonNull String id) {
     Job runningJob = runningJobs.get(id);
 
     if (runningJob != null) {
@@ -160,28 +214,45 @@ class JobController {
         Log.w(TAG, JobLogger.format(job, "Job failed."));
 
         job.cancel();
-        List<Job> dependents = onFailure(job);
+        List<Job> dependents = onFailureInternal(job);
         job.onFailure();
         Stream.of(dependents).forEach(Job::onFailure);
       } else {
         Log.w(TAG, "Tried to cancel JOB::" + id + ", but it could not be found.");
       }
     }
+
+    dispatchToIdleRunners();
   }
 
   @WorkerThread
-  synchronized void cancelAllInQueue(@NonNull String queue) {
-    Stream.of(jobStorage.getJobsInQueue(queue))
-          .map(JobSpec::getId)
-          .forEach(this::cancelJob);
+  void cancelAllInQueue(@NonNull String queue) {
+    lock.lock();
+    try {
+      Stream.of(jobStorage.getJobsInQueue(queue))
+            .map(JobSpec::getId)
+            .forEach(this::cancelJobInternal);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job, long backoffInterval) {
+  void onRetry(@NonNull Job job, long backoffInterval) {
     if (backoffInterval <= 0) {
       throw new IllegalArgumentException("Invalid backoff interval! " + backoffInterval);
     }
 
+    lock.lock();
+    try {
+      onRetryInternal(job, backoffInterval);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private void onRetryInternal(@NonNull Job job, long backoffInterval) {
     int    nextRunAttempt     = job.getRunAttempt() + 1;
     long   nextRunAttemptTime = System.currentTimeMillis() + backoffInterval;
     String serializedData     = dataSerializer.serialize(job.serialize());
@@ -200,15 +271,25 @@ class JobController {
     Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
     scheduler.schedule(delay, constraints);
 
-    notifyAll();
+    dispatchToIdleRunners();
   }
 
-  synchronized void onJobFinished(@NonNull Job job) {
+  void onJobFinished(@NonNull Job job) {
     runningJobs.remove(job.getId());
   }
 
   @WorkerThread
-  synchronized void onSuccess(@NonNull Job job, @Nullable Data outputData) {
+  void onSuccess(@NonNull Job job, @Nullable Data outputData) {
+    lock.lock();
+    try {
+      onSuccessInternal(job, outputData);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private void onSuccessInternal(@NonNull Job job, @Nullable Data outputData) {
     if (outputData != null) {
       List<JobSpec> updates = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
                                     .map(DependencySpec::getJobId)
@@ -221,14 +302,27 @@ class JobController {
 
     jobStorage.deleteJob(job.getId());
     jobTracker.onStateChange(job, JobTracker.JobState.SUCCESS);
-    notifyAll();
+
+    // The runner that ran this job is about to pull its next one, which dispatches to everyone.
   }
 
   /**
    * @return The list of all dependent jobs that should also be failed.
    */
   @WorkerThread
-  synchronized @NonNull List<Job> onFailure(@NonNull Job job) {
+  @NonNull List<Job> onFailure(@NonNull Job job) {
+    lock.lock();
+    try {
+      List<Job> dependents = onFailureInternal(job);
+      dispatchToIdleRunners();
+      return dependents;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private @NonNull List<Job> onFailureInternal(@NonNull Job job) {
     List<Job> dependents = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
                                  .map(DependencySpec::getJobId)
                                  .map(jobStorage::getJobSpec)
@@ -256,28 +350,33 @@ class JobController {
    *
    * This method will block until a job is available.
    * When the job returned from this method has been run, you must call {@link #onJobFinished(Job)}.
+   *
+   * The caller gets the first pick of the eligible jobs, and anything it can't take goes to the
+   * other idle runners in the same pass.
    */
   @WorkerThread
-  synchronized @NonNull Job pullNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
+  @NonNull Job pullNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
+    lock.lock();
     try {
-      Job job;
+      IdleRunner idleRunner = new IdleRunner(predicate, lock.newCondition());
+      idleRunners.add(0, idleRunner);
 
-      while ((job = getNextEligibleJobForExecution(predicate)) == null) {
-        if (runningJobs.isEmpty()) {
-          debouncer.publish(callback::onEmpty);
-        }
+      dispatchToIdleRunners();
 
-        wait();
+      if (idleRunner.job == null && runningJobs.isEmpty()) {
+        debouncer.publish(callback::onEmpty);
       }
 
-      jobStorage.updateJobRunningState(job.getId(), true);
-      runningJobs.put(job.getId(), job);
-      jobTracker.onStateChange(job, JobTracker.JobState.RUNNING);
+      while (idleRunner.job == null) {
+        idleRunner.condition.await();
+      }
 
-      return job;
+      return idleRunner.job;
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted.");
       throw new AssertionError(e);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -285,7 +384,17 @@ class JobController {
    * Retrieves a string representing the state of the job queue. Intended for debugging.
    */
   @WorkerThread
-  synchronized @NonNull String getDebugInfo() {
+  @NonNull String getDebugInfo() {
+    lock.lock();
+    try {
+      return getDebugInfoInternal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private @NonNull String getDebugInfoInternal() {
     List<JobSpec>        jobs         = jobStorage.getAllJobSpecs();
     List<ConstraintSpec> constraints  = jobStorage.getAllConstraintSpecs();
     List<DependencySpec> dependencies = jobStorage.getAllDependencySpecs();
@@ -313,11 +422,98 @@ class JobController {
       info.append("None\n");
     }
 
+    info.append("\n-- Lanes\n");
+    info.append(laneScheduler.getDebugInfo(jobs, System.currentTimeMillis()));
+
     return info.toString();
   }
 
-  synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return jobStorage.areQueuesEmpty(queueKeys);
+  /**
+   * Blocks until all job state changes made so far have been persisted. Intentionally does not
+   * take {@link #lock}, so runners can keep going while we wait.
+   */
+  @WorkerThread
+  void flush() throws IOException {
+    jobStorage.flush();
+  }
+
+  boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    lock.lock();
+    try {
+      return jobStorage.areQueuesEmpty(queueKeys);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hands an eligible job directly to each idle runner that is able to run one, waking only those
+   * runners. Must be called while holding {@link #lock}.
+   *
+   * The eligible jobs are read once, and each is checked at most once, no matter how many runners
+   * are idle. A job that no idle runner will take, or whose constraints aren't met, is dropped from
+   * consideration. After each handoff the rest are put back in lane order, since starting a job
+   * changes which lane goes next.
+   */
+  @WorkerThread
+  private void dispatchToIdleRunners() {
+    if (idleRunners.isEmpty()) {
+      return;
+    }
+
+    List<JobSpec> candidates = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis());
+
+    while (!idleRunners.isEmpty() && !candidates.isEmpty()) {
+      List<JobSpec> remaining  = new ArrayList<>(candidates.size());
+      boolean       dispatched = false;
+
+      for (JobSpec jobSpec : laneScheduler.order(candidates)) {
+        if (dispatched) {
+          remaining.add(jobSpec);
+          continue;
+        }
+
+        IdleRunner idleRunner = findIdleRunner(jobSpec);
+        if (idleRunner == null) {
+          continue;
+        }
+
+        List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
+        if (!areConstraintsMet(constraintSpecs)) {
+          continue;
+        }
+
+        Job job = createJob(jobSpec, constraintSpecs);
+        markJobRunning(job);
+        idleRunners.remove(idleRunner);
+
+        idleRunner.job = job;
+        idleRunner.condition.signal();
+
+        dispatched = true;
+      }
+
+      candidates = remaining;
+    }
+  }
+
+  private @Nullable IdleRunner findIdleRunner(@NonNull JobSpec jobSpec) {
+    for (IdleRunner idleRunner : idleRunners) {
+      if (idleRunner.predicate.shouldRun(jobSpec)) {
+        return idleRunner;
+      }
+    }
+    return null;
+  }
+
+  @WorkerThread
+  private void markJobRunning(@NonNull Job job) {
+    long readyTime = PriorityLaneScheduler.readyTime(job.getParameters().getCreateTime(), job.getNextRunAttemptTime());
+    laneScheduler.onJobStarted(job.getParameters().getPriority(), System.currentTimeMillis() - readyTime);
+
+    jobStorage.updateJobRunningState(job.getId(), true);
+    runningJobs.put(job.getId(), job);
+    jobTracker.onStateChange(job, JobTracker.JobState.RUNNING);
   }
 
   @WorkerThread
@@ -383,7 +579,8 @@ class JobController {
                                   dataSerializer.serialize(job.serialize()),
                                   null,
                                   false,
-                                  job.getParameters().isMemoryOnly());
+                                  job.getParameters().isMemoryOnly(),
+                                  job.getParameters().getPriority());
 
     List<ConstraintSpec> constraintSpecs = Stream.of(job.getParameters().getConstraintKeys())
                                                  .map(key -> new ConstraintSpec(jobSpec.getId(), key, jobSpec.isMemoryOnly()))
@@ -414,25 +611,11 @@ class JobController {
     }
   }
 
-  @WorkerThread
-  private @Nullable Job getNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
-    List<JobSpec> jobSpecs = Stream.of(jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis()))
-                                   .filter(predicate::shouldRun)
-                                   .toList();
-
-    for (JobSpec jobSpec : jobSpecs) {
-      List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
-
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
-        return createJob(jobSpec, constraintSpecs);
-      }
-    }
-
-    return null;
+  private boolean areConstraintsMet(@NonNull List<ConstraintSpec> constraintSpecs) {
+    return Stream.of(constraintSpecs)
+                 .map(ConstraintSpec::getFactoryKey)
+                 .map(constraintInstantiator::instantiate)
+                 .allMatch(Constraint::isMet);
   }
 
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
@@ -469,6 +652,7 @@ class JobController {
                   .setLifespan(jobSpec.getLifespan())
                   .setMaxAttempts(jobSpec.getMaxAttempts())
                   .setQueue(jobSpec.getQueueKey())
+                  .setPriority(jobSpec.getPriority())
                   .setConstraints(Stream.of(constraintSpecs).map(ConstraintSpec::getFactoryKey).toList())
                   .setInputData(jobSpec.getSerializedInputData() != null ? dataSerializer.deserialize(jobSpec.getSerializedInputData()) : null)
                   .build();
@@ -486,10 +670,23 @@ class JobController {
                        jobSpec.getSerializedData(),
                        dataSerializer.serialize(inputData),
                        jobSpec.isRunning(),
-                       jobSpec.isMemoryOnly());
+                       jobSpec.isMemoryOnly(),
+                       jobSpec.getPriority());
   }
 
   interface Callback {
     void onEmpty();
   }
+
+  private static final class IdleRunner {
+    private final JobPredicate predicate;
+    private final Condition    condition;
+
+    private Job job;
+
+    private IdleRunner(@NonNull JobPredicate predicate, @NonNull Condition condition) {
+      this.predicate = predicate;
+      this.condition = condition;
+    }
+  }
 }
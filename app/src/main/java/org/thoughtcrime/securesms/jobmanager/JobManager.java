@@ -21,6 +21,8 @@ import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -315,20 +317,26 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   /**
-   * Blocks until all pending operations are finished.
+   * Blocks until all pending operations are finished and their results have been persisted.
+   *
+   * @throws IOException If interrupted, or if some results could not be persisted. Callers that
+   *                     depend on jobs being saved must not carry on as if they were.
    */
   @WorkerThread
-  public void flush() {
+  public void flush() throws IOException {
     CountDownLatch latch = new CountDownLatch(1);
 
     runOnExecutor(latch::countDown);
 
     try {
       latch.await();
-      Log.i(TAG, "Successfully flushed.");
     } catch (InterruptedException e) {
-      Log.w(TAG, "Failed to finish flushing.", e);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while flushing.");
     }
+
+    jobController.flush();
+    Log.i(TAG, "Successfully flushed.");
   }
 
   /**
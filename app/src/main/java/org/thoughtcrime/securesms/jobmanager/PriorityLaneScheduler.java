@@ -0,0 +1,155 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which priority lane gets the next free runner when jobs from several lanes are ready,
+ * using stride scheduling. Every time a lane starts a job, its pass advances by its stride, which
+ * is inversely proportional to its weight, and the lane with the lowest pass goes next.
+ *
+ * With every lane backlogged, high, default and low priority jobs are started in a 6:3:1 ratio.
+ * Because a high priority lane is never more than one stride behind, at most one job from each
+ * other lane can be started between two high priority jobs, so a ready high priority job is
+ * started within {@link #LANE_COUNT} - 1 dispatches no matter how much other work is pending.
+ *
+ * A lane that had nothing to run doesn't get to bank credit while idle: its pass is brought up to
+ * the global pass when it's considered, so it gets its fair share going forward, but can't starve
+ * the other lanes to catch up.
+ *
+ * Also tracks per-lane wait times, for {@link JobController#getDebugInfo()}.
+ *
+ * Not thread safe. Callers are expected to hold {@link JobController}'s lock.
+ */
+final class PriorityLaneScheduler {
+
+  private static final int   LANE_COUNT = 3;
+  private static final int[] WEIGHTS    = { 6, 3, 1 };
+  private static final int[] STRIDES    = { 10, 20, 60 };
+
+  private final long[] passes;
+  private final long[] startedCounts;
+  private final long[] totalWaitTimes;
+  private final long[] maxWaitTimes;
+
+  private long globalPass;
+
+  PriorityLaneScheduler() {
+    this.passes         = new long[LANE_COUNT];
+    this.startedCounts  = new long[LANE_COUNT];
+    this.totalWaitTimes = new long[LANE_COUNT];
+    this.maxWaitTimes   = new long[LANE_COUNT];
+  }
+
+  /**
+   * Reorders the provided candidates so that lanes come in the order they should be served. Order
+   * within a lane is preserved.
+   */
+  @NonNull List<JobSpec> order(@NonNull List<JobSpec> candidates) {
+    if (candidates.size() <= 1) {
+      return candidates;
+    }
+
+    List<List<JobSpec>> lanes = new ArrayList<>(LANE_COUNT);
+    for (int i = 0; i < LANE_COUNT; i++) {
+      lanes.add(new ArrayList<>());
+    }
+
+    for (JobSpec candidate : candidates) {
+      lanes.get(laneOf(candidate.getPriority())).add(candidate);
+    }
+
+    Integer[] laneOrder = { 0, 1, 2 };
+    Arrays.sort(laneOrder, (a, b) -> {
+      int byPass = Long.compare(effectivePass(a), effectivePass(b));
+      return byPass != 0 ? byPass : Integer.compare(a, b);
+    });
+
+    List<JobSpec> ordered = new ArrayList<>(candidates.size());
+    for (int lane : laneOrder) {
+      ordered.addAll(lanes.get(lane));
+    }
+
+    return ordered;
+  }
+
+  /**
+   * Records that a job with the provided priority was started after being ready for waitTimeMs.
+   */
+  void onJobStarted(int priority, long waitTimeMs) {
+    int  lane  = laneOf(priority);
+    long start = effectivePass(lane);
+
+    passes[lane] = start + STRIDES[lane];
+    globalPass   = start;
+
+    long wait = Math.max(0, waitTimeMs);
+
+    startedCounts[lane]++;
+    totalWaitTimes[lane] += wait;
+    maxWaitTimes[lane]    = Math.max(maxWaitTimes[lane], wait);
+  }
+
+  /**
+   * A summary of each lane, including the depth and oldest wait of the provided pending jobs.
+   */
+  @NonNull String getDebugInfo(@NonNull List<JobSpec> jobs, long now) {
+    int[]  pendingCounts = new int[LANE_COUNT];
+    long[] oldestWaits   = new long[LANE_COUNT];
+
+    for (JobSpec job : jobs) {
+      if (job.isRunning()) continue;
+
+      int lane = laneOf(job.getPriority());
+      pendingCounts[lane]++;
+      oldestWaits[lane] = Math.max(oldestWaits[lane], now - readyTime(job.getCreateTime(), job.getNextRunAttemptTime()));
+    }
+
+    StringBuilder info = new StringBuilder();
+
+    for (int lane = 0; lane < LANE_COUNT; lane++) {
+      long averageWait = startedCounts[lane] > 0 ? totalWaitTimes[lane] / startedCounts[lane] : 0;
+
+      info.append(String.format(Locale.US,
+                                "%s (weight %d) | pending: %d | oldest pending: %d ms | started: %d | avg wait: %d ms | max wait: %d ms\n",
+                                laneName(lane), WEIGHTS[lane], pendingCounts[lane], Math.max(0, oldestWaits[lane]), startedCounts[lane], averageWait, maxWaitTimes[lane]));
+    }
+
+    return info.toString();
+  }
+
+  /**
+   * The time a job became ready to run, as far as its wait time is concerned.
+   */
+  static long readyTime(long createTime, long nextRunAttemptTime) {
+    return Math.max(createTime, nextRunAttemptTime);
+  }
+
+  private long effectivePass(int lane) {
+    return Math.max(passes[lane], globalPass);
+  }
+
+  private static int laneOf(int priority) {
+    if (priority >= Job.Parameters.PRIORITY_HIGH) {
+      return 0;
+    } else if (priority <= Job.Parameters.PRIORITY_LOW) {
+      return 2;
+    } else {
+      return 1;
+    }
+  }
+
+  private static @NonNull String laneName(int lane) {
+    switch (lane) {
+      case 0:  return "HIGH";
+      case 1:  return "DEFAULT";
+      default: return "LOW";
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.JobPredicate;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+/**
+ * A {@link JobPredicate} that will only run jobs with at least the provided priority.
+ */
+public final class PriorityJobPredicate implements JobPredicate {
+
+  private final int minimumPriority;
+
+  public PriorityJobPredicate(int minimumPriority) {
+    this.minimumPriority = minimumPriority;
+  }
+
+  @Override
+  public boolean shouldRun(@NonNull JobSpec jobSpec) {
+    return jobSpec.getPriority() >= minimumPriority;
+  }
+}
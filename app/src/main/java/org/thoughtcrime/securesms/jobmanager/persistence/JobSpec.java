@@ -5,6 +5,8 @@ import android.annotation.SuppressLint;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.thoughtcrime.securesms.jobmanager.Job;
+
 import java.util.Objects;
 
 public final class JobSpec {
@@ -21,6 +23,7 @@ public final class JobSpec {
   private final String  serializedInputData;
   private final boolean isRunning;
   private final boolean memoryOnly;
+  private final int     priority;
 
   public JobSpec(@NonNull String id,
                  @NonNull String factoryKey,
@@ -34,6 +37,23 @@ public final class JobSpec {
                  @Nullable String serializedInputData,
                  boolean isRunning,
                  boolean memoryOnly)
+  {
+    this(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, serializedData, serializedInputData, isRunning, memoryOnly, Job.Parameters.PRIORITY_DEFAULT);
+  }
+
+  public JobSpec(@NonNull String id,
+                 @NonNull String factoryKey,
+                 @Nullable String queueKey,
+                 long createTime,
+                 long nextRunAttemptTime,
+                 int runAttempt,
+                 int maxAttempts,
+                 long lifespan,
+                 @NonNull String serializedData,
+                 @Nullable String serializedInputData,
+                 boolean isRunning,
+                 boolean memoryOnly,
+                 int priority)
   {
     this.id                  = id;
     this.factoryKey          = factoryKey;
@@ -47,6 +67,7 @@ public final class JobSpec {
     this.serializedInputData = serializedInputData;
     this.isRunning           = isRunning;
     this.memoryOnly          = memoryOnly;
+    this.priority            = priority;
   }
 
   public @NonNull String getId() {
@@ -97,6 +118,10 @@ public final class JobSpec {
     return memoryOnly;
   }
 
+  public int getPriority() {
+    return priority;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -109,6 +134,7 @@ public final class JobSpec {
            lifespan == jobSpec.lifespan &&
            isRunning == jobSpec.isRunning &&
            memoryOnly == jobSpec.memoryOnly &&
+           priority == jobSpec.priority &&
            Objects.equals(id, jobSpec.id) &&
            Objects.equals(factoryKey, jobSpec.factoryKey) &&
            Objects.equals(queueKey, jobSpec.queueKey) &&
@@ -118,13 +144,13 @@ public final class JobSpec {
 
   @Override
   public int hashCode() {
-    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, serializedData, serializedInputData, isRunning, memoryOnly);
+    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, serializedData, serializedInputData, isRunning, memoryOnly, priority);
   }
 
   @SuppressLint("DefaultLocale")
   @Override
   public @NonNull String toString() {
-    return String.format("id: JOB::%s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | lifespan: %d | isRunning: %b | memoryOnly: %b",
-                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, isRunning, memoryOnly);
+    return String.format("id: JOB::%s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | lifespan: %d | isRunning: %b | memoryOnly: %b | priority: %d",
+                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, isRunning, memoryOnly, priority);
   }
 }
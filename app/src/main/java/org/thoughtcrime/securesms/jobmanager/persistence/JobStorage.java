@@ -4,6 +4,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -66,4 +67,12 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  /**
+   * Blocks until all previous writes have been persisted.
+   *
+   * @throws IOException If some of them could not be persisted.
+   */
+  @WorkerThread
+  void flush() throws IOException;
 }
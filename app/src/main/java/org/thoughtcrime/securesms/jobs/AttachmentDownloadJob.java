@@ -64,6 +64,7 @@ public final class AttachmentDownloadJob extends BaseJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(manual ? Parameters.PRIORITY_HIGH : Parameters.PRIORITY_LOW)
                            .build(),
          messageId,
          attachmentId,
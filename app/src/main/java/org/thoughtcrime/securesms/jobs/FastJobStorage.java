@@ -204,7 +204,8 @@ public class FastJobStorage implements JobStorage {
                                       existing.getSerializedData(),
                                       existing.getSerializedInputData(),
                                       isRunning,
-                                      existing.isMemoryOnly());
+                                      existing.isMemoryOnly(),
+                                      existing.getPriority());
         iter.set(updated);
       }
     }
@@ -233,7 +234,8 @@ public class FastJobStorage implements JobStorage {
                                       serializedData,
                                       existing.getSerializedInputData(),
                                       isRunning,
-                                      existing.isMemoryOnly());
+                                      existing.isMemoryOnly(),
+                                      existing.getPriority());
         iter.set(updated);
       }
     }
@@ -258,7 +260,8 @@ public class FastJobStorage implements JobStorage {
                                      existing.getSerializedData(),
                                      existing.getSerializedInputData(),
                                      false,
-                                     existing.isMemoryOnly());
+                                     existing.isMemoryOnly(),
+                                     existing.getPriority());
       iter.set(updated);
     }
   }
@@ -384,6 +387,11 @@ public class FastJobStorage implements JobStorage {
                  .toList();
   }
 
+  @Override
+  public void flush() {
+    // Writes are made synchronously, so there's nothing to wait for.
+  }
+
   private JobSpec getJobById(@NonNull String id) {
     for (JobSpec job : jobs) {
       if (job.getId().equals(id)) {
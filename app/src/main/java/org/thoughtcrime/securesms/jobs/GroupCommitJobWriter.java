@@ -0,0 +1,268 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects writes destined for the {@link JobDatabase} and commits them in groups, so that a burst
+ * of job state changes pays for one transaction rather than one per change.
+ *
+ * A group is committed once it has been collecting for {@code maxDelayMs}, or as soon as it
+ * reaches {@code maxBatchSize} writes, whichever comes first. Writes are always applied in the
+ * order they were submitted.
+ *
+ * Crash recovery: writes made with {@link #submit(Write)} are acknowledged before they're durable.
+ * If the process dies before a group is committed, the writes in that group are lost, but because
+ * groups are committed in order and atomically, the database always reflects some prefix of the
+ * submitted writes. That's only safe for writes whose loss the job system already tolerates, like
+ * a deletion (the job runs again, as if we died between finishing it and deleting it) or a state
+ * update (the job is retried from its older state). Writes that must not be lost, like inserting a
+ * new job, should be made with {@link #commit(Write)}, which doesn't return until the write is
+ * durable.
+ *
+ * If a group fails to commit, its writes are dropped and the writer carries on with the next group.
+ * Any {@link #commit(Write)} in that group throws, the next {@link #flush()} throws, and
+ * {@link #getFailureCount()} goes up, so that anything mirroring the writes in memory knows to
+ * reload from the database.
+ */
+public class GroupCommitJobWriter {
+
+  private static final String TAG = Log.tag(GroupCommitJobWriter.class);
+
+  public static final long DEFAULT_MAX_DELAY_MS   = 5;
+  public static final int  DEFAULT_MAX_BATCH_SIZE = 100;
+
+  private final JobDatabase jobDatabase;
+  private final Executor    executor;
+  private final long        maxDelayMs;
+  private final int         maxBatchSize;
+  private final Object      lock;
+
+  private List<Write>      pending;
+  private long             submittedCount;
+  private long             finishedCount;
+  private boolean          commitScheduled;
+  private boolean          flushRequested;
+  private long             failureCount;
+  private long             reportedFailureCount;
+  private RuntimeException lastFailure;
+
+  public GroupCommitJobWriter(@NonNull JobDatabase jobDatabase) {
+    this(jobDatabase, SignalExecutors.newCachedSingleThreadExecutor("signal-JobWriter"), DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  @VisibleForTesting
+  GroupCommitJobWriter(@NonNull JobDatabase jobDatabase, @NonNull Executor executor, long maxDelayMs, int maxBatchSize) {
+    this.jobDatabase  = jobDatabase;
+    this.executor     = executor;
+    this.maxDelayMs   = maxDelayMs;
+    this.maxBatchSize = maxBatchSize;
+    this.lock         = new Object();
+    this.pending      = new ArrayList<>();
+  }
+
+  /**
+   * Queues a write to be committed as part of the next group.
+   */
+  public void submit(@NonNull Write write) {
+    synchronized (lock) {
+      pending.add(write);
+      submittedCount++;
+
+      if (!commitScheduled) {
+        commitScheduled = true;
+        executor.execute(this::commitNextGroup);
+      } else if (pending.size() >= maxBatchSize) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Queues a write and blocks until it has been committed, along with everything submitted before
+   * it. The write is durable once this returns.
+   *
+   * @throws IllegalStateException If the group the write was part of failed to commit.
+   */
+  @WorkerThread
+  public void commit(@NonNull Write write) {
+    BlockingWrite blockingWrite = new BlockingWrite(write);
+    boolean       interrupted   = false;
+
+    synchronized (lock) {
+      submit(blockingWrite);
+
+      if (!blockingWrite.finished) {
+        flushRequested = true;
+        lock.notifyAll();
+      }
+
+      while (!blockingWrite.finished) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (blockingWrite.failure != null) {
+      throw new IllegalStateException("Failed to commit a job write.", blockingWrite.failure);
+    }
+  }
+
+  /**
+   * @return How many groups have failed to commit so far.
+   */
+  public long getFailureCount() {
+    synchronized (lock) {
+      return failureCount;
+    }
+  }
+
+  /**
+   * Blocks until every write submitted before this call has been committed or dropped, without
+   * reporting failures.
+   *
+   * @throws InterruptedIOException If interrupted while waiting.
+   */
+  @WorkerThread
+  public void awaitIdle() throws InterruptedIOException {
+    synchronized (lock) {
+      awaitFinished(submittedCount);
+    }
+  }
+
+  /**
+   * Blocks until every write submitted before this call has been committed.
+   *
+   * @throws IOException If a group failed to commit since the last flush that reported one, or if
+   *                     interrupted while waiting. Either way, some writes may not be persisted.
+   */
+  @WorkerThread
+  public void flush() throws IOException {
+    synchronized (lock) {
+      long knownFailures = reportedFailureCount;
+
+      awaitFinished(submittedCount);
+
+      if (failureCount > knownFailures) {
+        reportedFailureCount = failureCount;
+        throw new IOException("A group of job writes failed to commit.", lastFailure);
+      }
+    }
+  }
+
+  private void awaitFinished(long target) throws InterruptedIOException {
+    if (finishedCount < target) {
+      flushRequested = true;
+      lock.notifyAll();
+    }
+
+    while (finishedCount < target) {
+      try {
+        lock.wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while flushing.");
+      }
+    }
+  }
+
+  private void commitNextGroup() {
+    List<Write> group;
+
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + maxDelayMs;
+      long remaining;
+
+      while (!flushRequested && pending.size() < maxBatchSize && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted while collecting a group. Committing early.", e);
+          break;
+        }
+      }
+
+      group          = pending;
+      pending        = new ArrayList<>();
+      flushRequested = false;
+    }
+
+    RuntimeException groupFailure = null;
+
+    try {
+      jobDatabase.runInTransaction(() -> {
+        for (Write write : group) {
+          write.apply(jobDatabase);
+        }
+      });
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to commit a group of " + group.size() + " job writes! Dropping them.", e);
+      groupFailure = e;
+    }
+
+    synchronized (lock) {
+      if (groupFailure != null) {
+        failureCount++;
+        lastFailure = groupFailure;
+      }
+
+      for (Write write : group) {
+        if (write instanceof BlockingWrite) {
+          ((BlockingWrite) write).finished = true;
+          ((BlockingWrite) write).failure  = groupFailure;
+        }
+      }
+
+      finishedCount += group.size();
+      lock.notifyAll();
+
+      if (pending.isEmpty()) {
+        commitScheduled = false;
+      } else {
+        executor.execute(this::commitNextGroup);
+      }
+    }
+  }
+
+  public interface Write {
+    void apply(@NonNull JobDatabase jobDatabase);
+  }
+
+  /**
+   * A write that someone is waiting on in {@link #commit(Write)}. Its fields are guarded by the
+   * writer's lock.
+   */
+  private static final class BlockingWrite implements Write {
+    private final Write write;
+
+    private boolean          finished;
+    private RuntimeException failure;
+
+    private BlockingWrite(@NonNull Write write) {
+      this.write = write;
+    }
+
+    @Override
+    public void apply(@NonNull JobDatabase jobDatabase) {
+      write.apply(jobDatabase);
+    }
+  }
+}
@@ -0,0 +1,739 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.annimon.stream.Collectors;
+import com.annimon.stream.Stream;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A {@link JobStorage} that behaves identically to {@link FastJobStorage}, but keeps its in-memory
+ * state indexed so that lookups don't need to scan every job.
+ *
+ * If given a {@link GroupCommitJobWriter}, writes to the {@link JobDatabase} are handed off to it
+ * to be committed in groups. Otherwise they're made synchronously, one transaction per write. New
+ * jobs are always durable by the time {@link #insertJobs(List)} returns, so a job is never only in
+ * memory unless it was meant to be. If the writer ever drops a group that failed to commit, the
+ * next write reloads everything from the database, so memory doesn't hold state that was never
+ * persisted.
+ *
+ * Jobs are indexed by ID, by factory key, and by queue key (with each queue kept in create-time
+ * order). In addition, we maintain the set of jobs that are currently eligible to run (first in
+ * their queue, no dependencies, not running), ordered by their next run attempt time. That means
+ * finding the pending jobs only needs to look at the jobs that could actually be returned.
+ */
+public class IndexedJobStorage implements JobStorage {
+
+  private static final String TAG = Log.tag(IndexedJobStorage.class);
+
+  private final JobDatabase          jobDatabase;
+  private final GroupCommitJobWriter writer;
+
+  private final Map<String, JobSpec>              jobsById;
+  private final Map<String, Long>                 insertOrderById;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final Map<String, Set<String>>          jobIdsByFactory;
+  private final TreeSet<JobSpec>                  eligibleJobs;
+  private final Map<String, List<ConstraintSpec>> constraintsByJobId;
+  private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, Set<String>>          dependentJobIdsByJobId;
+  private final Comparator<JobSpec>               createTimeComparator;
+
+  private long nextInsertOrder;
+  private long seenFailureCount;
+
+  public IndexedJobStorage(@NonNull JobDatabase jobDatabase) {
+    this(jobDatabase, null);
+  }
+
+  public IndexedJobStorage(@NonNull JobDatabase jobDatabase, @Nullable GroupCommitJobWriter writer) {
+    this.jobDatabase            = jobDatabase;
+    this.writer                 = writer;
+    this.jobsById               = new LinkedHashMap<>();
+    this.insertOrderById        = new HashMap<>();
+    this.jobsByQueue            = new HashMap<>();
+    this.jobIdsByFactory        = new HashMap<>();
+    this.constraintsByJobId     = new HashMap<>();
+    this.dependenciesByJobId    = new HashMap<>();
+    this.dependentJobIdsByJobId = new HashMap<>();
+    this.createTimeComparator   = (j1, j2) -> {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      return result != 0 ? result : Long.compare(insertOrderOf(j1), insertOrderOf(j2));
+    };
+    this.eligibleJobs           = new TreeSet<>((j1, j2) -> {
+      int result = Long.compare(j1.getNextRunAttemptTime(), j2.getNextRunAttemptTime());
+      return result != 0 ? result : createTimeComparator.compare(j1, j2);
+    });
+  }
+
+  @Override
+  public synchronized void init() {
+    List<JobSpec>        jobSpecs        = jobDatabase.getAllJobSpecs();
+    List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
+    List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
+
+    for (JobSpec jobSpec : jobSpecs) {
+      addToIndexes(jobSpec);
+    }
+
+    for (ConstraintSpec constraintSpec: constraintSpecs) {
+      List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
+      jobConstraints.add(constraintSpec);
+      constraintsByJobId.put(constraintSpec.getJobSpecId(), jobConstraints);
+    }
+
+    for (DependencySpec dependencySpec : dependencySpecs) {
+      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
+      jobDependencies.add(dependencySpec);
+      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependent(dependencySpec);
+    }
+
+    rebuildEligibleJobs();
+  }
+
+  @Override
+  public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
+    reloadIfWritesFailed();
+
+    List<FullSpec> durable = Stream.of(fullSpecs).filterNot(FullSpec::isMemoryOnly).toList();
+    if (durable.size() > 0) {
+      writeNow(db -> db.insertJobs(durable));
+    }
+
+    addToMemory(fullSpecs);
+  }
+
+  @Override
+  public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
+    return jobsById.get(id);
+  }
+
+  @Override
+  public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
+    return new ArrayList<>(jobsById.values());
+  }
+
+  @Override
+  public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
+    TreeSet<JobSpec> migrationQueue = jobsByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
+    JobSpec          migrationJob   = migrationQueue != null ? migrationQueue.first() : null;
+
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
+      return Collections.emptyList();
+    } else {
+      List<JobSpec> pending = new ArrayList<>();
+
+      for (JobSpec jobSpec : eligibleJobs) {
+        if (jobSpec.getNextRunAttemptTime() > currentTime) {
+          break;
+        }
+        pending.add(jobSpec);
+      }
+
+      Collections.sort(pending, createTimeComparator);
+
+      return pending;
+    }
+  }
+
+  @Override
+  public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
+    TreeSet<JobSpec> jobs = jobsByQueue.get(queue);
+    return jobs != null ? new ArrayList<>(jobs) : new ArrayList<>();
+  }
+
+  @Override
+  public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
+    Set<String> ids = jobIdsByFactory.get(factoryKey);
+    return ids != null ? ids.size() : 0;
+  }
+
+  @Override
+  public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
+    TreeSet<JobSpec> jobs = jobsByQueue.get(queueKey);
+
+    if (jobs == null) {
+      return 0;
+    }
+
+    int count = 0;
+    for (JobSpec jobSpec : jobs) {
+      if (factoryKey.equals(jobSpec.getFactoryKey())) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  @Override
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (jobsByQueue.containsKey(queueKey)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
+    reloadIfWritesFailed();
+
+    JobSpec job = getJobById(id);
+    if (job == null || !job.isMemoryOnly()) {
+      write(db -> db.updateJobRunningState(id, isRunning));
+    }
+
+    if (job != null) {
+      JobSpec updated = new JobSpec(job.getId(),
+                                    job.getFactoryKey(),
+                                    job.getQueueKey(),
+                                    job.getCreateTime(),
+                                    job.getNextRunAttemptTime(),
+                                    job.getRunAttempt(),
+                                    job.getMaxAttempts(),
+                                    job.getLifespan(),
+                                    job.getSerializedData(),
+                                    job.getSerializedInputData(),
+                                    isRunning,
+                                    job.isMemoryOnly(),
+                                    job.getPriority());
+      replace(job, updated);
+    }
+  }
+
+  @Override
+  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+    reloadIfWritesFailed();
+
+    JobSpec job = getJobById(id);
+    if (job == null || !job.isMemoryOnly()) {
+      write(db -> db.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData));
+    }
+
+    if (job != null) {
+      JobSpec updated = new JobSpec(job.getId(),
+                                    job.getFactoryKey(),
+                                    job.getQueueKey(),
+                                    job.getCreateTime(),
+                                    nextRunAttemptTime,
+                                    runAttempt,
+                                    job.getMaxAttempts(),
+                                    job.getLifespan(),
+                                    serializedData,
+                                    job.getSerializedInputData(),
+                                    isRunning,
+                                    job.isMemoryOnly(),
+                                    job.getPriority());
+      replace(job, updated);
+    }
+  }
+
+  @Override
+  public synchronized void updateAllJobsToBePending() {
+    reloadIfWritesFailed();
+
+    write(JobDatabase::updateAllJobsToBePending);
+
+    eligibleJobs.clear();
+
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      if (existing.isRunning()) {
+        JobSpec updated = new JobSpec(existing.getId(),
+                                      existing.getFactoryKey(),
+                                      existing.getQueueKey(),
+                                      existing.getCreateTime(),
+                                      existing.getNextRunAttemptTime(),
+                                      existing.getRunAttempt(),
+                                      existing.getMaxAttempts(),
+                                      existing.getLifespan(),
+                                      existing.getSerializedData(),
+                                      existing.getSerializedInputData(),
+                                      false,
+                                      existing.isMemoryOnly(),
+                                      existing.getPriority());
+        removeFromIndexes(existing);
+        addToIndexes(updated);
+      }
+    }
+
+    rebuildEligibleJobs();
+  }
+
+  @Override
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+    reloadIfWritesFailed();
+
+    List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
+    for (JobSpec update : jobSpecs) {
+      JobSpec found = getJobById(update.getId());
+      if (found == null || !found.isMemoryOnly()) {
+        durable.add(update);
+      }
+    }
+
+    if (durable.size() > 0) {
+      write(db -> db.updateJobs(durable));
+    }
+
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobsById.get(update.getId());
+
+      if (existing != null) {
+        replace(existing, update);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void deleteJob(@NonNull String jobId) {
+    deleteJobs(Collections.singletonList(jobId));
+  }
+
+  @Override
+  public synchronized void deleteJobs(@NonNull List<String> jobIds) {
+    reloadIfWritesFailed();
+
+    List<String> durableIds = new ArrayList<>(jobIds.size());
+    for (String id : jobIds) {
+      JobSpec job = getJobById(id);
+      if (job == null || !job.isMemoryOnly()) {
+        durableIds.add(id);
+      }
+    }
+
+    if (durableIds.size() > 0) {
+      write(db -> db.deleteJobs(durableIds));
+    }
+
+    Set<String> groups = new HashSet<>();
+    for (String jobId : jobIds) {
+      JobSpec job = jobsById.get(jobId);
+      if (job != null) {
+        groups.add(groupKeyOf(job));
+      }
+
+      Set<String> dependentIds = dependentJobIdsByJobId.get(jobId);
+      if (dependentIds != null) {
+        for (String dependentId : dependentIds) {
+          JobSpec dependent = jobsById.get(dependentId);
+          if (dependent != null) {
+            groups.add(groupKeyOf(dependent));
+          }
+        }
+      }
+    }
+
+    detachEligible(groups);
+
+    for (String jobId : jobIds) {
+      JobSpec job = jobsById.get(jobId);
+      if (job != null) {
+        removeFromIndexes(job);
+        jobsById.remove(jobId);
+        insertOrderById.remove(jobId);
+      }
+
+      constraintsByJobId.remove(jobId);
+
+      List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+      if (dependencies != null) {
+        for (DependencySpec dependencySpec : dependencies) {
+          removeDependent(dependencySpec);
+        }
+      }
+
+      Set<String> dependentIds = dependentJobIdsByJobId.remove(jobId);
+      if (dependentIds != null) {
+        for (String dependentId : dependentIds) {
+          List<DependencySpec> dependentDependencies = dependenciesByJobId.get(dependentId);
+          if (dependentDependencies == null) {
+            continue;
+          }
+
+          Iterator<DependencySpec> dependencyIter = dependentDependencies.iterator();
+          while (dependencyIter.hasNext()) {
+            if (dependencyIter.next().getDependsOnJobId().equals(jobId)) {
+              dependencyIter.remove();
+            }
+          }
+        }
+      }
+    }
+
+    attachEligible(groups);
+  }
+
+  @Override
+  public synchronized @NonNull List<ConstraintSpec> getConstraintSpecs(@NonNull String jobId) {
+    return Util.getOrDefault(constraintsByJobId, jobId, new LinkedList<>());
+  }
+
+  @Override
+  public synchronized @NonNull List<ConstraintSpec> getAllConstraintSpecs() {
+    return Stream.of(constraintsByJobId)
+                 .map(Map.Entry::getValue)
+                 .flatMap(Stream::of)
+                 .toList();
+  }
+
+  @Override
+  public synchronized @NonNull List<DependencySpec> getDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
+    List<DependencySpec> layer = getSingleLayerOfDependencySpecsThatDependOnJob(jobSpecId);
+    List<DependencySpec> all   = new ArrayList<>(layer);
+
+    Set<String> activeJobIds;
+
+    do {
+      activeJobIds = Stream.of(layer).map(DependencySpec::getJobId).collect(Collectors.toSet());
+      layer.clear();
+
+      for (String activeJobId : activeJobIds) {
+        layer.addAll(getSingleLayerOfDependencySpecsThatDependOnJob(activeJobId));
+      }
+
+      all.addAll(layer);
+    } while (!layer.isEmpty());
+
+    return all;
+  }
+
+  @Override
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
+    return Stream.of(dependenciesByJobId)
+                 .map(Map.Entry::getValue)
+                 .flatMap(Stream::of)
+                 .toList();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+  }
+
+  private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
+    Set<String> dependentIds = dependentJobIdsByJobId.get(jobSpecId);
+
+    if (dependentIds == null) {
+      return new ArrayList<>();
+    }
+
+    List<DependencySpec> layer = new ArrayList<>(dependentIds.size());
+
+    for (String dependentId : dependentIds) {
+      List<DependencySpec> dependencies = dependenciesByJobId.get(dependentId);
+      if (dependencies == null) {
+        continue;
+      }
+
+      for (DependencySpec dependencySpec : dependencies) {
+        if (dependencySpec.getDependsOnJobId().equals(jobSpecId)) {
+          layer.add(dependencySpec);
+        }
+      }
+    }
+
+    return layer;
+  }
+
+  private void write(@NonNull GroupCommitJobWriter.Write write) {
+    if (writer != null) {
+      writer.submit(write);
+    } else {
+      write.apply(jobDatabase);
+    }
+  }
+
+  private void writeNow(@NonNull GroupCommitJobWriter.Write write) {
+    if (writer != null) {
+      writer.commit(write);
+    } else {
+      write.apply(jobDatabase);
+    }
+  }
+
+  /**
+   * If a group of writes was dropped, memory is ahead of the database. Once everything else that
+   * was submitted has settled, we rebuild from the database, keeping memory-only jobs and which
+   * jobs are currently running, since those were never going to be read back from disk.
+   */
+  private void reloadIfWritesFailed() {
+    if (writer == null || writer.getFailureCount() == seenFailureCount) {
+      return;
+    }
+
+    try {
+      writer.awaitIdle();
+    } catch (InterruptedIOException e) {
+      Log.w(TAG, "Interrupted while waiting to reload jobs. Trying again on the next write.");
+      return;
+    }
+
+    seenFailureCount = writer.getFailureCount();
+
+    Log.w(TAG, "Some job writes failed to commit. Reloading jobs from the database.");
+
+    List<FullSpec> memoryOnly = new ArrayList<>();
+    Set<String>    runningIds = new HashSet<>();
+
+    for (JobSpec jobSpec : jobsById.values()) {
+      if (jobSpec.isMemoryOnly()) {
+        memoryOnly.add(new FullSpec(jobSpec, getConstraintSpecs(jobSpec.getId()), Util.getOrDefault(dependenciesByJobId, jobSpec.getId(), new LinkedList<>())));
+      } else if (jobSpec.isRunning()) {
+        runningIds.add(jobSpec.getId());
+      }
+    }
+
+    jobsById.clear();
+    insertOrderById.clear();
+    jobsByQueue.clear();
+    jobIdsByFactory.clear();
+    eligibleJobs.clear();
+    constraintsByJobId.clear();
+    dependenciesByJobId.clear();
+    dependentJobIdsByJobId.clear();
+
+    init();
+
+    for (JobSpec jobSpec : new ArrayList<>(jobsById.values())) {
+      boolean isRunning = runningIds.contains(jobSpec.getId());
+
+      if (jobSpec.isRunning() != isRunning) {
+        replace(jobSpec, new JobSpec(jobSpec.getId(),
+                                     jobSpec.getFactoryKey(),
+                                     jobSpec.getQueueKey(),
+                                     jobSpec.getCreateTime(),
+                                     jobSpec.getNextRunAttemptTime(),
+                                     jobSpec.getRunAttempt(),
+                                     jobSpec.getMaxAttempts(),
+                                     jobSpec.getLifespan(),
+                                     jobSpec.getSerializedData(),
+                                     jobSpec.getSerializedInputData(),
+                                     isRunning,
+                                     jobSpec.isMemoryOnly(),
+                                     jobSpec.getPriority()));
+      }
+    }
+
+    addToMemory(memoryOnly);
+  }
+
+  private void addToMemory(@NonNull List<FullSpec> fullSpecs) {
+    Set<String> groups = new HashSet<>();
+    for (FullSpec fullSpec : fullSpecs) {
+      groups.add(groupKeyOf(fullSpec.getJobSpec()));
+    }
+
+    detachEligible(groups);
+
+    for (FullSpec fullSpec : fullSpecs) {
+      JobSpec jobSpec  = fullSpec.getJobSpec();
+      JobSpec existing = jobsById.get(jobSpec.getId());
+
+      if (existing != null) {
+        removeFromIndexes(existing);
+      }
+
+      addToIndexes(jobSpec);
+      constraintsByJobId.put(jobSpec.getId(), fullSpec.getConstraintSpecs());
+      dependenciesByJobId.put(jobSpec.getId(), fullSpec.getDependencySpecs());
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependent(dependencySpec);
+      }
+    }
+
+    attachEligible(groups);
+  }
+
+  /**
+   * Swaps out a job for an updated version of itself, keeping all of the indexes consistent.
+   */
+  private void replace(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    Set<String> groups = new HashSet<>(2);
+    groups.add(groupKeyOf(existing));
+    groups.add(groupKeyOf(updated));
+
+    detachEligible(groups);
+    removeFromIndexes(existing);
+    addToIndexes(updated);
+    attachEligible(groups);
+  }
+
+  private void addToIndexes(@NonNull JobSpec jobSpec) {
+    if (!insertOrderById.containsKey(jobSpec.getId())) {
+      insertOrderById.put(jobSpec.getId(), nextInsertOrder++);
+    }
+
+    jobsById.put(jobSpec.getId(), jobSpec);
+
+    if (jobSpec.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(jobSpec.getQueueKey());
+      if (queue == null) {
+        queue = new TreeSet<>(createTimeComparator);
+        jobsByQueue.put(jobSpec.getQueueKey(), queue);
+      }
+      queue.add(jobSpec);
+    }
+
+    Set<String> factoryIds = jobIdsByFactory.get(jobSpec.getFactoryKey());
+    if (factoryIds == null) {
+      factoryIds = new HashSet<>();
+      jobIdsByFactory.put(jobSpec.getFactoryKey(), factoryIds);
+    }
+    factoryIds.add(jobSpec.getId());
+  }
+
+  /**
+   * Removes the job from the queue and factory indexes. The job is intentionally left in
+   * {@link #jobsById} so that an update keeps its original position.
+   */
+  private void removeFromIndexes(@NonNull JobSpec jobSpec) {
+    if (jobSpec.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(jobSpec.getQueueKey());
+      if (queue != null) {
+        queue.remove(jobSpec);
+        if (queue.isEmpty()) {
+          jobsByQueue.remove(jobSpec.getQueueKey());
+        }
+      }
+    }
+
+    Set<String> factoryIds = jobIdsByFactory.get(jobSpec.getFactoryKey());
+    if (factoryIds != null) {
+      factoryIds.remove(jobSpec.getId());
+      if (factoryIds.isEmpty()) {
+        jobIdsByFactory.remove(jobSpec.getFactoryKey());
+      }
+    }
+  }
+
+  private void addDependent(@NonNull DependencySpec dependencySpec) {
+    Set<String> dependents = dependentJobIdsByJobId.get(dependencySpec.getDependsOnJobId());
+    if (dependents == null) {
+      dependents = new LinkedHashSet<>();
+      dependentJobIdsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+    }
+    dependents.add(dependencySpec.getJobId());
+  }
+
+  private void removeDependent(@NonNull DependencySpec dependencySpec) {
+    Set<String> dependents = dependentJobIdsByJobId.get(dependencySpec.getDependsOnJobId());
+    if (dependents != null) {
+      dependents.remove(dependencySpec.getJobId());
+      if (dependents.isEmpty()) {
+        dependentJobIdsByJobId.remove(dependencySpec.getDependsOnJobId());
+      }
+    }
+  }
+
+  /**
+   * Only the first job in a group can ever be eligible, so before mutating a group we remove its
+   * head from the eligible set, and afterwards we re-evaluate whatever the new head is.
+   */
+  private void detachEligible(@NonNull Set<String> groupKeys) {
+    for (String groupKey : groupKeys) {
+      JobSpec head = getGroupHead(groupKey);
+      if (head != null) {
+        eligibleJobs.remove(head);
+      }
+    }
+  }
+
+  private void attachEligible(@NonNull Set<String> groupKeys) {
+    for (String groupKey : groupKeys) {
+      JobSpec head = getGroupHead(groupKey);
+      if (head != null && isEligible(head)) {
+        eligibleJobs.add(head);
+      }
+    }
+  }
+
+  private void rebuildEligibleJobs() {
+    eligibleJobs.clear();
+
+    for (TreeSet<JobSpec> queue : jobsByQueue.values()) {
+      JobSpec head = queue.first();
+      if (isEligible(head)) {
+        eligibleJobs.add(head);
+      }
+    }
+
+    for (JobSpec jobSpec : jobsById.values()) {
+      if (jobSpec.getQueueKey() == null && isEligible(jobSpec)) {
+        eligibleJobs.add(jobSpec);
+      }
+    }
+  }
+
+  private boolean isEligible(@NonNull JobSpec jobSpec) {
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobSpec.getId());
+    return !jobSpec.isRunning() && (dependencies == null || dependencies.isEmpty());
+  }
+
+  private @Nullable JobSpec getGroupHead(@NonNull String groupKey) {
+    TreeSet<JobSpec> queue = jobsByQueue.get(groupKey);
+    if (queue != null) {
+      return queue.first();
+    }
+
+    JobSpec solo = jobsById.get(groupKey);
+    if (solo != null && solo.getQueueKey() == null) {
+      return solo;
+    }
+
+    return null;
+  }
+
+  /**
+   * Jobs without a queue are effectively in a queue of their own, keyed by their ID.
+   */
+  private static @NonNull String groupKeyOf(@NonNull JobSpec jobSpec) {
+    return jobSpec.getQueueKey() != null ? jobSpec.getQueueKey() : jobSpec.getId();
+  }
+
+  private long insertOrderOf(@NonNull JobSpec jobSpec) {
+    Long order = insertOrderById.get(jobSpec.getId());
+    return order != null ? order : Long.MAX_VALUE;
+  }
+
+  private JobSpec getJobById(@NonNull String id) {
+    JobSpec job = jobsById.get(id);
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
+    }
+    return job;
+  }
+}
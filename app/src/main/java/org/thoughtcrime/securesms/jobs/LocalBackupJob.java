@@ -5,11 +5,14 @@ import android.Manifest;
 
 import androidx.annotation.NonNull;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackupState;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
@@ -92,11 +95,12 @@ public final class LocalBackupJob extends BaseJob {
     {
       notification.setIndeterminateProgress();
 
-      String backupPassword  = BackupPassphrase.get(context);
-      File   backupDirectory = StorageUtil.getOrCreateBackupDirectory();
-      String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
-      File   backupFile      = new File(backupDirectory, fileName);
+      String                 backupPassword   = BackupPassphrase.get(context);
+      File                   backupDirectory  = StorageUtil.getOrCreateBackupDirectory();
+      String                 timestamp        = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
+      SQLiteDatabase         database         = DatabaseFactory.getBackupDatabase(context);
+      IncrementalBackupState incrementalState = IncrementalBackupState.getNext(context, timestamp, database.getVersion(), name -> new File(backupDirectory, name).exists());
+      File                   backupFile       = new File(backupDirectory, incrementalState.getFileName());
 
       deleteOldTemporaryBackups(backupDirectory);
 
@@ -113,15 +117,18 @@ public final class LocalBackupJob extends BaseJob {
       try {
         FullBackupExporter.export(context,
                                   AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                  DatabaseFactory.getBackupDatabase(context),
+                                  database,
                                   tempFile,
                                   backupPassword,
+                                  incrementalState,
                                   this::isCanceled);
 
         if (!tempFile.renameTo(backupFile)) {
           Log.w(TAG, "Failed to rename temp file");
           throw new IOException("Renaming temporary backup file failed!");
         }
+
+        incrementalState.save(context);
       } catch (FullBackupExporter.BackupCanceledException e) {
         Log.w(TAG, "Backup cancelled");
         throw e;
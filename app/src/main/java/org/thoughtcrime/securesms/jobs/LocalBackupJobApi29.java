@@ -6,11 +6,14 @@ import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.documentfile.provider.DocumentFile;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackupState;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.jobmanager.Data;
@@ -80,13 +83,16 @@ public final class LocalBackupJobApi29 extends BaseJob {
       String       backupPassword  = BackupPassphrase.get(context);
       DocumentFile backupDirectory = DocumentFile.fromTreeUri(context, backupDirectoryUri);
       String       timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String       fileName        = String.format("signal-%s.backup", timestamp);
 
       if (backupDirectory == null || !backupDirectory.canWrite()) {
         BackupFileIOError.ACCESS_ERROR.postNotification(context);
         throw new IOException("Cannot write to backup directory location.");
       }
 
+      SQLiteDatabase         database         = DatabaseFactory.getBackupDatabase(context);
+      IncrementalBackupState incrementalState = IncrementalBackupState.getNext(context, timestamp, database.getVersion(), name -> backupDirectory.findFile(name) != null);
+      String                 fileName         = incrementalState.getFileName();
+
       deleteOldTemporaryBackups(backupDirectory);
 
       if (backupDirectory.findFile(fileName) != null) {
@@ -107,15 +113,18 @@ public final class LocalBackupJobApi29 extends BaseJob {
       try {
         FullBackupExporter.export(context,
                                   AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                  DatabaseFactory.getBackupDatabase(context),
+                                  database,
                                   temporaryFile,
                                   backupPassword,
+                                  incrementalState,
                                   this::isCanceled);
 
         if (!temporaryFile.renameTo(fileName)) {
           Log.w(TAG, "Failed to rename temp file");
           throw new IOException("Renaming temporary backup file failed!");
         }
+
+        incrementalState.save(context);
       } catch (FullBackupExporter.BackupCanceledException e) {
         Log.w(TAG, "Backup cancelled");
         throw e;
@@ -4,6 +4,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
@@ -121,20 +122,30 @@ public final class PushDecryptMessageJob extends BaseJob {
       throw new RetryLaterException();
     }
 
-    List<Job>        jobs = new LinkedList<>();
     DecryptionResult result = MessageDecryptionUtil.decrypt(context, envelope);
 
+    for (Job job: createFollowUpJobs(result, smsMessageId, envelope.getTimestamp())) {
+      ApplicationDependencies.getJobManager().add(job);
+    }
+  }
+
+  /**
+   * @return The jobs that have to run for a decrypted message, starting with the one that will
+   *         process it, if there's anything to process.
+   */
+  @WorkerThread
+  public static @NonNull List<Job> createFollowUpJobs(@NonNull DecryptionResult result, long smsMessageId, long timestamp) {
+    List<Job> jobs = new LinkedList<>();
+
     if (result.getContent() != null) {
-      jobs.add(new PushProcessMessageJob(result.getContent(), smsMessageId, envelope.getTimestamp()));
+      jobs.add(new PushProcessMessageJob(result.getContent(), smsMessageId, timestamp));
     } else if (result.getException() != null && result.getState() != MessageState.NOOP) {
-      jobs.add(new PushProcessMessageJob(result.getState(), result.getException(), smsMessageId, envelope.getTimestamp()));
+      jobs.add(new PushProcessMessageJob(result.getState(), result.getException(), smsMessageId, timestamp));
     }
 
     jobs.addAll(result.getJobs());
 
-    for (Job job: jobs) {
-      ApplicationDependencies.getJobManager().add(job);
-    }
+    return jobs;
   }
 
   @Override
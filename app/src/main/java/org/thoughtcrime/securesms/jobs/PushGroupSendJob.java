@@ -46,6 +46,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.GroupSendStats;
 import org.whispersystems.signalservice.api.messages.SendMessageResult;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
@@ -86,6 +87,7 @@ public final class PushGroupSendJob extends PushSendJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(Parameters.PRIORITY_HIGH)
                            .build(),
          messageId, filterRecipient);
 
@@ -322,7 +324,7 @@ public final class PushGroupSendJob extends PushSendJob {
                                                                               .withExpiration(groupRecipient.getExpireMessages())
                                                                               .asGroupMessage(group)
                                                                               .build();
-          return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupDataMessage);
+          return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupDataMessage, this::logGroupSendStats);
         } else {
           MessageGroupContext.GroupV1Properties properties = groupMessage.requireGroupV1Properties();
 
@@ -340,7 +342,7 @@ public final class PushGroupSendJob extends PushSendJob {
                                                                                 .build();
 
           Log.i(TAG, JobLogger.format(this, "Beginning update send."));
-          return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupDataMessage);
+          return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupDataMessage, this::logGroupSendStats);
         }
       } else {
         SignalServiceDataMessage.Builder builder = SignalServiceDataMessage.newBuilder()
@@ -362,13 +364,17 @@ public final class PushGroupSendJob extends PushSendJob {
                                                        .build();
 
         Log.i(TAG, JobLogger.format(this, "Beginning message send."));
-        return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupMessage);
+        return messageSender.sendMessage(addresses, unidentifiedAccess, isRecipientUpdate, groupMessage, this::logGroupSendStats);
       }
     } catch (ServerRejectedException e) {
       throw new UndeliverableMessageException(e);
     }
   }
 
+  private void logGroupSendStats(@NonNull GroupSendStats stats) {
+    Log.i(TAG, JobLogger.format(this, "Group send stats: " + stats));
+  }
+
   private @NonNull List<Recipient> getGroupMessageRecipients(@NonNull GroupId groupId, long messageId) {
     List<GroupReceiptInfo> destinations = DatabaseFactory.getGroupReceiptDatabase(context).getGroupReceiptInfo(messageId);
 
@@ -89,6 +89,7 @@ public abstract class PushSendJob extends SendJob {
                          .addConstraint(NetworkConstraint.KEY)
                          .setLifespan(TimeUnit.DAYS.toMillis(1))
                          .setMaxAttempts(Parameters.UNLIMITED)
+                         .setPriority(Parameters.PRIORITY_HIGH)
                          .build();
   }
 
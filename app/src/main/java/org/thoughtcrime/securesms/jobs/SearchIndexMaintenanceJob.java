@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+
+/**
+ * Rebuilds or optimizes the full-text search indexes in the background.
+ *
+ * @see SearchDatabase#maintainIndexes()
+ */
+public final class SearchIndexMaintenanceJob extends BaseJob {
+
+  public static final String KEY = "SearchIndexMaintenanceJob";
+
+  private static final String TAG = Log.tag(SearchIndexMaintenanceJob.class);
+
+  public SearchIndexMaintenanceJob() {
+    this(new Job.Parameters.Builder()
+                           .setQueue(KEY)
+                           .setMaxInstancesForFactory(1)
+                           .build());
+  }
+
+  private SearchIndexMaintenanceJob(@NonNull Job.Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return Data.EMPTY;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  protected void onRun() {
+    DatabaseFactory.getSearchDatabase(context).maintainIndexes();
+  }
+
+  @Override
+  protected boolean onShouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  @Override
+  public void onFailure() {
+    Log.w(TAG, "Failed to maintain search indexes.");
+  }
+
+  public static final class Factory implements Job.Factory<SearchIndexMaintenanceJob> {
+    @Override
+    public @NonNull SearchIndexMaintenanceJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new SearchIndexMaintenanceJob(parameters);
+    }
+  }
+}
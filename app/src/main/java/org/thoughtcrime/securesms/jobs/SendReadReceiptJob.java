@@ -55,6 +55,7 @@ public class SendReadReceiptJob extends BaseJob {
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
                            .setQueue(recipientId.toQueueKey())
+                           .setPriority(Parameters.PRIORITY_HIGH)
                            .build(),
          threadId,
          recipientId,
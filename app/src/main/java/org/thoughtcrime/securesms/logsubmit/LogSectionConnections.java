@@ -0,0 +1,29 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.whispersystems.signalservice.internal.push.ConnectionManager;
+import org.whispersystems.signalservice.internal.push.ConnectionMetrics;
+
+final class LogSectionConnections implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "CONNECTIONS";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    ConnectionManager connectionManager = ConnectionManager.forConfiguration(ApplicationDependencies.getSignalServiceNetworkAccess().getConfiguration(context));
+    StringBuilder     builder           = new StringBuilder();
+
+    for (ConnectionMetrics metrics : connectionManager.getMetrics().values()) {
+      builder.append(metrics).append('\n');
+    }
+
+    return builder;
+  }
+}
@@ -0,0 +1,20 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+
+final class LogSectionIncomingMessagePipeline implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "INCOMING MESSAGE PIPELINE";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return ApplicationDependencies.getIncomingMessageProcessor().getPipelineDebugInfo();
+  }
+}
@@ -0,0 +1,21 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+
+final class LogSectionProtocolStoreCache implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "PROTOCOL STORE CACHE";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return "-- Sessions\n"   + DatabaseFactory.getSessionDatabase(context).getCacheDebugInfo() +
+           "-- Identities\n" + DatabaseFactory.getIdentityDatabase(context).getCacheDebugInfo();
+  }
+}
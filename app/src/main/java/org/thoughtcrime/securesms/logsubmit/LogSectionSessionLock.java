@@ -0,0 +1,20 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.crypto.DatabaseSessionLock;
+
+final class LogSectionSessionLock implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "SESSION LOCK";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return DatabaseSessionLock.INSTANCE.getDebugInfo();
+  }
+}
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.os.Build;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
@@ -13,13 +12,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
+import org.signal.core.util.tracing.Tracer;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
 import org.thoughtcrime.securesms.net.StandardUserAgentInterceptor;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -55,6 +59,11 @@ public class SubmitDebugLogRepository {
     add(new LogSectionSystemInfo());
     add(new LogSectionJobs());
     add(new LogSectionConstraints());
+    add(new LogSectionRecipientCache());
+    add(new LogSectionProtocolStoreCache());
+    add(new LogSectionSessionLock());
+    add(new LogSectionIncomingMessagePipeline());
+    add(new LogSectionConnections());
     if (Build.VERSION.SDK_INT >= 28) {
       add(new LogSectionPower());
     }
@@ -84,19 +93,22 @@ public class SubmitDebugLogRepository {
   }
 
   public void submitLog(@NonNull List<LogLine> lines, Callback<Optional<String>> callback) {
-    SignalExecutors.UNBOUNDED.execute(() -> callback.onResult(submitLogInternal(lines, null)));
+    SignalExecutors.UNBOUNDED.execute(() -> callback.onResult(submitLogInternal(lines, false)));
   }
 
-  public void submitLog(@NonNull List<LogLine> lines, @Nullable byte[] trace, Callback<Optional<String>> callback) {
-    SignalExecutors.UNBOUNDED.execute(() -> callback.onResult(submitLogInternal(lines, trace)));
+  /**
+   * Like {@link #submitLog(List, Callback)}, but also uploads the current {@link Tracer} trace.
+   */
+  public void submitLogWithTrace(@NonNull List<LogLine> lines, Callback<Optional<String>> callback) {
+    SignalExecutors.UNBOUNDED.execute(() -> callback.onResult(submitLogInternal(lines, true)));
   }
 
   @WorkerThread
-  private @NonNull Optional<String> submitLogInternal(@NonNull List<LogLine> lines, @Nullable byte[] trace) {
+  private @NonNull Optional<String> submitLogInternal(@NonNull List<LogLine> lines, boolean includeTrace) {
     String traceUrl = null;
-    if (trace != null) {
+    if (includeTrace) {
       try {
-        traceUrl = uploadContent("application/octet-stream", trace);
+        traceUrl = uploadTrace();
       } catch (IOException e) {
         Log.w(TAG, "Error during trace upload.", e);
         return Optional.absent();
@@ -116,7 +128,7 @@ public class SubmitDebugLogRepository {
     }
 
     try {
-      String logUrl = uploadContent("text/plain", bodyBuilder.toString().getBytes());
+      String logUrl = uploadContent("text/plain", RequestBody.create(MediaType.parse("text/plain"), bodyBuilder.toString().getBytes()));
       return Optional.of(logUrl);
     } catch (IOException e) {
       Log.w(TAG, "Error during log upload.", e);
@@ -124,8 +136,29 @@ public class SubmitDebugLogRepository {
     }
   }
 
+  /**
+   * The trace can be much larger than what we'd want to hold in memory, so it's exported to a
+   * temporary file and uploaded from there.
+   */
   @WorkerThread
-  private @NonNull String uploadContent(@NonNull String contentType, @NonNull byte[] content) throws IOException {
+  private @NonNull String uploadTrace() throws IOException {
+    File traceFile = File.createTempFile("trace", ".bin", context.getCacheDir());
+
+    try {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(traceFile))) {
+        Tracer.getInstance().serialize(out);
+      }
+
+      return uploadContent("application/octet-stream", RequestBody.create(MediaType.parse("application/octet-stream"), traceFile));
+    } finally {
+      if (!traceFile.delete()) {
+        Log.w(TAG, "Failed to delete the temporary trace file.");
+      }
+    }
+  }
+
+  @WorkerThread
+  private @NonNull String uploadContent(@NonNull String contentType, @NonNull RequestBody content) throws IOException {
     try {
       OkHttpClient client   = new OkHttpClient.Builder().addInterceptor(new StandardUserAgentInterceptor()).dns(SignalServiceNetworkAccess.DNS).build();
       Response     response = client.newCall(new Request.Builder().url(API_ENDPOINT).get().build()).execute();
@@ -149,7 +182,7 @@ public class SubmitDebugLogRepository {
         post.addFormDataPart(key, fields.getString(key));
       }
 
-      post.addFormDataPart("file", "file", RequestBody.create(MediaType.parse(contentType), content));
+      post.addFormDataPart("file", "file", content);
 
       Response postResponse = client.newCall(new Request.Builder().url(url).post(post.build()).build()).execute();
 
@@ -10,7 +10,6 @@ import androidx.lifecycle.ViewModelProvider;
 
 import com.annimon.stream.Stream;
 
-import org.signal.core.util.tracing.Tracer;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.util.DefaultValueLiveData;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -25,13 +24,11 @@ public class SubmitDebugLogViewModel extends ViewModel {
   private final MutableLiveData<Mode>               mode;
 
   private List<LogLine> sourceLines;
-  private byte[]        trace;
 
   private SubmitDebugLogViewModel() {
     this.repo  = new SubmitDebugLogRepository();
     this.lines = new DefaultValueLiveData<>(Collections.emptyList());
     this.mode  = new MutableLiveData<>();
-    this.trace = Tracer.getInstance().serialize();
 
     repo.getLogLines(result -> {
       sourceLines = result;
@@ -53,7 +50,7 @@ public class SubmitDebugLogViewModel extends ViewModel {
 
     MutableLiveData<Optional<String>> result = new MutableLiveData<>();
 
-    repo.submitLog(lines.getValue(), trace, value -> {
+    repo.submitLogWithTrace(lines.getValue(), value -> {
       mode.postValue(Mode.NORMAL);
       result.postValue(value);
     });
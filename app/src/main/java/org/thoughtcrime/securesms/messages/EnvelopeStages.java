@@ -0,0 +1,165 @@
+package org.thoughtcrime.securesms.messages;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.SessionDatabase;
+import org.thoughtcrime.securesms.database.SessionDatabase.HeldSessions;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.jobs.PushDecryptMessageJob;
+import org.thoughtcrime.securesms.messages.MessageDecryptionUtil.DecryptionResult;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How {@link IncomingMessagePipeline} handles envelopes read off the websocket.
+ * <p>
+ * Envelopes are decrypted by sender, while sealed sender envelopes, whose sender isn't known until
+ * they've been decrypted, are decrypted on their own. The jobs that process each message are
+ * created as part of decryption, and are handed to the {@link JobManager} in order as they're
+ * persisted, along with one transaction's worth of server receipts. Conversations are told about
+ * the receipts afterwards, once per thread.
+ * <p>
+ * Decrypting advances the sender's session, so the session writes are deferred until the jobs
+ * holding the decrypted messages have been saved. If they can't be, the sessions are put back as
+ * they were, so that the envelopes can be decrypted again when they're redelivered.
+ */
+final class EnvelopeStages implements IncomingMessagePipeline.Stages<SignalServiceEnvelope, EnvelopeStages.Result> {
+
+  private static final String TAG = Log.tag(EnvelopeStages.class);
+
+  private final Context   context;
+  private final Set<Long> updatedThreadIds = new HashSet<>();
+
+  EnvelopeStages(@NonNull Context context) {
+    this.context = context;
+  }
+
+  /**
+   * Keys by recipient rather than by address, so that envelopes from the same person are kept in
+   * order whether they were addressed by UUID or by phone number.
+   */
+  @Override
+  public @Nullable Object getOrderingKey(@NonNull SignalServiceEnvelope envelope) {
+    if (envelope.isUnidentifiedSender() || !envelope.hasSource()) {
+      return null;
+    }
+
+    return Recipient.externalHighTrustPush(context, envelope.getSourceAddress()).getId();
+  }
+
+  @Override
+  public @NonNull Result decrypt(@NonNull SignalServiceEnvelope envelope) {
+    Recipient sender = envelope.hasSource() ? Recipient.externalHighTrustPush(context, envelope.getSourceAddress()) : null;
+
+    if (envelope.isReceipt() && sender != null) {
+      return new Result(new SyncMessageId(sender.getId(), envelope.getTimestamp()), Collections.emptyList(), null);
+    }
+
+    SessionDatabase sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+    List<Job>       jobs;
+
+    sessionDatabase.beginDeferringWrites();
+    try {
+      DecryptionResult result = MessageDecryptionUtil.decrypt(context, envelope);
+      jobs = PushDecryptMessageJob.createFollowUpJobs(result, -1, envelope.getTimestamp());
+    } catch (RuntimeException e) {
+      sessionDatabase.writeHeld(sessionDatabase.endDeferringWrites());
+      throw e;
+    }
+
+    return new Result(null, jobs, sessionDatabase.endDeferringWrites());
+  }
+
+  @Override
+  public void persist(@NonNull List<Result> batch) throws IOException {
+    List<SyncMessageId> receipts = new ArrayList<>();
+    List<Job>           jobs     = new ArrayList<>();
+
+    for (Result result : batch) {
+      if (result.receipt != null) {
+        receipts.add(result.receipt);
+      }
+      jobs.addAll(result.jobs);
+    }
+
+    SessionDatabase sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+
+    try {
+      if (receipts.size() > 0) {
+        Log.i(TAG, "Received " + receipts.size() + " server receipts.");
+        Set<Long> threadIds = DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCountsWithoutNotifying(receipts, System.currentTimeMillis());
+
+        synchronized (updatedThreadIds) {
+          updatedThreadIds.addAll(threadIds);
+        }
+      }
+
+      if (jobs.size() > 0) {
+        JobManager jobManager = ApplicationDependencies.getJobManager();
+
+        for (Job job : jobs) {
+          jobManager.add(job);
+        }
+
+        jobManager.flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Failed to persist the batch. Putting its sessions back.");
+
+      for (Result result : batch) {
+        if (result.heldSessions != null) {
+          sessionDatabase.discardHeld(result.heldSessions);
+        }
+      }
+
+      throw e;
+    }
+
+    for (Result result : batch) {
+      if (result.heldSessions != null) {
+        sessionDatabase.writeHeld(result.heldSessions);
+      }
+    }
+  }
+
+  @Override
+  public void notify(@NonNull List<Result> batch) {
+    Set<Long> threadIds;
+
+    synchronized (updatedThreadIds) {
+      threadIds = new HashSet<>(updatedThreadIds);
+      updatedThreadIds.clear();
+    }
+
+    if (threadIds.size() > 0) {
+      DatabaseFactory.getMmsSmsDatabase(context).notifyReceiptUpdates(threadIds);
+    }
+  }
+
+  static final class Result {
+    private final @Nullable SyncMessageId receipt;
+    private final @NonNull  List<Job>     jobs;
+    private final @Nullable HeldSessions  heldSessions;
+
+    private Result(@Nullable SyncMessageId receipt, @NonNull List<Job> jobs, @Nullable HeldSessions heldSessions) {
+      this.receipt      = receipt;
+      this.jobs         = jobs;
+      this.heldSessions = heldSessions;
+    }
+  }
+}
@@ -25,6 +25,7 @@ import org.thoughtcrime.securesms.messages.IncomingMessageProcessor.Processor;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesms.util.AppForegroundObserver;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.libsignal.InvalidVersionException;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -32,6 +33,7 @@ import org.whispersystems.signalservice.api.SignalServiceMessagePipe;
 import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -45,6 +47,7 @@ public class IncomingMessageObserver {
 
   public  static final  int FOREGROUND_ID            = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES  = 1;
+  private static final int  MESSAGE_BATCH_SIZE       = 100;
 
   private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger(0);
 
@@ -239,14 +242,9 @@ public class IncomingMessageObserver {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = localPipe.readOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelope -> {
-                Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
-                try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-                  processor.processEnvelope(envelope);
-                }
-              });
-
-              if (!result.isPresent() && !networkDrained) {
+              boolean empty = FeatureFlags.batchedMessageRead() ? !readBatch(localPipe) : !read(localPipe);
+
+              if (empty && !networkDrained) {
                 Log.i(TAG, "Network was newly-drained. Enqueuing a job to listen for decryption draining.");
                 networkDrained = true;
                 ApplicationDependencies.getJobManager().add(new PushDecryptDrainedJob());
@@ -268,6 +266,37 @@ public class IncomingMessageObserver {
       Log.w(TAG, "Terminated! (" + this.hashCode() + ")");
     }
 
+    /**
+     * @return False if we hit the end of the websocket's queue.
+     */
+    private boolean read(@NonNull SignalServiceMessagePipe pipe) throws TimeoutException, IOException {
+      Optional<SignalServiceEnvelope> result = pipe.readOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelope -> {
+        Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+        try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
+          processor.processEnvelope(envelope);
+        }
+      });
+
+      return result.isPresent();
+    }
+
+    /**
+     * Reads whatever is already waiting on the websocket as one batch. Each envelope is only
+     * acknowledged after it's been persisted, or found to be unprocessable.
+     *
+     * @return False if we hit the end of the websocket's queue.
+     */
+    private boolean readBatch(@NonNull SignalServiceMessagePipe pipe) throws TimeoutException, IOException {
+      List<SignalServiceEnvelope> result = pipe.readBatchOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, MESSAGE_BATCH_SIZE, envelopes -> {
+        Log.i(TAG, "Retrieved " + envelopes.size() + " envelopes.");
+        try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
+          processor.processEnvelopes(envelopes);
+        }
+      });
+
+      return !result.isEmpty();
+    }
+
     @Override
     public void uncaughtException(Thread t, Throwable e) {
       Log.w(TAG, "*** Uncaught exception!");
@@ -0,0 +1,505 @@
+package org.thoughtcrime.securesms.messages;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves envelopes through three stages: decryption, persistence and notification.
+ * <p>
+ * Envelopes from different senders are decrypted in parallel, while envelopes from the same sender
+ * are decrypted one at a time, in the order they were submitted. An envelope without an ordering
+ * key, like a sealed sender envelope whose sender isn't known yet, is decrypted on its own, after
+ * everything submitted before it and before anything submitted after it.
+ * <p>
+ * Decrypted envelopes are then persisted on a single thread, strictly in the order they were
+ * submitted, in batches of whatever has finished decrypting. Each batch is notified on another
+ * thread once it's been persisted, so that persistence can keep going in the meantime.
+ * <p>
+ * An envelope that fails to decrypt is left out of its batch. It's reported by the next
+ * {@link #flush()}, along with any envelopes in batches that failed to persist, so the caller knows
+ * exactly which envelopes weren't handled.
+ */
+public final class IncomingMessagePipeline<E, R> {
+
+  private static final String TAG = Log.tag(IncomingMessagePipeline.class);
+
+  private final Stages<E, R> stages;
+  private final Executor     decryptExecutor;
+  private final int          decryptParallelism;
+  private final Executor     persistExecutor;
+  private final Executor     notifyExecutor;
+  private final int          maxBatchSize;
+  private final int          maxInFlight;
+
+  private final ArrayDeque<Item<E, R>> waiting   = new ArrayDeque<>();
+  private final Set<Object>            busyKeys  = new HashSet<>();
+  private final Map<Long, Item<E, R>>  decrypted   = new HashMap<>();
+  private final List<Item<E, R>>       unpersisted = new ArrayList<>();
+  private final Stats                  stats       = new Stats();
+
+  private long             nextSequence;
+  private long             nextToPersist;
+  private long             persistedThrough;
+  private long             notifiedThrough;
+  private int              decrypting;
+  private boolean          barrierRunning;
+  private boolean          persistScheduled;
+  private IOException      persistFailure;
+  private RuntimeException decryptFailure;
+
+  /**
+   * @param decryptParallelism How many envelopes may be decrypted at once. The decrypt executor
+   *                           should have at least this many threads. The persist and notify
+   *                           executors must each run one task at a time, in order.
+   * @param maxBatchSize       The most envelopes that will be persisted at once.
+   * @param maxInFlight        The most envelopes that may be anywhere in the pipeline before
+   *                           {@link #submit(Object)} starts to block.
+   */
+  public IncomingMessagePipeline(@NonNull Stages<E, R> stages,
+                                 @NonNull Executor decryptExecutor,
+                                 int decryptParallelism,
+                                 @NonNull Executor persistExecutor,
+                                 @NonNull Executor notifyExecutor,
+                                 int maxBatchSize,
+                                 int maxInFlight)
+  {
+    this.stages             = stages;
+    this.decryptExecutor    = decryptExecutor;
+    this.decryptParallelism = decryptParallelism;
+    this.persistExecutor    = persistExecutor;
+    this.notifyExecutor     = notifyExecutor;
+    this.maxBatchSize       = maxBatchSize;
+    this.maxInFlight        = maxInFlight;
+  }
+
+  /**
+   * Adds an envelope to the pipeline, blocking while the pipeline is full. Must not be called from
+   * within a stage.
+   */
+  @WorkerThread
+  public void submit(@NonNull E envelope) {
+    Object key = stages.getOrderingKey(envelope);
+
+    synchronized (this) {
+      boolean interrupted = false;
+
+      while (nextSequence - notifiedThrough >= maxInFlight) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      waiting.add(new Item<>(nextSequence++, envelope, key, System.nanoTime()));
+      stats.submitted++;
+      stats.maxWaiting = Math.max(stats.maxWaiting, waiting.size());
+
+      dispatch();
+    }
+  }
+
+  /**
+   * Blocks until everything submitted so far has been persisted and notified.
+   *
+   * @return Which envelopes submitted since the last flush weren't persisted, and why.
+   * @throws InterruptedIOException If interrupted before then, in which case envelopes submitted
+   *                                so far can't be assumed to be saved.
+   */
+  @WorkerThread
+  public @NonNull FlushResult<E> flush() throws InterruptedIOException {
+    synchronized (this) {
+      while (notifiedThrough < nextSequence) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the pipeline to flush.");
+        }
+      }
+
+      Collections.sort(unpersisted, (a, b) -> Long.compare(a.sequence, b.sequence));
+
+      List<E> envelopes = new ArrayList<>(unpersisted.size());
+      for (Item<E, R> item : unpersisted) {
+        envelopes.add(item.envelope);
+      }
+
+      FlushResult<E> result = new FlushResult<>(envelopes, persistFailure, decryptFailure);
+
+      unpersisted.clear();
+      persistFailure = null;
+      decryptFailure = null;
+
+      return result;
+    }
+  }
+
+  /**
+   * @return How many envelopes have been submitted but not yet notified.
+   */
+  public synchronized int getInFlightCount() {
+    return (int) (nextSequence - notifiedThrough);
+  }
+
+  public synchronized @NonNull String getDebugInfo() {
+    return String.format(Locale.US,
+                         "Queued: %d waiting, %d decrypting, %d awaiting persist, %d awaiting notify\n" +
+                         "Max waiting: %d, max awaiting persist: %d\n" +
+                         "Envelopes: %d submitted, %d decrypted, %d failed\n" +
+                         "Batches: %d persisted (%.1f avg size), %d failed\n" +
+                         "Queue wait: %s\n" +
+                         "Decrypt: %s\n" +
+                         "Order wait: %s\n" +
+                         "Persist: %s\n" +
+                         "Notify: %s\n",
+                         waiting.size(),
+                         decrypting,
+                         nextSequence - waiting.size() - decrypting - persistedThrough,
+                         persistedThrough - notifiedThrough,
+                         stats.maxWaiting,
+                         stats.maxAwaitingPersist,
+                         stats.submitted,
+                         stats.decrypted,
+                         stats.decryptFailures,
+                         stats.persist.count,
+                         stats.persist.count > 0 ? stats.persistedItems / (float) stats.persist.count : 0f,
+                         stats.persistFailures,
+                         stats.queueWait,
+                         stats.decrypt,
+                         stats.orderWait,
+                         stats.persist,
+                         stats.notify);
+  }
+
+  /**
+   * Starts decrypting whatever can be, given the ordering rules. Must be called while holding the
+   * lock.
+   */
+  private void dispatch() {
+    if (barrierRunning) {
+      return;
+    }
+
+    Set<Object>          blockedKeys = new HashSet<>();
+    Iterator<Item<E, R>> iterator    = waiting.iterator();
+
+    while (iterator.hasNext() && decrypting < decryptParallelism) {
+      Item<E, R> item = iterator.next();
+
+      if (item.key == null) {
+        if (decrypting == 0 && blockedKeys.isEmpty()) {
+          iterator.remove();
+          barrierRunning = true;
+          startDecrypt(item);
+        }
+        return;
+      }
+
+      if (!busyKeys.contains(item.key) && !blockedKeys.contains(item.key)) {
+        iterator.remove();
+        busyKeys.add(item.key);
+        startDecrypt(item);
+      } else {
+        blockedKeys.add(item.key);
+      }
+    }
+  }
+
+  private void startDecrypt(@NonNull Item<E, R> item) {
+    decrypting++;
+    item.decryptStartedAt = System.nanoTime();
+    stats.queueWait.add(item.decryptStartedAt - item.submittedAt);
+
+    decryptExecutor.execute(() -> decrypt(item));
+  }
+
+  private void decrypt(@NonNull Item<E, R> item) {
+    R                result  = null;
+    RuntimeException failure = null;
+
+    try {
+      result = stages.decrypt(item.envelope);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to decrypt envelope " + item.sequence + "!", e);
+      failure = e;
+    }
+
+    synchronized (this) {
+      item.result      = result;
+      item.decryptedAt = System.nanoTime();
+
+      decrypting--;
+      if (item.key != null) {
+        busyKeys.remove(item.key);
+      } else {
+        barrierRunning = false;
+      }
+
+      stats.decrypt.add(item.decryptedAt - item.decryptStartedAt);
+      if (failure != null) stats.decryptFailures++;
+      else                 stats.decrypted++;
+
+      if (failure != null) {
+        unpersisted.add(item);
+        if (decryptFailure == null) decryptFailure = failure;
+      }
+
+      decrypted.put(item.sequence, item);
+      stats.maxAwaitingPersist = Math.max(stats.maxAwaitingPersist, decrypted.size());
+
+      dispatch();
+
+      if (!persistScheduled && decrypted.containsKey(nextToPersist)) {
+        persistScheduled = true;
+        persistExecutor.execute(this::persistReady);
+      }
+    }
+  }
+
+  /**
+   * Persists consecutive decrypted envelopes in batches until it reaches one that's still being
+   * decrypted.
+   */
+  private void persistReady() {
+    while (true) {
+      List<Item<E, R>> batch = new ArrayList<>();
+
+      synchronized (this) {
+        Item<E, R> item;
+        long       now = System.nanoTime();
+
+        while (batch.size() < maxBatchSize && (item = decrypted.remove(nextToPersist)) != null) {
+          stats.orderWait.add(now - item.decryptedAt);
+          batch.add(item);
+          nextToPersist++;
+        }
+
+        if (batch.isEmpty()) {
+          persistScheduled = false;
+          return;
+        }
+      }
+
+      List<R> results = new ArrayList<>(batch.size());
+      for (Item<E, R> item : batch) {
+        if (item.result != null) {
+          results.add(item.result);
+        }
+      }
+
+      long        start   = System.nanoTime();
+      IOException failure = null;
+
+      if (!results.isEmpty()) {
+        try {
+          stages.persist(results);
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to persist a batch of " + results.size() + "!", e);
+          failure = e;
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Failed to persist a batch of " + results.size() + "!", e);
+          failure = new IOException("Failed to persist a batch!", e);
+        }
+      }
+
+      long end = System.nanoTime();
+      long through;
+
+      synchronized (this) {
+        stats.persist.add(end - start);
+        stats.persistedItems += results.size();
+
+        if (failure != null) {
+          stats.persistFailures++;
+          if (persistFailure == null) persistFailure = failure;
+
+          for (Item<E, R> item : batch) {
+            if (item.result != null) {
+              unpersisted.add(item);
+            }
+          }
+        }
+
+        persistedThrough = nextToPersist;
+        through          = nextToPersist;
+      }
+
+      boolean shouldNotify = failure == null && !results.isEmpty();
+
+      notifyExecutor.execute(() -> notify(results, shouldNotify, through));
+    }
+  }
+
+  private void notify(@NonNull List<R> results, boolean shouldNotify, long through) {
+    long start = System.nanoTime();
+
+    if (shouldNotify) {
+      try {
+        stages.notify(results);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to notify a batch of " + results.size() + ".", e);
+      }
+    }
+
+    synchronized (this) {
+      stats.notify.add(System.nanoTime() - start);
+      notifiedThrough = through;
+      notifyAll();
+    }
+  }
+
+  /**
+   * The work done at each stage. Each is called from a background thread.
+   */
+  public interface Stages<E, R> {
+
+    /**
+     * @return A key shared by every envelope that has to be decrypted in order with this one,
+     *         usually its sender, or null if the envelope has to be decrypted on its own.
+     */
+    @Nullable Object getOrderingKey(@NonNull E envelope);
+
+    /**
+     * May be called on several threads at once, but never for two envelopes with the same key.
+     * Throwing leaves the envelope out, and it's reported by the next {@link #flush()}.
+     *
+     * @return The result to persist, or null if there's nothing to.
+     */
+    @Nullable R decrypt(@NonNull E envelope);
+
+    /**
+     * Called on one thread at a time, with results in the order their envelopes were submitted.
+     * Once this returns, the results must be saved.
+     *
+     * @throws IOException If the results could not be saved.
+     */
+    void persist(@NonNull List<R> batch) throws IOException;
+
+    /**
+     * Called on one thread at a time, after a batch was successfully persisted.
+     */
+    void notify(@NonNull List<R> batch);
+  }
+
+  /**
+   * What happened to the envelopes submitted between two flushes.
+   */
+  public static final class FlushResult<E> {
+    private final List<E>          unpersisted;
+    private final IOException      persistFailure;
+    private final RuntimeException decryptFailure;
+
+    private FlushResult(@NonNull List<E> unpersisted, @Nullable IOException persistFailure, @Nullable RuntimeException decryptFailure) {
+      this.unpersisted    = unpersisted;
+      this.persistFailure = persistFailure;
+      this.decryptFailure = decryptFailure;
+    }
+
+    /**
+     * @return True if every envelope was persisted, or had nothing to persist.
+     */
+    public boolean isSuccess() {
+      return unpersisted.isEmpty();
+    }
+
+    /**
+     * @return The envelopes that failed to decrypt or were in a batch that failed to persist, in the
+     *         order they were submitted. Every other envelope was persisted.
+     */
+    public @NonNull List<E> getUnpersisted() {
+      return unpersisted;
+    }
+
+    /**
+     * @return The first failure to persist a batch, if there was one.
+     */
+    public @Nullable IOException getPersistFailure() {
+      return persistFailure;
+    }
+
+    /**
+     * @return The first failure to decrypt an envelope, if there was one.
+     */
+    public @Nullable RuntimeException getDecryptFailure() {
+      return decryptFailure;
+    }
+  }
+
+  private static final class Item<E, R> {
+    private final long   sequence;
+    private final E      envelope;
+    private final Object key;
+    private final long   submittedAt;
+
+    private long decryptStartedAt;
+    private long decryptedAt;
+    private R    result;
+
+    private Item(long sequence, @NonNull E envelope, @Nullable Object key, long submittedAt) {
+      this.sequence    = sequence;
+      this.envelope    = envelope;
+      this.key         = key;
+      this.submittedAt = submittedAt;
+    }
+  }
+
+  private static final class Stats {
+    private final Latency queueWait = new Latency();
+    private final Latency decrypt   = new Latency();
+    private final Latency orderWait = new Latency();
+    private final Latency persist   = new Latency();
+    private final Latency notify    = new Latency();
+
+    private long submitted;
+    private long decrypted;
+    private long decryptFailures;
+    private long persistedItems;
+    private long persistFailures;
+    private int  maxWaiting;
+    private int  maxAwaitingPersist;
+  }
+
+  private static final class Latency {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void add(long nanos) {
+      count++;
+      totalNanos += nanos;
+      maxNanos    = Math.max(maxNanos, nanos);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US,
+                           "%.2f ms avg, %d ms max over %d",
+                           count > 0 ? totalNanos / 1_000_000d / count : 0d,
+                           TimeUnit.NANOSECONDS.toMillis(maxNanos),
+                           count);
+    }
+  }
+}
@@ -5,7 +5,11 @@ import android.content.Context;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSessionLock;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
@@ -30,12 +34,16 @@ import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.signalservice.api.SignalServiceMessagePipe.PartialBatchException;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroupContext;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -46,12 +54,25 @@ public class IncomingMessageProcessor {
 
   private static final String TAG = Log.tag(IncomingMessageProcessor.class);
 
-  private final Application   context;
-  private final ReentrantLock lock;
+  private static final int MAX_PERSIST_BATCH_SIZE = 100;
+  private static final int MAX_IN_FLIGHT          = 500;
+
+  private final Application                                                          context;
+  private final ReentrantLock                                                        lock;
+  private final IncomingMessagePipeline<SignalServiceEnvelope, EnvelopeStages.Result> pipeline;
 
   public IncomingMessageProcessor(@NonNull Application context) {
-    this.context = context;
-    this.lock    = new ReentrantLock();
+    int decryptThreads = SignalExecutors.getIdealThreadCount();
+
+    this.context  = context;
+    this.lock     = new ReentrantLock();
+    this.pipeline = new IncomingMessagePipeline<>(new EnvelopeStages(context),
+                                                  SignalExecutors.newCachedBoundedExecutor("signal-decrypt", 1, decryptThreads),
+                                                  decryptThreads,
+                                                  SignalExecutors.newCachedSingleThreadExecutor("signal-persist"),
+                                                  SignalExecutors.newCachedSingleThreadExecutor("signal-notify"),
+                                                  MAX_PERSIST_BATCH_SIZE,
+                                                  MAX_IN_FLIGHT);
   }
 
   /**
@@ -67,6 +88,10 @@ public class IncomingMessageProcessor {
     lock.unlock();
   }
 
+  public @NonNull String getPipelineDebugInfo() {
+    return pipeline.getDebugInfo();
+  }
+
   public class Processor implements Closeable {
 
     private final Context           context;
@@ -99,6 +124,119 @@ public class IncomingMessageProcessor {
       }
     }
 
+    /**
+     * Processes a batch of envelopes, and only returns once everything they need has been
+     * persisted, so that the batch can be safely acknowledged. Receipts and recipients are written
+     * in one transaction, and the decrypt jobs are inserted together. If the pipeline is enabled
+     * and there are no decrypt jobs left from before, the envelopes are decrypted right away
+     * through {@link IncomingMessagePipeline} instead.
+     * <p>
+     * A problem with one envelope is logged and skipped, or thrown once the rest are persisted, so
+     * it can't hold up the rest of the batch.
+     *
+     * @throws IOException           If the batch could not be persisted, in which case it must not
+     *                               be acked.
+     * @throws PartialBatchException If only some of the batch was persisted. It lists the envelopes
+     *                               that weren't, and only those should be retried.
+     * @throws RuntimeException      If an envelope could not be processed. The rest were persisted.
+     */
+    @WorkerThread
+    public void processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) throws IOException {
+      if (FeatureFlags.pipelinedMessageProcessing() && !needsToEnqueueDecryption()) {
+        processEnvelopesPipelined(envelopes);
+      } else {
+        processEnvelopesDeferred(envelopes);
+      }
+    }
+
+    /**
+     * Decrypts the envelopes in parallel by sender, rather than leaving each one to a
+     * {@link PushDecryptMessageJob}. If only some of them were persisted, a
+     * {@link PartialBatchException} says which ones weren't, so that only those are retried and the
+     * rest aren't persisted twice.
+     */
+    private void processEnvelopesPipelined(@NonNull List<SignalServiceEnvelope> envelopes) throws IOException {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        if (envelope.isReceipt() || envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+          pipeline.submit(envelope);
+        } else {
+          Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        }
+      }
+
+      IncomingMessagePipeline.FlushResult<SignalServiceEnvelope> result = pipeline.flush();
+
+      if (result.isSuccess()) {
+        return;
+      }
+
+      List<SignalServiceEnvelope> unpersisted    = result.getUnpersisted();
+      IOException                 persistFailure = result.getPersistFailure();
+
+      if (unpersisted.size() < envelopes.size()) {
+        throw new PartialBatchException(unpersisted, persistFailure != null ? persistFailure : result.getDecryptFailure());
+      } else if (persistFailure != null) {
+        throw persistFailure;
+      } else {
+        throw Objects.requireNonNull(result.getDecryptFailure());
+      }
+    }
+
+    private void processEnvelopesDeferred(@NonNull List<SignalServiceEnvelope> envelopes) throws IOException {
+      SQLiteDatabase db   = DatabaseFactory.getInstance(context).getRawDatabase();
+      List<Job>      jobs = new ArrayList<>(envelopes.size());
+
+      try {
+        db.beginTransaction();
+        try {
+          for (SignalServiceEnvelope envelope : envelopes) {
+            if (envelope.isReceipt()) {
+              processReceiptInBatch(envelope);
+            } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+              resolveSenderInBatch(envelope);
+              jobs.add(new PushDecryptMessageJob(context, envelope));
+            } else {
+              Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+            }
+          }
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      } catch (RuntimeException e) {
+        throw new IOException("Failed to persist the batch's receipts and recipients!", e);
+      }
+
+      if (jobs.size() > 0) {
+        jobManager.startChain(jobs).enqueue();
+      }
+
+      jobManager.flush();
+    }
+
+    private void processReceiptInBatch(@NonNull SignalServiceEnvelope envelope) {
+      try {
+        processReceipt(envelope);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Skipping a receipt that could not be processed. " + envelope.getTimestamp(), e);
+      }
+    }
+
+    /**
+     * The sender is resolved again when the message is decrypted, so this failing doesn't lose it.
+     */
+    private void resolveSenderInBatch(@NonNull SignalServiceEnvelope envelope) {
+      if (!envelope.hasSource()) {
+        return;
+      }
+
+      try {
+        Recipient.externalHighTrustPush(context, envelope.getSourceAddress());
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to resolve the sender of " + envelope.getTimestamp(), e);
+      }
+    }
+
     private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
       return processMessageDeferred(envelope);
     }
@@ -40,7 +40,7 @@ public class ApplicationMigrations {
 
   private static final int LEGACY_CANONICAL_VERSION = 455;
 
-  public static final int CURRENT_VERSION = 31;
+  public static final int CURRENT_VERSION = 32;
 
   private static final class Version {
     static final int LEGACY              = 1;
@@ -73,6 +73,7 @@ public class ApplicationMigrations {
     static final int SYSTEM_NAME_SPLIT   = 28;
     // Versions 29, 30 accidentally skipped
     static final int MUTE_SYNC           = 31;
+    static final int SEARCH_PREFIX_INDEX = 32;
   }
 
   /**
@@ -307,6 +308,10 @@ public class ApplicationMigrations {
       jobs.put(Version.MUTE_SYNC, new StorageServiceMigrationJob());
     }
 
+    if (lastSeenVersion < Version.SEARCH_PREFIX_INDEX) {
+      jobs.put(Version.SEARCH_PREFIX_INDEX, new SearchIndexMigrationJob());
+    }
+
     return jobs;
   }
 
@@ -0,0 +1,52 @@
+package org.thoughtcrime.securesms.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobs.SearchIndexMaintenanceJob;
+
+/**
+ * Schedules a rebuild of the search indexes, for when the options they're created with change.
+ * The rebuild itself can take a while, so it happens in a regular job rather than here.
+ */
+public final class SearchIndexMigrationJob extends MigrationJob {
+
+  public static final String KEY = "SearchIndexMigrationJob";
+
+  SearchIndexMigrationJob() {
+    this(new Parameters.Builder().build());
+  }
+
+  private SearchIndexMigrationJob(@NonNull Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public boolean isUiBlocking() {
+    return false;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  public void performMigration() {
+    ApplicationDependencies.getJobManager().add(new SearchIndexMaintenanceJob());
+  }
+
+  @Override
+  boolean shouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  public static class Factory implements Job.Factory<SearchIndexMigrationJob> {
+    @Override
+    public @NonNull SearchIndexMigrationJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new SearchIndexMigrationJob(parameters);
+    }
+  }
+}
@@ -131,7 +131,25 @@ public final class LiveRecipient {
       Log.w(TAG, "[Resolve][MAIN] " + getId(), new Throwable());
     }
 
-    Recipient       updated      = fetchAndCacheRecipientFromDisk(getId());
+    return resolveWith(fetchAndCacheRecipientFromDisk(getId()));
+  }
+
+  /**
+   * Same as {@link #resolve()}, but uses settings that have already been read from disk, like as
+   * part of a batch.
+   */
+  @WorkerThread
+  @NonNull Recipient resolve(@NonNull RecipientSettings settings) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return current;
+    }
+
+    return resolveWith(buildAndCacheRecipient(getId(), settings));
+  }
+
+  private @NonNull Recipient resolveWith(@NonNull Recipient updated) {
     List<Recipient> participants = Stream.of(updated.getParticipants())
                                          .filter(Recipient::isResolving)
                                          .map(Recipient::getId)
@@ -190,9 +208,12 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientSettings settings = recipientDatabase.getRecipientSettings(id);
-    RecipientDetails  details  = settings.getGroupId() != null ? getGroupRecipientDetails(settings)
-                                                               : RecipientDetails.forIndividual(context, settings);
+    return buildAndCacheRecipient(id, recipientDatabase.getRecipientSettings(id));
+  }
+
+  private @NonNull Recipient buildAndCacheRecipient(@NonNull RecipientId id, @NonNull RecipientSettings settings) {
+    RecipientDetails details = settings.getGroupId() != null ? getGroupRecipientDetails(settings)
+                                                             : RecipientDetails.forIndividual(context, settings);
 
     Recipient recipient = new Recipient(id, details, true);
     RecipientIdCache.INSTANCE.put(recipient);
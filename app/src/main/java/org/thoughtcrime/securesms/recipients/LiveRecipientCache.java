@@ -1,10 +1,10 @@
 package org.thoughtcrime.securesms.recipients;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
@@ -13,72 +13,101 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.MissingRecipientException;
+import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ShardedLRUCache;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.concurrent.BatchCoalescer;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
-
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds a {@link LiveRecipient} for every recipient we've recently looked at.
+ *
+ * The cache is sharded so that lookups from different threads rarely contend with each other.
+ * Recipients that need to be resolved from disk are coalesced into batches, so that something
+ * like binding a long list of conversations reads every recipient it needs in one query, instead
+ * of one query per row.
+ */
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
-  private static final int CACHE_MAX      = 1000;
-  private static final int CACHE_WARM_MAX = 500;
-
-  private final Context                         context;
-  private final RecipientDatabase               recipientDatabase;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        executor;
-  private final SQLiteDatabase                  db;
+  private static final int  CACHE_MAX            = 1000;
+  private static final int  CACHE_WARM_MAX       = 500;
+  private static final long RESOLVE_BATCH_WINDOW = 5;
+  private static final int  RESOLVE_BATCH_MAX    = 200;
+
+  private final Context                                     context;
+  private final RecipientDatabase                           recipientDatabase;
+  private final ShardedLRUCache<RecipientId, LiveRecipient> recipients;
+  private final LiveRecipient                               unknown;
+  private final Executor                                    executor;
+  private final BatchCoalescer<PendingResolve>              resolveBatcher;
+  private final SQLiteDatabase                              db;
+  private final AtomicLong                                  hits;
+  private final AtomicLong                                  misses;
+  private final Object                                      resolveStatsLock;
 
   private volatile RecipientId localRecipientId;
 
   private boolean warmedUp;
+  private long    resolveCount;
+  private long    resolveBatchCount;
+  private long    totalResolveLatencyMs;
+  private long    maxResolveLatencyMs;
 
-  @SuppressLint("UseSparseArrays")
   public LiveRecipientCache(@NonNull Context context) {
+    this(context, CACHE_MAX);
+  }
+
+  public LiveRecipientCache(@NonNull Context context, int maxSize) {
     this.context           = context.getApplicationContext();
     this.recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
-    this.recipients        = new LRUCache<>(CACHE_MAX);
+    this.recipients        = new ShardedLRUCache<>(maxSize);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
     this.db                = DatabaseFactory.getInstance(context).getRawDatabase();
     this.executor          = new FilteredExecutor(SignalExecutors.BOUNDED, () -> !db.isDbLockedByCurrentThread());
+    this.resolveBatcher    = new BatchCoalescer<>(SignalExecutors.BOUNDED, RESOLVE_BATCH_WINDOW, RESOLVE_BATCH_MAX, this::resolveBatch);
+    this.hits              = new AtomicLong();
+    this.misses            = new AtomicLong();
+    this.resolveStatsLock  = new Object();
   }
 
   @AnyThread
-  synchronized @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
+  @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
     LiveRecipient live = recipients.get(id);
 
-    if (live == null) {
-      final LiveRecipient newLive = new LiveRecipient(context, new Recipient(id));
-
-      recipients.put(id, newLive);
+    if (live != null) {
+      hits.incrementAndGet();
+      return live;
+    }
 
-      MissingRecipientException prettyStackTraceError = new MissingRecipientException(newLive.getId());
+    LiveRecipient newLive = new LiveRecipient(context, new Recipient(id));
 
-      executor.execute(() -> {
-        try {
-          newLive.resolve();
-        } catch (MissingRecipientException e) {
-          throw prettyStackTraceError;
-        }
-      });
+    live = recipients.putIfAbsent(id, newLive);
 
-      live = newLive;
+    if (live != null) {
+      hits.incrementAndGet();
+      return live;
     }
 
-    return live;
+    misses.incrementAndGet();
+    enqueueResolve(newLive);
+
+    return newLive;
   }
 
   /**
@@ -88,31 +117,119 @@ public final class LiveRecipientCache {
    * If the recipient you add is unresolved, this will enqueue a resolve on a background thread.
    */
   @AnyThread
-  public synchronized void addToCache(@NonNull Collection<Recipient> newRecipients) {
+  public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     for (Recipient recipient : newRecipients) {
-      LiveRecipient live         = recipients.get(recipient.getId());
-      boolean       needsResolve = false;
+      LiveRecipient live = recipients.get(recipient.getId());
 
       if (live == null) {
-        live = new LiveRecipient(context, recipient);
-        recipients.put(recipient.getId(), live);
-        needsResolve = recipient.isResolving();
-      } else if (live.get().isResolving() || !recipient.isResolving()) {
+        LiveRecipient newLive = new LiveRecipient(context, recipient);
+
+        live = recipients.putIfAbsent(recipient.getId(), newLive);
+
+        if (live == null) {
+          if (recipient.isResolving()) {
+            enqueueResolve(newLive);
+          }
+          continue;
+        }
+      }
+
+      if (replaceIfBetter(live, recipient) && recipient.isResolving()) {
+        enqueueResolve(live);
+      }
+    }
+  }
+
+  /**
+   * Replaces the cached recipient if the new one is resolved, or if the cached one isn't.
+   */
+  private static boolean replaceIfBetter(@NonNull LiveRecipient live, @NonNull Recipient recipient) {
+    synchronized (live) {
+      if (live.get().isResolving() || !recipient.isResolving()) {
         live.set(recipient);
-        needsResolve = recipient.isResolving();
+        return true;
       }
+      return false;
+    }
+  }
 
-      if (needsResolve) {
-        MissingRecipientException prettyStackTraceError = new MissingRecipientException(recipient.getId());
-        executor.execute(() -> {
-          try {
-            recipient.resolve();
-          } catch (MissingRecipientException e) {
-            throw prettyStackTraceError;
-          }
-        });
+  /**
+   * Resolves happen in batches on a background thread. If the calling thread holds the database
+   * lock, though, we resolve right away on this thread instead, like we always have, since it may
+   * need to see data that's only visible inside its transaction.
+   */
+  private void enqueueResolve(@NonNull LiveRecipient live) {
+    MissingRecipientException prettyStackTraceError = new MissingRecipientException(live.getId());
+
+    if (db.isDbLockedByCurrentThread()) {
+      try {
+        live.resolve();
+      } catch (MissingRecipientException e) {
+        throw prettyStackTraceError;
+      }
+    } else {
+      resolveBatcher.submit(new PendingResolve(live, prettyStackTraceError));
+    }
+  }
+
+  /**
+   * Every recipient in the batch is resolved, even if some of them fail. Once they all have been,
+   * the first failure is rethrown, so a missing recipient still crashes with the stack trace of
+   * whoever asked for it.
+   */
+  @WorkerThread
+  private void resolveBatch(@NonNull List<PendingResolve> batch) {
+    List<RecipientId> ids = new ArrayList<>(batch.size());
+    for (PendingResolve pending : batch) {
+      ids.add(pending.live.getId());
+    }
+
+    Map<RecipientId, RecipientSettings> settings;
+
+    try {
+      settings = recipientDatabase.getRecipientSettings(ids);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to read the batch. Resolving one at a time.", e);
+      settings = Collections.emptyMap();
+    }
+
+    RuntimeException failure = null;
+
+    for (PendingResolve pending : batch) {
+      RecipientSettings recipientSettings = settings.get(pending.live.getId());
+
+      try {
+        if (recipientSettings != null) {
+          pending.live.resolve(recipientSettings);
+        } else {
+          pending.live.resolve();
+        }
+      } catch (MissingRecipientException e) {
+        Log.w(TAG, "Failed to resolve " + pending.live.getId(), e);
+        if (failure == null) failure = pending.prettyStackTraceError;
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to resolve " + pending.live.getId(), e);
+        if (failure == null) failure = e;
       }
     }
+
+    long now = System.currentTimeMillis();
+
+    synchronized (resolveStatsLock) {
+      resolveBatchCount++;
+
+      for (PendingResolve pending : batch) {
+        long latency = now - pending.enqueueTime;
+
+        resolveCount++;
+        totalResolveLatencyMs += latency;
+        maxResolveLatencyMs    = Math.max(maxResolveLatencyMs, latency);
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
   }
 
   @NonNull Recipient getSelf() {
@@ -172,4 +289,43 @@ public final class LiveRecipientCache {
   public synchronized void clear() {
     recipients.clear();
   }
+
+  /**
+   * A summary of how well the cache is working. Intended for debugging.
+   */
+  @AnyThread
+  public @NonNull String getDebugInfo() {
+    long hitCount  = hits.get();
+    long missCount = misses.get();
+    long total     = hitCount + missCount;
+
+    synchronized (resolveStatsLock) {
+      return String.format(Locale.US,
+                           "Size: %d\n" +
+                           "Hits: %d (%.1f%%)\n" +
+                           "Misses: %d\n" +
+                           "Resolves: %d in %d batches\n" +
+                           "Resolve latency: %d ms avg, %d ms max\n",
+                           recipients.size(),
+                           hitCount,
+                           total > 0 ? hitCount * 100f / total : 0f,
+                           missCount,
+                           resolveCount,
+                           resolveBatchCount,
+                           resolveCount > 0 ? totalResolveLatencyMs / resolveCount : 0,
+                           maxResolveLatencyMs);
+    }
+  }
+
+  private static final class PendingResolve {
+    private final LiveRecipient             live;
+    private final MissingRecipientException prettyStackTraceError;
+    private final long                      enqueueTime;
+
+    private PendingResolve(@NonNull LiveRecipient live, @NonNull MissingRecipientException prettyStackTraceError) {
+      this.live                  = live;
+      this.prettyStackTraceError = prettyStackTraceError;
+      this.enqueueTime           = System.currentTimeMillis();
+    }
+  }
 }
@@ -59,8 +59,9 @@ import java.util.Locale;
 
 public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
-  private static final String TAG                            = Log.tag(RestoreBackupFragment.class);
-  private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE = 13782;
+  private static final String TAG                              = Log.tag(RestoreBackupFragment.class);
+  private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE   = 13782;
+  private static final short  OPEN_DELTA_DIRECTORY_RESULT_CODE = 13783;
 
   private TextView               restoreBackupSize;
   private TextView               restoreBackupTime;
@@ -68,6 +69,9 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
   private CircularProgressButton restoreButton;
   private View                   skipRestoreButton;
 
+  private BackupUtil.BackupInfo  pendingBackup;
+  private String                 pendingPassphrase;
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
                            Bundle savedInstanceState) {
@@ -140,6 +144,24 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
       Navigation.findNavController(requireView())
                 .navigate(RestoreBackupFragmentDirections.actionBackupRestored());
+    } else if (requestCode == OPEN_DELTA_DIRECTORY_RESULT_CODE && pendingBackup != null) {
+      if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+        Uri backupDirectoryUri = data.getData();
+        int takeFlags          = Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                                 Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+
+        SignalStore.settings().setSignalBackupDirectory(backupDirectoryUri);
+        requireContext().getContentResolver()
+                        .takePersistableUriPermission(backupDirectoryUri, takeFlags);
+
+        setSpinning(restoreButton);
+        skipRestoreButton.setVisibility(View.INVISIBLE);
+
+        restoreAsynchronously(requireContext(), pendingBackup, pendingPassphrase, true);
+      }
+
+      pendingBackup     = null;
+      pendingPassphrase = null;
     }
   }
 
@@ -223,7 +245,7 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
                      String passphrase = prompt.getText().toString();
 
-                     restoreAsynchronously(context, backup, passphrase);
+                     restoreAsynchronously(context, backup, passphrase, true);
                    })
                    .setNegativeButton(android.R.string.cancel, null)
                    .show();
@@ -234,7 +256,8 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
   @SuppressLint("StaticFieldLeak")
   private void restoreAsynchronously(@NonNull Context context,
                                      @NonNull BackupUtil.BackupInfo backup,
-                                     @NonNull String passphrase)
+                                     @NonNull String passphrase,
+                                     boolean includeDeltas)
   {
     new AsyncTask<Void, Void, BackupImportResult>() {
       @Override
@@ -245,11 +268,20 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
           SQLiteDatabase database = DatabaseFactory.getBackupDatabase(context);
 
           BackupPassphrase.set(context, passphrase);
-          FullBackupImporter.importFile(context,
-                                        AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                        database,
-                                        backup.getUri(),
-                                        passphrase);
+
+          if (includeDeltas) {
+            FullBackupImporter.importFile(context,
+                                          AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                          database,
+                                          backup.getUri(),
+                                          passphrase);
+          } else {
+            FullBackupImporter.importFileWithoutDeltas(context,
+                                                       AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                       database,
+                                                       backup.getUri(),
+                                                       passphrase);
+          }
 
           DatabaseFactory.upgradeRestored(context, database);
           NotificationChannels.restoreContactNotificationChannels(context);
@@ -263,6 +295,12 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
         } catch (FullBackupImporter.DatabaseDowngradeException e) {
           Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
           return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (FullBackupImporter.MissingDeltasException e) {
+          Log.w(TAG, "Failed due to not being able to look for the backup's deltas.", e);
+          return BackupImportResult.FAILURE_MISSING_DELTAS;
+        } catch (FullBackupImporter.BrokenChainException e) {
+          Log.w(TAG, "Failed due to a gap in the backup's deltas.", e);
+          return BackupImportResult.FAILURE_BROKEN_CHAIN;
         } catch (IOException e) {
           Log.w(TAG, e);
           return BackupImportResult.FAILURE_UNKNOWN;
@@ -283,6 +321,12 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
           case FAILURE_VERSION_DOWNGRADE:
             Toast.makeText(context, R.string.RegistrationActivity_backup_failure_downgrade, Toast.LENGTH_LONG).show();
             break;
+          case FAILURE_MISSING_DELTAS:
+            displayMissingDeltasDialog(context, backup, passphrase);
+            break;
+          case FAILURE_BROKEN_CHAIN:
+            displayBrokenChainDialog(context, backup, passphrase);
+            break;
           case FAILURE_UNKNOWN:
             Toast.makeText(context, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
             break;
@@ -334,6 +378,54 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
     }
   }
 
+  /**
+   * The backup starts a chain, but we can't look for the deltas that follow it. On API 29+ the user
+   * can give us the folder it's in, otherwise they can only go ahead without them.
+   */
+  private void displayMissingDeltasDialog(@NonNull Context context, @NonNull BackupUtil.BackupInfo backup, @NonNull String passphrase) {
+    AlertDialog.Builder builder = new AlertDialog.Builder(context)
+                                                 .setMessage(R.string.RestoreBackupFragment__newer_changes_may_have_been_saved_next_to_this_backup)
+                                                 .setNegativeButton(R.string.RestoreBackupFragment__restore_without_them, (dialog, which) -> {
+                                                   Log.i(TAG, "User chose to restore without deltas.");
+                                                   setSpinning(restoreButton);
+                                                   skipRestoreButton.setVisibility(View.INVISIBLE);
+
+                                                   restoreAsynchronously(context, backup, passphrase, false);
+                                                 })
+                                                 .setNeutralButton(android.R.string.cancel, null);
+
+    if (BackupUtil.isUserSelectionRequired(context)) {
+      builder.setPositiveButton(R.string.RestoreBackupFragment__choose_folder, (dialog, which) -> {
+        pendingBackup     = backup;
+        pendingPassphrase = passphrase;
+
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+
+        intent.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION |
+                        Intent.FLAG_GRANT_WRITE_URI_PERMISSION       |
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        startActivityForResult(intent, OPEN_DELTA_DIRECTORY_RESULT_CODE);
+      });
+    }
+
+    builder.show();
+  }
+
+  private void displayBrokenChainDialog(@NonNull Context context, @NonNull BackupUtil.BackupInfo backup, @NonNull String passphrase) {
+    new AlertDialog.Builder(context)
+                   .setMessage(R.string.RestoreBackupFragment__some_of_the_changes_saved_after_this_backup_are_missing)
+                   .setPositiveButton(R.string.RestoreBackupFragment__restore_without_them, (dialog, which) -> {
+                     Log.i(TAG, "User chose to restore without deltas after a gap in the chain.");
+                     setSpinning(restoreButton);
+                     skipRestoreButton.setVisibility(View.INVISIBLE);
+
+                     restoreAsynchronously(context, backup, passphrase, false);
+                   })
+                   .setNegativeButton(android.R.string.cancel, null)
+                   .show();
+  }
+
   @RequiresApi(29)
   private void displayConfirmationDialog(@NonNull Context context) {
     new AlertDialog.Builder(context)
@@ -362,6 +454,8 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
   private enum BackupImportResult {
     SUCCESS,
     FAILURE_VERSION_DOWNGRADE,
+    FAILURE_MISSING_DELTAS,
+    FAILURE_BROKEN_CHAIN,
     FAILURE_UNKNOWN
   }
 
@@ -33,6 +33,7 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
@@ -46,6 +47,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.thoughtcrime.securesms.database.SearchDatabase.SNIPPET_WRAP;
 
@@ -56,6 +58,9 @@ public class SearchRepository {
 
   private static final String TAG = Log.tag(SearchRepository.class);
 
+  private static final int MESSAGE_PAGE_SIZE   = 100;
+  private static final int MAX_MESSAGE_RESULTS = 500;
+
   private static final Set<Character> BANNED_CHARACTERS = new HashSet<>();
   static {
     // Several ranges of invalid ASCII characters
@@ -83,6 +88,7 @@ public class SearchRepository {
   private final RecipientDatabase recipientDatabase;
   private final MentionDatabase   mentionDatabase;
   private final MessageDatabase   mmsDatabase;
+  private final AtomicLong        latestQuery;
 
   public SearchRepository() {
     this.context           = ApplicationDependencies.getApplication().getApplicationContext();
@@ -95,28 +101,46 @@ public class SearchRepository {
     this.contactAccessor   = ContactAccessor.getInstance();
     this.serialExecutor    = SignalExecutors.SERIAL;
     this.parallelExecutor  = SignalExecutors.BOUNDED;
+    this.latestQuery       = new AtomicLong();
   }
 
+  /**
+   * Only the most recent query made through this repository gets its callback called. Older ones
+   * are skipped if they haven't started yet, and otherwise stop as soon as they notice.
+   */
   public void query(@NonNull String query, @NonNull Callback<SearchResult> callback) {
+    long queryId = latestQuery.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
     serialExecutor.execute(() -> {
-      String cleanQuery = sanitizeQuery(query);
+      if (isStale(queryId)) {
+        Log.d(TAG, "Skipping a query that has been superseded.");
+        return;
+      }
+
+      String  cleanQuery = sanitizeQuery(query);
+      boolean ranked     = FeatureFlags.rankedSearch();
 
       Future<List<Recipient>>     contacts        = parallelExecutor.submit(() -> queryContacts(cleanQuery));
       Future<List<ThreadRecord>>  conversations   = parallelExecutor.submit(() -> queryConversations(cleanQuery));
-      Future<List<MessageResult>> messages        = parallelExecutor.submit(() -> queryMessages(cleanQuery));
+      Future<List<MessageResult>> messages        = parallelExecutor.submit(() -> queryMessages(cleanQuery, ranked, queryId));
       Future<List<MessageResult>> mentionMessages = parallelExecutor.submit(() -> queryMentions(sanitizeQueryAsTokens(query)));
 
       try {
         long         startTime = System.currentTimeMillis();
-        SearchResult result    = new SearchResult(cleanQuery, contacts.get(), conversations.get(), mergeMessagesAndMentions(messages.get(), mentionMessages.get()));
+        SearchResult result    = new SearchResult(cleanQuery, contacts.get(), conversations.get(), mergeMessagesAndMentions(messages.get(), mentionMessages.get(), ranked));
 
         Log.d(TAG, "Total time: " + (System.currentTimeMillis() - startTime) + " ms");
 
+        if (isStale(queryId)) {
+          Log.d(TAG, "Dropping results for a query that has been superseded.");
+          return;
+        }
+
         callback.onResult(result);
       } catch (ExecutionException | InterruptedException e) {
         Log.w(TAG, e);
@@ -126,22 +150,38 @@ public class SearchRepository {
   }
 
   public void query(@NonNull String query, long threadId, @NonNull Callback<List<MessageResult>> callback) {
+    long queryId = latestQuery.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(CursorList.emptyList());
       return;
     }
 
     serialExecutor.execute(() -> {
+      if (isStale(queryId)) {
+        Log.d(TAG, "[ConversationQuery] Skipping a query that has been superseded.");
+        return;
+      }
+
       long                startTime       = System.currentTimeMillis();
       List<MessageResult> messages        = queryMessages(sanitizeQuery(query), threadId);
       List<MessageResult> mentionMessages = queryMentions(sanitizeQueryAsTokens(query), threadId);
 
       Log.d(TAG, "[ConversationQuery] " + (System.currentTimeMillis() - startTime) + " ms");
 
-      callback.onResult(mergeMessagesAndMentions(messages, mentionMessages));
+      if (isStale(queryId)) {
+        Log.d(TAG, "[ConversationQuery] Dropping results for a query that has been superseded.");
+        return;
+      }
+
+      callback.onResult(mergeMessagesAndMentions(messages, mentionMessages, false));
     });
   }
 
+  private boolean isStale(long queryId) {
+    return queryId != latestQuery.get();
+  }
+
   private List<Recipient> queryContacts(String query) {
     Cursor contacts = null;
 
@@ -168,10 +208,15 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
+  private @NonNull List<MessageResult> queryMessages(@NonNull String query, boolean ranked, long queryId) {
     List<MessageResult> results;
-    try (Cursor cursor = searchDatabase.queryMessages(query)) {
-      results = readToList(cursor, new MessageModelBuilder());
+
+    if (ranked) {
+      results = queryRankedMessages(query, queryId);
+    } else {
+      try (Cursor cursor = searchDatabase.queryMessages(query)) {
+        results = readToList(cursor, new MessageModelBuilder());
+      }
     }
 
     List<Long> messageIds = new LinkedList<>();
@@ -209,6 +254,43 @@ public class SearchRepository {
     return updatedResults;
   }
 
+  /**
+   * Reads ranked results a page at a time, which lets us give up early if a newer query comes in.
+   */
+  private @NonNull List<MessageResult> queryRankedMessages(@NonNull String query, long queryId) {
+    List<MessageResult>    results = new ArrayList<>();
+    MessageModelBuilder    builder = new MessageModelBuilder();
+    SearchDatabase.PageKey after   = null;
+
+    while (results.size() < MAX_MESSAGE_RESULTS) {
+      if (isStale(queryId)) {
+        Log.d(TAG, "Stopping a ranked query that has been superseded after " + results.size() + " results.");
+        break;
+      }
+
+      int pageSize = Math.min(MESSAGE_PAGE_SIZE, MAX_MESSAGE_RESULTS - results.size());
+      int read     = 0;
+
+      try (Cursor cursor = searchDatabase.queryMessagesRanked(query, -1, after, pageSize)) {
+        if (cursor == null) {
+          break;
+        }
+
+        while (cursor.moveToNext()) {
+          results.add(builder.build(cursor));
+          after = SearchDatabase.PageKey.fromCursor(cursor);
+          read++;
+        }
+      }
+
+      if (read < pageSize) {
+        break;
+      }
+    }
+
+    return results;
+  }
+
   private @NonNull String updateSnippetWithDisplayNames(@NonNull String body, @NonNull String bodySnippet, @NonNull List<Mention> mentions) {
     String cleanSnippet = bodySnippet;
     int    startOffset  = 0;
@@ -377,7 +459,11 @@ public class SearchRepository {
     return Stream.of(parts).map(this::sanitizeQuery).toList();
   }
 
-  private static @NonNull List<MessageResult> mergeMessagesAndMentions(@NonNull List<MessageResult> messages, @NonNull List<MessageResult> mentionMessages) {
+  /**
+   * @param ranked If the messages are in rank order, keeps them that way, with any mentions that
+   *               weren't already included following them. Otherwise everything is sorted by date.
+   */
+  private static @NonNull List<MessageResult> mergeMessagesAndMentions(@NonNull List<MessageResult> messages, @NonNull List<MessageResult> mentionMessages, boolean ranked) {
     Set<Long> includedMmsMessages = new HashSet<>();
 
     List<MessageResult> combined = new ArrayList<>(messages.size() + mentionMessages.size());
@@ -394,7 +480,8 @@ public class SearchRepository {
       }
     }
 
-    Collections.sort(combined, Collections.reverseOrder((left, right) -> Long.compare(left.receivedTimestampMs, right.receivedTimestampMs)));
+    List<MessageResult> toSort = ranked ? combined.subList(messages.size(), combined.size()) : combined;
+    Collections.sort(toSort, Collections.reverseOrder((left, right) -> Long.compare(left.receivedTimestampMs, right.receivedTimestampMs)));
 
     return combined;
   }
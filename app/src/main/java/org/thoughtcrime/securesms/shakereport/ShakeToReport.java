@@ -11,7 +11,6 @@ import androidx.appcompat.app.AlertDialog;
 import org.signal.core.util.ShakeDetector;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
-import org.signal.core.util.tracing.Tracer;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.logsubmit.SubmitDebugLogRepository;
@@ -92,7 +91,7 @@ public final class ShakeToReport implements ShakeDetector.Listener {
     repo.getLogLines(lines -> {
       Log.i(TAG, "Retrieved log lines...");
 
-      repo.submitLog(lines, Tracer.getInstance().serialize(), url -> {
+      repo.submitLogWithTrace(lines, url -> {
         Log.i(TAG, "Logs uploaded!");
 
         ThreadUtil.runOnMain(() -> {
@@ -16,6 +16,7 @@ import androidx.documentfile.provider.DocumentFile;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.IncrementalBackupState;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
@@ -37,12 +38,19 @@ public class BackupUtil {
 
   public static final int PASSPHRASE_LENGTH = 30;
 
+  private static final String BACKUP_EXTENSION = ".backup";
+  private static final String DELTA_EXTENSION  = ".delta";
+
   public static @NonNull String getLastBackupTime(@NonNull Context context, @NonNull Locale locale) {
     try {
-      BackupInfo backup = getLatestBackup();
+      List<BackupInfo> backups = getAllBackupsNewestFirst();
+      List<BackupInfo> deltas  = getAllDeltasNewestFirst();
+
+      long timestamp = Math.max(backups.isEmpty() ? -1 : backups.get(0).getTimestamp(),
+                                deltas.isEmpty()  ? -1 : deltas.get(0).getTimestamp());
 
-      if (backup == null) return context.getString(R.string.BackupUtil_never);
-      else                return DateUtils.getExtendedRelativeTimeSpanString(context, locale, backup.getTimestamp());
+      if (timestamp == -1) return context.getString(R.string.BackupUtil_never);
+      else                 return DateUtils.getExtendedRelativeTimeSpanString(context, locale, timestamp);
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
       return context.getString(R.string.BackupUtil_unknown);
@@ -82,6 +90,10 @@ public class BackupUtil {
       for (BackupInfo backup : backups) {
         backup.delete();
       }
+
+      for (BackupInfo delta : getAllDeltasNewestFirst()) {
+        delta.delete();
+      }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
@@ -96,6 +108,16 @@ public class BackupUtil {
       for (int i = 2; i < backups.size(); i++) {
         backups.get(i).delete();
       }
+
+      if (backups.size() >= 2) {
+        long oldestKept = backups.get(1).getTimestamp();
+
+        for (BackupInfo delta : getAllDeltasNewestFirst()) {
+          if (delta.getTimestamp() < oldestKept) {
+            delta.delete();
+          }
+        }
+      }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
@@ -103,6 +125,7 @@ public class BackupUtil {
 
   public static void disableBackups(@NonNull Context context) {
     BackupPassphrase.set(context, null);
+    IncrementalBackupState.clear(context);
     TextSecurePreferences.setBackupEnabled(context, false);
     BackupUtil.deleteAllBackups();
 
@@ -126,16 +149,78 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * Finds the deltas that were written on top of the given backup, oldest first. That's every delta
+   * written after it and before the next backup.
+   *
+   * A backup file is looked at alongside its neighbours in the same folder. Anything else, like a
+   * backup picked by the user, is looked at alongside the backup directory, as long as we can read
+   * it. Deltas that turn out not to belong to the backup are skipped when they're imported.
+   *
+   * @return The deltas, or null if there's nowhere we can look for them.
+   */
+  public static @Nullable List<Uri> getDeltasFor(@NonNull Context context, @NonNull Uri backupUri) {
+    boolean isFile = "file".equals(backupUri.getScheme());
+    String  name   = isFile ? new File(Objects.requireNonNull(backupUri.getPath())).getName()
+                            : DocumentFile.fromSingleUri(context, backupUri).getName();
+    long    base   = name != null ? getBackupTimestamp(name) : -1;
+
+    if (base == -1) {
+      Log.w(TAG, "Backup name doesn't have a timestamp, so we can't tell which deltas follow it.");
+      return null;
+    }
+
+    if (!isFile && !canUserAccessBackupDirectory(context)) {
+      Log.w(TAG, "Can't read the backup directory, so we can't look for deltas.");
+      return null;
+    }
+
+    try {
+      File             directory = isFile ? new File(backupUri.getPath()).getParentFile() : null;
+      List<BackupInfo> backups   = directory != null ? getAllInDirectoryNewestFirst(directory, BACKUP_EXTENSION) : getAllBackupsNewestFirst();
+      List<BackupInfo> deltas    = directory != null ? getAllInDirectoryNewestFirst(directory, DELTA_EXTENSION) : getAllDeltasNewestFirst();
+
+      long next = Long.MAX_VALUE;
+
+      for (BackupInfo backup : backups) {
+        if (backup.getTimestamp() > base) {
+          next = backup.getTimestamp();
+        }
+      }
+
+      List<Uri> results = new ArrayList<>();
+
+      for (BackupInfo delta : deltas) {
+        if (delta.getTimestamp() > base && delta.getTimestamp() < next) {
+          results.add(0, delta.getUri());
+        }
+      }
+
+      return results;
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
   private static List<BackupInfo> getAllBackupsNewestFirst() throws NoExternalStorageException {
+    return getAllNewestFirst(BACKUP_EXTENSION);
+  }
+
+  private static List<BackupInfo> getAllDeltasNewestFirst() throws NoExternalStorageException {
+    return getAllNewestFirst(DELTA_EXTENSION);
+  }
+
+  private static List<BackupInfo> getAllNewestFirst(@NonNull String extension) throws NoExternalStorageException {
     if (isUserSelectionRequired(ApplicationDependencies.getApplication())) {
-      return getAllBackupsNewestFirstApi29();
+      return getAllBackupsNewestFirstApi29(extension);
     } else {
-      return getAllBackupsNewestFirstLegacy();
+      return getAllBackupsNewestFirstLegacy(extension);
     }
   }
 
   @RequiresApi(29)
-  private static List<BackupInfo> getAllBackupsNewestFirstApi29() {
+  private static List<BackupInfo> getAllBackupsNewestFirstApi29(@NonNull String extension) {
     Uri backupDirectoryUri = SignalStore.settings().getSignalBackupDirectory();
     if (backupDirectoryUri == null) {
       Log.i(TAG, "Backup directory is not set. Returning an empty list.");
@@ -152,7 +237,7 @@ public class BackupUtil {
     List<BackupInfo> backups = new ArrayList<>(files.length);
 
     for (DocumentFile file : files) {
-      if (file.isFile() && file.getName() != null && file.getName().endsWith(".backup")) {
+      if (file.isFile() && file.getName() != null && file.getName().endsWith(extension)) {
         long backupTimestamp = getBackupTimestamp(file.getName());
 
         if (backupTimestamp != -1) {
@@ -178,13 +263,21 @@ public class BackupUtil {
     }
   }
 
-  private static List<BackupInfo> getAllBackupsNewestFirstLegacy() throws NoExternalStorageException {
-    File             backupDirectory = StorageUtil.getOrCreateBackupDirectory();
-    File[]           files           = backupDirectory.listFiles();
-    List<BackupInfo> backups         = new ArrayList<>(files.length);
+  private static List<BackupInfo> getAllBackupsNewestFirstLegacy(@NonNull String extension) throws NoExternalStorageException {
+    return getAllInDirectoryNewestFirst(StorageUtil.getOrCreateBackupDirectory(), extension);
+  }
+
+  private static List<BackupInfo> getAllInDirectoryNewestFirst(@NonNull File directory, @NonNull String extension) throws NoExternalStorageException {
+    File[] files = directory.listFiles();
+
+    if (files == null) {
+      throw new NoExternalStorageException("Can't list " + directory);
+    }
+
+    List<BackupInfo> backups = new ArrayList<>(files.length);
 
     for (File file : files) {
-      if (file.isFile() && file.getAbsolutePath().endsWith(".backup")) {
+      if (file.isFile() && file.getAbsolutePath().endsWith(extension)) {
         long backupTimestamp = getBackupTimestamp(file.getName());
 
         if (backupTimestamp != -1) {
@@ -267,7 +360,7 @@ public class BackupUtil {
     } else if (!documentFile.canRead()) {
       Log.w(TAG, "isBackupFileReadable: The document at the specified Uri cannot be read.");
       return false;
-    } else if (TextUtils.isEmpty(documentFile.getName()) || !documentFile.getName().endsWith(".backup")) {
+    } else if (TextUtils.isEmpty(documentFile.getName()) || !documentFile.getName().endsWith(BACKUP_EXTENSION)) {
       Log.w(TAG, "isBackupFileReadable: The document at the specified Uri has an unsupported file extension.");
       return false;
     } else {
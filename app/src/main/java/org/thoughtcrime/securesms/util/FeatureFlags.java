@@ -64,6 +64,7 @@ public final class FeatureFlags {
   private static final String GV1_FORCED_MIGRATE                = "android.groupsV1Migration.forced.2";
   private static final String SEND_VIEWED_RECEIPTS              = "android.sendViewedReceipts";
   private static final String CUSTOM_VIDEO_MUXER                = "android.customVideoMuxer";
+  private static final String FILE_CHANNEL_VIDEO_MUXER          = "android.fileChannelVideoMuxer";
   private static final String CDS_REFRESH_INTERVAL              = "cds.syncInterval.seconds";
   private static final String AUTOMATIC_SESSION_RESET           = "android.automaticSessionReset.2";
   private static final String AUTOMATIC_SESSION_INTERVAL        = "android.automaticSessionResetInterval";
@@ -77,6 +78,9 @@ public final class FeatureFlags {
   private static final String MESSAGE_PROCESSOR_DELAY           = "android.messageProcessor.foregroundDelayMs";
   private static final String STORAGE_SYNC_V2                   = "android.storageSyncV2.3";
   private static final String NOTIFICATION_REWRITE              = "android.notificationRewrite";
+  private static final String RANKED_SEARCH                     = "android.rankedSearch";
+  private static final String BATCHED_MESSAGE_READ              = "android.batchedMessageRead";
+  private static final String PIPELINED_MESSAGE_PROCESSING      = "android.pipelinedMessageProcessing";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -96,6 +100,7 @@ public final class FeatureFlags {
       GV1_FORCED_MIGRATE,
       SEND_VIEWED_RECEIPTS,
       CUSTOM_VIDEO_MUXER,
+      FILE_CHANNEL_VIDEO_MUXER,
       CDS_REFRESH_INTERVAL,
       GROUP_NAME_MAX_LENGTH,
       AUTOMATIC_SESSION_RESET,
@@ -109,7 +114,10 @@ public final class FeatureFlags {
       MESSAGE_PROCESSOR_ALARM_INTERVAL,
       MESSAGE_PROCESSOR_DELAY,
       STORAGE_SYNC_V2,
-      NOTIFICATION_REWRITE
+      NOTIFICATION_REWRITE,
+      RANKED_SEARCH,
+      BATCHED_MESSAGE_READ,
+      PIPELINED_MESSAGE_PROCESSING
   );
 
   @VisibleForTesting
@@ -291,6 +299,11 @@ public final class FeatureFlags {
     return getBoolean(CUSTOM_VIDEO_MUXER, false);
   }
 
+  /** Whether in-memory transcodes should be muxed through a file channel rather than the built in android muxer. */
+  public static boolean useFileChannelVideoMuxer() {
+    return getBoolean(FILE_CHANNEL_VIDEO_MUXER, false);
+  }
+
   /** The time in between routine CDS refreshes, in seconds. */
   public static int cdsRefreshIntervalSeconds() {
     return getInteger(CDS_REFRESH_INTERVAL, (int) TimeUnit.HOURS.toSeconds(48));
@@ -351,6 +364,21 @@ public final class FeatureFlags {
     return getBoolean(NOTIFICATION_REWRITE, false) && Build.VERSION.SDK_INT >= 26;
   }
 
+  /** Whether or not message search results should be ranked by relevance rather than date. */
+  public static boolean rankedSearch() {
+    return getBoolean(RANKED_SEARCH, false);
+  }
+
+  /** Whether or not messages should be read off the websocket, persisted and acknowledged in batches. */
+  public static boolean batchedMessageRead() {
+    return getBoolean(BATCHED_MESSAGE_READ, false);
+  }
+
+  /** Whether or not batches of messages should be decrypted in parallel, rather than by one job each. */
+  public static boolean pipelinedMessageProcessing() {
+    return getBoolean(PIPELINED_MESSAGE_PROCESSING, false);
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
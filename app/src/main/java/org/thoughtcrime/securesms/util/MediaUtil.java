@@ -389,8 +389,12 @@ public class MediaUtil {
 
     MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
 
-    MediaMetadataRetrieverUtil.setDataSource(mediaMetadataRetriever, dataSource);
-    return mediaMetadataRetriever.getFrameAtTime(timeUs);
+    try {
+      MediaMetadataRetrieverUtil.setDataSource(mediaMetadataRetriever, dataSource);
+      return mediaMetadataRetriever.getFrameAtTime(timeUs);
+    } finally {
+      mediaMetadataRetriever.release();
+    }
   }
 
   public static @Nullable String getDiscreteMimeType(@NonNull String mimeType) {
@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded, thread-safe cache that's split into independently locked shards, so that threads
+ * working with different keys rarely contend for the same lock.
+ *
+ * Each shard evicts its own least-recently-used entry once it's full, which means eviction is only
+ * approximately LRU across the cache as a whole.
+ */
+public final class ShardedLRUCache<K, V> {
+
+  private static final int DEFAULT_SHARD_COUNT = 16;
+
+  private final Shard<K, V>[] shards;
+
+  public ShardedLRUCache(int maxSize) {
+    this(maxSize, DEFAULT_SHARD_COUNT);
+  }
+
+  @SuppressWarnings("unchecked")
+  public ShardedLRUCache(int maxSize, int shardCount) {
+    if (maxSize < 1 || shardCount < 1) {
+      throw new IllegalArgumentException("maxSize and shardCount must be positive!");
+    }
+
+    int count        = Math.min(shardCount, maxSize);
+    int maxShardSize = (maxSize + count - 1) / count;
+
+    this.shards = new Shard[count];
+
+    for (int i = 0; i < count; i++) {
+      shards[i] = new Shard<>(maxShardSize);
+    }
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    Shard<K, V> shard = shardFor(key);
+
+    synchronized (shard) {
+      return shard.get(key);
+    }
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    Shard<K, V> shard = shardFor(key);
+
+    synchronized (shard) {
+      shard.put(key, value);
+    }
+  }
+
+  /**
+   * Inserts the value if there's no entry for the key.
+   *
+   * @return The existing value, or null if the provided value was inserted.
+   */
+  public @Nullable V putIfAbsent(@NonNull K key, @NonNull V value) {
+    Shard<K, V> shard = shardFor(key);
+
+    synchronized (shard) {
+      V existing = shard.get(key);
+
+      if (existing == null) {
+        shard.put(key, value);
+      }
+
+      return existing;
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (Shard<K, V> shard : shards) {
+      synchronized (shard) {
+        size += shard.size();
+      }
+    }
+
+    return size;
+  }
+
+  public void clear() {
+    for (Shard<K, V> shard : shards) {
+      synchronized (shard) {
+        shard.clear();
+      }
+    }
+  }
+
+  private @NonNull Shard<K, V> shardFor(@NonNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return shards[(hash & 0x7fffffff) % shards.length];
+  }
+
+  private static final class Shard<K, V> extends LinkedHashMap<K, V> {
+
+    private final int maxSize;
+
+    private Shard(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -6,6 +6,8 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 
+import java.io.IOException;
+
 public class SignalUncaughtExceptionHandler implements Thread.UncaughtExceptionHandler {
 
   private static final String TAG = Log.tag(SignalUncaughtExceptionHandler.class);
@@ -21,7 +23,11 @@ public class SignalUncaughtExceptionHandler implements Thread.UncaughtExceptionH
     Log.e(TAG, "", e);
     SignalStore.blockUntilAllWritesFinished();
     Log.blockUntilAllWritesFinished();
-    ApplicationDependencies.getJobManager().flush();
+    try {
+      ApplicationDependencies.getJobManager().flush();
+    } catch (IOException flushException) {
+      Log.w(TAG, "Failed to flush the job manager.", flushException);
+    }
     originalHandler.uncaughtException(t, e);
   }
 }
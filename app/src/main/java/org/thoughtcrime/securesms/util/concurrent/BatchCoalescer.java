@@ -0,0 +1,94 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects items submitted from any thread and hands them to a {@link BatchProcessor} in batches on
+ * the provided executor. Once the first item of a batch arrives, we wait up to windowMs for more to
+ * come in, or until maxBatchSize items have been collected, whichever comes first.
+ *
+ * Batches are formed in the order items were submitted. As soon as one batch has been taken, the
+ * next one starts collecting, so batches can be processed concurrently if the executor has more
+ * than one thread.
+ */
+public final class BatchCoalescer<T> {
+
+  private static final String TAG = Log.tag(BatchCoalescer.class);
+
+  private final Executor          executor;
+  private final long              windowMs;
+  private final int               maxBatchSize;
+  private final BatchProcessor<T> processor;
+  private final Object            lock;
+
+  private List<T> pending;
+  private boolean drainScheduled;
+
+  public BatchCoalescer(@NonNull Executor executor, long windowMs, int maxBatchSize, @NonNull BatchProcessor<T> processor) {
+    this.executor     = executor;
+    this.windowMs     = windowMs;
+    this.maxBatchSize = maxBatchSize;
+    this.processor    = processor;
+    this.lock         = new Object();
+    this.pending      = new ArrayList<>();
+  }
+
+  public void submit(@NonNull T item) {
+    synchronized (lock) {
+      pending.add(item);
+
+      if (!drainScheduled) {
+        drainScheduled = true;
+        executor.execute(this::drain);
+      } else if (pending.size() >= maxBatchSize) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void drain() {
+    List<T> batch;
+    boolean drainAgain;
+
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + windowMs;
+      long remaining;
+
+      while (pending.size() < maxBatchSize && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted while collecting a batch. Processing early.", e);
+          break;
+        }
+      }
+
+      if (pending.size() <= maxBatchSize) {
+        batch   = pending;
+        pending = new ArrayList<>();
+      } else {
+        batch   = new ArrayList<>(pending.subList(0, maxBatchSize));
+        pending = new ArrayList<>(pending.subList(maxBatchSize, pending.size()));
+      }
+
+      drainAgain     = !pending.isEmpty();
+      drainScheduled = drainAgain;
+    }
+
+    if (drainAgain) {
+      executor.execute(this::drain);
+    }
+
+    processor.process(batch);
+  }
+
+  public interface BatchProcessor<T> {
+    void process(@NonNull List<T> batch);
+  }
+}
@@ -13,6 +13,7 @@ import com.google.android.exoplayer2.util.MimeTypes;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.media.MediaInput;
 import org.thoughtcrime.securesms.mms.MediaStream;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.MemoryFileDescriptor;
 import org.thoughtcrime.securesms.video.videoconverter.EncodingException;
 import org.thoughtcrime.securesms.video.videoconverter.MediaConverter;
@@ -20,6 +21,7 @@ import org.thoughtcrime.securesms.video.videoconverter.MediaConverter;
 import java.io.Closeable;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.Locale;
@@ -114,30 +116,22 @@ public final class InMemoryTranscoder implements Closeable {
 
     final FileDescriptor memoryFileFileDescriptor = memoryFile.getFileDescriptor();
 
-    final MediaConverter converter = new MediaConverter();
-
-    converter.setInput(new MediaInput.MediaDataSourceMediaInput(dataSource));
-    converter.setOutput(memoryFileFileDescriptor);
-    converter.setVideoResolution(targetQuality.getOutputResolution());
-    converter.setVideoBitrate(targetQuality.getTargetVideoBitRate());
-    converter.setAudioBitrate(targetQuality.getTargetAudioBitRate());
-
-    if (options != null) {
-      if (options.endTimeUs > 0) {
-        long timeFrom = options.startTimeUs / 1000;
-        long timeTo   = options.endTimeUs   / 1000;
-        converter.setTimeRange(timeFrom, timeTo);
-        Log.i(TAG, String.format(Locale.US, "Trimming:\nTotal duration: %d\nKeeping: %d..%d\nFinal duration:(%d)", duration, timeFrom, timeTo, timeTo - timeFrom));
+    if (FeatureFlags.useFileChannelVideoMuxer()) {
+      try {
+        convert(memoryFileFileDescriptor, true, progress, cancelationSignal);
+      } catch (EncodingException | IOException | RuntimeException e) {
+        if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+          throw e;
+        }
+
+        Log.w(TAG, "Failed to transcode through the file channel muxer. Falling back to MediaMuxer.", e);
+        truncate(memoryFileFileDescriptor);
+        convert(memoryFileFileDescriptor, false, progress, cancelationSignal);
       }
+    } else {
+      convert(memoryFileFileDescriptor, false, progress, cancelationSignal);
     }
 
-    converter.setListener(percent -> {
-      progress.onProgress(percent);
-      return cancelationSignal != null && cancelationSignal.isCanceled();
-    });
-
-    converter.convert();
-
     // output details of the transcoding
     long  outSize           = memoryFile.size();
     float encodeDurationSec = (System.currentTimeMillis() - startTime) / 1000f;
@@ -167,6 +161,65 @@ public final class InMemoryTranscoder implements Closeable {
     return new MediaStream(new FileInputStream(memoryFileFileDescriptor), MimeTypes.VIDEO_MP4, 0, 0);
   }
 
+  /**
+   * @param useFileChannel Whether to mux through a channel over the memory file, rather than handing
+   *                       the descriptor to MediaMuxer.
+   */
+  private void convert(@NonNull FileDescriptor memoryFileFileDescriptor,
+                       boolean useFileChannel,
+                       @NonNull Progress progress,
+                       @Nullable TranscoderCancelationSignal cancelationSignal)
+      throws IOException, EncodingException
+  {
+    final FileOutputStream memoryFileOutputStream = useFileChannel ? new FileOutputStream(memoryFileFileDescriptor) : null;
+
+    final MediaConverter converter = new MediaConverter();
+
+    converter.setInput(new MediaInput.MediaDataSourceMediaInput(dataSource));
+
+    if (memoryFileOutputStream != null) {
+      converter.setOutput(memoryFileOutputStream.getChannel());
+    } else {
+      converter.setOutput(memoryFileFileDescriptor);
+    }
+
+    converter.setVideoResolution(targetQuality.getOutputResolution());
+    converter.setVideoBitrate(targetQuality.getTargetVideoBitRate());
+    converter.setAudioBitrate(targetQuality.getTargetAudioBitRate());
+
+    if (options != null) {
+      if (options.endTimeUs > 0) {
+        long timeFrom = options.startTimeUs / 1000;
+        long timeTo   = options.endTimeUs   / 1000;
+        converter.setTimeRange(timeFrom, timeTo);
+        Log.i(TAG, String.format(Locale.US, "Trimming:\nTotal duration: %d\nKeeping: %d..%d\nFinal duration:(%d)", duration, timeFrom, timeTo, timeTo - timeFrom));
+      }
+    }
+
+    converter.setListener(percent -> {
+      progress.onProgress(percent);
+      return cancelationSignal != null && cancelationSignal.isCanceled();
+    });
+
+    try {
+      converter.convert();
+    } finally {
+      if (memoryFileOutputStream != null) {
+        memoryFileOutputStream.close();
+      }
+    }
+  }
+
+  /**
+   * Throws away anything a failed attempt wrote, so the next one starts from an empty file.
+   */
+  private static void truncate(@NonNull FileDescriptor fileDescriptor) throws IOException {
+    try (FileOutputStream outputStream = new FileOutputStream(fileDescriptor)) {
+      outputStream.getChannel().truncate(0);
+      outputStream.getChannel().position(0);
+    }
+  }
+
   public boolean isTranscodeRequired() {
     return transcodeRequired;
   }
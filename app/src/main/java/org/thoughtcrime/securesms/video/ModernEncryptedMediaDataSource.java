@@ -7,11 +7,11 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartChannel;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Create via {@link EncryptedMediaDataSource}.
@@ -20,6 +20,9 @@ import java.io.InputStream;
  * <p>
  * It is "modern" compared to the {@link ClassicEncryptedMediaDataSource}. And "modern" refers to
  * the presence of a random part of the key supplied in the constructor.
+ * <p>
+ * The file is opened on the first read and kept open until closed, so that seeking around a long
+ * video doesn't reopen it each time.
  */
 @RequiresApi(23)
 final class ModernEncryptedMediaDataSource extends MediaDataSource {
@@ -29,6 +32,8 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private ModernDecryptingPartChannel channel;
+
   ModernEncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -37,32 +42,12 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+  public synchronized int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
     if (position >= this.length) {
       return -1;
     }
 
-    try (InputStream inputStream = createInputStream(position)) {
-      int totalRead = 0;
-
-      while (length > 0) {
-        int read = inputStream.read(bytes, offset, length);
-
-        if (read == -1) {
-          if (totalRead == 0) {
-            return -1;
-          } else {
-            return totalRead;
-          }
-        }
-
-        length    -= read;
-        offset    += read;
-        totalRead += read;
-      }
-
-      return totalRead;
-    }
+    return getChannel().read(ByteBuffer.wrap(bytes, offset, length), position);
   }
 
   @Override
@@ -71,14 +56,22 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() {
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
   }
 
-  private InputStream createInputStream(long position) throws IOException {
-    if (random == null) {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, mediaFile, position);
-    } else {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
+  private @NonNull ModernDecryptingPartChannel getChannel() throws IOException {
+    if (channel == null) {
+      if (random == null) {
+        channel = ModernDecryptingPartChannel.createFor(attachmentSecret, mediaFile);
+      } else {
+        channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, mediaFile);
+      }
     }
+
+    return channel;
   }
 }
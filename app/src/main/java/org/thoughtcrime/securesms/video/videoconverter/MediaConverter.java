@@ -39,6 +39,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.channels.FileChannel;
 
 @SuppressWarnings("WeakerAccess")
 public final class MediaConverter {
@@ -91,6 +92,10 @@ public final class MediaConverter {
         mOutput = new StreamOutput(stream);
     }
 
+    public void setOutput(final @NonNull FileChannel channel) {
+        mOutput = new FileChannelOutput(channel);
+    }
+
     @SuppressWarnings("unused")
     public void setTimeRange(long timeFrom, long timeTo) {
         mTimeFrom = timeFrom;
@@ -352,4 +357,18 @@ public final class MediaConverter {
             return new StreamingMuxer(outputStream);
         }
     }
+
+    private static class FileChannelOutput implements Output {
+
+        final FileChannel fileChannel;
+
+        FileChannelOutput(final @NonNull FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        public @NonNull Muxer createMuxer() {
+            return new StreamingMuxer(fileChannel);
+        }
+    }
 }
@@ -0,0 +1,305 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class BackupExportPipelineTest {
+
+  private static final byte[] BACKUP_KEY = new byte[32];
+  private static final byte[] SALT       = new byte[32];
+  private static final byte[] IV         = new byte[16];
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void writesSameBytesAsWritingDirectly() throws IOException {
+    byte[] small = randomBytes(100);
+    byte[] large = randomBytes(BackupFrameOutputStream.BUFFER_SIZE * 3 + 17);
+
+    ByteArrayOutputStream   expected = new ByteArrayOutputStream();
+    BackupFrameOutputStream direct   = newFrameOutputStream(expected);
+
+    direct.write(versionFrame(5));
+    for (int i = 0; i < 1000; i++) {
+      direct.write(statementFrame(i));
+    }
+    direct.write(attachmentFrame(1, small.length), new ByteArrayInputStream(small), small.length);
+    direct.write(statementFrame(1000));
+    direct.write(attachmentFrame(2, large.length), new ByteArrayInputStream(large), large.length);
+    direct.write(attachmentFrame(3, 0), new ByteArrayInputStream(new byte[0]), 0);
+    direct.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    direct.flush();
+
+    ByteArrayOutputStream actual   = new ByteArrayOutputStream();
+    BackupExportPipeline  pipeline = new BackupExportPipeline(newFrameOutputStream(actual));
+
+    pipeline.writeDatabaseVersion(5);
+    for (int i = 0; i < 1000; i++) {
+      pipeline.write(statement(i));
+    }
+    pipeline.write(new AttachmentId(1, 1), new ByteArrayInputStream(small), small.length, null);
+    pipeline.write(statement(1000));
+    pipeline.write(new AttachmentId(2, 2), new ByteArrayInputStream(large), large.length, null);
+    pipeline.write(new AttachmentId(3, 3), new ByteArrayInputStream(new byte[0]), 0, null);
+    pipeline.writeEnd();
+    pipeline.finish();
+    pipeline.shutdown(true);
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void attachmentReadFailure_doesNotFailBackup() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new ByteArrayOutputStream()));
+
+    pipeline.write(new AttachmentId(1, 1), new FailingInputStream(1000), 2000, null);
+    pipeline.write(statement(1));
+    pipeline.writeEnd();
+    pipeline.finish();
+    pipeline.shutdown(true);
+  }
+
+  @Test
+  public void attachmentShorterThanExpected_doesNotFailBackup() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new ByteArrayOutputStream()));
+
+    pipeline.write(new AttachmentId(1, 1), new ByteArrayInputStream(randomBytes(1000)), 2000, null);
+    pipeline.write(statement(1));
+    pipeline.writeEnd();
+    pipeline.finish();
+    pipeline.shutdown(true);
+  }
+
+  @Test
+  public void attachmentOutputFailure_failsBackup() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new FailOnceOutputStream()));
+
+    try {
+      pipeline.write(new AttachmentId(1, 1), new ByteArrayInputStream(randomBytes(1_000_000)), 1_000_000, null);
+      pipeline.writeEnd();
+      pipeline.finish();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    } finally {
+      pipeline.shutdown(true);
+    }
+  }
+
+  @Test
+  public void onWritten_onlyRunForStreamsThatWereWrittenInFull() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new ByteArrayOutputStream()));
+    Set<Long>            written  = Collections.synchronizedSet(new HashSet<>());
+
+    pipeline.write(new AttachmentId(1, 1), new ByteArrayInputStream(randomBytes(1000)), 1000, () -> written.add(1L));
+    pipeline.write(new AttachmentId(2, 2), new FailingInputStream(1000), 2000, () -> written.add(2L));
+    pipeline.writeExternalAttachment(new AttachmentId(3, 3), 1000, () -> written.add(3L));
+    pipeline.writeSticker(4, new FailingInputStream(1000), 2000, () -> written.add(4L));
+    pipeline.writeSticker(5, new ByteArrayInputStream(randomBytes(1000)), 1000, () -> written.add(5L));
+    pipeline.writeEnd();
+    pipeline.finish();
+    pipeline.shutdown(true);
+
+    assertEquals(new HashSet<>(Arrays.asList(1L, 3L, 5L)), written);
+  }
+
+  @Test
+  public void avatarReadFailure_failsBackup() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new ByteArrayOutputStream()));
+
+    try {
+      pipeline.write("avatar", new FailingInputStream(1000), 2000);
+      pipeline.writeEnd();
+      pipeline.finish();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    } finally {
+      pipeline.shutdown(true);
+    }
+  }
+
+  @Test
+  public void outputFailure_isRethrownToCaller() throws IOException {
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(new FailingOutputStream()));
+
+    try {
+      for (int i = 0; i < 100_000; i++) {
+        pipeline.write(statement(i));
+      }
+      pipeline.finish();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    } finally {
+      pipeline.shutdown(true);
+    }
+  }
+
+  @Test
+  public void shutdown_closesStreamsThatWereNeverWritten() throws IOException, InterruptedException {
+    BlockingOutputStream output   = new BlockingOutputStream();
+    BackupExportPipeline pipeline = new BackupExportPipeline(newFrameOutputStream(output));
+    CountDownLatch       closed   = new CountDownLatch(3);
+
+    for (int i = 0; i < 3; i++) {
+      pipeline.write(new AttachmentId(i, i), new ClosingInputStream(randomBytes(200_000), closed), 200_000, null);
+    }
+
+    pipeline.write(statement(1));
+    pipeline.shutdown(false);
+
+    assertTrue(closed.await(10, TimeUnit.SECONDS));
+
+    output.release();
+  }
+
+  private static @NonNull BackupFrameOutputStream newFrameOutputStream(@NonNull OutputStream outputStream) throws IOException {
+    return new BackupFrameOutputStream(outputStream, BACKUP_KEY, SALT, IV);
+  }
+
+  private static @NonNull BackupProtos.SqlStatement statement(int i) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("INSERT INTO sms VALUES (?,?)")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("Message " + i))
+                                    .build();
+  }
+
+  private static @NonNull BackupProtos.BackupFrame statementFrame(int i) {
+    return BackupProtos.BackupFrame.newBuilder().setStatement(statement(i)).build();
+  }
+
+  private static @NonNull BackupProtos.BackupFrame versionFrame(int version) {
+    return BackupProtos.BackupFrame.newBuilder().setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version)).build();
+  }
+
+  private static @NonNull BackupProtos.BackupFrame attachmentFrame(long id, long length) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                         .setRowId(id)
+                                                                         .setAttachmentId(id)
+                                                                         .setLength((int) length))
+                                   .build();
+  }
+
+  private static @NonNull byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class FailingInputStream extends InputStream {
+    private int remaining;
+
+    private FailingInputStream(int length) {
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("Failed to read!");
+      }
+      return 0;
+    }
+  }
+
+  private static final class FailingOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      throw new IOException("Failed to write!");
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      throw new IOException("Failed to write!");
+    }
+  }
+
+  /**
+   * Fails the first write, and accepts everything after it.
+   */
+  private static final class FailOnceOutputStream extends OutputStream {
+    private boolean failed;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      if (!failed) {
+        failed = true;
+        throw new IOException("Failed to write!");
+      }
+    }
+  }
+
+  /**
+   * Holds up the first write until released, so that everything after it stays queued.
+   */
+  private static final class BlockingOutputStream extends OutputStream {
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    void release() {
+      released.countDown();
+    }
+  }
+
+  private static final class ClosingInputStream extends ByteArrayInputStream {
+    private final CountDownLatch closed;
+
+    private ClosingInputStream(@NonNull byte[] data, @NonNull CountDownLatch closed) {
+      super(data);
+      this.closed = closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      closed.countDown();
+    }
+  }
+}
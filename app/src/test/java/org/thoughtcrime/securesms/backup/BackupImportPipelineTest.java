@@ -0,0 +1,174 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class BackupImportPipelineTest {
+
+  private static final byte[] BACKUP_KEY = new byte[32];
+  private static final byte[] SALT       = new byte[32];
+  private static final byte[] IV         = new byte[16];
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void readsBackWhatWasWritten() throws IOException {
+    byte[][] attachments = new byte[][] { randomBytes(100), randomBytes(BackupFrameOutputStream.BUFFER_SIZE * 5 + 17), new byte[0], randomBytes(300_000) };
+
+    ByteArrayOutputStream   backup = new ByteArrayOutputStream();
+    BackupFrameOutputStream writer = new BackupFrameOutputStream(backup, BACKUP_KEY, SALT, IV);
+
+    for (int i = 0; i < attachments.length; i++) {
+      writer.write(statementFrame(i));
+      writer.write(attachmentFrame(i, attachments[i].length), new ByteArrayInputStream(attachments[i]), attachments[i].length);
+    }
+    writer.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    writer.flush();
+
+    BackupRecordInputStream     reader    = new BackupRecordInputStream(new ByteArrayInputStream(backup.toByteArray()), BACKUP_KEY);
+    BackupImportPipeline        pipeline  = new BackupImportPipeline();
+    List<ByteArrayOutputStream> outputs   = new ArrayList<>();
+    List<Integer>               completed = new ArrayList<>();
+    int                         row       = 0;
+
+    try {
+      BackupProtos.BackupFrame frame = reader.readFrame();
+
+      while (!frame.getEnd()) {
+        if (frame.hasStatement()) {
+          assertEquals(statementFrame(row), frame);
+        } else {
+          ByteArrayOutputStream output = new ByteArrayOutputStream();
+          int                   index  = outputs.size();
+
+          outputs.add(output);
+          pipeline.read(reader, frame.getAttachment().getLength(), output, validMac -> {
+            assertTrue(validMac);
+            completed.add(index);
+          });
+
+          row++;
+        }
+
+        frame = reader.readFrame();
+      }
+
+      pipeline.drain();
+    } finally {
+      pipeline.shutdown();
+    }
+
+    assertEquals(backup.size(), reader.getBytesRead());
+    assertEquals(attachments.length, completed.size());
+
+    for (int i = 0; i < attachments.length; i++) {
+      assertArrayEquals(attachments[i], outputs.get(i).toByteArray());
+    }
+  }
+
+  @Test
+  public void corruptAttachment_reportsBadMac_andFollowingFramesStillRead() throws IOException {
+    byte[] attachment = randomBytes(200_000);
+
+    ByteArrayOutputStream   backup = new ByteArrayOutputStream();
+    BackupFrameOutputStream writer = new BackupFrameOutputStream(backup, BACKUP_KEY, SALT, IV);
+
+    writer.write(attachmentFrame(1, attachment.length), new ByteArrayInputStream(attachment), attachment.length);
+    long attachmentEnd = writer.getBytesWritten();
+    writer.write(statementFrame(1));
+    writer.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    writer.flush();
+
+    byte[] corrupted = backup.toByteArray();
+    corrupted[(int) attachmentEnd - 1000] ^= 1;
+
+    BackupRecordInputStream reader   = new BackupRecordInputStream(new ByteArrayInputStream(corrupted), BACKUP_KEY);
+    BackupImportPipeline    pipeline = new BackupImportPipeline();
+    Boolean[]               result   = new Boolean[1];
+
+    try {
+      BackupProtos.BackupFrame frame = reader.readFrame();
+      pipeline.read(reader, frame.getAttachment().getLength(), new ByteArrayOutputStream(), validMac -> result[0] = validMac);
+
+      assertEquals(statementFrame(1), reader.readFrame());
+      assertTrue(reader.readFrame().getEnd());
+
+      pipeline.drain();
+    } finally {
+      pipeline.shutdown();
+    }
+
+    assertFalse(result[0]);
+  }
+
+  @Test
+  public void truncatedAttachment_failsImport() throws IOException {
+    byte[] attachment = randomBytes(200_000);
+
+    ByteArrayOutputStream   backup = new ByteArrayOutputStream();
+    BackupFrameOutputStream writer = new BackupFrameOutputStream(backup, BACKUP_KEY, SALT, IV);
+
+    writer.write(attachmentFrame(1, attachment.length), new ByteArrayInputStream(attachment), attachment.length);
+    writer.flush();
+
+    byte[]                  truncated = Arrays.copyOf(backup.toByteArray(), backup.size() - 50_000);
+    BackupRecordInputStream reader    = new BackupRecordInputStream(new ByteArrayInputStream(truncated), BACKUP_KEY);
+    BackupImportPipeline    pipeline  = new BackupImportPipeline();
+
+    try {
+      BackupProtos.BackupFrame frame = reader.readFrame();
+      pipeline.read(reader, frame.getAttachment().getLength(), new ByteArrayOutputStream(), validMac -> fail());
+      pipeline.drain();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    } finally {
+      pipeline.shutdown();
+    }
+  }
+
+  private static @NonNull BackupProtos.BackupFrame statementFrame(int i) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setStatement(BackupProtos.SqlStatement.newBuilder()
+                                                                          .setStatement("INSERT INTO sms VALUES (?,?)")
+                                                                          .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                                                          .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("Message " + i)))
+                                   .build();
+  }
+
+  private static @NonNull BackupProtos.BackupFrame attachmentFrame(long id, long length) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                         .setRowId(id)
+                                                                         .setAttachmentId(id)
+                                                                         .setLength((int) length))
+                                   .build();
+  }
+
+  private static @NonNull byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,354 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signal.core.util.Conversions;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the throughput of writing a backup one frame at a time on a single thread, the way
+ * {@link FullBackupExporter} used to, against writing it through a {@link BackupExportPipeline}.
+ *
+ * The synthetic data set is {@link #ROW_COUNT} SQL statements that look like message rows, with
+ * {@link #ATTACHMENT_COUNT} attachments of {@link #ATTACHMENT_SIZE} bytes spread evenly between
+ * them. Attachments are encrypted on disk the same way real ones are, so reading them includes
+ * decryption. Both approaches produce the same bytes, which is checked on every run.
+ *
+ * Each approach gets {@link #WARMUP_ITERATIONS} unmeasured runs, and the reported number is the
+ * median of {@link #MEASURED_ITERATIONS} runs. Compare against a baseline from the same machine.
+ * Ignored by default, remove the annotation to run it.
+ */
+@Ignore("Benchmark")
+public final class FullBackupExporterBenchmark {
+
+  private static final String TAG = Log.tag(FullBackupExporterBenchmark.class);
+
+  private static final int ROW_COUNT           = 50_000;
+  private static final int ATTACHMENT_COUNT    = 40;
+  private static final int ATTACHMENT_SIZE     = 2 * 1024 * 1024;
+  private static final int WARMUP_ITERATIONS   = 1;
+  private static final int MEASURED_ITERATIONS = 3;
+
+  private static final byte[] BACKUP_KEY = new byte[32];
+  private static final byte[] SALT       = new byte[32];
+  private static final byte[] IV         = new byte[16];
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void export() throws Exception {
+    AttachmentSecret attachmentSecret = new AttachmentSecret(new byte[32], new byte[32], randomBytes(32, 1));
+    List<Attachment> attachments      = createAttachments(attachmentSecret);
+    File             serialOutput     = temporaryFolder.newFile("serial");
+    File             pipelinedOutput  = temporaryFolder.newFile("pipelined");
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      writeSerially(attachmentSecret, attachments, serialOutput);
+      writePipelined(attachmentSecret, attachments, pipelinedOutput);
+    }
+
+    List<Double> serialThroughput    = new ArrayList<>(MEASURED_ITERATIONS);
+    List<Double> pipelinedThroughput = new ArrayList<>(MEASURED_ITERATIONS);
+
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      serialThroughput.add(writeSerially(attachmentSecret, attachments, serialOutput));
+      pipelinedThroughput.add(writePipelined(attachmentSecret, attachments, pipelinedOutput));
+
+      assertArrayEquals(digest(serialOutput), digest(pipelinedOutput));
+    }
+
+    Log.i(TAG, String.format(Locale.US,
+                             "%,d rows, %d x %d KB attachments, %.1f MB | serial: %6.1f MB/s | pipelined: %6.1f MB/s",
+                             ROW_COUNT,
+                             ATTACHMENT_COUNT,
+                             ATTACHMENT_SIZE / 1024,
+                             pipelinedOutput.length() / (1024d * 1024d),
+                             median(serialThroughput),
+                             median(pipelinedThroughput)));
+  }
+
+  /**
+   * @return Throughput in MB/s.
+   */
+  private static double writeSerially(@NonNull AttachmentSecret attachmentSecret, @NonNull List<Attachment> attachments, @NonNull File output)
+      throws IOException
+  {
+    long startTime = System.nanoTime();
+
+    try (OutputStream outputStream = new FileOutputStream(output)) {
+      SerialFrameWriter writer = new SerialFrameWriter(outputStream);
+
+      writer.write(BackupProtos.BackupFrame.newBuilder().setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(1)).build());
+
+      for (int i = 0; i < ROW_COUNT; i++) {
+        writer.write(BackupProtos.BackupFrame.newBuilder().setStatement(statement(i)).build());
+
+        Attachment attachment = getAttachmentForRow(attachments, i);
+        if (attachment != null) {
+          writer.write(BackupProtos.BackupFrame.newBuilder()
+                                               .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                                     .setRowId(attachment.id)
+                                                                                     .setAttachmentId(attachment.id)
+                                                                                     .setLength(ATTACHMENT_SIZE))
+                                               .build(),
+                       attachment.open(attachmentSecret));
+        }
+      }
+
+      writer.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    }
+
+    return throughput(output, startTime);
+  }
+
+  /**
+   * @return Throughput in MB/s.
+   */
+  private static double writePipelined(@NonNull AttachmentSecret attachmentSecret, @NonNull List<Attachment> attachments, @NonNull File output)
+      throws IOException
+  {
+    long startTime = System.nanoTime();
+
+    BackupExportPipeline pipeline = new BackupExportPipeline(new BackupFrameOutputStream(new FileOutputStream(output), BACKUP_KEY, SALT, IV));
+
+    try {
+      pipeline.writeDatabaseVersion(1);
+
+      for (int i = 0; i < ROW_COUNT; i++) {
+        pipeline.write(statement(i));
+
+        Attachment attachment = getAttachmentForRow(attachments, i);
+        if (attachment != null) {
+          pipeline.write(new AttachmentId(attachment.id, attachment.id), attachment.open(attachmentSecret), ATTACHMENT_SIZE, null);
+        }
+      }
+
+      pipeline.writeEnd();
+      pipeline.finish();
+    } finally {
+      pipeline.shutdown(true);
+    }
+
+    return throughput(output, startTime);
+  }
+
+  private static Attachment getAttachmentForRow(@NonNull List<Attachment> attachments, int row) {
+    int rowsPerAttachment = ROW_COUNT / ATTACHMENT_COUNT;
+    return row % rowsPerAttachment == 0 && row / rowsPerAttachment < attachments.size() ? attachments.get(row / rowsPerAttachment) : null;
+  }
+
+  private static @NonNull BackupProtos.SqlStatement statement(int i) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("INSERT INTO sms VALUES (?,?,?,?,?,?,?,?)")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i % 100))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(1_600_000_000_000L + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(1_600_000_000_000L + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(10485783))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("A message body of a fairly typical length, number " + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(0))
+                                    .build();
+  }
+
+  private @NonNull List<Attachment> createAttachments(@NonNull AttachmentSecret attachmentSecret) throws IOException, GeneralSecurityException {
+    List<Attachment> attachments = new ArrayList<>(ATTACHMENT_COUNT);
+
+    for (int i = 0; i < ATTACHMENT_COUNT; i++) {
+      File   file   = temporaryFolder.newFile("attachment-" + i);
+      byte[] random = randomBytes(32, i);
+
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+      try (OutputStream out = new CipherOutputStream(new FileOutputStream(file), cipher)) {
+        out.write(randomBytes(ATTACHMENT_SIZE, i));
+      }
+
+      attachments.add(new Attachment(i, file, random));
+    }
+
+    return attachments;
+  }
+
+  private static double throughput(@NonNull File output, long startTimeNanos) {
+    double seconds = (System.nanoTime() - startTimeNanos) / 1_000_000_000d;
+    return output.length() / (1024d * 1024d) / seconds;
+  }
+
+  private static double median(@NonNull List<Double> values) {
+    List<Double> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  private static @NonNull byte[] digest(@NonNull File file) throws IOException, GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    byte[]        buffer = new byte[64 * 1024];
+
+    try (InputStream in = new FileInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+
+    return digest.digest();
+  }
+
+  private static @NonNull byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class Attachment {
+    private final long   id;
+    private final File   file;
+    private final byte[] random;
+
+    private Attachment(long id, @NonNull File file, @NonNull byte[] random) {
+      this.id     = id;
+      this.file   = file;
+      this.random = random;
+    }
+
+    @NonNull InputStream open(@NonNull AttachmentSecret attachmentSecret) throws IOException {
+      return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, file, 0);
+    }
+  }
+
+  /**
+   * How backup frames were written before {@link BackupExportPipeline}: everything on the calling
+   * thread, straight to the output stream, through a fixed 8 KB buffer.
+   */
+  private static final class SerialFrameWriter {
+    private final OutputStream outputStream;
+    private final Cipher       cipher;
+    private final Mac          mac;
+    private final byte[]       cipherKey;
+    private final byte[]       iv;
+
+    private int counter;
+
+    private SerialFrameWriter(@NonNull OutputStream outputStream) throws IOException {
+      try {
+        byte[]   derived = new HKDFv3().deriveSecrets(BACKUP_KEY, "Backup Export".getBytes(), 64);
+        byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+        this.outputStream = outputStream;
+        this.cipherKey    = split[0];
+        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac          = Mac.getInstance("HmacSHA256");
+        this.iv           = Arrays.copyOf(IV, IV.length);
+        this.counter      = Conversions.byteArrayToInt(iv);
+
+        mac.init(new SecretKeySpec(split[1], "HmacSHA256"));
+
+        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                           .setIv(ByteString.copyFrom(iv))
+                                                                                           .setSalt(ByteString.copyFrom(SALT)))
+                                                .build().toByteArray();
+
+        outputStream.write(Conversions.intToByteArray(header.length));
+        outputStream.write(header);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      try {
+        Conversions.intToByteArray(iv, 0, counter++);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
+        byte[] frameMac        = mac.doFinal(frameCiphertext);
+        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
+
+        outputStream.write(length);
+        outputStream.write(frameCiphertext);
+        outputStream.write(frameMac, 0, 10);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void write(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream inputStream) throws IOException {
+      write(frame);
+
+      try {
+        Conversions.intToByteArray(iv, 0, counter++);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+        mac.update(iv);
+
+        byte[] buffer = new byte[8192];
+        int    read;
+
+        while ((read = inputStream.read(buffer)) != -1) {
+          byte[] ciphertext = cipher.update(buffer, 0, read);
+
+          if (ciphertext != null) {
+            outputStream.write(ciphertext);
+            mac.update(ciphertext);
+          }
+        }
+
+        byte[] remainder = cipher.doFinal();
+        outputStream.write(remainder);
+        mac.update(remainder);
+
+        outputStream.write(mac.doFinal(), 0, 10);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      } finally {
+        inputStream.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,398 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signal.core.util.Conversions;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of restoring a backup the way {@link FullBackupImporter} used to, reading
+ * and decrypting everything inline on one thread, against reading it with a
+ * {@link BackupRecordInputStream} and decrypting streams through a {@link BackupImportPipeline}.
+ *
+ * The backup holds {@link #ROW_COUNT} statements that look like message rows, with
+ * {@link #ATTACHMENT_COUNT} attachments of {@link #ATTACHMENT_SIZE} bytes spread evenly between
+ * them. Restored attachments are re-encrypted to disk the way real ones are. There's no database on
+ * the JVM, so statements are only converted to their parameters, and the gain from reusing compiled
+ * statements doesn't show up here.
+ *
+ * Each approach gets {@link #WARMUP_ITERATIONS} unmeasured runs, and the reported number is the
+ * median of {@link #MEASURED_ITERATIONS} runs. Compare against a baseline from the same machine.
+ * Ignored by default, remove the annotation to run it.
+ */
+@Ignore("Benchmark")
+public final class FullBackupImporterBenchmark {
+
+  private static final String TAG = Log.tag(FullBackupImporterBenchmark.class);
+
+  private static final int ROW_COUNT           = 200_000;
+  private static final int ATTACHMENT_COUNT    = 20;
+  private static final int ATTACHMENT_SIZE     = 2 * 1024 * 1024;
+  private static final int WARMUP_ITERATIONS   = 1;
+  private static final int MEASURED_ITERATIONS = 3;
+
+  private static final byte[] BACKUP_KEY = new byte[32];
+  private static final byte[] SALT       = new byte[32];
+  private static final byte[] IV         = new byte[16];
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void restore() throws Exception {
+    File backup = temporaryFolder.newFile("backup");
+
+    writeBackup(backup);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      restoreSerially(backup);
+      restorePipelined(backup);
+    }
+
+    List<Double> serialRowsPerSecond    = new ArrayList<>(MEASURED_ITERATIONS);
+    List<Double> pipelinedRowsPerSecond = new ArrayList<>(MEASURED_ITERATIONS);
+
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      serialRowsPerSecond.add(restoreSerially(backup));
+      pipelinedRowsPerSecond.add(restorePipelined(backup));
+    }
+
+    double megabytes = backup.length() / (1024d * 1024d);
+    double serial    = median(serialRowsPerSecond);
+    double pipelined = median(pipelinedRowsPerSecond);
+
+    Log.i(TAG, String.format(Locale.US,
+                             "%,d rows, %d x %d KB attachments, %.1f MB | serial: %,9.0f rows/s %6.1f MB/s | pipelined: %,9.0f rows/s %6.1f MB/s",
+                             ROW_COUNT,
+                             ATTACHMENT_COUNT,
+                             ATTACHMENT_SIZE / 1024,
+                             megabytes,
+                             serial,
+                             serial * megabytes / ROW_COUNT,
+                             pipelined,
+                             pipelined * megabytes / ROW_COUNT));
+  }
+
+  /**
+   * @return Throughput in rows/s.
+   */
+  private double restoreSerially(@NonNull File backup) throws IOException {
+    long startTime = System.nanoTime();
+    int  rows      = 0;
+    int  restored  = 0;
+
+    try (InputStream in = new FileInputStream(backup)) {
+      SerialRecordReader       reader = new SerialRecordReader(in);
+      BackupProtos.BackupFrame frame  = reader.readFrame();
+
+      while (!frame.getEnd()) {
+        if (frame.hasStatement()) {
+          rows += toParameters(frame.getStatement()).length > 0 ? 1 : 0;
+        } else if (frame.hasAttachment()) {
+          reader.readAttachmentTo(openAttachmentOutput(restored++), frame.getAttachment().getLength());
+        }
+
+        frame = reader.readFrame();
+      }
+    }
+
+    assertEquals(ROW_COUNT, rows);
+    assertEquals(ATTACHMENT_COUNT, restored);
+
+    return rows / ((System.nanoTime() - startTime) / 1_000_000_000d);
+  }
+
+  /**
+   * @return Throughput in rows/s.
+   */
+  private double restorePipelined(@NonNull File backup) throws IOException {
+    long  startTime = System.nanoTime();
+    int   rows      = 0;
+    int[] restored  = new int[1];
+    int   started   = 0;
+
+    BackupImportPipeline pipeline = new BackupImportPipeline();
+
+    try (InputStream in = new FileInputStream(backup)) {
+      BackupRecordInputStream  reader = new BackupRecordInputStream(in, BACKUP_KEY);
+      BackupProtos.BackupFrame frame  = reader.readFrame();
+
+      while (!frame.getEnd()) {
+        if (frame.hasStatement()) {
+          rows += bindParameters(frame.getStatement()) > 0 ? 1 : 0;
+        } else if (frame.hasAttachment()) {
+          pipeline.read(reader, frame.getAttachment().getLength(), openAttachmentOutput(started++), validMac -> {
+            if (!validMac) throw new IOException("Bad MAC");
+            restored[0]++;
+          });
+        }
+
+        pipeline.runCompleted();
+        frame = reader.readFrame();
+      }
+
+      pipeline.drain();
+    } finally {
+      pipeline.shutdown();
+    }
+
+    assertEquals(ROW_COUNT, rows);
+    assertEquals(ATTACHMENT_COUNT, restored[0]);
+
+    return rows / ((System.nanoTime() - startTime) / 1_000_000_000d);
+  }
+
+  private void writeBackup(@NonNull File backup) throws IOException {
+    int rowsPerAttachment = ROW_COUNT / ATTACHMENT_COUNT;
+
+    try (OutputStream out = new FileOutputStream(backup)) {
+      BackupFrameOutputStream writer = new BackupFrameOutputStream(out, BACKUP_KEY, SALT, IV);
+
+      writer.write(BackupProtos.BackupFrame.newBuilder().setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(1)).build());
+
+      for (int i = 0; i < ROW_COUNT; i++) {
+        writer.write(BackupProtos.BackupFrame.newBuilder().setStatement(statement(i)).build());
+
+        if (i % rowsPerAttachment == 0) {
+          int    id         = i / rowsPerAttachment;
+          byte[] attachment = randomBytes(ATTACHMENT_SIZE, id);
+
+          writer.write(BackupProtos.BackupFrame.newBuilder()
+                                               .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                                     .setRowId(id)
+                                                                                     .setAttachmentId(id)
+                                                                                     .setLength(ATTACHMENT_SIZE))
+                                               .build(),
+                       new ByteArrayInputStream(attachment),
+                       ATTACHMENT_SIZE);
+        }
+      }
+
+      writer.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      writer.flush();
+    }
+  }
+
+  /**
+   * Encrypts to disk, the way attachments are stored after a restore.
+   */
+  private @NonNull OutputStream openAttachmentOutput(int id) throws IOException {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(randomBytes(32, id), "AES"), new IvParameterSpec(new byte[16]));
+
+      return new CipherOutputStream(new FileOutputStream(new File(temporaryFolder.getRoot(), "restored-" + id)), cipher);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * How statement parameters used to be collected before being handed to the database.
+   */
+  private static @NonNull Object[] toParameters(@NonNull BackupProtos.SqlStatement statement) {
+    List<Object> parameters = new LinkedList<>();
+
+    for (BackupProtos.SqlStatement.SqlParameter parameter : statement.getParametersList()) {
+      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
+      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
+      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
+      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
+      else if (parameter.hasNullparameter())    parameters.add(null);
+    }
+
+    return parameters.toArray();
+  }
+
+  /**
+   * Walks the parameters the way they're now bound to a compiled statement.
+   *
+   * @return The number of parameters bound.
+   */
+  private static int bindParameters(@NonNull BackupProtos.SqlStatement statement) {
+    int index = 0;
+
+    for (BackupProtos.SqlStatement.SqlParameter parameter : statement.getParametersList()) {
+      if      (parameter.hasStringParamter())   index++;
+      else if (parameter.hasDoubleParameter())  index++;
+      else if (parameter.hasIntegerParameter()) index++;
+      else if (parameter.hasBlobParameter())    index++;
+      else if (parameter.hasNullparameter())    index++;
+    }
+
+    return index;
+  }
+
+  private static @NonNull BackupProtos.SqlStatement statement(int i) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("INSERT INTO sms VALUES (?,?,?,?,?,?,?,?)")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i % 100))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(1_600_000_000_000L + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(1_600_000_000_000L + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(10485783))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("A message body of a fairly typical length, number " + i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(0))
+                                    .build();
+  }
+
+  private static double median(@NonNull List<Double> values) {
+    List<Double> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  private static @NonNull byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * How backup frames were read before {@link BackupRecordInputStream}: unbuffered, with fresh
+   * arrays for every frame, and streams decrypted inline through an 8 KB buffer.
+   */
+  private static final class SerialRecordReader {
+    private final InputStream in;
+    private final Cipher      cipher;
+    private final Mac         mac;
+    private final byte[]      cipherKey;
+
+    private byte[] iv;
+    private int    counter;
+
+    private SerialRecordReader(@NonNull InputStream in) throws IOException {
+      try {
+        this.in = in;
+
+        byte[] headerLengthBytes = new byte[4];
+        StreamUtil.readFully(in, headerLengthBytes);
+
+        byte[] headerFrame = new byte[Conversions.byteArrayToInt(headerLengthBytes)];
+        StreamUtil.readFully(in, headerFrame);
+
+        BackupProtos.Header header = BackupProtos.BackupFrame.parseFrom(headerFrame).getHeader();
+
+        byte[]   derived = new HKDFv3().deriveSecrets(BACKUP_KEY, "Backup Export".getBytes(), 64);
+        byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+        this.iv        = header.getIv().toByteArray();
+        this.counter   = Conversions.byteArrayToInt(iv);
+        this.cipherKey = split[0];
+        this.cipher    = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac       = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(split[1], "HmacSHA256"));
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    BackupProtos.BackupFrame readFrame() throws IOException {
+      try {
+        byte[] length = new byte[4];
+        StreamUtil.readFully(in, length);
+
+        byte[] frame = new byte[Conversions.byteArrayToInt(length)];
+        StreamUtil.readFully(in, frame);
+
+        byte[] theirMac = new byte[10];
+        System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
+
+        mac.update(frame, 0, frame.length - 10);
+        byte[] ourMac = ByteUtil.trim(mac.doFinal(), 10);
+
+        if (!MessageDigest.isEqual(ourMac, theirMac)) {
+          throw new IOException("Bad MAC");
+        }
+
+        Conversions.intToByteArray(iv, 0, counter++);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+        return BackupProtos.BackupFrame.parseFrom(cipher.doFinal(frame, 0, frame.length - 10));
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void readAttachmentTo(@NonNull OutputStream out, int length) throws IOException {
+      try {
+        Conversions.intToByteArray(iv, 0, counter++);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+        mac.update(iv);
+
+        byte[] buffer = new byte[8192];
+
+        while (length > 0) {
+          int read = in.read(buffer, 0, Math.min(buffer.length, length));
+          if (read == -1) throw new IOException("File ended early!");
+
+          mac.update(buffer, 0, read);
+
+          byte[] plaintext = cipher.update(buffer, 0, read);
+
+          if (plaintext != null) {
+            out.write(plaintext, 0, plaintext.length);
+          }
+
+          length -= read;
+        }
+
+        byte[] plaintext = cipher.doFinal();
+
+        if (plaintext != null) {
+          out.write(plaintext, 0, plaintext.length);
+        }
+
+        out.close();
+
+        byte[] theirMac = new byte[10];
+        StreamUtil.readFully(in, theirMac);
+
+        if (!MessageDigest.isEqual(ByteUtil.trim(mac.doFinal(), 10), theirMac)) {
+          throw new IOException("Bad MAC");
+        }
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class IncrementalBackupStateTest {
+
+  @Test
+  public void getChangedRanges_noPreviousState_allRanges() {
+    assertEquals(new HashSet<>(Arrays.asList(0L, 1L, 5L)), IncrementalBackupState.getChangedRanges(null, digests(0, 10, 1, 11, 5, 15)));
+  }
+
+  @Test
+  public void getChangedRanges_unchanged_noRanges() {
+    assertTrue(IncrementalBackupState.getChangedRanges(digests(0, 10, 1, 11), digests(0, 10, 1, 11)).isEmpty());
+  }
+
+  @Test
+  public void getChangedRanges_modifiedAddedAndRemovedRanges() {
+    Map<Long, Long> previous = digests(0, 10, 1, 11, 2, 12);
+    Map<Long, Long> current  = digests(0, 10, 1, 99, 3, 13);
+
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 3L)), IncrementalBackupState.getChangedRanges(previous, current));
+  }
+
+  @Test
+  public void getChangedRanges_tableEmptied() {
+    assertEquals(Collections.singleton(0L), IncrementalBackupState.getChangedRanges(digests(0, 10), new HashMap<>()));
+  }
+
+  @Test
+  public void serialize_roundTrip() throws IOException {
+    IncrementalBackupState state = IncrementalBackupState.newBase("signal-2020-01-01-00-00-00.backup", 42);
+
+    state.setRangeDigests("sms", digests(0, 10, 1, -11));
+    state.setRangeDigests("recipient", digests(0, 7));
+    state.addAttachment(new AttachmentId(1, 100));
+    state.addSticker(3);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    state.serialize(out);
+
+    IncrementalBackupState restored = IncrementalBackupState.deserialize(new ByteArrayInputStream(out.toByteArray()));
+
+    assertArrayEquals(state.getChainId(), restored.getChainId());
+    assertEquals("signal-2020-01-01-00-00-00.backup", restored.getFileName());
+    assertTrue(restored.isBase());
+    assertEquals(digests(0, 10, 1, -11), restored.getRangeDigests("sms"));
+    assertEquals(digests(0, 7), restored.getRangeDigests("recipient"));
+    assertTrue(restored.hasAttachment(new AttachmentId(1, 100)));
+    assertFalse(restored.hasAttachment(new AttachmentId(1, 101)));
+    assertTrue(restored.hasSticker(3));
+    assertFalse(restored.hasSticker(4));
+  }
+
+  @Test
+  public void serialize_roundTrip_keepsDeltas() throws IOException {
+    IncrementalBackupState state = IncrementalBackupState.newBase("signal-2020-01-01-00-00-00.backup", 42);
+
+    state.addDelta("signal-2020-01-02-00-00-00.delta");
+    state.addDelta("signal-2020-01-03-00-00-00.delta");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    state.serialize(out);
+
+    IncrementalBackupState restored = IncrementalBackupState.deserialize(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(2, restored.getSequence());
+    assertEquals("signal-2020-01-03-00-00-00.delta", restored.getFileName());
+    assertNull(IncrementalBackupState.getReasonForNewChain(restored, 42, name -> true));
+    assertEquals("Delta 1 is missing.", IncrementalBackupState.getReasonForNewChain(restored, 42, name -> !name.equals("signal-2020-01-02-00-00-00.delta")));
+  }
+
+  @Test
+  public void getReasonForNewChain_allFilesPresent_extendsChain() {
+    IncrementalBackupState state = IncrementalBackupState.newBase("base.backup", 42);
+
+    state.addDelta("1.delta");
+    state.addDelta("2.delta");
+
+    assertNull(IncrementalBackupState.getReasonForNewChain(state, 42, name -> true));
+  }
+
+  @Test
+  public void getReasonForNewChain_middleDeltaMissing_startsNewChain() {
+    IncrementalBackupState state = IncrementalBackupState.newBase("base.backup", 42);
+
+    state.addDelta("1.delta");
+    state.addDelta("2.delta");
+    state.addDelta("3.delta");
+
+    assertEquals("Delta 2 is missing.", IncrementalBackupState.getReasonForNewChain(state, 42, name -> !name.equals("2.delta")));
+  }
+
+  @Test
+  public void getReasonForNewChain_baseMissing_startsNewChain() {
+    IncrementalBackupState state = IncrementalBackupState.newBase("base.backup", 42);
+
+    state.addDelta("1.delta");
+
+    assertNotNull(IncrementalBackupState.getReasonForNewChain(state, 42, name -> !name.equals("base.backup")));
+  }
+
+  @Test
+  public void getReasonForNewChain_databaseVersionChanged_startsNewChain() {
+    IncrementalBackupState state = IncrementalBackupState.newBase("base.backup", 42);
+
+    assertNotNull(IncrementalBackupState.getReasonForNewChain(state, 43, name -> true));
+  }
+
+  @Test(expected = IOException.class)
+  public void deserialize_unknownFormat() throws IOException {
+    IncrementalBackupState.deserialize(new ByteArrayInputStream(new byte[] { 0, 0, 0, 99 }));
+  }
+
+  private static Map<Long, Long> digests(long... rangesAndDigests) {
+    Map<Long, Long> digests = new HashMap<>();
+
+    for (int i = 0; i < rangesAndDigests.length; i += 2) {
+      digests.put(rangesAndDigests[i], rangesAndDigests[i + 1]);
+    }
+
+    return digests;
+  }
+}
@@ -0,0 +1,200 @@
+package org.thoughtcrime.securesms.crypto;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signal.core.util.Conversions;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seeks to random positions in encrypted attachments of increasing size, like scrubbing through a
+ * long video, and reads a small block from each. Logs the average latency per seek for:
+ * <ul>
+ *   <li>decrypting from the start of the file up to the position,</li>
+ *   <li>opening a new stream for each read, which is what the media data source used to do,</li>
+ *   <li>and one {@link ModernDecryptingPartChannel} kept open across reads.</li>
+ * </ul>
+ * The files are usually still in the page cache, so this mostly measures CPU and syscall overhead
+ * rather than storage. Compare against a baseline taken on the same machine. Ignored by default,
+ * remove the annotation to run it.
+ */
+@Ignore("Benchmark")
+public final class ModernDecryptingPartChannelBenchmark {
+
+  private static final String TAG = Log.tag(ModernDecryptingPartChannelBenchmark.class);
+
+  private static final int[] FILE_SIZES_MB     = { 1, 16, 64 };
+  private static final int   READ_SIZE         = 8 * 1024;
+  private static final int   SEEKS             = 2000;
+  private static final int   FROM_START_SEEKS  = 5;
+  private static final int   WARMUP_ITERATIONS = 1;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final AttachmentSecret attachmentSecret = new AttachmentSecret(new byte[32], new byte[32], new byte[32]);
+  private final byte[]           random           = new byte[32];
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void seekLatency() throws Exception {
+    Log.i(TAG, String.format(Locale.US, "%-8s %14s %14s %14s", "Size", "From start", "Stream/read", "Channel"));
+
+    for (int sizeMb : FILE_SIZES_MB) {
+      File     file      = encrypt(sizeMb * 1024L * 1024L);
+      long[]   positions = positions(file.length(), SEEKS);
+      double[] results   = new double[3];
+
+      for (int i = 0; i <= WARMUP_ITERATIONS; i++) {
+        results[0] = fromStart(file, positions);
+        results[1] = streamPerRead(file, positions);
+        results[2] = channel(file, positions);
+      }
+
+      Log.i(TAG, String.format(Locale.US, "%-8s %11.1f us %11.1f us %11.1f us", sizeMb + " MB", results[0], results[1], results[2]));
+
+      file.delete();
+    }
+  }
+
+  private double fromStart(@NonNull File file, @NonNull long[] positions) throws Exception {
+    byte[] buffer = new byte[READ_SIZE];
+    long   start  = System.nanoTime();
+
+    for (int i = 0; i < FROM_START_SEEKS; i++) {
+      try (InputStream inputStream = openStream(file, 0)) {
+        long remaining = positions[i];
+
+        while (remaining > 0) {
+          remaining -= inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        }
+
+        readFully(inputStream, buffer);
+      }
+    }
+
+    return (System.nanoTime() - start) / 1000d / FROM_START_SEEKS;
+  }
+
+  private double streamPerRead(@NonNull File file, @NonNull long[] positions) throws Exception {
+    byte[] buffer = new byte[READ_SIZE];
+    long   start  = System.nanoTime();
+
+    for (long position : positions) {
+      try (InputStream inputStream = openStream(file, position)) {
+        readFully(inputStream, buffer);
+      }
+    }
+
+    return (System.nanoTime() - start) / 1000d / positions.length;
+  }
+
+  private double channel(@NonNull File file, @NonNull long[] positions) throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+    long       start  = System.nanoTime();
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, file)) {
+      for (long position : positions) {
+        buffer.clear();
+        channel.read(buffer, position);
+      }
+    }
+
+    return (System.nanoTime() - start) / 1000d / positions.length;
+  }
+
+  /**
+   * How streams were opened at an offset before {@link ModernDecryptingPartChannel}.
+   */
+  private @NonNull InputStream openStream(@NonNull File file, long offset) throws IOException, GeneralSecurityException {
+    FileInputStream inputStream = new FileInputStream(file);
+    byte[]          iv          = new byte[16];
+    int             remainder   = (int) (offset % 16);
+
+    Conversions.longTo4ByteArray(iv, 12, offset / 16);
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key(), "AES"), new IvParameterSpec(iv));
+
+    if (inputStream.skip(offset - remainder) != offset - remainder) {
+      throw new IOException("Skip failed!");
+    }
+
+    CipherInputStream cipherInputStream = new CipherInputStream(inputStream, cipher);
+    readFully(cipherInputStream, new byte[remainder]);
+
+    return cipherInputStream;
+  }
+
+  private @NonNull File encrypt(long length) throws IOException, GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key(), "AES"), new IvParameterSpec(new byte[16]));
+
+    File   file  = folder.newFile();
+    byte[] chunk = new byte[1024 * 1024];
+    Random rng   = new Random(42);
+
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      for (long written = 0; written < length; written += chunk.length) {
+        rng.nextBytes(chunk);
+        outputStream.write(cipher.update(chunk));
+      }
+    }
+
+    return file;
+  }
+
+  private @NonNull byte[] key() throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+    return mac.doFinal(random);
+  }
+
+  private static @NonNull long[] positions(long length, int count) {
+    Random random    = new Random(7);
+    long[] positions = new long[count];
+
+    for (int i = 0; i < count; i++) {
+      positions[i] = (long) (random.nextDouble() * (length - READ_SIZE));
+    }
+
+    return positions;
+  }
+
+  private static void readFully(@NonNull InputStream in, @NonNull byte[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = in.read(buffer, offset, buffer.length - offset);
+
+      if (read == -1) throw new IOException("Prematurely reached end of stream!");
+
+      offset += read;
+    }
+  }
+}
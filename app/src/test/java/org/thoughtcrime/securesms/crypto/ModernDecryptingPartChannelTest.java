@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class ModernDecryptingPartChannelTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           random;
+
+  @Before
+  public void setUp() {
+    attachmentSecret = new AttachmentSecret(new byte[32], new byte[32], bytes(32, 1));
+    random           = bytes(32, 2);
+  }
+
+  @Test
+  public void read_fromEveryPosition_matchesPlaintext() throws Exception {
+    byte[] plaintext = bytes(1000, 3);
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, encrypt(plaintext, false))) {
+      for (int position = 0; position < plaintext.length; position++) {
+        ByteBuffer dst = ByteBuffer.allocate(Math.min(37, plaintext.length - position));
+
+        assertEquals(dst.capacity(), channel.read(dst, position));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + dst.capacity()), dst.array());
+      }
+    }
+  }
+
+  @Test
+  public void read_sequentially_acrossBufferBoundaries() throws Exception {
+    byte[] plaintext = bytes(300 * 1024 + 5, 4);
+    byte[] result    = new byte[plaintext.length];
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, encrypt(plaintext, false))) {
+      ByteBuffer dst = ByteBuffer.wrap(result);
+
+      while (dst.position() < dst.capacity()) {
+        dst.limit(Math.min(dst.capacity(), dst.position() + 10007));
+        channel.read(dst);
+      }
+
+      assertEquals(plaintext.length, channel.position());
+    }
+
+    assertArrayEquals(plaintext, result);
+  }
+
+  @Test
+  public void read_withPosition_doesNotMoveCurrentPosition() throws Exception {
+    byte[] plaintext = bytes(256, 5);
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, encrypt(plaintext, false))) {
+      channel.position(10);
+      channel.read(ByteBuffer.allocate(50), 100);
+
+      ByteBuffer dst = ByteBuffer.allocate(4);
+      channel.read(dst);
+
+      assertEquals(14, channel.position());
+      assertArrayEquals(Arrays.copyOfRange(plaintext, 10, 14), dst.array());
+    }
+  }
+
+  @Test
+  public void read_pastEnd() throws Exception {
+    byte[] plaintext = bytes(100, 6);
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, encrypt(plaintext, false))) {
+      assertEquals(100, channel.size());
+      assertEquals(10, channel.read(ByteBuffer.allocate(50), 90));
+      assertEquals(-1, channel.read(ByteBuffer.allocate(50), 100));
+      assertEquals(-1, channel.read(ByteBuffer.allocate(50), 1000));
+    }
+  }
+
+  @Test
+  public void createFor_withInlineRandom() throws Exception {
+    byte[] plaintext = bytes(5000, 7);
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, encrypt(plaintext, true))) {
+      ByteBuffer dst = ByteBuffer.allocate(1000);
+
+      assertEquals(plaintext.length, channel.size());
+      assertEquals(1000, channel.read(dst, 1234));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, 1234, 2234), dst.array());
+    }
+  }
+
+  @Test
+  public void inputStream_startsAtOffset_andSkipsBySeeking() throws Exception {
+    byte[] plaintext = bytes(100_000, 8);
+    File   file      = encrypt(plaintext, false);
+
+    try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, file, 12345)) {
+      assertEquals(plaintext[12345] & 0xFF, inputStream.read());
+      assertEquals(50_000, inputStream.skip(50_000));
+
+      byte[] result = new byte[100];
+      assertEquals(100, inputStream.read(result));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, 62346, 62446), result);
+
+      assertEquals(plaintext.length - 62446, inputStream.skip(Long.MAX_VALUE));
+      assertEquals(-1, inputStream.read());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void inputStream_offsetPastEnd_throws() throws Exception {
+    ModernDecryptingPartInputStream.createFor(attachmentSecret, random, encrypt(bytes(100, 9), false), 101);
+  }
+
+  @Test(expected = ClosedChannelException.class)
+  public void read_afterClose_throws() throws Exception {
+    ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, encrypt(bytes(100, 10), false));
+
+    channel.close();
+    channel.read(ByteBuffer.allocate(10));
+  }
+
+  /**
+   * Writes the plaintext the same way {@link ModernEncryptingPartOutputStream} does.
+   */
+  private File encrypt(byte[] plaintext, boolean inline) throws IOException, GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+    File file = folder.newFile();
+
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      if (inline) {
+        outputStream.write(random);
+      }
+      outputStream.write(cipher.doFinal(plaintext));
+    }
+
+    return file;
+  }
+
+  private static byte[] bytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,288 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Test;
+import org.whispersystems.signalservice.api.SignalSessionLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ReentrantSessionLockTest {
+
+  private static final long TIMEOUT = 5000;
+
+  @Test
+  public void differentKeys_doNotBlockEachOther() throws Exception {
+    ReentrantSessionLock lock = new ReentrantSessionLock(true);
+
+    try (SignalSessionLock.Lock unused = lock.acquire("alice")) {
+      assertTrue(acquiresOnOtherThread(lock, "bob"));
+    }
+  }
+
+  @Test
+  public void sameKey_blocksUntilReleased() throws Exception {
+    ReentrantSessionLock   lock     = new ReentrantSessionLock(true);
+    SignalSessionLock.Lock alice    = lock.acquire("alice");
+    CountDownLatch         acquired = new CountDownLatch(1);
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock unused = lock.acquire("alice")) {
+        acquired.countDown();
+      }
+    });
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+    alice.close();
+
+    assertTrue(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    other.join(TIMEOUT);
+  }
+
+  @Test
+  public void global_waitsForKeysHeldElsewhere() throws Exception {
+    ReentrantSessionLock   lock     = new ReentrantSessionLock(true);
+    SignalSessionLock.Lock alice    = lock.acquire("alice");
+    CountDownLatch         acquired = new CountDownLatch(1);
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock unused = lock.acquire()) {
+        acquired.countDown();
+      }
+    });
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+    alice.close();
+
+    assertTrue(acquired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    other.join(TIMEOUT);
+  }
+
+  @Test
+  public void global_blocksKeysElsewhere() throws Exception {
+    ReentrantSessionLock lock = new ReentrantSessionLock(true);
+
+    try (SignalSessionLock.Lock unused = lock.acquire()) {
+      assertFalse(acquiresOnOtherThread(lock, "alice"));
+    }
+
+    assertTrue(acquiresOnOtherThread(lock, "alice"));
+  }
+
+  @Test
+  public void reentrant_keyThenGlobal() {
+    ReentrantSessionLock lock = new ReentrantSessionLock(true);
+
+    try (SignalSessionLock.Lock outer = lock.acquire("alice")) {
+      try (SignalSessionLock.Lock global = lock.acquire()) {
+        try (SignalSessionLock.Lock inner = lock.acquire("alice")) {
+          assertEquals(3, lock.getHoldCount());
+        }
+      }
+    }
+
+    assertEquals(0, lock.getHoldCount());
+    assertEquals(-1, lock.getGlobalOwnerThreadId());
+  }
+
+  @Test
+  public void reentrant_globalThenKeys() {
+    ReentrantSessionLock lock = new ReentrantSessionLock(true);
+
+    try (SignalSessionLock.Lock global = lock.acquire()) {
+      try (SignalSessionLock.Lock alice = lock.acquire("alice");
+           SignalSessionLock.Lock bob   = lock.acquire("bob"))
+      {
+        assertEquals(3, lock.getHoldCount());
+        assertEquals(Thread.currentThread().getId(), lock.getGlobalOwnerThreadId());
+      }
+    }
+
+    assertEquals(0, lock.getHoldCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void release_twice_throws() {
+    ReentrantSessionLock   lock = new ReentrantSessionLock(true);
+    SignalSessionLock.Lock hold = lock.acquire("alice");
+
+    hold.close();
+    hold.close();
+  }
+
+  @Test
+  public void deadlock_isDetected() throws Exception {
+    ReentrantSessionLock   lock    = new ReentrantSessionLock(true);
+    CountDownLatch         holding = new CountDownLatch(1);
+    SignalSessionLock.Lock alice   = lock.acquire("alice");
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock bob = lock.acquire("bob")) {
+        holding.countDown();
+        lock.acquire("alice").close();
+      }
+    });
+
+    assertTrue(holding.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    waitUntilWaiting(other);
+
+    IllegalStateException failure = null;
+
+    try (SignalSessionLock.Lock unused = lock.acquire("bob")) {
+      // Never reached, the other thread is waiting on us.
+    } catch (IllegalStateException e) {
+      failure = e;
+    } finally {
+      alice.close();
+    }
+
+    other.join(TIMEOUT);
+
+    assertNotNull(failure);
+    assertTrue(failure.getMessage(), failure.getMessage().startsWith("Deadlock detected"));
+    assertFalse(other.isAlive());
+    assertEquals(0, lock.getHoldCount());
+  }
+
+  @Test
+  public void upgrade_byTwoKeyHolders_throwsWithoutDeadlockDetection() throws Exception {
+    ReentrantSessionLock   lock    = new ReentrantSessionLock(false);
+    CountDownLatch         holding = new CountDownLatch(1);
+    SignalSessionLock.Lock alice   = lock.acquire("alice");
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock bob = lock.acquire("bob")) {
+        holding.countDown();
+        lock.acquire().close();
+      }
+    });
+
+    assertTrue(holding.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    waitUntilWaiting(other);
+
+    IllegalStateException failure = null;
+
+    try (SignalSessionLock.Lock unused = lock.acquire()) {
+      // Never reached, the other thread is already upgrading.
+    } catch (IllegalStateException e) {
+      failure = e;
+    } finally {
+      alice.close();
+    }
+
+    other.join(TIMEOUT);
+
+    assertNotNull(failure);
+    assertFalse(other.isAlive());
+    assertEquals(0, lock.getHoldCount());
+    assertEquals(-1, lock.getGlobalOwnerThreadId());
+  }
+
+  @Test
+  public void upgrade_waitingOnKeyOfUpgradingThread_throwsWithoutDeadlockDetection() throws Exception {
+    ReentrantSessionLock   lock    = new ReentrantSessionLock(false);
+    CountDownLatch         holding = new CountDownLatch(1);
+    SignalSessionLock.Lock alice   = lock.acquire("alice");
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock bob = lock.acquire("bob")) {
+        holding.countDown();
+        lock.acquire().close();
+      }
+    });
+
+    assertTrue(holding.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    waitUntilWaiting(other);
+
+    IllegalStateException failure = null;
+
+    try (SignalSessionLock.Lock unused = lock.acquire("bob")) {
+      // Never reached, the other thread is waiting on us.
+    } catch (IllegalStateException e) {
+      failure = e;
+    } finally {
+      alice.close();
+    }
+
+    other.join(TIMEOUT);
+
+    assertNotNull(failure);
+    assertTrue(failure.getMessage(), failure.getMessage().startsWith("Deadlock detected"));
+    assertFalse(other.isAlive());
+  }
+
+  @Test
+  public void upgrade_bySingleKeyHolder_waitsForOtherKeys() throws Exception {
+    ReentrantSessionLock   lock     = new ReentrantSessionLock(false);
+    SignalSessionLock.Lock alice    = lock.acquire("alice");
+    CountDownLatch         upgraded = new CountDownLatch(1);
+
+    Thread other = startThread(() -> {
+      try (SignalSessionLock.Lock bob    = lock.acquire("bob");
+           SignalSessionLock.Lock global = lock.acquire())
+      {
+        upgraded.countDown();
+      }
+    });
+
+    assertFalse(upgraded.await(100, TimeUnit.MILLISECONDS));
+
+    alice.close();
+
+    assertTrue(upgraded.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    other.join(TIMEOUT);
+  }
+
+  @Test
+  public void debugInfo_countsContention() throws Exception {
+    ReentrantSessionLock   lock  = new ReentrantSessionLock(false);
+    SignalSessionLock.Lock alice = lock.acquire("alice");
+
+    Thread other = startThread(() -> lock.acquire("alice").close());
+
+    waitUntilWaiting(other);
+    alice.close();
+    other.join(TIMEOUT);
+
+    String info = lock.getDebugInfo();
+
+    assertTrue(info, info.contains("Keyed : 2 acquired (1 contended)"));
+    assertTrue(info, info.contains("Global: 0 acquired"));
+  }
+
+  /**
+   * @return True if another thread could take the key within a short while.
+   */
+  private static boolean acquiresOnOtherThread(ReentrantSessionLock lock, Object key) throws InterruptedException {
+    CountDownLatch acquired = new CountDownLatch(1);
+
+    startThread(() -> {
+      try (SignalSessionLock.Lock unused = lock.acquire(key)) {
+        acquired.countDown();
+      }
+    });
+
+    return acquired.await(100, TimeUnit.MILLISECONDS);
+  }
+
+  private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  private static Thread startThread(Runnable runnable) {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,108 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Stands in for the sessions table. Records are kept serialized, so every load and write pays the
+ * same parsing and serialization cost that the database does.
+ */
+final class InMemorySessionBacking implements SessionCache.Backing {
+
+  private final Map<SessionCache.Key, byte[]> rows = new HashMap<>();
+
+  private Runnable onWrite;
+
+  private int loads;
+  private int writes;
+  private int batches;
+
+  @Override
+  public synchronized @Nullable SessionRecord load(@NonNull RecipientId recipientId, int deviceId) {
+    loads++;
+
+    byte[] row = rows.get(new SessionCache.Key(recipientId, deviceId));
+    if (row == null) {
+      return null;
+    }
+
+    try {
+      return new SessionRecord(row);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(@NonNull Map<SessionCache.Key, byte[]> batch) {
+    Runnable hook;
+
+    synchronized (this) {
+      for (Map.Entry<SessionCache.Key, byte[]> entry : batch.entrySet()) {
+        rows.put(entry.getKey(), entry.getValue());
+        writes++;
+      }
+      batches++;
+      hook = onWrite;
+    }
+
+    if (hook != null) {
+      hook.run();
+    }
+  }
+
+  @Override
+  public synchronized void delete(@NonNull RecipientId recipientId, int deviceId) {
+    rows.remove(new SessionCache.Key(recipientId, deviceId));
+  }
+
+  @Override
+  public synchronized void deleteAll(@NonNull RecipientId recipientId) {
+    Iterator<SessionCache.Key> keys = rows.keySet().iterator();
+
+    while (keys.hasNext()) {
+      if (keys.next().getRecipientId().equals(recipientId)) {
+        keys.remove();
+      }
+    }
+  }
+
+  synchronized boolean contains(@NonNull RecipientId recipientId, int deviceId) {
+    return rows.containsKey(new SessionCache.Key(recipientId, deviceId));
+  }
+
+  synchronized void putDirectly(@NonNull RecipientId recipientId, int deviceId, @NonNull SessionRecord record) {
+    rows.put(new SessionCache.Key(recipientId, deviceId), record.serialize());
+  }
+
+  /**
+   * Runs the hook after each batch is written, before the cache hears that it was.
+   */
+  synchronized void setOnWrite(@Nullable Runnable onWrite) {
+    this.onWrite = onWrite;
+  }
+
+  synchronized @Nullable byte[] getRow(@NonNull RecipientId recipientId, int deviceId) {
+    return rows.get(new SessionCache.Key(recipientId, deviceId));
+  }
+
+  synchronized int getLoads() {
+    return loads;
+  }
+
+  synchronized int getWrites() {
+    return writes;
+  }
+
+  synchronized int getBatches() {
+    return batches;
+  }
+}
@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class SearchDatabaseTest {
+
+  private static final String QUERY = "\"hello\"* ";
+
+  @Test
+  public void createFullTextSearchQuery_prefixMatchesEachWord() {
+    assertEquals("\"hello\"* \"world\"* ", SearchDatabase.createFullTextSearchQuery("hello world"));
+  }
+
+  @Test
+  public void createFullTextSearchQuery_ignoresExtraSpaces() {
+    assertEquals("\"hello\"* \"world\"* ", SearchDatabase.createFullTextSearchQuery("  hello   world "));
+  }
+
+  @Test
+  public void createFullTextSearchQuery_blank_isEmpty() {
+    assertEquals("", SearchDatabase.createFullTextSearchQuery(""));
+    assertEquals("", SearchDatabase.createFullTextSearchQuery("   "));
+  }
+
+  @Test
+  public void createFullTextSearchQuery_escapesQuotes() {
+    assertEquals("\"say\"* \"\"\"hi\"\"\"* ", SearchDatabase.createFullTextSearchQuery("say \"hi\""));
+  }
+
+  @Test
+  public void createFullTextSearchQuery_quotesOperatorsAndSyntax() {
+    assertEquals("\"a\"* \"OR\"* \"b\"* ", SearchDatabase.createFullTextSearchQuery("a OR b"));
+    assertEquals("\"*\"* \"body:x\"* \"(y)\"* ", SearchDatabase.createFullTextSearchQuery("* body:x (y)"));
+  }
+
+  @Test
+  public void buildRankedMessagesQuery_firstPage() {
+    List<Object> args = new ArrayList<>();
+    String       sql  = SearchDatabase.buildRankedMessagesQuery(QUERY, -1, null, 50, args);
+
+    assertEquals(Arrays.asList(QUERY, 50, QUERY, 50, 50), args);
+    assertEquals(args.size(), countPlaceholders(sql));
+    assertFalse(sql.contains(".rank >"));
+    assertTrue(sql.endsWith("ORDER BY " + SearchDatabase.RANK + ", " + SearchDatabase.IS_MMS + ", " + SearchDatabase.MESSAGE_ID + " LIMIT ?"));
+  }
+
+  @Test
+  public void buildRankedMessagesQuery_singleThread() {
+    List<Object> args = new ArrayList<>();
+    String       sql  = SearchDatabase.buildRankedMessagesQuery(QUERY, 7, null, 50, args);
+
+    assertEquals(Arrays.asList(QUERY, 7L, 50, QUERY, 7L, 50, 50), args);
+    assertEquals(args.size(), countPlaceholders(sql));
+    assertTrue(sql.contains(SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ?"));
+    assertTrue(sql.contains(MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ?"));
+  }
+
+  @Test
+  public void buildRankedMessagesQuery_afterSmsRow() {
+    List<Object> args = new ArrayList<>();
+    String       sql  = SearchDatabase.buildRankedMessagesQuery(QUERY, -1, pageKey(-1.5, false, 10), 50, args);
+
+    assertEquals(Arrays.asList(QUERY, -1.5, -1.5, 10L, 50, QUERY, -1.5, 50, 50), args);
+    assertEquals(args.size(), countPlaceholders(sql));
+    assertTrue(sql.contains("sms_fts.rank > ? OR (sms_fts.rank = ? AND sms_fts.rowid > ?)"));
+    assertTrue(sql.contains("mms_fts.rank >= ?"));
+  }
+
+  @Test
+  public void buildRankedMessagesQuery_afterMmsRow() {
+    List<Object> args = new ArrayList<>();
+    String       sql  = SearchDatabase.buildRankedMessagesQuery(QUERY, 7, pageKey(-1.5, true, 10), 50, args);
+
+    assertEquals(Arrays.asList(QUERY, 7L, -1.5, 50, QUERY, 7L, -1.5, -1.5, 10L, 50, 50), args);
+    assertEquals(args.size(), countPlaceholders(sql));
+    assertTrue(sql.contains("sms_fts.rank > ? ORDER BY"));
+    assertTrue(sql.contains("mms_fts.rank > ? OR (mms_fts.rank = ? AND mms_fts.rowid > ?)"));
+  }
+
+  private static @NonNull SearchDatabase.PageKey pageKey(double rank, boolean isMms, long messageId) {
+    Cursor cursor = mock(Cursor.class);
+
+    when(cursor.getColumnIndexOrThrow(SearchDatabase.RANK)).thenReturn(0);
+    when(cursor.getColumnIndexOrThrow(SearchDatabase.IS_MMS)).thenReturn(1);
+    when(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ID)).thenReturn(2);
+    when(cursor.getDouble(0)).thenReturn(rank);
+    when(cursor.getInt(1)).thenReturn(isMms ? 1 : 0);
+    when(cursor.getLong(2)).thenReturn(messageId);
+
+    return SearchDatabase.PageKey.fromCursor(cursor);
+  }
+
+  private static int countPlaceholders(@NonNull String sql) {
+    int count = 0;
+
+    for (int i = 0; i < sql.length(); i++) {
+      if (sql.charAt(i) == '?') {
+        count++;
+      }
+    }
+
+    return count;
+  }
+}
@@ -0,0 +1,415 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.thoughtcrime.securesms.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
+
+/**
+ * Decrypts a backlog of messages from several senders, like catching up after being offline, with
+ * and without a {@link SessionCache} in front of the session storage. Logs messages decrypted per
+ * second, and how often the cache was hit. Ignored by default, remove the annotation to run it.
+ * <p>
+ * The storage keeps sessions serialized, so it charges for parsing and serializing a record but not
+ * for SQLCipher itself. The real gap is larger. Absolute numbers depend heavily on the machine, so
+ * compare against a baseline taken on the same one.
+ */
+@Ignore("Benchmark")
+public final class SessionCacheBenchmark {
+
+  private static final String TAG = Log.tag(SessionCacheBenchmark.class);
+
+  private static final int SENDERS             = 8;
+  private static final int MESSAGES_PER_SENDER = 250;
+  private static final int WARMUP_ITERATIONS   = 1;
+  private static final int MEASURED_ITERATIONS = 3;
+
+  private static final int    PRE_KEY_ID        = 1;
+  private static final int    SIGNED_PRE_KEY_ID = 1;
+  private static final int    DEVICE_ID         = 1;
+  private static final byte[] PLAINTEXT         = new byte[160];
+
+  @Before
+  public void setUp() {
+    assumeLibSignalSupportedOnOS();
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void decryptThroughput() throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      run(false);
+      run(true);
+    }
+
+    List<Result> uncached = new ArrayList<>();
+    List<Result> cached   = new ArrayList<>();
+
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      uncached.add(run(false));
+      cached.add(run(true));
+    }
+
+    log("uncached", median(uncached));
+    log("cached", median(cached));
+  }
+
+  private static @NonNull Result run(boolean useCache) throws Exception {
+    InMemorySessionBacking backing  = new InMemorySessionBacking();
+    SessionCache           cache    = useCache ? new SessionCache(backing, 200, 50) : null;
+    TestStore              receiver = new TestStore(useCache ? new CachedSessions(cache) : new UncachedSessions(backing));
+    List<Envelope>         backlog  = createBacklog(receiver);
+    int                    loads    = backing.getLoads();
+    int                    writes   = backing.getWrites();
+    long                   hits     = cache != null ? cache.getHitCount() : 0;
+    long                   misses   = cache != null ? cache.getMissCount() : 0;
+    long                   start    = System.nanoTime();
+
+    for (Envelope envelope : backlog) {
+      SessionCipher cipher    = new SessionCipher(receiver, envelope.sender);
+      byte[]        plaintext = cipher.decrypt((SignalMessage) envelope.message);
+
+      assertArrayEquals(PLAINTEXT, plaintext);
+
+      if (cache != null) {
+        cache.flush();
+      }
+    }
+
+    long elapsed = System.nanoTime() - start;
+
+    return new Result(backlog.size(),
+                      elapsed,
+                      backing.getLoads() - loads,
+                      backing.getWrites() - writes,
+                      cache != null ? cache.getHitCount() - hits : 0,
+                      cache != null ? cache.getMissCount() - misses : 0);
+  }
+
+  /**
+   * Sets up a session with each sender and has them each encrypt a run of messages. The messages
+   * are interleaved across senders, as they would be in a real backlog.
+   */
+  private static @NonNull List<Envelope> createBacklog(@NonNull TestStore receiver) throws Exception {
+    List<List<CiphertextMessage>> bySender = new ArrayList<>(SENDERS);
+    List<SignalProtocolAddress>   senders  = new ArrayList<>(SENDERS);
+    SignalProtocolAddress         self     = new SignalProtocolAddress("+15550000000", DEVICE_ID);
+
+    for (int s = 0; s < SENDERS; s++) {
+      SignalProtocolAddress sender      = new SignalProtocolAddress("+1555000" + String.format(Locale.US, "%04d", s + 1), DEVICE_ID);
+      TestStore             senderStore = new TestStore(new HeapSessions());
+
+      receiver.preKeys.clear();
+      new SessionBuilder(senderStore, self).process(receiver.createPreKeyBundle());
+
+      SessionCipher senderCipher   = new SessionCipher(senderStore, self);
+      SessionCipher receiverCipher = new SessionCipher(receiver, sender);
+
+      receiverCipher.decrypt(new PreKeySignalMessage(senderCipher.encrypt(PLAINTEXT).serialize()));
+      senderCipher.decrypt(new SignalMessage(receiverCipher.encrypt(PLAINTEXT).serialize()));
+
+      List<CiphertextMessage> messages = new ArrayList<>(MESSAGES_PER_SENDER);
+      for (int m = 0; m < MESSAGES_PER_SENDER; m++) {
+        messages.add(new SignalMessage(senderCipher.encrypt(PLAINTEXT).serialize()));
+      }
+
+      senders.add(sender);
+      bySender.add(messages);
+    }
+
+    receiver.sessions.flush();
+
+    List<Envelope> backlog = new ArrayList<>(SENDERS * MESSAGES_PER_SENDER);
+    for (int m = 0; m < MESSAGES_PER_SENDER; m++) {
+      for (int s = 0; s < SENDERS; s++) {
+        backlog.add(new Envelope(senders.get(s), bySender.get(s).get(m)));
+      }
+    }
+
+    return backlog;
+  }
+
+  private static @NonNull Result median(@NonNull List<Result> results) {
+    List<Result> sorted = new ArrayList<>(results);
+    Collections.sort(sorted, (a, b) -> Long.compare(a.elapsedNanos, b.elapsedNanos));
+    return sorted.get(sorted.size() / 2);
+  }
+
+  private static void log(@NonNull String name, @NonNull Result result) {
+    double seconds = result.elapsedNanos / 1_000_000_000d;
+    long   total   = result.hits + result.misses;
+
+    Log.i(TAG, String.format(Locale.US,
+                             "%-8s: %d messages in %.2f s (%.0f msg/s), %d reads, %d writes, hit rate %.1f%%",
+                             name,
+                             result.messages,
+                             seconds,
+                             result.messages / seconds,
+                             result.reads,
+                             result.writes,
+                             total > 0 ? result.hits * 100f / total : 0f));
+  }
+
+  private static @NonNull RecipientId recipientIdFor(@NonNull String name) {
+    return RecipientId.from(Long.parseLong(name.substring(1)));
+  }
+
+  private static final class Envelope {
+    private final SignalProtocolAddress sender;
+    private final CiphertextMessage     message;
+
+    private Envelope(@NonNull SignalProtocolAddress sender, @NonNull CiphertextMessage message) {
+      this.sender  = sender;
+      this.message = message;
+    }
+  }
+
+  private static final class Result {
+    private final int  messages;
+    private final long elapsedNanos;
+    private final int  reads;
+    private final int  writes;
+    private final long hits;
+    private final long misses;
+
+    private Result(int messages, long elapsedNanos, int reads, int writes, long hits, long misses) {
+      this.messages     = messages;
+      this.elapsedNanos = elapsedNanos;
+      this.reads        = reads;
+      this.writes       = writes;
+      this.hits         = hits;
+      this.misses       = misses;
+    }
+  }
+
+  private interface Sessions {
+    SessionRecord load(@NonNull SignalProtocolAddress address);
+    void store(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record);
+    void flush();
+  }
+
+  private static final class HeapSessions implements Sessions {
+    private final Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+    @Override
+    public SessionRecord load(@NonNull SignalProtocolAddress address) {
+      return records.get(address);
+    }
+
+    @Override
+    public void store(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
+      records.put(address, record);
+    }
+
+    @Override
+    public void flush() { }
+  }
+
+  private static final class UncachedSessions implements Sessions {
+    private final InMemorySessionBacking backing;
+
+    private UncachedSessions(@NonNull InMemorySessionBacking backing) {
+      this.backing = backing;
+    }
+
+    @Override
+    public SessionRecord load(@NonNull SignalProtocolAddress address) {
+      return backing.load(recipientIdFor(address.getName()), address.getDeviceId());
+    }
+
+    @Override
+    public void store(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
+      SessionCache.Key key = new SessionCache.Key(recipientIdFor(address.getName()), address.getDeviceId());
+      backing.write(Collections.singletonMap(key, record.serialize()));
+    }
+
+    @Override
+    public void flush() { }
+  }
+
+  private static final class CachedSessions implements Sessions {
+    private final SessionCache cache;
+
+    private CachedSessions(@NonNull SessionCache cache) {
+      this.cache = cache;
+    }
+
+    @Override
+    public SessionRecord load(@NonNull SignalProtocolAddress address) {
+      return cache.load(recipientIdFor(address.getName()), address.getDeviceId());
+    }
+
+    @Override
+    public void store(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
+      cache.store(recipientIdFor(address.getName()), address.getDeviceId(), record);
+    }
+
+    @Override
+    public void flush() {
+      cache.flush();
+    }
+  }
+
+  private static final class TestStore implements SignalProtocolStore {
+    private final IdentityKeyPair                         identityKeyPair = IdentityKeyUtil.generateIdentityKeyPair();
+    private final Map<Integer, PreKeyRecord>              preKeys         = new HashMap<>();
+    private final Map<Integer, SignedPreKeyRecord>        signedPreKeys   = new HashMap<>();
+    private final Map<SignalProtocolAddress, IdentityKey> identities      = new HashMap<>();
+    private final Sessions                                sessions;
+
+    private TestStore(@NonNull Sessions sessions) {
+      this.sessions = sessions;
+    }
+
+    @NonNull PreKeyBundle createPreKeyBundle() throws Exception {
+      ECKeyPair preKey       = Curve.generateKeyPair();
+      ECKeyPair signedPreKey = Curve.generateKeyPair();
+      byte[]    signature    = Curve.calculateSignature(identityKeyPair.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+      preKeys.put(PRE_KEY_ID, new PreKeyRecord(PRE_KEY_ID, preKey));
+      signedPreKeys.put(SIGNED_PRE_KEY_ID, new SignedPreKeyRecord(SIGNED_PRE_KEY_ID, System.currentTimeMillis(), signedPreKey, signature));
+
+      return new PreKeyBundle(getLocalRegistrationId(), DEVICE_ID,
+                              PRE_KEY_ID, preKey.getPublicKey(),
+                              SIGNED_PRE_KEY_ID, signedPreKey.getPublicKey(), signature,
+                              identityKeyPair.getPublicKey());
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+      return identityKeyPair;
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+      return 1;
+    }
+
+    @Override
+    public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+      return identities.put(address, identityKey) != null;
+    }
+
+    @Override
+    public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+      return true;
+    }
+
+    @Override
+    public IdentityKey getIdentity(SignalProtocolAddress address) {
+      return identities.get(address);
+    }
+
+    @Override
+    public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+      PreKeyRecord record = preKeys.get(preKeyId);
+      if (record == null) throw new InvalidKeyIdException("No such pre key: " + preKeyId);
+      return record;
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+      preKeys.put(preKeyId, record);
+    }
+
+    @Override
+    public boolean containsPreKey(int preKeyId) {
+      return preKeys.containsKey(preKeyId);
+    }
+
+    @Override
+    public void removePreKey(int preKeyId) {
+      preKeys.remove(preKeyId);
+    }
+
+    @Override
+    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+      SignedPreKeyRecord record = signedPreKeys.get(signedPreKeyId);
+      if (record == null) throw new InvalidKeyIdException("No such signed pre key: " + signedPreKeyId);
+      return record;
+    }
+
+    @Override
+    public List<SignedPreKeyRecord> loadSignedPreKeys() {
+      return new ArrayList<>(signedPreKeys.values());
+    }
+
+    @Override
+    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+      signedPreKeys.put(signedPreKeyId, record);
+    }
+
+    @Override
+    public boolean containsSignedPreKey(int signedPreKeyId) {
+      return signedPreKeys.containsKey(signedPreKeyId);
+    }
+
+    @Override
+    public void removeSignedPreKey(int signedPreKeyId) {
+      signedPreKeys.remove(signedPreKeyId);
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+      SessionRecord record = sessions.load(address);
+      return record != null ? record : new SessionRecord();
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      sessions.store(address, record);
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+      SessionRecord record = sessions.load(address);
+      return record != null && record.getSessionState().hasSenderChain();
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.thoughtcrime.securesms.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
+
+public final class SessionCacheTest {
+
+  private static final RecipientId ALICE = RecipientId.from(1);
+  private static final RecipientId BOB   = RecipientId.from(2);
+
+  private InMemorySessionBacking backing;
+
+  @Before
+  public void setUp() {
+    assumeLibSignalSupportedOnOS();
+    backing = new InMemorySessionBacking();
+  }
+
+  @Test
+  public void load_readsOnceThenHitsCache() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+    backing.putDirectly(ALICE, 1, new SessionRecord());
+
+    SessionRecord first  = cache.load(ALICE, 1);
+    SessionRecord second = cache.load(ALICE, 1);
+
+    assertNotSame(first, second);
+    assertArrayEquals(first.serialize(), second.serialize());
+    assertEquals(1, backing.getLoads());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void load_missingSessionIsCached() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    assertNull(cache.load(ALICE, 1));
+    assertNull(cache.load(ALICE, 1));
+    assertEquals(1, backing.getLoads());
+  }
+
+  @Test
+  public void store_isNotWrittenUntilFlush() {
+    SessionCache  cache  = new SessionCache(backing, 10, 10);
+    SessionRecord record = new SessionRecord();
+
+    cache.store(ALICE, 1, record);
+
+    assertFalse(backing.contains(ALICE, 1));
+    assertArrayEquals(record.serialize(), cache.load(ALICE, 1).serialize());
+    assertTrue(cache.hasPendingWrites());
+
+    cache.flush();
+
+    assertTrue(backing.contains(ALICE, 1));
+    assertFalse(cache.hasPendingWrites());
+    assertEquals(0, backing.getLoads());
+  }
+
+  @Test
+  public void load_changesToLoadedRecordAreNotSeenByNextLoad() {
+    SessionCache  cache    = new SessionCache(backing, 10, 10);
+    SessionRecord original = new SessionRecord();
+
+    backing.putDirectly(ALICE, 1, original);
+
+    SessionRecord loaded = cache.load(ALICE, 1);
+    loaded.archiveCurrentState();
+
+    assertArrayEquals(original.serialize(), cache.load(ALICE, 1).serialize());
+  }
+
+  @Test
+  public void load_pendingWrite_returnsNewInstanceEachTime() {
+    SessionCache  cache  = new SessionCache(backing, 10, 10);
+    SessionRecord stored = new SessionRecord();
+
+    cache.store(ALICE, 1, stored);
+
+    SessionRecord loaded = cache.load(ALICE, 1);
+    loaded.archiveCurrentState();
+
+    SessionRecord reloaded = cache.load(ALICE, 1);
+
+    assertNotSame(stored, loaded);
+    assertNotSame(loaded, reloaded);
+    assertArrayEquals(stored.serialize(), reloaded.serialize());
+  }
+
+  @Test
+  public void load_evictedPendingWrite_returnsNewInstanceEachTime() {
+    SessionCache  cache  = new SessionCache(backing, 1, 10);
+    SessionRecord stored = new SessionRecord();
+
+    cache.store(ALICE, 1, stored);
+    cache.store(BOB, 1, new SessionRecord());
+
+    SessionRecord loaded = cache.load(ALICE, 1);
+    loaded.archiveCurrentState();
+
+    assertArrayEquals(stored.serialize(), cache.load(ALICE, 1).serialize());
+    assertEquals(0, backing.getLoads());
+  }
+
+  @Test
+  public void store_repeatedStoresAreWrittenOnce() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.flush();
+
+    assertEquals(1, backing.getWrites());
+    assertEquals(1, backing.getBatches());
+  }
+
+  @Test
+  public void store_flushesOnceBatchIsFull() {
+    SessionCache cache = new SessionCache(backing, 10, 3);
+
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.store(ALICE, 2, new SessionRecord());
+    assertEquals(0, backing.getBatches());
+
+    cache.store(ALICE, 3, new SessionRecord());
+    assertEquals(1, backing.getBatches());
+    assertEquals(3, backing.getWrites());
+    assertFalse(cache.hasPendingWrites());
+  }
+
+  @Test
+  public void store_laterChangesToRecordAreNotWritten() {
+    SessionCache   cache  = new SessionCache(backing, 10, 10);
+    ChangingRecord record = new ChangingRecord(1);
+
+    cache.store(ALICE, 1, record);
+    record.change(2);
+    cache.flush();
+
+    assertArrayEquals(new byte[] { 1 }, backing.getRow(ALICE, 1));
+  }
+
+  @Test
+  public void store_duringFlush_isWrittenByNextFlush() {
+    SessionCache   cache  = new SessionCache(backing, 10, 10);
+    ChangingRecord record = new ChangingRecord(1);
+
+    cache.store(ALICE, 1, record);
+
+    backing.setOnWrite(() -> {
+      backing.setOnWrite(null);
+      record.change(2);
+      cache.store(ALICE, 1, record);
+    });
+
+    cache.flush();
+
+    assertTrue(cache.hasPendingWrites());
+
+    cache.flush();
+
+    assertFalse(cache.hasPendingWrites());
+    assertArrayEquals(new byte[] { 2 }, backing.getRow(ALICE, 1));
+  }
+
+  @Test
+  public void flushStoredOnThisThread_leavesOtherThreadsStores() throws Exception {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    Thread other = new Thread(() -> cache.store(BOB, 1, new SessionRecord()));
+    other.start();
+    other.join();
+
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.flushStoredOnThisThread();
+
+    assertTrue(backing.contains(ALICE, 1));
+    assertFalse(backing.contains(BOB, 1));
+    assertTrue(cache.hasPendingWrites());
+  }
+
+  @Test
+  public void deferredWrites_areWrittenOnlyOnceReleased() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    cache.beginDeferringWrites();
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.flushStoredOnThisThread();
+    Collection<SessionCache.Key> held = cache.endDeferringWrites();
+
+    cache.flushStoredOnThisThread();
+    assertFalse(backing.contains(ALICE, 1));
+
+    cache.releaseHeld(held);
+    assertTrue(backing.contains(ALICE, 1));
+    assertFalse(cache.hasPendingWrites());
+  }
+
+  @Test
+  public void heldSession_storedAgainElsewhere_waitsForRelease() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    cache.beginDeferringWrites();
+    cache.store(ALICE, 1, new ChangingRecord(1));
+    Collection<SessionCache.Key> held = cache.endDeferringWrites();
+
+    cache.store(ALICE, 1, new ChangingRecord(2));
+    cache.flushStoredOnThisThread();
+    assertFalse(backing.contains(ALICE, 1));
+
+    cache.releaseHeld(held);
+    assertArrayEquals(new byte[] { 2 }, backing.getRow(ALICE, 1));
+  }
+
+  @Test
+  public void discardHeld_readsSessionBackFromDisk() {
+    SessionCache  cache    = new SessionCache(backing, 10, 10);
+    SessionRecord original = new SessionRecord();
+
+    backing.putDirectly(ALICE, 1, original);
+    cache.load(ALICE, 1);
+
+    cache.beginDeferringWrites();
+    cache.store(ALICE, 1, new ChangingRecord(1));
+    cache.discardHeld(cache.endDeferringWrites());
+
+    assertFalse(cache.hasPendingWrites());
+    assertArrayEquals(original.serialize(), cache.load(ALICE, 1).serialize());
+    assertEquals(2, backing.getLoads());
+    assertEquals(0, backing.getWrites());
+  }
+
+  @Test
+  public void eviction_neverDropsPendingWrites() {
+    SessionCache cache = new SessionCache(backing, 2, 100);
+
+    for (int i = 0; i < 5; i++) {
+      cache.store(ALICE, i + 1, new SessionRecord());
+    }
+
+    for (int i = 0; i < 5; i++) {
+      assertNotNull(cache.load(ALICE, i + 1));
+    }
+
+    cache.flush();
+
+    assertEquals(0, backing.getLoads());
+    assertEquals(5, backing.getWrites());
+  }
+
+  @Test
+  public void eviction_dropsLeastRecentlyUsed() {
+    SessionCache cache = new SessionCache(backing, 1, 10);
+    backing.putDirectly(ALICE, 1, new SessionRecord());
+    backing.putDirectly(BOB, 1, new SessionRecord());
+
+    cache.load(ALICE, 1);
+    cache.load(BOB, 1);
+    cache.load(ALICE, 1);
+
+    assertEquals(3, backing.getLoads());
+  }
+
+  @Test
+  public void delete_dropsPendingWrite() {
+    SessionCache cache = new SessionCache(backing, 10, 10);
+
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.delete(ALICE, 1);
+    cache.flush();
+
+    assertNull(cache.load(ALICE, 1));
+    assertFalse(backing.contains(ALICE, 1));
+    assertEquals(0, backing.getWrites());
+  }
+
+  @Test
+  public void deleteAll_dropsEveryDeviceForRecipientOnly() {
+    SessionCache  cache = new SessionCache(backing, 10, 10);
+    SessionRecord bob   = new SessionRecord();
+
+    backing.putDirectly(ALICE, 3, new SessionRecord());
+    cache.load(ALICE, 3);
+    cache.store(ALICE, 1, new SessionRecord());
+    cache.store(ALICE, 2, new SessionRecord());
+    cache.store(BOB, 1, bob);
+
+    cache.deleteAll(ALICE);
+    cache.flush();
+
+    assertNull(cache.load(ALICE, 1));
+    assertNull(cache.load(ALICE, 2));
+    assertNull(cache.load(ALICE, 3));
+    assertArrayEquals(bob.serialize(), cache.load(BOB, 1).serialize());
+    assertEquals(1, backing.getWrites());
+  }
+
+  @Test
+  public void invalidate_writesPendingAndRereadsAfterward() {
+    SessionCache  cache    = new SessionCache(backing, 10, 10);
+    SessionRecord original = new SessionRecord();
+
+    cache.store(ALICE, 1, original);
+    cache.invalidate(ALICE);
+
+    assertTrue(backing.contains(ALICE, 1));
+
+    SessionRecord reloaded = cache.load(ALICE, 1);
+
+    assertNotSame(original, reloaded);
+    assertEquals(1, backing.getLoads());
+  }
+
+  /**
+   * A record whose contents can be changed in place, like callers do with the cached instance.
+   */
+  private static final class ChangingRecord extends SessionRecord {
+    private volatile byte contents;
+
+    private ChangingRecord(int contents) {
+      this.contents = (byte) contents;
+    }
+
+    void change(int contents) {
+      this.contents = (byte) contents;
+    }
+
+    @Override
+    public byte[] serialize() {
+      return new byte[] { contents };
+    }
+  }
+}
@@ -0,0 +1,488 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.annimon.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
+import org.thoughtcrime.securesms.jobs.IndexedJobStorage;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives a {@link JobController} from several runner threads at once, and checks that every job
+ * runs exactly once and that each queue runs in order.
+ *
+ * {@link #throughput()} also reports jobs per second against {@link NotifyAllDispatcher}, which
+ * dispatches the way the controller used to: every state change wakes every idle runner, and each
+ * of them reads the eligible jobs again. The jobs themselves do no work, so this measures the cost
+ * of dispatch alone. It's ignored by default, remove the annotation to run it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class JobControllerThroughputTest {
+
+  private static final String TAG = Log.tag(JobControllerThroughputTest.class);
+
+  private static final int   QUEUE_COUNT   = 64;
+  private static final int   JOB_COUNT     = 5_000;
+  private static final int[] RUNNER_COUNTS = { 1, 2, 4, 8, 16 };
+
+  private Application application;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+    application = ApplicationProvider.getApplicationContext();
+  }
+
+  @Test
+  public void manyRunners_allJobsRunOnceAndInQueueOrder() throws InterruptedException {
+    Recorder recorder = new Recorder(1_000);
+
+    run(new ControllerDispatcher(createController(recorder)), 8, recorder);
+  }
+
+  @Ignore("Benchmark")
+  @Test
+  public void throughput() throws InterruptedException {
+    List<String> results = new ArrayList<>(RUNNER_COUNTS.length);
+
+    for (int runnerCount : RUNNER_COUNTS) {
+      Recorder handoffRecorder   = new Recorder(JOB_COUNT);
+      Recorder notifyAllRecorder = new Recorder(JOB_COUNT);
+
+      long handoffNanos   = run(new ControllerDispatcher(createController(handoffRecorder)), runnerCount, handoffRecorder);
+      long notifyAllNanos = run(new NotifyAllDispatcher(application, createStorage(), createInstantiator(notifyAllRecorder)), runnerCount, notifyAllRecorder);
+
+      results.add(String.format(Locale.US, "runners: %2d | jobs: %d | direct handoff: %6.0f jobs/sec | notifyAll: %6.0f jobs/sec",
+                                runnerCount, JOB_COUNT, jobsPerSecond(handoffNanos), jobsPerSecond(notifyAllNanos)));
+    }
+
+    // Every job logs when it's submitted, so logging is only turned on once they've all run.
+    Log.initialize(new SystemOutLogger());
+
+    for (String result : results) {
+      Log.i(TAG, result);
+    }
+  }
+
+  /**
+   * Runs every job in the recorder through the dispatcher, then stops the runner threads.
+   *
+   * @return How long it took for every job to run, in nanoseconds.
+   */
+  private static long run(@NonNull Dispatcher dispatcher, int runnerCount, @NonNull Recorder recorder) throws InterruptedException {
+    List<Thread> runners = new ArrayList<>(runnerCount);
+
+    for (int i = 0; i < runnerCount; i++) {
+      Thread runner = new Thread(() -> runUntilStopped(dispatcher), "runner-" + i);
+      runner.start();
+      runners.add(runner);
+    }
+
+    long elapsedNanos;
+
+    try {
+      long start = System.nanoTime();
+
+      for (int i = 0; i < recorder.jobCount; i++) {
+        dispatcher.submit(new ThroughputJob(i % QUEUE_COUNT, i / QUEUE_COUNT, recorder));
+      }
+
+      assertTrue("Timed out with " + runnerCount + " runners", recorder.done.await(1, TimeUnit.MINUTES));
+
+      elapsedNanos = System.nanoTime() - start;
+    } finally {
+      for (int i = 0; i < runnerCount; i++) {
+        dispatcher.submit(new StopJob());
+      }
+
+      for (Thread runner : runners) {
+        runner.join(TimeUnit.SECONDS.toMillis(10));
+      }
+    }
+
+    assertEquals(recorder.jobCount, recorder.runs.get());
+    assertEquals(0, recorder.outOfOrder.get());
+
+    return elapsedNanos;
+  }
+
+  /**
+   * A cut-down {@link JobRunner} that returns once it has run a {@link StopJob}. Each runner can
+   * only run one, so submitting one per runner stops them all.
+   */
+  private static void runUntilStopped(@NonNull Dispatcher dispatcher) {
+    while (true) {
+      Job job = dispatcher.pull();
+      job.run();
+      dispatcher.onSuccess(job);
+
+      if (job instanceof StopJob) {
+        return;
+      }
+    }
+  }
+
+  private static double jobsPerSecond(long elapsedNanos) {
+    return JOB_COUNT / (elapsedNanos / 1_000_000_000d);
+  }
+
+  private @NonNull JobController createController(@NonNull Recorder recorder) {
+    return new JobController(application,
+                             createStorage(),
+                             createInstantiator(recorder),
+                             new ConstraintInstantiator(Collections.emptyMap()),
+                             new JsonDataSerializer(),
+                             new JobTracker(),
+                             (delay, constraints) -> {},
+                             new NoopDebouncer(),
+                             () -> {});
+  }
+
+  private static @NonNull JobStorage createStorage() {
+    JobDatabase database = mock(JobDatabase.class);
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    IndexedJobStorage storage = new IndexedJobStorage(database);
+    storage.init();
+
+    return storage;
+  }
+
+  private static @NonNull JobInstantiator createInstantiator(@NonNull Recorder recorder) {
+    Map<String, Job.Factory> factories = new HashMap<>();
+    factories.put(ThroughputJob.KEY, new ThroughputJob.Factory(recorder));
+    factories.put(StopJob.KEY, new StopJob.Factory());
+
+    return new JobInstantiator(factories);
+  }
+
+  private interface Dispatcher {
+    void submit(@NonNull Job job);
+    @NonNull Job pull();
+    void onSuccess(@NonNull Job job);
+  }
+
+  private static final class ControllerDispatcher implements Dispatcher {
+    private final JobController controller;
+
+    private ControllerDispatcher(@NonNull JobController controller) {
+      this.controller = controller;
+      controller.init();
+    }
+
+    @Override
+    public void submit(@NonNull Job job) {
+      controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+    }
+
+    @Override
+    public @NonNull Job pull() {
+      return controller.pullNextEligibleJobForExecution(JobPredicate.NONE);
+    }
+
+    @Override
+    public void onSuccess(@NonNull Job job) {
+      controller.onJobFinished(job);
+      controller.onSuccess(job, null);
+    }
+  }
+
+  /**
+   * Dispatches the way {@link JobController} did before idle runners were handed jobs directly,
+   * doing the same work per job for everything this workload needs. Everything is synchronized on
+   * the dispatcher, every change calls notifyAll(), and every runner that wakes up looks for a job
+   * itself.
+   */
+  private static final class NotifyAllDispatcher implements Dispatcher {
+    private final Application      application;
+    private final JobStorage       jobStorage;
+    private final JobInstantiator  jobInstantiator;
+    private final Data.Serializer  dataSerializer;
+    private final JobTracker       jobTracker;
+    private final Debouncer        debouncer;
+    private final Map<String, Job> runningJobs;
+
+    private NotifyAllDispatcher(@NonNull Application application, @NonNull JobStorage jobStorage, @NonNull JobInstantiator jobInstantiator) {
+      this.application     = application;
+      this.jobStorage      = jobStorage;
+      this.jobInstantiator = jobInstantiator;
+      this.dataSerializer  = new JsonDataSerializer();
+      this.jobTracker      = new JobTracker();
+      this.debouncer       = new NoopDebouncer();
+      this.runningJobs     = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void submit(@NonNull Job job) {
+      job.setRunAttempt(0);
+
+      JobSpec jobSpec = new JobSpec(job.getId(),
+                                    job.getFactoryKey(),
+                                    job.getParameters().getQueue(),
+                                    System.currentTimeMillis(),
+                                    job.getNextRunAttemptTime(),
+                                    job.getRunAttempt(),
+                                    job.getParameters().getMaxAttempts(),
+                                    job.getParameters().getLifespan(),
+                                    dataSerializer.serialize(job.serialize()),
+                                    null,
+                                    false,
+                                    job.getParameters().isMemoryOnly(),
+                                    job.getParameters().getPriority());
+
+      List<ConstraintSpec> constraintSpecs = Stream.of(job.getParameters().getConstraintKeys())
+                                                   .map(key -> new ConstraintSpec(jobSpec.getId(), key, jobSpec.isMemoryOnly()))
+                                                   .toList();
+
+      jobStorage.insertJobs(Collections.singletonList(new FullSpec(jobSpec, constraintSpecs, Collections.emptyList())));
+
+      job.setContext(application);
+      job.onSubmit();
+
+      notifyAll();
+    }
+
+    @Override
+    public synchronized @NonNull Job pull() {
+      try {
+        Job job;
+
+        while ((job = getNextEligibleJob()) == null) {
+          if (runningJobs.isEmpty()) {
+            debouncer.publish(() -> {});
+          }
+
+          wait();
+        }
+
+        jobStorage.updateJobRunningState(job.getId(), true);
+        runningJobs.put(job.getId(), job);
+        jobTracker.onStateChange(job, JobTracker.JobState.RUNNING);
+
+        return job;
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public synchronized void onSuccess(@NonNull Job job) {
+      runningJobs.remove(job.getId());
+      jobStorage.deleteJob(job.getId());
+      jobTracker.onStateChange(job, JobTracker.JobState.SUCCESS);
+
+      notifyAll();
+    }
+
+    private @Nullable Job getNextEligibleJob() {
+      List<JobSpec> jobSpecs = Stream.of(jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis()))
+                                     .filter(JobPredicate.NONE::shouldRun)
+                                     .toList();
+
+      for (JobSpec jobSpec : jobSpecs) {
+        List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
+
+        if (constraintSpecs.isEmpty()) {
+          Job.Parameters parameters = new Job.Parameters.Builder(jobSpec.getId())
+                                                        .setCreateTime(jobSpec.getCreateTime())
+                                                        .setLifespan(jobSpec.getLifespan())
+                                                        .setMaxAttempts(jobSpec.getMaxAttempts())
+                                                        .setQueue(jobSpec.getQueueKey())
+                                                        .setPriority(jobSpec.getPriority())
+                                                        .setConstraints(Stream.of(constraintSpecs).map(ConstraintSpec::getFactoryKey).toList())
+                                                        .build();
+
+          Job job = jobInstantiator.instantiate(jobSpec.getFactoryKey(), parameters, dataSerializer.deserialize(jobSpec.getSerializedData()));
+
+          job.setRunAttempt(jobSpec.getRunAttempt());
+          job.setNextRunAttemptTime(jobSpec.getNextRunAttemptTime());
+          job.setContext(application);
+
+          return job;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  /**
+   * A mock would record every call, which adds up over thousands of jobs.
+   */
+  private static final class NoopDebouncer extends Debouncer {
+    private NoopDebouncer() {
+      super(0);
+    }
+
+    @Override
+    public void publish(Runnable runnable) {
+    }
+  }
+
+  private static final class Recorder {
+    private final int                jobCount;
+    private final CountDownLatch     done;
+    private final AtomicInteger      runs         = new AtomicInteger();
+    private final AtomicInteger      outOfOrder   = new AtomicInteger();
+    private final AtomicIntegerArray nextPosition = new AtomicIntegerArray(QUEUE_COUNT);
+
+    private Recorder(int jobCount) {
+      this.jobCount = jobCount;
+      this.done     = new CountDownLatch(jobCount);
+    }
+
+    void onRun(int queue, int position) {
+      if (!nextPosition.compareAndSet(queue, position, position + 1)) {
+        outOfOrder.incrementAndGet();
+      }
+      runs.incrementAndGet();
+      done.countDown();
+    }
+  }
+
+  private static final class ThroughputJob extends Job {
+
+    static final String KEY = "ThroughputJob";
+
+    private static final String KEY_QUEUE    = "queue";
+    private static final String KEY_POSITION = "position";
+
+    private final int      queue;
+    private final int      position;
+    private final Recorder recorder;
+
+    ThroughputJob(int queue, int position, @NonNull Recorder recorder) {
+      this(new Parameters.Builder()
+                         .setQueue("queue-" + queue)
+                         .setMemoryOnly(true)
+                         .build(),
+           queue,
+           position,
+           recorder);
+    }
+
+    private ThroughputJob(@NonNull Parameters parameters, int queue, int position, @NonNull Recorder recorder) {
+      super(parameters);
+      this.queue    = queue;
+      this.position = position;
+      this.recorder = recorder;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return new Data.Builder().putInt(KEY_QUEUE, queue)
+                               .putInt(KEY_POSITION, position)
+                               .build();
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      recorder.onRun(queue, position);
+      return Result.success();
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    private static final class Factory implements Job.Factory<ThroughputJob> {
+      private final Recorder recorder;
+
+      private Factory(@NonNull Recorder recorder) {
+        this.recorder = recorder;
+      }
+
+      @Override
+      public @NonNull ThroughputJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new ThroughputJob(parameters, data.getInt(KEY_QUEUE), data.getInt(KEY_POSITION), recorder);
+      }
+    }
+  }
+
+  /**
+   * Tells the runner that runs it to stop.
+   */
+  private static final class StopJob extends Job {
+
+    static final String KEY = "StopJob";
+
+    StopJob() {
+      this(new Parameters.Builder()
+                         .setMemoryOnly(true)
+                         .build());
+    }
+
+    private StopJob(@NonNull Parameters parameters) {
+      super(parameters);
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      return Result.success();
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    private static final class Factory implements Job.Factory<StopJob> {
+      @Override
+      public @NonNull StopJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new StopJob(parameters);
+      }
+    }
+  }
+}
@@ -0,0 +1,446 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.jobs.IndexedJobStorage;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Benchmarks {@link JobController} and {@link JobRunner} over each {@link JobStorage}
+ * implementation, for a handful of workloads that stress different parts of the job system.
+ *
+ * The {@link JobDatabase} is a stub that does nothing, so what's measured is storage and
+ * scheduling alone. For each scenario this reports jobs completed per second, the p50 and p99 time
+ * between a job being submitted and it first starting to run, and how much the submitting and
+ * runner threads allocated along the way.
+ *
+ * Every scenario runs {@link #WARMUP_ITERATIONS} times before being measured, and the numbers are
+ * the median of {@link #MEASURED_ITERATIONS} runs. Absolute numbers depend heavily on the machine,
+ * so compare against a baseline taken on the same one. Ignored by default, remove the annotation to
+ * run it.
+ */
+@Ignore("Benchmark")
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class JobManagerBenchmark {
+
+  private static final String TAG = Log.tag(JobManagerBenchmark.class);
+
+  private static final int RUNNER_COUNT        = 4;
+  private static final int WARMUP_ITERATIONS   = 2;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  private static final List<Scenario> SCENARIOS = Arrays.asList(new Scenario("deep single queue", 2_000, 1, 1, 0),
+                                                                new Scenario("many small queues", 2_000, 500, 1, 0),
+                                                                new Scenario("dependency chains", 2_000, 0, 10, 0),
+                                                                new Scenario("retry storm", 500, 50, 1, 3));
+
+  private Application application;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+    application = ApplicationProvider.getApplicationContext();
+  }
+
+  @Test
+  public void fastJobStorage() throws InterruptedException {
+    run("FastJobStorage", new FastJobStorage(stubDatabase()));
+  }
+
+  @Test
+  public void indexedJobStorage() throws InterruptedException {
+    run("IndexedJobStorage", new IndexedJobStorage(stubDatabase()));
+  }
+
+  private void run(@NonNull String storageName, @NonNull JobStorage storage) throws InterruptedException {
+    storage.init();
+
+    ScheduledExecutorService       timer         = Executors.newSingleThreadScheduledExecutor();
+    AtomicReference<JobController> controllerRef = new AtomicReference<>();
+    Scheduler                      scheduler     = (delay, constraints) -> timer.schedule(() -> controllerRef.get().wakeUp(), delay, TimeUnit.MILLISECONDS);
+
+    Map<String, Job.Factory> factories = new HashMap<>();
+    BenchmarkJob.Factory     factory   = new BenchmarkJob.Factory();
+    factories.put(BenchmarkJob.KEY, factory);
+    factories.put(StopJob.KEY, new StopJob.Factory());
+
+    JobController controller = new JobController(application,
+                                                 storage,
+                                                 new JobInstantiator(factories),
+                                                 new ConstraintInstantiator(Collections.emptyMap()),
+                                                 new JsonDataSerializer(),
+                                                 new JobTracker(),
+                                                 scheduler,
+                                                 mock(Debouncer.class, withSettings().stubOnly()),
+                                                 () -> {});
+    controllerRef.set(controller);
+    controller.init();
+
+    List<Thread>               threads       = new ArrayList<>();
+    List<String>               results       = new ArrayList<>(SCENARIOS.size());
+    AtomicReference<Throwable> runnerFailure = new AtomicReference<>();
+
+    threads.add(Thread.currentThread());
+
+    for (int i = 0; i < RUNNER_COUNT; i++) {
+      JobRunner runner = new JobRunner(application, i, controller, JobPredicate.NONE);
+      runner.setDaemon(true);
+      runner.setUncaughtExceptionHandler((thread, e) -> {
+        if (!(e instanceof StopJob.StopException)) {
+          runnerFailure.set(e);
+        }
+      });
+      runner.start();
+      threads.add(runner);
+    }
+
+    try {
+      runScenarios(storageName, controller, factory, threads, results);
+    } finally {
+      for (int i = 0; i < RUNNER_COUNT; i++) {
+        controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(new StopJob())));
+      }
+
+      for (Thread thread : threads.subList(1, threads.size())) {
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+      }
+
+      timer.shutdown();
+    }
+
+    assertNull(runnerFailure.get());
+
+    // The runners log every job they run, so logging is only turned on once they've all finished.
+    Log.initialize(new SystemOutLogger());
+
+    for (String result : results) {
+      Log.i(TAG, result);
+    }
+  }
+
+  private static void runScenarios(@NonNull String storageName,
+                                   @NonNull JobController controller,
+                                   @NonNull BenchmarkJob.Factory factory,
+                                   @NonNull List<Thread> threads,
+                                   @NonNull List<String> results)
+      throws InterruptedException
+  {
+    for (Scenario scenario : SCENARIOS) {
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        runIteration(controller, factory, scenario, threads);
+      }
+
+      List<Measurement> measurements = new ArrayList<>(MEASURED_ITERATIONS);
+      for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+        measurements.add(runIteration(controller, factory, scenario, threads));
+      }
+
+      Collections.sort(measurements, (a, b) -> Double.compare(a.jobsPerSec, b.jobsPerSec));
+      Measurement median = measurements.get(measurements.size() / 2);
+
+      results.add(String.format(Locale.US,
+                                "%-17s | %-17s | %8.0f jobs/sec | start p50: %7.2f ms | p99: %7.2f ms | alloc: %7.1f MB/sec (%s B/job)",
+                                storageName,
+                                scenario.name,
+                                median.jobsPerSec,
+                                median.startP50Nanos / 1_000_000d,
+                                median.startP99Nanos / 1_000_000d,
+                                median.allocatedBytes >= 0 ? median.allocatedBytes / (1024d * 1024d) / median.elapsedSeconds : Double.NaN,
+                                median.allocatedBytes >= 0 ? String.valueOf(median.allocatedBytes / scenario.jobCount) : "n/a"));
+    }
+  }
+
+  private static @NonNull Measurement runIteration(@NonNull JobController controller,
+                                                   @NonNull BenchmarkJob.Factory factory,
+                                                   @NonNull Scenario scenario,
+                                                   @NonNull List<Thread> threads)
+      throws InterruptedException
+  {
+    Recorder recorder = new Recorder(scenario.jobCount);
+    factory.recorder = recorder;
+
+    long allocatedBefore = allocatedBytes(threads);
+    long start           = System.nanoTime();
+
+    for (int i = 0; i < scenario.jobCount; i += scenario.chainLength) {
+      List<List<Job>> chain = new ArrayList<>(scenario.chainLength);
+
+      for (int j = i; j < i + scenario.chainLength; j++) {
+        String queue = scenario.queueCount > 0 ? "queue-" + (j % scenario.queueCount) : null;
+        chain.add(Collections.singletonList(new BenchmarkJob(j, queue, scenario.retries, recorder)));
+      }
+
+      long submitTime = System.nanoTime();
+      for (int j = i; j < i + scenario.chainLength; j++) {
+        recorder.submitTimes[j] = submitTime;
+      }
+
+      controller.submitNewJobChain(chain);
+    }
+
+    assertTrue("Timed out running " + scenario.name, recorder.done.await(2, TimeUnit.MINUTES));
+
+    long elapsedNanos   = System.nanoTime() - start;
+    long allocatedAfter = allocatedBytes(threads);
+
+    assertEquals(scenario.jobCount * (scenario.retries + 1), recorder.runs.get());
+
+    long[] startLatencies = new long[scenario.jobCount];
+    for (int i = 0; i < scenario.jobCount; i++) {
+      startLatencies[i] = recorder.startTimes[i] - recorder.submitTimes[i];
+    }
+    Arrays.sort(startLatencies);
+
+    double elapsedSeconds = elapsedNanos / 1_000_000_000d;
+
+    return new Measurement(scenario.jobCount / elapsedSeconds,
+                           percentile(startLatencies, 0.50),
+                           percentile(startLatencies, 0.99),
+                           allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1,
+                           elapsedSeconds);
+  }
+
+  private static long percentile(@NonNull long[] sorted, double percentile) {
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+  }
+
+  /**
+   * Total bytes allocated by the provided threads so far, or -1 if the JVM can't tell us.
+   */
+  private static long allocatedBytes(@NonNull List<Thread> threads) {
+    java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+
+    long[] ids = new long[threads.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = threads.get(i).getId();
+    }
+
+    long total = 0;
+    for (long allocated : ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(ids)) {
+      if (allocated < 0) {
+        return -1;
+      }
+      total += allocated;
+    }
+
+    return total;
+  }
+
+  private static @NonNull JobDatabase stubDatabase() {
+    JobDatabase database = mock(JobDatabase.class, withSettings().stubOnly());
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+    return database;
+  }
+
+  private static final class Scenario {
+    private final String name;
+    private final int    jobCount;
+    private final int    queueCount;
+    private final int    chainLength;
+    private final int    retries;
+
+    /**
+     * @param queueCount  Jobs are spread round-robin over this many queues. 0 means no queue.
+     * @param chainLength Jobs are submitted in chains of this length, each depending on the last.
+     * @param retries     How many times each job asks to be retried before succeeding.
+     */
+    private Scenario(@NonNull String name, int jobCount, int queueCount, int chainLength, int retries) {
+      this.name        = name;
+      this.jobCount    = jobCount;
+      this.queueCount  = queueCount;
+      this.chainLength = chainLength;
+      this.retries     = retries;
+    }
+  }
+
+  private static final class Measurement {
+    private final double jobsPerSec;
+    private final long   startP50Nanos;
+    private final long   startP99Nanos;
+    private final long   allocatedBytes;
+    private final double elapsedSeconds;
+
+    private Measurement(double jobsPerSec, long startP50Nanos, long startP99Nanos, long allocatedBytes, double elapsedSeconds) {
+      this.jobsPerSec     = jobsPerSec;
+      this.startP50Nanos  = startP50Nanos;
+      this.startP99Nanos  = startP99Nanos;
+      this.allocatedBytes = allocatedBytes;
+      this.elapsedSeconds = elapsedSeconds;
+    }
+  }
+
+  private static final class Recorder {
+    private final long[]         submitTimes;
+    private final long[]         startTimes;
+    private final AtomicInteger  runs;
+    private final CountDownLatch done;
+
+    private Recorder(int jobCount) {
+      this.submitTimes = new long[jobCount];
+      this.startTimes  = new long[jobCount];
+      this.runs        = new AtomicInteger();
+      this.done        = new CountDownLatch(jobCount);
+    }
+  }
+
+  private static final class BenchmarkJob extends Job {
+
+    static final String KEY = "BenchmarkJob";
+
+    private static final String KEY_INDEX   = "index";
+    private static final String KEY_RETRIES = "retries";
+
+    private final int      index;
+    private final int      retries;
+    private final Recorder recorder;
+
+    BenchmarkJob(int index, String queue, int retries, @NonNull Recorder recorder) {
+      this(new Parameters.Builder()
+                         .setQueue(queue)
+                         .setMaxAttempts(retries + 1)
+                         .build(),
+           index,
+           retries,
+           recorder);
+    }
+
+    private BenchmarkJob(@NonNull Parameters parameters, int index, int retries, @NonNull Recorder recorder) {
+      super(parameters);
+      this.index    = index;
+      this.retries  = retries;
+      this.recorder = recorder;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return new Data.Builder().putInt(KEY_INDEX, index)
+                               .putInt(KEY_RETRIES, retries)
+                               .build();
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      if (getRunAttempt() == 0) {
+        recorder.startTimes[index] = System.nanoTime();
+      }
+
+      recorder.runs.incrementAndGet();
+
+      if (getRunAttempt() < retries) {
+        return Result.retry(1);
+      }
+
+      recorder.done.countDown();
+      return Result.success();
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    private static final class Factory implements Job.Factory<BenchmarkJob> {
+      private volatile Recorder recorder;
+
+      @Override
+      public @NonNull BenchmarkJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new BenchmarkJob(parameters, data.getInt(KEY_INDEX), data.getInt(KEY_RETRIES), recorder);
+      }
+    }
+  }
+
+  /**
+   * Ends the {@link JobRunner} that runs it, by failing with an exception that the runner rethrows.
+   * A runner can only run one, so submitting one per runner stops them all.
+   */
+  private static final class StopJob extends Job {
+
+    static final String KEY = "StopJob";
+
+    StopJob() {
+      this(new Parameters.Builder().build());
+    }
+
+    private StopJob(@NonNull Parameters parameters) {
+      super(parameters);
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      return Result.fatalFailure(new StopException());
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    private static final class StopException extends RuntimeException {
+    }
+
+    private static final class Factory implements Job.Factory<StopJob> {
+      @Override
+      public @NonNull StopJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new StopJob(parameters);
+      }
+    }
+  }
+}
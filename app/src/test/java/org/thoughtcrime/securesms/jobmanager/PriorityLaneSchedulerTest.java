@@ -0,0 +1,148 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+
+import com.annimon.stream.Stream;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.thoughtcrime.securesms.jobmanager.Job.Parameters.PRIORITY_DEFAULT;
+import static org.thoughtcrime.securesms.jobmanager.Job.Parameters.PRIORITY_HIGH;
+import static org.thoughtcrime.securesms.jobmanager.Job.Parameters.PRIORITY_LOW;
+
+public final class PriorityLaneSchedulerTest {
+
+  @Test
+  public void order_singleCandidate_returnedAsIs() {
+    PriorityLaneScheduler subject    = new PriorityLaneScheduler();
+    List<JobSpec>         candidates = Arrays.asList(jobSpec("a", PRIORITY_LOW));
+
+    assertEquals(candidates, subject.order(candidates));
+  }
+
+  @Test
+  public void order_preservesOrderWithinLane() {
+    PriorityLaneScheduler subject = new PriorityLaneScheduler();
+
+    List<JobSpec> ordered = subject.order(Arrays.asList(jobSpec("low1", PRIORITY_LOW),
+                                                        jobSpec("default1", PRIORITY_DEFAULT),
+                                                        jobSpec("high1", PRIORITY_HIGH),
+                                                        jobSpec("low2", PRIORITY_LOW),
+                                                        jobSpec("high2", PRIORITY_HIGH)));
+
+    assertEquals(Arrays.asList("high1", "high2", "default1", "low1", "low2"), Stream.of(ordered).map(JobSpec::getId).toList());
+  }
+
+  @Test
+  public void allLanesBacklogged_startsAreWeighted() {
+    PriorityLaneScheduler subject = new PriorityLaneScheduler();
+    int[]                 starts  = new int[3];
+
+    for (int i = 0; i < 1000; i++) {
+      int priority = pickAndStart(subject, PRIORITY_HIGH, PRIORITY_DEFAULT, PRIORITY_LOW);
+      starts[PRIORITY_HIGH - priority]++;
+    }
+
+    assertEquals(600, starts[0]);
+    assertEquals(300, starts[1]);
+    assertEquals(100, starts[2]);
+  }
+
+  @Test
+  public void allLanesBacklogged_highPriorityNeverWaitsMoreThanTwoDispatches() {
+    PriorityLaneScheduler subject       = new PriorityLaneScheduler();
+    int                   sinceLastHigh = 0;
+
+    for (int i = 0; i < 1000; i++) {
+      int priority = pickAndStart(subject, PRIORITY_HIGH, PRIORITY_DEFAULT, PRIORITY_LOW);
+
+      if (priority == PRIORITY_HIGH) {
+        sinceLastHigh = 0;
+      } else {
+        sinceLastHigh++;
+        assertTrue(sinceLastHigh <= 2);
+      }
+    }
+  }
+
+  @Test
+  public void highPriorityArrivesAfterLongBacklog_startedNext() {
+    PriorityLaneScheduler subject = new PriorityLaneScheduler();
+
+    for (int i = 0; i < 1000; i++) {
+      pickAndStart(subject, PRIORITY_LOW);
+    }
+
+    assertEquals(PRIORITY_HIGH, pickAndStart(subject, PRIORITY_HIGH, PRIORITY_DEFAULT, PRIORITY_LOW));
+  }
+
+  @Test
+  public void idleLane_doesNotBankCredit() {
+    PriorityLaneScheduler subject = new PriorityLaneScheduler();
+
+    for (int i = 0; i < 1000; i++) {
+      pickAndStart(subject, PRIORITY_DEFAULT);
+    }
+
+    int lowStarts = 0;
+    for (int i = 0; i < 40; i++) {
+      if (pickAndStart(subject, PRIORITY_DEFAULT, PRIORITY_LOW) == PRIORITY_LOW) {
+        lowStarts++;
+      }
+    }
+
+    assertEquals(10, lowStarts);
+  }
+
+  @Test
+  public void getDebugInfo_reportsPendingAndWaitTimes() {
+    PriorityLaneScheduler subject = new PriorityLaneScheduler();
+
+    subject.onJobStarted(PRIORITY_HIGH, 10);
+    subject.onJobStarted(PRIORITY_HIGH, 30);
+
+    String info = subject.getDebugInfo(Arrays.asList(jobSpec("a", PRIORITY_HIGH, 900, false),
+                                                     jobSpec("b", PRIORITY_HIGH, 950, false),
+                                                     jobSpec("c", PRIORITY_HIGH, 0, true),
+                                                     jobSpec("d", PRIORITY_LOW, 990, false)),
+                                       1000);
+
+    String[] lines = info.split("\n");
+
+    assertEquals("HIGH (weight 6) | pending: 2 | oldest pending: 100 ms | started: 2 | avg wait: 20 ms | max wait: 30 ms", lines[0]);
+    assertEquals("DEFAULT (weight 3) | pending: 0 | oldest pending: 0 ms | started: 0 | avg wait: 0 ms | max wait: 0 ms", lines[1]);
+    assertEquals("LOW (weight 1) | pending: 1 | oldest pending: 10 ms | started: 0 | avg wait: 0 ms | max wait: 0 ms", lines[2]);
+  }
+
+  /**
+   * Offers one ready job for each of the provided priorities, starts whichever comes first, and
+   * returns its priority.
+   */
+  private static int pickAndStart(@NonNull PriorityLaneScheduler subject, int... priorities) {
+    List<JobSpec> candidates = new ArrayList<>(priorities.length);
+    for (int priority : priorities) {
+      candidates.add(jobSpec("job", priority));
+    }
+
+    JobSpec picked = subject.order(candidates).get(0);
+
+    subject.onJobStarted(picked.getPriority(), 0);
+
+    return picked.getPriority();
+  }
+
+  private static @NonNull JobSpec jobSpec(@NonNull String id, int priority) {
+    return jobSpec(id, priority, 0, false);
+  }
+
+  private static @NonNull JobSpec jobSpec(@NonNull String id, int priority, long createTime, boolean isRunning) {
+    return new JobSpec(id, "factory", null, createTime, 0, 0, 1, Job.Parameters.IMMORTAL, "", null, isRunning, false, priority);
+  }
+}
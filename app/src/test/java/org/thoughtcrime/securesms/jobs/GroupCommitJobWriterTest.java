@@ -0,0 +1,215 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public final class GroupCommitJobWriterTest {
+
+  private JobDatabase   database;
+  private AtomicInteger transactions;
+  private List<String>  committed;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    database     = mock(JobDatabase.class);
+    transactions = new AtomicInteger();
+    committed    = Collections.synchronizedList(new ArrayList<>());
+
+    doAnswer(invocation -> {
+      transactions.incrementAndGet();
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+  }
+
+  @Test
+  public void flush_writesWithinWindow_committedInOneTransactionInOrder() throws IOException {
+    ExecutorService      executor = Executors.newSingleThreadExecutor();
+    GroupCommitJobWriter subject  = new GroupCommitJobWriter(database, executor, TimeUnit.SECONDS.toMillis(10), 100);
+
+    for (int i = 0; i < 10; i++) {
+      subject.submit(record("w" + i));
+    }
+
+    subject.flush();
+
+    assertEquals(1, transactions.get());
+    assertEquals(Arrays.asList("w0", "w1", "w2", "w3", "w4", "w5", "w6", "w7", "w8", "w9"), committed);
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void submit_reachingMaxBatchSize_commitsWithoutWaitingForDelay() throws InterruptedException {
+    ExecutorService      executor = Executors.newSingleThreadExecutor();
+    GroupCommitJobWriter subject  = new GroupCommitJobWriter(database, executor, TimeUnit.HOURS.toMillis(1), 5);
+    CountDownLatch       latch    = new CountDownLatch(1);
+
+    for (int i = 0; i < 4; i++) {
+      subject.submit(record("w" + i));
+    }
+    subject.submit(db -> {
+      committed.add("w4");
+      latch.countDown();
+    });
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(1, transactions.get());
+    assertEquals(5, committed.size());
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void flush_nothingSubmitted_returnsImmediately() throws IOException {
+    GroupCommitJobWriter subject = new GroupCommitJobWriter(database, Runnable::run, 0, 100);
+
+    subject.flush();
+
+    assertEquals(0, transactions.get());
+  }
+
+  @Test
+  public void crashBeforeCommit_databaseHoldsPrefixOfWrites() {
+    Queue<Runnable>      tasks   = new LinkedList<>();
+    GroupCommitJobWriter subject = new GroupCommitJobWriter(database, tasks::add, 0, 100);
+
+    subject.submit(record("insert"));
+    subject.submit(record("running"));
+    tasks.poll().run();
+
+    subject.submit(record("delete"));
+
+    // The process "dies" here, before the task holding the delete ever runs.
+    assertEquals(Arrays.asList("insert", "running"), committed);
+    assertEquals(1, transactions.get());
+    assertEquals(1, tasks.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void flush_afterFailedCommit_throws() throws IOException {
+    doThrow(new IllegalStateException("disk full")).when(database).runInTransaction(any());
+
+    GroupCommitJobWriter subject = new GroupCommitJobWriter(database, Runnable::run, 0, 100);
+
+    subject.submit(record("w0"));
+    subject.flush();
+  }
+
+  @Test
+  public void submit_afterFailedCommit_isStillCommitted() throws IOException {
+    Queue<Runnable>      tasks   = new LinkedList<>();
+    GroupCommitJobWriter subject = new GroupCommitJobWriter(database, tasks::add, 0, 100);
+
+    doThrow(new IllegalStateException("disk full")).when(database).runInTransaction(any());
+    subject.submit(record("w0"));
+    tasks.poll().run();
+
+    try {
+      subject.flush();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+
+    subject.submit(record("w1"));
+    assertEquals(1, tasks.size());
+    tasks.poll().run();
+
+    subject.flush();
+
+    assertEquals(Collections.singletonList("w1"), committed);
+  }
+
+  @Test
+  public void commit_returnsOnceCommitted_alongWithEarlierWrites() {
+    ExecutorService      executor = Executors.newSingleThreadExecutor();
+    GroupCommitJobWriter subject  = new GroupCommitJobWriter(database, executor, TimeUnit.HOURS.toMillis(1), 100);
+
+    subject.submit(record("w0"));
+    subject.commit(record("w1"));
+
+    assertEquals(Arrays.asList("w0", "w1"), committed);
+    assertEquals(1, transactions.get());
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void commit_failedGroup_throwsAndCountsFailure() {
+    doThrow(new IllegalStateException("disk full")).when(database).runInTransaction(any());
+
+    GroupCommitJobWriter subject = new GroupCommitJobWriter(database, Runnable::run, 0, 100);
+
+    try {
+      subject.commit(record("w0"));
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    assertEquals(1, subject.getFailureCount());
+  }
+
+  @Test
+  public void flush_interrupted_throws() throws InterruptedException {
+    Queue<Runnable>            tasks   = new LinkedList<>();
+    GroupCommitJobWriter       subject = new GroupCommitJobWriter(database, tasks::add, 0, 100);
+    AtomicReference<Throwable> thrown  = new AtomicReference<>();
+
+    subject.submit(record("w0"));
+
+    Thread flusher = new Thread(() -> {
+      try {
+        subject.flush();
+      } catch (IOException e) {
+        thrown.set(e);
+      }
+    });
+    flusher.start();
+    flusher.interrupt();
+    flusher.join(TimeUnit.SECONDS.toMillis(5));
+
+    assertTrue(thrown.get() instanceof InterruptedIOException);
+    assertTrue(committed.isEmpty());
+  }
+
+  private @NonNull GroupCommitJobWriter.Write record(@NonNull String name) {
+    return db -> committed.add(name);
+  }
+}
@@ -0,0 +1,330 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.annimon.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs random sequences of operations against both {@link IndexedJobStorage} and
+ * {@link FastJobStorage} and asserts that they are indistinguishable from the outside.
+ */
+public final class IndexedJobStorageTest {
+
+  private static final JsonDataSerializer serializer = new JsonDataSerializer();
+  private static final String             EMPTY_DATA = serializer.serialize(Data.EMPTY);
+
+  private static final List<String> QUEUES    = Arrays.asList(null, null, "q1", "q2", "q3", "q4", Job.Parameters.MIGRATION_QUEUE_KEY);
+  private static final List<String> FACTORIES = Arrays.asList("f1", "f2", "f3");
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void init_matchesFastJobStorage() {
+    for (long seed = 0; seed < 20; seed++) {
+      Random         random    = new Random(seed);
+      List<FullSpec> fullSpecs = new ArrayList<>();
+      Set<Long>      usedTimes = new HashSet<>();
+
+      for (int i = 0; i < 100; i++) {
+        fullSpecs.add(randomFullSpec(random, "id" + i, usedTimes, idsOf(fullSpecs)));
+      }
+
+      FastJobStorage    expected = new FastJobStorage(fixedDataDatabase(fullSpecs));
+      IndexedJobStorage actual   = new IndexedJobStorage(fixedDataDatabase(fullSpecs));
+
+      expected.init();
+      actual.init();
+
+      assertEquivalent(random, expected, actual, idsOf(fullSpecs));
+    }
+  }
+
+  @Test
+  public void randomOperations_matchFastJobStorage() {
+    for (long seed = 0; seed < 50; seed++) {
+      Random            random    = new Random(seed);
+      FastJobStorage    expected  = new FastJobStorage(noopDatabase());
+      IndexedJobStorage actual    = new IndexedJobStorage(noopDatabase());
+      List<String>      allIds    = new ArrayList<>();
+      Set<Long>         usedTimes = new HashSet<>();
+
+      expected.init();
+      actual.init();
+
+      for (int i = 0; i < 300; i++) {
+        List<String> liveIds = Stream.of(expected.getAllJobSpecs()).map(JobSpec::getId).toList();
+
+        switch (random.nextInt(7)) {
+          case 0:
+          case 1:
+            List<FullSpec> inserts = new ArrayList<>();
+            int            count   = 1 + random.nextInt(3);
+
+            for (int j = 0; j < count; j++) {
+              String id = "id" + allIds.size();
+              allIds.add(id);
+              inserts.add(randomFullSpec(random, id, usedTimes, liveIds));
+            }
+
+            expected.insertJobs(inserts);
+            actual.insertJobs(inserts);
+            break;
+          case 2:
+            String  runningId = randomId(random, allIds);
+            boolean isRunning = random.nextBoolean();
+
+            expected.updateJobRunningState(runningId, isRunning);
+            actual.updateJobRunningState(runningId, isRunning);
+            break;
+          case 3:
+            String retryId      = randomId(random, allIds);
+            int    retryAttempt = 1 + random.nextInt(3);
+            long   retryTime    = random.nextInt(1000);
+
+            expected.updateJobAfterRetry(retryId, false, retryAttempt, retryTime, EMPTY_DATA);
+            actual.updateJobAfterRetry(retryId, false, retryAttempt, retryTime, EMPTY_DATA);
+            break;
+          case 4:
+            if (random.nextInt(10) == 0) {
+              expected.updateAllJobsToBePending();
+              actual.updateAllJobsToBePending();
+            } else if (!liveIds.isEmpty()) {
+              List<JobSpec> updates = new ArrayList<>();
+              for (String id : randomSubset(random, liveIds)) {
+                updates.add(randomUpdate(random, expected.getJobSpec(id)));
+              }
+
+              expected.updateJobs(updates);
+              actual.updateJobs(updates);
+            }
+            break;
+          case 5:
+          case 6:
+            List<String> deletes = randomSubset(random, allIds);
+
+            expected.deleteJobs(deletes);
+            actual.deleteJobs(deletes);
+            break;
+        }
+
+        assertEquivalent(random, expected, actual, allIds);
+      }
+    }
+  }
+
+  @Test
+  public void failedGroupCommit_reloadsFromDatabase_keepingMemoryOnlyAndRunningJobs() {
+    JobDatabase          database = noopDatabase();
+    GroupCommitJobWriter writer   = new GroupCommitJobWriter(database, Runnable::run, 0, 100);
+    IndexedJobStorage    subject  = new IndexedJobStorage(database, writer);
+    FullSpec             durable  = fullSpec("durable", false);
+    FullSpec             running  = fullSpec("running", false);
+    FullSpec             memory   = fullSpec("memory", true);
+
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+
+    subject.init();
+    subject.insertJobs(Arrays.asList(durable, running, memory));
+    subject.updateJobRunningState("running", true);
+
+    doThrow(new IllegalStateException("disk full")).when(database).runInTransaction(any());
+    subject.deleteJobs(Collections.singletonList("durable"));
+
+    assertNull(subject.getJobSpec("durable"));
+
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+    when(database.getAllJobSpecs()).thenReturn(Arrays.asList(durable.getJobSpec(), running.getJobSpec()));
+
+    subject.insertJobs(Collections.singletonList(fullSpec("next", false)));
+
+    assertNotNull(subject.getJobSpec("durable"));
+    assertTrue(subject.getJobSpec("running").isRunning());
+    assertNotNull(subject.getJobSpec("memory"));
+    assertNotNull(subject.getJobSpec("next"));
+  }
+
+  private static void assertEquivalent(@NonNull Random random, @NonNull JobStorage expected, @NonNull JobStorage actual, @NonNull List<String> ids) {
+    assertEquals(expected.getAllJobSpecs(), actual.getAllJobSpecs());
+    assertEquals(new HashSet<>(expected.getAllConstraintSpecs()), new HashSet<>(actual.getAllConstraintSpecs()));
+    assertEquals(sorted(expected.getAllDependencySpecs()), sorted(actual.getAllDependencySpecs()));
+
+    for (String id : ids) {
+      assertEquals(expected.getJobSpec(id), actual.getJobSpec(id));
+      assertEquals(expected.getConstraintSpecs(id), actual.getConstraintSpecs(id));
+      assertEquals(sorted(expected.getDependencySpecsThatDependOnJob(id)), sorted(actual.getDependencySpecsThatDependOnJob(id)));
+    }
+
+    for (String queue : QUEUES) {
+      if (queue == null) continue;
+
+      assertEquals(expected.getJobsInQueue(queue), actual.getJobsInQueue(queue));
+      assertEquals(expected.areQueuesEmpty(Collections.singleton(queue)), actual.areQueuesEmpty(Collections.singleton(queue)));
+
+      for (String factory : FACTORIES) {
+        assertEquals(expected.getJobCountForFactoryAndQueue(factory, queue), actual.getJobCountForFactoryAndQueue(factory, queue));
+      }
+    }
+
+    for (String factory : FACTORIES) {
+      assertEquals(expected.getJobCountForFactory(factory), actual.getJobCountForFactory(factory));
+    }
+
+    for (int i = 0; i < 5; i++) {
+      long currentTime = random.nextInt(1200);
+      assertEquals(expected.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime), actual.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime));
+    }
+  }
+
+  /**
+   * Create times are unique so that the created-order results of both implementations are fully
+   * determined, rather than depending on how ties happen to be broken.
+   */
+  private static @NonNull FullSpec randomFullSpec(@NonNull Random random, @NonNull String id, @NonNull Set<Long> usedTimes, @NonNull List<String> existingIds) {
+    boolean memoryOnly = random.nextInt(4) == 0;
+    JobSpec jobSpec    = new JobSpec(id,
+                                     FACTORIES.get(random.nextInt(FACTORIES.size())),
+                                     randomQueue(random),
+                                     uniqueTime(random, usedTimes),
+                                     random.nextInt(1000),
+                                     0,
+                                     3,
+                                     Job.Parameters.IMMORTAL,
+                                     EMPTY_DATA,
+                                     null,
+                                     random.nextInt(5) == 0,
+                                     memoryOnly);
+
+    List<ConstraintSpec> constraintSpecs = new ArrayList<>();
+    if (random.nextBoolean()) {
+      constraintSpecs.add(new ConstraintSpec(id, "c" + random.nextInt(3), memoryOnly));
+    }
+
+    List<DependencySpec> dependencySpecs = new ArrayList<>();
+    if (!existingIds.isEmpty() && random.nextInt(3) == 0) {
+      for (String dependsOn : randomSubset(random, existingIds)) {
+        dependencySpecs.add(new DependencySpec(id, dependsOn, memoryOnly));
+      }
+    }
+
+    return new FullSpec(jobSpec, constraintSpecs, dependencySpecs);
+  }
+
+  private static @NonNull FullSpec fullSpec(@NonNull String id, boolean memoryOnly) {
+    return new FullSpec(new JobSpec(id, FACTORIES.get(0), null, 1, 1, 0, 3, Job.Parameters.IMMORTAL, EMPTY_DATA, null, false, memoryOnly),
+                        Collections.emptyList(),
+                        Collections.emptyList());
+  }
+
+  private static @NonNull JobSpec randomUpdate(@NonNull Random random, @NonNull JobSpec existing) {
+    return new JobSpec(existing.getId(),
+                       existing.getFactoryKey(),
+                       existing.getQueueKey(),
+                       existing.getCreateTime(),
+                       random.nextInt(1000),
+                       existing.getRunAttempt() + 1,
+                       existing.getMaxAttempts(),
+                       existing.getLifespan(),
+                       existing.getSerializedData(),
+                       random.nextBoolean() ? EMPTY_DATA : null,
+                       random.nextInt(4) == 0,
+                       existing.isMemoryOnly());
+  }
+
+  private static @Nullable String randomQueue(@NonNull Random random) {
+    return QUEUES.get(random.nextInt(QUEUES.size() - 1) + (random.nextInt(20) == 0 ? 1 : 0));
+  }
+
+  private static long uniqueTime(@NonNull Random random, @NonNull Set<Long> usedTimes) {
+    long time;
+    do {
+      time = random.nextInt(1_000_000);
+    } while (!usedTimes.add(time));
+    return time;
+  }
+
+  private static @NonNull String randomId(@NonNull Random random, @NonNull List<String> ids) {
+    return ids.isEmpty() ? "does-not-exist" : ids.get(random.nextInt(ids.size()));
+  }
+
+  private static @NonNull List<String> randomSubset(@NonNull Random random, @NonNull List<String> ids) {
+    List<String> subset = new ArrayList<>();
+    for (String id : ids) {
+      if (random.nextInt(Math.max(1, ids.size() / 2)) == 0) {
+        subset.add(id);
+      }
+    }
+    return subset;
+  }
+
+  private static @NonNull List<String> idsOf(@NonNull List<FullSpec> fullSpecs) {
+    return Stream.of(fullSpecs).map(f -> f.getJobSpec().getId()).toList();
+  }
+
+  private static @NonNull List<String> sorted(@NonNull List<DependencySpec> dependencySpecs) {
+    List<String> strings = Stream.of(dependencySpecs).map(DependencySpec::toString).toList();
+    Collections.sort(strings);
+    return strings;
+  }
+
+  private static @NonNull JobDatabase noopDatabase() {
+    JobDatabase database = mock(JobDatabase.class);
+
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    return database;
+  }
+
+  private static @NonNull JobDatabase fixedDataDatabase(@NonNull List<FullSpec> fullSpecs) {
+    JobDatabase database = mock(JobDatabase.class);
+
+    when(database.getAllJobSpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getJobSpec).toList());
+    when(database.getAllConstraintSpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getConstraintSpecs).flatMap(Stream::of).toList());
+    when(database.getAllDependencySpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getDependencySpecs).flatMap(Stream::of).toList());
+
+    return database;
+  }
+}
@@ -0,0 +1,218 @@
+package org.thoughtcrime.securesms.logging;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.signal.core.util.logging.PersistentLogger;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the two {@link PersistentLogger} modes by having several threads log as fast as they
+ * can. For each mode this reports how many lines/sec the logging threads got through, how many
+ * lines/sec made it to disk, how much the logging threads and the writer thread allocated per
+ * line, and how many lines were dropped. Logging in a tight loop outpaces the writer, so expect the
+ * ring buffer to drop lines here.
+ *
+ * Every run is preceded by {@link #WARMUP_ITERATIONS} unmeasured ones, and the numbers are the
+ * median of {@link #MEASURED_ITERATIONS} runs. Absolute numbers depend heavily on the machine, so
+ * compare against a baseline taken on the same one. Ignored by default, remove the annotation to run
+ * it.
+ */
+@Ignore("Benchmark")
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class PersistentLoggerBenchmark {
+
+  private static final String TAG     = Log.tag(PersistentLoggerBenchmark.class);
+  private static final String MESSAGE = "Processed an envelope from the websocket in a reasonably typical number of milliseconds.";
+  private static final byte[] SECRET  = new byte[32];
+
+  private static final int PRODUCER_COUNT      = 4;
+  private static final int LINES_PER_PRODUCER  = 5_000;
+  private static final int WARMUP_ITERATIONS   = 2;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  private Application application;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+    application = ApplicationProvider.getApplicationContext();
+  }
+
+  @Test
+  public void executor() throws InterruptedException {
+    run(PersistentLogger.Mode.EXECUTOR);
+  }
+
+  @Test
+  public void ringBuffer() throws InterruptedException {
+    run(PersistentLogger.Mode.RING_BUFFER);
+  }
+
+  private void run(@NonNull PersistentLogger.Mode mode) throws InterruptedException {
+    Set<Long>        threadsBefore = getThreadIds();
+    PersistentLogger logger        = new PersistentLogger(application, SECRET, "benchmark", mode);
+
+    logger.blockUntilAllWritesFinished();
+
+    Thread writerThread = findNewWriterThread(threadsBefore);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      runIteration(logger, writerThread);
+    }
+
+    List<Measurement> measurements = new ArrayList<>(MEASURED_ITERATIONS);
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      measurements.add(runIteration(logger, writerThread));
+    }
+
+    Collections.sort(measurements, (a, b) -> Double.compare(a.writtenLinesPerSec, b.writtenLinesPerSec));
+    Measurement median = measurements.get(measurements.size() / 2);
+
+    Log.i(TAG, String.format(Locale.US,
+                             "%-11s | caller: %9.0f lines/sec | written: %8.0f lines/sec | caller alloc: %6.1f B/line | writer alloc: %7.1f B/line | dropped: %d",
+                             mode,
+                             median.callerLinesPerSec,
+                             median.writtenLinesPerSec,
+                             median.callerAllocatedBytes >= 0 ? median.callerAllocatedBytes / (double) totalLines() : Double.NaN,
+                             median.writerAllocatedBytes >= 0 ? median.writerAllocatedBytes / (double) totalLines() : Double.NaN,
+                             median.droppedLines));
+
+    if (mode == PersistentLogger.Mode.EXECUTOR) {
+      assertEquals(0, logger.getDroppedLineCount());
+    }
+  }
+
+  private static @NonNull Measurement runIteration(@NonNull PersistentLogger logger, @NonNull Thread writerThread) throws InterruptedException {
+    CountDownLatch start           = new CountDownLatch(1);
+    CountDownLatch done            = new CountDownLatch(PRODUCER_COUNT);
+    long[]         callerAllocated = new long[PRODUCER_COUNT];
+    List<Thread>   producers       = new ArrayList<>(PRODUCER_COUNT);
+
+    for (int i = 0; i < PRODUCER_COUNT; i++) {
+      int index = i;
+
+      Thread producer = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        long before = allocatedBytes(Thread.currentThread());
+
+        for (int j = 0; j < LINES_PER_PRODUCER; j++) {
+          logger.i(TAG, MESSAGE, null);
+        }
+
+        long after = allocatedBytes(Thread.currentThread());
+
+        callerAllocated[index] = before >= 0 && after >= 0 ? after - before : -1;
+        done.countDown();
+      });
+
+      producer.start();
+      producers.add(producer);
+    }
+
+    long droppedBefore   = logger.getDroppedLineCount();
+    long writerAllocated = allocatedBytes(writerThread);
+    long startTime       = System.nanoTime();
+
+    start.countDown();
+    done.await();
+
+    long callerElapsed = System.nanoTime() - startTime;
+
+    logger.blockUntilAllWritesFinished();
+
+    long writtenElapsed       = System.nanoTime() - startTime;
+    long writerAllocatedAfter = allocatedBytes(writerThread);
+
+    long totalCallerAllocated = 0;
+    for (int i = 0; i < PRODUCER_COUNT; i++) {
+      producers.get(i).join();
+      totalCallerAllocated = totalCallerAllocated >= 0 && callerAllocated[i] >= 0 ? totalCallerAllocated + callerAllocated[i] : -1;
+    }
+
+    long droppedLines = logger.getDroppedLineCount() - droppedBefore;
+
+    return new Measurement(totalLines() / (callerElapsed / 1_000_000_000d),
+                           (totalLines() - droppedLines) / (writtenElapsed / 1_000_000_000d),
+                           totalCallerAllocated,
+                           writerAllocated >= 0 && writerAllocatedAfter >= 0 ? writerAllocatedAfter - writerAllocated : -1,
+                           droppedLines);
+  }
+
+  private static int totalLines() {
+    return PRODUCER_COUNT * LINES_PER_PRODUCER;
+  }
+
+  private static @NonNull Set<Long> getThreadIds() {
+    Set<Long> ids = new HashSet<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      ids.add(thread.getId());
+    }
+    return ids;
+  }
+
+  private static @NonNull Thread findNewWriterThread(@NonNull Set<Long> threadsBefore) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("signal-PersistentLogger".equals(thread.getName()) && !threadsBefore.contains(thread.getId())) {
+        return thread;
+      }
+    }
+
+    throw new AssertionError("Couldn't find the writer thread.");
+  }
+
+  /**
+   * Total bytes allocated by the provided thread so far, or -1 if the JVM can't tell us.
+   */
+  private static long allocatedBytes(@NonNull Thread thread) {
+    java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+
+    return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(thread.getId());
+  }
+
+  private static final class Measurement {
+    private final double callerLinesPerSec;
+    private final double writtenLinesPerSec;
+    private final long   callerAllocatedBytes;
+    private final long   writerAllocatedBytes;
+    private final long   droppedLines;
+
+    private Measurement(double callerLinesPerSec, double writtenLinesPerSec, long callerAllocatedBytes, long writerAllocatedBytes, long droppedLines) {
+      this.callerLinesPerSec    = callerLinesPerSec;
+      this.writtenLinesPerSec   = writtenLinesPerSec;
+      this.callerAllocatedBytes = callerAllocatedBytes;
+      this.writerAllocatedBytes = writerAllocatedBytes;
+      this.droppedLines         = droppedLines;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package org.thoughtcrime.securesms.messages;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.SystemOutLogger;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a backlog of synthetic envelopes, like catching up after being offline, through
+ * {@link IncomingMessagePipeline}. Logs messages per second for a range of decrypt thread
+ * counts, against handling one envelope at a time. Ignored by default, remove the annotation to run
+ * it.
+ * <p>
+ * Each sender has its own symmetric ratchet, so an envelope only decrypts if everything before it
+ * from the same sender already has. Some envelopes are sealed, and have to be unsealed with a
+ * shared key before their sender is known. Decryption also waits a little for the session to be
+ * read, and each persisted batch waits for a transaction to commit, like SQLCipher would.
+ * <p>
+ * CPU-bound work only scales as far as the machine has cores, so compare against a baseline
+ * taken on the same one.
+ */
+@Ignore("Benchmark")
+public final class IncomingMessagePipelineBenchmark {
+
+  private static final String TAG = Log.tag(IncomingMessagePipelineBenchmark.class);
+
+  private static final int   SENDERS             = 16;
+  private static final int   MESSAGES_PER_SENDER = 100;
+  private static final int   SEALED_PERCENT      = 10;
+  private static final int   PAYLOAD_SIZE        = 2048;
+  private static final long  SESSION_READ_NANOS  = TimeUnit.MICROSECONDS.toNanos(300);
+  private static final long  TRANSACTION_MILLIS  = 2;
+  private static final int   MAX_BATCH_SIZE      = 100;
+  private static final int[] THREAD_COUNTS       = { 1, 2, 4, 8 };
+
+  private static final byte[] SEALING_KEY = new byte[32];
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    Log.i(TAG, String.format(Locale.US, "%d senders x %d messages, %d%% sealed, %d cores",
+                             SENDERS, MESSAGES_PER_SENDER, SEALED_PERCENT, Runtime.getRuntime().availableProcessors()));
+
+    run("One at a time", 1, 1);
+
+    for (int threads : THREAD_COUNTS) {
+      run("Pipelined, " + threads + " threads", threads, MAX_BATCH_SIZE);
+    }
+  }
+
+  private static void run(@NonNull String name, int threads, int maxBatchSize) throws Exception {
+    Backlog         backlog         = new Backlog(new Random(42));
+    ExecutorService decryptExecutor = Executors.newFixedThreadPool(threads);
+    ExecutorService persistExecutor = Executors.newSingleThreadExecutor();
+    ExecutorService notifyExecutor  = Executors.newSingleThreadExecutor();
+    Stages          stages          = new Stages(backlog);
+
+    IncomingMessagePipeline<Envelope, byte[]> pipeline = new IncomingMessagePipeline<>(stages, decryptExecutor, threads, persistExecutor, notifyExecutor, maxBatchSize, 500);
+
+    long start = System.nanoTime();
+    long elapsed;
+
+    try {
+      for (Envelope envelope : backlog.envelopes) {
+        pipeline.submit(envelope);
+      }
+      pipeline.flush();
+
+      elapsed = System.nanoTime() - start;
+    } finally {
+      decryptExecutor.shutdown();
+      persistExecutor.shutdown();
+      notifyExecutor.shutdown();
+    }
+
+    assertEquals(backlog.envelopes.size(), stages.persisted);
+
+    Log.i(TAG, String.format(Locale.US, "%-22s %8.0f msg/s, %4d batches", name, stages.persisted * 1e9 / elapsed, stages.batches));
+  }
+
+  private static final class Stages implements IncomingMessagePipeline.Stages<Envelope, byte[]> {
+
+    private final Backlog backlog;
+
+    private int persisted;
+    private int batches;
+
+    private Stages(@NonNull Backlog backlog) {
+      this.backlog = backlog;
+    }
+
+    @Override
+    public @Nullable Object getOrderingKey(@NonNull Envelope envelope) {
+      return envelope.sealed ? null : envelope.sender;
+    }
+
+    @Override
+    public @NonNull byte[] decrypt(@NonNull Envelope envelope) {
+      try {
+        byte[] ciphertext = envelope.ciphertext;
+        int    sender     = envelope.sender;
+
+        if (envelope.sealed) {
+          byte[] unsealed = aes(Cipher.DECRYPT_MODE, SEALING_KEY, ciphertext);
+          sender     = unsealed[0];
+          ciphertext = Arrays.copyOfRange(unsealed, 1, unsealed.length);
+        }
+
+        LockSupport.parkNanos(SESSION_READ_NANOS);
+
+        return backlog.receivingChains[sender].decrypt(ciphertext);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Out of order or corrupt envelope!", e);
+      }
+    }
+
+    @Override
+    public void persist(@NonNull List<byte[]> batch) {
+      try {
+        Thread.sleep(TRANSACTION_MILLIS);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+
+      persisted += batch.size();
+      batches++;
+    }
+
+    @Override
+    public void notify(@NonNull List<byte[]> batch) {
+    }
+  }
+
+  /**
+   * Envelopes from every sender, interleaved the way they'd arrive, along with the receiving side
+   * of each sender's chain.
+   */
+  private static final class Backlog {
+    private final List<Envelope> envelopes       = new ArrayList<>();
+    private final Chain[]        receivingChains = new Chain[SENDERS];
+
+    private Backlog(@NonNull Random random) throws GeneralSecurityException {
+      Chain[]               sendingChains = new Chain[SENDERS];
+      Map<Integer, Integer> sent          = new HashMap<>();
+
+      for (int i = 0; i < SENDERS; i++) {
+        byte[] chainKey = new byte[32];
+        random.nextBytes(chainKey);
+
+        sendingChains[i]   = new Chain(chainKey);
+        receivingChains[i] = new Chain(chainKey);
+      }
+
+      while (envelopes.size() < SENDERS * MESSAGES_PER_SENDER) {
+        int sender = random.nextInt(SENDERS);
+        int count  = sent.containsKey(sender) ? sent.get(sender) : 0;
+
+        if (count == MESSAGES_PER_SENDER) continue;
+        sent.put(sender, count + 1);
+
+        byte[] plaintext = new byte[PAYLOAD_SIZE];
+        random.nextBytes(plaintext);
+
+        byte[]  ciphertext = sendingChains[sender].encrypt(plaintext);
+        boolean sealed     = random.nextInt(100) < SEALED_PERCENT;
+
+        if (sealed) {
+          byte[] inner = new byte[ciphertext.length + 1];
+          inner[0] = (byte) sender;
+          System.arraycopy(ciphertext, 0, inner, 1, ciphertext.length);
+          ciphertext = aes(Cipher.ENCRYPT_MODE, SEALING_KEY, inner);
+        }
+
+        envelopes.add(new Envelope(sender, sealed, ciphertext));
+      }
+    }
+  }
+
+  private static final class Envelope {
+    private final int     sender;
+    private final boolean sealed;
+    private final byte[]  ciphertext;
+
+    private Envelope(int sender, boolean sealed, @NonNull byte[] ciphertext) {
+      this.sender     = sender;
+      this.sealed     = sealed;
+      this.ciphertext = ciphertext;
+    }
+  }
+
+  /**
+   * A symmetric ratchet. Every message is encrypted with a key derived from the current chain key,
+   * which then moves forward, so messages have to be decrypted in the order they were encrypted.
+   */
+  private static final class Chain {
+    private byte[] chainKey;
+
+    private Chain(@NonNull byte[] chainKey) {
+      this.chainKey = chainKey;
+    }
+
+    @NonNull byte[] encrypt(@NonNull byte[] plaintext) throws GeneralSecurityException {
+      return aes(Cipher.ENCRYPT_MODE, step(), plaintext);
+    }
+
+    @NonNull byte[] decrypt(@NonNull byte[] ciphertext) throws GeneralSecurityException {
+      return aes(Cipher.DECRYPT_MODE, step(), ciphertext);
+    }
+
+    private @NonNull byte[] step() throws GeneralSecurityException {
+      byte[] messageKey = hmac(chainKey, (byte) 1);
+      chainKey = hmac(chainKey, (byte) 2);
+      return messageKey;
+    }
+
+    private static @NonNull byte[] hmac(@NonNull byte[] key, byte input) throws GeneralSecurityException {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(new byte[] { input });
+    }
+  }
+
+  private static @NonNull byte[] aes(int mode, @NonNull byte[] key, @NonNull byte[] input) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, new byte[12]));
+    return cipher.doFinal(input);
+  }
+}
@@ -0,0 +1,470 @@
+package org.thoughtcrime.securesms.messages;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class IncomingMessagePipelineTest {
+
+  private ExecutorService decryptExecutor;
+  private ExecutorService persistExecutor;
+  private ExecutorService notifyExecutor;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    decryptExecutor = Executors.newFixedThreadPool(4);
+    persistExecutor = Executors.newSingleThreadExecutor();
+    notifyExecutor  = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    decryptExecutor.shutdownNow();
+    persistExecutor.shutdownNow();
+    notifyExecutor.shutdownNow();
+  }
+
+  @Test
+  public void persist_isInSubmissionOrder_evenWhenDecryptionFinishesOutOfOrder() throws Exception {
+    TestStages stages = new TestStages();
+    stages.randomDelays = true;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 4, 10);
+    List<Envelope>                              sent     = submitRoundRobin(pipeline, 5, 40);
+
+    pipeline.flush();
+
+    assertEquals(sent, stages.persisted);
+    assertEquals(sent, stages.notified);
+  }
+
+  @Test
+  public void decrypt_sameSender_isSerialAndInOrder() throws Exception {
+    TestStages stages = new TestStages();
+    stages.randomDelays = true;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 4, 10);
+
+    submitRoundRobin(pipeline, 3, 30);
+    pipeline.flush();
+
+    assertEquals(0, stages.sameKeyOverlaps.get());
+
+    Map<Object, Integer> lastBySender = new HashMap<>();
+    for (Envelope envelope : stages.decryptOrder) {
+      Integer last = lastBySender.put(envelope.sender, envelope.id);
+      assertTrue(last == null || last < envelope.id);
+    }
+  }
+
+  @Test
+  public void decrypt_differentSenders_runInParallel() throws Exception {
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    AtomicInteger  overlapped  = new AtomicInteger();
+    TestStages     stages      = new TestStages() {
+      @Override
+      public Envelope decrypt(@NonNull Envelope envelope) {
+        bothStarted.countDown();
+        try {
+          if (bothStarted.await(5, TimeUnit.SECONDS)) {
+            overlapped.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return super.decrypt(envelope);
+      }
+    };
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 2, 10);
+
+    pipeline.submit(new Envelope(0, "alice"));
+    pipeline.submit(new Envelope(1, "bob"));
+    pipeline.flush();
+
+    assertEquals(2, overlapped.get());
+    assertEquals(2, stages.persisted.size());
+  }
+
+  @Test
+  public void decrypt_envelopeWithoutKey_runsAlone() throws Exception {
+    TestStages stages = new TestStages();
+    stages.randomDelays = true;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 4, 10);
+    List<Envelope>                              sent     = new ArrayList<>();
+
+    for (int i = 0; i < 40; i++) {
+      Envelope envelope = new Envelope(i, i % 4 == 0 ? null : "sender" + (i % 3));
+      sent.add(envelope);
+      pipeline.submit(envelope);
+    }
+
+    pipeline.flush();
+
+    assertEquals(0, stages.barrierOverlaps.get());
+    assertEquals(sent, stages.persisted);
+
+    int position = 0;
+    for (Envelope envelope : stages.decryptOrder) {
+      if (envelope.sender == null) {
+        assertEquals(envelope.id, position);
+      }
+      position++;
+    }
+  }
+
+  @Test
+  public void persist_batchesWhatHasFinishedDecrypting() throws Exception {
+    TestStages stages = new TestStages();
+    stages.persistDelayMs = 20;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 4, 8);
+
+    submitRoundRobin(pipeline, 4, 50);
+    pipeline.flush();
+
+    assertEquals(50, stages.persisted.size());
+    assertTrue(stages.batchSizes.size() < 50);
+    for (int size : stages.batchSizes) {
+      assertTrue(size <= 8);
+    }
+  }
+
+  @Test
+  public void decrypt_failure_persistsTheRestAndIsReportedByFlush() throws Exception {
+    TestStages stages = new TestStages();
+    stages.failingId = 3;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 4, 10);
+    List<Envelope>                              sent     = submitRoundRobin(pipeline, 2, 6);
+
+    IncomingMessagePipeline.FlushResult<Envelope> result = pipeline.flush();
+
+    assertFalse(result.isSuccess());
+    assertEquals(Collections.singletonList(sent.get(3)), result.getUnpersisted());
+    assertEquals("Bad envelope", result.getDecryptFailure().getMessage());
+    assertNull(result.getPersistFailure());
+
+    List<Envelope> expected = new ArrayList<>(sent);
+    expected.remove(3);
+
+    assertEquals(expected, stages.persisted);
+    assertTrue(pipeline.flush().isSuccess());
+  }
+
+  @Test
+  public void flush_afterPersistFailure_reportsItOnce() throws Exception {
+    IOException failure = new IOException("disk full");
+    TestStages  stages  = new TestStages() {
+      @Override
+      public void persist(@NonNull List<Envelope> batch) throws IOException {
+        if (batch.get(0).id == 0) throw failure;
+        super.persist(batch);
+      }
+    };
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 1, 1);
+    Envelope                                    first    = new Envelope(0, "alice");
+
+    pipeline.submit(first);
+
+    IncomingMessagePipeline.FlushResult<Envelope> result = pipeline.flush();
+
+    assertSame(failure, result.getPersistFailure());
+    assertEquals(Collections.singletonList(first), result.getUnpersisted());
+
+    pipeline.submit(new Envelope(1, "alice"));
+
+    assertTrue(pipeline.flush().isSuccess());
+    assertEquals(1, stages.persisted.size());
+    assertEquals(1, stages.persisted.get(0).id);
+  }
+
+  @Test
+  public void flush_afterPersistFailure_onlyReportsTheFailedBatch() throws Exception {
+    List<Envelope> failed = new ArrayList<>();
+    TestStages     stages = new TestStages() {
+      @Override
+      public void persist(@NonNull List<Envelope> batch) throws IOException {
+        for (Envelope envelope : batch) {
+          if (envelope.id == 2) {
+            failed.addAll(batch);
+            throw new IOException("disk full");
+          }
+        }
+        super.persist(batch);
+      }
+    };
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 1, 2);
+    List<Envelope>                              sent     = submitRoundRobin(pipeline, 1, 6);
+
+    IncomingMessagePipeline.FlushResult<Envelope> result = pipeline.flush();
+
+    assertEquals(failed, result.getUnpersisted());
+    assertFalse(failed.isEmpty());
+
+    List<Envelope> expected = new ArrayList<>(sent);
+    expected.removeAll(failed);
+
+    assertEquals(expected, stages.persisted);
+  }
+
+  @Test
+  public void flush_afterPersistFailure_reportsBothFailures() throws Exception {
+    TestStages stages = new TestStages() {
+      @Override
+      public void persist(@NonNull List<Envelope> batch) {
+        throw new IllegalStateException("disk full");
+      }
+    };
+    stages.failingId = 1;
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 1, 10);
+    List<Envelope>                              sent     = submitRoundRobin(pipeline, 1, 3);
+
+    IncomingMessagePipeline.FlushResult<Envelope> result = pipeline.flush();
+
+    assertEquals(sent, result.getUnpersisted());
+    assertEquals("disk full", result.getPersistFailure().getCause().getMessage());
+    assertEquals("Bad envelope", result.getDecryptFailure().getMessage());
+  }
+
+  @Test
+  public void flush_interrupted_throws() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    TestStages     stages  = new TestStages() {
+      @Override
+      public void persist(@NonNull List<Envelope> batch) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        super.persist(batch);
+      }
+    };
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 1, 10);
+
+    pipeline.submit(new Envelope(0, "alice"));
+    Thread.currentThread().interrupt();
+
+    try {
+      pipeline.flush();
+      fail();
+    } catch (InterruptedIOException e) {
+      assertTrue(Thread.interrupted());
+    }
+
+    release.countDown();
+    pipeline.flush();
+
+    assertEquals(1, stages.persisted.size());
+  }
+
+  @Test
+  public void submit_blocksWhileFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    TestStages     stages  = new TestStages() {
+      @Override
+      public void persist(@NonNull List<Envelope> batch) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        super.persist(batch);
+      }
+    };
+
+    IncomingMessagePipeline<Envelope, Envelope> pipeline  = new IncomingMessagePipeline<>(stages, decryptExecutor, 4, persistExecutor, notifyExecutor, 10, 2);
+    CountDownLatch                              submitted = new CountDownLatch(1);
+
+    pipeline.submit(new Envelope(0, "alice"));
+    pipeline.submit(new Envelope(1, "bob"));
+
+    Thread submitter = new Thread(() -> {
+      pipeline.submit(new Envelope(2, "carol"));
+      submitted.countDown();
+    });
+    submitter.start();
+
+    assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(2, pipeline.getInFlightCount());
+
+    release.countDown();
+
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    pipeline.flush();
+
+    assertEquals(3, stages.persisted.size());
+  }
+
+  @Test
+  public void debugInfo_reportsEveryStage() throws Exception {
+    TestStages                                  stages   = new TestStages();
+    IncomingMessagePipeline<Envelope, Envelope> pipeline = pipeline(stages, 2, 10);
+
+    submitRoundRobin(pipeline, 2, 10);
+    pipeline.flush();
+
+    String info = pipeline.getDebugInfo();
+
+    assertTrue(info, info.contains("Queued: 0 waiting, 0 decrypting, 0 awaiting persist, 0 awaiting notify"));
+    assertTrue(info, info.contains("Envelopes: 10 submitted, 10 decrypted, 0 failed"));
+    assertTrue(info, info.contains("Decrypt: "));
+    assertTrue(info, info.contains("Persist: "));
+    assertTrue(info, info.contains("Notify: "));
+  }
+
+  private @NonNull IncomingMessagePipeline<Envelope, Envelope> pipeline(@NonNull TestStages stages, int parallelism, int maxBatchSize) {
+    return new IncomingMessagePipeline<>(stages, decryptExecutor, parallelism, persistExecutor, notifyExecutor, maxBatchSize, 1000);
+  }
+
+  private static @NonNull List<Envelope> submitRoundRobin(@NonNull IncomingMessagePipeline<Envelope, Envelope> pipeline, int senders, int count) {
+    List<Envelope> sent = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      Envelope envelope = new Envelope(i, "sender" + (i % senders));
+      sent.add(envelope);
+      pipeline.submit(envelope);
+    }
+
+    return sent;
+  }
+
+  private static final class Envelope {
+    private final int    id;
+    private final String sender;
+
+    private Envelope(int id, @Nullable String sender) {
+      this.id     = id;
+      this.sender = sender;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return id + "/" + sender;
+    }
+  }
+
+  private static class TestStages implements IncomingMessagePipeline.Stages<Envelope, Envelope> {
+
+    final List<Envelope> decryptOrder = Collections.synchronizedList(new ArrayList<>());
+    final List<Envelope> persisted    = new ArrayList<>();
+    final List<Envelope> notified     = new ArrayList<>();
+    final List<Integer>  batchSizes   = new ArrayList<>();
+
+    final AtomicInteger sameKeyOverlaps = new AtomicInteger();
+    final AtomicInteger barrierOverlaps = new AtomicInteger();
+
+    private final Map<Object, Integer> activeByKey = new HashMap<>();
+    private final Random               random      = new Random(42);
+
+    private int     active;
+    private boolean barrierActive;
+
+    boolean randomDelays;
+    long    persistDelayMs;
+    int     failingId = -1;
+
+    @Override
+    public @Nullable Object getOrderingKey(@NonNull Envelope envelope) {
+      return envelope.sender;
+    }
+
+    @Override
+    public Envelope decrypt(@NonNull Envelope envelope) {
+      int delay;
+
+      synchronized (this) {
+        if (envelope.sender != null) {
+          int count = activeByKey.containsKey(envelope.sender) ? activeByKey.get(envelope.sender) : 0;
+          if (count > 0) sameKeyOverlaps.incrementAndGet();
+          activeByKey.put(envelope.sender, count + 1);
+        } else if (active > 0) {
+          barrierOverlaps.incrementAndGet();
+        }
+
+        if (active > 0 && barrierActive) {
+          barrierOverlaps.incrementAndGet();
+        }
+
+        active++;
+        barrierActive |= envelope.sender == null;
+        delay = randomDelays ? random.nextInt(5) : 0;
+      }
+
+      decryptOrder.add(envelope);
+      sleep(delay);
+
+      synchronized (this) {
+        active--;
+        if (envelope.sender != null) {
+          activeByKey.put(envelope.sender, activeByKey.get(envelope.sender) - 1);
+        } else {
+          barrierActive = false;
+        }
+      }
+
+      if (envelope.id == failingId) {
+        throw new IllegalStateException("Bad envelope");
+      }
+
+      return envelope;
+    }
+
+    @Override
+    public void persist(@NonNull List<Envelope> batch) throws IOException {
+      sleep(persistDelayMs);
+      persisted.addAll(batch);
+      batchSizes.add(batch.size());
+    }
+
+    @Override
+    public void notify(@NonNull List<Envelope> batch) {
+      notified.addAll(batch);
+    }
+
+    private static void sleep(long millis) {
+      if (millis <= 0) return;
+
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ShardedLRUCacheTest {
+
+  @Test
+  public void putIfAbsent_returnsExistingValue() {
+    ShardedLRUCache<String, String> cache = new ShardedLRUCache<>(10);
+
+    assertNull(cache.putIfAbsent("a", "1"));
+    assertEquals("1", cache.putIfAbsent("a", "2"));
+    assertEquals("1", cache.get("a"));
+  }
+
+  @Test
+  public void put_overMaxSize_evictsLeastRecentlyUsed() {
+    ShardedLRUCache<Integer, String> cache = new ShardedLRUCache<>(3, 1);
+
+    cache.put(1, "1");
+    cache.put(2, "2");
+    cache.put(3, "3");
+    cache.get(1);
+    cache.put(4, "4");
+
+    assertEquals(3, cache.size());
+    assertEquals("1", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("3", cache.get(3));
+    assertEquals("4", cache.get(4));
+  }
+
+  @Test
+  public void size_neverExceedsMaxSizeRoundedUpToShards() {
+    ShardedLRUCache<Integer, Integer> cache = new ShardedLRUCache<>(100, 16);
+
+    for (int i = 0; i < 10_000; i++) {
+      cache.put(i, i);
+    }
+
+    assertTrue(cache.size() <= 16 * 7);
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    ShardedLRUCache<Integer, Integer> cache = new ShardedLRUCache<>(100);
+
+    for (int i = 0; i < 50; i++) {
+      cache.put(i, i);
+    }
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  public void putIfAbsent_concurrentWriters_exactlyOneWinsPerKey() throws InterruptedException {
+    ShardedLRUCache<Integer, Integer> cache   = new ShardedLRUCache<>(1000);
+    AtomicInteger                     winners = new AtomicInteger();
+    CountDownLatch                    start   = new CountDownLatch(1);
+    List<Thread>                      threads = new ArrayList<>();
+
+    for (int t = 0; t < 8; t++) {
+      int value = t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        for (int key = 0; key < 500; key++) {
+          if (cache.putIfAbsent(key, value) == null) {
+            winners.incrementAndGet();
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(500, winners.get());
+  }
+}
@@ -0,0 +1,117 @@
+package org.thoughtcrime.securesms.util.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class BatchCoalescerTest {
+
+  @Test
+  public void submit_itemsBeforeDrainRuns_processedAsOneBatch() {
+    Queue<Runnable>        tasks   = new LinkedList<>();
+    List<List<String>>     batches = new ArrayList<>();
+    BatchCoalescer<String> subject = new BatchCoalescer<>(tasks::add, 0, 100, batches::add);
+
+    subject.submit("a");
+    subject.submit("b");
+    subject.submit("c");
+
+    assertEquals(1, tasks.size());
+    tasks.poll().run();
+
+    assertEquals(Collections.singletonList(Arrays.asList("a", "b", "c")), batches);
+    assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void submit_moreThanMaxBatchSize_splitIntoBatchesInOrder() {
+    Queue<Runnable>        tasks   = new LinkedList<>();
+    List<List<String>>     batches = new ArrayList<>();
+    BatchCoalescer<String> subject = new BatchCoalescer<>(tasks::add, 0, 2, batches::add);
+
+    for (String item : Arrays.asList("a", "b", "c", "d", "e")) {
+      subject.submit(item);
+    }
+
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+
+    assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Collections.singletonList("e")), batches);
+  }
+
+  @Test
+  public void submit_afterDrain_schedulesAnotherDrain() {
+    Queue<Runnable>        tasks   = new LinkedList<>();
+    List<List<String>>     batches = new ArrayList<>();
+    BatchCoalescer<String> subject = new BatchCoalescer<>(tasks::add, 0, 100, batches::add);
+
+    subject.submit("a");
+    tasks.poll().run();
+    subject.submit("b");
+    tasks.poll().run();
+
+    assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("b")), batches);
+  }
+
+  @Test
+  public void submit_withinWindow_coalesced() throws InterruptedException {
+    ExecutorService         executor = Executors.newSingleThreadExecutor();
+    List<List<Integer>>     batches  = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch          done     = new CountDownLatch(10);
+    BatchCoalescer<Integer> subject  = new BatchCoalescer<>(executor, TimeUnit.SECONDS.toMillis(1), 10, batch -> {
+      batches.add(batch);
+      for (int i = 0; i < batch.size(); i++) {
+        done.countDown();
+      }
+    });
+
+    for (int i = 0; i < 10; i++) {
+      subject.submit(i);
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)), batches);
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void submit_whileBatchIsProcessing_nextBatchDoesNotWait() throws InterruptedException {
+    ExecutorService        executor = Executors.newFixedThreadPool(2);
+    CountDownLatch         release  = new CountDownLatch(1);
+    CountDownLatch         second   = new CountDownLatch(1);
+    BatchCoalescer<String> subject  = new BatchCoalescer<>(executor, 0, 100, batch -> {
+      if (batch.contains("a")) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      } else {
+        second.countDown();
+      }
+    });
+
+    subject.submit("a");
+    Thread.sleep(50);
+    subject.submit("b");
+
+    assertTrue(second.await(5, TimeUnit.SECONDS));
+
+    release.countDown();
+    executor.shutdown();
+  }
+}
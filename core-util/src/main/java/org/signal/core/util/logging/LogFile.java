@@ -16,6 +16,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -32,14 +33,16 @@ class LogFile {
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
 
-    private final byte[]               secret;
     private final File                 file;
+    private final SecretKeySpec        key;
+    private final SecureRandom         random;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
     Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret       = secret;
       this.file         = file;
+      this.key          = new SecretKeySpec(secret, "AES");
+      this.random       = new SecureRandom();
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
 
       try {
@@ -50,11 +53,27 @@ class LogFile {
     }
 
     void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+      encryptEntry(entry);
+      outputStream.flush();
+    }
+
+    /**
+     * Writes each entry exactly as {@link #writeEntry(String)} would, but only flushes to disk once
+     * at the end.
+     */
+    void writeEntries(@NonNull List<String> entries) throws IOException {
+      for (int i = 0, size = entries.size(); i < size; i++) {
+        encryptEntry(entries.get(i));
+      }
+      outputStream.flush();
+    }
+
+    private void encryptEntry(@NonNull String entry) throws IOException {
+      random.nextBytes(ivBuffer);
 
       byte[] plaintext = entry.getBytes();
       try {
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ivBuffer));
 
         int    cipherLength = cipher.getOutputSize(plaintext.length);
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
@@ -63,8 +82,6 @@ class LogFile {
         outputStream.write(ivBuffer);
         outputStream.write(Conversions.intToByteArray(cipherLength));
         outputStream.write(ciphertext, 0, cipherLength);
-
-        outputStream.flush();
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
       }
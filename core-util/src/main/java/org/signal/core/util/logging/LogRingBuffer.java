@@ -0,0 +1,122 @@
+package org.signal.core.util.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A fixed-size buffer of raw log records that any number of threads can write into and a single
+ * consumer drains in batches. All of the record slots are allocated up front, so adding a record
+ * never allocates.
+ *
+ * When the buffer is full, new records are dropped and counted rather than blocking the caller.
+ */
+final class LogRingBuffer {
+
+  private final Record[] slots;
+
+  private int     head;
+  private int     size;
+  private long    droppedCount;
+  private boolean drainScheduled;
+
+  LogRingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive!");
+    }
+
+    this.slots = newRecords(capacity);
+  }
+
+  /**
+   * Copies the log call into the next free slot, or drops it if the buffer is full.
+   *
+   * @return True if the caller should schedule a drain, which is the case for the first record
+   *         added after the buffer was last drained empty.
+   */
+  synchronized boolean offer(@NonNull String level, String tag, String message, @Nullable Throwable throwable, long time, @NonNull String thread) {
+    if (size == slots.length) {
+      droppedCount++;
+      return false;
+    }
+
+    slots[(head + size) % slots.length].set(level, tag, message, throwable, time, thread);
+    size++;
+
+    if (drainScheduled) {
+      return false;
+    } else {
+      drainScheduled = true;
+      return true;
+    }
+  }
+
+  /**
+   * Moves up to out.length of the oldest records into the provided array, handing the records that
+   * were previously in it back to the buffer to be reused. If there's nothing to drain, the buffer
+   * considers the drain finished, and the next {@link #offer} will ask for a new one.
+   *
+   * @return The number of records moved into the array.
+   */
+  synchronized int drainTo(@NonNull Record[] out) {
+    int count = Math.min(size, out.length);
+
+    for (int i = 0; i < count; i++) {
+      int    index = (head + i) % slots.length;
+      Record taken = slots[index];
+
+      slots[index] = out[i];
+      out[i]       = taken;
+    }
+
+    head = (head + count) % slots.length;
+    size -= count;
+
+    if (count == 0) {
+      drainScheduled = false;
+    }
+
+    return count;
+  }
+
+  synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  static @NonNull Record[] newRecords(int count) {
+    Record[] records = new Record[count];
+
+    for (int i = 0; i < count; i++) {
+      records[i] = new Record();
+    }
+
+    return records;
+  }
+
+  static final class Record {
+    String    level;
+    String    tag;
+    String    message;
+    Throwable throwable;
+    long      time;
+    String    thread;
+
+    private void set(@NonNull String level, String tag, String message, @Nullable Throwable throwable, long time, @NonNull String thread) {
+      this.level     = level;
+      this.tag       = tag;
+      this.message   = message;
+      this.throwable = throwable;
+      this.time      = time;
+      this.thread    = thread;
+    }
+
+    void clear() {
+      this.tag       = null;
+      this.message   = null;
+      this.throwable = null;
+    }
+  }
+}
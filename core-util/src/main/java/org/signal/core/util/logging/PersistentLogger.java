@@ -14,9 +14,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
@@ -24,6 +24,15 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Writes logs to encrypted, rotating files in the cache directory.
+ *
+ * In {@link Mode#EXECUTOR} mode, every log call posts its own task to the writer thread. In
+ * {@link Mode#RING_BUFFER} mode, log calls are copied into a preallocated {@link LogRingBuffer} and
+ * the writer thread formats, encrypts and writes them in batches. If the writer falls too far
+ * behind, lines are dropped rather than blocking the caller, and the number dropped is noted in the
+ * log once it catches up.
+ */
 @SuppressLint("LogNotSignal")
 public final class PersistentLogger extends Log.Logger {
 
@@ -42,20 +51,46 @@ public final class PersistentLogger extends Log.Logger {
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
   private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US);
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
-  private final String   logTag;
+  private static final int RING_BUFFER_CAPACITY = 4096;
+  private static final int DRAIN_BATCH_SIZE     = 128;
+
+  public enum Mode {
+    EXECUTOR, RING_BUFFER
+  }
+
+  private final Context       context;
+  private final Executor      executor;
+  private final byte[]        secret;
+  private final String        logTag;
+  private final LogRingBuffer ringBuffer;
+  private final Runnable      drainTask;
+
+  private final LogRingBuffer.Record[] drainBatch;
+  private final List<String>           pendingEntries;
+  private final Date                   date;
 
   private LogFile.Writer writer;
 
   private ThreadLocal<String> cachedThreadString;
 
+  private long   lastFormattedTime = -1;
+  private String lastFormattedDate;
+  private long   reportedDroppedCount;
+
   public PersistentLogger(@NonNull Context context, @NonNull byte[] secret, @NonNull String logTag) {
+    this(context, secret, logTag, Mode.EXECUTOR);
+  }
+
+  public PersistentLogger(@NonNull Context context, @NonNull byte[] secret, @NonNull String logTag, @NonNull Mode mode) {
     this.context            = context.getApplicationContext();
     this.secret             = secret;
     this.logTag             = logTag;
     this.cachedThreadString = new ThreadLocal<>();
+    this.ringBuffer         = mode == Mode.RING_BUFFER ? new LogRingBuffer(RING_BUFFER_CAPACITY) : null;
+    this.drainTask          = this::drainRingBuffer;
+    this.drainBatch         = LogRingBuffer.newRecords(mode == Mode.RING_BUFFER ? DRAIN_BATCH_SIZE : 0);
+    this.pendingEntries     = new ArrayList<>();
+    this.date               = new Date();
     this.executor           = Executors.newSingleThreadExecutor(r -> {
       Thread thread = new Thread(r, "signal-PersistentLogger");
       thread.setPriority(Thread.MIN_PRIORITY);
@@ -108,6 +143,14 @@ public final class PersistentLogger extends Log.Logger {
     }
   }
 
+  /**
+   * @return The number of lines that have been dropped because the ring buffer was full. Always 0
+   *         in {@link Mode#EXECUTOR} mode.
+   */
+  public long getDroppedLineCount() {
+    return ringBuffer != null ? ringBuffer.getDroppedCount() : 0;
+  }
+
   @WorkerThread
   public @Nullable CharSequence getLogs() {
     CountDownLatch                latch = new CountDownLatch(1);
@@ -156,9 +199,27 @@ public final class PersistentLogger extends Log.Logger {
 
   @AnyThread
   private void write(String level, String tag, String message, Throwable t) {
+    String threadString = getThreadString();
+
+    if (ringBuffer != null) {
+      if (ringBuffer.offer(level, tag, message, t, System.currentTimeMillis(), threadString)) {
+        executor.execute(drainTask);
+      }
+      return;
+    }
+
+    executor.execute(() -> {
+      pendingEntries.clear();
+      addLogEntries(pendingEntries, level, tag, message, t, System.currentTimeMillis(), threadString);
+      writeEntries(pendingEntries);
+    });
+  }
+
+  @AnyThread
+  private @NonNull String getThreadString() {
     String threadString = cachedThreadString.get();
 
-    if (cachedThreadString.get() == null) {
+    if (threadString == null) {
       if (Looper.myLooper() == Looper.getMainLooper()) {
         threadString = "main ";
       } else {
@@ -168,30 +229,55 @@ public final class PersistentLogger extends Log.Logger {
       cachedThreadString.set(threadString);
     }
 
-    final String finalThreadString = threadString;
+    return threadString;
+  }
 
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
+  /**
+   * Keeps draining until the buffer is empty. Anything logged after that schedules a new drain.
+   */
+  @WorkerThread
+  private void drainRingBuffer() {
+    int count;
 
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
-        }
+    while ((count = ringBuffer.drainTo(drainBatch)) > 0) {
+      pendingEntries.clear();
 
-        for (String entry : buildLogEntries(level, tag, message, t, finalThreadString)) {
-          writer.writeEntry(entry);
-        }
+      for (int i = 0; i < count; i++) {
+        LogRingBuffer.Record record = drainBatch[i];
+        addLogEntries(pendingEntries, record.level, record.tag, record.message, record.throwable, record.time, record.thread);
+        record.clear();
+      }
 
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+      long droppedCount = ringBuffer.getDroppedCount();
+      if (droppedCount > reportedDroppedCount) {
+        long time = System.currentTimeMillis();
+        pendingEntries.add(buildEntry(LOG_W, TAG, "Dropped " + (droppedCount - reportedDroppedCount) + " log lines because the buffer was full.", time, getThreadString()));
+        reportedDroppedCount = droppedCount;
       }
-    });
+
+      writeEntries(pendingEntries);
+    }
+  }
+
+  @WorkerThread
+  private void writeEntries(@NonNull List<String> entries) {
+    try {
+      if (writer == null) {
+        return;
+      }
+
+      if (writer.getLogSize() >= MAX_LOG_SIZE) {
+        writer.close();
+        writer = new LogFile.Writer(secret, createNewLogFile());
+        trimLogFilesOverMax();
+      }
+
+      writer.writeEntries(entries);
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
   }
 
   private void trimLogFilesOverMax() throws IOException {
@@ -245,11 +331,9 @@ public final class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t, String threadString) {
-    List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
-
-    entries.add(buildEntry(level, tag, message, date, threadString));
+  @WorkerThread
+  private void addLogEntries(@NonNull List<String> entries, String level, String tag, String message, Throwable t, long time, String threadString) {
+    entries.add(buildEntry(level, tag, message, time, threadString));
 
     if (t != null) {
       ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -259,14 +343,27 @@ public final class PersistentLogger extends Log.Logger {
       String[] lines = trace.split("\\n");
 
       for (String line : lines) {
-        entries.add(buildEntry(level, tag, line, date, threadString));
+        entries.add(buildEntry(level, tag, line, time, threadString));
       }
     }
+  }
 
-    return entries;
+  @WorkerThread
+  private String buildEntry(String level, String tag, String message, long time, String threadString) {
+    return '[' + logTag + "] [" + threadString + "] " + formatDate(time) + ' ' + level + ' ' + tag + ": " + message;
   }
 
-  private String buildEntry(String level, String tag, String message, Date date, String threadString) {
-    return '[' + logTag + "] [" + threadString + "] " + DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
+  /**
+   * Lines often arrive in bursts, so we hang on to the last formatted date and reuse it for lines
+   * logged in the same millisecond.
+   */
+  @WorkerThread
+  private String formatDate(long time) {
+    if (time != lastFormattedTime) {
+      date.setTime(time);
+      lastFormattedDate = DATE_FORMAT.format(date);
+      lastFormattedTime = time;
+    }
+    return lastFormattedDate;
   }
 }
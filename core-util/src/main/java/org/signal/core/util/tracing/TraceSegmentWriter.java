@@ -0,0 +1,175 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.NonNull;
+
+import com.google.protobuf.CodedOutputStream;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes {@link TracePacket}s to a rotating set of encrypted segment files, keeping the total size
+ * of all segments under a cap by deleting the oldest segment whenever a new one is started.
+ *
+ * Each segment holds packets encoded exactly as they would be inside of a {@link TraceProtos.Trace},
+ * so the decrypted segments can simply be concatenated to produce a valid trace. Segments are
+ * encrypted with AES/CTR, using a random IV that's stored in the clear at the start of the file.
+ *
+ * Not thread-safe. Only use this from a single thread.
+ */
+final class TraceSegmentWriter {
+
+  private static final String FILENAME_PREFIX = "trace-";
+  private static final int    SEGMENT_COUNT   = 8;
+  private static final int    IV_LENGTH       = 16;
+
+  private final File          directory;
+  private final SecretKeySpec key;
+  private final SecureRandom  random;
+  private final long          maxSegmentSize;
+
+  private long              nextSegmentId;
+  private OutputStream      segmentStream;
+  private CodedOutputStream segmentOutput;
+
+  /**
+   * Deletes any segments left over from a previous process and starts a new one.
+   *
+   * @param maxBytes The most space all segments combined should take up.
+   */
+  TraceSegmentWriter(@NonNull File directory, @NonNull byte[] secret, long maxBytes) throws IOException {
+    this.directory      = directory;
+    this.key            = new SecretKeySpec(secret, "AES");
+    this.random         = new SecureRandom();
+    this.maxSegmentSize = Math.max(1, maxBytes / SEGMENT_COUNT);
+
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create trace directory.");
+    }
+
+    for (File segment : getSortedSegments()) {
+      segment.delete();
+    }
+
+    startSegment();
+  }
+
+  void write(@NonNull TracePacket packet) throws IOException {
+    segmentOutput.writeMessage(1, packet);
+
+    if (segmentOutput.getTotalBytesWritten() >= maxSegmentSize) {
+      rotate();
+    }
+  }
+
+  /**
+   * Finishes the current segment and writes the decrypted contents of every segment, oldest first,
+   * to the provided stream. Only one segment is held open at a time, and it's copied through a
+   * small buffer, so this doesn't need to load the whole trace into memory.
+   */
+  void copyTo(@NonNull OutputStream out) throws IOException {
+    rotate();
+
+    File[] segments = getSortedSegments();
+    byte[] buffer   = new byte[16 * 1024];
+
+    for (int i = 0; i < segments.length - 1; i++) {
+      InputStream in = openSegment(segments[i]);
+
+      try {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        StreamUtil.close(in);
+      }
+    }
+  }
+
+  void close() {
+    try {
+      segmentOutput.flush();
+    } catch (IOException e) {
+      // Nothing we can do about it now
+    }
+    StreamUtil.close(segmentStream);
+  }
+
+  private void rotate() throws IOException {
+    segmentOutput.flush();
+    segmentStream.close();
+
+    File[] segments = getSortedSegments();
+    for (int i = 0; i <= segments.length - SEGMENT_COUNT; i++) {
+      segments[i].delete();
+    }
+
+    startSegment();
+  }
+
+  private void startSegment() throws IOException {
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+
+    File             file       = new File(directory, FILENAME_PREFIX + String.format(Locale.US, "%019d", nextSegmentId++));
+    FileOutputStream fileStream = new FileOutputStream(file);
+
+    fileStream.write(iv);
+
+    this.segmentStream = new CipherOutputStream(fileStream, getCipher(Cipher.ENCRYPT_MODE, iv));
+    this.segmentOutput = CodedOutputStream.newInstance(segmentStream, 8 * 1024);
+  }
+
+  private @NonNull InputStream openSegment(@NonNull File segment) throws IOException {
+    FileInputStream fileStream = new FileInputStream(segment);
+    byte[]          iv         = new byte[IV_LENGTH];
+
+    try {
+      StreamUtil.readFully(fileStream, iv);
+    } catch (IOException e) {
+      StreamUtil.close(fileStream);
+      throw e;
+    }
+
+    return new CipherInputStream(fileStream, getCipher(Cipher.DECRYPT_MODE, iv));
+  }
+
+  private @NonNull Cipher getCipher(int mode, @NonNull byte[] iv) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(mode, key, new IvParameterSpec(iv));
+      return cipher;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private @NonNull File[] getSortedSegments() {
+    File[] segments = directory.listFiles((dir, name) -> name.startsWith(FILENAME_PREFIX));
+
+    if (segments == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(segments, (o1, o2) -> o1.getName().compareTo(o2.getName()));
+    return segments;
+  }
+}
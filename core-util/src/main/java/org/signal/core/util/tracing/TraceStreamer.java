@@ -0,0 +1,243 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.protobuf.CodedOutputStream;
+
+import org.signal.core.util.logging.Log;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams {@link TracePacket}s to disk through a {@link TraceSegmentWriter}, so that a trace can run
+ * for much longer than we could afford to keep in memory.
+ *
+ * Each thread collects its packets into a small chunk of its own, without any locking. Full chunks
+ * are handed off through a lock-free queue to a single writer thread. The number of chunks waiting
+ * to be written is capped, and if the writer falls behind, new chunks are dropped and counted.
+ */
+final class TraceStreamer {
+
+  private static final String TAG = Log.tag(TraceStreamer.class);
+
+  private static final int CHUNK_SIZE         = 64;
+  private static final int MAX_PENDING_CHUNKS = 512;
+
+  private final File                      directory;
+  private final byte[]                    secret;
+  private final long                      maxBytes;
+  private final ExecutorService           executor;
+  private final ThreadLocal<ThreadBuffer> threadBuffers;
+  private final Queue<ThreadBuffer>       allThreadBuffers;
+  private final Queue<Chunk>              pendingChunks;
+  private final AtomicInteger             pendingChunkCount;
+  private final AtomicBoolean             drainScheduled;
+  private final AtomicLong                droppedPackets;
+  private final Runnable                  drainTask;
+
+  private TraceSegmentWriter writer;
+
+  TraceStreamer(@NonNull File directory, @NonNull byte[] secret, long maxBytes) {
+    this.directory         = directory;
+    this.secret            = secret;
+    this.maxBytes          = maxBytes;
+    this.allThreadBuffers  = new ConcurrentLinkedQueue<>();
+    this.pendingChunks     = new ConcurrentLinkedQueue<>();
+    this.pendingChunkCount = new AtomicInteger(0);
+    this.drainScheduled    = new AtomicBoolean(false);
+    this.droppedPackets    = new AtomicLong(0);
+    this.drainTask         = this::drain;
+    this.threadBuffers     = new ThreadLocal<ThreadBuffer>() {
+      @Override
+      protected ThreadBuffer initialValue() {
+        ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+        allThreadBuffers.add(buffer);
+        return buffer;
+      }
+    };
+    this.executor          = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "signal-TraceStreamer");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+  }
+
+  @AnyThread
+  void add(@NonNull TracePacket packet) {
+    ThreadBuffer buffer = threadBuffers.get();
+    Chunk        chunk  = buffer.current;
+    int          count  = chunk.count;
+
+    chunk.packets[count] = packet;
+    chunk.count          = count + 1;
+
+    if (count + 1 == CHUNK_SIZE) {
+      buffer.current = new Chunk();
+      publish(chunk);
+    }
+  }
+
+  @AnyThread
+  long getDroppedPacketCount() {
+    return droppedPackets.get();
+  }
+
+  /**
+   * Writes every packet we still have, oldest first, encoded as the contents of a
+   * {@link TraceProtos.Trace}. Blocks until the export is finished.
+   */
+  @WorkerThread
+  void writeTo(@NonNull OutputStream out) throws IOException {
+    try {
+      executor.submit(() -> {
+        drain();
+
+        if (writer != null) {
+          writer.copyTo(out);
+        }
+
+        writePartialChunks(out);
+        return null;
+      }).get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while exporting the trace.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else {
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  @AnyThread
+  private void publish(@NonNull Chunk chunk) {
+    if (pendingChunkCount.incrementAndGet() > MAX_PENDING_CHUNKS) {
+      pendingChunkCount.decrementAndGet();
+      droppedPackets.addAndGet(chunk.count);
+      return;
+    }
+
+    pendingChunks.add(chunk);
+
+    if (drainScheduled.compareAndSet(false, true)) {
+      executor.execute(drainTask);
+    }
+  }
+
+  /**
+   * Writes out all of the full chunks, as well as whatever is left in the buffers of threads that
+   * have since died.
+   */
+  @WorkerThread
+  private void drain() {
+    drainScheduled.set(false);
+
+    Chunk chunk;
+    while ((chunk = pendingChunks.poll()) != null) {
+      pendingChunkCount.decrementAndGet();
+      write(chunk.packets, chunk.count);
+    }
+
+    Iterator<ThreadBuffer> iterator = allThreadBuffers.iterator();
+    while (iterator.hasNext()) {
+      ThreadBuffer buffer = iterator.next();
+
+      if (!buffer.owner.isAlive()) {
+        Chunk remaining = buffer.current;
+        write(remaining.packets, remaining.count);
+        iterator.remove();
+      }
+    }
+  }
+
+  @WorkerThread
+  private void write(@NonNull TracePacket[] packets, int count) {
+    TraceSegmentWriter writer = getWriter();
+
+    if (writer == null) {
+      droppedPackets.addAndGet(count);
+      return;
+    }
+
+    try {
+      for (int i = 0; i < count; i++) {
+        writer.write(packets[i]);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write trace packets. Starting over with a fresh set of segments.", e);
+      writer.close();
+      this.writer = null;
+    }
+  }
+
+  /**
+   * Packets that haven't filled up a chunk yet aren't on disk, but we still want them in the
+   * export. The owning thread only ever appends to its chunk, and publishes the count after the
+   * packet, so it's safe to read up to the count we see. Chunks that just filled up are skipped,
+   * since they're about to be written to disk.
+   */
+  @WorkerThread
+  private void writePartialChunks(@NonNull OutputStream out) throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+
+    for (ThreadBuffer buffer : allThreadBuffers) {
+      Chunk chunk = buffer.current;
+      int   count = chunk.count;
+
+      if (count < CHUNK_SIZE) {
+        for (int i = 0; i < count; i++) {
+          output.writeMessage(1, chunk.packets[i]);
+        }
+      }
+    }
+
+    output.flush();
+  }
+
+  @WorkerThread
+  private @Nullable TraceSegmentWriter getWriter() {
+    if (writer == null) {
+      try {
+        writer = new TraceSegmentWriter(directory, secret, maxBytes);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to create the trace segment writer.", e);
+      }
+    }
+
+    return writer;
+  }
+
+  private static final class ThreadBuffer {
+    private final Thread owner;
+
+    private volatile Chunk current;
+
+    private ThreadBuffer(@NonNull Thread owner) {
+      this.owner   = owner;
+      this.current = new Chunk();
+    }
+  }
+
+  private static final class Chunk {
+    private final TracePacket[] packets = new TracePacket[CHUNK_SIZE];
+
+    private volatile int count;
+  }
+}
@@ -4,14 +4,21 @@ import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
-import org.signal.core.util.tracing.TraceProtos.Trace;
+import org.signal.core.util.logging.Log;
 import org.signal.core.util.tracing.TraceProtos.TracePacket;
 import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
 import org.signal.core.util.tracing.TraceProtos.TrackEvent;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
@@ -23,8 +30,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A class to create Perfetto-compatible traces. Currently keeps the entire trace in memory to
- * avoid weirdness with synchronizing to disk.
+ * A class to create Perfetto-compatible traces. By default, keeps the trace in memory to avoid
+ * weirdness with synchronizing to disk. Once {@link #enableStreaming(File, byte[], long)} is
+ * called, method packets are instead streamed to encrypted files on disk (see
+ * {@link TraceStreamer}), which lets us trace for much longer.
  *
  * Some general info on how the Perfetto format works:
  * - The file format is just a Trace proto (see Trace.proto)
@@ -55,6 +64,8 @@ public final class Tracer {
     private static final String DB_LOCK_NAME = "Database Lock";
   }
 
+  private static final String TAG = Log.tag(Tracer.class);
+
   private static final Tracer INSTANCE = new Tracer();
 
   private static final int    TRUSTED_SEQUENCE_ID      = 1;
@@ -66,11 +77,18 @@ public final class Tracer {
   private final Queue<TracePacket>     eventPackets;
   private final AtomicInteger          eventCount;
 
+  private volatile TraceStreamer streamer;
+
   private long lastSyncTime;
   private long maxBufferSize;
 
   private Tracer() {
-    this.clock         = SystemClock::elapsedRealtimeNanos;
+    this(SystemClock::elapsedRealtimeNanos);
+  }
+
+  @VisibleForTesting
+  Tracer(@NonNull Clock clock) {
+    this.clock         = clock;
     this.threadPackets = new ConcurrentHashMap<>();
     this.eventPackets  = new ConcurrentLinkedQueue<>();
     this.eventCount    = new AtomicInteger(0);
@@ -85,6 +103,39 @@ public final class Tracer {
     this.maxBufferSize = maxBufferSize;
   }
 
+  /**
+   * Switches from keeping the trace in memory to streaming it to encrypted segment files in the
+   * provided directory. Anything already in memory is carried over. Any segments left in the
+   * directory by a previous process are deleted.
+   *
+   * @param secret   A 16, 24 or 32 byte AES key used to encrypt the segments.
+   * @param maxBytes The most disk space the segments should take up. Once reached, the oldest
+   *                 packets are deleted to make room for new ones.
+   */
+  public synchronized void enableStreaming(@NonNull File directory, @NonNull byte[] secret, long maxBytes) {
+    if (streamer != null) {
+      return;
+    }
+
+    streamer = new TraceStreamer(directory, secret, maxBytes);
+
+    TracePacket packet;
+    while ((packet = eventPackets.poll()) != null) {
+      streamer.add(packet);
+    }
+
+    eventCount.set(0);
+  }
+
+  /**
+   * @return The number of packets that were dropped because the streamer couldn't keep up. Always
+   *         0 if streaming isn't enabled.
+   */
+  public long getDroppedPacketCount() {
+    TraceStreamer streamer = this.streamer;
+    return streamer != null ? streamer.getDroppedPacketCount() : 0;
+  }
+
   public void start(@NonNull String methodName) {
     start(methodName, Thread.currentThread().getId(), null);
   }
@@ -129,19 +180,41 @@ public final class Tracer {
   }
 
   public @NonNull byte[] serialize() {
-    Trace.Builder trace = Trace.newBuilder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-    for (TracePacket thread : threadPackets.values()) {
-      trace.addPacket(thread);
+    try {
+      serialize(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to serialize the full trace.", e);
     }
 
-    for (TracePacket event : eventPackets) {
-      trace.addPacket(event);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the trace to the provided stream. If streaming is enabled, the packets on disk are
+   * copied over a bit at a time rather than being loaded into memory all at once.
+   */
+  @WorkerThread
+  public void serialize(@NonNull OutputStream out) throws IOException {
+    CodedOutputStream output   = CodedOutputStream.newInstance(out);
+    TraceStreamer     streamer = this.streamer;
+
+    for (TracePacket thread : threadPackets.values()) {
+      output.writeMessage(1, thread);
     }
 
-    trace.addPacket(forSynchronization(clock.getTimeNanos()));
+    if (streamer != null) {
+      output.flush();
+      streamer.writeTo(out);
+    } else {
+      for (TracePacket event : eventPackets) {
+        output.writeMessage(1, event);
+      }
+    }
 
-    return trace.build().toByteArray();
+    output.writeMessage(1, forSynchronization(clock.getTimeNanos()));
+    output.flush();
   }
 
   /**
@@ -152,8 +225,17 @@ public final class Tracer {
    *
    * Note that we keep track of the event count separately because
    * {@link ConcurrentLinkedQueue#size()} is NOT a constant-time operation.
+   *
+   * If streaming is enabled, the packet goes to the {@link TraceStreamer} instead.
    */
   private void addPacket(@NonNull TracePacket packet) {
+    TraceStreamer streamer = this.streamer;
+
+    if (streamer != null) {
+      streamer.add(packet);
+      return;
+    }
+
     eventPackets.add(packet);
 
     int size = eventCount.incrementAndGet();
@@ -236,7 +318,7 @@ public final class Tracer {
     return buffer.array();
   }
 
-  private interface Clock {
+  interface Clock {
     long getTimeNanos();
   }
 }
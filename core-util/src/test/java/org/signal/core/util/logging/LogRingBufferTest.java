@@ -0,0 +1,131 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class LogRingBufferTest {
+
+  @Test
+  public void offer_firstRecord_requestsDrain() {
+    LogRingBuffer subject = new LogRingBuffer(4);
+
+    assertTrue(offer(subject, "a"));
+    assertFalse(offer(subject, "b"));
+  }
+
+  @Test
+  public void drainTo_returnsRecordsInOrder() {
+    LogRingBuffer          subject = new LogRingBuffer(4);
+    LogRingBuffer.Record[] out     = LogRingBuffer.newRecords(4);
+    Throwable              t       = new Throwable();
+
+    offer(subject, "a");
+    subject.offer("W", "tag", "b", t, 2, "main ");
+
+    assertEquals(2, subject.drainTo(out));
+    assertEquals("a", out[0].message);
+    assertNull(out[0].throwable);
+    assertEquals("b", out[1].message);
+    assertEquals("W", out[1].level);
+    assertEquals("tag", out[1].tag);
+    assertSame(t, out[1].throwable);
+    assertEquals(2, out[1].time);
+    assertEquals("main ", out[1].thread);
+    assertEquals(0, subject.size());
+  }
+
+  @Test
+  public void drainTo_limitedByOutputLength() {
+    LogRingBuffer          subject = new LogRingBuffer(4);
+    LogRingBuffer.Record[] out     = LogRingBuffer.newRecords(2);
+
+    offer(subject, "a");
+    offer(subject, "b");
+    offer(subject, "c");
+
+    assertEquals(2, subject.drainTo(out));
+    assertEquals("a", out[0].message);
+    assertEquals("b", out[1].message);
+
+    assertEquals(1, subject.drainTo(out));
+    assertEquals("c", out[0].message);
+  }
+
+  @Test
+  public void drainTo_wrapsAround() {
+    LogRingBuffer          subject = new LogRingBuffer(3);
+    LogRingBuffer.Record[] out     = LogRingBuffer.newRecords(3);
+
+    offer(subject, "a");
+    offer(subject, "b");
+    subject.drainTo(out);
+
+    offer(subject, "c");
+    offer(subject, "d");
+    offer(subject, "e");
+
+    assertEquals(3, subject.drainTo(out));
+    assertEquals("c", out[0].message);
+    assertEquals("d", out[1].message);
+    assertEquals("e", out[2].message);
+  }
+
+  @Test
+  public void drainTo_empty_nextOfferRequestsDrain() {
+    LogRingBuffer          subject = new LogRingBuffer(4);
+    LogRingBuffer.Record[] out     = LogRingBuffer.newRecords(4);
+
+    offer(subject, "a");
+    subject.drainTo(out);
+
+    assertFalse(offer(subject, "b"));
+
+    subject.drainTo(out);
+    assertEquals(0, subject.drainTo(out));
+
+    assertTrue(offer(subject, "c"));
+  }
+
+  @Test
+  public void offer_whenFull_dropsNewestAndCounts() {
+    LogRingBuffer          subject = new LogRingBuffer(2);
+    LogRingBuffer.Record[] out     = LogRingBuffer.newRecords(4);
+
+    offer(subject, "a");
+    offer(subject, "b");
+    offer(subject, "c");
+    offer(subject, "d");
+
+    assertEquals(2, subject.getDroppedCount());
+    assertEquals(2, subject.drainTo(out));
+    assertEquals("a", out[0].message);
+    assertEquals("b", out[1].message);
+  }
+
+  @Test
+  public void drainTo_swapsRecordsWithoutAllocating() {
+    LogRingBuffer          subject  = new LogRingBuffer(2);
+    LogRingBuffer.Record[] out      = LogRingBuffer.newRecords(2);
+    LogRingBuffer.Record   original = out[0];
+
+    offer(subject, "a");
+    subject.drainTo(out);
+    LogRingBuffer.Record drained = out[0];
+
+    offer(subject, "b");
+    offer(subject, "c");
+    subject.drainTo(out);
+
+    assertTrue(out[0] == original || out[1] == original);
+    assertFalse(out[0] == drained || out[1] == drained);
+  }
+
+  private static boolean offer(LogRingBuffer buffer, String message) {
+    return buffer.offer("I", "Test", message, null, 1, "1    ");
+  }
+}
@@ -0,0 +1,185 @@
+package org.signal.core.util.tracing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.tracing.TraceProtos.Trace;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+import org.signal.core.util.tracing.TraceProtos.TrackEvent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TracerTest {
+
+  private static final byte[] SECRET = new byte[32];
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private AtomicLong time;
+  private Tracer     subject;
+
+  @Before
+  public void setUp() {
+    time    = new AtomicLong(1);
+    subject = new Tracer(time::incrementAndGet);
+  }
+
+  @Test
+  public void serialize_inMemory_includesEvents() throws IOException {
+    subject.start("a");
+    subject.end("a");
+
+    assertEquals(Arrays.asList("a", "a"), getEventNames(Trace.parseFrom(subject.serialize())));
+  }
+
+  @Test
+  public void serialize_streaming_includesEventsFromBeforeAndAfterEnabling() throws IOException {
+    subject.start("before");
+    subject.end("before");
+
+    subject.enableStreaming(temporaryFolder.newFolder(), SECRET, 1024 * 1024);
+
+    for (int i = 0; i < 1000; i++) {
+      subject.start("method" + i);
+      subject.end("method" + i);
+    }
+
+    List<String> names = getEventNames(Trace.parseFrom(subject.serialize()));
+
+    assertEquals(2002, names.size());
+    assertEquals("before", names.get(0));
+    assertEquals("method999", names.get(names.size() - 1));
+  }
+
+  @Test
+  public void serialize_streaming_includesTrackDescriptorsAndSynchronization() throws IOException {
+    subject.enableStreaming(temporaryFolder.newFolder(), SECRET, 1024 * 1024);
+
+    subject.start("a");
+    subject.end("a");
+
+    Trace trace = Trace.parseFrom(subject.serialize());
+
+    assertTrue(trace.getPacket(0).hasTrackDescriptor());
+    assertTrue(trace.getPacket(trace.getPacketCount() - 1).hasSynchronizationMarker());
+  }
+
+  @Test
+  public void serialize_streaming_includesPacketsFromOtherThreads() throws Exception {
+    subject.enableStreaming(temporaryFolder.newFolder(), SECRET, 1024 * 1024);
+
+    Thread thread = new Thread(() -> {
+      for (int i = 0; i < 100; i++) {
+        subject.start("other");
+        subject.end("other");
+      }
+    });
+    thread.start();
+    thread.join();
+
+    subject.start("main");
+    subject.end("main");
+
+    List<String> names = getEventNames(Trace.parseFrom(subject.serialize()));
+
+    assertEquals(202, names.size());
+  }
+
+  @Test
+  public void serialize_streaming_canBeCalledRepeatedly() throws IOException {
+    subject.enableStreaming(temporaryFolder.newFolder(), SECRET, 1024 * 1024);
+
+    subject.start("a");
+    subject.end("a");
+
+    assertEquals(2, getEventNames(Trace.parseFrom(subject.serialize())).size());
+
+    for (int i = 0; i < 100; i++) {
+      subject.start("b");
+      subject.end("b");
+    }
+
+    assertEquals(202, getEventNames(Trace.parseFrom(subject.serialize())).size());
+  }
+
+  @Test
+  public void streaming_staysUnderCap_andKeepsNewestPackets() throws IOException {
+    File directory = temporaryFolder.newFolder();
+    long maxBytes  = 64 * 1024;
+
+    subject.enableStreaming(directory, SECRET, maxBytes);
+
+    for (int i = 0; i < 20_000; i++) {
+      subject.start("method" + i);
+      subject.end("method" + i);
+
+      if (i % 5_000 == 0) {
+        // Give the writer a chance to catch up, so nothing is dropped
+        subject.serialize();
+      }
+    }
+
+    List<String> names = getEventNames(Trace.parseFrom(subject.serialize()));
+
+    assertEquals(0, subject.getDroppedPacketCount());
+    assertTrue(directorySize(directory) <= maxBytes + 1024);
+    assertTrue(names.size() < 40_000);
+    assertFalse(names.contains("method0"));
+    assertEquals("method19999", names.get(names.size() - 1));
+  }
+
+  @Test
+  public void streaming_segmentsAreEncrypted() throws IOException {
+    File directory = temporaryFolder.newFolder();
+
+    subject.enableStreaming(directory, SECRET, 1024 * 1024);
+
+    for (int i = 0; i < 1000; i++) {
+      subject.start("VerySpecificMethodName");
+      subject.end("VerySpecificMethodName");
+    }
+
+    subject.serialize();
+
+    File[] segments = directory.listFiles();
+    assertTrue(segments.length > 0);
+
+    for (File segment : segments) {
+      String contents = new String(StreamUtil.readFully(new FileInputStream(segment)), "ISO-8859-1");
+      assertFalse(contents.contains("VerySpecificMethodName"));
+    }
+  }
+
+  private static List<String> getEventNames(Trace trace) {
+    List<String> names = new ArrayList<>();
+
+    for (TracePacket packet : trace.getPacketList()) {
+      if (packet.hasTrackEvent() && packet.getTrackEvent().getType() != TrackEvent.Type.TYPE_UNSPECIFIED) {
+        names.add(packet.getTrackEvent().getName());
+      }
+    }
+
+    return names;
+  }
+
+  private static long directorySize(File directory) {
+    long size = 0;
+    for (File file : directory.listFiles()) {
+      size += file.length();
+    }
+    return size;
+  }
+}
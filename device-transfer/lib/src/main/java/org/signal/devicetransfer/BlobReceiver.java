@@ -0,0 +1,16 @@
+package org.signal.devicetransfer;
+
+import java.io.IOException;
+
+/**
+ * The receiving side of the data streams of a parallel transfer.
+ */
+public interface BlobReceiver {
+
+  /**
+   * Blocks until the client has said every blob it sent is stored by the {@link BlobSink}.
+   *
+   * @throws IOException If the data streams went away without finishing.
+   */
+  void awaitCompletion() throws IOException;
+}
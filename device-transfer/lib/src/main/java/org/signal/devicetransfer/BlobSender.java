@@ -0,0 +1,16 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * Hands {@link TransferBlob}s to the data streams of a parallel transfer.
+ */
+public interface BlobSender {
+
+  /**
+   * Queues the blob to be sent on whichever data stream is free next. Does not block on the send.
+   */
+  void send(@NonNull TransferBlob blob) throws IOException;
+}
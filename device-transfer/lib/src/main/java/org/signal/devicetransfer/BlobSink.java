@@ -0,0 +1,37 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Stores the blobs received over the data streams of a parallel transfer. Called from several
+ * threads at once, one per data stream.
+ */
+public interface BlobSink {
+
+  /**
+   * @return Where to write the blob. It's closed once all of it has been written, or if the
+   *         transfer of it fails part way.
+   */
+  @NonNull OutputStream open(long id, long length) throws IOException;
+
+  /**
+   * Called after the blob's stream has been closed with all of its data.
+   */
+  void onComplete(long id) throws IOException;
+
+  /**
+   * Called after the blob's stream has been closed without all of its data. It will be sent again
+   * from the start, if at all.
+   */
+  void onAbandoned(long id);
+
+  /**
+   * @return Blobs that have already been completed, possibly during an earlier connection, which
+   *         the client can skip.
+   */
+  @NonNull Set<Long> getCompleted();
+}
@@ -0,0 +1,55 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.security.SecureRandom;
+
+/**
+ * Frames used on the data streams of a parallel transfer, between a {@link DataStreamSender} and
+ * a {@link DataStreamReceiver}.
+ * <p>
+ * Once both sides agree to a parallel transfer, the server opens a second TLS server socket with
+ * the same keys and sends its port (int) and a random session token over the control stream. The
+ * client only accepts data streams presenting the control stream's certificate.
+ * <p>
+ * A data stream starts with the client sending the session token it was given over the already
+ * verified control stream, and the server replying with the ids of every blob it has already
+ * completed. After that the client sends blob and done frames, and the server answers every blob
+ * frame, in order, with an ack or reject frame.
+ * <ul>
+ * <li>Blob: {@link #BLOB}, id (long), length (long), then chunks of a length (int) followed by that
+ * many bytes, ending with a chunk length of {@link #END_OF_BLOB} or {@link #ABORT_BLOB}.</li>
+ * <li>Done: {@link #DONE}, sent once every blob has been acked or rejected.</li>
+ * <li>Ack/Reject: {@link #ACK} or {@link #REJECT}, id (long).</li>
+ * </ul>
+ */
+final class DataStreamProtocol {
+
+  /**
+   * Sent on the control stream by each side once the user has verified the code. A parallel
+   * transfer is only used if both sides send {@link #VERIFIED_PARALLEL}, so either side can be
+   * a version that only knows {@link #VERIFIED}.
+   */
+  static final int VERIFIED          = 0x43;
+  static final int VERIFIED_PARALLEL = 0x50;
+
+  static final int TOKEN_LENGTH = 32;
+  static final int CHUNK_SIZE   = 64 * 1024;
+
+  static final int BLOB = 1;
+  static final int DONE = 2;
+
+  static final int END_OF_BLOB = 0;
+  static final int ABORT_BLOB  = -1;
+
+  static final int ACK    = 1;
+  static final int REJECT = 2;
+
+  private DataStreamProtocol() {}
+
+  static @NonNull byte[] generateToken() {
+    byte[] token = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+    return token;
+  }
+}
@@ -0,0 +1,313 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts the data streams of a parallel transfer and writes the blobs that arrive on them to a
+ * {@link BlobSink}, one thread per stream. See {@link DataStreamProtocol} for the frames.
+ * <p>
+ * Data streams may come and go while the transfer runs, the client reconnects any it loses and
+ * resends whatever wasn't acked. The transfer is complete once a client says it's done.
+ */
+final class DataStreamReceiver implements BlobReceiver {
+
+  private static final String TAG = Log.tag(DataStreamReceiver.class);
+
+  private static final long RECONNECT_GRACE_PERIOD = TimeUnit.SECONDS.toMillis(30);
+
+  private final BlobSink    sink;
+  private final byte[]      token;
+  private final Set<Long>   completed;
+  private final Set<Long>   receiving;
+  private final Set<Socket> sockets;
+  private final Object      lock;
+
+  private volatile ServerSocket serverSocket;
+  private volatile boolean      closed;
+
+  private boolean done;
+  private int     openStreams;
+  private long    lastActivity;
+
+  DataStreamReceiver(@NonNull BlobSink sink, @NonNull byte[] token) {
+    this.sink         = sink;
+    this.token        = token;
+    this.completed    = Collections.synchronizedSet(new HashSet<>(sink.getCompleted()));
+    this.receiving    = new HashSet<>();
+    this.sockets      = Collections.synchronizedSet(new HashSet<>());
+    this.lock         = new Object();
+    this.lastActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * Accepts data streams on the server socket until closed.
+   */
+  void listen(@NonNull ServerSocket serverSocket) {
+    this.serverSocket = serverSocket;
+
+    new Thread(() -> {
+      while (!closed) {
+        try {
+          Socket socket = serverSocket.accept();
+          new Thread(() -> handle(socket), "DataStreamReceiver").start();
+        } catch (IOException e) {
+          if (!closed) {
+            Log.w(TAG, "Stopped accepting data streams", e);
+          }
+          break;
+        }
+      }
+    }, "DataStreamAccept").start();
+  }
+
+  @Override
+  public void awaitCompletion() throws IOException {
+    synchronized (lock) {
+      while (!done) {
+        if (closed) {
+          throw new IOException("Closed before all blobs were received");
+        }
+
+        if (openStreams == 0 && System.currentTimeMillis() - lastActivity > RECONNECT_GRACE_PERIOD) {
+          throw new IOException("Data streams went away before all blobs were received");
+        }
+
+        try {
+          lock.wait(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+  }
+
+  @AnyThread
+  void close() {
+    closed = true;
+    StreamUtil.close(serverSocket);
+
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        StreamUtil.close(socket);
+      }
+    }
+
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  private void handle(@NonNull Socket socket) {
+    sockets.add(socket);
+    onStreamChanged(1);
+
+    try {
+      DataInputStream  in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), DataStreamProtocol.CHUNK_SIZE));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      byte[] presented = new byte[DataStreamProtocol.TOKEN_LENGTH];
+      in.readFully(presented);
+
+      if (!MessageDigest.isEqual(token, presented)) {
+        Log.w(TAG, "Data stream presented the wrong token, dropping it");
+        return;
+      }
+
+      synchronized (completed) {
+        out.writeInt(completed.size());
+        for (long id : completed) {
+          out.writeLong(id);
+        }
+      }
+      out.flush();
+
+      byte[] buffer = new byte[DataStreamProtocol.CHUNK_SIZE];
+
+      while (!closed) {
+        int type = in.read();
+
+        if (type == -1) {
+          break;
+        } else if (type == DataStreamProtocol.DONE) {
+          onDone();
+          break;
+        } else if (type != DataStreamProtocol.BLOB) {
+          throw new IOException("Unknown frame: " + type);
+        }
+
+        long id     = in.readLong();
+        long length = in.readLong();
+
+        boolean stored;
+        beginReceiving(id);
+        try {
+          stored = receiveBlob(in, id, length, buffer);
+        } finally {
+          endReceiving(id);
+        }
+
+        out.writeByte(stored ? DataStreamProtocol.ACK : DataStreamProtocol.REJECT);
+        out.writeLong(id);
+        out.flush();
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        Log.w(TAG, "Data stream failed", e);
+      }
+    } finally {
+      StreamUtil.close(socket);
+      sockets.remove(socket);
+      onStreamChanged(-1);
+    }
+  }
+
+  /**
+   * Reads every chunk of the blob, even if it can't be stored, so the stream can carry on.
+   *
+   * @return True if the blob is now stored by the sink.
+   */
+  private boolean receiveBlob(@NonNull DataInputStream in, long id, long length, @NonNull byte[] buffer) throws IOException {
+    boolean      duplicate = completed.contains(id);
+    OutputStream output    = duplicate ? null : openQuietly(id, length);
+    boolean      failed    = !duplicate && output == null;
+    long         received  = 0;
+
+    try {
+      while (true) {
+        int chunkLength = in.readInt();
+
+        if (chunkLength == DataStreamProtocol.END_OF_BLOB) {
+          break;
+        } else if (chunkLength == DataStreamProtocol.ABORT_BLOB) {
+          Log.w(TAG, "Sender aborted blob " + id);
+          failed = true;
+          break;
+        } else if (chunkLength < 0 || chunkLength > buffer.length) {
+          throw new IOException("Bad chunk length: " + chunkLength);
+        }
+
+        in.readFully(buffer, 0, chunkLength);
+        received += chunkLength;
+
+        if (output != null && !failed) {
+          try {
+            output.write(buffer, 0, chunkLength);
+          } catch (IOException e) {
+            Log.w(TAG, "Unable to write blob " + id, e);
+            failed = true;
+          }
+        }
+      }
+    } catch (IOException e) {
+      abandon(id, output);
+      throw e;
+    }
+
+    if (duplicate) {
+      return true;
+    }
+
+    if (!failed && received != length) {
+      Log.w(TAG, "Blob " + id + " was " + received + " bytes, expected " + length);
+      failed = true;
+    }
+
+    if (failed) {
+      abandon(id, output);
+      return false;
+    }
+
+    try {
+      output.close();
+      sink.onComplete(id);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to complete blob " + id, e);
+      sink.onAbandoned(id);
+      return false;
+    }
+
+    completed.add(id);
+    onStreamChanged(0);
+
+    return true;
+  }
+
+  /**
+   * A blob is resent when the stream it was on is lost, which the receiving end of that stream may
+   * not have noticed yet. Waits for it to give up, so the sink only has one of each blob open.
+   */
+  private void beginReceiving(long id) throws IOException {
+    synchronized (lock) {
+      while (receiving.contains(id)) {
+        if (closed) {
+          throw new IOException("Closed");
+        }
+
+        try {
+          lock.wait(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      receiving.add(id);
+    }
+  }
+
+  private void endReceiving(long id) {
+    synchronized (lock) {
+      receiving.remove(id);
+      lock.notifyAll();
+    }
+  }
+
+  private @Nullable OutputStream openQuietly(long id, long length) {
+    try {
+      return sink.open(id, length);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to open blob " + id, e);
+      return null;
+    }
+  }
+
+  private void abandon(long id, @Nullable OutputStream output) {
+    if (output != null) {
+      StreamUtil.close(output);
+      sink.onAbandoned(id);
+    }
+  }
+
+  private void onStreamChanged(int delta) {
+    synchronized (lock) {
+      openStreams += delta;
+      lastActivity = System.currentTimeMillis();
+      lock.notifyAll();
+    }
+  }
+
+  private void onDone() {
+    synchronized (lock) {
+      done = true;
+      lock.notifyAll();
+    }
+  }
+}
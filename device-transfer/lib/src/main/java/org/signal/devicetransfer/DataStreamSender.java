@@ -0,0 +1,472 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends queued {@link TransferBlob}s over several data streams at once, each with its own thread
+ * reading and writing blobs and another reading the acks. Blobs are pipelined, so a stream doesn't
+ * wait for one blob's ack before sending the next. See {@link DataStreamProtocol} for the frames.
+ * <p>
+ * A lost data stream is reconnected, and the blobs it hadn't had acked yet are queued again, unless
+ * the receiver reports it already has them. A blob is only retried a few times before it's dropped,
+ * the same as an attachment that can't be read during a backup.
+ */
+final class DataStreamSender implements BlobSender {
+
+  private static final String TAG = Log.tag(DataStreamSender.class);
+
+  private static final int  MAX_BLOB_ATTEMPTS      = 3;
+  private static final int  MAX_FAILED_CONNECTIONS = 3;
+  private static final long RECONNECT_DELAY        = TimeUnit.SECONDS.toMillis(1);
+  private static final long CLOSE_TIMEOUT          = TimeUnit.SECONDS.toMillis(5);
+
+  private final Connector           connector;
+  private final byte[]              token;
+  private final int                 streamCount;
+  private final Object              lock;
+  private final ArrayDeque<Pending> queue;
+  private final Set<Long>           alreadyReceived;
+  private final List<Connection>    connections;
+
+  private int     outstanding;
+  private int     liveStreams;
+  private boolean finishing;
+  private boolean closed;
+  private long    blobsSent;
+  private long    blobsSkipped;
+  private long    blobsFailed;
+  private long    bytesSent;
+
+  DataStreamSender(@NonNull Connector connector, @NonNull byte[] token, int streamCount) {
+    if (streamCount < 1) {
+      throw new IllegalArgumentException("streamCount: " + streamCount);
+    }
+
+    this.connector       = connector;
+    this.token           = token;
+    this.streamCount     = streamCount;
+    this.lock            = new Object();
+    this.queue           = new ArrayDeque<>();
+    this.alreadyReceived = new HashSet<>();
+    this.connections     = new ArrayList<>();
+  }
+
+  void start() {
+    synchronized (lock) {
+      liveStreams = streamCount;
+    }
+
+    for (int i = 0; i < streamCount; i++) {
+      new Thread(this::runStream, "DataStreamSender-" + i).start();
+    }
+  }
+
+  @Override
+  public void send(@NonNull TransferBlob blob) throws IOException {
+    synchronized (lock) {
+      throwIfUnusable();
+      queue.add(new Pending(blob));
+      outstanding++;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Blocks until every queued blob has been acked, rejected, or dropped, then tells the receiver
+   * it's done on every data stream and closes them.
+   */
+  void finish() throws IOException {
+    synchronized (lock) {
+      while (outstanding > 0) {
+        throwIfUnusable();
+        waitOnLock();
+      }
+
+      finishing = true;
+      lock.notifyAll();
+
+      while (liveStreams > 0) {
+        if (closed) {
+          throw new IOException("Closed");
+        }
+        waitOnLock();
+      }
+
+      Log.i(TAG, "Sent " + blobsSent + " blobs (" + bytesSent + " bytes), skipped " + blobsSkipped + ", failed " + blobsFailed);
+    }
+  }
+
+  @AnyThread
+  void close() {
+    synchronized (lock) {
+      closed = true;
+
+      for (Connection connection : connections) {
+        StreamUtil.close(connection.socket);
+      }
+
+      lock.notifyAll();
+    }
+  }
+
+  long getBytesSent() {
+    synchronized (lock) {
+      return bytesSent;
+    }
+  }
+
+  long getBlobsSent() {
+    synchronized (lock) {
+      return blobsSent;
+    }
+  }
+
+  long getBlobsSkipped() {
+    synchronized (lock) {
+      return blobsSkipped;
+    }
+  }
+
+  private void throwIfUnusable() throws IOException {
+    if (closed) {
+      throw new IOException("Closed");
+    }
+
+    if (liveStreams == 0) {
+      throw new IOException("No data streams left");
+    }
+  }
+
+  private void waitOnLock() throws IOException {
+    try {
+      lock.wait();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void runStream() {
+    byte[] buffer            = new byte[DataStreamProtocol.CHUNK_SIZE];
+    int    failedConnections = 0;
+
+    try {
+      while (failedConnections < MAX_FAILED_CONNECTIONS) {
+        Connection connection = null;
+
+        try {
+          connection = connect();
+          sendUntilDone(connection, buffer);
+          return;
+        } catch (IOException e) {
+          synchronized (lock) {
+            if (closed) {
+              return;
+            }
+          }
+          Log.w(TAG, "Data stream failed", e);
+        } finally {
+          if (connection != null) {
+            disconnect(connection);
+          }
+        }
+
+        if (connection == null || !connection.madeProgress) {
+          failedConnections++;
+        } else {
+          failedConnections = 1;
+        }
+
+        ThreadUtil.interruptableSleep(RECONNECT_DELAY);
+      }
+
+      Log.w(TAG, "Giving up on data stream after " + failedConnections + " failed connections");
+    } finally {
+      synchronized (lock) {
+        liveStreams--;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private @NonNull Connection connect() throws IOException {
+    Socket socket = connector.connect();
+
+    Connection connection = new Connection(socket);
+
+    synchronized (lock) {
+      if (closed) {
+        StreamUtil.close(socket);
+        throw new IOException("Closed");
+      }
+      connections.add(connection);
+    }
+
+    connection.out.write(token);
+    connection.out.flush();
+
+    int        count    = connection.in.readInt();
+    List<Long> received = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      received.add(connection.in.readLong());
+    }
+
+    synchronized (lock) {
+      alreadyReceived.addAll(received);
+    }
+
+    new Thread(() -> readResponses(connection), "DataStreamSenderAcks").start();
+
+    return connection;
+  }
+
+  /**
+   * Returns once the receiver has been told everything is done.
+   */
+  private void sendUntilDone(@NonNull Connection connection, @NonNull byte[] buffer) throws IOException {
+    while (true) {
+      Pending pending = nextPending(connection);
+
+      if (pending == null) {
+        connection.out.writeByte(DataStreamProtocol.DONE);
+        connection.out.flush();
+        connection.socket.shutdownOutput();
+        connection.awaitResponses();
+        return;
+      }
+
+      writeBlob(connection, pending, buffer);
+    }
+  }
+
+  /**
+   * @return The next blob to send, or null if everything has been sent and the sender is finishing.
+   */
+  private @Nullable Pending nextPending(@NonNull Connection connection) throws IOException {
+    synchronized (lock) {
+      while (true) {
+        if (closed) {
+          throw new IOException("Closed");
+        }
+
+        if (connection.broken) {
+          throw new IOException("Lost the response stream");
+        }
+
+        Pending pending = queue.poll();
+
+        while (pending != null && alreadyReceived.contains(pending.blob.getId())) {
+          blobsSkipped++;
+          outstanding--;
+          lock.notifyAll();
+          pending = queue.poll();
+        }
+
+        if (pending != null) {
+          pending.attempts++;
+          connection.unacked.add(pending);
+          return pending;
+        }
+
+        if (finishing) {
+          return null;
+        }
+
+        waitOnLock();
+      }
+    }
+  }
+
+  private void writeBlob(@NonNull Connection connection, @NonNull Pending pending, @NonNull byte[] buffer) throws IOException {
+    DataOutputStream out    = connection.out;
+    TransferBlob     blob   = pending.blob;
+    InputStream      input  = openQuietly(blob);
+    long             remain = blob.getLength();
+
+    out.writeByte(DataStreamProtocol.BLOB);
+    out.writeLong(blob.getId());
+    out.writeLong(blob.getLength());
+
+    try {
+      while (remain > 0) {
+        int read = input != null ? readQuietly(blob, input, buffer, (int) Math.min(buffer.length, remain)) : -1;
+
+        if (read == -1) {
+          out.writeInt(DataStreamProtocol.ABORT_BLOB);
+          out.flush();
+          return;
+        }
+
+        out.writeInt(read);
+        out.write(buffer, 0, read);
+        remain -= read;
+      }
+
+      out.writeInt(DataStreamProtocol.END_OF_BLOB);
+      out.flush();
+    } finally {
+      StreamUtil.close(input);
+    }
+  }
+
+  private static @Nullable InputStream openQuietly(@NonNull TransferBlob blob) {
+    try {
+      return blob.open();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to open blob " + blob.getId(), e);
+      return null;
+    }
+  }
+
+  /**
+   * @return Bytes read, or -1 if the blob ended early or couldn't be read.
+   */
+  private static int readQuietly(@NonNull TransferBlob blob, @NonNull InputStream input, @NonNull byte[] buffer, int length) {
+    try {
+      return input.read(buffer, 0, length);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read blob " + blob.getId(), e);
+      return -1;
+    }
+  }
+
+  private void readResponses(@NonNull Connection connection) {
+    try {
+      while (true) {
+        int type = connection.in.read();
+
+        if (type == -1) {
+          break;
+        }
+
+        long id = connection.in.readLong();
+
+        synchronized (lock) {
+          if (connection.broken) {
+            return;
+          }
+
+          Pending pending = connection.unacked.poll();
+
+          if (pending == null || pending.blob.getId() != id) {
+            throw new IOException("Unexpected response for blob " + id);
+          }
+
+          if (type == DataStreamProtocol.ACK) {
+            blobsSent++;
+            bytesSent += pending.blob.getLength();
+          } else {
+            Log.w(TAG, "Receiver rejected blob " + id);
+            blobsFailed++;
+          }
+
+          outstanding--;
+          connection.madeProgress = true;
+          lock.notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Response stream failed", e);
+    } finally {
+      synchronized (lock) {
+        connection.broken = true;
+        lock.notifyAll();
+      }
+      connection.responsesFinished = true;
+    }
+  }
+
+  /**
+   * Closes the connection, and queues again anything sent on it that wasn't acked.
+   */
+  private void disconnect(@NonNull Connection connection) {
+    StreamUtil.close(connection.socket);
+
+    synchronized (lock) {
+      connection.broken = true;
+      connections.remove(connection);
+
+      List<Pending> unacked = new ArrayList<>(connection.unacked);
+      connection.unacked.clear();
+      Collections.reverse(unacked);
+
+      for (Pending pending : unacked) {
+        if (pending.attempts >= MAX_BLOB_ATTEMPTS) {
+          Log.w(TAG, "Dropping blob " + pending.blob.getId() + " after " + pending.attempts + " attempts");
+          blobsFailed++;
+          outstanding--;
+        } else {
+          queue.addFirst(pending);
+        }
+      }
+
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Opens a socket to the receiver's data stream server.
+   */
+  interface Connector {
+    @NonNull Socket connect() throws IOException;
+  }
+
+  private static final class Pending {
+    private final TransferBlob blob;
+    private       int          attempts;
+
+    private Pending(@NonNull TransferBlob blob) {
+      this.blob = blob;
+    }
+  }
+
+  private static final class Connection {
+    private final Socket              socket;
+    private final DataInputStream     in;
+    private final DataOutputStream    out;
+    private final ArrayDeque<Pending> unacked;
+
+    private          boolean broken;
+    private          boolean madeProgress;
+    private volatile boolean responsesFinished;
+
+    private Connection(@NonNull Socket socket) throws IOException {
+      this.socket  = socket;
+      this.in      = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out     = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), DataStreamProtocol.CHUNK_SIZE + 16));
+      this.unacked = new ArrayDeque<>();
+    }
+
+    /**
+     * Waits for the receiver to close its side, so nothing it sent is left unread when we close ours.
+     */
+    private void awaitResponses() {
+      long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+      while (!responsesFinished && System.currentTimeMillis() < deadline) {
+        ThreadUtil.sleep(10);
+      }
+    }
+  }
+}
@@ -10,10 +10,13 @@ import org.signal.core.util.StreamUtil;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +27,9 @@ import javax.net.ssl.SSLSocket;
  * Performs the networking setup/tear down for the client. This includes
  * connecting to the server, performing the TLS/SAS verification, running an
  * arbitrarily provided {@link ClientTask}, and then cleaning up.
+ * <p>
+ * If both the client and server tasks are parallel, the task can also send blobs over separate
+ * data streams, which this opens alongside the connection, see {@link DataStreamProtocol}.
  */
 final class NetworkClientThread extends Thread {
 
@@ -34,9 +40,10 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private volatile SSLSocket        client;
+  private volatile DataStreamSender dataStreamSender;
+  private volatile boolean          isRunning;
+  private volatile Boolean          isVerified;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -92,7 +99,8 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          boolean parallel = clientTask instanceof ParallelClientTask;
+          outputStream.write(parallel ? DataStreamProtocol.VERIFIED_PARALLEL : DataStreamProtocol.VERIFIED);
           outputStream.flush();
           try {
             int result = inputStream.read();
@@ -100,13 +108,18 @@ final class NetworkClientThread extends Thread {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
             }
+            parallel &= result == DataStreamProtocol.VERIFIED_PARALLEL;
           } catch (IOException e) {
             Log.w(TAG, "Something happened waiting for server to verify", e);
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
+          if (parallel) {
+            runParallelTask((ParallelClientTask) clientTask, x509.getEncoded(), inputStream, outputStream);
+          } else {
+            clientTask.run(context, outputStream);
+          }
           outputStream.flush();
 
           Log.d(TAG, "Waiting for server to tell us they got everything");
@@ -143,6 +156,58 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  private void runParallelTask(@NonNull ParallelClientTask task,
+                               @NonNull byte[] certificate,
+                               @NonNull InputStream inputStream,
+                               @NonNull OutputStream outputStream)
+      throws IOException
+  {
+    DataInputStream control = new DataInputStream(inputStream);
+    int             port    = control.readInt();
+    byte[]          token   = new byte[DataStreamProtocol.TOKEN_LENGTH];
+    control.readFully(token);
+
+    int              streamCount = Math.max(1, task.getDataStreamCount());
+    DataStreamSender sender      = new DataStreamSender(() -> connectDataStream(port, certificate), token, streamCount);
+
+    Log.i(TAG, "Opening " + streamCount + " data streams to " + port);
+    dataStreamSender = sender;
+    try {
+      sender.start();
+      task.run(context, outputStream, sender);
+      outputStream.flush();
+      sender.finish();
+    } finally {
+      sender.close();
+      dataStreamSender = null;
+    }
+  }
+
+  /**
+   * Data streams skip the SAS, so they must be to the same server the user verified.
+   */
+  private @NonNull SSLSocket connectDataStream(int port, @NonNull byte[] certificate) throws IOException {
+    SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+    SSLSocket                                socket       = null;
+    try {
+      socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+      socket.connect(new InetSocketAddress(serverHostAddress, port), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !MessageDigest.isEqual(certificate, x509.getEncoded())) {
+        throw new SSLHandshakeException("data stream certificate doesn't match");
+      }
+      return socket;
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      throw e;
+    } catch (GeneralSecurityException e) {
+      StreamUtil.close(socket);
+      throw new IOException(e);
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -169,6 +234,10 @@ final class NetworkClientThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+    DataStreamSender sender = dataStreamSender;
+    if (sender != null) {
+      sender.close();
+    }
     StreamUtil.close(client);
     interrupt();
   }
@@ -9,17 +9,22 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
  * connecting to the client, generating TLS keys, performing the TLS/SAS verification,
  * running an arbitrarily provided {@link ServerTask}, and then cleaning up.
+ * <p>
+ * If both the server and client tasks are parallel, the task also gets blobs over separate data
+ * streams, which this serves alongside the connection, see {@link DataStreamProtocol}.
  */
 final class NetworkServerThread extends Thread {
 
@@ -31,10 +36,11 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
-  private volatile ServerSocket serverSocket;
-  private volatile Socket       clientSocket;
-  private volatile boolean      isRunning;
-  private volatile Boolean      isVerified;
+  private volatile ServerSocket       serverSocket;
+  private volatile Socket             clientSocket;
+  private volatile DataStreamReceiver dataStreamReceiver;
+  private volatile boolean            isRunning;
+  private volatile Boolean            isVerified;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
@@ -81,7 +87,8 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          boolean parallel = serverTask instanceof ParallelServerTask;
+          outputStream.write(parallel ? DataStreamProtocol.VERIFIED_PARALLEL : DataStreamProtocol.VERIFIED);
           outputStream.flush();
           try {
             int result = inputStream.read();
@@ -89,13 +96,18 @@ final class NetworkServerThread extends Thread {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
             }
+            parallel &= result == DataStreamProtocol.VERIFIED_PARALLEL;
           } catch (IOException e) {
             Log.w(TAG, "Something happened waiting for client to verify", e);
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
+          if (parallel) {
+            runParallelTask((ParallelServerTask) serverTask, inputStream, outputStream);
+          } else {
+            serverTask.run(context, inputStream);
+          }
 
           outputStream.write(0x53);
           outputStream.flush();
@@ -121,6 +133,33 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  private void runParallelTask(@NonNull ParallelServerTask task, @NonNull InputStream inputStream, @NonNull OutputStream outputStream) throws IOException {
+    byte[]             token    = DataStreamProtocol.generateToken();
+    DataStreamReceiver receiver = new DataStreamReceiver(task.getBlobSink(context), token);
+
+    dataStreamReceiver = receiver;
+    try {
+      ServerSocket dataServerSocket;
+      try {
+        dataServerSocket = SelfSignedIdentity.getServerSocketFactory(keys).createServerSocket(0);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      receiver.listen(dataServerSocket);
+
+      Log.i(TAG, "Serving data streams on " + dataServerSocket.getLocalPort());
+      DataOutputStream control = new DataOutputStream(outputStream);
+      control.writeInt(dataServerSocket.getLocalPort());
+      control.write(token);
+      control.flush();
+
+      task.run(context, inputStream, receiver);
+    } finally {
+      receiver.close();
+      dataStreamReceiver = null;
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -160,6 +199,10 @@ final class NetworkServerThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+    DataStreamReceiver receiver = dataStreamReceiver;
+    if (receiver != null) {
+      receiver.close();
+    }
     StreamUtil.close(clientSocket);
     StreamUtil.close(serverSocket);
     interrupt();
@@ -0,0 +1,28 @@
+package org.signal.devicetransfer;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link ClientTask} that can send blobs over several data streams alongside its control stream.
+ * Only used when the server's task is a {@link ParallelServerTask}, otherwise
+ * {@link ClientTask#run(Context, OutputStream)} is called as before.
+ */
+public interface ParallelClientTask extends ClientTask {
+
+  /**
+   * @return How many data streams to open alongside the control stream.
+   */
+  int getDataStreamCount();
+
+  /**
+   * @param outputStream Control stream, carrying whatever isn't sent as a blob.
+   * @param blobSender   Queues blobs on the data streams. Everything queued will have been received
+   *                     before the transfer is considered a success.
+   */
+  void run(@NonNull Context context, @NonNull OutputStream outputStream, @NonNull BlobSender blobSender) throws IOException;
+}
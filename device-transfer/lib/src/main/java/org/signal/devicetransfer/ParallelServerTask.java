@@ -0,0 +1,29 @@
+package org.signal.devicetransfer;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link ServerTask} that can receive blobs over several data streams alongside its control
+ * stream. Only used when the client's task is a {@link ParallelClientTask}, otherwise
+ * {@link ServerTask#run(Context, InputStream)} is called as before.
+ */
+public interface ParallelServerTask extends ServerTask {
+
+  /**
+   * @return Where received blobs go. Should be the same sink for every connection made to the
+   *         server, so that blobs completed before a disconnect aren't sent again.
+   */
+  @NonNull BlobSink getBlobSink(@NonNull Context context);
+
+  /**
+   * @param inputStream  Control stream, carrying whatever isn't sent as a blob.
+   * @param blobReceiver Blobs arrive at the {@link BlobSink} while this runs, call
+   *                     {@link BlobReceiver#awaitCompletion()} to wait for the rest.
+   */
+  void run(@NonNull Context context, @NonNull InputStream inputStream, @NonNull BlobReceiver blobReceiver) throws IOException;
+}
@@ -0,0 +1,26 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A single piece of data, like an attachment, sent over one of the data streams of a parallel
+ * transfer rather than the control stream.
+ */
+public interface TransferBlob {
+
+  /**
+   * @return Identifies the blob to the receiving {@link BlobSink}. Must be the same across
+   *         reconnects for a resumed transfer to skip what was already received.
+   */
+  long getId();
+
+  long getLength();
+
+  /**
+   * Called on the data stream's thread, so expensive work like decrypting happens in parallel.
+   */
+  @NonNull InputStream open() throws IOException;
+}
@@ -0,0 +1,426 @@
+package org.signal.devicetransfer;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.AndroidLogger;
+import org.signal.core.util.logging.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs parallel transfers over plain sockets on localhost.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class DataStreamTransferTest {
+
+  private static final String TAG = Log.tag(DataStreamTransferTest.class);
+
+  private final List<Socket> clientSockets = Collections.synchronizedList(new ArrayList<>());
+
+  private byte[]             token;
+  private ServerSocket       serverSocket;
+  private DataStreamReceiver receiver;
+  private DataStreamSender   sender;
+
+  @Before
+  public void setUp() {
+    token = DataStreamProtocol.generateToken();
+  }
+
+  @After
+  public void tearDown() {
+    if (sender != null)   sender.close();
+    if (receiver != null) receiver.close();
+  }
+
+  @Test
+  public void transfer_allBlobsArriveIntact() throws IOException {
+    MemorySink     sink  = new MemorySink();
+    List<TestBlob> blobs = createBlobs(200, 256 * 1024);
+
+    transfer(sink, blobs, 4, token);
+
+    assertEquals(blobs.size(), sender.getBlobsSent());
+    for (TestBlob blob : blobs) {
+      assertArrayEquals(blob.data, sink.getCompletedData(blob.id));
+    }
+  }
+
+  @Test
+  public void transfer_emptyBlobs() throws IOException {
+    MemorySink     sink  = new MemorySink();
+    List<TestBlob> blobs = Arrays.asList(new TestBlob(1, new byte[0]), new TestBlob(2, new byte[] { 42 }));
+
+    transfer(sink, blobs, 2, token);
+
+    assertArrayEquals(new byte[0], sink.getCompletedData(1));
+    assertArrayEquals(new byte[] { 42 }, sink.getCompletedData(2));
+  }
+
+  @Test
+  public void transfer_resendsWhatWasInFlightWhenADataStreamDrops() throws IOException {
+    List<TestBlob> blobs = createBlobs(100, 128 * 1024);
+    AtomicInteger  drops = new AtomicInteger();
+    MemorySink     sink  = new MemorySink() {
+      @Override
+      public void onComplete(long id) {
+        super.onComplete(id);
+        if (getCompleted().size() % 25 == 0) {
+          drops.incrementAndGet();
+          closeAClientSocket();
+        }
+      }
+    };
+
+    transfer(sink, blobs, 3, token);
+
+    assertTrue(drops.get() > 0);
+    assertEquals(blobs.size(), sink.getCompleted().size());
+    for (TestBlob blob : blobs) {
+      assertArrayEquals(blob.data, sink.getCompletedData(blob.id));
+    }
+  }
+
+  @Test
+  public void transfer_skipsBlobsCompletedBeforeAReconnect() throws IOException {
+    List<TestBlob> blobs = createBlobs(50, 16 * 1024);
+    MemorySink     sink  = new MemorySink();
+
+    for (int i = 0; i < 20; i++) {
+      sink.markCompleted(blobs.get(i).id);
+    }
+
+    transfer(sink, blobs, 2, token);
+
+    assertEquals(20, sender.getBlobsSkipped());
+    assertEquals(30, sender.getBlobsSent());
+    assertEquals(30, sink.getOpened());
+  }
+
+  @Test
+  public void transfer_unreadableBlobIsRejected_andOthersStillArrive() throws IOException {
+    MemorySink         sink  = new MemorySink();
+    List<TransferBlob> blobs = new ArrayList<>(createBlobs(10, 8 * 1024));
+
+    blobs.add(new TransferBlob() {
+      @Override
+      public long getId() {
+        return 1000;
+      }
+
+      @Override
+      public long getLength() {
+        return 1024;
+      }
+
+      @Override
+      public @NonNull InputStream open() {
+        return new ByteArrayInputStream(new byte[10]);
+      }
+    });
+
+    transfer(sink, blobs, 2, token);
+
+    assertEquals(10, sender.getBlobsSent());
+    assertFalse(sink.getCompleted().contains(1000L));
+    assertTrue(sink.abandoned.contains(1000L));
+  }
+
+  @Test
+  public void transfer_wrongToken_fails() throws IOException {
+    MemorySink sink = new MemorySink();
+
+    startReceiver(sink, token);
+
+    sender = new DataStreamSender(this::connect, DataStreamProtocol.generateToken(), 1);
+    sender.start();
+
+    try {
+      sender.send(createBlobs(1, 10).get(0));
+      sender.finish();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertEquals(0, sink.getOpened());
+  }
+
+  /**
+   * Moves the same blobs over different numbers of data streams and logs the throughput. Each blob
+   * is decrypted as it's read and encrypted as it's written, like attachments are on both devices.
+   * Ignored by default, remove the annotation to run it.
+   */
+  @Ignore("Benchmark")
+  @Test
+  public void throughput() throws IOException {
+    Log.initialize(new AndroidLogger());
+
+    int   blobCount = 32;
+    int   blobSize  = 1024 * 1024;
+    int[] streams   = { 1, 2, 4, 8 };
+
+    for (int streamCount : streams) {
+      List<TransferBlob> blobs = new ArrayList<>(blobCount);
+      for (int i = 0; i < blobCount; i++) {
+        blobs.add(new EncryptedBlob(i, blobSize));
+      }
+
+      EncryptingSink sink  = new EncryptingSink();
+      long           start = System.nanoTime();
+
+      transfer(sink, blobs, streamCount, token);
+
+      double seconds   = (System.nanoTime() - start) / 1_000_000_000d;
+      double megabytes = sender.getBytesSent() / (1024d * 1024d);
+
+      assertEquals(blobCount, sink.getCompleted().size());
+      Log.i(TAG, String.format(Locale.US, "%d streams: %.0f MB in %.2f s (%.1f MB/s)", streamCount, megabytes, seconds, megabytes / seconds));
+
+      sender.close();
+      receiver.close();
+    }
+  }
+
+  private void transfer(@NonNull BlobSink sink, @NonNull List<? extends TransferBlob> blobs, int streamCount, @NonNull byte[] token) throws IOException {
+    startReceiver(sink, token);
+
+    sender = new DataStreamSender(this::connect, token, streamCount);
+    sender.start();
+
+    for (TransferBlob blob : blobs) {
+      sender.send(blob);
+    }
+
+    sender.finish();
+    receiver.awaitCompletion();
+  }
+
+  private void startReceiver(@NonNull BlobSink sink, @NonNull byte[] token) throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    receiver     = new DataStreamReceiver(sink, token);
+    receiver.listen(serverSocket);
+  }
+
+  private @NonNull Socket connect() throws IOException {
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+    clientSockets.add(socket);
+    return socket;
+  }
+
+  private void closeAClientSocket() {
+    synchronized (clientSockets) {
+      for (Socket socket : clientSockets) {
+        if (!socket.isClosed()) {
+          try {
+            socket.close();
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  private static @NonNull List<TestBlob> createBlobs(int count, int maxSize) {
+    Random         random = new Random(count);
+    List<TestBlob> blobs  = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      byte[] data = new byte[1 + random.nextInt(maxSize)];
+      random.nextBytes(data);
+      blobs.add(new TestBlob(i, data));
+    }
+
+    return blobs;
+  }
+
+  private static @NonNull Cipher newCipher(int mode) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(mode, new SecretKeySpec(new byte[32], "AES"), new IvParameterSpec(new byte[16]));
+      return cipher;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class TestBlob implements TransferBlob {
+    private final long   id;
+    private final byte[] data;
+
+    private TestBlob(long id, @NonNull byte[] data) {
+      this.id   = id;
+      this.data = data;
+    }
+
+    @Override
+    public long getId() {
+      return id;
+    }
+
+    @Override
+    public long getLength() {
+      return data.length;
+    }
+
+    @Override
+    public @NonNull InputStream open() {
+      return new ByteArrayInputStream(data);
+    }
+  }
+
+  private static final class EncryptedBlob implements TransferBlob {
+    private final long id;
+    private final int  length;
+
+    private EncryptedBlob(long id, int length) {
+      this.id     = id;
+      this.length = length;
+    }
+
+    @Override
+    public long getId() {
+      return id;
+    }
+
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public @NonNull InputStream open() {
+      return new CipherInputStream(new ByteArrayInputStream(new byte[length]), newCipher(Cipher.DECRYPT_MODE));
+    }
+  }
+
+  private static class MemorySink implements BlobSink {
+    private final Map<Long, ByteArrayOutputStream> open      = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]>                completed = new ConcurrentHashMap<>();
+    private final Set<Long>                        abandoned = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger                    opened    = new AtomicInteger();
+
+    void markCompleted(long id) {
+      completed.put(id, new byte[0]);
+    }
+
+    byte[] getCompletedData(long id) {
+      return completed.get(id);
+    }
+
+    int getOpened() {
+      return opened.get();
+    }
+
+    @Override
+    public @NonNull OutputStream open(long id, long length) {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      open.put(id, stream);
+      opened.incrementAndGet();
+      return stream;
+    }
+
+    @Override
+    public void onComplete(long id) {
+      completed.put(id, open.remove(id).toByteArray());
+    }
+
+    @Override
+    public void onAbandoned(long id) {
+      open.remove(id);
+      abandoned.add(id);
+    }
+
+    @Override
+    public @NonNull Set<Long> getCompleted() {
+      return new HashSet<>(completed.keySet());
+    }
+  }
+
+  private static final class EncryptingSink implements BlobSink {
+    private final Set<Long> completed = Collections.synchronizedSet(new HashSet<>());
+
+    @Override
+    public @NonNull OutputStream open(long id, long length) {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+
+      return new CipherOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+          digest.update((byte) b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+          digest.update(b, off, len);
+        }
+      }, newCipher(Cipher.ENCRYPT_MODE));
+    }
+
+    @Override
+    public void onComplete(long id) {
+      completed.add(id);
+    }
+
+    @Override
+    public void onAbandoned(long id) { }
+
+    @Override
+    public @NonNull Set<Long> getCompleted() {
+      synchronized (completed) {
+        return new HashSet<>(completed);
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package org.whispersystems.signalservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.GroupSendStats;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+import org.whispersystems.signalservice.internal.push.http.CancelationSignal;
+import org.whispersystems.signalservice.internal.util.Histogram;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sends the same message to many recipients, one attempt at a time.
+ *
+ * Attempts are spread across two lanes, one for identified sends and one for unidentified sends,
+ * matching the two websockets they go out on (with the REST fallback sharing its websocket's lane).
+ * Each lane has a bounded number of attempts in flight, so a large group can't flood a connection
+ * or starve the executor.
+ *
+ * When an attempt needs to be retried, only that recipient goes back in the queue. A recipient that
+ * runs out of attempts is reported as a network failure rather than failing the whole send.
+ */
+final class GroupSendEngine {
+
+  private static final String TAG = GroupSendEngine.class.getSimpleName();
+
+  private static final int IDENTIFIED   = 0;
+  private static final int UNIDENTIFIED = 1;
+
+  private final Executor executor;
+  private final int      maxInFlightPerLane;
+  private final int      maxAttempts;
+
+  GroupSendEngine(Executor executor, int maxInFlightPerLane, int maxAttempts) {
+    if (maxInFlightPerLane < 1 || maxAttempts < 1) {
+      throw new IllegalArgumentException();
+    }
+
+    this.executor           = executor;
+    this.maxInFlightPerLane = maxInFlightPerLane;
+    this.maxAttempts        = maxAttempts;
+  }
+
+  /**
+   * @return A result for each recipient, in the same order as the recipients.
+   */
+  Result send(List<SignalServiceAddress>         recipients,
+              List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+              RecipientSender                    sender,
+              CancelationSignal                  cancelationSignal)
+      throws IOException
+  {
+    long                      startTime   = System.currentTimeMillis();
+    SendMessageResult[]       results     = new SendMessageResult[recipients.size()];
+    BlockingQueue<Attempt>    completions = new LinkedBlockingQueue<>();
+    List<ArrayDeque<Attempt>> pending     = Arrays.asList(new ArrayDeque<>(), new ArrayDeque<>());
+    int[]                     inFlight    = new int[2];
+    Histogram                 latencies   = new Histogram();
+    int                       remaining   = recipients.size();
+    int                       attempts    = 0;
+    int                       retries     = 0;
+
+    for (int i = 0; i < recipients.size(); i++) {
+      Attempt attempt = new Attempt(i, recipients.get(i), unidentifiedAccess.get(i));
+      pending.get(attempt.lane()).add(attempt);
+    }
+
+    while (remaining > 0) {
+      for (int lane = IDENTIFIED; lane <= UNIDENTIFIED; lane++) {
+        while (inFlight[lane] < maxInFlightPerLane && !pending.get(lane).isEmpty()) {
+          if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+            throw new CancelationException();
+          }
+
+          Attempt attempt = pending.get(lane).poll();
+
+          attempt.lane = lane;
+          attempt.attempts++;
+          attempts++;
+          inFlight[lane]++;
+
+          if (attempt.startTime == 0) {
+            attempt.startTime = System.currentTimeMillis();
+          }
+
+          executor.execute(() -> {
+            attempt.run(sender);
+            completions.add(attempt);
+          });
+        }
+      }
+
+      Attempt completed;
+
+      try {
+        completed = completions.take();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+
+      inFlight[completed.lane]--;
+
+      SendMessageResult result = completed.result;
+
+      if (completed.retry != null) {
+        if (completed.attempts < maxAttempts) {
+          completed.access = completed.retry.getUnidentifiedAccess();
+          completed.retry  = null;
+          retries++;
+          pending.get(completed.lane()).add(completed);
+          continue;
+        }
+
+        Log.w(TAG, "Failed to resolve conflicts after " + completed.attempts + " attempts!");
+        result = SendMessageResult.networkFailure(completed.recipient);
+      } else if (completed.error != null) {
+        result = handleError(completed.recipient, completed.error);
+      }
+
+      results[completed.index] = result;
+      latencies.record(System.currentTimeMillis() - completed.startTime);
+      remaining--;
+    }
+
+    List<SendMessageResult> resultList = new ArrayList<>(Arrays.asList(results));
+
+    return new Result(resultList, buildStats(resultList, attempts, retries, System.currentTimeMillis() - startTime, latencies));
+  }
+
+  private static SendMessageResult handleError(SignalServiceAddress recipient, Throwable error) throws IOException {
+    if (error instanceof UntrustedIdentityException) {
+      Log.w(TAG, error);
+      return SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) error).getIdentityKey());
+    } else if (error instanceof UnregisteredUserException) {
+      Log.w(TAG, "Found unregistered user.");
+      return SendMessageResult.unregisteredFailure(recipient);
+    } else if (error instanceof PushNetworkException) {
+      Log.w(TAG, error);
+      return SendMessageResult.networkFailure(recipient);
+    } else if (error instanceof ServerRejectedException) {
+      Log.w(TAG, error);
+      throw (ServerRejectedException) error;
+    } else if (error instanceof CancelationException) {
+      throw (CancelationException) error;
+    } else {
+      throw new IOException(error);
+    }
+  }
+
+  private static GroupSendStats buildStats(List<SendMessageResult> results, int attempts, int retries, long elapsed, Histogram latencies) {
+    int successes             = 0;
+    int unidentifiedSuccesses = 0;
+    int networkFailures       = 0;
+    int unregisteredFailures  = 0;
+    int identityFailures      = 0;
+
+    for (SendMessageResult result : results) {
+      if      (result.getSuccess() != null)          successes++;
+      else if (result.isNetworkFailure())            networkFailures++;
+      else if (result.isUnregisteredFailure())       unregisteredFailures++;
+      else if (result.getIdentityFailure() != null)  identityFailures++;
+
+      if (result.getSuccess() != null && result.getSuccess().isUnidentified()) {
+        unidentifiedSuccesses++;
+      }
+    }
+
+    return new GroupSendStats(results.size(),
+                              successes,
+                              unidentifiedSuccesses,
+                              networkFailures,
+                              unregisteredFailures,
+                              identityFailures,
+                              attempts,
+                              retries,
+                              elapsed,
+                              latencies.getPercentile(50),
+                              latencies.getPercentile(90),
+                              latencies.getMax());
+  }
+
+  /**
+   * Makes a single attempt to send to one recipient.
+   */
+  interface RecipientSender {
+    /**
+     * @param startTime When the first attempt for this recipient started, for the result's duration.
+     * @throws RetryException If the attempt should be repeated, after fixing whatever caused it to fail.
+     */
+    SendMessageResult send(SignalServiceAddress recipient, Optional<UnidentifiedAccess> unidentifiedAccess, long startTime)
+        throws IOException, UntrustedIdentityException, RetryException;
+  }
+
+  /**
+   * Thrown by a {@link RecipientSender} when an attempt failed in a way that another attempt can fix,
+   * like a device mismatch that has since been reconciled.
+   */
+  static final class RetryException extends Exception {
+
+    private final Optional<UnidentifiedAccess> unidentifiedAccess;
+
+    RetryException(Optional<UnidentifiedAccess> unidentifiedAccess) {
+      this.unidentifiedAccess = unidentifiedAccess;
+    }
+
+    /**
+     * @return The access to use for the next attempt, which may have been dropped.
+     */
+    Optional<UnidentifiedAccess> getUnidentifiedAccess() {
+      return unidentifiedAccess;
+    }
+  }
+
+  static final class Result {
+
+    private final List<SendMessageResult> results;
+    private final GroupSendStats          stats;
+
+    private Result(List<SendMessageResult> results, GroupSendStats stats) {
+      this.results = results;
+      this.stats   = stats;
+    }
+
+    List<SendMessageResult> getResults() {
+      return results;
+    }
+
+    GroupSendStats getStats() {
+      return stats;
+    }
+  }
+
+  private static final class Attempt {
+
+    private final int                  index;
+    private final SignalServiceAddress recipient;
+
+    private Optional<UnidentifiedAccess> access;
+    private int                          lane;
+    private int                          attempts;
+    private long                         startTime;
+
+    // Written on the executor and read after being taken from the completion queue
+    private SendMessageResult result;
+    private RetryException    retry;
+    private Throwable         error;
+
+    private Attempt(int index, SignalServiceAddress recipient, Optional<UnidentifiedAccess> access) {
+      this.index     = index;
+      this.recipient = recipient;
+      this.access    = access;
+    }
+
+    private int lane() {
+      return access.isPresent() ? UNIDENTIFIED : IDENTIFIED;
+    }
+
+    private void run(RecipientSender sender) {
+      try {
+        result = sender.send(recipient, access, startTime);
+      } catch (RetryException e) {
+        retry = e;
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+  }
+}
@@ -43,8 +43,12 @@ import org.whispersystems.util.Base64;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -69,6 +73,12 @@ public class SignalServiceMessagePipe {
   private final Optional<CredentialsProvider> credentialsProvider;
   private final ClientZkProfileOperations     clientZkProfile;
 
+  /**
+   * A request that was read ahead while building a batch but belongs after it. Only touched by the
+   * thread reading messages.
+   */
+  private WebSocketRequestMessage pendingRequest;
+
   SignalServiceMessagePipe(WebSocketConnection websocket,
                            Optional<CredentialsProvider> credentialsProvider,
                            ClientZkProfileOperations clientZkProfile)
@@ -146,22 +156,11 @@ public class SignalServiceMessagePipe {
     }
 
     while (true) {
-      WebSocketRequestMessage  request  = websocket.readRequest(unit.toMillis(timeout));
+      WebSocketRequestMessage  request  = nextRequest(unit.toMillis(timeout));
       WebSocketResponseMessage response = createWebSocketResponse(request);
       try {
         if (isSignalServiceEnvelope(request)) {
-          Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
-          long             timestamp       = 0;
-
-          if (timestampHeader.isPresent()) {
-            try {
-              timestamp = Long.parseLong(timestampHeader.get());
-            } catch (NumberFormatException e) {
-              Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
-            }
-          }
-
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+          SignalServiceEnvelope envelope = createEnvelope(request);
 
           callback.onMessage(envelope);
           return Optional.of(envelope);
@@ -174,6 +173,132 @@ public class SignalServiceMessagePipe {
     }
   }
 
+  /**
+   * Similar to {@link #readOrEmpty(long, TimeUnit, MessagePipeCallback)}, except that once a message
+   * arrives, any others that are already waiting are read along with it, up to maxBatchSize. The
+   * callback is given the whole batch, and the batch is only acknowledged once it returns, so
+   * persisting a batch costs one write and one round of acks rather than one per message.
+   *
+   * A bad message can't hold up the queue:
+   * <ul>
+   *   <li>A message that can't be parsed is acknowledged and skipped.</li>
+   *   <li>If the callback throws an {@link IOException}, the batch wasn't persisted. Nothing left in
+   *       it is acknowledged, the exception is rethrown, and the server will send it again.</li>
+   *   <li>If the callback throws a {@link PartialBatchException}, the messages it doesn't list were
+   *       persisted and are acknowledged. The ones it does list are retried as below, so nothing is
+   *       persisted twice.</li>
+   *   <li>If the callback throws anything else, the batch is handed to it again one message at a
+   *       time. A message whose callback still throws counts as handled and is acknowledged, the
+   *       same as in {@link #readOrEmpty(long, TimeUnit, MessagePipeCallback)}.</li>
+   * </ul>
+   *
+   * @return The messages read, or an empty list when an empty response is hit, which indicates the
+   *         websocket is empty (see {@link #readOrEmpty(long, TimeUnit, MessagePipeCallback)}).
+   */
+  public List<SignalServiceEnvelope> readBatchOrEmpty(long timeout, TimeUnit unit, int maxBatchSize, MessageBatchCallback callback)
+      throws TimeoutException, IOException
+  {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    List<SignalServiceEnvelope>    envelopes = new ArrayList<>(maxBatchSize);
+    List<WebSocketResponseMessage> responses = new ArrayList<>(maxBatchSize);
+    WebSocketRequestMessage        request   = nextRequest(unit.toMillis(timeout));
+
+    while (request != null) {
+      if (isSignalServiceEnvelope(request)) {
+        try {
+          envelopes.add(createEnvelope(request));
+          responses.add(createWebSocketResponse(request));
+        } catch (IOException e) {
+          Log.w(TAG, "Skipping an envelope that could not be parsed.", e);
+          websocket.sendResponse(createWebSocketResponse(request));
+        }
+      } else if (isSocketEmptyRequest(request)) {
+        if (envelopes.isEmpty()) {
+          websocket.sendResponse(createWebSocketResponse(request));
+          return envelopes;
+        } else {
+          pendingRequest = request;
+          break;
+        }
+      } else {
+        websocket.sendResponse(createWebSocketResponse(request));
+      }
+
+      if (envelopes.size() >= maxBatchSize) {
+        break;
+      }
+
+      request = envelopes.isEmpty() ? nextRequest(unit.toMillis(timeout)) : websocket.pollRequest();
+    }
+
+    try {
+      callback.onMessages(envelopes);
+    } catch (PartialBatchException e) {
+      Log.w(TAG, "Only part of a batch of " + envelopes.size() + " was persisted. Retrying the other " + e.getUnpersisted().size() + " one at a time.", e);
+      retryUnpersisted(envelopes, responses, e.getUnpersisted(), callback);
+      return envelopes;
+    } catch (RuntimeException e) {
+      if (envelopes.size() > 1) {
+        Log.w(TAG, "Failed to process a batch of " + envelopes.size() + ". Retrying one at a time.", e);
+        processIndividually(envelopes, responses, callback);
+        return envelopes;
+      }
+
+      Log.w(TAG, "Failed to process an envelope. Acknowledging it anyway, so it doesn't hold up the queue.", e);
+    }
+
+    for (WebSocketResponseMessage response : responses) {
+      websocket.sendResponse(response);
+    }
+
+    return envelopes;
+  }
+
+  /**
+   * Acknowledges every envelope that was persisted, and hands the rest to the callback again one at a
+   * time.
+   */
+  private void retryUnpersisted(List<SignalServiceEnvelope> envelopes,
+                                List<WebSocketResponseMessage> responses,
+                                List<SignalServiceEnvelope> unpersisted,
+                                MessageBatchCallback callback)
+      throws IOException
+  {
+    Set<SignalServiceEnvelope> unpersistedSet = Collections.newSetFromMap(new IdentityHashMap<SignalServiceEnvelope, Boolean>());
+    unpersistedSet.addAll(unpersisted);
+
+    List<SignalServiceEnvelope>    retryEnvelopes = new ArrayList<>(unpersisted.size());
+    List<WebSocketResponseMessage> retryResponses = new ArrayList<>(unpersisted.size());
+
+    for (int i = 0; i < envelopes.size(); i++) {
+      if (unpersistedSet.contains(envelopes.get(i))) {
+        retryEnvelopes.add(envelopes.get(i));
+        retryResponses.add(responses.get(i));
+      } else {
+        websocket.sendResponse(responses.get(i));
+      }
+    }
+
+    processIndividually(retryEnvelopes, retryResponses, callback);
+  }
+
+  private void processIndividually(List<SignalServiceEnvelope> envelopes, List<WebSocketResponseMessage> responses, MessageBatchCallback callback)
+      throws IOException
+  {
+    for (int i = 0; i < envelopes.size(); i++) {
+      try {
+        callback.onMessages(Collections.singletonList(envelopes.get(i)));
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to process an envelope. Acknowledging it anyway, so it doesn't hold up the queue.", e);
+      }
+
+      websocket.sendResponse(responses.get(i));
+    }
+  }
+
   public Future<SendMessageResponse> send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
     List<String> headers = new LinkedList<String>() {{
       add("content-type:application/json");
@@ -316,6 +441,31 @@ public class SignalServiceMessagePipe {
     websocket.disconnect();
   }
 
+  private WebSocketRequestMessage nextRequest(long timeoutMillis) throws TimeoutException, IOException {
+    if (pendingRequest != null) {
+      WebSocketRequestMessage request = pendingRequest;
+      pendingRequest = null;
+      return request;
+    }
+
+    return websocket.readRequest(timeoutMillis);
+  }
+
+  private SignalServiceEnvelope createEnvelope(WebSocketRequestMessage request) throws IOException {
+    Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
+    long             timestamp       = 0;
+
+    if (timestampHeader.isPresent()) {
+      try {
+        timestamp = Long.parseLong(timestampHeader.get());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
+      }
+    }
+
+    return new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+  }
+
   private boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
@@ -365,6 +515,36 @@ public class SignalServiceMessagePipe {
     void onMessage(SignalServiceEnvelope envelope);
   }
 
+  /**
+   * For receiving a batch of messages, which will be acknowledged once this returns.
+   */
+  public interface MessageBatchCallback {
+    /**
+     * @throws IOException If the messages could not be persisted, and so must not be acknowledged.
+     */
+    void onMessages(List<SignalServiceEnvelope> envelopes) throws IOException;
+  }
+
+  /**
+   * Thrown by a {@link MessageBatchCallback} when only some of the batch was persisted.
+   */
+  public static final class PartialBatchException extends RuntimeException {
+    private final List<SignalServiceEnvelope> unpersisted;
+
+    /**
+     * @param unpersisted The envelopes from the batch that weren't persisted. Every other envelope
+     *                    in the batch must have been.
+     */
+    public PartialBatchException(List<SignalServiceEnvelope> unpersisted, Throwable cause) {
+      super("Failed to persist " + unpersisted.size() + " envelopes.", cause);
+      this.unpersisted = unpersisted;
+    }
+
+    public List<SignalServiceEnvelope> getUnpersisted() {
+      return unpersisted;
+    }
+  }
+
   private static class NullMessagePipeCallback implements MessagePipeCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
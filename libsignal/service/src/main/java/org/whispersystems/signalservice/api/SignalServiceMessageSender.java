@@ -17,11 +17,13 @@ import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.signalservice.api.crypto.PaddedPlaintext;
 import org.whispersystems.signalservice.api.crypto.SignalServiceCipher;
 import org.whispersystems.signalservice.api.crypto.SignalSessionBuilder;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.GroupSendStats;
 import org.whispersystems.signalservice.api.messages.SendMessageResult;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
@@ -55,8 +57,6 @@ import org.whispersystems.signalservice.api.push.exceptions.AuthorizationFailedE
 import org.whispersystems.signalservice.api.push.exceptions.MalformedResponseException;
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
-import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
-import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.api.util.Uint64RangeException;
 import org.whispersystems.signalservice.api.util.Uint64Util;
@@ -95,16 +95,13 @@ import org.whispersystems.util.Base64;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -119,7 +116,8 @@ public class SignalServiceMessageSender {
 
   private static final String TAG = SignalServiceMessageSender.class.getSimpleName();
 
-  private static final int RETRY_COUNT = 4;
+  private static final int RETRY_COUNT            = 4;
+  private static final int MAX_IN_FLIGHT_PER_LANE = 8;
 
   private final PushServiceSocket                                   socket;
   private final SignalServiceProtocolStore                          store;
@@ -315,10 +313,28 @@ public class SignalServiceMessageSender {
                                              boolean                                isRecipientUpdate,
                                              SignalServiceDataMessage               message)
       throws IOException, UntrustedIdentityException
+  {
+    return sendMessage(recipients, unidentifiedAccess, isRecipientUpdate, message, null);
+  }
+
+  /**
+   * Send a message to a group, reporting how the send went once every recipient has a result.
+   *
+   * @param recipients The group members.
+   * @param message The group message.
+   * @param statsListener Notified before the sync transcript is sent, may be null.
+   * @throws IOException
+   */
+  public List<SendMessageResult> sendMessage(List<SignalServiceAddress>             recipients,
+                                             List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                                             boolean                                isRecipientUpdate,
+                                             SignalServiceDataMessage               message,
+                                             GroupSendStats.Listener                statsListener)
+      throws IOException, UntrustedIdentityException
   {
     byte[]                  content            = createMessageContent(message);
     long                    timestamp          = message.getTimestamp();
-    List<SendMessageResult> results            = sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, null);
+    List<SendMessageResult> results            = sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, null, statsListener);
     boolean                 needsSyncInResults = false;
 
     for (SendMessageResult result : results) {
@@ -1364,65 +1380,34 @@ public class SignalServiceMessageSender {
                                               CancelationSignal                  cancelationSignal)
       throws IOException
   {
-    enforceMaxContentSize(content);
-
-    long                                   startTime                  = System.currentTimeMillis();
-    List<Future<SendMessageResult>>        futureResults              = new LinkedList<>();
-    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
-    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
-
-    while (recipientIterator.hasNext()) {
-      SignalServiceAddress         recipient = recipientIterator.next();
-      Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
-      futureResults.add(executor.submit(() -> sendMessage(recipient, access, timestamp, content, online, cancelationSignal)));
-    }
+    return sendMessage(recipients, unidentifiedAccess, timestamp, content, online, cancelationSignal, null);
+  }
 
-    List<SendMessageResult> results = new ArrayList<>(futureResults.size());
-    recipientIterator = recipients.iterator();
+  private List<SendMessageResult> sendMessage(List<SignalServiceAddress>         recipients,
+                                              List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                                              long                               timestamp,
+                                              byte[]                             content,
+                                              boolean                            online,
+                                              CancelationSignal                  cancelationSignal,
+                                              GroupSendStats.Listener            statsListener)
+      throws IOException
+  {
+    enforceMaxContentSize(content);
 
-    for (Future<SendMessageResult> futureResult : futureResults) {
-      SignalServiceAddress recipient = recipientIterator.next();
-      try {
-        results.add(futureResult.get());
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof UntrustedIdentityException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e.getCause()).getIdentityKey()));
-        } else if (e.getCause() instanceof UnregisteredUserException) {
-          Log.w(TAG, "Found unregistered user.");
-          results.add(SendMessageResult.unregisteredFailure(recipient));
-        } else if (e.getCause() instanceof PushNetworkException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.networkFailure(recipient));
-        } else if (e.getCause() instanceof ServerRejectedException) {
-          Log.w(TAG, e);
-          throw ((ServerRejectedException) e.getCause());
-        } else {
-          throw new IOException(e);
-        }
-      } catch (InterruptedException e) {
-        throw new IOException(e);
-      }
-    }
+    PaddedPlaintext        plaintext = new PaddedPlaintext(content);
+    GroupSendEngine        engine    = new GroupSendEngine(executor, MAX_IN_FLIGHT_PER_LANE, RETRY_COUNT);
+    GroupSendEngine.Result result    = engine.send(recipients,
+                                                   unidentifiedAccess,
+                                                   (recipient, access, startTime) -> sendMessageAttempt(recipient, access, timestamp, plaintext, online, cancelationSignal, startTime),
+                                                   cancelationSignal);
 
-    double sendsForAverage = 0;
-    for (SendMessageResult result : results) {
-      if (result.getSuccess() != null && result.getSuccess().getDuration() != -1) {
-        sendsForAverage++;
-      }
-    }
+    Log.d(TAG, "Completed group send: " + result.getStats());
 
-    double average = 0;
-    if (sendsForAverage > 0) {
-      for (SendMessageResult result : results) {
-        if (result.getSuccess() != null && result.getSuccess().getDuration() != -1) {
-          average += result.getSuccess().getDuration() / sendsForAverage;
-        }
-      }
+    if (statsListener != null) {
+      statsListener.onComplete(result.getStats());
     }
 
-    Log.d(TAG, "Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send.");
-    return results;
+    return result.getResults();
   }
 
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
@@ -1435,69 +1420,92 @@ public class SignalServiceMessageSender {
   {
     enforceMaxContentSize(content);
 
-    long startTime = System.currentTimeMillis();
+    long            startTime = System.currentTimeMillis();
+    PaddedPlaintext plaintext = new PaddedPlaintext(content);
 
     for (int i = 0; i < RETRY_COUNT; i++) {
+      try {
+        return sendMessageAttempt(recipient, unidentifiedAccess, timestamp, plaintext, online, cancelationSignal, startTime);
+      } catch (GroupSendEngine.RetryException e) {
+        unidentifiedAccess = e.getUnidentifiedAccess();
+      }
+    }
+
+    throw new IOException("Failed to resolve conflicts after 3 attempts!");
+  }
+
+  /**
+   * Makes one attempt at sending to a recipient. Conflicts that another attempt could get past are
+   * fixed up and reported with a {@link GroupSendEngine.RetryException}, rather than retried here.
+   */
+  private SendMessageResult sendMessageAttempt(SignalServiceAddress         recipient,
+                                               Optional<UnidentifiedAccess> unidentifiedAccess,
+                                               long                         timestamp,
+                                               PaddedPlaintext              plaintext,
+                                               boolean                      online,
+                                               CancelationSignal            cancelationSignal,
+                                               long                         startTime)
+      throws UntrustedIdentityException, IOException, GroupSendEngine.RetryException
+  {
+    if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+      throw new CancelationException();
+    }
+
+    try {
+      OutgoingPushMessageList messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, plaintext, online);
+
       if (cancelationSignal != null && cancelationSignal.isCanceled()) {
         throw new CancelationException();
       }
 
-      try {
-        OutgoingPushMessageList messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online);
+      Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
+      Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
 
-        if (cancelationSignal != null && cancelationSignal.isCanceled()) {
-          throw new CancelationException();
+      if (pipe.isPresent() && !unidentifiedAccess.isPresent()) {
+        try {
+          SendMessageResponse response = pipe.get().send(messages, Optional.absent()).get(10, TimeUnit.SECONDS);
+          return SendMessageResult.success(recipient, false, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+        } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
+          Log.w(TAG, e);
+          Log.w(TAG, "[sendMessage] Pipe failed, falling back...");
         }
-
-        Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
-        Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
-
-        if (pipe.isPresent() && !unidentifiedAccess.isPresent()) {
-          try {
-            SendMessageResponse response = pipe.get().send(messages, Optional.absent()).get(10, TimeUnit.SECONDS);
-            return SendMessageResult.success(recipient, false, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
-          } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
-            Log.w(TAG, e);
-            Log.w(TAG, "[sendMessage] Pipe failed, falling back...");
-          }
-        } else if (unidentifiedPipe.isPresent() && unidentifiedAccess.isPresent()) {
-          try {
-            SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess).get(10, TimeUnit.SECONDS);
-            return SendMessageResult.success(recipient, true, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
-          } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
-            Log.w(TAG, e);
-            Log.w(TAG, "[sendMessage] Unidentified pipe failed, falling back...");
-          }
+      } else if (unidentifiedPipe.isPresent() && unidentifiedAccess.isPresent()) {
+        try {
+          SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess).get(10, TimeUnit.SECONDS);
+          return SendMessageResult.success(recipient, true, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+        } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
+          Log.w(TAG, e);
+          Log.w(TAG, "[sendMessage] Unidentified pipe failed, falling back...");
         }
+      }
 
-        if (cancelationSignal != null && cancelationSignal.isCanceled()) {
-          throw new CancelationException();
-        }
+      if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+        throw new CancelationException();
+      }
 
-        SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
+      SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
 
-        return SendMessageResult.success(recipient, unidentifiedAccess.isPresent(), response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+      return SendMessageResult.success(recipient, unidentifiedAccess.isPresent(), response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
 
-      } catch (InvalidKeyException ike) {
-        Log.w(TAG, ike);
-        unidentifiedAccess = Optional.absent();
-      } catch (AuthorizationFailedException afe) {
-        Log.w(TAG, afe);
-        if (unidentifiedAccess.isPresent()) {
-          unidentifiedAccess = Optional.absent();
-        } else {
-          throw afe;
-        }
-      } catch (MismatchedDevicesException mde) {
-        Log.w(TAG, mde);
-        handleMismatchedDevices(socket, recipient, mde.getMismatchedDevices());
-      } catch (StaleDevicesException ste) {
-        Log.w(TAG, ste);
-        handleStaleDevices(recipient, ste.getStaleDevices());
+    } catch (InvalidKeyException ike) {
+      Log.w(TAG, ike);
+      throw new GroupSendEngine.RetryException(Optional.absent());
+    } catch (AuthorizationFailedException afe) {
+      Log.w(TAG, afe);
+      if (unidentifiedAccess.isPresent()) {
+        throw new GroupSendEngine.RetryException(Optional.absent());
+      } else {
+        throw afe;
       }
+    } catch (MismatchedDevicesException mde) {
+      Log.w(TAG, mde);
+      handleMismatchedDevices(socket, recipient, mde.getMismatchedDevices());
+      throw new GroupSendEngine.RetryException(unidentifiedAccess);
+    } catch (StaleDevicesException ste) {
+      Log.w(TAG, ste);
+      handleStaleDevices(recipient, ste.getStaleDevices());
+      throw new GroupSendEngine.RetryException(unidentifiedAccess);
     }
-
-    throw new IOException("Failed to resolve conflicts after 3 attempts!");
   }
 
   private List<AttachmentPointer> createAttachmentPointers(Optional<List<SignalServiceAttachment>> attachments) throws IOException {
@@ -1584,7 +1592,7 @@ public class SignalServiceMessageSender {
                                                        SignalServiceAddress         recipient,
                                                        Optional<UnidentifiedAccess> unidentifiedAccess,
                                                        long                         timestamp,
-                                                       byte[]                       plaintext,
+                                                       PaddedPlaintext              plaintext,
                                                        boolean                      online)
       throws IOException, InvalidKeyException, UntrustedIdentityException
   {
@@ -1607,7 +1615,7 @@ public class SignalServiceMessageSender {
                                                   SignalServiceAddress         recipient,
                                                   Optional<UnidentifiedAccess> unidentifiedAccess,
                                                   int                          deviceId,
-                                                  byte[]                       plaintext)
+                                                  PaddedPlaintext              plaintext)
       throws IOException, InvalidKeyException, UntrustedIdentityException
   {
     SignalProtocolAddress signalProtocolAddress = new SignalProtocolAddress(recipient.getIdentifier(), deviceId);
@@ -1620,7 +1628,7 @@ public class SignalServiceMessageSender {
         for (PreKeyBundle preKey : preKeys) {
           try {
             SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId());
-            SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(store, preKeyAddress));
+            SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, preKeyAddress, new SessionBuilder(store, preKeyAddress));
             sessionBuilder.process(preKey);
           } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
             throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
@@ -1660,7 +1668,8 @@ public class SignalServiceMessageSender {
         PreKeyBundle preKey = socket.getPreKey(recipient, missingDeviceId);
 
         try {
-          SignalSessionBuilder sessionBuilder = new SignalSessionBuilder(sessionLock, new SessionBuilder(store, new SignalProtocolAddress(recipient.getIdentifier(), missingDeviceId)));
+          SignalProtocolAddress address        = new SignalProtocolAddress(recipient.getIdentifier(), missingDeviceId);
+          SignalSessionBuilder  sessionBuilder = new SignalSessionBuilder(sessionLock, address, new SessionBuilder(store, address));
           sessionBuilder.process(preKey);
         } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
           throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
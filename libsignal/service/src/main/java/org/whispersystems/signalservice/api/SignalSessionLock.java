@@ -1,5 +1,7 @@
 package org.whispersystems.signalservice.api;
 
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
 import java.io.Closeable;
 
 /**
@@ -8,8 +10,20 @@ import java.io.Closeable;
  */
 public interface SignalSessionLock {
 
+  /**
+   * Locks every session.
+   */
   Lock acquire();
 
+  /**
+   * Locks only what's needed to work with the sessions of a single address, so that work with other
+   * addresses can carry on at the same time. Implementations that can't tell addresses apart may
+   * lock everything.
+   */
+  default Lock acquire(SignalProtocolAddress address) {
+    return acquire();
+  }
+
   interface Lock extends Closeable {
     @Override
     void close();
@@ -0,0 +1,37 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.signalservice.internal.push.PushTransportDetails;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The content of a message, along with its padded form for each session version it's been
+ * encrypted for. A message going to many recipients is then only padded once per version, rather
+ * than once per device. The padded bytes are shared, and must not be modified.
+ */
+public final class PaddedPlaintext {
+
+  private final byte[]               unpadded;
+  private final Map<Integer, byte[]> paddedByVersion;
+
+  public PaddedPlaintext(byte[] unpadded) {
+    this.unpadded        = unpadded;
+    this.paddedByVersion = new ConcurrentHashMap<>(2);
+  }
+
+  public byte[] getUnpadded() {
+    return unpadded;
+  }
+
+  public byte[] getPadded(int messageVersion) {
+    byte[] padded = paddedByVersion.get(messageVersion);
+
+    if (padded == null) {
+      padded = new PushTransportDetails(messageVersion).getPaddedMessageBody(unpadded);
+      paddedByVersion.put(messageVersion, padded);
+    }
+
+    return padded;
+  }
+}
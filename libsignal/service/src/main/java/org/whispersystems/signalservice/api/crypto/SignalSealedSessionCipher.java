@@ -19,7 +19,8 @@ import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
 /**
- * A thread-safe wrapper around {@link SealedSessionCipher}.
+ * A thread-safe wrapper around {@link SealedSessionCipher}. Decrypting locks every session, since
+ * the sender isn't known until the envelope has been opened.
  */
 public class SignalSealedSessionCipher {
 
@@ -32,7 +33,7 @@ public class SignalSealedSessionCipher {
   }
 
   public byte[] encrypt(SignalProtocolAddress destinationAddress, SenderCertificate senderCertificate, byte[] paddedPlaintext) throws InvalidKeyException, org.whispersystems.libsignal.UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(destinationAddress)) {
       return cipher.encrypt(destinationAddress, senderCertificate, paddedPlaintext);
     }
   }
@@ -44,13 +45,13 @@ public class SignalSealedSessionCipher {
   }
 
   public int getSessionVersion(SignalProtocolAddress remoteAddress) {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getSessionVersion(remoteAddress);
     }
   }
 
   public int getRemoteRegistrationId(SignalProtocolAddress remoteAddress) {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(remoteAddress)) {
       return cipher.getRemoteRegistrationId(remoteAddress);
     }
   }
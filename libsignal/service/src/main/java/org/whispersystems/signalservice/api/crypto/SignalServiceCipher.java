@@ -83,19 +83,29 @@ public class SignalServiceCipher {
                                      Optional<UnidentifiedAccess> unidentifiedAccess,
                                      byte[]                       unpaddedMessage)
       throws UntrustedIdentityException, InvalidKeyException
+  {
+    return encrypt(destination, unidentifiedAccess, new PaddedPlaintext(unpaddedMessage));
+  }
+
+  /**
+   * Like {@link #encrypt(SignalProtocolAddress, Optional, byte[])}, but reuses the padding of a
+   * message that's being encrypted for several destinations.
+   */
+  public OutgoingPushMessage encrypt(SignalProtocolAddress        destination,
+                                     Optional<UnidentifiedAccess> unidentifiedAccess,
+                                     PaddedPlaintext              plaintext)
+      throws UntrustedIdentityException, InvalidKeyException
   {
     if (unidentifiedAccess.isPresent()) {
       SignalSealedSessionCipher sessionCipher        = new SignalSealedSessionCipher(sessionLock, new SealedSessionCipher(signalProtocolStore, localAddress.getUuid().orNull(), localAddress.getNumber().orNull(), 1));
-      PushTransportDetails      transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion(destination));
-      byte[]                    ciphertext           = sessionCipher.encrypt(destination, unidentifiedAccess.get().getUnidentifiedCertificate(), transportDetails.getPaddedMessageBody(unpaddedMessage));
+      byte[]                    ciphertext           = sessionCipher.encrypt(destination, unidentifiedAccess.get().getUnidentifiedCertificate(), plaintext.getPadded(sessionCipher.getSessionVersion(destination)));
       String                    body                 = Base64.encodeBytes(ciphertext);
       int                       remoteRegistrationId = sessionCipher.getRemoteRegistrationId(destination);
 
       return new OutgoingPushMessage(Type.UNIDENTIFIED_SENDER_VALUE, destination.getDeviceId(), remoteRegistrationId, body);
     } else {
-      SignalSessionCipher  sessionCipher        = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, destination));
-      PushTransportDetails transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion());
-      CiphertextMessage    message              = sessionCipher.encrypt(transportDetails.getPaddedMessageBody(unpaddedMessage));
+      SignalSessionCipher  sessionCipher        = new SignalSessionCipher(sessionLock, destination, new SessionCipher(signalProtocolStore, destination));
+      CiphertextMessage    message              = sessionCipher.encrypt(plaintext.getPadded(sessionCipher.getSessionVersion()));
       int                  remoteRegistrationId = sessionCipher.getRemoteRegistrationId();
       String               body                 = Base64.encodeBytes(message.serialize());
 
@@ -177,14 +187,14 @@ public class SignalServiceCipher {
 
       if (envelope.isPreKeySignalMessage()) {
         SignalProtocolAddress sourceAddress = getPreferredProtocolAddress(signalProtocolStore, envelope.getSourceAddress(), envelope.getSourceDevice());
-        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress));
+        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, sourceAddress, new SessionCipher(signalProtocolStore, sourceAddress));
 
         paddedMessage  = sessionCipher.decrypt(new PreKeySignalMessage(ciphertext));
         metadata       = new SignalServiceMetadata(envelope.getSourceAddress(), envelope.getSourceDevice(), envelope.getTimestamp(), envelope.getServerReceivedTimestamp(), envelope.getServerDeliveredTimestamp(), false);
         sessionVersion = sessionCipher.getSessionVersion();
       } else if (envelope.isSignalMessage()) {
         SignalProtocolAddress sourceAddress = getPreferredProtocolAddress(signalProtocolStore, envelope.getSourceAddress(), envelope.getSourceDevice());
-        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, new SessionCipher(signalProtocolStore, sourceAddress));
+        SignalSessionCipher   sessionCipher = new SignalSessionCipher(sessionLock, sourceAddress, new SessionCipher(signalProtocolStore, sourceAddress));
 
         paddedMessage  = sessionCipher.decrypt(new SignalMessage(ciphertext));
         metadata       = new SignalServiceMetadata(envelope.getSourceAddress(), envelope.getSourceDevice(), envelope.getTimestamp(), envelope.getServerReceivedTimestamp(), envelope.getServerDeliveredTimestamp(), false);
@@ -2,25 +2,29 @@ package org.whispersystems.signalservice.api.crypto;
 
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.UntrustedIdentityException;
 import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
 /**
- * A thread-safe wrapper around {@link SessionBuilder}.
+ * A thread-safe wrapper around {@link SessionBuilder}. Only the sessions of the address the builder
+ * was created for are locked.
  */
 public class SignalSessionBuilder {
 
-  private final SignalSessionLock lock;
-  private final SessionBuilder    builder;
+  private final SignalSessionLock     lock;
+  private final SignalProtocolAddress address;
+  private final SessionBuilder        builder;
 
-  public SignalSessionBuilder(SignalSessionLock lock, SessionBuilder builder) {
+  public SignalSessionBuilder(SignalSessionLock lock, SignalProtocolAddress address, SessionBuilder builder) {
     this.lock    = lock;
+    this.address = address;
     this.builder = builder;
   }
 
   public void process(PreKeyBundle preKey) throws InvalidKeyException, UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       builder.process(preKey);
     }
   }
@@ -7,6 +7,7 @@ import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.NoSessionException;
 import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.UntrustedIdentityException;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
@@ -14,44 +15,47 @@ import org.whispersystems.libsignal.protocol.SignalMessage;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
 /**
- * A thread-safe wrapper around {@link SessionCipher}.
+ * A thread-safe wrapper around {@link SessionCipher}. Only the sessions of the address the cipher
+ * was created for are locked.
  */
 public class SignalSessionCipher {
 
-  private final SignalSessionLock lock;
-  private final SessionCipher     cipher;
+  private final SignalSessionLock     lock;
+  private final SignalProtocolAddress address;
+  private final SessionCipher         cipher;
 
-  public SignalSessionCipher(SignalSessionLock lock, SessionCipher cipher) {
-    this.lock   = lock;
-    this.cipher = cipher;
+  public SignalSessionCipher(SignalSessionLock lock, SignalProtocolAddress address, SessionCipher cipher) {
+    this.lock    = lock;
+    this.address = address;
+    this.cipher  = cipher;
   }
 
   public CiphertextMessage encrypt(byte[] paddedMessage) throws org.whispersystems.libsignal.UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       return cipher.encrypt(paddedMessage);
     }
   }
 
   public byte[] decrypt(PreKeySignalMessage ciphertext) throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, InvalidKeyIdException, InvalidKeyException, org.whispersystems.libsignal.UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       return cipher.decrypt(ciphertext);
     }
   }
 
   public byte[] decrypt(SignalMessage ciphertext) throws InvalidMessageException, DuplicateMessageException, LegacyMessageException, NoSessionException, UntrustedIdentityException {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       return cipher.decrypt(ciphertext);
     }
   }
 
   public int getRemoteRegistrationId() {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       return cipher.getRemoteRegistrationId();
     }
   }
 
   public int getSessionVersion() {
-    try (SignalSessionLock.Lock unused = lock.acquire()) {
+    try (SignalSessionLock.Lock unused = lock.acquire(address)) {
       return cipher.getSessionVersion();
     }
   }
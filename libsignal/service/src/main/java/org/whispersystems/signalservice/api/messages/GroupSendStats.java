@@ -0,0 +1,120 @@
+package org.whispersystems.signalservice.api.messages;
+
+import java.util.Locale;
+
+/**
+ * What happened during a send to a group: how each recipient ended up, how much retrying it took,
+ * and how long it all took. Latencies are per recipient, from its first attempt to its result.
+ */
+public final class GroupSendStats {
+
+  private final int  recipients;
+  private final int  successes;
+  private final int  unidentifiedSuccesses;
+  private final int  networkFailures;
+  private final int  unregisteredFailures;
+  private final int  identityFailures;
+  private final int  attempts;
+  private final int  retries;
+  private final long elapsedMillis;
+  private final long latencyP50Millis;
+  private final long latencyP90Millis;
+  private final long latencyMaxMillis;
+
+  public GroupSendStats(int recipients,
+                        int successes,
+                        int unidentifiedSuccesses,
+                        int networkFailures,
+                        int unregisteredFailures,
+                        int identityFailures,
+                        int attempts,
+                        int retries,
+                        long elapsedMillis,
+                        long latencyP50Millis,
+                        long latencyP90Millis,
+                        long latencyMaxMillis)
+  {
+    this.recipients            = recipients;
+    this.successes             = successes;
+    this.unidentifiedSuccesses = unidentifiedSuccesses;
+    this.networkFailures       = networkFailures;
+    this.unregisteredFailures  = unregisteredFailures;
+    this.identityFailures      = identityFailures;
+    this.attempts              = attempts;
+    this.retries               = retries;
+    this.elapsedMillis         = elapsedMillis;
+    this.latencyP50Millis      = latencyP50Millis;
+    this.latencyP90Millis      = latencyP90Millis;
+    this.latencyMaxMillis      = latencyMaxMillis;
+  }
+
+  public int getRecipients() {
+    return recipients;
+  }
+
+  public int getSuccesses() {
+    return successes;
+  }
+
+  public int getUnidentifiedSuccesses() {
+    return unidentifiedSuccesses;
+  }
+
+  public int getNetworkFailures() {
+    return networkFailures;
+  }
+
+  public int getUnregisteredFailures() {
+    return unregisteredFailures;
+  }
+
+  public int getIdentityFailures() {
+    return identityFailures;
+  }
+
+  /**
+   * @return How many times a send to a single recipient was attempted, including retries.
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * @return How many attempts were repeated after a device mismatch, stale devices, or a rejected
+   *         unidentified send.
+   */
+  public int getRetries() {
+    return retries;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public long getLatencyP50Millis() {
+    return latencyP50Millis;
+  }
+
+  public long getLatencyP90Millis() {
+    return latencyP90Millis;
+  }
+
+  public long getLatencyMaxMillis() {
+    return latencyMaxMillis;
+  }
+
+  public double getRecipientsPerSecond() {
+    return elapsedMillis > 0 ? recipients * 1000d / elapsedMillis : recipients;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+                         "%d recipients in %d ms (%.1f/sec), %d succeeded (%d unidentified), %d network failures, %d unregistered, %d identity failures, %d attempts, %d retries, latency p50: %d ms, p90: %d ms, max: %d ms",
+                         recipients, elapsedMillis, getRecipientsPerSecond(), successes, unidentifiedSuccesses, networkFailures, unregisteredFailures, identityFailures, attempts, retries, latencyP50Millis, latencyP90Millis, latencyMaxMillis);
+  }
+
+  public interface Listener {
+    void onComplete(GroupSendStats stats);
+  }
+}
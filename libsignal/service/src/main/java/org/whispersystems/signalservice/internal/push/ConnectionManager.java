@@ -0,0 +1,376 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
+import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
+import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalProxy;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Owns the HTTP clients for everything a {@link SignalServiceConfiguration} points at. Every
+ * {@link PushServiceSocket} made from the same configuration shares them, so the sender, receiver
+ * and account manager all draw from the same warm connections rather than each opening their own.
+ *
+ * Each kind of endpoint (the service, each CDN, storage, key backup and contact discovery) has one
+ * connection pool and one set of {@link ConnectionMetrics}. The one exception is unidentified
+ * service requests, which get a pool of their own. OkHttp hands out any pooled connection whose
+ * address matches, and the identified and unidentified clients only differed by their SSL socket
+ * factory instances. Sharing a pool would let a sealed sender request go out on a connection that
+ * has already carried authenticated ones.
+ */
+public final class ConnectionManager {
+
+  private static final String TAG = ConnectionManager.class.getSimpleName();
+
+  public static final String SERVICE           = "service";
+  public static final String STORAGE           = "storage";
+  public static final String KEY_BACKUP        = "kbs";
+  public static final String CONTACT_DISCOVERY = "cds";
+
+  private static final int  MAX_IDLE_CONNECTIONS = 5;
+  private static final long KEEP_ALIVE_SECONDS   = 45;
+  private static final long MIN_PREWARM_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+  private static final Map<SignalServiceConfiguration, ConnectionManager> MANAGERS = new WeakHashMap<>();
+
+  private final ServiceConnectionHolder[]        serviceClients;
+  private final Map<Integer, ConnectionHolder[]> cdnClientsMap;
+  private final ConnectionHolder[]               contactDiscoveryClients;
+  private final ConnectionHolder[]               keyBackupServiceClients;
+  private final ConnectionHolder[]               storageClients;
+  private final Map<String, ConnectionMetrics>   metrics;
+  private final AtomicLong                       lastPrewarm;
+
+  /**
+   * @return The manager for this configuration, creating it the first time it's asked for. It lives
+   *         for as long as the configuration does.
+   */
+  public static ConnectionManager forConfiguration(SignalServiceConfiguration configuration) {
+    synchronized (MANAGERS) {
+      ConnectionManager manager = MANAGERS.get(configuration);
+
+      if (manager == null) {
+        manager = new ConnectionManager(configuration);
+        MANAGERS.put(configuration, manager);
+      }
+
+      return manager;
+    }
+  }
+
+  private ConnectionManager(SignalServiceConfiguration configuration) {
+    List<Interceptor>              interceptors = configuration.getNetworkInterceptors();
+    Optional<Dns>                  dns          = configuration.getDns();
+    Optional<SignalProxy>          proxy        = configuration.getSignalProxy();
+    Map<String, ConnectionMetrics> metrics      = new LinkedHashMap<>();
+
+    validateConfiguration(configuration.getSignalCdnUrlMap());
+
+    this.serviceClients          = createServiceConnectionHolders(configuration.getSignalServiceUrls(), interceptors, dns, proxy, createMetrics(metrics, SERVICE));
+    this.cdnClientsMap           = createCdnClientsMap(configuration.getSignalCdnUrlMap(), interceptors, dns, proxy, metrics);
+    this.contactDiscoveryClients = createConnectionHolders(configuration.getSignalContactDiscoveryUrls(), interceptors, dns, proxy, createMetrics(metrics, CONTACT_DISCOVERY));
+    this.keyBackupServiceClients = createConnectionHolders(configuration.getSignalKeyBackupServiceUrls(), interceptors, dns, proxy, createMetrics(metrics, KEY_BACKUP));
+    this.storageClients          = createConnectionHolders(configuration.getSignalStorageUrls(), interceptors, dns, proxy, createMetrics(metrics, STORAGE));
+    this.metrics                 = Collections.unmodifiableMap(metrics);
+    this.lastPrewarm             = new AtomicLong();
+  }
+
+  /**
+   * @return The metrics for each kind of endpoint, keyed by {@link #SERVICE}, {@link #STORAGE},
+   *         {@link #KEY_BACKUP}, {@link #CONTACT_DISCOVERY}, or "cdn" followed by the CDN number.
+   */
+  public Map<String, ConnectionMetrics> getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Opens connections to the service and the CDNs in the background, so the requests that follow
+   * find them in the pool instead of waiting on DNS, TCP and TLS. Does nothing if it was done
+   * recently enough that those connections should still be idling in the pool.
+   */
+  public void prewarm() {
+    long now  = System.currentTimeMillis();
+    long last = lastPrewarm.get();
+
+    if (now - last < MIN_PREWARM_INTERVAL || !lastPrewarm.compareAndSet(last, now)) {
+      return;
+    }
+
+    for (ServiceConnectionHolder holder : serviceClients) {
+      prewarm(holder.getClient(), holder);
+      prewarm(holder.getUnidentifiedClient(), holder);
+    }
+
+    for (ConnectionHolder[] holders : cdnClientsMap.values()) {
+      for (ConnectionHolder holder : holders) {
+        prewarm(holder.getClient(), holder);
+      }
+    }
+  }
+
+  ServiceConnectionHolder[] getServiceClients() {
+    return serviceClients;
+  }
+
+  Map<Integer, ConnectionHolder[]> getCdnClientsMap() {
+    return cdnClientsMap;
+  }
+
+  ConnectionHolder[] getContactDiscoveryClients() {
+    return contactDiscoveryClients;
+  }
+
+  ConnectionHolder[] getKeyBackupServiceClients() {
+    return keyBackupServiceClients;
+  }
+
+  ConnectionHolder[] getStorageClients() {
+    return storageClients;
+  }
+
+  private static void prewarm(OkHttpClient client, ConnectionHolder holder) {
+    Request.Builder request = new Request.Builder().url(holder.getUrl()).head();
+
+    if (holder.getHostHeader().isPresent()) {
+      request.addHeader("Host", holder.getHostHeader().get());
+    }
+
+    client.newCall(request.build()).enqueue(new Callback() {
+      @Override
+      public void onResponse(Call call, Response response) {
+        response.close();
+      }
+
+      @Override
+      public void onFailure(Call call, IOException e) {
+        Log.w(TAG, "Failed to prewarm a connection.", e);
+      }
+    });
+  }
+
+  private static ConnectionMetrics createMetrics(Map<String, ConnectionMetrics> metrics, String name) {
+    ConnectionMetrics endpointMetrics = new ConnectionMetrics(name);
+    metrics.put(name, endpointMetrics);
+    return endpointMetrics;
+  }
+
+  private static ConnectionPool createConnectionPool() {
+    return new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private static ServiceConnectionHolder[] createServiceConnectionHolders(SignalUrl[] urls,
+                                                                          List<Interceptor> interceptors,
+                                                                          Optional<Dns> dns,
+                                                                          Optional<SignalProxy> proxy,
+                                                                          ConnectionMetrics metrics)
+  {
+    List<ServiceConnectionHolder> serviceConnectionHolders = new ArrayList<>(urls.length);
+    ConnectionPool                identifiedPool           = createConnectionPool();
+    ConnectionPool                unidentifiedPool         = createConnectionPool();
+
+    for (SignalUrl url : urls) {
+      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url, interceptors, dns, proxy, identifiedPool, metrics),
+                                                               createConnectionClient(url, interceptors, dns, proxy, unidentifiedPool, metrics),
+                                                               url.getUrl(), url.getHostHeader()));
+    }
+
+    return serviceConnectionHolders.toArray(new ServiceConnectionHolder[0]);
+  }
+
+  private static Map<Integer, ConnectionHolder[]> createCdnClientsMap(Map<Integer, SignalCdnUrl[]> signalCdnUrlMap,
+                                                                      List<Interceptor> interceptors,
+                                                                      Optional<Dns> dns,
+                                                                      Optional<SignalProxy> proxy,
+                                                                      Map<String, ConnectionMetrics> metrics)
+  {
+    Map<Integer, ConnectionHolder[]> result = new HashMap<>();
+
+    for (Map.Entry<Integer, SignalCdnUrl[]> entry : signalCdnUrlMap.entrySet()) {
+      result.put(entry.getKey(),
+                 createConnectionHolders(entry.getValue(), interceptors, dns, proxy, createMetrics(metrics, "cdn" + entry.getKey())));
+    }
+
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static void validateConfiguration(Map<Integer, SignalCdnUrl[]> signalCdnUrlMap) {
+    if (!signalCdnUrlMap.containsKey(0) || !signalCdnUrlMap.containsKey(2)) {
+      throw new AssertionError("Configuration used to create PushServiceSocket must support CDN 0 and CDN 2");
+    }
+  }
+
+  private static ConnectionHolder[] createConnectionHolders(SignalUrl[] urls,
+                                                            List<Interceptor> interceptors,
+                                                            Optional<Dns> dns,
+                                                            Optional<SignalProxy> proxy,
+                                                            ConnectionMetrics metrics)
+  {
+    List<ConnectionHolder> connectionHolders = new ArrayList<>(urls.length);
+    ConnectionPool         connectionPool    = createConnectionPool();
+
+    for (SignalUrl url : urls) {
+      connectionHolders.add(new ConnectionHolder(createConnectionClient(url, interceptors, dns, proxy, connectionPool, metrics), url.getUrl(), url.getHostHeader()));
+    }
+
+    return connectionHolders.toArray(new ConnectionHolder[0]);
+  }
+
+  private static OkHttpClient createConnectionClient(SignalUrl url,
+                                                     List<Interceptor> interceptors,
+                                                     Optional<Dns> dns,
+                                                     Optional<SignalProxy> proxy,
+                                                     ConnectionPool connectionPool,
+                                                     ConnectionMetrics metrics)
+  {
+    try {
+      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
+
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, trustManagers, null);
+
+      OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                                                     .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
+                                                     .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                                                     .dns(dns.or(Dns.SYSTEM))
+                                                     .connectionPool(connectionPool)
+                                                     .eventListenerFactory(metrics.eventListenerFactory());
+
+      if (proxy.isPresent()) {
+        builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
+      }
+
+      for (Interceptor interceptor : interceptors) {
+        builder.addInterceptor(interceptor);
+      }
+
+      return builder.build();
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * A client for one URL, along with the client derived from it for the timeouts the sockets are
+   * currently using. Deriving a client is cheap, but keeping the last one means most requests don't
+   * need to.
+   */
+  static class ConnectionHolder {
+
+    private final OkHttpClient                   client;
+    private final String                         url;
+    private final Optional<String>               hostHeader;
+    private final AtomicReference<DerivedClient> derivedClient = new AtomicReference<>();
+
+    private ConnectionHolder(OkHttpClient client, String url, Optional<String> hostHeader) {
+      this.client     = client;
+      this.url        = url;
+      this.hostHeader = hostHeader;
+    }
+
+    OkHttpClient getClient() {
+      return client;
+    }
+
+    OkHttpClient getClient(long timeoutMillis) {
+      return DerivedClient.get(client, derivedClient, timeoutMillis, true);
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    Optional<String> getHostHeader() {
+      return hostHeader;
+    }
+  }
+
+  static class ServiceConnectionHolder extends ConnectionHolder {
+
+    private final OkHttpClient                   unidentifiedClient;
+    private final AtomicReference<DerivedClient> derivedIdentifiedClient   = new AtomicReference<>();
+    private final AtomicReference<DerivedClient> derivedUnidentifiedClient = new AtomicReference<>();
+
+    private ServiceConnectionHolder(OkHttpClient identifiedClient, OkHttpClient unidentifiedClient, String url, Optional<String> hostHeader) {
+      super(identifiedClient, url, hostHeader);
+      this.unidentifiedClient = unidentifiedClient;
+    }
+
+    OkHttpClient getUnidentifiedClient() {
+      return unidentifiedClient;
+    }
+
+    OkHttpClient getClient(boolean unidentified, long timeoutMillis, boolean retryOnConnectionFailure) {
+      if (unidentified) {
+        return DerivedClient.get(unidentifiedClient, derivedUnidentifiedClient, timeoutMillis, retryOnConnectionFailure);
+      } else {
+        return DerivedClient.get(getClient(), derivedIdentifiedClient, timeoutMillis, retryOnConnectionFailure);
+      }
+    }
+  }
+
+  private static final class DerivedClient {
+
+    private final long         timeoutMillis;
+    private final boolean      retryOnConnectionFailure;
+    private final OkHttpClient client;
+
+    private DerivedClient(long timeoutMillis, boolean retryOnConnectionFailure, OkHttpClient client) {
+      this.timeoutMillis            = timeoutMillis;
+      this.retryOnConnectionFailure = retryOnConnectionFailure;
+      this.client                   = client;
+    }
+
+    /**
+     * Derived clients share their base client's connection pool, dispatcher and event listeners.
+     */
+    static OkHttpClient get(OkHttpClient base, AtomicReference<DerivedClient> cache, long timeoutMillis, boolean retryOnConnectionFailure) {
+      DerivedClient current = cache.get();
+
+      if (current != null && current.timeoutMillis == timeoutMillis && current.retryOnConnectionFailure == retryOnConnectionFailure) {
+        return current.client;
+      }
+
+      OkHttpClient client = base.newBuilder()
+                                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                                .retryOnConnectionFailure(retryOnConnectionFailure)
+                                .build();
+
+      cache.set(new DerivedClient(timeoutMillis, retryOnConnectionFailure, client));
+      return client;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.signalservice.internal.util.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Counts how the calls to one kind of endpoint got their connections: how often one was reused
+ * from the pool, how many TLS handshakes it took, and how long each call waited for its response
+ * to start arriving.
+ */
+public final class ConnectionMetrics {
+
+  private final String     name;
+  private final AtomicLong calls                  = new AtomicLong();
+  private final AtomicLong connectionsAcquired    = new AtomicLong();
+  private final AtomicLong pooledConnections      = new AtomicLong();
+  private final AtomicLong multiplexedConnections = new AtomicLong();
+  private final AtomicLong handshakes             = new AtomicLong();
+  private final AtomicLong failedConnects         = new AtomicLong();
+  private final Histogram  handshakeTimes         = new Histogram();
+  private final Histogram  timeToFirstByte        = new Histogram();
+
+  ConnectionMetrics(String name) {
+    this.name = name;
+  }
+
+  EventListener.Factory eventListenerFactory() {
+    return call -> new CallListener();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getConnectionsAcquired() {
+    return connectionsAcquired.get();
+  }
+
+  /**
+   * @return How many acquired connections were already open, rather than newly connected.
+   */
+  public long getPooledConnections() {
+    return pooledConnections.get();
+  }
+
+  /**
+   * @return Between 0 and 1, or 0 if no connections have been acquired.
+   */
+  public double getPoolHitRate() {
+    long acquired = connectionsAcquired.get();
+    return acquired > 0 ? pooledConnections.get() / (double) acquired : 0;
+  }
+
+  /**
+   * @return How many acquired connections were HTTP/2, and so could carry other calls at the same time.
+   */
+  public long getMultiplexedConnections() {
+    return multiplexedConnections.get();
+  }
+
+  public long getHandshakes() {
+    return handshakes.get();
+  }
+
+  public long getFailedConnects() {
+    return failedConnects.get();
+  }
+
+  /**
+   * @return Milliseconds spent in each TLS handshake.
+   */
+  public Histogram getHandshakeTimes() {
+    return handshakeTimes;
+  }
+
+  /**
+   * @return Milliseconds from the start of each call to the start of its response headers.
+   */
+  public Histogram getTimeToFirstByte() {
+    return timeToFirstByte;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+                         "%s: %d calls, pool hit rate %.2f (%d/%d), %d HTTP/2, %d handshakes (p50: %d ms, max: %d ms), %d failed connects, time to first byte p50: %d ms, p90: %d ms, max: %d ms",
+                         name,
+                         calls.get(),
+                         getPoolHitRate(),
+                         pooledConnections.get(),
+                         connectionsAcquired.get(),
+                         multiplexedConnections.get(),
+                         handshakes.get(),
+                         handshakeTimes.getPercentile(50),
+                         handshakeTimes.getMax(),
+                         failedConnects.get(),
+                         timeToFirstByte.getPercentile(50),
+                         timeToFirstByte.getPercentile(90),
+                         timeToFirstByte.getMax());
+  }
+
+  /**
+   * OkHttp makes a listener for every call, and calls it from one thread at a time.
+   */
+  final class CallListener extends EventListener {
+
+    private long    callStartNanos;
+    private long    secureConnectStartNanos;
+    private boolean connecting;
+    private boolean firstByteSeen;
+
+    @Override
+    public void callStart(Call call) {
+      calls.incrementAndGet();
+      callStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      connecting = true;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+      secureConnectStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+      handshakes.incrementAndGet();
+      handshakeTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - secureConnectStartNanos));
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+      failedConnects.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      connectionsAcquired.incrementAndGet();
+
+      if (!connecting) {
+        pooledConnections.incrementAndGet();
+      }
+
+      if (connection.protocol() == Protocol.HTTP_2) {
+        multiplexedConnections.incrementAndGet();
+      }
+
+      connecting = false;
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+      if (!firstByteSeen) {
+        firstByteSeen = true;
+        timeToFirstByte.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callStartNanos));
+      }
+    }
+  }
+}
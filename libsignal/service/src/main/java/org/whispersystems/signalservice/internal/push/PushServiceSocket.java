@@ -71,18 +71,15 @@ import org.whispersystems.signalservice.api.push.exceptions.UsernameMalformedExc
 import org.whispersystems.signalservice.api.push.exceptions.UsernameTakenException;
 import org.whispersystems.signalservice.api.storage.StorageAuthResponse;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
-import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
 import org.whispersystems.signalservice.api.util.UuidUtil;
-import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
-import org.whispersystems.signalservice.internal.configuration.SignalProxy;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
-import org.whispersystems.signalservice.internal.configuration.SignalUrl;
 import org.whispersystems.signalservice.internal.contacts.entities.DiscoveryRequest;
 import org.whispersystems.signalservice.internal.contacts.entities.DiscoveryResponse;
 import org.whispersystems.signalservice.internal.contacts.entities.KeyBackupRequest;
 import org.whispersystems.signalservice.internal.contacts.entities.KeyBackupResponse;
 import org.whispersystems.signalservice.internal.contacts.entities.TokenResponse;
+import org.whispersystems.signalservice.internal.push.ConnectionManager.ConnectionHolder;
+import org.whispersystems.signalservice.internal.push.ConnectionManager.ServiceConnectionHolder;
 import org.whispersystems.signalservice.internal.push.exceptions.ForbiddenException;
 import org.whispersystems.signalservice.internal.push.exceptions.GroupExistsException;
 import org.whispersystems.signalservice.internal.push.exceptions.GroupNotFoundException;
@@ -100,7 +97,6 @@ import org.whispersystems.signalservice.internal.storage.protos.ReadOperation;
 import org.whispersystems.signalservice.internal.storage.protos.StorageItems;
 import org.whispersystems.signalservice.internal.storage.protos.StorageManifest;
 import org.whispersystems.signalservice.internal.storage.protos.WriteOperation;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -118,11 +114,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -133,18 +126,11 @@ import java.util.UUID;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.ConnectionPool;
-import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
-import okhttp3.Dns;
 import okhttp3.HttpUrl;
-import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
@@ -254,11 +240,13 @@ public class PushServiceSocket {
     this.credentialsProvider       = credentialsProvider;
     this.signalAgent               = signalAgent;
     this.automaticNetworkRetry     = automaticNetworkRetry;
-    this.serviceClients            = createServiceConnectionHolders(configuration.getSignalServiceUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.cdnClientsMap             = createCdnClientsMap(configuration.getSignalCdnUrlMap(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.contactDiscoveryClients   = createConnectionHolders(configuration.getSignalContactDiscoveryUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.keyBackupServiceClients   = createConnectionHolders(configuration.getSignalKeyBackupServiceUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
-    this.storageClients            = createConnectionHolders(configuration.getSignalStorageUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
+    ConnectionManager connectionManager = ConnectionManager.forConfiguration(configuration);
+
+    this.serviceClients            = connectionManager.getServiceClients();
+    this.cdnClientsMap             = connectionManager.getCdnClientsMap();
+    this.contactDiscoveryClients   = connectionManager.getContactDiscoveryClients();
+    this.keyBackupServiceClients   = connectionManager.getKeyBackupServiceClients();
+    this.storageClients            = connectionManager.getStorageClients();
     this.random                    = new SecureRandom();
     this.clientZkProfileOperations = clientZkProfileOperations;
   }
@@ -1017,11 +1005,7 @@ public class PushServiceSocket {
       throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
     }
     ConnectionHolder   connectionHolder = getRandom(cdnNumberClients, random);
-    OkHttpClient       okHttpClient     = connectionHolder.getClient()
-                                                          .newBuilder()
-                                                          .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .build();
+    OkHttpClient       okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
 
@@ -1095,11 +1079,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(cdnClientsMap.get(0), random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener, cancelationSignal, 0);
 
@@ -1150,11 +1130,7 @@ public class PushServiceSocket {
 
   private String getResumableUploadUrl(String signedUrl, Map<String, String> headers) throws IOException {
     ConnectionHolder connectionHolder = getRandom(cdnClientsMap.get(2), random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(buildConfiguredUrl(connectionHolder, signedUrl))
                                                    .post(RequestBody.create(null, ""));
@@ -1201,11 +1177,7 @@ public class PushServiceSocket {
 
   private byte[] uploadToCdn2(String resumableUrl, InputStream data, String contentType, long length, OutputStreamFactory outputStreamFactory, ProgressListener progressListener, CancelationSignal cancelationSignal) throws IOException {
     ConnectionHolder connectionHolder = getRandom(cdnClientsMap.get(2), random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     ResumeInfo           resumeInfo = getResumeInfo(resumableUrl, length);
     DigestingRequestBody file       = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener, cancelationSignal, resumeInfo.contentStart);
@@ -1252,11 +1224,7 @@ public class PushServiceSocket {
 
   private ResumeInfo getResumeInfo(String resumableUrl, long contentLength) throws IOException {
     ConnectionHolder connectionHolder = getRandom(cdnClientsMap.get(2), random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     final long   offset;
     final String contentRange;
@@ -1379,8 +1347,9 @@ public class PushServiceSocket {
 
 
   private ListenableFuture<String> submitServiceRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey) {
-    OkHttpClient okHttpClient = buildOkHttpClient(unidentifiedAccessKey.isPresent());
-    Call         call         = okHttpClient.newCall(buildServiceRequest(urlFragment, method, jsonRequestBody(jsonBody), headers, unidentifiedAccessKey));
+    ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
+    OkHttpClient            okHttpClient     = buildOkHttpClient(connectionHolder, unidentifiedAccessKey.isPresent());
+    Call                    call             = okHttpClient.newCall(buildServiceRequest(connectionHolder, urlFragment, method, jsonRequestBody(jsonBody), headers, unidentifiedAccessKey));
 
     synchronized (connections) {
       connections.add(call);
@@ -1486,8 +1455,9 @@ public class PushServiceSocket {
       throws PushNetworkException
   {
     try {
-      OkHttpClient okHttpClient = buildOkHttpClient(unidentifiedAccess.isPresent());
-      Call         call         = okHttpClient.newCall(buildServiceRequest(urlFragment, method, body, headers, unidentifiedAccess));
+      ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
+      OkHttpClient            okHttpClient     = buildOkHttpClient(connectionHolder, unidentifiedAccess.isPresent());
+      Call                    call             = okHttpClient.newCall(buildServiceRequest(connectionHolder, urlFragment, method, body, headers, unidentifiedAccess));
 
       synchronized (connections) {
         connections.add(call);
@@ -1505,20 +1475,11 @@ public class PushServiceSocket {
     }
   }
 
-  private OkHttpClient buildOkHttpClient(boolean unidentified) {
-    ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
-    OkHttpClient            baseClient       = unidentified ? connectionHolder.getUnidentifiedClient() : connectionHolder.getClient();
-
-    return baseClient.newBuilder()
-                     .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                     .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                     .retryOnConnectionFailure(automaticNetworkRetry)
-                     .build();
+  private OkHttpClient buildOkHttpClient(ServiceConnectionHolder connectionHolder, boolean unidentified) {
+    return connectionHolder.getClient(unidentified, soTimeoutMillis, automaticNetworkRetry);
   }
 
-  private Request buildServiceRequest(String urlFragment, String method, RequestBody body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess) {
-    ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
-
+  private Request buildServiceRequest(ServiceConnectionHolder connectionHolder, String urlFragment, String method, RequestBody body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess) {
 //      Log.d(TAG, "Push service URL: " + connectionHolder.getUrl());
 //      Log.d(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
 
@@ -1572,11 +1533,7 @@ public class PushServiceSocket {
   private Response makeRequest(ConnectionHolder connectionHolder, String authorization, List<String> cookies, String path, String method, String body)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    OkHttpClient okHttpClient = connectionHolder.getClient()
-                                                .newBuilder()
-                                                .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                .build();
+    OkHttpClient okHttpClient = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
@@ -1649,11 +1606,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(storageClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
 //    Log.d(TAG, "Opening URL: " + connectionHolder.getUrl());
 
@@ -1765,83 +1718,6 @@ public class PushServiceSocket {
     return new CallingResponse.Error(requestId, new IOException("Redirect limit exceeded"));
   }
 
-  private ServiceConnectionHolder[] createServiceConnectionHolders(SignalUrl[] urls,
-                                                                   List<Interceptor> interceptors,
-                                                                   Optional<Dns> dns,
-                                                                   Optional<SignalProxy> proxy)
-  {
-    List<ServiceConnectionHolder> serviceConnectionHolders = new LinkedList<>();
-
-    for (SignalUrl url : urls) {
-      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url, interceptors, dns, proxy),
-                                                               createConnectionClient(url, interceptors, dns, proxy),
-                                                               url.getUrl(), url.getHostHeader()));
-    }
-
-    return serviceConnectionHolders.toArray(new ServiceConnectionHolder[0]);
-  }
-
-  private static Map<Integer, ConnectionHolder[]> createCdnClientsMap(final Map<Integer, SignalCdnUrl[]> signalCdnUrlMap,
-                                                                      final List<Interceptor> interceptors,
-                                                                      final Optional<Dns> dns,
-                                                                      final Optional<SignalProxy> proxy) {
-    validateConfiguration(signalCdnUrlMap);
-    final Map<Integer, ConnectionHolder[]> result = new HashMap<>();
-    for (Map.Entry<Integer, SignalCdnUrl[]> entry : signalCdnUrlMap.entrySet()) {
-      result.put(entry.getKey(),
-                 createConnectionHolders(entry.getValue(), interceptors, dns, proxy));
-    }
-    return Collections.unmodifiableMap(result);
-  }
-
-  private static void validateConfiguration(Map<Integer, SignalCdnUrl[]> signalCdnUrlMap) {
-    if (!signalCdnUrlMap.containsKey(0) || !signalCdnUrlMap.containsKey(2)) {
-      throw new AssertionError("Configuration used to create PushServiceSocket must support CDN 0 and CDN 2");
-    }
-  }
-
-  private static ConnectionHolder[] createConnectionHolders(SignalUrl[] urls, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
-    List<ConnectionHolder> connectionHolders = new LinkedList<>();
-
-    for (SignalUrl url : urls) {
-      connectionHolders.add(new ConnectionHolder(createConnectionClient(url, interceptors, dns, proxy), url.getUrl(), url.getHostHeader()));
-    }
-
-    return connectionHolders.toArray(new ConnectionHolder[0]);
-  }
-
-  private static OkHttpClient createConnectionClient(SignalUrl url, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
-    try {
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
-
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
-
-      OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                                                     .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-                                                     .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-                                                     .dns(dns.or(Dns.SYSTEM));
-
-      if (proxy.isPresent()) {
-        builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
-      }
-
-      builder.sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-             .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-             .build();
-
-      builder.connectionPool(new ConnectionPool(5, 45, TimeUnit.SECONDS));
-
-      for (Interceptor interceptor : interceptors) {
-        builder.addInterceptor(interceptor);
-      }
-
-      return builder.build();
-    } catch (NoSuchAlgorithmException | KeyManagementException e) {
-      throw new AssertionError(e);
-    }
-  }
-
   private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
     try {
       String identifier = credentialsProvider.getUuid() != null ? credentialsProvider.getUuid().toString() : credentialsProvider.getE164();
@@ -1965,45 +1841,6 @@ public class PushServiceSocket {
     private AuthCredentials backupCredentials;
   }
 
-  private static class ConnectionHolder {
-
-    private final OkHttpClient     client;
-    private final String           url;
-    private final Optional<String> hostHeader;
-
-    private ConnectionHolder(OkHttpClient client, String url, Optional<String> hostHeader) {
-      this.client     = client;
-      this.url        = url;
-      this.hostHeader = hostHeader;
-    }
-
-    OkHttpClient getClient() {
-      return client;
-    }
-
-    public String getUrl() {
-      return url;
-    }
-
-    Optional<String> getHostHeader() {
-      return hostHeader;
-    }
-  }
-
-  private static class ServiceConnectionHolder extends ConnectionHolder {
-
-    private final OkHttpClient unidentifiedClient;
-
-    private ServiceConnectionHolder(OkHttpClient identifiedClient, OkHttpClient unidentifiedClient, String url, Optional<String> hostHeader) {
-      super(identifiedClient, url, hostHeader);
-      this.unidentifiedClient = unidentifiedClient;
-    }
-
-    OkHttpClient getUnidentifiedClient() {
-      return unidentifiedClient;
-    }
-  }
-
   private interface ResponseCodeHandler {
     void handle(int responseCode) throws NonSuccessfulResponseCodeException, PushNetworkException;
   }
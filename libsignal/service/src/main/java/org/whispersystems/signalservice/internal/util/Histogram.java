@@ -0,0 +1,112 @@
+package org.whispersystems.signalservice.internal.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values into power-of-two buckets, and can be recorded to from any thread without locking.
+ * Bucket 0 holds values of zero or less, and bucket i holds values in [2^(i-1), 2^i).
+ *
+ * Reads aren't a consistent snapshot while values are being recorded, which is fine for monitoring.
+ */
+public final class Histogram {
+
+  static final int BUCKETS = 40;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong      max    = new AtomicLong(Long.MIN_VALUE);
+
+  public void record(long value) {
+    counts.incrementAndGet(bucketFor(value));
+
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+
+    return count;
+  }
+
+  /**
+   * @return The largest value recorded, or 0 if there haven't been any.
+   */
+  public long getMax() {
+    long value = max.get();
+    return value == Long.MIN_VALUE ? 0 : value;
+  }
+
+  /**
+   * @param percentile Between 0 and 100.
+   * @return An upper bound on the value at the given percentile, or 0 if nothing has been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = getCounts();
+    long   total    = 0;
+
+    for (long count : snapshot) {
+      total += count;
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long target = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+    long seen   = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+
+      if (seen >= Math.max(1, target)) {
+        return Math.min(upperBound(i), getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  /**
+   * @return The count in each bucket, as described in the class comment.
+   */
+  public long[] getCounts() {
+    long[] snapshot = new long[BUCKETS];
+
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+    }
+
+    return snapshot;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    max.set(Long.MIN_VALUE);
+  }
+
+  @Override
+  public String toString() {
+    return "count: " + getCount() + ", p50: " + getPercentile(50) + ", p90: " + getPercentile(90) + ", p99: " + getPercentile(99) + ", max: " + getMax();
+  }
+
+  static int bucketFor(long value) {
+    if (value <= 0) {
+      return 0;
+    }
+
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+  }
+
+  private static long upperBound(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+}
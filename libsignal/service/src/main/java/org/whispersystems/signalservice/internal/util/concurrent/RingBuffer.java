@@ -0,0 +1,113 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue backed by a ring of slots that can be offered to and polled from by any number
+ * of threads without locking.
+ *
+ * Each slot carries a sequence number that says whether it's ready to be written or read for a
+ * given position, so producers and consumers only ever contend on their own end of the queue.
+ */
+public final class RingBuffer<E> {
+
+  private final int                     mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray         sequences;
+  private final AtomicLong              head;
+  private final AtomicLong              tail;
+
+  /**
+   * @param capacity Rounded up to the next power of two.
+   */
+  public RingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Bad capacity: " + capacity);
+    }
+
+    int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+    this.mask      = size - 1;
+    this.elements  = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    this.head      = new AtomicLong();
+    this.tail      = new AtomicLong();
+
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return False if the queue is full.
+   */
+  public boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+
+    long position = tail.get();
+
+    while (true) {
+      int  index      = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.set(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * @return The element at the head of the queue, or null if it's empty.
+   */
+  public E poll() {
+    long position = head.get();
+
+    while (true) {
+      int  index      = (int) (position & mask);
+      long difference = sequences.get(index) - (position + 1);
+
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          E element = elements.get(index);
+          elements.set(index, null);
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Only approximate while other threads are offering or polling.
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+}
@@ -13,22 +13,25 @@ import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
 import org.whispersystems.signalservice.api.websocket.ConnectivityListener;
 import org.whispersystems.signalservice.internal.configuration.SignalProxy;
 import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.Histogram;
 import org.whispersystems.signalservice.internal.util.Util;
 import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.RingBuffer;
 import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.io.InterruptedIOException;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -49,13 +52,23 @@ import static org.whispersystems.signalservice.internal.websocket.WebSocketProto
 import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
 import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
 
+/**
+ * Reading incoming requests and sending outgoing ones don't share a lock, so a long queue of
+ * incoming messages being read and acked doesn't hold up other requests, or vice versa. Connecting,
+ * disconnecting and the socket lifecycle callbacks are still serialized on this object.
+ */
 public class WebSocketConnection extends WebSocketListener {
 
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
+  private static final int    INCOMING_QUEUE_CAPACITY   = 1024;
+  private static final long   FULL_QUEUE_BACKOFF_NANOS  = TimeUnit.MILLISECONDS.toNanos(1);
 
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest> outgoingRequests = new HashMap<>();
+  private final RingBuffer<WebSocketRequestMessage> incomingRequests  = new RingBuffer<>(INCOMING_QUEUE_CAPACITY);
+  private final Semaphore                           incomingAvailable = new Semaphore(0);
+  private final Map<Long, OutgoingRequest>          outgoingRequests  = new ConcurrentHashMap<>();
+  private final Histogram                           queueDepths       = new Histogram();
+  private final Histogram                           roundTripTimes    = new Histogram();
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -67,10 +80,10 @@ public class WebSocketConnection extends WebSocketListener {
   private final Optional<Dns>                 dns;
   private final Optional<SignalProxy>         signalProxy;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private volatile WebSocket       client;
+  private volatile boolean         connected;
+  private volatile KeepAliveSender keepAliveSender;
+  private          int             attempts;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -160,28 +173,59 @@ public class WebSocketConnection extends WebSocketListener {
       keepAliveSender = null;
     }
 
+    incomingAvailable.release();
     notifyAll();
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
+    long startTime = System.currentTimeMillis();
+
+    while (true) {
+      if (client == null) {
+        throw new IOException("Connection closed!");
+      }
+
+      long remaining = timeoutMillis - elapsedTime(startTime);
+
+      try {
+        if (!incomingAvailable.tryAcquire(Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+          if (client == null) throw new IOException("Connection closed!");
+          else                throw new TimeoutException("Timeout exceeded");
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      WebSocketRequestMessage request = incomingRequests.poll();
+
+      if (request != null) {
+        return request;
+      }
+
+      // Otherwise we were woken up by a disconnect, which we'll notice at the top of the loop.
+    }
+  }
+
+  /**
+   * Returns the next incoming request if one is already waiting, and otherwise null without waiting.
+   */
+  public WebSocketRequestMessage pollRequest() throws IOException {
     if (client == null) {
       throw new IOException("Connection closed!");
     }
 
-    long startTime = System.currentTimeMillis();
-
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
+    if (!incomingAvailable.tryAcquire()) {
+      return null;
     }
 
-    if      (incomingRequests.isEmpty() && client == null) throw new IOException("Connection closed!");
-    else if (incomingRequests.isEmpty())                   throw new TimeoutException("Timeout exceeded");
-    else                                                   return incomingRequests.removeFirst();
+    return incomingRequests.poll();
   }
 
-  public synchronized ListenableFuture<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+  public ListenableFuture<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
     WebSocketMessage message = WebSocketMessage.newBuilder()
@@ -192,14 +236,23 @@ public class WebSocketConnection extends WebSocketListener {
     SettableFuture<WebsocketResponse> future = new SettableFuture<>();
     outgoingRequests.put(request.getId(), new OutgoingRequest(future, System.currentTimeMillis()));
 
+    if (!connected) {
+      // The connection closed after we checked, and may have already failed the requests it had.
+      outgoingRequests.remove(request.getId());
+      throw new IOException("No connection!");
+    }
+
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("Write failed!");
     }
 
     return future;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -214,7 +267,9 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
-  private synchronized void sendKeepAlive() throws IOException {
+  private void sendKeepAlive() throws IOException {
+    WebSocket client = this.client;
+
     if (keepAliveSender != null && client != null) {
       byte[] message = WebSocketMessage.newBuilder()
                                        .setType(WebSocketMessage.Type.REQUEST)
@@ -244,27 +299,58 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  /**
+   * Depths of the incoming request queue, sampled as each request arrives.
+   */
+  public Histogram getIncomingQueueDepths() {
+    return queueDepths;
+  }
+
+  /**
+   * Times in milliseconds between sending a request and receiving its response.
+   */
+  public Histogram getRoundTripTimes() {
+    return roundTripTimes;
+  }
+
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
-        incomingRequests.add(message.getRequest());
+        enqueueIncomingRequest(message.getRequest());
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        OutgoingRequest listener = outgoingRequests.get(message.getResponse().getId());
+        OutgoingRequest listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) {
+          roundTripTimes.record(System.currentTimeMillis() - listener.getStartTimestamp());
           listener.getResponseFuture().set(new WebsocketResponse(message.getResponse().getStatus(),
                                                                  new String(message.getResponse().getBody().toByteArray())));
         }
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
     }
   }
 
+  /**
+   * If the queue is full we hold up the socket's reader thread until there's room, which pushes back
+   * on the server rather than growing without bound. If we're disconnected while waiting, the
+   * request is dropped, and since it was never acked the server will send it again.
+   */
+  private void enqueueIncomingRequest(WebSocketRequestMessage request) {
+    while (!incomingRequests.offer(request)) {
+      if (client == null) {
+        Log.w(TAG, "Dropping an incoming request, the queue is full and we've disconnected.");
+        return;
+      }
+      LockSupport.parkNanos(FULL_QUEUE_BACKOFF_NANOS);
+    }
+
+    queueDepths.record(incomingRequests.size());
+    incomingAvailable.release();
+  }
+
   @Override
   public synchronized void onClosed(WebSocket webSocket, int code, String reason) {
     Log.i(TAG, "onClose()");
@@ -287,6 +373,8 @@ public class WebSocketConnection extends WebSocketListener {
       listener.onDisconnected();
     }
 
+    Log.i(TAG, "Round trip times: " + roundTripTimes + ", incoming queue depths: " + queueDepths);
+
     Util.wait(this, Math.min(++attempts * 200, TimeUnit.SECONDS.toMillis(15)));
 
     if (client != null) {
@@ -0,0 +1,226 @@
+package org.whispersystems.signalservice.api;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.messages.GroupSendStats;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class GroupSendEngineTest {
+
+  private static final int  MAX_IN_FLIGHT = 4;
+  private static final int  MAX_ATTEMPTS  = 4;
+  private static final long SEND_MILLIS   = 2;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(32);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void send_resultsAreInRecipientOrder() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(50);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(50), (recipient, access, startTime) -> success(recipient), null);
+
+    assertEquals(50, result.getResults().size());
+
+    for (int i = 0; i < recipients.size(); i++) {
+      assertEquals(recipients.get(i), result.getResults().get(i).getAddress());
+    }
+
+    assertEquals(50, result.getStats().getSuccesses());
+    assertEquals(50, result.getStats().getAttempts());
+    assertEquals(0, result.getStats().getRetries());
+  }
+
+  @Test
+  public void send_neverExceedsMaxInFlight() throws IOException {
+    List<SignalServiceAddress> recipients  = createRecipients(100);
+    AtomicInteger              inFlight    = new AtomicInteger();
+    AtomicInteger              highestSeen = new AtomicInteger();
+    GroupSendEngine            engine      = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(100), (recipient, access, startTime) -> {
+      int current = inFlight.incrementAndGet();
+
+      synchronized (highestSeen) {
+        highestSeen.set(Math.max(highestSeen.get(), current));
+      }
+
+      sleep(SEND_MILLIS);
+      inFlight.decrementAndGet();
+
+      return success(recipient);
+    }, null);
+
+    assertEquals(100, result.getStats().getSuccesses());
+    assertTrue(highestSeen.get() <= MAX_IN_FLIGHT);
+  }
+
+  @Test
+  public void send_retriesOnlyTheRecipientThatNeedsIt() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(20);
+    Map<String, AtomicInteger> attempts   = new ConcurrentHashMap<>();
+    SignalServiceAddress       conflicted = recipients.get(7);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(20), (recipient, access, startTime) -> {
+      int attempt = attempts.computeIfAbsent(recipient.getIdentifier(), k -> new AtomicInteger()).incrementAndGet();
+
+      if (recipient.equals(conflicted) && attempt < 3) {
+        throw new GroupSendEngine.RetryException(access);
+      }
+
+      return success(recipient);
+    }, null);
+
+    assertEquals(20, result.getStats().getSuccesses());
+    assertEquals(22, result.getStats().getAttempts());
+    assertEquals(2, result.getStats().getRetries());
+
+    for (SignalServiceAddress recipient : recipients) {
+      assertEquals(recipient.equals(conflicted) ? 3 : 1, attempts.get(recipient.getIdentifier()).get());
+    }
+  }
+
+  @Test
+  public void send_exhaustedRetries_isNetworkFailure_andOthersStillSucceed() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(10);
+    SignalServiceAddress       stuck      = recipients.get(3);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(10), (recipient, access, startTime) -> {
+      if (recipient.equals(stuck)) {
+        throw new GroupSendEngine.RetryException(access);
+      }
+      return success(recipient);
+    }, null);
+
+    assertTrue(result.getResults().get(3).isNetworkFailure());
+    assertEquals(9, result.getStats().getSuccesses());
+    assertEquals(1, result.getStats().getNetworkFailures());
+    assertEquals(MAX_ATTEMPTS + 9, result.getStats().getAttempts());
+  }
+
+  @Test
+  public void send_mapsFailures() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(3);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(3), (recipient, access, startTime) -> {
+      if (recipient.equals(recipients.get(0))) throw new UnregisteredUserException(recipient.getIdentifier(), new IOException());
+      if (recipient.equals(recipients.get(1))) throw new PushNetworkException("offline");
+      return success(recipient);
+    }, null);
+
+    assertTrue(result.getResults().get(0).isUnregisteredFailure());
+    assertTrue(result.getResults().get(1).isNetworkFailure());
+    assertNotNull(result.getResults().get(2).getSuccess());
+    assertEquals(1, result.getStats().getUnregisteredFailures());
+    assertEquals(1, result.getStats().getNetworkFailures());
+  }
+
+  @Test
+  public void send_unexpectedFailure_throws() {
+    List<SignalServiceAddress> recipients = createRecipients(5);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    try {
+      engine.send(recipients, identified(5), (recipient, access, startTime) -> {
+        throw new IllegalStateException();
+      }, null);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void send_canceled_throwsCancelation() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(5);
+    GroupSendEngine            engine     = new GroupSendEngine(executor, MAX_IN_FLIGHT, MAX_ATTEMPTS);
+
+    try {
+      engine.send(recipients, identified(5), (recipient, access, startTime) -> success(recipient), () -> true);
+      fail();
+    } catch (CancelationException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Sends to a 1,000 member group where each send takes a couple of milliseconds and one in ten
+   * recipients needs a retry.
+   */
+  @Test
+  public void largeGroup_countsEverySendAndRetry() throws IOException {
+    List<SignalServiceAddress> recipients = createRecipients(1000);
+    Map<String, Boolean>       retried    = new ConcurrentHashMap<>();
+    GroupSendEngine            engine     = new GroupSendEngine(executor, 8, MAX_ATTEMPTS);
+
+    GroupSendEngine.Result result = engine.send(recipients, identified(1000), (recipient, access, startTime) -> {
+      sleep(SEND_MILLIS);
+
+      if (recipient.getIdentifier().hashCode() % 10 == 0 && retried.put(recipient.getIdentifier(), true) == null) {
+        throw new GroupSendEngine.RetryException(access);
+      }
+
+      return SendMessageResult.success(recipient, false, false, System.currentTimeMillis() - startTime);
+    }, null);
+
+    GroupSendStats stats = result.getStats();
+
+    assertEquals(1000, stats.getSuccesses());
+    assertEquals(1000 + retried.size(), stats.getAttempts());
+  }
+
+  private static SendMessageResult success(SignalServiceAddress recipient) {
+    return SendMessageResult.success(recipient, false, false, 0);
+  }
+
+  private static List<SignalServiceAddress> createRecipients(int count) {
+    List<SignalServiceAddress> recipients = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      recipients.add(new SignalServiceAddress(UUID.randomUUID(), null));
+    }
+
+    return recipients;
+  }
+
+  private static List<Optional<UnidentifiedAccess>> identified(int count) {
+    return Collections.nCopies(count, Optional.absent());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
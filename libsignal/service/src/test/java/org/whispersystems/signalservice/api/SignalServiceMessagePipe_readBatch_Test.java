@@ -0,0 +1,321 @@
+package org.whispersystems.signalservice.api;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+public final class SignalServiceMessagePipe_readBatch_Test {
+
+  private static final String TAG = SignalServiceMessagePipe_readBatch_Test.class.getSimpleName();
+
+  private static final int  QUEUED_MESSAGES = 10_000;
+  private static final int  BATCH_SIZE      = 100;
+  private static final long COMMIT_NANOS    = TimeUnit.MICROSECONDS.toNanos(500);
+
+  @Test
+  public void readBatch_acksEverythingOnceInOrder_afterCallback() throws Exception {
+    FakeWebSocket               websocket = new FakeWebSocket(250);
+    SignalServiceMessagePipe    pipe      = createPipe(websocket);
+    List<Long>                  persisted = new ArrayList<>();
+    List<SignalServiceEnvelope> batch;
+
+    while (!(batch = pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+      assertEquals("Nothing in a batch should be acked before it's persisted", persisted.size(), websocket.acked.size());
+      for (SignalServiceEnvelope envelope : envelopes) {
+        persisted.add(envelope.getTimestamp());
+      }
+    })).isEmpty())
+    {
+      assertTrue(batch.size() <= BATCH_SIZE);
+    }
+
+    assertEquals(250, persisted.size());
+    assertEquals(251, websocket.acked.size());
+
+    for (int i = 0; i < 250; i++) {
+      assertEquals(i, (long) persisted.get(i));
+      assertEquals(i, websocket.acked.get(i).getId());
+      assertEquals(200, websocket.acked.get(i).getStatus());
+    }
+  }
+
+  @Test
+  public void readBatch_doesNotAck_whenBatchIsNotPersisted() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(10);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+
+    try {
+      pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+        throw new IOException("Failed to persist");
+      });
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertTrue(websocket.acked.isEmpty());
+  }
+
+  @Test
+  public void readBatch_acksEveryEnvelope_whenOneCannotBeProcessed() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(10);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+    List<Long>               persisted = new ArrayList<>();
+
+    List<SignalServiceEnvelope> batch = pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        if (envelope.getTimestamp() == 4) {
+          throw new IllegalStateException("Bad envelope");
+        }
+      }
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        persisted.add(envelope.getTimestamp());
+      }
+    });
+
+    assertEquals(10, batch.size());
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 5L, 6L, 7L, 8L, 9L), persisted);
+    assertEquals(10, websocket.acked.size());
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, websocket.acked.get(i).getId());
+    }
+  }
+
+  @Test
+  public void readBatch_onlyRetriesUnpersistedEnvelopes_whenBatchIsPartlyPersisted() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(10);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+    List<Long>               persisted = new ArrayList<>();
+    List<Integer>            calls     = new ArrayList<>();
+
+    pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+      List<SignalServiceEnvelope> unpersisted = new ArrayList<>();
+
+      calls.add(envelopes.size());
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        if (envelopes.size() > 1 && (envelope.getTimestamp() == 4 || envelope.getTimestamp() == 7)) {
+          unpersisted.add(envelope);
+        } else {
+          persisted.add(envelope.getTimestamp());
+        }
+      }
+
+      if (!unpersisted.isEmpty()) {
+        throw new SignalServiceMessagePipe.PartialBatchException(unpersisted, new IllegalStateException("Bad envelope"));
+      }
+    });
+
+    assertEquals(Arrays.asList(10, 1, 1), calls);
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 5L, 6L, 8L, 9L, 4L, 7L), persisted);
+    assertEquals(10, websocket.acked.size());
+
+    List<Long> ackedIds = new ArrayList<>();
+    for (WebSocketResponseMessage response : websocket.acked) {
+      ackedIds.add(response.getId());
+    }
+
+    assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 5L, 6L, 8L, 9L, 4L, 7L), ackedIds);
+  }
+
+  @Test
+  public void readBatch_stopsAcking_whenRetriedEnvelopeIsNotPersisted() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(10);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+
+    try {
+      pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+        if (envelopes.size() > 1) {
+          throw new IllegalStateException("Bad envelope");
+        } else if (envelopes.get(0).getTimestamp() == 3) {
+          throw new IOException("Failed to persist");
+        }
+      });
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertEquals(3, websocket.acked.size());
+  }
+
+  @Test
+  public void readBatch_acksAndSkips_envelopeThatCannotBeParsed() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(3);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+    List<Long>               persisted = new ArrayList<>();
+
+    websocket.queued.set(1, websocket.queued.get(1).toBuilder().setBody(ByteString.copyFrom(new byte[] { -1, -1, -1 })).build());
+
+    assertEquals(2, pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        persisted.add(envelope.getTimestamp());
+      }
+    }).size());
+
+    assertEquals(Arrays.asList(0L, 2L), persisted);
+    assertEquals(3, websocket.acked.size());
+  }
+
+  @Test
+  public void readBatch_onlyUnparseableEnvelopes_keepsReadingUntilQueueEmpty() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(1);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+
+    websocket.queued.set(0, websocket.queued.get(0).toBuilder().setBody(ByteString.copyFrom(new byte[] { -1, -1, -1 })).build());
+
+    assertTrue(pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> fail()).isEmpty());
+    assertEquals(2, websocket.acked.size());
+  }
+
+  @Test
+  public void readBatch_endsAtQueueEmpty_andReportsItOnNextRead() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(3);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+
+    assertEquals(3, pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {}).size());
+    assertEquals(3, websocket.acked.size());
+
+    assertTrue(pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {}).isEmpty());
+    assertEquals(4, websocket.acked.size());
+  }
+
+  @Test
+  public void readOrEmpty_seesQueueEmpty_leftOverFromBatch() throws Exception {
+    FakeWebSocket            websocket = new FakeWebSocket(1);
+    SignalServiceMessagePipe pipe      = createPipe(websocket);
+
+    assertEquals(1, pipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> {}).size());
+    assertFalse(pipe.readOrEmpty(1, TimeUnit.SECONDS, envelope -> {}).isPresent());
+  }
+
+  /**
+   * Drains a queue of 10k messages where persisting costs one commit per callback, once a message
+   * at a time and once in batches. A benchmark, so it's only run by hand, and logs its results.
+   */
+  @Ignore("Benchmark")
+  @Test
+  public void drainRate() throws Exception {
+    FakeWebSocket            serialSocket = new FakeWebSocket(QUEUED_MESSAGES);
+    SignalServiceMessagePipe serialPipe   = createPipe(serialSocket);
+    long                     serialStart  = System.nanoTime();
+
+    while (serialPipe.readOrEmpty(1, TimeUnit.SECONDS, envelope -> commit()).isPresent()) {
+      // Keep reading
+    }
+
+    long serialNanos = System.nanoTime() - serialStart;
+
+    FakeWebSocket            batchSocket = new FakeWebSocket(QUEUED_MESSAGES);
+    SignalServiceMessagePipe batchPipe   = createPipe(batchSocket);
+    long                     batchStart  = System.nanoTime();
+
+    while (!batchPipe.readBatchOrEmpty(1, TimeUnit.SECONDS, BATCH_SIZE, envelopes -> commit()).isEmpty()) {
+      // Keep reading
+    }
+
+    long batchNanos = System.nanoTime() - batchStart;
+
+    assertEquals(QUEUED_MESSAGES + 1, serialSocket.acked.size());
+    assertEquals(QUEUED_MESSAGES + 1, batchSocket.acked.size());
+
+    Log.i(TAG, String.format("One at a time: %,.0f envelopes/sec", QUEUED_MESSAGES / (serialNanos / 1e9)));
+    Log.i(TAG, String.format("Batches of %d: %,.0f envelopes/sec", BATCH_SIZE, QUEUED_MESSAGES / (batchNanos / 1e9)));
+  }
+
+  private static void commit() {
+    long end = System.nanoTime() + COMMIT_NANOS;
+    while (System.nanoTime() < end) {
+      // Simulated transaction commit
+    }
+  }
+
+  private static SignalServiceMessagePipe createPipe(WebSocketConnection websocket) {
+    return new SignalServiceMessagePipe(websocket, Optional.of(new StaticCredentialsProvider(UUID.randomUUID(), "+15555550100", "password")), null);
+  }
+
+  /**
+   * Stands in for the server's end of the websocket, with a queue of messages waiting to be sent,
+   * followed by the request that says the queue is empty.
+   */
+  private static final class FakeWebSocket extends WebSocketConnection {
+
+    private final LinkedList<WebSocketRequestMessage> queued = new LinkedList<>();
+    private final List<WebSocketResponseMessage>      acked  = new ArrayList<>();
+
+    FakeWebSocket(int messages) {
+      super("http://localhost", null, Optional.absent(), null, null, null, Collections.emptyList(), Optional.absent(), Optional.absent());
+
+      for (int i = 0; i < messages; i++) {
+        Envelope envelope = Envelope.newBuilder()
+                                    .setType(Envelope.Type.CIPHERTEXT)
+                                    .setSourceUuid(UUID.randomUUID().toString())
+                                    .setSourceDevice(1)
+                                    .setTimestamp(i)
+                                    .setContent(ByteString.copyFrom(new byte[64]))
+                                    .build();
+
+        queued.add(WebSocketRequestMessage.newBuilder()
+                                          .setId(i)
+                                          .setVerb("PUT")
+                                          .setPath("/api/v1/message")
+                                          .setBody(envelope.toByteString())
+                                          .build());
+      }
+
+      queued.add(WebSocketRequestMessage.newBuilder()
+                                        .setId(messages)
+                                        .setVerb("PUT")
+                                        .setPath("/api/v1/queue/empty")
+                                        .build());
+    }
+
+    @Override
+    public synchronized void connect() {
+    }
+
+    @Override
+    public WebSocketRequestMessage readRequest(long timeoutMillis) throws TimeoutException {
+      if (queued.isEmpty()) {
+        throw new TimeoutException();
+      }
+      return queued.removeFirst();
+    }
+
+    @Override
+    public WebSocketRequestMessage pollRequest() {
+      return queued.pollFirst();
+    }
+
+    @Override
+    public void sendResponse(WebSocketResponseMessage response) {
+      acked.add(response);
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.junit.Test;
+import org.whispersystems.signalservice.internal.push.PushTransportDetails;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+public final class PaddedPlaintextTest {
+
+  @Test
+  public void getPadded_matchesTransportPadding() {
+    byte[]          content   = new byte[321];
+    PaddedPlaintext plaintext = new PaddedPlaintext(content);
+
+    assertArrayEquals(new PushTransportDetails(3).getPaddedMessageBody(content), plaintext.getPadded(3));
+  }
+
+  @Test
+  public void getPadded_isSharedForTheSameVersion() {
+    PaddedPlaintext plaintext = new PaddedPlaintext(new byte[100]);
+
+    assertSame(plaintext.getPadded(3), plaintext.getPadded(3));
+  }
+}
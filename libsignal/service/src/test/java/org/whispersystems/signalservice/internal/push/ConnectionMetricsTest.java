@@ -0,0 +1,124 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.Test;
+
+import java.net.Socket;
+
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Route;
+
+import static org.junit.Assert.assertEquals;
+
+public final class ConnectionMetricsTest {
+
+  @Test
+  public void newConnection_countsHandshake_andIsNotAPoolHit() {
+    ConnectionMetrics metrics  = new ConnectionMetrics("test");
+    EventListener     listener = metrics.eventListenerFactory().create(null);
+
+    listener.callStart(null);
+    listener.connectStart(null, null, null);
+    listener.secureConnectStart(null);
+    listener.secureConnectEnd(null, null);
+    listener.connectEnd(null, null, null, Protocol.HTTP_2);
+    listener.connectionAcquired(null, new FakeConnection(Protocol.HTTP_2));
+    listener.responseHeadersStart(null);
+    listener.callEnd(null);
+
+    assertEquals(1, metrics.getCalls());
+    assertEquals(1, metrics.getHandshakes());
+    assertEquals(1, metrics.getConnectionsAcquired());
+    assertEquals(0, metrics.getPooledConnections());
+    assertEquals(1, metrics.getMultiplexedConnections());
+    assertEquals(1, metrics.getTimeToFirstByte().getCount());
+  }
+
+  @Test
+  public void pooledConnection_isAPoolHit() {
+    ConnectionMetrics metrics = new ConnectionMetrics("test");
+
+    for (int i = 0; i < 4; i++) {
+      EventListener listener = metrics.eventListenerFactory().create(null);
+
+      listener.callStart(null);
+
+      if (i == 0) {
+        listener.connectStart(null, null, null);
+        listener.secureConnectStart(null);
+        listener.secureConnectEnd(null, null);
+      }
+
+      listener.connectionAcquired(null, new FakeConnection(Protocol.HTTP_1_1));
+      listener.responseHeadersStart(null);
+      listener.callEnd(null);
+    }
+
+    assertEquals(4, metrics.getCalls());
+    assertEquals(1, metrics.getHandshakes());
+    assertEquals(3, metrics.getPooledConnections());
+    assertEquals(0.75, metrics.getPoolHitRate(), 0.0001);
+    assertEquals(0, metrics.getMultiplexedConnections());
+  }
+
+  @Test
+  public void failedConnect_thenRetry_isNotAPoolHit() {
+    ConnectionMetrics metrics  = new ConnectionMetrics("test");
+    EventListener     listener = metrics.eventListenerFactory().create(null);
+
+    listener.callStart(null);
+    listener.connectStart(null, null, null);
+    listener.connectFailed(null, null, null, null, null);
+    listener.connectStart(null, null, null);
+    listener.connectionAcquired(null, new FakeConnection(Protocol.HTTP_1_1));
+
+    assertEquals(1, metrics.getFailedConnects());
+    assertEquals(0, metrics.getPooledConnections());
+  }
+
+  @Test
+  public void timeToFirstByte_onlyRecordedOncePerCall() {
+    ConnectionMetrics metrics  = new ConnectionMetrics("test");
+    EventListener     listener = metrics.eventListenerFactory().create(null);
+
+    listener.callStart(null);
+    listener.connectionAcquired(null, new FakeConnection(Protocol.HTTP_1_1));
+    listener.responseHeadersStart(null);
+    listener.connectionAcquired(null, new FakeConnection(Protocol.HTTP_1_1));
+    listener.responseHeadersStart(null);
+
+    assertEquals(1, metrics.getTimeToFirstByte().getCount());
+    assertEquals(2, metrics.getPooledConnections());
+  }
+
+  private static final class FakeConnection implements Connection {
+
+    private final Protocol protocol;
+
+    private FakeConnection(Protocol protocol) {
+      this.protocol = protocol;
+    }
+
+    @Override
+    public Route route() {
+      return null;
+    }
+
+    @Override
+    public Socket socket() {
+      return null;
+    }
+
+    @Override
+    public Handshake handshake() {
+      return null;
+    }
+
+    @Override
+    public Protocol protocol() {
+      return protocol;
+    }
+  }
+}
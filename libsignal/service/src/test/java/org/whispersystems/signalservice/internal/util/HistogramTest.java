@@ -0,0 +1,78 @@
+package org.whispersystems.signalservice.internal.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class HistogramTest {
+
+  @Test
+  public void bucketFor() {
+    assertEquals(0, Histogram.bucketFor(-5));
+    assertEquals(0, Histogram.bucketFor(0));
+    assertEquals(1, Histogram.bucketFor(1));
+    assertEquals(2, Histogram.bucketFor(2));
+    assertEquals(2, Histogram.bucketFor(3));
+    assertEquals(3, Histogram.bucketFor(4));
+    assertEquals(11, Histogram.bucketFor(1024));
+    assertEquals(Histogram.BUCKETS - 1, Histogram.bucketFor(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void empty() {
+    Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+  }
+
+  @Test
+  public void percentiles_areBucketUpperBounds_cappedAtMax() {
+    Histogram histogram = new Histogram();
+
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(100, histogram.getMax());
+    assertEquals(63, histogram.getPercentile(50));
+    assertEquals(100, histogram.getPercentile(90));
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(100, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void reset() {
+    Histogram histogram = new Histogram();
+
+    histogram.record(10);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void concurrentRecords_areAllCounted() throws InterruptedException {
+    Histogram histogram = new Histogram();
+    Thread[]  threads   = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100_000; i++) {
+          histogram.record(i % 1000);
+        }
+      });
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(400_000, histogram.getCount());
+    assertEquals(999, histogram.getMax());
+  }
+}
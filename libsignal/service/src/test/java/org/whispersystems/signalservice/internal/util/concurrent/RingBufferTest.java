@@ -0,0 +1,160 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class RingBufferTest {
+
+  @Test
+  public void capacity_isRoundedUpToPowerOfTwo() {
+    assertEquals(1, new RingBuffer<>(1).capacity());
+    assertEquals(8, new RingBuffer<>(5).capacity());
+    assertEquals(1024, new RingBuffer<>(1024).capacity());
+  }
+
+  @Test
+  public void poll_returnsElementsInOrder() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+
+    assertNull(buffer.poll());
+
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(buffer.offer(i));
+      }
+
+      assertFalse(buffer.offer(4));
+      assertEquals(4, buffer.size());
+
+      for (int i = 0; i < 4; i++) {
+        assertEquals(Integer.valueOf(i), buffer.poll());
+      }
+
+      assertNull(buffer.poll());
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void offer_null_throws() {
+    new RingBuffer<>(4).offer(null);
+  }
+
+  @Test
+  public void concurrentProducers_singleConsumer_seeEveryElementOnceInProducerOrder() throws InterruptedException {
+    final int producers = 4;
+    final int perThread = 100_000;
+
+    RingBuffer<long[]> buffer  = new RingBuffer<>(64);
+    CountDownLatch     start   = new CountDownLatch(1);
+    List<Thread>       threads = new ArrayList<>();
+
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        for (int i = 0; i < perThread; i++) {
+          long[] element = new long[] { producer, i };
+          while (!buffer.offer(element)) {
+            Thread.yield();
+          }
+        }
+      });
+
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+
+    int[] next     = new int[producers];
+    int   received = 0;
+
+    while (received < producers * perThread) {
+      long[] element = buffer.poll();
+
+      if (element == null) {
+        Thread.yield();
+        continue;
+      }
+
+      assertEquals(next[(int) element[0]]++, element[1]);
+      received++;
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(buffer.poll());
+
+    for (int p = 0; p < producers; p++) {
+      assertEquals(perThread, next[p]);
+    }
+  }
+
+  @Test
+  public void concurrentConsumers_eachElementPolledOnce() throws InterruptedException {
+    final int total = 200_000;
+
+    RingBuffer<Integer> buffer     = new RingBuffer<>(32);
+    AtomicInteger       received   = new AtomicInteger();
+    AtomicInteger       duplicates = new AtomicInteger();
+    boolean[]           seen       = new boolean[total];
+    List<Thread>        threads    = new ArrayList<>();
+
+    for (int c = 0; c < 3; c++) {
+      Thread thread = new Thread(() -> {
+        while (received.get() < total) {
+          Integer element = buffer.poll();
+
+          if (element == null) {
+            Thread.yield();
+            continue;
+          }
+
+          synchronized (seen) {
+            if (seen[element]) duplicates.incrementAndGet();
+            seen[element] = true;
+          }
+          received.incrementAndGet();
+        }
+      });
+
+      thread.start();
+      threads.add(thread);
+    }
+
+    for (int i = 0; i < total; i++) {
+      while (!buffer.offer(i)) {
+        Thread.yield();
+      }
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(total, received.get());
+    assertEquals(0, duplicates.get());
+
+    for (boolean value : seen) {
+      assertTrue(value);
+    }
+  }
+}
@@ -18,7 +18,8 @@ import java.util.concurrent.Executors;
  *
  * It's also worth noting that this controller has lifecycle that matches the {@link PagedData} that
  * contains it. When invalidations come in, this class will just swap out the active controller with
- * a new one.
+ * a new one. The {@link PageCache} and {@link PagingStats} are shared by every controller it creates,
+ * so they carry over across invalidations.
  */
 class BufferedPagingController<E> implements PagingController {
 
@@ -26,6 +27,8 @@ class BufferedPagingController<E> implements PagingController {
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final Executor                 serializationExecutor;
+  private final PageCache<E>             pageCache;
+  private final PagingStats              stats;
 
   private PagingController activeController;
   private int              lastRequestedIndex;
@@ -35,6 +38,8 @@ class BufferedPagingController<E> implements PagingController {
     this.config                = config;
     this.liveData              = liveData;
     this.serializationExecutor = Executors.newSingleThreadExecutor();
+    this.pageCache             = new PageCache<>(config.pageSize(), config.cachedPages());
+    this.stats                 = new PagingStats();
 
     this.activeController   = null;
     this.lastRequestedIndex = config.startIndex();
@@ -57,8 +62,12 @@ class BufferedPagingController<E> implements PagingController {
         activeController.onDataInvalidated();
       }
 
-      activeController = new FixedSizePagingController<>(dataSource, config, liveData, dataSource.size());
+      activeController = new FixedSizePagingController<>(dataSource, config, liveData, dataSource.size(), pageCache, stats);
       activeController.onDataNeededAroundIndex(lastRequestedIndex);
     });
   }
+
+  @NonNull PagingStats getStats() {
+    return stats;
+  }
 }
@@ -3,41 +3,222 @@ package org.signal.paging;
 import androidx.annotation.NonNull;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * A placeholder class for efficiently storing lists that are mostly empty space.
- * TODO [greyson][paging]
+ * A fixed-size list for efficiently storing data that is mostly empty space. Positions that
+ * haven't been set return null.
+ *
+ * Items are stored in fixed-size chunks, and only chunks that contain at least one item are
+ * allocated, so memory use is proportional to how much has been loaded rather than to the size of
+ * the list. Chunks are kept sorted by position, so lookups are a binary search over the loaded
+ * chunks. Copying one only copies the chunks that have been allocated, and clearing a range drops
+ * any chunks it covers outright.
  */
 public class CompressedList<E> extends AbstractList<E> {
 
-  private final List<E> wrapped;
+  static final int CHUNK_SIZE = 64;
+
+  private final int size;
+
+  private int[]      chunkIds;
+  private Object[][] chunks;
+  private int        chunkCount;
 
   public CompressedList(@NonNull List<E> source) {
-    this.wrapped = new ArrayList<>(source);
+    this(source.size());
+
+    if (source instanceof CompressedList) {
+      CompressedList<?> other = (CompressedList<?>) source;
+
+      this.chunkIds   = Arrays.copyOf(other.chunkIds, other.chunkCount);
+      this.chunks     = new Object[other.chunkCount][];
+      this.chunkCount = other.chunkCount;
+
+      for (int i = 0; i < chunkCount; i++) {
+        chunks[i] = Arrays.copyOf(other.chunks[i], CHUNK_SIZE);
+      }
+    } else {
+      for (int i = 0; i < size; i++) {
+        E element = source.get(i);
+        if (element != null) {
+          set(i, element);
+        }
+      }
+    }
   }
 
   public CompressedList(int totalSize) {
-    this.wrapped = new ArrayList<>(totalSize);
-
-    for (int i = 0; i < totalSize; i++) {
-      wrapped.add(null);
+    if (totalSize < 0) {
+      throw new IllegalArgumentException("Size cannot be negative! Requested: " + totalSize);
     }
+
+    this.size       = totalSize;
+    this.chunkIds   = new int[0];
+    this.chunks     = new Object[0][];
+    this.chunkCount = 0;
   }
 
   @Override
   public int size() {
-    return wrapped.size();
+    return size;
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public E get(int index) {
-    return wrapped.get(index);
+    checkIndex(index);
+
+    int position = findChunk(index / CHUNK_SIZE);
+
+    if (position < 0) {
+      return null;
+    }
+
+    return (E) chunks[position][index % CHUNK_SIZE];
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public E set(int globalIndex, E element) {
-    return wrapped.set(globalIndex, element);
+    checkIndex(globalIndex);
+
+    int chunkId  = globalIndex / CHUNK_SIZE;
+    int position = findChunk(chunkId);
+
+    if (position < 0) {
+      if (element == null) {
+        return null;
+      }
+
+      position = insertChunk(-(position + 1), chunkId);
+    }
+
+    Object[] chunk    = chunks[position];
+    E        previous = (E) chunk[globalIndex % CHUNK_SIZE];
+
+    chunk[globalIndex % CHUNK_SIZE] = element;
+
+    if (element == null && isEmpty(chunk)) {
+      removeChunks(position, position + 1);
+    }
+
+    return previous;
+  }
+
+  /**
+   * Resets every position in the range back to null. Chunks that fall entirely inside the range are
+   * dropped without being looked at, so this is cheap even for large ranges.
+   */
+  public void clearRange(int startInclusive, int endExclusive) {
+    if (startInclusive < 0 || endExclusive > size || startInclusive > endExclusive) {
+      throw new IndexOutOfBoundsException("Range: [" + startInclusive + ", " + endExclusive + "), Size: " + size);
+    }
+
+    if (startInclusive == endExclusive) {
+      return;
+    }
+
+    int firstChunkId = startInclusive / CHUNK_SIZE;
+    int lastChunkId  = (endExclusive - 1) / CHUNK_SIZE;
+
+    clearWithinChunk(firstChunkId, startInclusive, Math.min(endExclusive, (firstChunkId + 1) * CHUNK_SIZE));
+
+    if (lastChunkId != firstChunkId) {
+      clearWithinChunk(lastChunkId, lastChunkId * CHUNK_SIZE, endExclusive);
+    }
+
+    if (lastChunkId - firstChunkId > 1) {
+      int from = findChunk(firstChunkId + 1);
+      int to   = findChunk(lastChunkId);
+
+      from = from >= 0 ? from : -(from + 1);
+      to   = to >= 0 ? to : -(to + 1);
+
+      removeChunks(from, to);
+    }
+  }
+
+  /**
+   * @return The number of chunks that currently hold at least one item.
+   */
+  int getChunkCount() {
+    return chunkCount;
+  }
+
+  private void clearWithinChunk(int chunkId, int startInclusive, int endExclusive) {
+    int position = findChunk(chunkId);
+
+    if (position < 0) {
+      return;
+    }
+
+    if (endExclusive - startInclusive == CHUNK_SIZE) {
+      removeChunks(position, position + 1);
+      return;
+    }
+
+    Object[] chunk = chunks[position];
+
+    Arrays.fill(chunk, startInclusive % CHUNK_SIZE, startInclusive % CHUNK_SIZE + (endExclusive - startInclusive), null);
+
+    if (isEmpty(chunk)) {
+      removeChunks(position, position + 1);
+    }
+  }
+
+  /**
+   * @return The position of the chunk in our arrays if it exists, otherwise (-(insertion point) - 1).
+   */
+  private int findChunk(int chunkId) {
+    return Arrays.binarySearch(chunkIds, 0, chunkCount, chunkId);
+  }
+
+  private int insertChunk(int position, int chunkId) {
+    if (chunkCount == chunkIds.length) {
+      int capacity = Math.max(4, chunkCount * 2);
+
+      chunkIds = Arrays.copyOf(chunkIds, capacity);
+      chunks   = Arrays.copyOf(chunks, capacity);
+    }
+
+    System.arraycopy(chunkIds, position, chunkIds, position + 1, chunkCount - position);
+    System.arraycopy(chunks, position, chunks, position + 1, chunkCount - position);
+
+    chunkIds[position] = chunkId;
+    chunks[position]   = new Object[CHUNK_SIZE];
+    chunkCount++;
+
+    return position;
+  }
+
+  private void removeChunks(int fromPosition, int toPosition) {
+    int removed = toPosition - fromPosition;
+
+    if (removed <= 0) {
+      return;
+    }
+
+    System.arraycopy(chunkIds, toPosition, chunkIds, fromPosition, chunkCount - toPosition);
+    System.arraycopy(chunks, toPosition, chunks, fromPosition, chunkCount - toPosition);
+
+    Arrays.fill(chunks, chunkCount - removed, chunkCount, null);
+    chunkCount -= removed;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  private static boolean isEmpty(@NonNull Object[] chunk) {
+    for (Object item : chunk) {
+      if (item != null) {
+        return false;
+      }
+    }
+    return true;
   }
 }
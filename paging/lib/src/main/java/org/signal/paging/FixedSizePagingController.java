@@ -6,9 +6,13 @@ import androidx.lifecycle.MutableLiveData;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The workhorse of managing page requests.
@@ -17,6 +21,11 @@ import java.util.concurrent.Executor;
  * a fixed size throughout. It assumes that all interface methods are called on a single thread,
  * which allows it to keep track of pending requests in a thread-safe way, while spinning off
  * tasks to fetch data on its own executor.
+ *
+ * It starts out with whatever pages the {@link PageCache} has from earlier controllers. Those are
+ * hidden until their keys have been checked against the data source, which is the first thing that
+ * happens on the fetch executor. Pages that still match are shown as-is, and the rest are dropped and
+ * loaded again.
  */
 class FixedSizePagingController<E> implements PagingController {
 
@@ -25,13 +34,31 @@ class FixedSizePagingController<E> implements PagingController {
   private static final Executor FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-FixedSizePagingController");
   private static final boolean  DEBUG          = false;
 
+  /** How often we take a new sample of the scroll velocity. */
+  private static final long VELOCITY_SAMPLE_INTERVAL_MS = 32;
+
+  /** If there hasn't been a request in this long, we assume the user has stopped scrolling. */
+  private static final long VELOCITY_IDLE_MS = 500;
+
+  /** We try to prefetch whatever the user will reach within this much time at their current speed. */
+  private static final long PREFETCH_HORIZON_MS = 500;
+
   private final PagedDataSource<E>       dataSource;
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final DataStatus               loadState;
+  private final PageCache<E>             pageCache;
+  private final PagingStats              stats;
+  private final Set<Integer>             unverifiedPages;
+  private final Set<Integer>             reusedPages;
 
-  private List<E> data;
+  private volatile CompressedList<E> data;
 
+  private int   velocitySampleIndex;
+  private long  velocitySampleTime;
+  private float velocity;
+
+  private volatile int     latestRequestedIndex;
   private volatile boolean invalidated;
 
   FixedSizePagingController(@NonNull PagedDataSource<E> dataSource,
@@ -39,17 +66,56 @@ class FixedSizePagingController<E> implements PagingController {
                             @NonNull MutableLiveData<List<E>> liveData,
                             int size)
   {
-    this.dataSource = dataSource;
-    this.config     = config;
-    this.liveData   = liveData;
-    this.loadState  = DataStatus.obtain(size);
-    this.data       = new CompressedList<>(loadState.size());
+    this(dataSource, config, liveData, size, new PageCache<>(config.pageSize(), config.cachedPages()), new PagingStats());
+  }
+
+  FixedSizePagingController(@NonNull PagedDataSource<E> dataSource,
+                            @NonNull PagingConfig config,
+                            @NonNull MutableLiveData<List<E>> liveData,
+                            int size,
+                            @NonNull PageCache<E> pageCache,
+                            @NonNull PagingStats stats)
+  {
+    this.dataSource           = dataSource;
+    this.config               = config;
+    this.liveData             = liveData;
+    this.loadState            = DataStatus.obtain(size);
+    this.pageCache            = pageCache;
+    this.stats                = stats;
+    this.unverifiedPages      = new HashSet<>();
+    this.reusedPages          = new HashSet<>();
+    this.data                 = new CompressedList<>(loadState.size());
+    this.velocitySampleTime   = -1;
+    this.latestRequestedIndex = config.startIndex();
+
+    List<PageCache.Page<E>> cached = pageCache.getPages(size);
+
+    if (!cached.isEmpty()) {
+      synchronized (loadState) {
+        for (PageCache.Page<E> page : cached) {
+          for (int i = 0; i < page.items.size(); i++) {
+            data.set(page.start + i, page.items.get(i));
+          }
+
+          loadState.markRange(page.start, page.end());
+          unverifiedPages.add(page.start / config.pageSize());
+        }
+      }
+
+      if (DEBUG) Log.i(TAG, "Started with " + cached.size() + " cached pages.");
+
+      FETCH_EXECUTOR.execute(() -> verifyCachedPages(cached));
+    }
   }
 
   /**
    * We assume this method is always called on the same thread, so we can read our
    * {@code loadState} and construct the parameters of a fetch request. That fetch request can
    * then be performed on separate single-thread executor.
+   *
+   * On top of the usual buffer, we load up to {@link PagingConfig#maxPrefetchPages()} extra pages in
+   * the direction the user is scrolling, depending on how fast they're going. Any load that's still
+   * waiting to run (or still running) once the user has scrolled far away from it is canceled.
    */
   @Override
   public void onDataNeededAroundIndex(int aroundIndex) {
@@ -63,65 +129,225 @@ class FixedSizePagingController<E> implements PagingController {
       return;
     }
 
+    latestRequestedIndex = aroundIndex;
+    updateVelocity(aroundIndex, System.nanoTime());
+
+    int prefetch = getPrefetchPages(velocity, config.pageSize(), config.maxPrefetchPages()) * config.pageSize();
+
     int leftPageBoundary  = (aroundIndex / config.pageSize()) * config.pageSize();
     int rightPageBoundary = leftPageBoundary + config.pageSize();
     int buffer            = config.bufferPages() * config.pageSize();
 
-    int leftLoadBoundary  = Math.max(0, leftPageBoundary - buffer);
-    int rightLoadBoundary = Math.min(loadState.size(), rightPageBoundary + buffer);
+    int leftLoadBoundary  = Math.max(0, leftPageBoundary - buffer - (velocity < 0 ? prefetch : 0));
+    int rightLoadBoundary = Math.min(loadState.size(), rightPageBoundary + buffer + (velocity > 0 ? prefetch : 0));
+
+    int loadStart;
+    int loadEnd;
+    int totalSize = loadState.size();
+
+    synchronized (loadState) {
+      if (aroundIndex >= 0 && aroundIndex < totalSize) {
+        int     page = aroundIndex / config.pageSize();
+        boolean hit  = data.get(aroundIndex) != null && !unverifiedPages.contains(page);
+
+        stats.recordRequest(hit, hit && reusedPages.contains(page));
+      }
+
+      loadStart = loadState.getEarliestUnmarkedIndexInRange(leftLoadBoundary, rightLoadBoundary);
+
+      if (loadStart < 0) {
+        if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "loadStart < 0"));
+        return;
+      }
 
-    int loadStart = loadState.getEarliestUnmarkedIndexInRange(leftLoadBoundary, rightLoadBoundary);
+      loadEnd = loadState.getLatestUnmarkedIndexInRange(Math.max(leftLoadBoundary, loadStart), rightLoadBoundary) + 1;
+
+      if (loadEnd <= loadStart) {
+        if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "loadEnd <= loadStart, loadEnd: " + loadEnd + ", loadStart: " + loadStart));
+        return;
+      }
+
+      loadState.markRange(loadStart, loadEnd);
+    }
+
+    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize + ", prefetch: " + prefetch));
+
+    long requestTime = System.nanoTime();
+
+    FETCH_EXECUTOR.execute(() -> load(aroundIndex, loadStart, loadEnd, requestTime));
+  }
 
-    if (loadStart < 0) {
-      if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "loadStart < 0"));
+  @Override
+  public void onDataInvalidated() {
+    if (invalidated) {
       return;
     }
 
-    int loadEnd = loadState.getLatestUnmarkedIndexInRange(Math.max(leftLoadBoundary, loadStart), rightLoadBoundary) + 1;
+    synchronized (loadState) {
+      invalidated = true;
+      loadState.recycle();
+    }
+  }
+
+  /**
+   * Loads the range, which has already been marked in {@code loadState}, and posts the result. Must
+   * be run on the fetch executor.
+   */
+  private void load(int aroundIndex, int loadStart, int loadEnd, long requestTime) {
+    if (invalidated) {
+      Log.w(TAG, buildLog(aroundIndex, "Invalidated! At beginning of load task."));
+      return;
+    }
 
-    if (loadEnd <= loadStart) {
-      if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "loadEnd <= loadStart, loadEnd: " + loadEnd + ", loadStart: " + loadStart));
+    if (isStale(loadStart, loadEnd)) {
+      if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "Stale! At beginning of load task."));
+      abandonLoad(loadStart, loadEnd);
       return;
     }
 
-    int totalSize = loadState.size();
+    PagedDataSource.CancellationSignal cancellationSignal = () -> invalidated || isStale(loadStart, loadEnd);
 
-    loadState.markRange(loadStart, loadEnd);
+    List<E> loaded = dataSource.load(loadStart, loadEnd - loadStart, cancellationSignal);
 
-    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
+    if (invalidated) {
+      Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
+      return;
+    }
+
+    if (cancellationSignal.isCanceled()) {
+      if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "Stale! Just after data was loaded."));
+      abandonLoad(loadStart, loadEnd);
+      return;
+    }
+
+    CompressedList<E> updated = new CompressedList<>(data);
+
+    for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
+      updated.set(loadStart + i, loaded.get(i));
+    }
+
+    pageCache.put(dataSource, updated.size(), loadStart, loaded);
+    stats.recordLoad(System.nanoTime() - requestTime);
+
+    data = updated;
+    liveData.postValue(updated);
+  }
+
+  /**
+   * Checks the keys of the pages we started out with against the data source. Pages that still
+   * match are shown, and the rest are cleared out and loaded again. Must be run on the fetch
+   * executor, before any other load.
+   */
+  private void verifyCachedPages(@NonNull List<PageCache.Page<E>> cached) {
+    if (invalidated) {
+      return;
+    }
+
+    long                    requestTime = System.nanoTime();
+    CompressedList<E>       updated     = new CompressedList<>(data);
+    List<PageCache.Page<E>> stale       = new ArrayList<>();
+    List<PageCache.Page<E>> reused      = new ArrayList<>();
+
+    for (List<PageCache.Page<E>> run : PageCache.groupContiguous(cached)) {
+      int          runStart = run.get(0).start;
+      int          runEnd   = run.get(run.size() - 1).end();
+      List<Object> keys     = dataSource.loadKeys(runStart, runEnd - runStart);
 
-    FETCH_EXECUTOR.execute(() -> {
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! At beginning of load task."));
         return;
       }
 
-      List<E> loaded = dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
+      for (PageCache.Page<E> page : run) {
+        boolean matches = keys != null &&
+                          keys.size() == runEnd - runStart &&
+                          page.keys.equals(keys.subList(page.start - runStart, page.end() - runStart));
+
+        if (matches) {
+          reused.add(page);
+        } else {
+          updated.clearRange(page.start, page.end());
+          pageCache.remove(page);
+          stale.add(page);
+        }
+      }
+    }
 
+    synchronized (loadState) {
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
         return;
       }
 
-      List<E> updated = new CompressedList<>(data);
+      for (PageCache.Page<E> page : cached) {
+        unverifiedPages.remove(page.start / config.pageSize());
+      }
 
-      for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
-        updated.set(loadStart + i, loaded.get(i));
+      for (PageCache.Page<E> page : reused) {
+        reusedPages.add(page.start / config.pageSize());
       }
+    }
 
-      data = updated;
-      liveData.postValue(updated);
-    });
+    if (DEBUG) Log.i(TAG, "Reusing " + reused.size() + " cached pages, reloading " + stale.size() + ".");
+
+    data = updated;
+    liveData.postValue(updated);
+
+    for (List<PageCache.Page<E>> run : PageCache.groupContiguous(stale)) {
+      load(latestRequestedIndex, run.get(0).start, run.get(run.size() - 1).end(), requestTime);
+    }
   }
 
-  @Override
-  public void onDataInvalidated() {
-    if (invalidated) {
+  /**
+   * @return How many pages beyond the buffer we should load, given the scroll velocity in items per
+   *         second.
+   */
+  static int getPrefetchPages(float velocity, int pageSize, int maxPrefetchPages) {
+    float itemsAhead = Math.abs(velocity) * PREFETCH_HORIZON_MS / 1000f;
+    return Math.min(maxPrefetchPages, (int) Math.ceil(itemsAhead / pageSize));
+  }
+
+  /**
+   * Requests come in on every bind, often many within a single frame, so rather than looking at
+   * consecutive requests we compare against a sample that's at least
+   * {@link #VELOCITY_SAMPLE_INTERVAL_MS} old.
+   */
+  private void updateVelocity(int index, long nowNanos) {
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - velocitySampleTime);
+
+    if (velocitySampleTime < 0 || elapsedMs >= VELOCITY_IDLE_MS) {
+      velocity = 0;
+    } else if (elapsedMs >= VELOCITY_SAMPLE_INTERVAL_MS) {
+      velocity = (index - velocitySampleIndex) * 1000f / elapsedMs;
+    } else {
       return;
     }
 
-    invalidated = true;
-    loadState.recycle();
+    velocitySampleIndex = index;
+    velocitySampleTime  = nowNanos;
+  }
+
+  /**
+   * A load is stale if it no longer overlaps anything we'd load for the most recent request, even
+   * with the most prefetching we'd ever do.
+   */
+  private boolean isStale(int startInclusive, int endExclusive) {
+    int index    = latestRequestedIndex;
+    int distance = index < startInclusive ? startInclusive - index
+                                          : index >= endExclusive ? index - endExclusive + 1 : 0;
+
+    return distance > (config.bufferPages() + config.maxPrefetchPages() + 1) * config.pageSize();
+  }
+
+  /**
+   * Forgets that we ever started loading this range, so that it can be requested again later.
+   */
+  private void abandonLoad(int startInclusive, int endExclusive) {
+    synchronized (loadState) {
+      if (!invalidated) {
+        loadState.unmarkRange(startInclusive, endExclusive);
+      }
+    }
+
+    stats.recordCanceledLoad();
   }
 
   private static String buildLog(int aroundIndex, String message) {
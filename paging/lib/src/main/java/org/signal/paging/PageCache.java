@@ -0,0 +1,157 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small LRU cache of recently-loaded pages that outlives any single
+ * {@link FixedSizePagingController}.
+ *
+ * When the data is invalidated, most rows usually haven't changed, so a new controller can start
+ * with the cached pages instead of loading them all again. Nothing in here can tell whether a page is
+ * still valid, though. Every page is stored alongside the keys of its items (see
+ * {@link PagedDataSource#loadKeys(int, int)}), and the controller has to check them against the new
+ * data before it shows the page. Pages are only cached if the data source supports keys.
+ */
+class PageCache<E> {
+
+  private final int                             pageSize;
+  private final LinkedHashMap<Integer, Page<E>> pages;
+
+  PageCache(int pageSize, int maxPages) {
+    this.pageSize = pageSize;
+    this.pages    = new LinkedHashMap<Integer, Page<E>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Page<E>> eldest) {
+        return size() > maxPages;
+      }
+    };
+  }
+
+  /**
+   * Remembers every full page contained in the loaded range, along with the keys of its items. A
+   * page with an item that's missing or has no key replaces any cached copy of it, since that copy
+   * is now out of date.
+   *
+   * @param dataSize The size of the data set the items were loaded from.
+   * @param start The position of the first loaded item.
+   */
+  synchronized void put(@NonNull PagedDataSource<E> dataSource, int dataSize, int start, @NonNull List<E> loaded) {
+    int end       = Math.min(dataSize, start + loaded.size());
+    int firstPage = (start + pageSize - 1) / pageSize;
+
+    for (int page = firstPage; page * pageSize < end; page++) {
+      int pageStart = page * pageSize;
+      int pageEnd   = Math.min(dataSize, pageStart + pageSize);
+
+      if (pageEnd > end) {
+        break;
+      }
+
+      List<E>      items = new ArrayList<>(loaded.subList(pageStart - start, pageEnd - start));
+      List<Object> keys  = getKeys(dataSource, items);
+
+      if (keys != null) {
+        pages.put(page, new Page<>(pageStart, items, keys));
+      } else if (items.get(0) != null && dataSource.getKey(items.get(0)) == null) {
+        return;
+      } else {
+        pages.remove(page);
+      }
+    }
+  }
+
+  /**
+   * @return Every cached page that fits inside a data set of the provided size, ordered by position.
+   */
+  synchronized @NonNull List<Page<E>> getPages(int dataSize) {
+    List<Page<E>> fitting = new ArrayList<>(pages.size());
+
+    for (Page<E> page : pages.values()) {
+      if (page.end() <= dataSize) {
+        fitting.add(page);
+      }
+    }
+
+    Collections.sort(fitting, (a, b) -> Integer.compare(a.start, b.start));
+
+    return fitting;
+  }
+
+  /**
+   * Drops the page, unless it's already been replaced by a newer copy.
+   */
+  synchronized void remove(@NonNull Page<E> page) {
+    int index = page.start / pageSize;
+
+    if (pages.get(index) == page) {
+      pages.remove(index);
+    }
+  }
+
+  synchronized @Nullable Page<E> get(int page) {
+    return pages.get(page);
+  }
+
+  synchronized int size() {
+    return pages.size();
+  }
+
+  /**
+   * Splits pages that are ordered by position into runs with no gaps between them, so that the keys
+   * for each run can be loaded all at once.
+   */
+  static <E> @NonNull List<List<Page<E>>> groupContiguous(@NonNull List<Page<E>> sortedPages) {
+    List<List<Page<E>>> runs    = new ArrayList<>();
+    List<Page<E>>       current = null;
+
+    for (Page<E> page : sortedPages) {
+      if (current == null || current.get(current.size() - 1).end() != page.start) {
+        current = new ArrayList<>();
+        runs.add(current);
+      }
+
+      current.add(page);
+    }
+
+    return runs;
+  }
+
+  private static <E> @Nullable List<Object> getKeys(@NonNull PagedDataSource<E> dataSource, @NonNull List<E> items) {
+    List<Object> keys = new ArrayList<>(items.size());
+
+    for (E item : items) {
+      Object key = item != null ? dataSource.getKey(item) : null;
+
+      if (key == null) {
+        return null;
+      }
+
+      keys.add(key);
+    }
+
+    return keys;
+  }
+
+  static final class Page<E> {
+    final int          start;
+    final List<E>      items;
+    final List<Object> keys;
+
+    private Page(int start, @NonNull List<E> items, @NonNull List<Object> keys) {
+      this.start = start;
+      this.items = Collections.unmodifiableList(items);
+      this.keys  = Collections.unmodifiableList(keys);
+    }
+
+    int end() {
+      return start + items.size();
+    }
+  }
+}
@@ -14,18 +14,20 @@ public final class PagedData<E> {
 
   private final LiveData<List<E>> data;
   private final PagingController  controller;
+  private final PagingStats       stats;
 
   @AnyThread
   public static <E> PagedData<E> create(@NonNull PagedDataSource<E> dataSource, @NonNull PagingConfig config) {
-    MutableLiveData<List<E>> liveData   = new MutableLiveData<>();
-    PagingController         controller = new BufferedPagingController<>(dataSource, config, liveData);
+    MutableLiveData<List<E>>    liveData   = new MutableLiveData<>();
+    BufferedPagingController<E> controller = new BufferedPagingController<>(dataSource, config, liveData);
 
-    return new PagedData<>(liveData, controller);
+    return new PagedData<>(liveData, controller, controller.getStats());
   }
 
-  private PagedData(@NonNull LiveData<List<E>> data, @NonNull PagingController controller) {
+  private PagedData(@NonNull LiveData<List<E>> data, @NonNull PagingController controller, @NonNull PagingStats stats) {
     this.data       = data;
     this.controller = controller;
+    this.stats      = stats;
   }
 
   @AnyThread
@@ -37,4 +39,9 @@ public final class PagedData<E> {
   public @NonNull PagingController getController() {
     return controller;
   }
+
+  @AnyThread
+  public @NonNull PagingStats getStats() {
+    return stats;
+  }
 }
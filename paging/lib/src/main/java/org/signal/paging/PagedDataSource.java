@@ -1,6 +1,7 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.util.List;
@@ -26,6 +27,31 @@ public interface PagedDataSource<T> {
   @WorkerThread
   @NonNull List<T> load(int start, int length, @NonNull CancellationSignal cancellationSignal);
 
+  /**
+   * Optional. Lets pages that were loaded before the data was invalidated be reused afterwards, as
+   * long as the rows in them haven't changed. Only worth implementing if finding out what's in a
+   * range is much cheaper than loading it.
+   *
+   * @return A key for each item in the range, in order, or null if you don't support keys. A key
+   *         has to identify its item and change whenever the item does, such as an ID paired with
+   *         a last-modified time, and must be equal to what {@link #getKey(Object)} returns for the
+   *         same item.
+   */
+  @WorkerThread
+  default @Nullable List<Object> loadKeys(int start, int length) {
+    return null;
+  }
+
+  /**
+   * Optional, see {@link #loadKeys(int, int)}.
+   *
+   * @return The key of an item you previously loaded, or null if you don't support keys.
+   */
+  @WorkerThread
+  default @Nullable Object getKey(@NonNull T item) {
+    return null;
+  }
+
   interface CancellationSignal {
     /**
      * @return True if the operation has been canceled, otherwise false.
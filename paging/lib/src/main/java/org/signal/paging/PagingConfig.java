@@ -12,11 +12,15 @@ public final class PagingConfig {
   private final int bufferPages;
   private final int startIndex;
   private final int pageSize;
+  private final int maxPrefetchPages;
+  private final int cachedPages;
 
   private PagingConfig(@NonNull Builder builder) {
-    this.bufferPages = builder.bufferPages;
-    this.startIndex  = builder.startIndex;
-    this.pageSize    = builder.pageSize;
+    this.bufferPages      = builder.bufferPages;
+    this.startIndex       = builder.startIndex;
+    this.pageSize         = builder.pageSize;
+    this.maxPrefetchPages = builder.maxPrefetchPages;
+    this.cachedPages      = builder.cachedPages;
   }
 
   /**
@@ -42,10 +46,29 @@ public final class PagingConfig {
     return startIndex;
   }
 
+  /**
+   * @return The most pages we'll load beyond the buffer in the direction the user is scrolling.
+   *         How many we actually load depends on how fast they're scrolling.
+   */
+  int maxPrefetchPages() {
+    return maxPrefetchPages;
+  }
+
+  /**
+   * @return How many recently-loaded pages to keep around after the data is invalidated, so that
+   *         the ones whose rows haven't changed don't need to be loaded again. Only used if the
+   *         {@link PagedDataSource} supports keys.
+   */
+  int cachedPages() {
+    return cachedPages;
+  }
+
   public static class Builder {
-    private int bufferPages = 1;
-    private int startIndex  = 0;
-    private int pageSize    = 50;
+    private int bufferPages      = 1;
+    private int startIndex       = 0;
+    private int pageSize         = 50;
+    private int maxPrefetchPages = 4;
+    private int cachedPages      = 20;
 
     public @NonNull Builder setBufferPages(int bufferPages) {
       if (bufferPages < 1) {
@@ -74,6 +97,24 @@ public final class PagingConfig {
       return this;
     }
 
+    public @NonNull Builder setMaxPrefetchPages(int maxPrefetchPages) {
+      if (maxPrefetchPages < 0) {
+        throw new IllegalArgumentException("You can't prefetch a negative number of pages! Requested: " + maxPrefetchPages);
+      }
+
+      this.maxPrefetchPages = maxPrefetchPages;
+      return this;
+    }
+
+    public @NonNull Builder setCachedPages(int cachedPages) {
+      if (cachedPages < 0) {
+        throw new IllegalArgumentException("You can't cache a negative number of pages! Requested: " + cachedPages);
+      }
+
+      this.cachedPages = cachedPages;
+      return this;
+    }
+
     public @NonNull PagingConfig build() {
       return new PagingConfig(this);
     }
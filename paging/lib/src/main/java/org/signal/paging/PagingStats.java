@@ -0,0 +1,107 @@
+package org.signal.paging;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running totals that describe how well paging is keeping up with what's being displayed.
+ *
+ * A request is a hit if the item at the requested index had already been loaded when it was asked
+ * for, and a cache hit if it was only available because its page was reused from the
+ * {@link PageCache} after an invalidation. Load latency is measured from when a load is requested to
+ * when its results are posted, so it includes time spent waiting behind other loads.
+ */
+public final class PagingStats {
+
+  private long requests;
+  private long hits;
+  private long cacheHits;
+  private long loads;
+  private long canceledLoads;
+  private long totalLoadLatencyNanos;
+  private long maxLoadLatencyNanos;
+
+  @AnyThread
+  synchronized void recordRequest(boolean hit, boolean fromCache) {
+    requests++;
+
+    if (hit) {
+      hits++;
+    }
+
+    if (fromCache) {
+      cacheHits++;
+    }
+  }
+
+  @AnyThread
+  synchronized void recordLoad(long latencyNanos) {
+    loads++;
+    totalLoadLatencyNanos += latencyNanos;
+    maxLoadLatencyNanos    = Math.max(maxLoadLatencyNanos, latencyNanos);
+  }
+
+  @AnyThread
+  synchronized void recordCanceledLoad() {
+    canceledLoads++;
+  }
+
+  public synchronized long getRequestCount() {
+    return requests;
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return The number of hits that were only available because of the {@link PageCache}.
+   */
+  public synchronized long getCacheHitCount() {
+    return cacheHits;
+  }
+
+  public synchronized long getLoadCount() {
+    return loads;
+  }
+
+  /**
+   * @return The number of loads that were abandoned because the user had scrolled somewhere else by
+   *         the time they ran.
+   */
+  public synchronized long getCanceledLoadCount() {
+    return canceledLoads;
+  }
+
+  /**
+   * @return The fraction of requests that were hits, or 0 if nothing has been requested yet.
+   */
+  public synchronized float getHitRate() {
+    return requests > 0 ? hits / (float) requests : 0;
+  }
+
+  public synchronized long getAverageLoadLatencyMs() {
+    return loads > 0 ? TimeUnit.NANOSECONDS.toMillis(totalLoadLatencyNanos / loads) : 0;
+  }
+
+  public synchronized long getMaxLoadLatencyMs() {
+    return TimeUnit.NANOSECONDS.toMillis(maxLoadLatencyNanos);
+  }
+
+  @Override
+  public synchronized @NonNull String toString() {
+    return String.format(Locale.US,
+                         "requests: %d, hits: %d (%.1f%%), cacheHits: %d, loads: %d, canceledLoads: %d, avgLoadLatency: %d ms, maxLoadLatency: %d ms",
+                         requests,
+                         hits,
+                         getHitRate() * 100,
+                         cacheHits,
+                         loads,
+                         canceledLoads,
+                         getAverageLoadLatencyMs(),
+                         getMaxLoadLatencyMs());
+  }
+}
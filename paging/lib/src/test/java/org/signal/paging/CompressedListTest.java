@@ -0,0 +1,228 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class CompressedListTest {
+
+  private static final int CHUNK_SIZE = CompressedList.CHUNK_SIZE;
+
+  @Test
+  public void newList_hasSizeButNoChunks() {
+    CompressedList<String> subject = new CompressedList<>(1_000_000);
+
+    assertEquals(1_000_000, subject.size());
+    assertEquals(0, subject.getChunkCount());
+    assertNull(subject.get(0));
+    assertNull(subject.get(999_999));
+  }
+
+  @Test
+  public void set_onlyAllocatesTouchedChunks() {
+    CompressedList<String> subject = new CompressedList<>(1_000_000);
+
+    subject.set(5, "a");
+    subject.set(500_000, "b");
+    subject.set(500_001, "c");
+
+    assertEquals(2, subject.getChunkCount());
+    assertEquals("a", subject.get(5));
+    assertEquals("b", subject.get(500_000));
+    assertEquals("c", subject.get(500_001));
+    assertNull(subject.get(4));
+    assertNull(subject.get(499_999));
+  }
+
+  @Test
+  public void set_returnsPreviousValue() {
+    CompressedList<String> subject = new CompressedList<>(10);
+
+    assertNull(subject.set(3, "a"));
+    assertEquals("a", subject.set(3, "b"));
+  }
+
+  @Test
+  public void set_nullOnLastItemInChunk_releasesChunk() {
+    CompressedList<String> subject = new CompressedList<>(1000);
+
+    subject.set(100, "a");
+    subject.set(100, null);
+
+    assertEquals(0, subject.getChunkCount());
+  }
+
+  @Test
+  public void set_outOfOrder_keepsChunksSorted() {
+    CompressedList<Integer> subject = new CompressedList<>(CHUNK_SIZE * 100);
+
+    for (int chunk : Arrays.asList(50, 3, 99, 0, 20, 75)) {
+      subject.set(chunk * CHUNK_SIZE, chunk);
+    }
+
+    for (int chunk : Arrays.asList(0, 3, 20, 50, 75, 99)) {
+      assertEquals(Integer.valueOf(chunk), subject.get(chunk * CHUNK_SIZE));
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void get_outOfBounds_throws() {
+    new CompressedList<String>(10).get(10);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void set_outOfBounds_throws() {
+    new CompressedList<String>(10).set(-1, "a");
+  }
+
+  @Test
+  public void copy_isIndependentOfOriginal() {
+    CompressedList<String> original = new CompressedList<>(1000);
+    original.set(10, "a");
+
+    CompressedList<String> copy = new CompressedList<>(original);
+    copy.set(11, "b");
+    original.set(10, "c");
+
+    assertEquals("c", original.get(10));
+    assertNull(original.get(11));
+    assertEquals("a", copy.get(10));
+    assertEquals("b", copy.get(11));
+  }
+
+  @Test
+  public void copyOfCopy_isIndependent() {
+    CompressedList<String> first = new CompressedList<>(1000);
+    first.set(10, "a");
+
+    CompressedList<String> second = new CompressedList<>(first);
+    CompressedList<String> third  = new CompressedList<>(second);
+
+    second.set(10, "b");
+    third.set(10, "c");
+
+    assertEquals("a", first.get(10));
+    assertEquals("b", second.get(10));
+    assertEquals("c", third.get(10));
+  }
+
+  @Test
+  public void copyFromRegularList_keepsNonNullItems() {
+    List<String>           source  = Arrays.asList(null, "a", null, "b");
+    CompressedList<String> subject = new CompressedList<>(source);
+
+    assertEquals(source, subject);
+  }
+
+  @Test
+  public void clearRange_withinOneChunk() {
+    CompressedList<Integer> subject = filled(CHUNK_SIZE * 2);
+
+    subject.clearRange(5, 10);
+
+    for (int i = 0; i < subject.size(); i++) {
+      if (i >= 5 && i < 10) {
+        assertNull(subject.get(i));
+      } else {
+        assertEquals(Integer.valueOf(i), subject.get(i));
+      }
+    }
+    assertEquals(2, subject.getChunkCount());
+  }
+
+  @Test
+  public void clearRange_acrossManyChunks_dropsCoveredChunks() {
+    CompressedList<Integer> subject = filled(CHUNK_SIZE * 10);
+
+    subject.clearRange(CHUNK_SIZE + 10, CHUNK_SIZE * 8 + 5);
+
+    for (int i = 0; i < subject.size(); i++) {
+      if (i >= CHUNK_SIZE + 10 && i < CHUNK_SIZE * 8 + 5) {
+        assertNull(subject.get(i));
+      } else {
+        assertEquals(Integer.valueOf(i), subject.get(i));
+      }
+    }
+    assertEquals(4, subject.getChunkCount());
+  }
+
+  @Test
+  public void clearRange_alignedToChunks() {
+    CompressedList<Integer> subject = filled(CHUNK_SIZE * 4);
+
+    subject.clearRange(CHUNK_SIZE, CHUNK_SIZE * 3);
+
+    assertEquals(2, subject.getChunkCount());
+    assertEquals(Integer.valueOf(CHUNK_SIZE - 1), subject.get(CHUNK_SIZE - 1));
+    assertNull(subject.get(CHUNK_SIZE));
+    assertNull(subject.get(CHUNK_SIZE * 3 - 1));
+    assertEquals(Integer.valueOf(CHUNK_SIZE * 3), subject.get(CHUNK_SIZE * 3));
+  }
+
+  @Test
+  public void clearRange_everything() {
+    CompressedList<Integer> subject = filled(CHUNK_SIZE * 3 + 7);
+
+    subject.clearRange(0, subject.size());
+
+    assertEquals(0, subject.getChunkCount());
+    assertEquals(CHUNK_SIZE * 3 + 7, subject.size());
+  }
+
+  @Test
+  public void clearRange_sparseList_onlyTouchesLoadedChunks() {
+    CompressedList<Integer> subject = new CompressedList<>(1_000_000);
+
+    subject.set(10, 10);
+    subject.set(500_000, 500_000);
+    subject.set(999_999, 999_999);
+
+    subject.clearRange(5, 999_999);
+
+    assertEquals(1, subject.getChunkCount());
+    assertNull(subject.get(10));
+    assertNull(subject.get(500_000));
+    assertEquals(Integer.valueOf(999_999), subject.get(999_999));
+  }
+
+  @Test
+  public void clearRange_doesNotAffectCopies() {
+    CompressedList<Integer> original = filled(CHUNK_SIZE * 2);
+    CompressedList<Integer> copy     = new CompressedList<>(original);
+
+    original.clearRange(3, 5);
+
+    assertNull(original.get(3));
+    assertEquals(Integer.valueOf(3), copy.get(3));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void clearRange_outOfBounds_throws() {
+    new CompressedList<String>(10).clearRange(5, 11);
+  }
+
+  @Test
+  public void copy_sparseList_onlyCopiesLoadedChunks() {
+    CompressedList<Integer> original = new CompressedList<>(1_000_000);
+
+    original.set(10, 10);
+    original.set(500_000, 500_000);
+
+    CompressedList<Integer> copy = new CompressedList<>(original);
+
+    assertEquals(2, copy.getChunkCount());
+    assertEquals(original, copy);
+  }
+
+  private static CompressedList<Integer> filled(int size) {
+    CompressedList<Integer> list = new CompressedList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.set(i, i);
+    }
+    return list;
+  }
+}
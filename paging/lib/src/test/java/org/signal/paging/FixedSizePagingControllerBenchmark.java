@@ -0,0 +1,245 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.MutableLiveData;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how much memory {@link FixedSizePagingController} needs for a data source with a million
+ * items, by opening it at the end and then scrolling back one page at a time.
+ *
+ * For comparison, the same scroll is replayed against a dense list that's fully allocated up front
+ * and copied on every load, which is how the controller's data was stored before
+ * {@link CompressedList} was made sparse.
+ *
+ * Allocation numbers come from the JVM's per-thread allocation counters, and cover both the calling
+ * thread and the controller's fetch thread. Ignored by default, remove the annotation to run it.
+ */
+@Ignore("Benchmark")
+public final class FixedSizePagingControllerBenchmark {
+
+  private static final String TAG = FixedSizePagingControllerBenchmark.class.getSimpleName();
+
+  private static final int    SOURCE_SIZE   = 1_000_000;
+  private static final int    PAGE_SIZE     = 50;
+  private static final int    PAGES_VISITED = 100;
+  private static final Object ITEM          = new Object();
+
+  @Before
+  public void setUp() {
+    Log.initialize(new SystemOutLogger());
+  }
+
+  @Test
+  public void scrollBackFromEnd() throws InterruptedException {
+    PagingConfig  config   = new PagingConfig.Builder().setPageSize(PAGE_SIZE).setBufferPages(1).build();
+    CapturingData liveData = new CapturingData();
+    List<Thread>  threads  = new ArrayList<>();
+
+    threads.add(Thread.currentThread());
+
+    long beforeCreate = allocatedBytes(threads);
+    FixedSizePagingController<Object> controller = new FixedSizePagingController<>(new FakeSource(), config, liveData, SOURCE_SIZE);
+    long createBytes  = allocatedBytes(threads) - beforeCreate;
+
+    controller.onDataNeededAroundIndex(SOURCE_SIZE - 1);
+    liveData.awaitUpdate();
+
+    Thread fetchThread = findThread("signal-FixedSizePagingController");
+    assertNotNull(fetchThread);
+    threads.add(fetchThread);
+
+    long beforeScroll = allocatedBytes(threads);
+    int  loads        = 0;
+
+    for (int i = 1; i <= PAGES_VISITED; i++) {
+      controller.onDataNeededAroundIndex(SOURCE_SIZE - 1 - i * PAGE_SIZE);
+      if (liveData.awaitUpdateIfPending()) {
+        loads++;
+      }
+    }
+
+    long scrollBytes = allocatedBytes(threads) - beforeScroll;
+
+    List<Object> data = liveData.latest;
+    assertEquals(SOURCE_SIZE, data.size());
+    assertNull(data.get(0));
+    assertTrue(data.get(SOURCE_SIZE - 1) == ITEM);
+    assertTrue(loads > 0);
+
+    DenseResult dense = replayDense(loads);
+
+    Log.i(TAG, String.format(Locale.US,
+                             "%,d items | sparse: create %,10d B, %,9d B/load, %,5d chunks | dense: create %,10d B, %,9d B/load",
+                             SOURCE_SIZE,
+                             createBytes,
+                             scrollBytes / loads,
+                             ((CompressedList<Object>) data).getChunkCount(),
+                             dense.createBytes,
+                             dense.bytesPerLoad));
+  }
+
+  /**
+   * Does the same amount of work as the controller, but with a list that has a slot for every item
+   * and is copied in full for every load.
+   */
+  private static @NonNull DenseResult replayDense(int loads) {
+    List<Thread> threads = new ArrayList<>();
+    threads.add(Thread.currentThread());
+
+    long         beforeCreate = allocatedBytes(threads);
+    List<Object> data         = new ArrayList<>(SOURCE_SIZE);
+
+    for (int i = 0; i < SOURCE_SIZE; i++) {
+      data.add(null);
+    }
+
+    long createBytes = allocatedBytes(threads) - beforeCreate;
+    long beforeLoads = allocatedBytes(threads);
+
+    for (int i = 0; i < loads; i++) {
+      List<Object> updated = new ArrayList<>(data);
+      int          start   = SOURCE_SIZE - (i + 1) * PAGE_SIZE;
+
+      for (int j = start; j < start + PAGE_SIZE; j++) {
+        updated.set(j, ITEM);
+      }
+
+      data = updated;
+    }
+
+    return new DenseResult(createBytes, (allocatedBytes(threads) - beforeLoads) / loads);
+  }
+
+  private static Thread findThread(@NonNull String name) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (name.equals(thread.getName())) {
+        return thread;
+      }
+    }
+    return null;
+  }
+
+  private static long allocatedBytes(@NonNull List<Thread> threads) {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    long[] ids = new long[threads.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = threads.get(i).getId();
+    }
+
+    long total = 0;
+    for (long allocated : threadMXBean.getThreadAllocatedBytes(ids)) {
+      total += allocated;
+    }
+
+    return total;
+  }
+
+  private static final class FakeSource implements PagedDataSource<Object> {
+    @Override
+    public int size() {
+      return SOURCE_SIZE;
+    }
+
+    @Override
+    public @NonNull List<Object> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      List<Object> items = new ArrayList<>(length);
+      for (int i = 0; i < length; i++) {
+        items.add(ITEM);
+      }
+      return items;
+    }
+  }
+
+  /**
+   * Captures posted values directly, so we don't need a main thread.
+   */
+  private static final class CapturingData extends MutableLiveData<List<Object>> {
+    private final Semaphore updates = new Semaphore(0);
+
+    private volatile List<Object> latest;
+
+    @Override
+    public void postValue(List<Object> value) {
+      latest = value;
+      updates.release();
+    }
+
+    void awaitUpdate() throws InterruptedException {
+      assertTrue(updates.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Not every request triggers a load, so we only wait briefly.
+     */
+    boolean awaitUpdateIfPending() throws InterruptedException {
+      return updates.tryAcquire(100, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final class DenseResult {
+    private final long createBytes;
+    private final long bytesPerLoad;
+
+    private DenseResult(long createBytes, long bytesPerLoad) {
+      this.createBytes  = createBytes;
+      this.bytesPerLoad = bytesPerLoad;
+    }
+  }
+
+  private static final class SystemOutLogger extends Log.Logger {
+    @Override
+    public void v(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void d(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void i(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void w(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void e(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void wtf(String tag, String message, Throwable t) {
+      print(tag, message, t);
+    }
+
+    @Override
+    public void blockUntilAllWritesFinished() { }
+
+    private static void print(String tag, String message, Throwable t) {
+      System.out.println("[" + tag + "] " + message + (t != null ? " " + t : ""));
+    }
+  }
+}
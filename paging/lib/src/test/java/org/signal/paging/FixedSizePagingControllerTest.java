@@ -0,0 +1,354 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.MutableLiveData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class FixedSizePagingControllerTest {
+
+  @Test
+  public void getPrefetchPages_notScrolling() {
+    assertEquals(0, FixedSizePagingController.getPrefetchPages(0, 10, 4));
+  }
+
+  @Test
+  public void getPrefetchPages_scalesWithVelocity() {
+    assertEquals(1, FixedSizePagingController.getPrefetchPages(10, 10, 4));
+    assertEquals(2, FixedSizePagingController.getPrefetchPages(30, 10, 4));
+    assertEquals(2, FixedSizePagingController.getPrefetchPages(-30, 10, 4));
+  }
+
+  @Test
+  public void getPrefetchPages_isCapped() {
+    assertEquals(4, FixedSizePagingController.getPrefetchPages(10_000, 10, 4));
+    assertEquals(0, FixedSizePagingController.getPrefetchPages(10_000, 10, 0));
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_scrollingFast_prefetchesInScrollDirection() throws InterruptedException {
+    PagingConfig  config     = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).setMaxPrefetchPages(2).build();
+    FakeSource    source     = new FakeSource(1000);
+    CapturingData liveData   = new CapturingData();
+    FixedSizePagingController<Integer> controller = new FixedSizePagingController<>(source, config, liveData, 1000);
+
+    controller.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+
+    Thread.sleep(50);
+
+    controller.onDataNeededAroundIndex(50);
+    liveData.awaitUpdate();
+
+    assertEquals(Range.of(40, 90), source.getLoads().get(1));
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_staleLoadsAreCanceled() throws InterruptedException {
+    PagingConfig  config     = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).setMaxPrefetchPages(0).build();
+    FakeSource    source     = new FakeSource(100_000);
+    CapturingData liveData   = new CapturingData();
+    PagingStats   stats      = new PagingStats();
+    FixedSizePagingController<Integer> controller = new FixedSizePagingController<>(source, config, liveData, 100_000, new PageCache<>(10, 0), stats);
+
+    source.blockNextLoad();
+
+    controller.onDataNeededAroundIndex(0);
+    controller.onDataNeededAroundIndex(10_000);
+    controller.onDataNeededAroundIndex(20_000);
+
+    source.unblock();
+    liveData.awaitUpdate();
+
+    assertEquals(Collections.singletonList(Range.of(19_990, 20_020)), source.getCompletedLoads());
+    assertEquals(2, stats.getCanceledLoadCount());
+    assertEquals(1, stats.getLoadCount());
+    assertNull(liveData.latest.get(0));
+    assertNotNull(liveData.latest.get(20_000));
+
+    controller.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+
+    assertNotNull(liveData.latest.get(0));
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_recordsHits() throws InterruptedException {
+    PagingConfig  config     = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).build();
+    CapturingData liveData   = new CapturingData();
+    PagingStats   stats      = new PagingStats();
+    FixedSizePagingController<Integer> controller = new FixedSizePagingController<>(new FakeSource(100), config, liveData, 100, new PageCache<>(10, 0), stats);
+
+    controller.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+
+    controller.onDataNeededAroundIndex(5);
+
+    assertEquals(2, stats.getRequestCount());
+    assertEquals(1, stats.getHitCount());
+    assertEquals(0, stats.getCacheHitCount());
+  }
+
+  @Test
+  public void pageCache_unchangedRows_areReusedWithoutLoading() throws InterruptedException {
+    PagingConfig       config    = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).build();
+    PageCache<Integer> pageCache = new PageCache<>(10, 10);
+    PagingStats        stats     = new PagingStats();
+    CapturingData      liveData  = new CapturingData();
+
+    FixedSizePagingController<Integer> first = new FixedSizePagingController<>(FakeSource.withKeys(100), config, liveData, 100, pageCache, stats);
+    first.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+    first.onDataInvalidated();
+
+    FakeSource source = FakeSource.withKeys(100);
+    FixedSizePagingController<Integer> second = new FixedSizePagingController<>(source, config, liveData, 100, pageCache, stats);
+    liveData.awaitUpdate();
+
+    assertEquals(Integer.valueOf(0), liveData.latest.get(0));
+    assertEquals(Integer.valueOf(19), liveData.latest.get(19));
+    assertNull(liveData.latest.get(20));
+    assertEquals(Collections.singletonList(Range.of(0, 20)), source.getKeyLoads());
+
+    second.onDataNeededAroundIndex(5);
+    second.onDataNeededAroundIndex(90);
+    liveData.awaitUpdate();
+
+    assertEquals(Collections.singletonList(Range.of(80, 100)), source.getLoads());
+    assertEquals(1, stats.getCacheHitCount());
+  }
+
+  @Test
+  public void pageCache_changedRows_areClearedAndReloaded() throws InterruptedException {
+    PagingConfig       config    = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).build();
+    PageCache<Integer> pageCache = new PageCache<>(10, 10);
+    CapturingData      liveData  = new CapturingData();
+
+    FixedSizePagingController<Integer> first = new FixedSizePagingController<>(FakeSource.withKeys(100), config, liveData, 100, pageCache, new PagingStats());
+    first.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+    first.onDataInvalidated();
+
+    FakeSource source = FakeSource.withKeys(100);
+    source.change(15);
+
+    new FixedSizePagingController<>(source, config, liveData, 100, pageCache, new PagingStats());
+
+    List<Integer> verified = liveData.awaitUpdate();
+
+    assertEquals(Integer.valueOf(9), verified.get(9));
+    assertNull(verified.get(10));
+    assertNull(verified.get(15));
+
+    List<Integer> reloaded = liveData.awaitUpdate();
+
+    assertEquals(Collections.singletonList(Range.of(10, 20)), source.getLoads());
+    assertEquals(Integer.valueOf(FakeSource.CHANGED + 15), reloaded.get(15));
+    assertEquals(Arrays.asList(10, 11, 12, 13, 14, FakeSource.CHANGED + 15, 16, 17, 18, 19), pageCache.get(1).items);
+  }
+
+  @Test
+  public void pageCache_sourceWithoutKeys_startsWithoutOldRows() throws InterruptedException {
+    PagingConfig       config    = new PagingConfig.Builder().setPageSize(10).setBufferPages(1).build();
+    PageCache<Integer> pageCache = new PageCache<>(10, 10);
+    CapturingData      liveData  = new CapturingData();
+
+    FixedSizePagingController<Integer> first = new FixedSizePagingController<>(new FakeSource(100), config, liveData, 100, pageCache, new PagingStats());
+    first.onDataNeededAroundIndex(0);
+    liveData.awaitUpdate();
+    first.onDataInvalidated();
+
+    assertEquals(0, pageCache.size());
+
+    FixedSizePagingController<Integer> second = new FixedSizePagingController<>(new FakeSource(100), config, liveData, 100, pageCache, new PagingStats());
+    second.onDataNeededAroundIndex(90);
+    liveData.awaitUpdate();
+
+    assertNull(liveData.latest.get(0));
+    assertNotNull(liveData.latest.get(90));
+  }
+
+  private static final class FakeSource implements PagedDataSource<Integer> {
+    private static final int CHANGED = 1_000_000;
+
+    private final int          size;
+    private final boolean      keyed;
+    private final List<Range>  loads;
+    private final List<Range>  completedLoads;
+    private final List<Range>  keyLoads;
+    private final Set<Integer> changed;
+
+    private volatile CountDownLatch blocker;
+    private volatile boolean        blockNextLoad;
+
+    private FakeSource(int size) {
+      this(size, false);
+    }
+
+    private FakeSource(int size, boolean keyed) {
+      this.size           = size;
+      this.keyed          = keyed;
+      this.loads          = Collections.synchronizedList(new ArrayList<>());
+      this.completedLoads = Collections.synchronizedList(new ArrayList<>());
+      this.keyLoads       = Collections.synchronizedList(new ArrayList<>());
+      this.changed        = Collections.synchronizedSet(new HashSet<>());
+    }
+
+    /**
+     * Each item is its own key, so changing an item changes its key.
+     */
+    static @NonNull FakeSource withKeys(int size) {
+      return new FakeSource(size, true);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public @NonNull List<Integer> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      loads.add(Range.of(start, start + length));
+
+      if (blockNextLoad) {
+        blockNextLoad = false;
+        try {
+          assertTrue(blocker.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      List<Integer> items = new ArrayList<>(length);
+      for (int i = start; i < start + length; i++) {
+        items.add(get(i));
+      }
+
+      if (!cancellationSignal.isCanceled()) {
+        completedLoads.add(Range.of(start, start + length));
+      }
+
+      return items;
+    }
+
+    @Override
+    public @Nullable List<Object> loadKeys(int start, int length) {
+      if (!keyed) {
+        return null;
+      }
+
+      keyLoads.add(Range.of(start, start + length));
+
+      List<Object> keys = new ArrayList<>(length);
+      for (int i = start; i < start + length; i++) {
+        keys.add(get(i));
+      }
+
+      return keys;
+    }
+
+    @Override
+    public @Nullable Object getKey(@NonNull Integer item) {
+      return keyed ? item : null;
+    }
+
+    void change(int position) {
+      changed.add(position);
+    }
+
+    void blockNextLoad() {
+      blocker       = new CountDownLatch(1);
+      blockNextLoad = true;
+    }
+
+    void unblock() {
+      blocker.countDown();
+    }
+
+    @NonNull List<Range> getLoads() {
+      return new ArrayList<>(loads);
+    }
+
+    @NonNull List<Range> getCompletedLoads() {
+      return new ArrayList<>(completedLoads);
+    }
+
+    @NonNull List<Range> getKeyLoads() {
+      return new ArrayList<>(keyLoads);
+    }
+
+    private int get(int position) {
+      return changed.contains(position) ? CHANGED + position : position;
+    }
+  }
+
+  private static final class Range {
+    private final int start;
+    private final int end;
+
+    private static @NonNull Range of(int start, int end) {
+      return new Range(start, end);
+    }
+
+    private Range(int start, int end) {
+      this.start = start;
+      this.end   = end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Range && ((Range) o).start == start && ((Range) o).end == end;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * start + end;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "[" + start + ", " + end + ")";
+    }
+  }
+
+  /**
+   * Captures posted values directly, so we don't need a main thread.
+   */
+  private static final class CapturingData extends MutableLiveData<List<Integer>> {
+    private final BlockingQueue<List<Integer>> updates = new LinkedBlockingQueue<>();
+
+    private volatile List<Integer> latest;
+
+    @Override
+    public void postValue(List<Integer> value) {
+      latest = value;
+      updates.add(value);
+    }
+
+    /**
+     * @return The next posted value that hasn't been awaited yet, which may not be the latest.
+     */
+    @NonNull List<Integer> awaitUpdate() throws InterruptedException {
+      List<Integer> update = updates.poll(10, TimeUnit.SECONDS);
+      assertNotNull(update);
+      return update;
+    }
+  }
+}
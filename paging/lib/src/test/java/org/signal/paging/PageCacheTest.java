@@ -0,0 +1,143 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class PageCacheTest {
+
+  private static final PagedDataSource<Integer> KEYED   = new FakeSource(true);
+  private static final PagedDataSource<Integer> UNKEYED = new FakeSource(false);
+
+  @Test
+  public void put_onlyKeepsFullPages() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 10, 1, Arrays.asList(1, 2, 3, 4));
+
+    assertNull(cache.get(0));
+    assertEquals(Arrays.asList(2, 3), cache.get(1).items);
+    assertEquals(Arrays.asList(2, 3), cache.get(1).keys);
+    assertNull(cache.get(2));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void put_keepsShortLastPage() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 5, 2, Arrays.asList(2, 3, 4));
+
+    assertEquals(Arrays.asList(2, 3), cache.get(1).items);
+    assertEquals(Collections.singletonList(4), cache.get(2).items);
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsed() {
+    PageCache<Integer> cache = new PageCache<>(1, 2);
+
+    cache.put(KEYED, 10, 0, Collections.singletonList(0));
+    cache.put(KEYED, 10, 1, Collections.singletonList(1));
+    cache.get(0);
+    cache.put(KEYED, 10, 2, Collections.singletonList(2));
+
+    assertEquals(Collections.singletonList(0), cache.get(0).items);
+    assertNull(cache.get(1));
+    assertEquals(Collections.singletonList(2), cache.get(2).items);
+  }
+
+  @Test
+  public void put_withoutKeys_cachesNothing() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(UNKEYED, 10, 0, Arrays.asList(0, 1, 2, 3));
+
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void put_missingItem_dropsOldCopyOfPage() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 10, 0, Arrays.asList(0, 1, 2, 3));
+    cache.put(KEYED, 10, 2, Arrays.asList(2, null));
+
+    assertEquals(Arrays.asList(0, 1), cache.get(0).items);
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  public void getPages_sortedAndOnlyThoseThatFit() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 10, 6, Arrays.asList(6, 7, 8, 9));
+    cache.put(KEYED, 10, 0, Arrays.asList(0, 1));
+
+    List<PageCache.Page<Integer>> pages = cache.getPages(8);
+
+    assertEquals(2, pages.size());
+    assertEquals(0, pages.get(0).start);
+    assertEquals(6, pages.get(1).start);
+  }
+
+  @Test
+  public void remove_ignoresReplacedPage() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 10, 0, Arrays.asList(0, 1));
+    PageCache.Page<Integer> old = cache.get(0);
+    cache.put(KEYED, 10, 0, Arrays.asList(0, 1));
+
+    cache.remove(old);
+    assertEquals(1, cache.size());
+
+    cache.remove(cache.get(0));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void groupContiguous_splitsAtGaps() {
+    PageCache<Integer> cache = new PageCache<>(2, 10);
+
+    cache.put(KEYED, 10, 0, Arrays.asList(0, 1, 2, 3));
+    cache.put(KEYED, 10, 6, Arrays.asList(6, 7));
+
+    List<List<PageCache.Page<Integer>>> runs = PageCache.groupContiguous(cache.getPages(10));
+
+    assertEquals(2, runs.size());
+    assertEquals(2, runs.get(0).size());
+    assertEquals(1, runs.get(1).size());
+    assertEquals(6, runs.get(1).get(0).start);
+  }
+
+  private static final class FakeSource implements PagedDataSource<Integer> {
+    private final boolean keyed;
+
+    private FakeSource(boolean keyed) {
+      this.keyed = keyed;
+    }
+
+    @Override
+    public int size() {
+      return 0;
+    }
+
+    @Override
+    public @NonNull List<Integer> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public @Nullable Object getKey(@NonNull Integer item) {
+      return keyed ? item : null;
+    }
+  }
+}
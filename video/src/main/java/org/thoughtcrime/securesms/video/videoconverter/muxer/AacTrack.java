@@ -2,6 +2,8 @@ package org.thoughtcrime.securesms.video.videoconverter.muxer;
 
 import android.util.SparseIntArray;
 
+import androidx.annotation.Nullable;
+
 import org.mp4parser.boxes.iso14496.part1.objectdescriptors.AudioSpecificConfig;
 import org.mp4parser.boxes.iso14496.part1.objectdescriptors.DecoderConfigDescriptor;
 import org.mp4parser.boxes.iso14496.part1.objectdescriptors.ESDescriptor;
@@ -39,8 +41,19 @@ abstract class AacTrack extends AbstractStreamingTrack {
 
   private int sampleRate;
 
+  private final BufferPool bufferPool;
+
   AacTrack(long avgBitrate, long maxBitrate, int sampleRate, int channelCount, int aacProfile) {
+    this(avgBitrate, maxBitrate, sampleRate, channelCount, aacProfile, null);
+  }
+
+  /**
+   * @param bufferPool If set, frames passed to {@link #processSample(ByteBuffer)} are expected to
+   *                   come from this pool, and go back to it once written.
+   */
+  AacTrack(long avgBitrate, long maxBitrate, int sampleRate, int channelCount, int aacProfile, @Nullable BufferPool bufferPool) {
     this.sampleRate = sampleRate;
+    this.bufferPool = bufferPool;
 
     final DefaultSampleFlagsTrackExtension defaultSampleFlagsTrackExtension = new DefaultSampleFlagsTrackExtension();
     defaultSampleFlagsTrackExtension.setIsLeading(2);
@@ -111,6 +124,10 @@ abstract class AacTrack extends AbstractStreamingTrack {
   }
 
   void processSample(ByteBuffer frame) throws IOException {
-    sampleSink.acceptSample(new StreamingSampleImpl(frame, 1024), this);
+    if (bufferPool != null) {
+      sampleSink.acceptSample(new PooledSample(bufferPool, new ByteBuffer[] { frame }, false, 1024), this);
+    } else {
+      sampleSink.acceptSample(new StreamingSampleImpl(frame, 1024), this);
+    }
   }
 }
@@ -47,11 +47,21 @@ abstract class AvcTrack extends AbstractStreamingTrack {
   private final SampleDescriptionBox stsd;
 
   private final List<ByteBuffer>    bufferedNals = new ArrayList<>();
+  private final BufferPool          bufferPool;
   private       FirstVclNalDetector fvnd;
   private       H264NalUnitHeader   sliceNalUnitHeader;
   private       long                currentPresentationTimeUs;
 
   AvcTrack(final @NonNull ByteBuffer spsBuffer, final @NonNull ByteBuffer ppsBuffer) {
+    this(spsBuffer, ppsBuffer, null);
+  }
+
+  /**
+   * @param bufferPool If set, the NAL units of each sample are copied into buffers from the pool
+   *                   instead of newly allocated ones, and samples are {@link PooledSample}s.
+   */
+  AvcTrack(final @NonNull ByteBuffer spsBuffer, final @NonNull ByteBuffer ppsBuffer, final @Nullable BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
 
     handlePPS(ppsBuffer);
 
@@ -184,6 +194,60 @@ abstract class AvcTrack extends AbstractStreamingTrack {
     return nalUnitHeader;
   }
 
+  /**
+   * Splits encoder output into NAL units and consumes each of them. The encoder reuses its buffers,
+   * so each NAL unit is copied out first.
+   */
+  void consumeNals(@NonNull final ByteBuffer buffer, final long presentationTimeUs) throws IOException {
+    if (bufferPool == null) {
+      for (ByteBuffer nal : H264Utils.getNals(buffer)) {
+        consumeNal(Utils.clone(nal), presentationTimeUs);
+      }
+      return;
+    }
+
+    final int position = buffer.position();
+    final int limit    = buffer.limit();
+
+    int start = H264Utils.findNALUnitStart(buffer, position);
+    while (start != -1) {
+      final int end = H264Utils.findNALUnitEnd(buffer, start);
+
+      if (end > start) {
+        final ByteBuffer nal = isSampleData(buffer.get(start)) ? bufferPool.acquire(end - start)
+                                                                : ByteBuffer.allocate(end - start);
+        buffer.limit(end).position(start);
+        nal.put(buffer);
+        nal.flip();
+        buffer.limit(limit);
+
+        consumeNal(nal, presentationTimeUs);
+      }
+
+      start = H264Utils.findNALUnitStart(buffer, end);
+    }
+
+    buffer.limit(limit).position(limit);
+  }
+
+  /**
+   * Only NAL units that end up in samples come from the pool, parameter sets are held on to.
+   */
+  private static boolean isSampleData(byte header) {
+    switch (header & 0x1f) {
+      case H264NalUnitTypes.CODED_SLICE_NON_IDR:
+      case H264NalUnitTypes.CODED_SLICE_DATA_PART_A:
+      case H264NalUnitTypes.CODED_SLICE_DATA_PART_B:
+      case H264NalUnitTypes.CODED_SLICE_DATA_PART_C:
+      case H264NalUnitTypes.CODED_SLICE_IDR:
+      case H264NalUnitTypes.SEI:
+      case H264NalUnitTypes.AU_UNIT_DELIMITER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
   void consumeNal(@NonNull final ByteBuffer nal, final long presentationTimeUs) throws IOException {
 
     final H264NalUnitHeader nalUnitHeader = getNalUnitHeader(nal);
@@ -325,7 +389,8 @@ abstract class AvcTrack extends AbstractStreamingTrack {
 
   private StreamingSample createSample(List<ByteBuffer> nals, SliceHeader sliceHeader, H264NalUnitHeader nu, long sampleDurationNs) {
     final long            sampleDuration = getTimescale() * Math.max(0, sampleDurationNs) / 1000000L;
-    final StreamingSample ss             = new StreamingSampleImpl(nals, sampleDuration);
+    final StreamingSample ss             = bufferPool != null ? new PooledSample(bufferPool, nals.toArray(new ByteBuffer[0]), true, sampleDuration)
+                                                                  : new StreamingSampleImpl(nals, sampleDuration);
     ss.addSampleExtension(createSampleFlagsSampleExtension(nu, sliceHeader));
     final SampleExtension pictureOrderCountType0SampleExtension = createPictureOrderCountType0SampleExtension(sliceHeader);
     if (pictureOrderCountType0SampleExtension != null) {
@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Direct buffers for the muxer to copy encoder output into. A buffer goes back to the pool once the
+ * sample holding it has been written, so a long transcode doesn't allocate a new buffer per frame.
+ * <p>
+ * Not thread safe, the muxer is only ever fed from one thread.
+ */
+final class BufferPool {
+
+  private static final int MIN_CAPACITY = 4 * 1024;
+
+  private final int              maxRetainedBytes;
+  private final List<ByteBuffer> free = new ArrayList<>();
+
+  private int retainedBytes;
+  private int allocations;
+
+  BufferPool(int maxRetainedBytes) {
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * @return A buffer with its position at 0 and its limit at size.
+   */
+  @NonNull ByteBuffer acquire(int size) {
+    int best = -1;
+
+    for (int i = 0; i < free.size(); i++) {
+      int capacity = free.get(i).capacity();
+      if (capacity >= size && (best == -1 || capacity < free.get(best).capacity())) {
+        best = i;
+      }
+    }
+
+    ByteBuffer buffer;
+
+    if (best != -1) {
+      int last = free.size() - 1;
+
+      buffer = free.get(best);
+      free.set(best, free.get(last));
+      free.remove(last);
+
+      retainedBytes -= buffer.capacity();
+      buffer.clear();
+    } else {
+      buffer = ByteBuffer.allocateDirect(capacityFor(size));
+      allocations++;
+    }
+
+    buffer.limit(size);
+    return buffer;
+  }
+
+  void release(@NonNull ByteBuffer buffer) {
+    if (retainedBytes + buffer.capacity() <= maxRetainedBytes) {
+      free.add(buffer);
+      retainedBytes += buffer.capacity();
+    }
+  }
+
+  /**
+   * @return How many buffers the pool has had to allocate.
+   */
+  int getAllocations() {
+    return allocations;
+  }
+
+  private static int capacityFor(int size) {
+    if (size <= MIN_CAPACITY) {
+      return MIN_CAPACITY;
+    } else if (size > (1 << 30)) {
+      return size;
+    } else {
+      return Integer.highestOneBit(size - 1) << 1;
+    }
+  }
+}
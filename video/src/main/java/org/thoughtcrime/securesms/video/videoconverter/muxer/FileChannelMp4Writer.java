@@ -0,0 +1,402 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import org.mp4parser.Box;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffset64BitBox;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
+import org.mp4parser.boxes.iso14496.part12.FileTypeBox;
+import org.mp4parser.boxes.iso14496.part12.MediaHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.MovieBox;
+import org.mp4parser.boxes.iso14496.part12.MovieHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
+import org.mp4parser.boxes.iso14496.part12.SyncSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.iso14496.part12.TrackHeaderBox;
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.extensions.CompositionTimeSampleExtension;
+import org.mp4parser.streaming.extensions.CompositionTimeTrackExtension;
+import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
+import org.mp4parser.streaming.output.SampleSink;
+import org.mp4parser.streaming.output.mp4.DefaultBoxes;
+import org.mp4parser.tools.Mp4Arrays;
+import org.mp4parser.tools.Mp4Math;
+import org.mp4parser.tools.Path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mp4parser.tools.CastUtils.l2i;
+
+/**
+ * Creates an MP4 file with ftyp, mdat, moov order, like {@link Mp4Writer}, but for output that can
+ * be seeked. Each sample goes straight to the file as it arrives, with one gathering write, rather
+ * than being held until a whole chunk can be written with its size up front. The size of the mdat
+ * is patched in once it's known, and the moov is built from compact per track tables at the end.
+ * <p>
+ * Samples from a {@link BufferPool} are written without being copied, and their buffers go back to
+ * the pool straight after.
+ */
+final class FileChannelMp4Writer extends DefaultBoxes implements SampleSink {
+
+  private static final int MDAT_HEADER_SIZE = 16;
+
+  private final FileChannel                     channel;
+  private final List<StreamingTrack>            source;
+  private final Map<StreamingTrack, TrackTable> tables       = new HashMap<>();
+  private final Date                            creationTime = new Date();
+
+  private final long mdatHeaderPosition;
+  private       long position;
+
+  private TrackTable   currentChunkTrack;
+  private ByteBuffer[] gather   = new ByteBuffer[0];
+  private ByteBuffer[] prefixes = new ByteBuffer[0];
+
+  FileChannelMp4Writer(final @NonNull List<StreamingTrack> source, final @NonNull FileChannel channel) throws IOException {
+    this.source  = new ArrayList<>(source);
+    this.channel = channel;
+
+    final Set<Long> trackIds = new HashSet<>();
+    for (StreamingTrack streamingTrack : source) {
+      streamingTrack.setSampleSink(this);
+      tables.put(streamingTrack, new TrackTable(streamingTrack));
+      if (streamingTrack.getTrackExtension(TrackIdTrackExtension.class) != null) {
+        final TrackIdTrackExtension trackIdTrackExtension = streamingTrack.getTrackExtension(TrackIdTrackExtension.class);
+        if (trackIds.contains(trackIdTrackExtension.getTrackId())) {
+          throw new MuxingException("There may not be two tracks with the same trackID within one file");
+        }
+        trackIds.add(trackIdTrackExtension.getTrackId());
+      }
+    }
+    for (StreamingTrack streamingTrack : source) {
+      if (streamingTrack.getTrackExtension(TrackIdTrackExtension.class) == null) {
+        long maxTrackId = 0;
+        for (Long trackId : trackIds) {
+          maxTrackId = Math.max(trackId, maxTrackId);
+        }
+        final TrackIdTrackExtension tiExt = new TrackIdTrackExtension(maxTrackId + 1);
+        trackIds.add(tiExt.getTrackId());
+        streamingTrack.addTrackExtension(tiExt);
+      }
+    }
+
+    position = channel.position();
+
+    write(new FileTypeBox("mp42", 0, Arrays.asList("isom", "mp42")));
+
+    mdatHeaderPosition = position;
+    writeFully(mdatHeader(0), mdatHeaderPosition);
+    position += MDAT_HEADER_SIZE;
+    channel.position(position);
+  }
+
+  @Override
+  public void acceptSample(final @NonNull StreamingSample streamingSample, final @NonNull StreamingTrack streamingTrack) throws IOException {
+    final TrackTable table = tables.get(streamingTrack);
+
+    if (table == null) {
+      throw new MuxingException("Sample from a track that isn't being written");
+    }
+
+    if (currentChunkTrack != table) {
+      if (currentChunkTrack != null) {
+        currentChunkTrack.endChunk();
+      }
+      table.startChunk(position);
+      currentChunkTrack = table;
+    }
+
+    final long size;
+
+    if (streamingSample instanceof PooledSample) {
+      final PooledSample pooledSample = (PooledSample) streamingSample;
+      try {
+        size = write(pooledSample);
+      } finally {
+        pooledSample.release();
+      }
+    } else {
+      final ByteBuffer content = (ByteBuffer) streamingSample.getContent().rewind();
+      size = content.remaining();
+      while (content.hasRemaining()) {
+        channel.write(content);
+      }
+    }
+
+    position += size;
+    table.addSample(streamingSample, size);
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (StreamingTrack streamingTrack : source) {
+      streamingTrack.close();
+    }
+
+    if (currentChunkTrack != null) {
+      currentChunkTrack.endChunk();
+      currentChunkTrack = null;
+    }
+
+    writeFully(mdatHeader(position - mdatHeaderPosition), mdatHeaderPosition);
+    write(createMoov());
+  }
+
+  /**
+   * Reserves room for a 64 bit size. If the mdat turns out small enough for a 32 bit size, as it
+   * almost always is, the first 8 bytes become a free box instead.
+   */
+  private static @NonNull ByteBuffer mdatHeader(long size) {
+    final ByteBuffer header = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+
+    if (size - 8 <= 0xffffffffL) {
+      header.putInt(8);
+      header.put(new byte[] { 'f', 'r', 'e', 'e' });
+      header.putInt(size > 0 ? (int) (size - 8) : 0);
+      header.put(new byte[] { 'm', 'd', 'a', 't' });
+    } else {
+      header.putInt(1);
+      header.put(new byte[] { 'm', 'd', 'a', 't' });
+      header.putLong(size);
+    }
+
+    header.flip();
+    return header;
+  }
+
+  private long write(final @NonNull PooledSample sample) throws IOException {
+    final int count = sample.getBufferCount();
+    final int parts = sample.isLengthPrefixed() ? count * 2 : count;
+
+    if (gather.length < parts) {
+      gather = new ByteBuffer[parts];
+    }
+
+    if (sample.isLengthPrefixed() && prefixes.length < count) {
+      final ByteBuffer[] grown = Arrays.copyOf(prefixes, count);
+      for (int i = prefixes.length; i < count; i++) {
+        grown[i] = ByteBuffer.allocate(4);
+      }
+      prefixes = grown;
+    }
+
+    long size = 0;
+    int  part = 0;
+
+    for (int i = 0; i < count; i++) {
+      final ByteBuffer buffer = sample.getBuffer(i);
+      buffer.rewind();
+
+      if (sample.isLengthPrefixed()) {
+        final ByteBuffer prefix = prefixes[i];
+        prefix.clear();
+        prefix.putInt(buffer.limit());
+        prefix.flip();
+        gather[part++] = prefix;
+      }
+
+      gather[part++] = buffer;
+      size += buffer.limit() + (sample.isLengthPrefixed() ? 4 : 0);
+    }
+
+    long remaining = size;
+    while (remaining > 0) {
+      remaining -= channel.write(gather, 0, parts);
+    }
+
+    return size;
+  }
+
+  private void write(final @NonNull Box box) throws IOException {
+    box.getBox(channel);
+    position += box.getSize();
+  }
+
+  private void writeFully(final @NonNull ByteBuffer buffer, long at) throws IOException {
+    while (buffer.hasRemaining()) {
+      at += channel.write(buffer, at);
+    }
+  }
+
+  private @NonNull Box createMoov() {
+    final MovieBox movieBox = new MovieBox();
+
+    final MovieHeaderBox mvhd = createMvhd();
+    movieBox.addBox(mvhd);
+
+    for (StreamingTrack streamingTrack : source) {
+      final TrackTable table = tables.get(streamingTrack);
+      final TrackBox   tb    = new TrackBox();
+      tb.addBox(createTkhd(streamingTrack));
+      tb.addBox(createMdia(streamingTrack));
+      table.fill(Path.getPath(tb, "mdia[0]/minf[0]/stbl[0]"));
+
+      final MediaHeaderBox mdhd = Path.getPath(tb, "mdia[0]/mdhd[0]");
+      mdhd.setDuration(table.duration);
+
+      final TrackHeaderBox tkhd     = Path.getPath(tb, "tkhd[0]");
+      final double         duration = (double) table.duration / streamingTrack.getTimescale();
+      tkhd.setDuration((long) (mvhd.getTimescale() * duration));
+
+      movieBox.addBox(tb);
+    }
+
+    return movieBox;
+  }
+
+  @Override
+  protected MovieHeaderBox createMvhd() {
+    final MovieHeaderBox mvhd = new MovieHeaderBox();
+    mvhd.setVersion(1);
+    mvhd.setCreationTime(creationTime);
+    mvhd.setModificationTime(creationTime);
+
+    long[] timescales = new long[0];
+    long   maxTrackId = 0;
+    double duration   = 0;
+    for (StreamingTrack streamingTrack : source) {
+      duration   = Math.max((double) tables.get(streamingTrack).duration / streamingTrack.getTimescale(), duration);
+      timescales = Mp4Arrays.copyOfAndAppend(timescales, streamingTrack.getTimescale());
+      maxTrackId = Math.max(streamingTrack.getTrackExtension(TrackIdTrackExtension.class).getTrackId(), maxTrackId);
+    }
+
+    mvhd.setTimescale(Mp4Math.lcm(timescales));
+    mvhd.setDuration((long) (Mp4Math.lcm(timescales) * duration));
+    mvhd.setNextTrackId(maxTrackId + 1);
+    return mvhd;
+  }
+
+  @Override
+  protected @NonNull Box createMdhd(final @NonNull StreamingTrack streamingTrack) {
+    final MediaHeaderBox mdhd = new MediaHeaderBox();
+    mdhd.setCreationTime(creationTime);
+    mdhd.setModificationTime(creationTime);
+    mdhd.setTimescale(streamingTrack.getTimescale());
+    mdhd.setLanguage(streamingTrack.getLanguage());
+    return mdhd;
+  }
+
+  private static long[] append(long[] array, int count, long value) {
+    if (count == array.length) {
+      array = Arrays.copyOf(array, Math.max(16, count * 2));
+    }
+    array[count] = value;
+    return array;
+  }
+
+  /**
+   * What the sample table boxes of one track will hold, kept as primitive arrays and run lengths
+   * while the samples are written.
+   */
+  private static final class TrackTable {
+
+    private final boolean                             compositionTimes;
+    private final List<TimeToSampleBox.Entry>         stts = new ArrayList<>();
+    private final List<CompositionTimeToSample.Entry> ctts = new ArrayList<>();
+    private final List<SampleToChunkBox.Entry>        stsc = new ArrayList<>();
+
+    private long[] sampleSizes  = new long[0];
+    private long[] syncSamples  = new long[0];
+    private long[] chunkOffsets = new long[0];
+    private int    sampleCount;
+    private int    syncSampleCount;
+    private int    chunkCount;
+    private int    chunkSampleCount;
+    private long   duration;
+
+    private TrackTable(@NonNull StreamingTrack streamingTrack) {
+      this.compositionTimes = streamingTrack.getTrackExtension(CompositionTimeTrackExtension.class) != null;
+    }
+
+    void startChunk(long offset) {
+      chunkOffsets     = append(chunkOffsets, chunkCount++, offset);
+      chunkSampleCount = 0;
+    }
+
+    void endChunk() {
+      if (stsc.isEmpty() || stsc.get(stsc.size() - 1).getSamplesPerChunk() != chunkSampleCount) {
+        stsc.add(new SampleToChunkBox.Entry(chunkCount, chunkSampleCount, 1));
+      }
+    }
+
+    void addSample(@NonNull StreamingSample sample, long size) {
+      sampleSizes = append(sampleSizes, sampleCount++, size);
+      chunkSampleCount++;
+      duration += sample.getDuration();
+
+      final TimeToSampleBox.Entry lastStts = stts.isEmpty() ? null : stts.get(stts.size() - 1);
+      if (lastStts != null && lastStts.getDelta() == sample.getDuration()) {
+        lastStts.setCount(lastStts.getCount() + 1);
+      } else {
+        stts.add(new TimeToSampleBox.Entry(1, sample.getDuration()));
+      }
+
+      if (compositionTimes) {
+        final CompositionTimeSampleExtension extension = sample.getSampleExtension(CompositionTimeSampleExtension.class);
+        final int                            offset    = extension != null ? l2i(extension.getCompositionTimeOffset()) : 0;
+        final CompositionTimeToSample.Entry  lastCtts  = ctts.isEmpty() ? null : ctts.get(ctts.size() - 1);
+        if (lastCtts != null && lastCtts.getOffset() == offset) {
+          lastCtts.setCount(lastCtts.getCount() + 1);
+        } else {
+          ctts.add(new CompositionTimeToSample.Entry(1, offset));
+        }
+      }
+
+      final SampleFlagsSampleExtension flags = sample.getSampleExtension(SampleFlagsSampleExtension.class);
+      if (flags != null && flags.isSyncSample()) {
+        syncSamples = append(syncSamples, syncSampleCount++, sampleCount);
+      }
+    }
+
+    void fill(@NonNull SampleTableBox stbl) {
+      final TimeToSampleBox stts = Path.getPath(stbl, "stts[0]");
+      stts.setEntries(this.stts);
+
+      final SampleToChunkBox stsc = Path.getPath(stbl, "stsc[0]");
+      stsc.setEntries(this.stsc);
+
+      final SampleSizeBox stsz = Path.getPath(stbl, "stsz[0]");
+      stsz.setSampleSizes(Arrays.copyOf(sampleSizes, sampleCount));
+
+      final List<Box> boxes = new ArrayList<>(stbl.getBoxes());
+
+      ChunkOffsetBox stco = Path.getPath(stbl, "stco[0]");
+      if (chunkCount > 0 && chunkOffsets[chunkCount - 1] > 0xffffffffL) {
+        final ChunkOffsetBox co64 = new ChunkOffset64BitBox();
+        boxes.set(boxes.indexOf(stco), co64);
+        stco = co64;
+      }
+      stco.setChunkOffsets(Arrays.copyOf(chunkOffsets, chunkCount));
+
+      if (compositionTimes) {
+        final CompositionTimeToSample ctts = new CompositionTimeToSample();
+        ctts.setEntries(this.ctts);
+        boxes.add(boxes.indexOf(stts) + 1, ctts);
+      }
+
+      if (syncSampleCount > 0) {
+        final SyncSampleBox stss = new SyncSampleBox();
+        stss.setSampleNumber(Arrays.copyOf(syncSamples, syncSampleCount));
+        boxes.add(stss);
+      }
+
+      stbl.setBoxes(boxes);
+    }
+  }
+}
@@ -47,6 +47,42 @@ final class H264Utils {
     return nals;
   }
 
+  /**
+   * Like {@link #skipToNALUnit(ByteBuffer)}, but reads without moving the buffer's position or
+   * allocating anything.
+   *
+   * @return The index just past the next start code at or after from, or -1 if there isn't one.
+   */
+  static int findNALUnitStart(ByteBuffer buf, int from) {
+    int val = 0xffffffff;
+    for (int i = from; i < buf.limit(); i++) {
+      val <<= 8;
+      val |= (buf.get(i) & 0xff);
+      if ((val & 0xffffff) == 1) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Like {@link #gotoNALUnit(ByteBuffer)}, but reads without moving the buffer's position or
+   * allocating anything.
+   *
+   * @return The index just past the end of the NAL unit starting at from.
+   */
+  static int findNALUnitEnd(ByteBuffer buf, int from) {
+    int val = 0xffffffff;
+    for (int i = from; i < buf.limit(); i++) {
+      val <<= 8;
+      val |= (buf.get(i) & 0xff);
+      if ((val & 0xffffff) == 1) {
+        return i + 1 - (val == 1 ? 4 : 3);
+      }
+    }
+    return buf.limit();
+  }
+
   static ByteBuffer nextNALUnit(ByteBuffer buf) {
     skipToNALUnit(buf);
     return gotoNALUnit(buf);
@@ -0,0 +1,113 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+
+import org.mp4parser.streaming.SampleExtension;
+import org.mp4parser.streaming.StreamingSample;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sample whose data is held in buffers borrowed from a {@link BufferPool}, rather than copied
+ * into one buffer of its own. {@link FileChannelMp4Writer} writes the buffers out as they are and
+ * then hands them back to the pool.
+ * <p>
+ * H.264 samples are made of several NAL units, which are each preceded by their length in the file.
+ */
+final class PooledSample implements StreamingSample {
+
+  private final BufferPool                                         pool;
+  private final ByteBuffer[]                                       buffers;
+  private final boolean                                            lengthPrefixed;
+  private final long                                               duration;
+  private final Map<Class<? extends SampleExtension>, SampleExtension> extensions = new HashMap<>();
+
+  private boolean released;
+
+  PooledSample(@NonNull BufferPool pool, @NonNull ByteBuffer[] buffers, boolean lengthPrefixed, long duration) {
+    this.pool           = pool;
+    this.buffers        = buffers;
+    this.lengthPrefixed = lengthPrefixed;
+    this.duration       = duration;
+  }
+
+  /**
+   * @return The number of bytes this sample takes up in the file.
+   */
+  long getSize() {
+    long size = 0;
+    for (ByteBuffer buffer : buffers) {
+      size += buffer.limit() + (lengthPrefixed ? 4 : 0);
+    }
+    return size;
+  }
+
+  int getBufferCount() {
+    return buffers.length;
+  }
+
+  @NonNull ByteBuffer getBuffer(int index) {
+    return buffers[index];
+  }
+
+  boolean isLengthPrefixed() {
+    return lengthPrefixed;
+  }
+
+  /**
+   * Hands the buffers back to the pool. The sample can't be read after this.
+   */
+  void release() {
+    if (!released) {
+      released = true;
+      for (ByteBuffer buffer : buffers) {
+        pool.release(buffer);
+      }
+    }
+  }
+
+  /**
+   * Copies the sample into a buffer of its own, as {@link Mp4Writer} expects. Avoided by
+   * {@link FileChannelMp4Writer}.
+   */
+  @Override
+  public ByteBuffer getContent() {
+    if (released) {
+      throw new IllegalStateException("Sample has been released");
+    }
+
+    ByteBuffer content = ByteBuffer.allocate((int) getSize());
+
+    for (ByteBuffer buffer : buffers) {
+      if (lengthPrefixed) {
+        content.putInt(buffer.limit());
+      }
+      content.put((ByteBuffer) buffer.duplicate().rewind());
+    }
+
+    content.flip();
+    return content;
+  }
+
+  @Override
+  public long getDuration() {
+    return duration;
+  }
+
+  @Override
+  public <T extends SampleExtension> T getSampleExtension(Class<T> clazz) {
+    return clazz.cast(extensions.get(clazz));
+  }
+
+  @Override
+  public void addSampleExtension(SampleExtension sampleExtension) {
+    extensions.put(sampleExtension.getClass(), sampleExtension);
+  }
+
+  @Override
+  public <T extends SampleExtension> T removeSampleExtension(Class<T> clazz) {
+    return clazz.cast(extensions.remove(clazz));
+  }
+}
@@ -4,25 +4,44 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.output.SampleSink;
 import org.thoughtcrime.securesms.video.videoconverter.Muxer;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class StreamingMuxer implements Muxer {
 
+  private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
   private final OutputStream          outputStream;
+  private final FileChannel           fileChannel;
+  private final BufferPool            bufferPool;
   private final List<MediaCodecTrack> tracks = new ArrayList<>();
-  private       Mp4Writer             mp4Writer;
+  private       SampleSink            mp4Writer;
 
   public StreamingMuxer(OutputStream outputStream) {
     this.outputStream = outputStream;
+    this.fileChannel  = null;
+    this.bufferPool   = null;
+  }
+
+  /**
+   * Writes samples straight to the file as they're encoded, copying encoder output into pooled
+   * buffers rather than new ones, and patches in the sizes it couldn't know up front at the end.
+   */
+  public StreamingMuxer(FileChannel fileChannel) {
+    this.outputStream = null;
+    this.fileChannel  = fileChannel;
+    this.bufferPool   = new BufferPool(MAX_POOLED_BYTES);
   }
 
   @Override
@@ -31,7 +50,11 @@ public final class StreamingMuxer implements Muxer {
     for (MediaCodecTrack track : tracks) {
       source.add((StreamingTrack) track);
     }
-    mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    if (fileChannel != null) {
+      mp4Writer = new FileChannelMp4Writer(source, fileChannel);
+    } else {
+      mp4Writer = new Mp4Writer(source, Channels.newChannel(outputStream));
+    }
   }
 
   @Override
@@ -52,10 +75,10 @@ public final class StreamingMuxer implements Muxer {
     final String mime = format.getString(MediaFormat.KEY_MIME);
     switch (mime) {
       case "video/avc":
-        tracks.add(new MediaCodecAvcTrack(format));
+        tracks.add(new MediaCodecAvcTrack(format, bufferPool));
         break;
       case "audio/mp4a-latm":
-        tracks.add(new MediaCodecAacTrack(format));
+        tracks.add(new MediaCodecAacTrack(format, bufferPool));
         break;
       case "video/hevc":
         tracks.add(new MediaCodecHevcTrack(format));
@@ -83,16 +106,13 @@ public final class StreamingMuxer implements Muxer {
 
   static class MediaCodecAvcTrack extends AvcTrack implements MediaCodecTrack {
 
-    MediaCodecAvcTrack(@NonNull MediaFormat format) {
-      super(Utils.subBuffer(format.getByteBuffer("csd-0"), 4), Utils.subBuffer(format.getByteBuffer("csd-1"), 4));
+    MediaCodecAvcTrack(@NonNull MediaFormat format, @Nullable BufferPool bufferPool) {
+      super(Utils.subBuffer(format.getByteBuffer("csd-0"), 4), Utils.subBuffer(format.getByteBuffer("csd-1"), 4), bufferPool);
     }
 
     @Override
     public void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
-      final List<ByteBuffer> nals = H264Utils.getNals(byteBuf);
-      for (ByteBuffer nal : nals) {
-        consumeNal(Utils.clone(nal), bufferInfo.presentationTimeUs);
-      }
+      consumeNals(byteBuf, bufferInfo.presentationTimeUs);
     }
 
     @Override
@@ -123,14 +143,26 @@ public final class StreamingMuxer implements Muxer {
 
   static class MediaCodecAacTrack extends AacTrack implements MediaCodecTrack {
 
-    MediaCodecAacTrack(@NonNull MediaFormat format) {
+    private final BufferPool bufferPool;
+
+    MediaCodecAacTrack(@NonNull MediaFormat format, @Nullable BufferPool bufferPool) {
       super(format.getInteger(MediaFormat.KEY_BIT_RATE), format.getInteger(MediaFormat.KEY_BIT_RATE),
             format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-            format.getInteger(MediaFormat.KEY_AAC_PROFILE));
+            format.getInteger(MediaFormat.KEY_AAC_PROFILE), bufferPool);
+      this.bufferPool = bufferPool;
     }
 
     @Override
     public void writeSampleData(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+      if (bufferPool != null) {
+        final ByteBuffer frame = bufferPool.acquire(bufferInfo.size);
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        frame.put(byteBuf);
+        frame.flip();
+        processSample(frame);
+        return;
+      }
+
       final byte[] buffer = new byte[bufferInfo.size];
       byteBuf.position(bufferInfo.offset);
       byteBuf.get(buffer, 0, bufferInfo.size);
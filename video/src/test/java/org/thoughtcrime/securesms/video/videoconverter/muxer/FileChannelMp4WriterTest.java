@@ -0,0 +1,467 @@
+package org.thoughtcrime.securesms.video.videoconverter.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.SampleDescriptionBox;
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
+import org.mp4parser.boxes.iso14496.part12.SyncSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.sampleentry.AudioSampleEntry;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.input.AbstractStreamingTrack;
+import org.mp4parser.streaming.input.StreamingSampleImpl;
+import org.mp4parser.streaming.output.SampleSink;
+import org.mp4parser.tools.Path;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Muxes synthetic H.264 and AAC samples. The H.264 is only real as far as the muxer looks at it,
+ * parameter sets and slice headers, and the rest of each slice is random.
+ */
+public final class FileChannelMp4WriterTest {
+
+  private static final int FRAME_RATE      = 30;
+  private static final int GOP_LENGTH      = 30;
+  private static final int AUDIO_FRAME     = 1024;
+  private static final int AUDIO_RATE      = 44100;
+  private static final int VIDEO_FRAME_MAX = 24 * 1024;
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    Log.initialize(new EmptyLogger());
+    file = File.createTempFile("muxer", ".mp4");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void everySampleIsWhereTheMoovSaysItIs() throws IOException {
+    BufferPool      pool   = new BufferPool(4 * 1024 * 1024);
+    SyntheticSource source = new SyntheticSource(pool);
+
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      source.mux(new FileChannelMp4Writer(source.tracks(), output.getChannel()), 300);
+    }
+
+    IsoFile isoFile = new IsoFile(file.getPath());
+    try {
+      List<TrackBox> tracks = isoFile.getMovieBox().getBoxes(TrackBox.class);
+      assertEquals(2, tracks.size());
+
+      try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+        assertSamples(input, tracks.get(0), source.videoSamples);
+        assertSamples(input, tracks.get(1), source.audioSamples);
+      }
+
+      SyncSampleBox stss = Path.getPath(tracks.get(0), "mdia[0]/minf[0]/stbl[0]/stss[0]");
+      assertEquals(300 / GOP_LENGTH, stss.getSampleNumber().length);
+      assertEquals(1, stss.getSampleNumber()[0]);
+      assertEquals(GOP_LENGTH + 1, stss.getSampleNumber()[1]);
+    } finally {
+      isoFile.close();
+    }
+
+    assertTrue(pool.getAllocations() < 64);
+  }
+
+  @Test
+  public void sameDurationAsTheSequentialWriter() throws IOException {
+    File sequential = File.createTempFile("muxer", ".mp4");
+
+    try {
+      try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+        SyntheticSource source = new SyntheticSource(new BufferPool(4 * 1024 * 1024));
+        source.mux(new FileChannelMp4Writer(source.tracks(), output.getChannel()), 90);
+      }
+
+      try (FileOutputStream output = new FileOutputStream(sequential)) {
+        SyntheticSource source = new SyntheticSource(null);
+        source.mux(new Mp4Writer(source.tracks(), Channels.newChannel(output)), 90);
+      }
+
+      assertEquals(durationOf(sequential), durationOf(file));
+    } finally {
+      sequential.delete();
+    }
+  }
+
+  /**
+   * Compares how much the muxing thread allocates for each video frame, with the pooled buffers and
+   * file channel, and with the sequential writer and a copy of every NAL unit. Ignored by default,
+   * since it's a benchmark, remove the annotation to run it.
+   */
+  @Ignore("Benchmark")
+  @Test
+  public void allocationPerFrame() throws IOException {
+    int frames = 3000;
+
+    long pooled = measure(() -> {
+      try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+        output.setLength(0);
+        SyntheticSource source = new SyntheticSource(new BufferPool(4 * 1024 * 1024)).withoutRecording();
+        source.mux(new FileChannelMp4Writer(source.tracks(), output.getChannel()), frames);
+      }
+    });
+
+    long copying = measure(() -> {
+      try (FileOutputStream output = new FileOutputStream(file)) {
+        SyntheticSource source = new SyntheticSource(null).withoutRecording();
+        source.mux(new Mp4Writer(source.tracks(), Channels.newChannel(output)), frames);
+      }
+    });
+
+    assumeTrue("Allocation counting isn't supported on this JVM", pooled >= 0 && copying >= 0);
+
+    assertTrue(String.format(Locale.US, "Pooled: %d bytes per frame, copying: %d bytes per frame", pooled / frames, copying / frames),
+               pooled < copying / 2);
+  }
+
+  private static long measure(@NonNull Muxing muxing) throws IOException {
+    muxing.run();
+
+    long before = allocatedBytes();
+    muxing.run();
+    long after = allocatedBytes();
+
+    return before < 0 ? -1 : after - before;
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+
+    return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long durationOf(@NonNull File file) throws IOException {
+    IsoFile isoFile = new IsoFile(file.getPath());
+    try {
+      return isoFile.getMovieBox().getMovieHeaderBox().getDuration();
+    } finally {
+      isoFile.close();
+    }
+  }
+
+  /**
+   * Walks the chunk offsets, samples per chunk and sample sizes, and checks each sample they point
+   * at against what was muxed.
+   */
+  private static void assertSamples(@NonNull RandomAccessFile input, @NonNull TrackBox track, @NonNull List<byte[]> expected) throws IOException {
+    ChunkOffsetBox   stco = Path.getPath(track, "mdia[0]/minf[0]/stbl[0]/stco[0]");
+    SampleToChunkBox stsc = Path.getPath(track, "mdia[0]/minf[0]/stbl[0]/stsc[0]");
+    SampleSizeBox    stsz = Path.getPath(track, "mdia[0]/minf[0]/stbl[0]/stsz[0]");
+
+    assertEquals(expected.size(), stsz.getSampleCount());
+
+    long[] samplesPerChunk = stsc.blowup(stco.getChunkOffsets().length);
+    int    sample          = 0;
+
+    for (int chunk = 0; chunk < stco.getChunkOffsets().length; chunk++) {
+      long offset = stco.getChunkOffsets()[chunk];
+
+      for (int i = 0; i < samplesPerChunk[chunk]; i++) {
+        byte[] actual = new byte[(int) stsz.getSampleSizeAtIndex(sample)];
+        input.seek(offset);
+        input.readFully(actual);
+
+        assertArrayEquals("Sample " + sample, expected.get(sample), actual);
+
+        offset += actual.length;
+        sample++;
+      }
+    }
+
+    assertEquals(expected.size(), sample);
+  }
+
+  private interface Muxing {
+    void run() throws IOException;
+  }
+
+  /**
+   * A 320x240 H.264 track at 30 fps with an IDR frame every second, and an AAC track, fed to the
+   * writer interleaved the way the encoders would produce them. Slice headers and random data are
+   * made up front, so feeding the writer doesn't allocate anything itself.
+   */
+  private static final class SyntheticSource {
+
+    private final Random       random        = new Random(42);
+    private final List<byte[]> videoSamples  = new ArrayList<>();
+    private final List<byte[]> audioSamples  = new ArrayList<>();
+    private final ByteBuffer   encoderBuffer = ByteBuffer.allocateDirect(VIDEO_FRAME_MAX + 64);
+    private final byte[]       randomData    = new byte[64 * 1024];
+    private final byte[][]     sliceHeaders  = new byte[GOP_LENGTH * 2][];
+    private final AvcTrack     videoTrack;
+    private final AudioTrack   audioTrack;
+    private final BufferPool   pool;
+
+    private boolean recordSamples = true;
+
+    SyntheticSource(@Nullable BufferPool pool) {
+      this.pool       = pool;
+      this.videoTrack = new AvcTrack(sps(), pps(), pool) {};
+      this.audioTrack = new AudioTrack(pool);
+
+      for (int i = 0; i < randomData.length; i++) {
+        randomData[i] = (byte) (1 + random.nextInt(255));
+      }
+
+      for (int i = 0; i < sliceHeaders.length; i++) {
+        sliceHeaders[i] = sliceHeader(i);
+      }
+    }
+
+    @NonNull List<StreamingTrack> tracks() {
+      return Arrays.asList(videoTrack, audioTrack);
+    }
+
+    void mux(@NonNull SampleSink writer, int frames) throws IOException {
+      long audioTimeUs = 0;
+
+      for (int frame = 0; frame < frames; frame++) {
+        long videoTimeUs = frame * 1_000_000L / FRAME_RATE;
+
+        while (audioTimeUs <= videoTimeUs) {
+          writeAudio();
+          audioTimeUs += AUDIO_FRAME * 1_000_000L / AUDIO_RATE;
+        }
+
+        writeVideo(frame, videoTimeUs);
+      }
+
+      videoTrack.consumeLastNal();
+      writer.close();
+    }
+
+    /**
+     * Stop keeping a copy of every sample, so all the allocation left is the muxer's.
+     */
+    @NonNull SyntheticSource withoutRecording() {
+      recordSamples = false;
+      return this;
+    }
+
+    private void writeVideo(int frame, long presentationTimeUs) throws IOException {
+      byte[] header = sliceHeaders[frame % sliceHeaders.length];
+      int    length = 2 * 1024 + random.nextInt(VIDEO_FRAME_MAX - 4 * 1024);
+
+      encoderBuffer.clear();
+      encoderBuffer.putInt(1);
+      encoderBuffer.put(header);
+      encoderBuffer.put(randomData, random.nextInt(randomData.length - length), length);
+      encoderBuffer.flip();
+
+      if (recordSamples) {
+        ByteBuffer sample = ByteBuffer.allocate(encoderBuffer.limit());
+        sample.putInt(encoderBuffer.limit() - 4);
+        sample.put((ByteBuffer) encoderBuffer.duplicate().position(4));
+        videoSamples.add(sample.array());
+      }
+
+      videoTrack.consumeNals(encoderBuffer, presentationTimeUs);
+    }
+
+    private void writeAudio() throws IOException {
+      int length = 200 + random.nextInt(200);
+      int offset = random.nextInt(randomData.length - length);
+
+      ByteBuffer buffer = pool != null ? pool.acquire(length) : ByteBuffer.allocate(length);
+      buffer.put(randomData, offset, length);
+      buffer.flip();
+
+      if (recordSamples) {
+        audioSamples.add(Arrays.copyOfRange(randomData, offset, offset + length));
+      }
+
+      audioTrack.processSample(buffer);
+    }
+
+    /**
+     * The slice header AvcTrack needs to tell frames apart. The random data after it has no zeros,
+     * so there's nothing that looks like a start code.
+     */
+    private static byte[] sliceHeader(int frame) {
+      boolean idr = frame % GOP_LENGTH == 0;
+
+      BitWriter header = new BitWriter();
+      header.u(idr ? 0x65 : 0x41, 8);
+      header.ue(0);
+      header.ue(idr ? 7 : 5);
+      header.ue(0);
+      header.u((frame % GOP_LENGTH) & 0xf, 4);
+      if (idr) {
+        header.ue(frame / GOP_LENGTH);
+      }
+      header.u(1, 1);
+
+      return header.toByteArray();
+    }
+
+    private static ByteBuffer sps() {
+      BitWriter sps = new BitWriter();
+      sps.u(0x67, 8);
+      sps.u(66, 8);
+      sps.u(0xc0, 8);
+      sps.u(30, 8);
+      sps.ue(0);
+      sps.ue(4);
+      sps.ue(2);
+      sps.ue(1);
+      sps.u(0, 1);
+      sps.ue(19);
+      sps.ue(14);
+      sps.u(1, 1);
+      sps.u(1, 1);
+      sps.u(0, 1);
+      sps.u(0, 1);
+      sps.u(1, 1);
+      return ByteBuffer.wrap(sps.toByteArray());
+    }
+
+    private static ByteBuffer pps() {
+      BitWriter pps = new BitWriter();
+      pps.u(0x68, 8);
+      pps.ue(0);
+      pps.ue(0);
+      pps.u(0, 1);
+      pps.u(0, 1);
+      pps.ue(0);
+      pps.ue(0);
+      pps.ue(0);
+      pps.u(0, 1);
+      pps.u(0, 2);
+      pps.se(0);
+      pps.se(0);
+      pps.se(0);
+      pps.u(1, 1);
+      pps.u(0, 1);
+      pps.u(0, 1);
+      pps.u(1, 1);
+      return ByteBuffer.wrap(pps.toByteArray());
+    }
+  }
+
+  private static final class AudioTrack extends AbstractStreamingTrack {
+
+    private final BufferPool           pool;
+    private final SampleDescriptionBox stsd;
+
+    AudioTrack(@Nullable BufferPool pool) {
+      this.pool = pool;
+
+      AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
+      audioSampleEntry.setChannelCount(2);
+      audioSampleEntry.setSampleRate(AUDIO_RATE);
+      audioSampleEntry.setDataReferenceIndex(1);
+      audioSampleEntry.setSampleSize(16);
+
+      stsd = new SampleDescriptionBox();
+      stsd.addBox(audioSampleEntry);
+    }
+
+    void processSample(@NonNull ByteBuffer frame) throws IOException {
+      if (pool != null) {
+        sampleSink.acceptSample(new PooledSample(pool, new ByteBuffer[] { frame }, false, AUDIO_FRAME), this);
+      } else {
+        sampleSink.acceptSample(new StreamingSampleImpl(frame, AUDIO_FRAME), this);
+      }
+    }
+
+    @Override
+    public long getTimescale() {
+      return AUDIO_RATE;
+    }
+
+    @Override
+    public String getHandler() {
+      return "soun";
+    }
+
+    @Override
+    public String getLanguage() {
+      return "```";
+    }
+
+    @Override
+    public SampleDescriptionBox getSampleDescriptionBox() {
+      return stsd;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static final class BitWriter {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private int current;
+    private int bitCount;
+
+    void u(int value, int bits) {
+      for (int i = bits - 1; i >= 0; i--) {
+        current = (current << 1) | ((value >> i) & 1);
+        if (++bitCount == 8) {
+          bytes.write(current);
+          current  = 0;
+          bitCount = 0;
+        }
+      }
+    }
+
+    void ue(int value) {
+      int codeNum = value + 1;
+      int bits    = 32 - Integer.numberOfLeadingZeros(codeNum);
+      u(0, bits - 1);
+      u(codeNum, bits);
+    }
+
+    void se(int value) {
+      ue(value <= 0 ? -2 * value : 2 * value - 1);
+    }
+
+    byte[] toByteArray() {
+      while (bitCount != 0) {
+        u(0, 1);
+      }
+      return bytes.toByteArray();
+    }
+  }
+}